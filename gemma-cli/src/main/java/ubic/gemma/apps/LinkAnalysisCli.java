@@ -191,6 +191,15 @@ public class LinkAnalysisCli extends ExpressionExperimentManipulatingCLI {
 
         options.addOption( Option.builder( "probeDegreeLim" ).hasArg().type( Number.class ).build() );
 
+        options.addOption( Option.builder( "maxLinksPerProbe" ).hasArg().type( Number.class )
+                .desc( "Retain at most this many links per probe, keeping the strongest ones (default is no limit)" ).build() );
+
+        options.addOption( Option.builder( "streaming" )
+                .desc( "Do not cache correlations between passes over the data; uses less memory, but computes each correlation twice" ).build() );
+
+        options.addOption( Option.builder( "correlThreads" ).hasArg().argName( "numThreads" ).type( Number.class )
+                .desc( "Number of threads to use to compute correlations (default is 1)" ).build() );
+
         // finer-grained control is possible, of course.
         Option skipQC = Option.builder( "noqc" )
                 .desc( "Skip strict QC for outliers, batch effects and correlation distribution" )
@@ -321,6 +330,18 @@ public class LinkAnalysisCli extends ExpressionExperimentManipulatingCLI {
         if ( commandLine.hasOption( "probeDegreeLim" ) ) {
             this.linkAnalysisConfig.setProbeDegreeThreshold( ( ( Number ) commandLine.getParsedOptionValue( "probeDegreeLim" ) ).intValue() );
         }
+
+        if ( commandLine.hasOption( "maxLinksPerProbe" ) ) {
+            this.linkAnalysisConfig.setMaxLinksPerProbe( ( ( Number ) commandLine.getParsedOptionValue( "maxLinksPerProbe" ) ).intValue() );
+        }
+
+        if ( commandLine.hasOption( "streaming" ) ) {
+            this.linkAnalysisConfig.setStreaming( true );
+        }
+
+        if ( commandLine.hasOption( "correlThreads" ) ) {
+            this.linkAnalysisConfig.setNumThreads( ( ( Number ) commandLine.getParsedOptionValue( "correlThreads" ) ).intValue() );
+        }
     }
 
     @Override
@@ -19,8 +19,12 @@
 
 package ubic.gemma.apps;
 
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
 import org.springframework.beans.factory.annotation.Autowired;
+import ubic.gemma.core.analysis.preprocess.svd.SVDConfig;
 import ubic.gemma.core.analysis.preprocess.svd.SVDException;
 import ubic.gemma.core.analysis.preprocess.svd.SVDService;
 import ubic.gemma.model.common.auditAndSecurity.eventType.PCAAnalysisEvent;
@@ -34,6 +38,8 @@ public class SVDCli extends ExpressionExperimentManipulatingCLI {
     @Autowired
     private SVDService svdService;
 
+    private SVDConfig svdConfig;
+
     @Override
     public String getCommandName() {
         return "pca";
@@ -47,6 +53,29 @@ public class SVDCli extends ExpressionExperimentManipulatingCLI {
     @Override
     protected void buildExperimentOptions( Options options ) {
         super.addForceOption( options );
+        options.addOption( "fullSvd", "full-svd", false, "Always compute a full SVD. By default, only the leading components are computed for large data sets." );
+        options.addOption( "truncatedSvd", "truncated-svd", false, "Always compute a truncated SVD." );
+        options.addOption( Option.builder( "numComponents" ).longOpt( "num-components" ).hasArg().type( Number.class )
+                .desc( "Number of components to compute for a truncated SVD (default is " + SVDConfig.DEFAULT.getNumComponents() + ")" ).build() );
+        options.addOption( "checkAccuracy", "check-accuracy", false, "Check the accuracy of the components of a truncated SVD and fail if they are not accurate enough." );
+    }
+
+    @Override
+    protected void processExperimentOptions( CommandLine commandLine ) throws ParseException {
+        if ( commandLine.hasOption( "fullSvd" ) && commandLine.hasOption( "truncatedSvd" ) ) {
+            throw new ParseException( "Only one of -fullSvd or -truncatedSvd can be supplied." );
+        }
+        SVDConfig.SVDConfigBuilder builder = SVDConfig.builder()
+                .checkAccuracy( commandLine.hasOption( "checkAccuracy" ) );
+        if ( commandLine.hasOption( "fullSvd" ) ) {
+            builder.mode( SVDConfig.Mode.FULL );
+        } else if ( commandLine.hasOption( "truncatedSvd" ) ) {
+            builder.mode( SVDConfig.Mode.TRUNCATED );
+        }
+        if ( commandLine.hasOption( "numComponents" ) ) {
+            builder.numComponents( ( ( Number ) commandLine.getParsedOptionValue( "numComponents" ) ).intValue() );
+        }
+        this.svdConfig = builder.build();
     }
 
     @Override
@@ -56,7 +85,7 @@ public class SVDCli extends ExpressionExperimentManipulatingCLI {
         }
         log.info( "Processing: " + ee );
         try {
-            svdService.svd( ee );
+            svdService.svd( ee, svdConfig );
         } catch ( SVDException e ) {
             throw new RuntimeException( e );
         }
@@ -54,7 +54,9 @@ public class SingleCellDataAggregatorCli extends ExpressionExperimentVectorsMani
             REDO_OPTION = "redo",
             REDO_QT_OPTION = "redoQt",
             REDO_DIMENSION_OPTION = "redoDimension",
-            PRINT_MAPPING_OPTION = "writeCellTypeMapping";
+            PRINT_MAPPING_OPTION = "writeCellTypeMapping",
+            FETCH_SIZE_OPTION = "fetchSize",
+            NO_CURSOR_FETCH_OPTION = "noCursorFetch";
 
     @Autowired
     private SingleCellExpressionExperimentService singleCellExpressionExperimentService;
@@ -91,6 +93,8 @@ public class SingleCellDataAggregatorCli extends ExpressionExperimentVectorsMani
     @Nullable
     private String redoDimension;
     private boolean printMapping;
+    private int fetchSize;
+    private boolean useCursorFetchIfSupported;
 
     public SingleCellDataAggregatorCli() {
         super( SingleCellExpressionDataVector.class );
@@ -128,6 +132,9 @@ public class SingleCellDataAggregatorCli extends ExpressionExperimentVectorsMani
         addSingleExperimentOption( options, REDO_DIMENSION_OPTION, "redo-dimension", true, "Dimension to re-aggregate, defaults to the one corresponding to -" + REDO_QT_OPTION + ". Requires the -" + REDO_OPTION + " flag. Incompatible with -" + REDO_QT_OPTION + "." );
         options.addOption( PRINT_MAPPING_OPTION, "print-mapping", false, "Print the cell type mapping to the standard output. No aggregation is performed or redone." );
         options.addOption( SKIP_POST_PROCESSING_OPTION, "no-post-processing", false, "Skip post-processing steps after aggregation." );
+        options.addOption( Option.builder( FETCH_SIZE_OPTION ).longOpt( "fetch-size" ).hasArg( true ).type( Integer.class ).desc( "Fetch size to use when streaming single-cell vectors (defaults to 30)." ).build() );
+        options.addOption( NO_CURSOR_FETCH_OPTION, "no-cursor-fetch", false, "Disable cursor fetching on the database server when streaming single-cell vectors." );
+        addThreadsOption( options );
     }
 
     @Override
@@ -153,6 +160,11 @@ public class SingleCellDataAggregatorCli extends ExpressionExperimentVectorsMani
                 requires( allOf( toBeSet( REDO_OPTION ), toBeUnset( REDO_DIMENSION_OPTION ) ) ) );
         redoDimension = getOptionValue( commandLine, REDO_DIMENSION_OPTION,
                 requires( allOf( toBeSet( REDO_OPTION ), toBeUnset( REDO_QT_OPTION ) ) ) );
+        fetchSize = commandLine.getParsedOptionValue( FETCH_SIZE_OPTION, 30 );
+        if ( fetchSize < 1 ) {
+            throw new ParseException( "The fetch size must be at least 1." );
+        }
+        useCursorFetchIfSupported = !commandLine.hasOption( NO_CURSOR_FETCH_OPTION );
     }
 
     @Override
@@ -203,6 +215,9 @@ public class SingleCellDataAggregatorCli extends ExpressionExperimentVectorsMani
                 .makePreferred( makePreferred )
                 .adjustLibrarySizes( adjustLibrarySizes )
                 .includeMaskedCellsInLibrarySize( includeMaskedCellsInLibrarySize )
+                .numThreads( getNumThreads() )
+                .fetchSize( fetchSize )
+                .useCursorFetchIfSupported( useCursorFetchIfSupported )
                 .build();
 
         QuantitationType newQt;
@@ -287,6 +287,8 @@ public class SingleCellDataLoaderCli extends ExpressionExperimentManipulatingCLI
                 MEX_KEEP_EMPTY_CELLS_OPTION, "mex-keep-empty-cells", "Keep empty cells when loading MEX data." );
         options.addOption( MEX_ALLOW_MAPPING_DESIGN_ELEMENTS_TO_GENE_SYMBOLS_OPTION, "mex-allow-mapping-design-elements-to-gene-symbols", false, "Allow mapping probe names to gene symbols when loading MEX data (i.e. the second column in features.tsv.gz)." );
         options.addOption( MEX_USE_DOUBLE_PRECISION_OPTION, "mex-use-double-precision", false, "Use double precision (i.e. double and long) for storing vectors" );
+        // used to read MEX samples and decode AnnData vectors in parallel
+        addThreadsOption( options );
 
         options.addOption( "noStreaming", "no-streaming", false, "Use in-memory storage instead of streaming for retrieving and writing vectors." );
         options.addOption( Option.builder( "fetchSize" ).longOpt( "fetch-size" ).hasArg( true ).type( Integer.class ).desc( "Fetch size to use when retrieving vectors, incompatible with " + formatOption( options, "noStreaming" ) + "." ).build() );
@@ -506,12 +508,14 @@ public class SingleCellDataLoaderCli extends ExpressionExperimentManipulatingCLI
                     .ignoreCellTypeFactor( annDataIgnoreCellTypeFactor )
                     .unknownCellTypeIndicator( annDataUnknownCellTypeIndicator )
                     .transpose( annDataTranspose )
-                    .useRawX( annDataUseRawX );
+                    .useRawX( annDataUseRawX )
+                    .numberOfThreads( getNumThreads() );
         } else if ( dataType == SingleCellDataType.MEX ) {
             configBuilder = MexSingleCellDataLoaderConfig.builder()
                     .discardEmptyCells( mexDiscardEmptyCells )
                     .allowMappingDesignElementsToGeneSymbols( mexAllowMappingDesignElementsToGeneSymbols )
-                    .useDoublePrecision( mexUseDoublePrecision );
+                    .useDoublePrecision( mexUseDoublePrecision )
+                    .numberOfThreads( getNumThreads() );
         } else {
             configBuilder = SingleCellDataLoaderConfig.builder();
         }
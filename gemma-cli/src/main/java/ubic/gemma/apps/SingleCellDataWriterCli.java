@@ -55,6 +55,7 @@ public class SingleCellDataWriterCli extends ExpressionExperimentVectorsManipula
         TABULAR,
         CELL_BROWSER,
         MEX,
+        ANNDATA,
         CELL_IDS
     }
 
@@ -360,6 +361,16 @@ public class SingleCellDataWriterCli extends ExpressionExperimentVectorsManipula
                     assert fileName != null;
                     return expressionDataFileService.writeMexSingleCellExpressionData( ee, assays, qt, scaleType, useEnsemblIds, useStreaming ? fetchSize : -1, useCursorFetchIfSupported, isForce(), fileName, autoFlush );
                 }
+            case ANNDATA:
+                if ( result.isStandardLocation() ) {
+                    throw new UnsupportedOperationException( "Writing sliced data to the standard location is not supported." );
+                } else if ( result.isStandardOutput() ) {
+                    throw new UnsupportedOperationException( "AnnData cannot be written to the standard output." );
+                } else {
+                    fileName = result.getOutputFile( getDataOutputFilename( ee, assays, qt, ExpressionDataFileUtils.ANNDATA_SC_DATA_SUFFIX ) );
+                    assert fileName != null;
+                    return expressionDataFileService.writeAnnDataSingleCellExpressionData( ee, assays, qt, scaleType, useStreaming ? fetchSize : -1, useCursorFetchIfSupported, isForce(), fileName );
+                }
             default:
                 throw new IllegalArgumentException( "Unsupported format: " + format );
         }
@@ -413,6 +424,19 @@ public class SingleCellDataWriterCli extends ExpressionExperimentVectorsManipula
                     assert fileName != null;
                     return expressionDataFileService.writeMexSingleCellExpressionData( ee, qt, scaleType, useEnsemblIds, useStreaming ? fetchSize : -1, useCursorFetchIfSupported, isForce(), fileName, autoFlush );
                 }
+            case ANNDATA:
+                if ( result.isStandardLocation() ) {
+                    try ( LockedPath path = expressionDataFileService.writeOrLocateAnnDataSingleCellExpressionData( ee, qt, useStreaming ? fetchSize : -1, useCursorFetchIfSupported, isForce() ) ) {
+                        fileName = path.getPath();
+                        return 0;
+                    }
+                } else if ( result.isStandardOutput() ) {
+                    throw new UnsupportedOperationException( "AnnData cannot be written to the standard output." );
+                } else {
+                    fileName = result.getOutputFile( getDataOutputFilename( ee, qt, ExpressionDataFileUtils.ANNDATA_SC_DATA_SUFFIX ) );
+                    assert fileName != null;
+                    return expressionDataFileService.writeAnnDataSingleCellExpressionData( ee, qt, scaleType, useStreaming ? fetchSize : -1, useCursorFetchIfSupported, isForce(), fileName );
+                }
             case CELL_IDS:
                 if ( result.isStandardLocation() ) {
                     throw new UnsupportedOperationException( "Writing cell IDs to the standard location is not supported." );
@@ -20,6 +20,7 @@ package ubic.gemma.core.analysis.expression.coexpression.links;
 
 import cern.colt.bitvector.BitMatrix;
 import cern.colt.list.DoubleArrayList;
+import cern.colt.list.IntArrayList;
 import cern.colt.list.ObjectArrayList;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.ArrayUtils;
@@ -36,6 +37,8 @@ import ubic.gemma.model.expression.designElement.CompositeSequence;
 import ubic.gemma.model.genome.Gene;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * @author paul
@@ -49,6 +52,23 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
     public static final int HARD_LIMIT_MIN_NUM_USED = 8;
     static final Log log = LogFactory.getLog( PearsonMetrics.class );
     private static final int HALF_BIN = MatrixRowPairAnalysis.NUM_BINS / 2;
+    /**
+     * Number of rows in a block. Blocks are the unit of work that is distributed across threads.
+     */
+    private static final int ROW_BLOCK_SIZE = 64;
+    /**
+     * Number of rows compared against a block at once. This keeps both sets of vectors in cache while they are being
+     * compared.
+     */
+    private static final int COLUMN_TILE_SIZE = 128;
+    /**
+     * Number of blocks per thread that can be computed ahead of the block being merged.
+     */
+    private static final int MAX_PENDING_BLOCKS_PER_THREAD = 2;
+    /**
+     * Interval at which progress is reported, in number of rows.
+     */
+    private static final int PROGRESS_REPORT_INTERVAL = 2000;
     private final int[] fastHistogram = new int[MatrixRowPairAnalysis.NUM_BINS];
     private final Map<ExpressionDataMatrixRowElement, CompositeSequence> rowMapCache = new HashMap<>();
     ExpressionDataDoubleMatrix dataMatrix;
@@ -79,7 +99,18 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
     private boolean usePvalueThreshold = true;
     private long crossHybridizationRejections = 0;
     private int numUniqueGenes = 0;
+    private long numComputed = 0;
     private boolean omitNegativeCorrelationLinks = false;
+    private int numThreads = 1;
+    private int maxLinksPerRow = 0;
+    /**
+     * Selects links when {@link #maxLinksPerRow} is set, instead of accumulating them all in {@link #keepers}.
+     */
+    private TopLinksPerRowSelector linkSelector = null;
+    /**
+     * Block reused for pairs that are applied immediately, see {@link #getPairBlock(int)}.
+     */
+    private RowBlock pairBlock = null;
 
     /**
      * Read back the histogram as a DoubleArrayList of counts.
@@ -123,7 +154,7 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
      */
     @Override
     public int numCached() {
-        return results.cardinality();
+        return results != null ? results.cardinality() : 0;
     }
 
     @Override
@@ -152,6 +183,35 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
             this.minNumUsed = minSamplesToKeepCorrelation;
     }
 
+    /**
+     * Set the number of threads used to compute correlations. The default is to compute everything in the calling
+     * thread.
+     * <p>
+     * The results do not depend on the number of threads.
+     */
+    @Override
+    public void setNumThreads( int numThreads ) {
+        if ( numThreads < 1 ) {
+            throw new IllegalArgumentException( "The number of threads must be at least 1." );
+        }
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Set the maximum number of links to retain per row. Links that pass the thresholds are streamed into a bounded
+     * selector which keeps, for each row, those with the largest absolute correlation. A link is retained if it is among
+     * the best for either of its rows.
+     *
+     * @param maxLinksPerRow maximum number of links per row, or zero for no limit (the default)
+     */
+    @Override
+    public void setMaxLinksPerRow( int maxLinksPerRow ) {
+        if ( maxLinksPerRow < 0 ) {
+            throw new IllegalArgumentException( "The maximum number of links per row must be zero or positive." );
+        }
+        this.maxLinksPerRow = maxLinksPerRow;
+    }
+
     /**
      * @param omitNegativeCorrelationLinks the omitNegativeCorrelationLinks to set
      */
@@ -262,7 +322,7 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
      * Flag the correlation matrix as un-fillable. This means that when PearsonMatrix is called, only the histogram will
      * be filled in. Also trashes any values that might have been stored there.
      */
-    @SuppressWarnings("unused") // Possible external use
+    @Override
     public void nullMatrix() {
         results = null;
     }
@@ -272,7 +332,7 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
      */
     @Override
     public String toString() {
-        return results.toString();
+        return results != null ? results.toString() : super.toString();
     }
 
     @SuppressWarnings("unused") // Possible external use
@@ -358,7 +418,7 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
     /**
      * Decide whether to keep the correlation. The correlation must be greater or equal to the set thresholds.
      */
-    void keepCorrellation( int i, int j, double correl, int numused ) {
+    void keepCorrellation( RowBlock block, int i, int j, double correl, int numused ) {
 
         if ( keepers == null ) {
             return;
@@ -383,10 +443,10 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
         if ( upperTailThreshold != 0.0 && c >= upperTailThreshold && ( !this.usePvalueThreshold
                 || this.correctedPvalue( i, j, correl, numused ) <= this.pValueThreshold ) ) {
 
-            keepers.add( new Link( i, j, correl ) );
+            block.keep( i, j, correl );
         } else if ( !useAbsoluteValue && lowerTailThreshold != 0.0 && c <= lowerTailThreshold && (
                 !this.usePvalueThreshold || this.correctedPvalue( i, j, correl, numused ) <= this.pValueThreshold ) ) {
-            keepers.add( new Link( i, j, correl ) );
+            block.keep( i, j, correl );
         }
 
     }
@@ -423,33 +483,73 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
         return true;
     }
 
-    void computeRow( StopWatch timer, ExpressionDataMatrixRowElement itemA, int numComputed, int i ) {
-        if ( ( i + 1 ) % 2000 == 0 ) {
-            double t = timer.getTime() / 1000.0;
-            AbstractMatrixRowPairAnalysis.log
-                    .info( ( i + 1 ) + " rows done, " + numComputed + " correlations computed, last row was " + itemA
-                            + " " + ( keepers.size() > 0 ? keepers.size() + " scores retained" : "" ) + String
-                            .format( ", time elapsed since last check: %.2f", t ) + "s" );
-            timer.reset();
-            timer.start();
+    /**
+     * Compute the upper triangle of the matrix, one block of rows at a time.
+     * <p>
+     * Each block accumulates its own histogram, keepers and cached values, which are then merged in row order. If more
+     * than one thread is used, blocks are computed on a dedicated {@link ForkJoinPool} with at most
+     * {@link #MAX_PENDING_BLOCKS_PER_THREAD} blocks per thread awaiting to be merged, so that the partial results held in
+     * memory do not grow with the size of the matrix. In either case, the outcome is identical to a sequential
+     * row-by-row computation.
+     * <p>
+     * When {@link #maxLinksPerRow} is set, each block retains only its best links per row with its own
+     * {@link TopLinksPerRowSelector}. A link that does not rank among the best of a block for either of its rows cannot
+     * rank among the best overall, so this does not change which links are selected.
+     *
+     * @param docalcs     whether correlations have to be computed, otherwise only cached values are used
+     * @param computation computes the correlation of a pair of rows and records it with {@link #setCorrel(RowBlock, int, int, double, int)}
+     * @return the number of rows that were skipped because they lack a gene
+     */
+    int computeMetrics( boolean docalcs, PairComputation computation ) {
+        int numrows = this.dataMatrix.rows();
+        StopWatch timer = StopWatch.createStarted();
+        int numBlocks = ( numrows + ROW_BLOCK_SIZE - 1 ) / ROW_BLOCK_SIZE;
+        List<RowBlock> blocks = new ArrayList<>( numBlocks );
+        int skipped = 0;
+        if ( maxLinksPerRow > 0 && keepers != null ) {
+            linkSelector = new TopLinksPerRowSelector( numrows, maxLinksPerRow );
         }
-    }
-
-    int computeMetrics( int numrows, int numcols, boolean docalcs, StopWatch timer, int skipped, int numComputed,
-            double[][] data ) {
-        ExpressionDataMatrixRowElement itemA;
-        double[] vectorA = null;
-        for ( int i = 0; i < numrows; i++ ) {
-            itemA = this.dataMatrix.getRowElement( i );
-            if ( !this.hasGene( itemA ) ) {
-                skipped++;
-                continue;
+        if ( numThreads == 1 || numrows <= ROW_BLOCK_SIZE ) {
+            for ( int start = 0; start < numrows; start += ROW_BLOCK_SIZE ) {
+                RowBlock block = this.createBlock( start, numrows );
+                this.computeBlock( block, docalcs, computation );
+                skipped += this.mergeBlock( block, timer );
+                block.release();
+                blocks.add( block );
             }
-            if ( docalcs ) {
-                vectorA = data[i];
+        } else {
+            AbstractMatrixRowPairAnalysis.log.info( "Computing correlations using " + numThreads + " threads" );
+            ForkJoinPool pool = new ForkJoinPool( numThreads );
+            try {
+                int maxPendingBlocks = MAX_PENDING_BLOCKS_PER_THREAD * numThreads;
+                Deque<ForkJoinTask<RowBlock>> tasks = new ArrayDeque<>( maxPendingBlocks );
+                for ( int start = 0; start < numrows || !tasks.isEmpty(); ) {
+                    if ( start < numrows && tasks.size() < maxPendingBlocks ) {
+                        RowBlock block = this.createBlock( start, numrows );
+                        tasks.add( pool.submit( () -> {
+                            this.computeBlock( block, docalcs, computation );
+                            return block;
+                        } ) );
+                        start += ROW_BLOCK_SIZE;
+                    } else {
+                        // merge in order, as blocks complete
+                        RowBlock block = tasks.remove().join();
+                        skipped += this.mergeBlock( block, timer );
+                        block.release();
+                        blocks.add( block );
+                    }
+                }
+            } finally {
+                pool.shutdownNow();
             }
-
-            numComputed = this.getNumComputed( numrows, numcols, docalcs, data, timer, itemA, vectorA, numComputed, i );
+        }
+        // values are cached only once all the blocks are done since the matrix is read while computing
+        for ( RowBlock block : blocks ) {
+            this.cacheBlock( block );
+        }
+        if ( linkSelector != null ) {
+            keepers.addAllOf( linkSelector.getLinks() );
+            linkSelector = null;
         }
         return skipped;
     }
@@ -458,11 +558,46 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
 
     /**
      * Checks for valid values of correlation and encoding.
+     * <p>
+     * This is applied immediately to this analysis; use {@link #setCorrel(RowBlock, int, int, double, int)} when
+     * computing a block of rows.
      */
     void setCorrel( int i, int j, double correl, int numused ) {
+        RowBlock block = this.getPairBlock( i );
+        this.setCorrel( block, i, j, correl, numused );
+        this.mergeAndCacheBlock( block );
+    }
+
+    /**
+     * Obtain a block for recording a single pair that is immediately merged with
+     * {@link #mergeAndCacheBlock(RowBlock)}.
+     * <p>
+     * The same block is reused for every pair, so like the rest of this analysis, this is not thread-safe.
+     */
+    RowBlock getPairBlock( int i ) {
+        if ( pairBlock == null ) {
+            pairBlock = new RowBlock( i, i + 1 );
+        } else {
+            pairBlock.reset( i );
+        }
+        return pairBlock;
+    }
+
+    /**
+     * Immediately apply a block that was computed outside of {@link #computeMetrics(boolean, PairComputation)}.
+     */
+    void mergeAndCacheBlock( RowBlock block ) {
+        this.mergeBlock( block, null );
+        this.cacheBlock( block );
+    }
+
+    /**
+     * Checks for valid values of correlation and encoding.
+     */
+    void setCorrel( RowBlock block, int i, int j, double correl, int numused ) {
 
         if ( this.crossHybridizes( i, j ) ) {
-            crossHybridizationRejections++;
+            block.crossHybridizationRejections++;
             return;
         }
 
@@ -482,30 +617,30 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
         double acorrel = Math.abs( correl );
 
         // it is possible, due to roundoff, to overflow the bins.
-        int lastBinIndex = fastHistogram.length - 1;
+        int lastBinIndex = block.histogram.length - 1;
         if ( !histogramIsFilled ) {
 
             if ( useAbsoluteValue ) {
                 int bin = Math
                         .min( ( int ) ( ( 1.0 + acorrel ) * AbstractMatrixRowPairAnalysis.HALF_BIN ), lastBinIndex );
-                fastHistogram[bin]++;
-                globalTotal += acorrel;
+                block.histogram[bin]++;
+                block.total += acorrel;
                 // histogram.fill( acorrel ); // this is suprisingly slow due to zillions of calls to Math.floor.
             } else {
-                globalTotal += correl;
+                block.total += correl;
                 int bin = Math
                         .min( ( int ) ( ( 1.0 + correl ) * AbstractMatrixRowPairAnalysis.HALF_BIN ), lastBinIndex );
-                fastHistogram[bin]++;
+                block.histogram[bin]++;
                 // histogram.fill( correl );
             }
-            numVals++;
+            block.numVals++;
         }
 
         if ( acorrel > storageThresholdValue && results != null ) {
-            results.set( i, j, correl );
+            block.cache( i, j, correl );
         }
 
-        this.keepCorrellation( i, j, correl, numused );
+        this.keepCorrellation( block, i, j, correl, numused );
 
     }
 
@@ -521,26 +656,109 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
         storageThresholdValue = k;
     }
 
-    private int getNumComputed( int numrows, int numcols, boolean docalcs, double[][] data, StopWatch timer,
-            ExpressionDataMatrixRowElement itemA, double[] vectorA, int numComputed, int i ) {
-        ExpressionDataMatrixRowElement itemB;
-        for ( int j = i + 1; j < numrows; j++ ) {
-            itemB = this.dataMatrix.getRowElement( j );
-            if ( !this.hasGene( itemB ) )
-                continue;
-            if ( !docalcs || results.get( i, j ) != 0.0 ) { // second pass over matrix. Don't calculate it
-                // if we
-                // already have it. Just do the requisite checks.
-                this.keepCorrellation( i, j, results.get( i, j ), numcols );
-                continue;
+    /**
+     * Compute all the pairs involving the rows of a block, tiling over the rows they are compared with.
+     * <p>
+     * This is thread-safe as long as the computation only reads shared state and records its results in the block.
+     */
+    private void computeBlock( RowBlock block, boolean docalcs, PairComputation computation ) {
+        int numrows = this.dataMatrix.rows();
+        int numcols = this.dataMatrix.columns();
+        boolean[] rowHasGene = new boolean[block.endRow - block.startRow];
+        for ( int i = block.startRow; i < block.endRow; i++ ) {
+            rowHasGene[i - block.startRow] = this.hasGene( this.dataMatrix.getRowElement( i ) );
+            if ( !rowHasGene[i - block.startRow] ) {
+                block.skipped++;
             }
+        }
+        for ( int tileStart = block.startRow + 1; tileStart < numrows; tileStart += COLUMN_TILE_SIZE ) {
+            int tileEnd = Math.min( tileStart + COLUMN_TILE_SIZE, numrows );
+            for ( int i = block.startRow; i < block.endRow && i + 1 < tileEnd; i++ ) {
+                if ( !rowHasGene[i - block.startRow] ) {
+                    continue;
+                }
+                for ( int j = Math.max( i + 1, tileStart ); j < tileEnd; j++ ) {
+                    if ( !this.hasGene( this.dataMatrix.getRowElement( j ) ) )
+                        continue;
+                    // second pass over matrix? Don't calculate it if we already have it. Just do the requisite checks.
+                    if ( !docalcs || ( results != null && results.get( i, j ) != 0.0 ) ) {
+                        this.keepCorrellation( block, i, j, results.get( i, j ), numcols );
+                        continue;
+                    }
+                    computation.compute( block, i, j );
+                    block.numComputed++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Create a block of rows for {@link #computeMetrics(boolean, PairComputation)}.
+     */
+    private RowBlock createBlock( int start, int numrows ) {
+        RowBlock block = new RowBlock( start, Math.min( start + ROW_BLOCK_SIZE, numrows ) );
+        if ( linkSelector != null ) {
+            block.selector = new TopLinksPerRowSelector( numrows, maxLinksPerRow );
+        }
+        return block;
+    }
+
+    /**
+     * Merge the histogram, statistics and keepers of a block into this analysis.
+     *
+     * @param timer used to report progress, or null to skip reporting
+     * @return the number of rows in the block that were skipped
+     */
+    private int mergeBlock( RowBlock block, StopWatch timer ) {
+        if ( block.numVals > 0 ) {
+            for ( int k = 0; k < fastHistogram.length; k++ ) {
+                fastHistogram[k] += block.histogram[k];
+            }
+        }
+        globalTotal += block.total;
+        numVals += block.numVals;
+        crossHybridizationRejections += block.crossHybridizationRejections;
+        numComputed += block.numComputed;
+        if ( keepers != null ) {
+            if ( block.selector != null ) {
+                // links are ordered by row, as they would be offered by a row-by-row computation
+                ObjectArrayList links = block.selector.getLinks();
+                for ( int k = 0, n = links.size(); k < n; k++ ) {
+                    Link link = ( Link ) links.getQuick( k );
+                    linkSelector.offer( link.getx(), link.gety(), link.getWeight() );
+                }
+            } else {
+                for ( ObjectArrayList rowKeepers : block.keepers ) {
+                    if ( rowKeepers != null ) {
+                        keepers.addAllOf( rowKeepers );
+                    }
+                }
+            }
+        }
+        if ( timer != null && block.endRow / PROGRESS_REPORT_INTERVAL > block.startRow / PROGRESS_REPORT_INTERVAL ) {
+            double t = timer.getTime() / 1000.0;
+            AbstractMatrixRowPairAnalysis.log
+                    .info( block.endRow + " rows done, " + numComputed + " correlations computed, last row was "
+                            + this.dataMatrix.getRowElement( block.endRow - 1 ) + " " + ( keepers != null
+                            && keepers.size() > 0 ? keepers.size() + " scores retained" : "" ) + String
+                            .format( ", time elapsed since last check: %.2f", t ) + "s" );
+            timer.reset();
+            timer.start();
+        }
+        return block.skipped;
+    }
 
-            double[] vectorB = data[j];
-            this.setCorrel( i, j, this.correlFast( vectorA, vectorB, i, j ), numcols );
-            ++numComputed;
+    /**
+     * Store the cached values of a block in the correlation matrix.
+     */
+    private void cacheBlock( RowBlock block ) {
+        if ( results == null ) {
+            return;
+        }
+        for ( int k = 0, n = block.cachedRows.size(); k < n; k++ ) {
+            results.set( block.cachedRows.getQuick( k ), block.cachedColumns.getQuick( k ),
+                    block.cachedValues.getQuick( k ) );
         }
-        this.computeRow( timer, itemA, numComputed, i );
-        return numComputed;
     }
 
     /**
@@ -649,4 +867,91 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
         }
         return testCount;
     }
+
+    /**
+     * Computes the correlation between two rows and records it in a block.
+     */
+    @FunctionalInterface
+    interface PairComputation {
+        void compute( RowBlock block, int i, int j );
+    }
+
+    /**
+     * Partial results for a contiguous block of rows of the upper triangle of the correlation matrix.
+     * <p>
+     * Keepers are held per row so that they can be merged in the same order a row-by-row computation would produce
+     * them, regardless of how the pairs were tiled.
+     */
+    static class RowBlock {
+
+        int startRow;
+        int endRow;
+        int[] histogram = new int[MatrixRowPairAnalysis.NUM_BINS];
+        ObjectArrayList[] keepers;
+        /**
+         * Retains the best links per row instead of {@link #keepers}, if set.
+         */
+        TopLinksPerRowSelector selector;
+        final IntArrayList cachedRows = new IntArrayList();
+        final IntArrayList cachedColumns = new IntArrayList();
+        final DoubleArrayList cachedValues = new DoubleArrayList();
+        double total = 0.0;
+        int numVals = 0;
+        long crossHybridizationRejections = 0;
+        long numComputed = 0;
+        int skipped = 0;
+
+        RowBlock( int startRow, int endRow ) {
+            this.startRow = startRow;
+            this.endRow = endRow;
+            this.keepers = new ObjectArrayList[endRow - startRow];
+        }
+
+        void keep( int i, int j, double correl ) {
+            if ( selector != null ) {
+                selector.offer( i, j, correl );
+                return;
+            }
+            if ( keepers[i - startRow] == null ) {
+                keepers[i - startRow] = new ObjectArrayList();
+            }
+            keepers[i - startRow].add( new Link( i, j, correl ) );
+        }
+
+        void cache( int i, int j, double correl ) {
+            cachedRows.add( i );
+            cachedColumns.add( j );
+            cachedValues.add( correl );
+        }
+
+        /**
+         * Clear a single-row block that was merged so that it can be reused for another row.
+         */
+        void reset( int row ) {
+            assert endRow - startRow == 1;
+            startRow = row;
+            endRow = row + 1;
+            if ( numVals > 0 ) {
+                Arrays.fill( histogram, 0 );
+            }
+            keepers[0] = null;
+            cachedRows.clear();
+            cachedColumns.clear();
+            cachedValues.clear();
+            total = 0.0;
+            numVals = 0;
+            crossHybridizationRejections = 0;
+            numComputed = 0;
+            skipped = 0;
+        }
+
+        /**
+         * Release the histogram and keepers once they have been merged; only the cached values are still needed.
+         */
+        void release() {
+            histogram = null;
+            keepers = null;
+            selector = null;
+        }
+    }
 }
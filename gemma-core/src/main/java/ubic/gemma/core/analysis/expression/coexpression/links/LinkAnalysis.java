@@ -247,6 +247,12 @@ public class LinkAnalysis {
         }
 
         metricMatrix.setMinNumpresent( config.getMinNumPresent() );
+        metricMatrix.setNumThreads( config.getNumThreads() );
+        metricMatrix.setMaxLinksPerRow( config.getMaxLinksPerProbe() );
+        if ( config.isStreaming() ) {
+            LinkAnalysis.log.info( "Streaming mode, correlations will not be cached between passes" );
+            metricMatrix.nullMatrix();
+        }
         metricMatrix.setOmitNegativeCorrelationLinks( config.isOmitNegLinks() );
         metricMatrix.setDuplicateMap( probeToGeneMap ); // populates numUniqueGenes
         metricMatrix.setUseAbsoluteValue( config.isAbsoluteValue() );
@@ -61,12 +61,20 @@ public class LinkAnalysisConfig implements Serializable {
     private boolean lowerCdfCutUsed = false;
     private double lowerTailCut = 0.01;
     private boolean makeSampleCorrMatImages = true;
+    /**
+     * Maximum number of links retained per probe, keeping the strongest ones. Zero means no limit.
+     */
+    private int maxLinksPerProbe = 0;
     private String metric = "pearson"; // spearman
     /**
      * How many samples must be present in a correlation pair to keep the data, taking into account missing values.
      */
     private int minNumPresent = AbstractMatrixRowPairAnalysis.HARD_LIMIT_MIN_NUM_USED;
     private NormalizationMethod normalizationMethod = NormalizationMethod.none;
+    /**
+     * Number of threads used to compute correlations.
+     */
+    private int numThreads = 1;
     /**
      * Remove negative correlated values at the end.
      */
@@ -80,6 +88,10 @@ public class LinkAnalysisConfig implements Serializable {
      */
     private int probeDegreeThreshold = DEFAULT_PROBE_DEGREE_THRESHOLD;
     private SingularThreshold singularThreshold = SingularThreshold.none; // fwe|cdfCut
+    /**
+     * Compute the links in a streaming fashion without caching correlations between the two passes over the data.
+     */
+    private boolean streaming = false;
     private boolean subset = false;
     private double subsetSize = 0.0;
     private boolean subsetUsed = false;
@@ -144,6 +156,23 @@ public class LinkAnalysisConfig implements Serializable {
         this.lowerTailCut = lowerTailCut;
     }
 
+    public int getMaxLinksPerProbe() {
+        return maxLinksPerProbe;
+    }
+
+    /**
+     * Maximum number of links to retain per probe: links that pass the thresholds are ranked by absolute correlation
+     * and a link is kept if it is among the best for either of its probes. If set to zero, this setting is ignored.
+     *
+     * @param maxLinksPerProbe the maxLinksPerProbe to set
+     */
+    public void setMaxLinksPerProbe( int maxLinksPerProbe ) {
+        if ( maxLinksPerProbe < 0 ) {
+            throw new IllegalArgumentException( "The maximum number of links per probe must be zero or positive." );
+        }
+        this.maxLinksPerProbe = maxLinksPerProbe;
+    }
+
     public String getMetric() {
         return metric;
     }
@@ -161,6 +190,17 @@ public class LinkAnalysisConfig implements Serializable {
         this.minNumPresent = minNumPresent;
     }
 
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    public void setNumThreads( int numThreads ) {
+        if ( numThreads < 1 ) {
+            throw new IllegalArgumentException( "The number of threads must be at least 1." );
+        }
+        this.numThreads = numThreads;
+    }
+
     /**
      * @return the normalizationMethod
      */
@@ -281,6 +321,21 @@ public class LinkAnalysisConfig implements Serializable {
         this.omitNegLinks = omitNegLinks;
     }
 
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Streaming mode: correlations are not cached in a matrix between the first pass, which only fills the histogram
+     * used to choose the thresholds, and the second pass, which recomputes every correlation and selects links as
+     * they are computed. This uses a bounded amount of memory at the cost of computing each correlation twice.
+     *
+     * @param streaming the streaming to set
+     */
+    public void setStreaming( boolean streaming ) {
+        this.streaming = streaming;
+    }
+
     public boolean isSubset() {
         return subset;
     }
@@ -353,6 +408,9 @@ public class LinkAnalysisConfig implements Serializable {
         buf.append( "# normalizationMethod:" ).append( this.getNormalizationMethod() ).append( "\n" );
         buf.append( "# omitNegLinks:" ).append( this.isOmitNegLinks() ).append( "\n" );
         buf.append( "# probeDegreeThreshold:" ).append( this.getProbeDegreeThreshold() ).append( "\n" );
+        if ( this.getMaxLinksPerProbe() > 0 ) {
+            buf.append( "# maxLinksPerProbe:" ).append( this.getMaxLinksPerProbe() ).append( "\n" );
+        }
         /*
          * if ( this.isSubsetUsed() ) { buf.append( "# subset:" + this.subsetSize + "\n" ); }
          */
@@ -41,9 +41,23 @@ public interface MatrixRowPairAnalysis {
     CompositeSequence getProbeForRow( ExpressionDataMatrixRowElement rowEl );
     double getScoreInBin( int i );
     int numCached();
+
+    /**
+     * Do not store correlations in a matrix between passes. Only the histogram is filled in the first pass, and the
+     * second pass recomputes every correlation, selecting links as they are computed.
+     */
+    void nullMatrix();
     void setDuplicateMap( Map<CompositeSequence, Set<Gene>> probeToGeneMap );
     void setLowerTailThreshold( double k );
+    void setMaxLinksPerRow( int maxLinksPerRow );
     void setMinNumpresent( int minSamplesToKeepCorrelation );
+
+    /**
+     * Set the number of threads used to compute the metrics.
+     *
+     * @param numThreads number of threads, must be at least 1
+     */
+    void setNumThreads( int numThreads );
     void setOmitNegativeCorrelationLinks( boolean omitNegativeCorrelationLinks );
     void setPValueThreshold( double k );
     void setUpperTailThreshold( double k );
@@ -19,13 +19,14 @@
 package ubic.gemma.core.analysis.expression.coexpression.links;
 
 import cern.colt.list.ObjectArrayList;
-import org.apache.commons.lang3.time.StopWatch;
 import ubic.basecode.dataStructure.matrix.CompressedSparseDoubleMatrix;
 import ubic.basecode.math.Constants;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrix;
-import ubic.gemma.core.datastructure.matrix.ExpressionDataMatrixRowElement;
 import ubic.gemma.model.common.quantitationtype.*;
 
+import javax.annotation.Nullable;
+import java.util.function.IntFunction;
+
 /**
  * A correlation analysis for a given data set, designed for selection of values based on criteria set by the user.
  * On the first pass over the data, a histogram is filled in to hold the distribution of the values found. You can set
@@ -43,6 +44,10 @@ public class PearsonMetrics extends AbstractMatrixRowPairAnalysis {
 
     double[] rowMeans = null;
     double[] rowSumSquaresSqrt = null;
+    /**
+     * Use pre-standardized rows when there are no missing values.
+     */
+    private boolean useStandardizedRows = true;
 
     public PearsonMetrics( ExpressionDataDoubleMatrix dataMatrix ) {
         this( dataMatrix.rows() );
@@ -73,6 +78,17 @@ public class PearsonMetrics extends AbstractMatrixRowPairAnalysis {
         keepers = new ObjectArrayList();
     }
 
+    /**
+     * Set whether rows are standardized once before computing correlations when there are no missing values. This is
+     * enabled by default.
+     * <p>
+     * Each row is centered and scaled to unit norm into a single contiguous array, so that a correlation reduces to
+     * the dot product of two rows. The results are the same as the regular computation up to roundoff.
+     */
+    public void setUseStandardizedRows( boolean useStandardizedRows ) {
+        this.useStandardizedRows = useStandardizedRows;
+    }
+
     /**
      * Calculate the linear correlation matrix of a matrix, allowing missing values. If there are no missing values,
      * this calls PearsonFast.
@@ -85,7 +101,6 @@ public class PearsonMetrics extends AbstractMatrixRowPairAnalysis {
             return;
         }
 
-        int numused;
         int numrows = this.dataMatrix.rows();
         int numcols = this.dataMatrix.columns();
 
@@ -115,83 +130,53 @@ public class PearsonMetrics extends AbstractMatrixRowPairAnalysis {
         }
 
         /* for each vector, compare it to all other vectors */
-        ExpressionDataMatrixRowElement itemA;
-        StopWatch timer = new StopWatch();
-        timer.start();
-        double[] vectorA = new double[] {};
-        double syy, sxy, sxx, sx, sy, xj, yj;
-        int skipped = 0;
-        int numComputed = 0;
-        for ( int i = 0; i < numrows; i++ ) { // first vector
-            itemA = this.dataMatrix.getRowElement( i );
-            if ( !this.hasGene( itemA ) ) {
-                skipped++;
-                continue;
-            }
-            if ( docalcs ) {
-                vectorA = data[i];
+        final boolean[][] fUsedB = usedB;
+        final double[][] fData = data;
+        int skipped = this.computeMetrics( docalcs, ( block, i, j ) -> {
+            double[] vectorA = fData[i];
+            double[] vectorB = fData[j];
+
+            /* if there are no missing values, use the faster method of calculation */
+            if ( !hasMissing[i] && !hasMissing[j] ) {
+                this.setCorrel( block, i, j, this.correlFast( vectorA, vectorB, i, j ), numcols );
+                return;
             }
 
-            boolean thisRowHasMissing = hasMissing[i];
-
-            for ( int j = i + 1; j < numrows; j++ ) { // second vector
-                ExpressionDataMatrixRowElement itemB = this.dataMatrix.getRowElement( j );
-                if ( !this.hasGene( itemB ) )
-                    continue;
-
-                // second pass over matrix? Don't calculate it if we already have it. Just do the requisite checks.
-                if ( !docalcs || results.get( i, j ) != 0.0 ) {
-                    this.keepCorrellation( i, j, results.get( i, j ), numcols );
-                    continue;
-                }
-
-                double[] vectorB = data[j];
-
-                /* if there are no missing values, use the faster method of calculation */
-                if ( !thisRowHasMissing && !hasMissing[j] ) {
-                    this.setCorrel( i, j, this.correlFast( vectorA, vectorB, i, j ), numcols );
-                    continue;
-                }
-
-                /* do it the old fashioned way */
-                numused = 0;
-                sxy = 0.0;
-                sxx = 0.0;
-                syy = 0.0;
-                sx = 0.0;
-                sy = 0.0;
-                for ( int k = 0; k < numcols; k++ ) {
-                    xj = vectorA[k];
-                    yj = vectorB[k];
-                    if ( usedB[i][k] && usedB[j][k] ) { /* this is a bit faster than calling Double.isNan */
-                        sx += xj;
-                        sy += yj;
-                        sxy += xj * yj;
-                        sxx += xj * xj;
-                        syy += yj * yj;
-                        numused++;
-                    }
+            /* do it the old fashioned way */
+            int numused = 0;
+            double sxy = 0.0;
+            double sxx = 0.0;
+            double syy = 0.0;
+            double sx = 0.0;
+            double sy = 0.0;
+            for ( int k = 0; k < numcols; k++ ) {
+                double xj = vectorA[k];
+                double yj = vectorB[k];
+                if ( fUsedB[i][k] && fUsedB[j][k] ) { /* this is a bit faster than calling Double.isNan */
+                    sx += xj;
+                    sy += yj;
+                    sxy += xj * yj;
+                    sxx += xj * xj;
+                    syy += yj * yj;
+                    numused++;
                 }
+            }
 
-                // avoid -1 correlations or extremely noisy values (minNumUsed should be set high enough so that degrees
-                // of freedom isn't too low.
-                if ( numused < this.minNumUsed )
-                    this.setCorrel( i, j, Double.NaN, 0 );
-                else {
-                    double denom = this.correlationNorm( numused, sxx, sx, syy, sy );
-                    if ( denom <= 0.0 ) { // means variance is zero for one of the vectors.
-                        this.setCorrel( i, j, 0.0, numused );
-                    } else {
-                        double correl = ( sxy - sx * sy / numused ) / Math.sqrt( denom );
-
-                        this.setCorrel( i, j, correl, numused );
-                    }
+            // avoid -1 correlations or extremely noisy values (minNumUsed should be set high enough so that degrees
+            // of freedom isn't too low.
+            if ( numused < this.minNumUsed )
+                this.setCorrel( block, i, j, Double.NaN, 0 );
+            else {
+                double denom = this.correlationNorm( numused, sxx, sx, syy, sy );
+                if ( denom <= 0.0 ) { // means variance is zero for one of the vectors.
+                    this.setCorrel( block, i, j, 0.0, numused );
+                } else {
+                    double correl = ( sxy - sx * sy / numused ) / Math.sqrt( denom );
+
+                    this.setCorrel( block, i, j, correl, numused );
                 }
-                ++numComputed;
-
             }
-            this.computeRow( timer, itemA, numComputed, i );
-        }
+        } );
         AbstractMatrixRowPairAnalysis.log.info( skipped + " rows skipped, where probe lacks a gene annotation" );
         this.finishMetrics();
     }
@@ -248,6 +233,62 @@ public class PearsonMetrics extends AbstractMatrixRowPairAnalysis {
         return this.correlFast( ival, jval, ssi, ssj, mi, mj );
     }
 
+    /**
+     * Compute a correlation from standardized rows produced by {@link #standardizeRows(int, int, IntFunction)}.
+     *
+     * @return correlation, or NaN if the SSD values are too small
+     */
+    double correlStandardized( double[] standardized, int numcols, int i, int j ) {
+        if ( rowSumSquaresSqrt[i] < Constants.SMALL || rowSumSquaresSqrt[j] < Constants.SMALL )
+            return Double.NaN;
+        double c = 0.0;
+        for ( int k = 0, oi = i * numcols, oj = j * numcols; k < numcols; k++ ) {
+            c += standardized[oi + k] * standardized[oj + k];
+        }
+
+        // should never have roundoff errors this large.
+        assert c > -1.0001 && c < 1.0001 : c;
+
+        // roundoff guard
+        if ( c < -1.0 ) {
+            c = -1.0;
+        } else if ( c > 1.0 ) {
+            c = 1.0;
+        }
+
+        return c;
+    }
+
+    /**
+     * Center and scale each row to unit norm using the precomputed row statistics, laying them out contiguously.
+     *
+     * @return the standardized rows, or null if they cannot be held in a single array, in which case the regular
+     * computation should be used
+     */
+    @Nullable
+    double[] standardizeRows( int numrows, int numcols, IntFunction<double[]> rowAccessor ) {
+        if ( !useStandardizedRows ) {
+            return null;
+        }
+        if ( ( long ) numrows * numcols > Integer.MAX_VALUE - 8 ) {
+            AbstractMatrixRowPairAnalysis.log.warn( "Data is too large to be standardized, using the regular computation." );
+            return null;
+        }
+        double[] standardized = new double[numrows * numcols];
+        for ( int i = 0; i < numrows; i++ ) {
+            double ss = rowSumSquaresSqrt[i];
+            if ( ss < Constants.SMALL ) {
+                continue; // correlations involving this row are NaN
+            }
+            double m = rowMeans[i];
+            double[] row = rowAccessor.apply( i );
+            for ( int k = 0, o = i * numcols; k < numcols; k++ ) {
+                standardized[o + k] = ( row[k] - m ) / ss;
+            }
+        }
+        return standardized;
+    }
+
     double correlationNorm( int n, double sxx, double sx, double syy, double sy ) {
         return ( sxx - sx * sx / n ) * ( syy - sy * sy / n );
     }
@@ -293,28 +334,39 @@ public class PearsonMetrics extends AbstractMatrixRowPairAnalysis {
         int numcols = this.dataMatrix.columns();
         boolean docalcs = this.needToCalculateMetrics();
 
+        double[] standardized = null;
         double[][] data = new double[][] {};
         if ( docalcs ) {
             this.rowStatistics();
 
-            // Temporarily put the data in this matrix (performance)
-            data = new double[numrows][numcols];
-            for ( int i = 0; i < numrows; i++ ) { // first vector
-                for ( int j = 0; j < numcols; j++ ) { // second vector
-                    data[i][j] = this.dataMatrix.getAsDouble( i, j );
+            standardized = this.standardizeRows( numrows, numcols, i -> this.dataMatrix.getRowAsDoubles( i ) );
+
+            if ( standardized == null ) {
+                // Temporarily put the data in this matrix (performance)
+                data = new double[numrows][numcols];
+                for ( int i = 0; i < numrows; i++ ) { // first vector
+                    for ( int j = 0; j < numcols; j++ ) { // second vector
+                        data[i][j] = this.dataMatrix.getAsDouble( i, j );
+                    }
                 }
             }
         }
 
         /*
          * For each vector, compare it to all other vectors, avoid repeating things; skip items that don't have genes
-         * mapped to them.
+         * mapped to them. With standardized rows, each block of rows is effectively multiplied by the transpose of the
+         * tiles it is compared with.
          */
-        StopWatch timer = new StopWatch();
-        timer.start();
-        int skipped = 0;
-        int numComputed = 0;
-        skipped = this.computeMetrics( numrows, numcols, docalcs, timer, skipped, numComputed, data );
+        int skipped;
+        if ( standardized != null ) {
+            final double[] fStandardized = standardized;
+            skipped = this.computeMetrics( docalcs, ( block, i, j ) -> this
+                    .setCorrel( block, i, j, this.correlStandardized( fStandardized, numcols, i, j ), numcols ) );
+        } else {
+            final double[][] fData = data;
+            skipped = this.computeMetrics( docalcs, ( block, i, j ) -> this
+                    .setCorrel( block, i, j, this.correlFast( fData[i], fData[j], i, j ), numcols ) );
+        }
         AbstractMatrixRowPairAnalysis.log.info( skipped + " rows skipped, due to no gene association" );
         this.finishMetrics();
     }
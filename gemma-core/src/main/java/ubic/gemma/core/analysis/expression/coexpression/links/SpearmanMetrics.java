@@ -20,12 +20,10 @@ package ubic.gemma.core.analysis.expression.coexpression.links;
 
 import cern.colt.list.DoubleArrayList;
 import cern.colt.list.ObjectArrayList;
-import org.apache.commons.lang3.time.StopWatch;
 import ubic.basecode.dataStructure.matrix.CompressedSparseDoubleMatrix;
 import ubic.basecode.math.CorrelationStats;
 import ubic.basecode.math.Rank;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrix;
-import ubic.gemma.core.datastructure.matrix.ExpressionDataMatrixRowElement;
 import ubic.gemma.model.common.quantitationtype.*;
 import ubic.gemma.model.genome.Gene;
 
@@ -100,58 +98,19 @@ public class SpearmanMetrics extends PearsonMetrics {
         }
 
         /* for each vector, compare it to all other vectors */
-
-        ExpressionDataMatrixRowElement itemA;
-        double[] vectorA = null;
-        int skipped = 0;
-        int numComputed = 0;
-        for ( int i = 0; i < numrows; i++ ) { // first vector
-            itemA = this.dataMatrix.getRowElement( i );
-
-            if ( !this.hasGene( itemA ) ) {
-                skipped++;
-                continue;
-            }
-
-            if ( doCalcs ) {
-                vectorA = rankTransformedData[i];
-            }
-
-            boolean thisRowHasMissing = hasMissing[i];
-
-            for ( int j = i + 1; j < numrows; j++ ) { // second vector
-                ExpressionDataMatrixRowElement itemB = this.dataMatrix.getRowElement( j );
-                if ( !this.hasGene( itemB ) )
-                    continue;
-
-                // second pass over matrix? Don't calculate it if we already have it. Just do the requisite checks.
-                if ( !doCalcs || results.get( i, j ) != 0.0 ) {
-                    this.keepCorrellation( i, j, results.get( i, j ), numcols );
-                    continue;
-                }
-
-                double[] vectorB = rankTransformedData[j];
-
-                /* if there are no missing values, use the faster method of calculation */
-                if ( !thisRowHasMissing && !hasMissing[j] ) {
-                    this.setCorrel( i, j, this.correlFast( vectorA, vectorB, i, j ), numcols );
-                    continue;
-                }
-
-                this.spearman( vectorA, vectorB, usedB[i], usedB[j], i, j );
-
-                ++numComputed;
-
+        final boolean[][] fUsedB = usedB;
+        int skipped = this.computeMetrics( doCalcs, ( block, i, j ) -> {
+            double[] vectorA = rankTransformedData[i];
+            double[] vectorB = rankTransformedData[j];
+
+            /* if there are no missing values, use the faster method of calculation */
+            if ( !hasMissing[i] && !hasMissing[j] ) {
+                this.setCorrel( block, i, j, this.correlFast( vectorA, vectorB, i, j ), numcols );
+                return;
             }
 
-            ++numComputed;
-
-            if ( ( i + 1 ) % 2000 == 0 ) {
-                AbstractMatrixRowPairAnalysis.log
-                        .info( ( i + 1 ) + " rows done, " + numComputed + " correlations computed, last row was "
-                                + itemA + " " + ( keepers.size() > 0 ? keepers.size() + " scores retained" : "" ) );
-            }
-        }
+            this.spearman( block, vectorA, vectorB, fUsedB[i], fUsedB[j], i, j );
+        } );
         AbstractMatrixRowPairAnalysis.log.info( skipped + " rows skipped, due to no BLAT association" );
         this.finishMetrics();
 
@@ -230,6 +189,14 @@ public class SpearmanMetrics extends PearsonMetrics {
     }
 
     protected double spearman( double[] vectorA, double[] vectorB, boolean[] usedA, boolean[] usedB, int i, int j ) {
+        RowBlock block = this.getPairBlock( i );
+        double correl = this.spearman( block, vectorA, vectorB, usedA, usedB, i, j );
+        this.mergeAndCacheBlock( block );
+        return correl;
+    }
+
+    double spearman( RowBlock block, double[] vectorA, double[] vectorB, boolean[] usedA, boolean[] usedB, int i,
+            int j ) {
 
         /* because we assume there might be ties, we compute the correlation of the ranks. */
 
@@ -247,7 +214,7 @@ public class SpearmanMetrics extends PearsonMetrics {
         }
 
         if ( numused < minNumUsed ) {
-            this.setCorrel( i, j, Double.NaN, 0 );
+            this.setCorrel( block, i, j, Double.NaN, 0 );
             return Double.NaN;
         }
 
@@ -296,7 +263,7 @@ public class SpearmanMetrics extends PearsonMetrics {
 
         double denom = this.correlationNorm( numused, sxx, sx, syy, sy );
         if ( denom <= 0.0 ) { // means variance is zero for one of the vectors.
-            this.setCorrel( i, j, 0.0, numused );
+            this.setCorrel( block, i, j, 0.0, numused );
             return 0.0;
         }
 
@@ -311,7 +278,7 @@ public class SpearmanMetrics extends PearsonMetrics {
         else if ( correl > 1.0 )
             correl = 1.0;
 
-        this.setCorrel( i, j, correl, numused );
+        this.setCorrel( block, i, j, correl, numused );
 
         return correl;
     }
@@ -324,23 +291,31 @@ public class SpearmanMetrics extends PearsonMetrics {
         int numcols = this.dataMatrix.columns();
         boolean docalcs = this.needToCalculateMetrics();
 
+        double[] standardized = null;
         if ( docalcs ) {
             this.getRankTransformedData( null );
+            standardized = this.standardizeRows( numrows, numcols, i -> rankTransformedData[i] );
         }
 
         /*
          * For each vector, compare it to all other vectors, avoid repeating things; skip items that don't have genes
          * mapped to them.
          */
-        StopWatch timer = new StopWatch();
-        timer.start();
-        int skipped = 0;
-        int numComputed = 0;
-        skipped = this.computeMetrics( numrows, numcols, docalcs, timer, skipped, numComputed, rankTransformedData );
+        int skipped;
+        if ( standardized != null ) {
+            final double[] fStandardized = standardized;
+            skipped = this.computeMetrics( docalcs, ( block, i, j ) -> this
+                    .setCorrel( block, i, j, this.correlStandardized( fStandardized, numcols, i, j ), numcols ) );
+        } else {
+            skipped = this.computeMetrics( docalcs, ( block, i, j ) -> this
+                    .setCorrel( block, i, j, this.correlFast( rankTransformedData[i], rankTransformedData[j], i, j ),
+                            numcols ) );
+        }
         AbstractMatrixRowPairAnalysis.log.info( skipped + " rows skipped, due to no BLAT association" );
         this.finishMetrics();
     }
 
+
     /**
      * @param usedB will be filled in, if not null. This also precomputes the row statistics (row means and sumsq
      *              deviations)
@@ -0,0 +1,188 @@
+package ubic.gemma.core.analysis.expression.coexpression.links;
+
+import cern.colt.list.DoubleArrayList;
+import cern.colt.list.IntArrayList;
+import cern.colt.list.ObjectArrayList;
+import ubic.basecode.dataStructure.Link;
+
+import java.util.Arrays;
+
+/**
+ * Retains, for each row, the links with the largest absolute correlation.
+ * <p>
+ * Each row has a fixed-capacity min-heap of partner rows and correlations held in primitive arrays, so the memory used
+ * is bounded by the number of rows times the capacity regardless of how many links pass the thresholds. A link is
+ * offered to the heaps of both of its rows and is retained if it ranks among the best for either of them.
+ */
+class TopLinksPerRowSelector {
+
+    private final int capacity;
+    private final int[][] partners;
+    private final double[][] scores;
+    private final int[] sizes;
+
+    /**
+     * @param numRows  number of rows in the matrix
+     * @param capacity maximum number of links to retain per row
+     */
+    TopLinksPerRowSelector( int numRows, int capacity ) {
+        if ( capacity < 1 ) {
+            throw new IllegalArgumentException( "The number of links to retain per row must be at least 1." );
+        }
+        this.capacity = capacity;
+        this.partners = new int[numRows][];
+        this.scores = new double[numRows][];
+        this.sizes = new int[numRows];
+    }
+
+    /**
+     * Offer a link between two rows.
+     */
+    void offer( int i, int j, double correl ) {
+        this.offer( i, j, correl, Math.abs( correl ) );
+        this.offer( j, i, correl, Math.abs( correl ) );
+    }
+
+    /**
+     * Obtain the retained links, ordered by row and then by partner, with each link reported once.
+     */
+    ObjectArrayList getLinks() {
+        int numRows = sizes.length;
+        for ( int i = 0; i < numRows; i++ ) {
+            this.sortByPartner( i );
+        }
+
+        // links that are only retained by the row with the highest index are reported for the lowest one
+        IntArrayList[] extraPartners = new IntArrayList[numRows];
+        DoubleArrayList[] extraScores = new DoubleArrayList[numRows];
+        for ( int j = 0; j < numRows; j++ ) {
+            for ( int k = 0; k < sizes[j]; k++ ) {
+                int i = partners[j][k];
+                if ( i >= j ) {
+                    break;
+                }
+                if ( sizes[i] == 0 || Arrays.binarySearch( partners[i], 0, sizes[i], j ) < 0 ) {
+                    if ( extraPartners[i] == null ) {
+                        extraPartners[i] = new IntArrayList();
+                        extraScores[i] = new DoubleArrayList();
+                    }
+                    extraPartners[i].add( j );
+                    extraScores[i].add( scores[j][k] );
+                }
+            }
+        }
+
+        ObjectArrayList links = new ObjectArrayList();
+        for ( int i = 0; i < numRows; i++ ) {
+            int k = sizes[i] > 0 ? Arrays.binarySearch( partners[i], 0, sizes[i], i + 1 ) : 0;
+            if ( k < 0 ) {
+                k = -k - 1;
+            }
+            int e = 0;
+            int numExtras = extraPartners[i] != null ? extraPartners[i].size() : 0;
+            // both sequences are sorted by partner and disjoint
+            while ( k < sizes[i] || e < numExtras ) {
+                if ( e >= numExtras || ( k < sizes[i] && partners[i][k] < extraPartners[i].getQuick( e ) ) ) {
+                    links.add( new Link( i, partners[i][k], scores[i][k] ) );
+                    k++;
+                } else {
+                    links.add( new Link( i, extraPartners[i].getQuick( e ), extraScores[i].getQuick( e ) ) );
+                    e++;
+                }
+            }
+            extraPartners[i] = null;
+            extraScores[i] = null;
+        }
+        return links;
+    }
+
+    private void offer( int row, int partner, double correl, double acorrel ) {
+        if ( partners[row] == null ) {
+            partners[row] = new int[Math.min( capacity, 16 )];
+            scores[row] = new double[partners[row].length];
+        }
+        int size = sizes[row];
+        if ( size < capacity ) {
+            if ( size == partners[row].length ) {
+                int newLength = ( int ) Math.min( capacity, 2L * size );
+                partners[row] = Arrays.copyOf( partners[row], newLength );
+                scores[row] = Arrays.copyOf( scores[row], newLength );
+            }
+            partners[row][size] = partner;
+            scores[row][size] = correl;
+            sizes[row] = size + 1;
+            this.siftUp( row, size );
+        } else if ( acorrel > Math.abs( scores[row][0] ) ) {
+            partners[row][0] = partner;
+            scores[row][0] = correl;
+            this.siftDown( row, 0, size );
+        }
+    }
+
+    private void siftUp( int row, int k ) {
+        int[] p = partners[row];
+        double[] s = scores[row];
+        while ( k > 0 ) {
+            int parent = ( k - 1 ) >>> 1;
+            if ( Math.abs( s[k] ) >= Math.abs( s[parent] ) ) {
+                break;
+            }
+            this.swap( p, s, k, parent );
+            k = parent;
+        }
+    }
+
+    private void siftDown( int row, int k, int size ) {
+        int[] p = partners[row];
+        double[] s = scores[row];
+        while ( true ) {
+            int smallest = k;
+            int left = 2 * k + 1;
+            int right = left + 1;
+            if ( left < size && Math.abs( s[left] ) < Math.abs( s[smallest] ) ) {
+                smallest = left;
+            }
+            if ( right < size && Math.abs( s[right] ) < Math.abs( s[smallest] ) ) {
+                smallest = right;
+            }
+            if ( smallest == k ) {
+                break;
+            }
+            this.swap( p, s, k, smallest );
+            k = smallest;
+        }
+    }
+
+    /**
+     * Sort the heap of a row by partner; it is no longer a heap afterward.
+     */
+    private void sortByPartner( int row ) {
+        int size = sizes[row];
+        if ( size < 2 ) {
+            return;
+        }
+        long[] packed = new long[size];
+        for ( int k = 0; k < size; k++ ) {
+            packed[k] = ( ( long ) partners[row][k] << 32 ) | k;
+        }
+        Arrays.sort( packed );
+        int[] sortedPartners = new int[size];
+        double[] sortedScores = new double[size];
+        for ( int k = 0; k < size; k++ ) {
+            int from = ( int ) ( packed[k] & 0xFFFFFFFFL );
+            sortedPartners[k] = partners[row][from];
+            sortedScores[k] = scores[row][from];
+        }
+        partners[row] = sortedPartners;
+        scores[row] = sortedScores;
+    }
+
+    private void swap( int[] p, double[] s, int a, int b ) {
+        int tp = p[a];
+        p[a] = p[b];
+        p[b] = tp;
+        double ts = s[a];
+        s[a] = s[b];
+        s[b] = ts;
+    }
+}
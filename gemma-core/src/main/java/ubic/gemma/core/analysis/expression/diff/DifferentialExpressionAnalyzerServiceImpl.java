@@ -29,6 +29,10 @@ import ubic.basecode.math.distribution.Histogram;
 import ubic.basecode.util.FileTools;
 import ubic.gemma.core.analysis.service.ExpressionDataFileService;
 import ubic.gemma.core.util.locking.LockedPath;
+import ubic.gemma.core.visualization.QcFigureRenderer;
+import ubic.gemma.core.visualization.QcFigureService;
+import ubic.gemma.core.visualization.QcFigureType;
+import ubic.gemma.core.visualization.QcFigureUtils;
 import ubic.gemma.model.analysis.expression.diff.DifferentialExpressionAnalysis;
 import ubic.gemma.model.analysis.expression.diff.DifferentialExpressionAnalysisResult;
 import ubic.gemma.model.analysis.expression.diff.ExpressionAnalysisResultSet;
@@ -72,6 +76,10 @@ public class DifferentialExpressionAnalyzerServiceImpl implements DifferentialEx
     private ExpressionExperimentService expressionExperimentService;
     @Autowired
     private ExpressionAnalysisResultSetService expressionAnalysisResultSetService;
+    @Autowired
+    private QcFigureService qcFigureService;
+    @Autowired
+    private QcFigureRenderer qcFigureRenderer;
 
     @Override
     public int deleteAnalyses( ExpressionExperiment expressionExperiment ) {
@@ -202,6 +210,8 @@ public class DifferentialExpressionAnalyzerServiceImpl implements DifferentialEx
 
             if ( config.isPersist() ) {
                 diffExpressionAnalyses = this.persistAnalyses( expressionExperiment, diffExpressionAnalyses, config );
+                qcFigureService.deleteFigures( expressionExperiment, QcFigureType.PVALUE_DISTRIBUTION );
+                this.saveDefaultPvalueDistributionFigures( expressionExperiment, diffExpressionAnalyses );
             } else {
                 DifferentialExpressionAnalyzerServiceImpl.log.info( "Will not persist results" );
             }
@@ -219,6 +229,24 @@ public class DifferentialExpressionAnalyzerServiceImpl implements DifferentialEx
         }
     }
 
+    /**
+     * Pre-render the p-value distributions as displayed alongside the result sets on the experiment page.
+     */
+    private void saveDefaultPvalueDistributionFigures( ExpressionExperiment expressionExperiment, Collection<DifferentialExpressionAnalysis> analyses ) {
+        int thumbnailSize = QcFigureUtils.DEFAULT_PVALUE_DISTRIBUTION_THUMBNAIL_SIZE_PX;
+        for ( DifferentialExpressionAnalysis analysis : analyses ) {
+            for ( ExpressionAnalysisResultSet rs : analysis.getResultSets() ) {
+                Histogram pvalueDistribution = expressionAnalysisResultSetService.loadPvalueDistribution( rs );
+                qcFigureService.saveFigureAsync( expressionExperiment, QcFigureType.PVALUE_DISTRIBUTION,
+                        QcFigureUtils.getPValueDistributionVariant( rs ),
+                        os -> qcFigureRenderer.renderPValueDistribution( pvalueDistribution, os ) );
+                qcFigureService.saveFigureAsync( expressionExperiment, QcFigureType.PVALUE_DISTRIBUTION,
+                        QcFigureUtils.getPValueDistributionThumbnailVariant( rs, thumbnailSize ),
+                        os -> qcFigureRenderer.renderPValueDistributionThumbnail( pvalueDistribution, thumbnailSize, os ) );
+            }
+        }
+    }
+
     /**
      * Made public for testing purposes only.
      *
@@ -25,6 +25,10 @@ import ubic.basecode.math.linearmodels.MeanVarianceEstimator;
 import ubic.gemma.core.analysis.preprocess.convert.QuantitationTypeConversionException;
 import ubic.gemma.core.analysis.service.ExpressionDataMatrixService;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrix;
+import ubic.gemma.core.visualization.QcFigureRenderer;
+import ubic.gemma.core.visualization.QcFigureService;
+import ubic.gemma.core.visualization.QcFigureType;
+import ubic.gemma.core.visualization.QcFigureUtils;
 import ubic.gemma.model.common.auditAndSecurity.eventType.MeanVarianceUpdateEvent;
 import ubic.gemma.model.expression.bioAssayData.MeanVarianceRelation;
 import ubic.gemma.model.expression.experiment.ExpressionExperiment;
@@ -49,6 +53,10 @@ public class MeanVarianceServiceImpl implements MeanVarianceService {
     private ExpressionDataMatrixService expressionDataMatrixService;
     @Autowired
     private AuditTrailService auditTrailService;
+    @Autowired
+    private QcFigureService qcFigureService;
+    @Autowired
+    private QcFigureRenderer qcFigureRenderer;
 
     @Override
     @Transactional
@@ -85,13 +93,18 @@ public class MeanVarianceServiceImpl implements MeanVarianceService {
             throw new IllegalStateException( "Not enough data left after filtering to proceed (" + intensities.rows() + " rows for " + ee.getShortName() + ")" );
         }
 
-        mvr = expressionExperimentService.updateMeanVarianceRelation( ee, calculateMeanVariance( intensities ) );
+        MeanVarianceRelation updatedMvr = expressionExperimentService.updateMeanVarianceRelation( ee, calculateMeanVariance( intensities ) );
 
         auditTrailService.addUpdateEvent( ee, MeanVarianceUpdateEvent.class, "Mean-variance has been updated." );
 
+        qcFigureService.deleteFigures( ee, QcFigureType.MEAN_VARIANCE );
+        // pre-render the figure as displayed on the experiment page
+        qcFigureService.saveFigureAsync( ee, QcFigureType.MEAN_VARIANCE, QcFigureUtils.getMeanVarianceVariant( 1 ),
+                os -> qcFigureRenderer.renderMeanVariance( updatedMvr, 1, os ) );
+
         log.info( "Mean-variance computation is complete" );
 
-        return mvr;
+        return updatedMvr;
     }
 
     /**
@@ -50,6 +50,11 @@ import java.util.List;
  * V matrix columns are the <em>eigengenes</em>. See also http://genome-www.stanford.edu/SVD/.
  * Because SVD can't be done on a matrix with missing values, values are imputed. Rows with no variance are removed, and
  * rows with too many missing values are also removed (MIN_PRESENT_FRACTION_FOR_ROW)
+ * <p>
+ * For large matrices, only the leading components can be computed with a truncated SVD, see {@link SVDConfig}. In that
+ * case, the U and V matrices only have as many columns as there are components and the operations that require all the
+ * components ({@link #equalize()}, {@link #removeHighestComponents(int)} and {@link #uMatrixAsExpressionData()}) are
+ * not supported.
  *
  * @author paul
  */
@@ -57,10 +62,22 @@ import java.util.List;
 public class ExpressionDataSVD {
 
     private static final double MIN_PRESENT_FRACTION_FOR_ROW = 0.75;
+    /**
+     * Seed used for truncated SVDs, so that results are reproducible.
+     */
+    private static final long RANDOM_SEED = 123L;
     DenseDoubleMatrix2D missingValueInfo;
-    SingularValueDecomposition<CompositeSequence, BioMaterial> svd;
     private ExpressionDataDoubleMatrix expressionData;
     private boolean normalized = false;
+    private boolean truncated = false;
+    private DoubleMatrix<CompositeSequence, Integer> u;
+    private DoubleMatrix<Integer, Integer> s;
+    private DoubleMatrix<BioMaterial, Integer> v;
+    private double[] singularValues;
+    /**
+     * Sum of the squares of all the singular values, including those that were not computed.
+     */
+    private double sumOfSquares;
 
     /**
      * Does normalization.
@@ -72,11 +89,23 @@ public class ExpressionDataSVD {
     }
 
     /**
+     * Always performs a full SVD.
+     *
      * @param expressionData  Note that this may be modified!
      * @param normalizeMatrix If true, the data matrix will be rescaled and centred to mean zero, variance one, for both
      *                        rows and columns ("double-standardized")
      */
     public ExpressionDataSVD( ExpressionDataDoubleMatrix expressionData, boolean normalizeMatrix ) throws SVDException {
+        this( expressionData, normalizeMatrix, SVDConfig.FULL );
+    }
+
+    /**
+     * @param expressionData  Note that this may be modified!
+     * @param normalizeMatrix If true, the data matrix will be rescaled and centred to mean zero, variance one, for both
+     *                        rows and columns ("double-standardized")
+     * @param config          configuration for the SVD, which determines if a truncated SVD is used
+     */
+    public ExpressionDataSVD( ExpressionDataDoubleMatrix expressionData, boolean normalizeMatrix, SVDConfig config ) throws SVDException {
         this.expressionData = expressionData;
 
         ArrayDesign arrayDesign = expressionData.getRowElement( 0 ).getDesignElement().getArrayDesign();
@@ -135,7 +164,103 @@ public class ExpressionDataSVD {
             matrix = MatrixStats.doubleStandardize( matrix );
         }
 
-        this.svd = new SingularValueDecomposition<>( matrix );
+        int numComponents = Math.min( config.getNumComponents(), matrix.columns() );
+        boolean useTruncatedSvd;
+        switch ( config.getMode() ) {
+            case FULL:
+                useTruncatedSvd = false;
+                break;
+            case TRUNCATED:
+                useTruncatedSvd = true;
+                break;
+            case AUTO:
+                useTruncatedSvd = ( long ) matrix.rows() * matrix.columns() > config.getTruncatedSvdThreshold();
+                break;
+            default:
+                throw new IllegalArgumentException( "Unsupported SVD mode: " + config.getMode() + "." );
+        }
+        // with that many components, a truncated SVD is not worth it
+        if ( useTruncatedSvd && numComponents + RandomizedSVD.OVERSAMPLING >= matrix.columns() ) {
+            useTruncatedSvd = false;
+        }
+
+        if ( useTruncatedSvd ) {
+            this.truncatedSvd( matrix, numComponents, config );
+        } else {
+            this.fullSvd( matrix );
+        }
+    }
+
+    private void fullSvd( DoubleMatrix<CompositeSequence, BioMaterial> matrix ) {
+        SingularValueDecomposition<CompositeSequence, BioMaterial> svd = new SingularValueDecomposition<>( matrix );
+        this.u = svd.getU();
+        this.s = svd.getS();
+        this.v = ExpressionDataSVD.toV( svd.getV().getRawMatrix(), matrix.getColNames() );
+        this.singularValues = svd.getSingularValues();
+        this.sumOfSquares = 0;
+        for ( double d : singularValues ) {
+            this.sumOfSquares += d * d;
+        }
+    }
+
+    /**
+     * Name the right singular vectors by sample and by component.
+     */
+    private static DoubleMatrix<BioMaterial, Integer> toV( double[][] rawV, List<BioMaterial> samples ) {
+        DoubleMatrix<BioMaterial, Integer> v = new DenseDoubleMatrix<>( rawV );
+        List<Integer> componentNames = new ArrayList<>( v.columns() );
+        for ( int i = 0; i < v.columns(); i++ ) {
+            componentNames.add( i );
+        }
+        v.setRowNames( samples );
+        v.setColumnNames( componentNames );
+        return v;
+    }
+
+    private void truncatedSvd( DoubleMatrix<CompositeSequence, BioMaterial> matrix, int numComponents, SVDConfig config ) throws SVDException {
+        DoubleMatrix2D a = new DenseDoubleMatrix2D( matrix.getRawMatrix() );
+        RandomizedSVD svd = new RandomizedSVD( a, numComponents, config.getNumPowerIterations(), RANDOM_SEED );
+
+        if ( config.isCheckAccuracy() ) {
+            double[] residuals = svd.getRelativeResiduals( a );
+            for ( int i = 0; i < residuals.length; i++ ) {
+                if ( residuals[i] > config.getAccuracyTolerance() ) {
+                    throw new SVDException( String.format( "Truncated SVD is not accurate enough: the relative residual of component %d is %.2g, exceeding the tolerance of %.2g. Use more power iterations or a full SVD.",
+                            i + 1, residuals[i], config.getAccuracyTolerance() ) );
+                }
+            }
+        }
+
+        List<Integer> componentNames = new ArrayList<>( numComponents );
+        for ( int i = 0; i < numComponents; i++ ) {
+            componentNames.add( i );
+        }
+
+        this.u = new DenseDoubleMatrix<>( svd.getU().toArray() );
+        this.u.setRowNames( matrix.getRowNames() );
+        this.u.setColumnNames( componentNames );
+
+        this.singularValues = svd.getSingularValues();
+        this.s = new DenseDoubleMatrix<>( numComponents, numComponents );
+        for ( int i = 0; i < numComponents; i++ ) {
+            this.s.set( i, i, singularValues[i] );
+        }
+        this.s.setRowNames( componentNames );
+        this.s.setColumnNames( componentNames );
+
+        // rows are samples and columns are components, like for a full SVD
+        this.v = ExpressionDataSVD.toV( svd.getV().toArray(), matrix.getColNames() );
+
+        // the squares of all the singular values sum up to the squared Frobenius norm of the matrix
+        this.sumOfSquares = 0;
+        for ( int i = 0; i < a.rows(); i++ ) {
+            for ( int j = 0; j < a.columns(); j++ ) {
+                double d = a.getQuick( i, j );
+                this.sumOfSquares += d * d;
+            }
+        }
+
+        this.truncated = true;
     }
 
     /**
@@ -145,15 +270,16 @@ public class ExpressionDataSVD {
      * @return the reconstructed matrix; values that were missing before are re-masked.
      */
     public ExpressionDataDoubleMatrix equalize() {
-        DoubleMatrix<Integer, Integer> copy = svd.getS().copy();
+        this.requireFullSvd();
+        DoubleMatrix<Integer, Integer> copy = s.copy();
 
         for ( int i = 0; i < copy.columns(); i++ ) {
             copy.set( i, i, 1.0 );
         }
 
-        double[][] rawU = svd.getU().getRawMatrix();
+        double[][] rawU = this.u.getRawMatrix();
         double[][] rawS = copy.getRawMatrix();
-        double[][] rawV = svd.getV().getRawMatrix();
+        double[][] rawV = this.v.getRawMatrix();
 
         DoubleMatrix2D u = new DenseDoubleMatrix2D( rawU );
         DoubleMatrix2D s = new DenseDoubleMatrix2D( rawS );
@@ -211,7 +337,7 @@ public class ExpressionDataSVD {
      * @return how many rows the U matrix has.
      */
     public int getNumVariables() {
-        return this.svd.getU().rows();
+        return this.u.rows();
     }
 
     /**
@@ -219,43 +345,52 @@ public class ExpressionDataSVD {
      *         from 0).
      */
     public DoubleMatrix<Integer, Integer> getS() {
-        return svd.getS();
+        return s;
     }
 
+    /**
+     * @return the singular values, in decreasing order; if the SVD is truncated, only the leading ones are included.
+     */
     public double[] getSingularValues() {
-        return this.svd.getSingularValues();
+        return this.singularValues;
+    }
+
+    /**
+     * @return the sum of all the eigenvalues, including those that were not computed if the SVD is truncated.
+     */
+    public double getTotalVariance() {
+        return this.sumOfSquares / ( this.getNumVariables() - 1 );
+    }
+
+    /**
+     * @return true if only the leading components were computed
+     * @see SVDConfig
+     */
+    public boolean isTruncated() {
+        return truncated;
     }
 
     /**
      * @return the left singular vectors. The column indices are of the eigenarrays (starting from 0).
      */
     public DoubleMatrix<CompositeSequence, Integer> getU() {
-        return svd.getU();
+        return u;
     }
 
     /**
-     * @return the right singular vectors. The column indices are of the eigengenes (starting from 0). The row indices
-     *         are of the original samples in the given ExpressionDataDoubleMatrix.
+     * @return the right singular vectors. The columns are named by eigengene (starting from 0) and the rows by the
+     *         original samples in the given ExpressionDataDoubleMatrix.
      */
-    public DoubleMatrix<Integer, BioMaterial> getV() {
-        return svd.getV();
+    public DoubleMatrix<BioMaterial, Integer> getV() {
+        return v;
     }
 
     /**
      * @return fractions of the variance for each singular vector.
      */
     public Double[] getVarianceFractions() {
-        double[] singularValues = svd.getSingularValues();
         // d should be be square roots of the eigenvalues scaled by number of variables: check
-
-        int numVariables = this.getNumVariables();
-
-        double sum = 0;
-        for ( double d : singularValues ) {
-
-            double d2 = d * d / ( numVariables - 1 );
-            sum += d2;
-        }
+        double sum = this.getTotalVariance();
         Double[] answer = new Double[singularValues.length];
         for ( int i = 0; i < singularValues.length; i++ ) {
             answer[i] = singularValues[i] * singularValues[i] / sum;
@@ -273,15 +408,16 @@ public class ExpressionDataSVD {
      * @return                       the reconstructed matrix; values that were missing before are re-masked.
      */
     public ExpressionDataDoubleMatrix removeHighestComponents( int numComponentsToRemove ) {
-        DoubleMatrix<Integer, Integer> copy = svd.getS().copy();
+        this.requireFullSvd();
+        DoubleMatrix<Integer, Integer> copy = s.copy();
 
         for ( int i = 0; i < numComponentsToRemove; i++ ) {
             copy.set( i, i, 0.0 );
         }
 
-        double[][] rawU = svd.getU().getRawMatrix();
+        double[][] rawU = this.u.getRawMatrix();
         double[][] rawS = copy.getRawMatrix();
-        double[][] rawV = svd.getV().getRawMatrix();
+        double[][] rawV = this.v.getRawMatrix();
 
         DoubleMatrix2D u = new DenseDoubleMatrix2D( rawU );
         DoubleMatrix2D s = new DenseDoubleMatrix2D( rawS );
@@ -321,8 +457,9 @@ public class ExpressionDataSVD {
         if ( !normalized ) {
             throw new IllegalStateException( "You must do SVD on the normalized matrix" );
         }
+        this.requireFullSvd();
 
-        DoubleMatrix<CompositeSequence, Integer> rawUMatrix = svd.getU();
+        DoubleMatrix<CompositeSequence, Integer> rawUMatrix = u;
 
         DoubleMatrix<CompositeSequence, BioMaterial> result = new DenseDoubleMatrix<>( rawUMatrix.rows(),
                 rawUMatrix.columns() );
@@ -333,7 +470,7 @@ public class ExpressionDataSVD {
                 result.set( i, j, Math.abs( rawUMatrix.get( i, j ) ) );
             }
         }
-        List<BioMaterial> colNames = svd.getV().getColNames();
+        List<BioMaterial> colNames = v.getRowNames();
 
         result.setColumnNames( colNames );
         result.setRowNames( rawUMatrix.getRowNames() );
@@ -426,6 +563,12 @@ public class ExpressionDataSVD {
 
     }
 
+    private void requireFullSvd() {
+        if ( truncated ) {
+            throw new IllegalStateException( "This operation requires a full SVD, but only the leading " + singularValues.length + " components were computed." );
+        }
+    }
+
     /**
      * Simple imputation method. Generally (but not always), missing values correspond to "low expression". Therefore
      * imputed values of zero are defensible. However, because at this point the matrix has probably already been
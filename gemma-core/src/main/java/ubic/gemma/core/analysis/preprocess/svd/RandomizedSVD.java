@@ -0,0 +1,140 @@
+package ubic.gemma.core.analysis.preprocess.svd;
+
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+import cern.colt.matrix.linalg.QRDecomposition;
+import cern.colt.matrix.linalg.SingularValueDecomposition;
+import org.springframework.util.Assert;
+
+import java.util.Random;
+
+/**
+ * Compute the leading components of the SVD of a matrix with a randomized range finder.
+ * <p>
+ * The range of the matrix is approximated by multiplying it with a random Gaussian matrix with a few more columns than
+ * the number of requested components, followed by a few power iterations. The matrix is then projected on that range
+ * and the resulting small matrix is decomposed exactly. See Halko, Martinsson and Tropp, "Finding structure with
+ * randomness: probabilistic algorithms for constructing approximate matrix decompositions", SIAM Review 53 (2011).
+ * <p>
+ * For a m by n matrix, this takes {@code O(mnk)} time instead of {@code O(mn^2)} for a full SVD.
+ */
+class RandomizedSVD {
+
+    /**
+     * Number of additional random vectors used to approximate the range of the matrix.
+     */
+    static final int OVERSAMPLING = 10;
+
+    /**
+     * Singular values smaller than this fraction of the largest one are deemed to be zero.
+     */
+    private static final double NEGLIGIBLE_SINGULAR_VALUE = 1e-10;
+
+    private final DoubleMatrix2D u;
+    private final double[] singularValues;
+    private final DoubleMatrix2D v;
+
+    /**
+     * @param a                  a matrix with at least as many rows as columns, it is not modified
+     * @param numComponents      number of components to compute
+     * @param numPowerIterations number of power iterations
+     * @param seed               seed for the random matrix, for reproducible results
+     */
+    RandomizedSVD( DoubleMatrix2D a, int numComponents, int numPowerIterations, long seed ) {
+        int m = a.rows(), n = a.columns();
+        Assert.isTrue( m >= n, "The matrix must have at least as many rows as columns." );
+        Assert.isTrue( numComponents > 0 && numComponents <= n, "The number of components must be between 1 and " + n + "." );
+        Assert.isTrue( numPowerIterations >= 0, "The number of power iterations must be zero or more." );
+        int l = Math.min( numComponents + OVERSAMPLING, n );
+
+        Random random = new Random( seed );
+        DoubleMatrix2D omega = new DenseDoubleMatrix2D( n, l );
+        for ( int i = 0; i < n; i++ ) {
+            for ( int j = 0; j < l; j++ ) {
+                omega.setQuick( i, j, random.nextGaussian() );
+            }
+        }
+
+        // orthonormal basis for the range of A
+        DoubleMatrix2D q = orthonormalize( a.zMult( omega, null ) );
+        for ( int i = 0; i < numPowerIterations; i++ ) {
+            // re-orthonormalizing at each step prevents the smaller components from vanishing in rounding errors
+            DoubleMatrix2D z = orthonormalize( a.zMult( q, null, 1.0, 0.0, true, false ) );
+            q = orthonormalize( a.zMult( z, null ) );
+        }
+
+        // B = Q'A is l by n and A ~ QB; B' is decomposed since the SVD requires at least as many rows as columns
+        DoubleMatrix2D bt = a.zMult( q, null, 1.0, 0.0, true, false );
+        SingularValueDecomposition svd = new SingularValueDecomposition( bt );
+        // B' = W S X' thus B = X S W'
+        DoubleMatrix2D ub = svd.getV();
+        DoubleMatrix2D w = svd.getU();
+        double[] s = svd.getSingularValues();
+
+        DoubleMatrix2D fullU = q.zMult( ub, null );
+        this.u = new DenseDoubleMatrix2D( m, numComponents );
+        this.v = new DenseDoubleMatrix2D( n, numComponents );
+        this.singularValues = new double[numComponents];
+        for ( int k = 0; k < numComponents; k++ ) {
+            singularValues[k] = s[k];
+            for ( int i = 0; i < m; i++ ) {
+                u.setQuick( i, k, fullU.getQuick( i, k ) );
+            }
+            for ( int j = 0; j < n; j++ ) {
+                v.setQuick( j, k, w.getQuick( j, k ) );
+            }
+        }
+    }
+
+    /**
+     * @return the left singular vectors, m by k
+     */
+    DoubleMatrix2D getU() {
+        return u;
+    }
+
+    /**
+     * @return the singular values, in decreasing order
+     */
+    double[] getSingularValues() {
+        return singularValues;
+    }
+
+    /**
+     * @return the right singular vectors, n by k
+     */
+    DoubleMatrix2D getV() {
+        return v;
+    }
+
+    /**
+     * Compute the residual {@code ||Av - su||} of each component, relative to the largest singular value.
+     * <p>
+     * For an exact singular triplet, this is zero. The other residual, {@code ||A'u - sv||}, is always zero by
+     * construction.
+     * @param a the matrix that was decomposed
+     * @return the residuals, or {@link Double#NaN} for components with a negligible singular value
+     */
+    double[] getRelativeResiduals( DoubleMatrix2D a ) {
+        DoubleMatrix2D av = a.zMult( v, null );
+        double[] residuals = new double[singularValues.length];
+        for ( int k = 0; k < singularValues.length; k++ ) {
+            // the singular vectors of a (numerically) zero singular value are arbitrary
+            if ( singularValues[k] <= NEGLIGIBLE_SINGULAR_VALUE * singularValues[0] ) {
+                residuals[k] = Double.NaN;
+                continue;
+            }
+            double ss = 0.0;
+            for ( int i = 0; i < av.rows(); i++ ) {
+                double d = av.getQuick( i, k ) - singularValues[k] * u.getQuick( i, k );
+                ss += d * d;
+            }
+            residuals[k] = Math.sqrt( ss ) / singularValues[0];
+        }
+        return residuals;
+    }
+
+    private static DoubleMatrix2D orthonormalize( DoubleMatrix2D y ) {
+        return new QRDecomposition( y ).getQ();
+    }
+}
@@ -0,0 +1,73 @@
+package ubic.gemma.core.analysis.preprocess.svd;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * Configuration for computing the SVD of an expression data matrix.
+ * @see ExpressionDataSVD
+ */
+@Value
+@Builder
+public class SVDConfig {
+
+    /**
+     * Default configuration, a truncated SVD is used for large matrices.
+     */
+    public static final SVDConfig DEFAULT = SVDConfig.builder().build();
+
+    /**
+     * Always compute a full SVD.
+     */
+    public static final SVDConfig FULL = SVDConfig.builder().mode( Mode.FULL ).build();
+
+    public enum Mode {
+        /**
+         * Use a truncated SVD if the matrix has more than {@link #getTruncatedSvdThreshold()} values, a full SVD
+         * otherwise.
+         */
+        AUTO,
+        /**
+         * Compute all the components.
+         */
+        FULL,
+        /**
+         * Compute only the leading {@link #getNumComponents()} components with a randomized algorithm.
+         */
+        TRUNCATED
+    }
+
+    @Builder.Default
+    Mode mode = Mode.AUTO;
+    /**
+     * Number of values (i.e. rows times columns) of the filtered matrix above which a truncated SVD is used in
+     * {@link Mode#AUTO} mode.
+     */
+    @Builder.Default
+    long truncatedSvdThreshold = 5_000_000L;
+    /**
+     * Number of components to compute for a truncated SVD.
+     * <p>
+     * If this is not sufficiently smaller than the number of samples, a full SVD is computed instead.
+     */
+    @Builder.Default
+    int numComponents = 20;
+    /**
+     * Number of power iterations to perform for a truncated SVD. More iterations improve the accuracy of the
+     * components when the singular values decay slowly.
+     */
+    @Builder.Default
+    int numPowerIterations = 7;
+    /**
+     * Check the accuracy of a truncated SVD.
+     * <p>
+     * The residual {@code ||Av - su||}, relative to the largest singular value, is computed for each component and the
+     * decomposition fails if any of them exceeds {@link #getAccuracyTolerance()}.
+     */
+    boolean checkAccuracy;
+    /**
+     * Maximum relative residual for a component when {@link #isCheckAccuracy()} is set.
+     */
+    @Builder.Default
+    double accuracyTolerance = 0.01;
+}
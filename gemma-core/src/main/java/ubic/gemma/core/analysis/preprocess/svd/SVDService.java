@@ -45,9 +45,21 @@ public interface SVDService {
     @Secured({ "IS_AUTHENTICATED_ANONYMOUSLY", "ACL_SECURABLE_READ" })
     SVDResult getSvd( ExpressionExperiment ee );
 
+    /**
+     * Compute and store the SVD of an experiment using the default configuration.
+     * @see SVDConfig#DEFAULT
+     */
     @Secured({ "GROUP_USER", "ACL_SECURABLE_EDIT" })
     SVDResult svd( ExpressionExperiment ee ) throws SVDException;
 
+    /**
+     * Compute and store the SVD of an experiment.
+     * <p>
+     * If the SVD is truncated, only the leading components are stored.
+     */
+    @Secured({ "GROUP_USER", "ACL_SECURABLE_EDIT" })
+    SVDResult svd( ExpressionExperiment ee, SVDConfig config ) throws SVDException;
+
     /**
      * Compare ExperimentalFactors and BioAssay.processingDates to the PCs.
      *
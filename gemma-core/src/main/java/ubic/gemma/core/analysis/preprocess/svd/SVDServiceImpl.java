@@ -27,6 +27,9 @@ import ubic.basecode.math.CorrelationStats;
 import ubic.basecode.math.Distance;
 import ubic.basecode.math.KruskalWallis;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrix;
+import ubic.gemma.core.visualization.QcFigureRenderer;
+import ubic.gemma.core.visualization.QcFigureService;
+import ubic.gemma.core.visualization.QcFigureType;
 import ubic.gemma.model.analysis.expression.pca.PrincipalComponentAnalysis;
 import ubic.gemma.model.analysis.expression.pca.ProbeLoading;
 import ubic.gemma.model.common.auditAndSecurity.eventType.PCAAnalysisEvent;
@@ -86,6 +89,12 @@ public class SVDServiceImpl implements SVDService {
     @Autowired
     private ExpressionExperimentService expressionExperimentService;
 
+    @Autowired
+    private QcFigureService qcFigureService;
+
+    @Autowired
+    private QcFigureRenderer qcFigureRenderer;
+
     /**
      * Retrieve relationships between factors, biomaterials and factor values.
      * <p>
@@ -141,6 +150,12 @@ public class SVDServiceImpl implements SVDService {
     @Override
     @Transactional
     public SVDResult svd( ExpressionExperiment ee ) throws SVDException {
+        return this.svd( ee, SVDConfig.DEFAULT );
+    }
+
+    @Override
+    @Transactional
+    public SVDResult svd( ExpressionExperiment ee, SVDConfig config ) throws SVDException {
         assert ee != null;
 
         Collection<ProcessedExpressionDataVector> vectors = processedExpressionDataVectorService
@@ -153,20 +168,39 @@ public class SVDServiceImpl implements SVDService {
         ExpressionDataDoubleMatrix mat = new ExpressionDataDoubleMatrix( vectors );
 
         SVDServiceImpl.log.info( "Starting SVD" );
-        ExpressionDataSVD svd = new ExpressionDataSVD( mat );
+        ExpressionDataSVD svd = new ExpressionDataSVD( mat, true, config );
 
-        SVDServiceImpl.log.info( "SVD done, postprocessing and storing results." );
+        if ( svd.isTruncated() ) {
+            SVDServiceImpl.log.info( "Truncated SVD done with " + svd.getSingularValues().length
+                    + " components, postprocessing and storing results." );
+        } else {
+            SVDServiceImpl.log.info( "SVD done, postprocessing and storing results." );
+        }
 
         /*
          * Save the results
          */
-        DoubleMatrix<Integer, BioMaterial> v = svd.getV();
+        DoubleMatrix<BioMaterial, Integer> v = svd.getV();
 
         BioAssayDimension b = mat.getBioAssayDimension();
 
         PrincipalComponentAnalysis pca = this.updatePca( ee, svd, v, b );
 
-        return this.getSvdFactorAnalysis( pca );
+        qcFigureService.deleteFigures( ee, QcFigureType.PCA_SCREE );
+        qcFigureService.deleteFigures( ee, QcFigureType.PCA_FACTORS );
+
+        SVDResult result = this.getSvdFactorAnalysis( pca );
+
+        // pre-render the figures as displayed on the experiment page
+        if ( result != null ) {
+            ExpressionExperiment thawedEe = expressionExperimentService.thawLite( ee ); // need the experimental design
+            qcFigureService.saveFigureAsync( ee, QcFigureType.PCA_SCREE, "default",
+                    os -> qcFigureRenderer.renderPcaScree( result, os ) );
+            qcFigureService.saveFigureAsync( ee, QcFigureType.PCA_FACTORS, "default",
+                    os -> qcFigureRenderer.renderPcaFactors( thawedEe, result, os ) );
+        }
+
+        return result;
     }
 
     @Override
@@ -578,11 +612,11 @@ public class SVDServiceImpl implements SVDService {
     }
 
     private PrincipalComponentAnalysis updatePca( ExpressionExperiment ee, ExpressionDataSVD svd,
-            DoubleMatrix<Integer, BioMaterial> v, BioAssayDimension b ) {
+            DoubleMatrix<BioMaterial, Integer> v, BioAssayDimension b ) {
         principalComponentAnalysisService.removeForExperiment( ee );
         PrincipalComponentAnalysis pca = principalComponentAnalysisService
-                .create( ee, svd.getU(), svd.getEigenvalues(), v, b, SVDServiceImpl.MAX_NUM_COMPONENTS_TO_PERSIST,
-                        SVDServiceImpl.MAX_LOADINGS_TO_PERSIST );
+                .create( ee, svd.getU(), svd.getEigenvalues(), svd.getTotalVariance(), v, b,
+                        SVDServiceImpl.MAX_NUM_COMPONENTS_TO_PERSIST, SVDServiceImpl.MAX_LOADINGS_TO_PERSIST );
 
         ee = expressionExperimentService.thawLite( ee ); // I wish this wasn't needed.
         auditTrailService.addUpdateEvent( ee, PCAAnalysisEvent.class, "SVD computation" );
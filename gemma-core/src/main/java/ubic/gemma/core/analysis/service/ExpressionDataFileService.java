@@ -267,6 +267,43 @@ public interface ExpressionDataFileService {
      */
     Future<Path> writeOrLocateMexSingleCellExpressionDataAsync( ExpressionExperiment ee, QuantitationType qt, int fetchSize, boolean useCursorFetchIfSupported, boolean forceWrite ) throws RejectedExecutionException;
 
+    /**
+     * Write single-cell expression data to a given file for a given quantitation type in the AnnData format.
+     * <p>
+     * Vectors are streamed directly into the HDF5 file, so unlike MEX, there is no need to hold the whole matrix in
+     * memory.
+     *
+     * @param ee                        the experiment to use
+     * @param qt                        the quantitation type to retrieve
+     * @param scaleType                 a scale type to use or null to leave the data untransformed
+     * @param fetchSize                 fetch size to use for streaming, or load everything in memory of zero or less
+     * @param useCursorFetchIfSupported use cursor fetching if supported by the database. It is not recommended to use
+     *                                  this for public-facing operations because it may require a lot of memory
+     * @param forceWrite                whether to force write and ignore any pre-existing file
+     * @param destFile                  the destination file to write the data to. It is not allowed to write under the
+     *                                  {@code ${gemma.appdata.home}/dataFiles} directory using this method, use
+     *                                  {@link #writeOrLocateAnnDataSingleCellExpressionData(ExpressionExperiment, QuantitationType, int, boolean, boolean)}
+     *                                  instead.
+     * @see ubic.gemma.core.datastructure.matrix.io.AnnDataMatrixWriter
+     */
+    int writeAnnDataSingleCellExpressionData( ExpressionExperiment ee, QuantitationType qt, @Nullable ScaleType scaleType, int fetchSize, boolean useCursorFetchIfSupported, boolean forceWrite, Path destFile ) throws IOException;
+
+    int writeAnnDataSingleCellExpressionData( ExpressionExperiment ee, List<BioAssay> samples, QuantitationType qt, @Nullable ScaleType scaleType, int fetchSize, boolean useCursorFetchIfSupported, boolean forceWrite, Path destFile ) throws IOException;
+
+    /**
+     * Write single-cell expression data to a standard location for a given quantitation type in the AnnData format.
+     * @return a path where the vectors were written
+     * @see #writeAnnDataSingleCellExpressionData(ExpressionExperiment, QuantitationType, ScaleType, int, boolean, boolean, Path)
+     * @see ubic.gemma.core.datastructure.matrix.io.AnnDataMatrixWriter
+     */
+    LockedPath writeOrLocateAnnDataSingleCellExpressionData( ExpressionExperiment ee, QuantitationType qt, int fetchSize, boolean useCursorFetchIfSupported, boolean forceWrite ) throws IOException;
+
+    /**
+     * @see #writeOrLocateAnnDataSingleCellExpressionData(ExpressionExperiment, QuantitationType, int, boolean, boolean)
+     * @throws RejectedExecutionException if the queue for creating data files is full
+     */
+    Future<Path> writeOrLocateAnnDataSingleCellExpressionDataAsync( ExpressionExperiment ee, QuantitationType qt, int fetchSize, boolean useCursorFetchIfSupported, boolean forceWrite ) throws RejectedExecutionException;
+
     /**
      * Write raw expression data to a given writer for a given quantitation type.
      * <p>
@@ -329,6 +366,12 @@ public interface ExpressionDataFileService {
 
     Optional<LockedPath> writeOrLocateProcessedDataFile( ExpressionExperiment ee, boolean filtered, boolean forceWrite, long timeout, TimeUnit timeUnit ) throws TimeoutException, IOException, InterruptedException, FilteringException;
 
+    /**
+     * @see #writeOrLocateProcessedDataFile(ExpressionExperiment, boolean, boolean)
+     * @throws RejectedExecutionException if the queue for creating data files is full
+     */
+    Future<Optional<Path>> writeOrLocateProcessedDataFileAsync( ExpressionExperiment ee, boolean filtered, boolean forceWrite ) throws RejectedExecutionException;
+
     /**
      * Locate or create a new data file for the given quantitation type. The output will include gene information if it
      * can be located from its own file.
@@ -341,6 +384,12 @@ public interface ExpressionDataFileService {
 
     LockedPath writeOrLocateRawExpressionDataFile( ExpressionExperiment ee, QuantitationType qt, boolean forceWrite, long timeout, TimeUnit timeUnit ) throws TimeoutException, IOException, InterruptedException;
 
+    /**
+     * @see #writeOrLocateRawExpressionDataFile(ExpressionExperiment, QuantitationType, boolean)
+     * @throws RejectedExecutionException if the queue for creating data files is full
+     */
+    Future<Path> writeOrLocateRawExpressionDataFileAsync( ExpressionExperiment ee, QuantitationType qt, boolean forceWrite ) throws RejectedExecutionException;
+
     /**
      * Locate or create an experimental design file for a given experiment.
      * The file will be regenerated even if one already exists if the forceWrite parameter is true, or if there was
@@ -355,6 +404,12 @@ public interface ExpressionDataFileService {
 
     Optional<LockedPath> writeOrLocateDesignFile( ExpressionExperiment ee, boolean forceWrite, long timeout, TimeUnit timeUnit ) throws TimeoutException, IOException, InterruptedException;
 
+    /**
+     * @see #writeOrLocateDesignFile(ExpressionExperiment, boolean)
+     * @throws RejectedExecutionException if the queue for creating data files is full
+     */
+    Future<Optional<Path>> writeOrLocateDesignFileAsync( ExpressionExperiment ee, boolean forceWrite ) throws RejectedExecutionException;
+
     /**
      * @see #writeOrLocateProcessedDataFile(ExpressionExperiment, boolean, boolean)
      */
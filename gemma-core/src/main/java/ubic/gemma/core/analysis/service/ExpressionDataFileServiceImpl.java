@@ -31,6 +31,7 @@ import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.Assert;
 import ubic.gemma.core.analysis.preprocess.filter.FilteringException;
 import ubic.gemma.core.datastructure.matrix.*;
+import ubic.gemma.core.datastructure.matrix.io.AnnDataMatrixWriter;
 import ubic.gemma.core.datastructure.matrix.io.ExperimentalDesignWriter;
 import ubic.gemma.core.datastructure.matrix.io.MatrixWriter;
 import ubic.gemma.core.datastructure.matrix.io.MexMatrixWriter;
@@ -424,6 +425,9 @@ public class ExpressionDataFileServiceImpl implements ExpressionDataFileService
             case MEX:
                 Assert.isAssignable( SingleCellExpressionDataVector.class, dataType );
                 return MEX_SC_DATA_SUFFIX;
+            case ANNDATA:
+                Assert.isAssignable( SingleCellExpressionDataVector.class, dataType );
+                return ANNDATA_SC_DATA_SUFFIX;
             default:
                 throw new IllegalArgumentException( "Unsupported data file type: " + type );
         }
@@ -460,6 +464,9 @@ public class ExpressionDataFileServiceImpl implements ExpressionDataFileService
                 case MEX:
                     suffixes = new String[] { MEX_SC_DATA_SUFFIX };
                     break;
+                case ANNDATA:
+                    suffixes = new String[] { ANNDATA_SC_DATA_SUFFIX };
+                    break;
                 case JSON:
                     suffixes = new String[] { JSON_BULK_DATA_FILE_SUFFIX };
                     break;
@@ -687,6 +694,73 @@ public class ExpressionDataFileServiceImpl implements ExpressionDataFileService
         }
     }
 
+    @Override
+    public int writeAnnDataSingleCellExpressionData( ExpressionExperiment ee, QuantitationType qt, @Nullable ScaleType scaleType, int fetchSize, boolean useCursorFetchIfSupported, boolean forceWrite, Path destFile ) throws IOException {
+        Assert.isTrue( !destFile.startsWith( dataDir ), "Cannot write to a path within " + dataDir + " using a custom target file." );
+        if ( !forceWrite && Files.exists( destFile ) ) {
+            throw new IllegalArgumentException( "Output file " + destFile + " already exists, use forceWrite to overwrite." );
+        }
+        return writeAnnDataSingleCellExpressionDataInternal( ee, null, qt, scaleType, fetchSize, useCursorFetchIfSupported, destFile );
+    }
+
+    @Override
+    public int writeAnnDataSingleCellExpressionData( ExpressionExperiment ee, List<BioAssay> samples, QuantitationType qt, @Nullable ScaleType scaleType, int fetchSize, boolean useCursorFetchIfSupported, boolean forceWrite, Path destFile ) throws IOException {
+        Assert.isTrue( !destFile.startsWith( dataDir ), "Cannot write to a path within " + dataDir + " using a custom target file." );
+        if ( !forceWrite && Files.exists( destFile ) ) {
+            throw new IllegalArgumentException( "Output file " + destFile + " already exists, use forceWrite to overwrite." );
+        }
+        return writeAnnDataSingleCellExpressionDataInternal( ee, samples, qt, scaleType, fetchSize, useCursorFetchIfSupported, destFile );
+    }
+
+    @Override
+    public LockedPath writeOrLocateAnnDataSingleCellExpressionData( ExpressionExperiment ee, QuantitationType qt, int fetchSize, boolean useCursorFetchIfSupported, boolean forceWrite ) throws IOException {
+        try ( LockedPath dest = getOutputFile( getDataOutputFilename( ee, qt, ANNDATA_SC_DATA_SUFFIX ), false ) ) {
+            Date date = ee.getCurationDetails().getLastUpdated();
+            if ( checkFileOkToReturn( forceWrite, dest.getPath(), date ) ) {
+                return dest.steal();
+            }
+            try ( LockedPath lockedPath = dest.toExclusive() ) {
+                int written = writeAnnDataSingleCellExpressionDataInternal( ee, null, qt, null, fetchSize, useCursorFetchIfSupported, lockedPath.getPath() );
+                log.info( "Wrote " + written + " vectors for " + qt + " to " + lockedPath.getPath() + "." );
+                return lockedPath.toShared();
+            }
+        }
+    }
+
+    @Override
+    public Future<Path> writeOrLocateAnnDataSingleCellExpressionDataAsync( ExpressionExperiment ee, QuantitationType qt, int fetchSize, boolean useCursorFetchIfSupported, boolean forceWrite ) {
+        return expressionDataFileTaskExecutor.submit( () -> {
+            try ( LockedPath lockedPath = writeOrLocateAnnDataSingleCellExpressionData( ee, qt, fetchSize, useCursorFetchIfSupported, forceWrite ) ) {
+                return lockedPath.getPath();
+            }
+        } );
+    }
+
+    private int writeAnnDataSingleCellExpressionDataInternal( ExpressionExperiment ee, @Nullable List<BioAssay> samples, QuantitationType qt, @Nullable ScaleType scaleType, int fetchSize, boolean useCursorFetchIfSupported, Path destFile ) throws IOException {
+        Map<CompositeSequence, Set<Gene>> cs2gene = new HashMap<>();
+        AnnDataMatrixWriter writer = new AnnDataMatrixWriter();
+        writer.setScaleType( scaleType );
+        if ( fetchSize > 0 ) {
+            AtomicLong numVecs = new AtomicLong();
+            try ( Stream<SingleCellExpressionDataVector> vectors = helperService.getSingleCellVectors( ee, samples, qt, cs2gene, numVecs, fetchSize, useCursorFetchIfSupported ) ) {
+                Files.deleteIfExists( destFile );
+                log.info( "Will write AnnData for " + qt + " to " + destFile + "." );
+                if ( scaleType != null && qt.getScale() != scaleType ) {
+                    log.info( "Data will be converted from " + qt.getScale() + " to " + scaleType + "." );
+                }
+                return writer.write( vectors.peek( createStreamMonitor( ee, qt, ExpressionDataFileServiceImpl.class.getName(), 100, numVecs.get() ) ), ( int ) numVecs.get(), cs2gene, destFile );
+            }
+        } else {
+            Collection<SingleCellExpressionDataVector> vectors = helperService.getSingleCellVectors( ee, samples, qt, cs2gene );
+            Files.deleteIfExists( destFile );
+            log.info( "Will write AnnData for " + qt + " to " + destFile + "." );
+            if ( scaleType != null && qt.getScale() != scaleType ) {
+                log.info( "Data will be converted from " + qt.getScale() + " to " + scaleType + "." );
+            }
+            return writer.write( vectors.stream().peek( createStreamMonitor( ee, qt, ExpressionDataFileServiceImpl.class.getName(), 100, vectors.size() ) ), vectors.size(), cs2gene, destFile );
+        }
+    }
+
     @Override
     public int writeRawExpressionData( ExpressionExperiment ee, QuantitationType qt, @Nullable ScaleType scaleType, Writer writer, boolean autoFlush ) throws IOException {
         return writeRawExpressionDataInternal( ee, null, qt, scaleType, writer, autoFlush );
@@ -821,6 +895,12 @@ public class ExpressionDataFileServiceImpl implements ExpressionDataFileService
         }
     }
 
+    @Override
+    public Future<Optional<Path>> writeOrLocateProcessedDataFileAsync( ExpressionExperiment ee, boolean filtered, boolean forceWrite ) {
+        return expressionDataFileTaskExecutor.submit( () -> writeOrLocateProcessedDataFile( ee, filtered, forceWrite )
+                .map( LockedPath::closeAndGetPath ) );
+    }
+
     @Override
     public LockedPath writeOrLocateRawExpressionDataFile( ExpressionExperiment ee, QuantitationType type, boolean forceWrite ) throws IOException {
         try ( LockedPath f = this.getOutputFile( getDataOutputFilename( ee, type, TABULAR_BULK_DATA_FILE_SUFFIX ), false ) ) {
@@ -861,6 +941,15 @@ public class ExpressionDataFileServiceImpl implements ExpressionDataFileService
         }
     }
 
+    @Override
+    public Future<Path> writeOrLocateRawExpressionDataFileAsync( ExpressionExperiment ee, QuantitationType qt, boolean forceWrite ) {
+        return expressionDataFileTaskExecutor.submit( () -> {
+            try ( LockedPath lockedPath = writeOrLocateRawExpressionDataFile( ee, qt, forceWrite ) ) {
+                return lockedPath.getPath();
+            }
+        } );
+    }
+
     @Override
     public Optional<LockedPath> writeOrLocateDesignFile( ExpressionExperiment ee, boolean forceWrite ) throws IOException {
         ee = expressionExperimentService.thawLite( ee );
@@ -905,6 +994,12 @@ public class ExpressionDataFileServiceImpl implements ExpressionDataFileService
         }
     }
 
+    @Override
+    public Future<Optional<Path>> writeOrLocateDesignFileAsync( ExpressionExperiment ee, boolean forceWrite ) {
+        return expressionDataFileTaskExecutor.submit( () -> writeOrLocateDesignFile( ee, forceWrite )
+                .map( LockedPath::closeAndGetPath ) );
+    }
+
     @Override
     public Optional<LockedPath> writeOrLocateJSONProcessedExpressionDataFile( ExpressionExperiment ee, boolean filtered, boolean forceWrite ) throws FilteringException, IOException {
         // randomize file name if temporary in case of access by more than one user at once
@@ -3,5 +3,6 @@ package ubic.gemma.core.analysis.service;
 public enum ExpressionExperimentDataFileType {
     TABULAR,
     JSON,
-    MEX
+    MEX,
+    ANNDATA
 }
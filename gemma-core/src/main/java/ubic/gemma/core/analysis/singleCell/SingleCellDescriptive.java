@@ -9,18 +9,23 @@ import ubic.gemma.model.common.quantitationtype.*;
 import ubic.gemma.model.expression.bioAssay.BioAssay;
 import ubic.gemma.model.expression.bioAssayData.CellLevelCharacteristics;
 import ubic.gemma.model.expression.bioAssayData.SingleCellExpressionDataVector;
+import ubic.gemma.model.expression.bioAssayData.SingleCellExpressionDataVectorAccessor;
 
-import java.nio.*;
 import java.util.function.ToDoubleFunction;
 
 import static ubic.gemma.model.common.quantitationtype.QuantitationTypeUtils.getDefaultCountValueAsDouble;
 import static ubic.gemma.model.common.quantitationtype.QuantitationTypeUtils.getDefaultCountValueAsFloat;
-import static ubic.gemma.model.expression.bioAssayData.SingleCellExpressionDataVectorUtils.*;
+import static ubic.gemma.model.expression.bioAssayData.SingleCellExpressionDataVectorUtils.getSampleEnd;
+import static ubic.gemma.model.expression.bioAssayData.SingleCellExpressionDataVectorUtils.getSampleStart;
 
 /**
  * Descriptive statistics for single cell data.
  * <p>
  * The utilities here extend {@link DataVectorDescriptive} by providing per-assay statistics.
+ * <p>
+ * Numerical data is read directly from the vector buffer with a {@link SingleCellExpressionDataVectorAccessor}. When
+ * a statistic needs all the values of an assay at once (i.e. quantiles), they are copied in a list that is reused for
+ * all the assays of a vector.
  * @author poirigui
  * @see DataVectorDescriptive
  */
@@ -70,13 +75,12 @@ public class SingleCellDescriptive {
         if ( vector.getQuantitationType().getType() == StandardQuantitationType.COUNT ) {
             switch ( vector.getQuantitationType().getRepresentation() ) {
                 case INT:
-                    return countCount( vector, vector.getDataAsInts() );
                 case LONG:
-                    return countCount( vector, vector.getDataAsLongs() );
+                    return countCount( vector );
                 case FLOAT:
-                    return countCount( vector, vector.getDataAsFloats(), getDefaultCountValueAsFloat( vector.getQuantitationType() ) );
+                    return countCount( vector, getDefaultCountValueAsFloat( vector.getQuantitationType() ) );
                 case DOUBLE:
-                    return countCount( vector, vector.getDataAsDoubles(), getDefaultCountValueAsDouble( vector.getQuantitationType() ) );
+                    return countCount( vector, getDefaultCountValueAsDouble( vector.getQuantitationType() ) );
                 default:
                     throw new UnsupportedOperationException( "Counting data represented as " + vector.getQuantitationType().getRepresentation() + " is not supported." );
             }
@@ -89,9 +93,8 @@ public class SingleCellDescriptive {
                 // number of values
                 return countFast( vector );
             case FLOAT:
-                return count( vector, vector.getDataAsFloats() );
             case DOUBLE:
-                return count( vector, vector.getDataAsDoubles() );
+                return countNonMissing( vector );
             case CHAR:
                 return count( vector, vector.getDataAsChars() );
             case STRING:
@@ -147,92 +150,65 @@ public class SingleCellDescriptive {
         return d;
     }
 
-    private static int[] count( SingleCellExpressionDataVector vector, float[] data ) {
+    /**
+     * Count the non-NaN values of floating-point data.
+     */
+    private static int[] countNonMissing( SingleCellExpressionDataVector vector ) {
+        SingleCellExpressionDataVectorAccessor accessor = SingleCellExpressionDataVectorAccessor.of( vector );
         int[] d = new int[vector.getSingleCellDimension().getBioAssays().size()];
         for ( int i = 0; i < d.length; i++ ) {
-            int start = getSampleStart( vector, i, 0 );
-            int end = getSampleEnd( vector, i, start );
-            for ( int j = start; j < end; j++ ) {
-                if ( Float.isNaN( data[j] ) ) {
-                    continue;
+            accessor.select( i );
+            while ( accessor.next() ) {
+                if ( !Double.isNaN( accessor.getDouble() ) ) {
+                    d[i]++;
                 }
-                d[i]++;
             }
         }
         return d;
     }
 
-    private static int[] count( SingleCellExpressionDataVector vector, double[] data ) {
-        int[] d = new int[vector.getSingleCellDimension().getBioAssays().size()];
-        for ( int i = 0; i < d.length; i++ ) {
-            int start = getSampleStart( vector, i, 0 );
-            int end = getSampleEnd( vector, i, start );
-            for ( int j = start; j < end; j++ ) {
-                if ( Double.isNaN( data[j] ) ) {
-                    continue;
-                }
-                d[i]++;
-            }
-        }
-        return d;
-    }
-
-    private static int[] countCount( SingleCellExpressionDataVector vector, int[] data ) {
-        int[] d = new int[vector.getSingleCellDimension().getBioAssays().size()];
-        for ( int i = 0; i < d.length; i++ ) {
-            int start = getSampleStart( vector, i, 0 );
-            int end = getSampleEnd( vector, i, start );
-            for ( int j = start; j < end; j++ ) {
-                if ( data[j] == 0 ) {
-                    continue;
-                }
-                d[i]++;
-            }
-        }
-        return d;
-    }
-
-    private static int[] countCount( SingleCellExpressionDataVector vector, long[] data ) {
+    /**
+     * Count the non-zero values of integer counting data.
+     */
+    private static int[] countCount( SingleCellExpressionDataVector vector ) {
+        SingleCellExpressionDataVectorAccessor accessor = SingleCellExpressionDataVectorAccessor.of( vector );
         int[] d = new int[vector.getSingleCellDimension().getBioAssays().size()];
         for ( int i = 0; i < d.length; i++ ) {
-            int start = getSampleStart( vector, i, 0 );
-            int end = getSampleEnd( vector, i, start );
-            for ( int j = start; j < end; j++ ) {
-                if ( data[j] == 0L ) {
-                    continue;
+            accessor.select( i );
+            while ( accessor.next() ) {
+                if ( accessor.getLong() != 0L ) {
+                    d[i]++;
                 }
-                d[i]++;
             }
         }
         return d;
     }
 
-
-    private static int[] countCount( SingleCellExpressionDataVector vector, float[] data, float defaultValue ) {
+    private static int[] countCount( SingleCellExpressionDataVector vector, float defaultValue ) {
+        SingleCellExpressionDataVectorAccessor accessor = SingleCellExpressionDataVectorAccessor.of( vector );
         int[] d = new int[vector.getSingleCellDimension().getBioAssays().size()];
         for ( int i = 0; i < d.length; i++ ) {
-            int start = getSampleStart( vector, i, 0 );
-            int end = getSampleEnd( vector, i, start );
-            for ( int j = start; j < end; j++ ) {
-                if ( Float.isNaN( data[j] ) || data[j] == defaultValue ) {
-                    continue;
+            accessor.select( i );
+            while ( accessor.next() ) {
+                float v = accessor.getFloat();
+                if ( !Float.isNaN( v ) && v != defaultValue ) {
+                    d[i]++;
                 }
-                d[i]++;
             }
         }
         return d;
     }
 
-    private static int[] countCount( SingleCellExpressionDataVector vector, double[] data, double defaultValue ) {
+    private static int[] countCount( SingleCellExpressionDataVector vector, double defaultValue ) {
+        SingleCellExpressionDataVectorAccessor accessor = SingleCellExpressionDataVectorAccessor.of( vector );
         int[] d = new int[vector.getSingleCellDimension().getBioAssays().size()];
         for ( int i = 0; i < d.length; i++ ) {
-            int start = getSampleStart( vector, i, 0 );
-            int end = getSampleEnd( vector, i, start );
-            for ( int j = start; j < end; j++ ) {
-                if ( Double.isNaN( data[j] ) || data[j] == defaultValue ) {
-                    continue;
+            accessor.select( i );
+            while ( accessor.next() ) {
+                double v = accessor.getDouble();
+                if ( !Double.isNaN( v ) && v != defaultValue ) {
+                    d[i]++;
                 }
-                d[i]++;
             }
         }
         return d;
@@ -282,10 +258,9 @@ public class SingleCellDescriptive {
             int end = getSampleEnd( vector, sampleIndex, start );
             int[] dataIndices = vector.getDataIndices();
             for ( int i = start; i < end; i++ ) {
-                for ( int row = 0; row < numCharacteristics; row++ ) {
-                    if ( cellLevelCharacteristics.getIndices()[dataIndices[i]] == row ) {
-                        count[sampleIndex * numCharacteristics + row]++;
-                    }
+                int row = cellLevelCharacteristics.getIndices()[dataIndices[i]];
+                if ( row >= 0 && row < numCharacteristics ) {
+                    count[sampleIndex * numCharacteristics + row]++;
                 }
             }
             lastStart = end;
@@ -305,12 +280,11 @@ public class SingleCellDescriptive {
             int end = getSampleEnd( vector, sampleIndex, start );
             int[] dataIndices = vector.getDataIndices();
             for ( int i = start; i < end; i++ ) {
-                int cellIndex = dataIndices[i];
-                for ( int row = 0; row < numCharacteristicsWithUnknown; row++ ) {
-                    int cix = row == unknownIndex ? CellLevelCharacteristics.UNKNOWN_CHARACTERISTIC : row;
-                    if ( cellLevelCharacteristics.getIndices()[cellIndex] == cix ) {
-                        count[sampleIndex * numCharacteristicsWithUnknown + row]++;
-                    }
+                int cix = cellLevelCharacteristics.getIndices()[dataIndices[i]];
+                if ( cix == CellLevelCharacteristics.UNKNOWN_CHARACTERISTIC ) {
+                    count[sampleIndex * numCharacteristicsWithUnknown + unknownIndex]++;
+                } else if ( cix >= 0 && cix < numCharacteristics ) {
+                    count[sampleIndex * numCharacteristicsWithUnknown + cix]++;
                 }
             }
             lastStart = end;
@@ -323,310 +297,111 @@ public class SingleCellDescriptive {
      * @param threshold a threshold value, assumed to be in the {@link ScaleType} of the vector
      */
     public static int[] countAboveThreshold( SingleCellExpressionDataVector vector, double threshold ) {
-        Buffer buffer = vector.getDataAsBuffer();
+        SingleCellExpressionDataVectorAccessor accessor = accessor( vector, "countAboveThreshold" );
         int[] d = new int[vector.getSingleCellDimension().getBioAssays().size()];
         for ( int i = 0; i < d.length; i++ ) {
-            switch ( vector.getQuantitationType().getRepresentation() ) {
-                case FLOAT:
-                    assert buffer instanceof FloatBuffer;
-                    d[i] = countAboveThreshold( getSampleDataAsFloats( vector, ( FloatBuffer ) buffer, i ), threshold );
-                    break;
-                case DOUBLE:
-                    assert buffer instanceof DoubleBuffer;
-                    d[i] = countAboveThreshold( getSampleDataAsDoubles( vector, ( DoubleBuffer ) buffer, i ), threshold );
-                    break;
-                case INT:
-                    assert buffer instanceof IntBuffer;
-                    d[i] = countAboveThreshold( getSampleDataAsInts( vector, ( IntBuffer ) buffer, i ), threshold );
-                    break;
-                case LONG:
-                    assert buffer instanceof LongBuffer;
-                    d[i] = countAboveThreshold( getSampleDataAsLongs( vector, ( LongBuffer ) buffer, i ), threshold );
-                    break;
-                default:
-                    throw new UnsupportedOperationException( "Unsupported representation " + vector.getQuantitationType().getRepresentation() );
-
-            }
-        }
-        return d;
-    }
-
-    private static int countAboveThreshold( double[] data, double threshold ) {
-        int d = 0;
-        for ( double s : data ) {
-            if ( s > threshold ) {
-                d++;
-            }
-        }
-        return d;
-    }
-
-    private static int countAboveThreshold( float[] data, double threshold ) {
-        int d = 0;
-        for ( float s : data ) {
-            if ( s > threshold ) {
-                d++;
-            }
-        }
-        return d;
-    }
-
-    private static int countAboveThreshold( int[] data, double threshold ) {
-        int d = 0;
-        for ( int s : data ) {
-            if ( s > threshold ) {
-                d++;
-            }
-        }
-        return d;
-    }
-
-    private static int countAboveThreshold( long[] data, double threshold ) {
-        int d = 0;
-        for ( long s : data ) {
-            if ( s > threshold ) {
-                d++;
+            accessor.select( i );
+            while ( accessor.next() ) {
+                if ( accessor.getDouble() > threshold ) {
+                    d[i]++;
+                }
             }
         }
         return d;
     }
 
     private static double[] applyDescriptive( SingleCellExpressionDataVector vector, ToDoubleFunction<DoubleArrayList> func, String operation ) {
-        switch ( vector.getQuantitationType().getRepresentation() ) {
-            case FLOAT:
-                return applyFloatDescriptive( vector, func );
-            case DOUBLE:
-                return applyDoubleDescriptive( vector, func );
-            case INT:
-                return applyIntDescriptive( vector, func );
-            case LONG:
-                return applyLongDescriptive( vector, func );
-            default:
-                throw unsupportedRepresentation( vector.getQuantitationType().getRepresentation(), operation );
-        }
-    }
-
-    private static double[] applyFloatDescriptive( SingleCellExpressionDataVector vector, ToDoubleFunction<DoubleArrayList> func ) {
-        DoubleArrayList vec = null;
-        FloatBuffer buffer = vector.getDataAsFloatBuffer();
-        double[] d = new double[vector.getSingleCellDimension().getBioAssays().size()];
-        for ( int i = 0; i < d.length; i++ ) {
-            double[] data = float2double( getSampleDataAsFloats( vector, buffer, i ) );
-            if ( vec == null ) {
-                vec = new DoubleArrayList( data );
-            } else {
-                vec.elements( data );
-            }
-            d[i] = func.applyAsDouble( vec );
-        }
-        return d;
-    }
-
-    private static double[] applyDoubleDescriptive( SingleCellExpressionDataVector vector, ToDoubleFunction<DoubleArrayList> func ) {
-        DoubleArrayList vec = null;
+        SingleCellExpressionDataVectorAccessor accessor = accessor( vector, operation );
+        DoubleArrayList vec = new DoubleArrayList();
         double[] d = new double[vector.getSingleCellDimension().getBioAssays().size()];
         for ( int i = 0; i < d.length; i++ ) {
-            double[] data = getSampleDataAsDoubles( vector, i );
-            if ( vec == null ) {
-                vec = new DoubleArrayList( data );
-            } else {
-                vec.elements( data );
-            }
-            d[i] = func.applyAsDouble( vec );
-        }
-        return d;
-    }
-
-    private static double[] applyIntDescriptive( SingleCellExpressionDataVector vector, ToDoubleFunction<DoubleArrayList> func ) {
-        DoubleArrayList vec = null;
-        double[] d = new double[vector.getSingleCellDimension().getBioAssays().size()];
-        for ( int i = 0; i < d.length; i++ ) {
-            double[] data = int2double( getSampleDataAsInts( vector, i ) );
-            if ( vec == null ) {
-                vec = new DoubleArrayList( data );
-            } else {
-                vec.elements( data );
-            }
-            d[i] = func.applyAsDouble( vec );
-        }
-        return d;
-    }
-
-    private static double[] applyLongDescriptive( SingleCellExpressionDataVector vector, ToDoubleFunction<DoubleArrayList> func ) {
-        DoubleArrayList vec = null;
-        double[] d = new double[vector.getSingleCellDimension().getBioAssays().size()];
-        LongBuffer buffer = vector.getDataAsLongBuffer();
-        for ( int i = 0; i < d.length; i++ ) {
-            double[] data = long2double( getSampleDataAsLongs( vector, buffer, i ) );
-            if ( vec == null ) {
-                vec = new DoubleArrayList( data );
-            } else {
-                vec.elements( data );
-            }
-            d[i] = func.applyAsDouble( vec );
+            d[i] = func.applyAsDouble( accessor.select( i ).copyTo( vec ) );
         }
         return d;
     }
 
     private static double applyDescriptive( SingleCellExpressionDataVector vector, int sampleIndex, ToDoubleFunction<DoubleArrayList> func, String operation ) {
-        switch ( vector.getQuantitationType().getRepresentation() ) {
-            case FLOAT:
-                return func.applyAsDouble( new DoubleArrayList( float2double( getSampleDataAsFloats( vector, sampleIndex ) ) ) );
-            case DOUBLE:
-                return func.applyAsDouble( new DoubleArrayList( getSampleDataAsDoubles( vector, sampleIndex ) ) );
-            case INT:
-                return func.applyAsDouble( new DoubleArrayList( int2double( getSampleDataAsInts( vector, sampleIndex ) ) ) );
-            case LONG:
-                return func.applyAsDouble( new DoubleArrayList( long2double( getSampleDataAsLongs( vector, sampleIndex ) ) ) );
-            default:
-                throw unsupportedRepresentation( vector.getQuantitationType().getRepresentation(), operation );
-        }
+        return func.applyAsDouble( accessor( vector, operation ).select( sampleIndex ).copyTo( new DoubleArrayList() ) );
     }
 
     private static double[] applyDescriptive( SingleCellExpressionDataVector vector, CellLevelCharacteristics cellLevelCharacteristics, ToDoubleFunction<DoubleArrayList> func, String operation ) {
-        Buffer buffer = vector.getDataAsBuffer();
+        SingleCellExpressionDataVectorAccessor accessor = accessor( vector, operation );
+        DoubleArrayList vec = new DoubleArrayList();
         int numAssays = vector.getSingleCellDimension().getBioAssays().size();
         int numCharacteristics = cellLevelCharacteristics.getNumberOfCharacteristics();
         double[] result = new double[numAssays * numCharacteristics];
         for ( int sampleIndex = 0; sampleIndex < numAssays; sampleIndex++ ) {
             for ( int row = 0; row < numCharacteristics; row++ ) {
-                result[sampleIndex * numAssays + row] = applyDescriptive( vector, buffer, sampleIndex, cellLevelCharacteristics, row, func, operation );
+                accessor.select( sampleIndex, cellLevelCharacteristics, row );
+                result[sampleIndex * numCharacteristics + row] = func.applyAsDouble( accessor.copyTo( vec ) );
             }
         }
         return result;
     }
 
     private static double applyDescriptive( SingleCellExpressionDataVector vector, int sampleIndex, CellLevelCharacteristics cellLevelCharacteristics, int row, ToDoubleFunction<DoubleArrayList> func, String operation ) {
-        return applyDescriptive( vector, vector.getDataAsBuffer(), sampleIndex, cellLevelCharacteristics, row, func, operation );
-    }
-
-    private static double applyDescriptive( SingleCellExpressionDataVector vector, Buffer data, int sampleIndex, CellLevelCharacteristics cellLevelCharacteristics, int row, ToDoubleFunction<DoubleArrayList> func, String operation ) {
-        switch ( vector.getQuantitationType().getRepresentation() ) {
-            case FLOAT:
-                return func.applyAsDouble( new DoubleArrayList( float2double( getSampleDataAsFloats( vector, ( FloatBuffer ) data, sampleIndex, cellLevelCharacteristics, row ) ) ) );
-            case DOUBLE:
-                return func.applyAsDouble( new DoubleArrayList( getSampleDataAsDoubles( vector, ( DoubleBuffer ) data, sampleIndex, cellLevelCharacteristics, row ) ) );
-            case INT:
-                return func.applyAsDouble( new DoubleArrayList( int2double( getSampleDataAsInts( vector, ( IntBuffer ) data, sampleIndex, cellLevelCharacteristics, row ) ) ) );
-            case LONG:
-                return func.applyAsDouble( new DoubleArrayList( long2double( getSampleDataAsLongs( vector, ( LongBuffer ) data, sampleIndex, cellLevelCharacteristics, row ) ) ) );
-            default:
-                throw unsupportedRepresentation( vector.getQuantitationType().getRepresentation(), operation );
-        }
+        return func.applyAsDouble( accessor( vector, operation )
+                .select( sampleIndex, cellLevelCharacteristics, row )
+                .copyTo( new DoubleArrayList() ) );
     }
 
     public static double[] sum( SingleCellExpressionDataVector vector ) {
-        Buffer buffer = vector.getDataAsBuffer();
+        SingleCellExpressionDataVectorAccessor accessor = accessor( vector, "sum" );
         ScaleType scaleType = vector.getQuantitationType().getScale();
-        PrimitiveType representation = vector.getQuantitationType().getRepresentation();
+        DoubleArrayList vec = new DoubleArrayList();
         double[] d = new double[vector.getSingleCellDimension().getBioAssays().size()];
         for ( int i = 0; i < d.length; i++ ) {
-            switch ( representation ) {
-                case FLOAT:
-                    d[i] = DataVectorDescriptive.sum( getSampleDataAsFloats( vector, ( FloatBuffer ) buffer, i ), scaleType );
-                    break;
-                case DOUBLE:
-                    d[i] = DataVectorDescriptive.sum( getSampleDataAsDoubles( vector, ( DoubleBuffer ) buffer, i ), scaleType );
-                    break;
-                case INT:
-                    d[i] = DataVectorDescriptive.sum( getSampleDataAsInts( vector, ( IntBuffer ) buffer, i ), scaleType );
-                    break;
-                case LONG:
-                    d[i] = DataVectorDescriptive.sum( getSampleDataAsLongs( vector, ( LongBuffer ) buffer, i ), scaleType );
-                    break;
-                default:
-                    throw unsupportedRepresentation( representation, "sum" );
-            }
+            d[i] = sum( accessor.select( i ), scaleType, vec );
         }
         return d;
     }
 
     public static double[] sum( SingleCellExpressionDataVector vector, CellLevelCharacteristics cellLevelCharacteristics ) {
+        SingleCellExpressionDataVectorAccessor accessor = accessor( vector, "sum" );
         ScaleType scaleType = vector.getQuantitationType().getScale();
-        PrimitiveType representation = vector.getQuantitationType().getRepresentation();
+        DoubleArrayList vec = new DoubleArrayList();
         int numAssays = vector.getSingleCellDimension().getBioAssays().size();
         int numCharacteristics = cellLevelCharacteristics.getNumberOfCharacteristics();
         double[] d = new double[numAssays * numCharacteristics];
-        Buffer data = vector.getDataAsBuffer();
         for ( int i = 0; i < numAssays; i++ ) {
             for ( int j = 0; j < numCharacteristics; j++ ) {
-                switch ( representation ) {
-                    case FLOAT:
-                        d[i * numCharacteristics + j] = DataVectorDescriptive.sum( getSampleDataAsFloats( vector, ( FloatBuffer ) data, i, cellLevelCharacteristics, j ), scaleType );
-                        break;
-                    case DOUBLE:
-                        d[i * numCharacteristics + j] = DataVectorDescriptive.sum( getSampleDataAsDoubles( vector, ( DoubleBuffer ) data, i, cellLevelCharacteristics, j ), scaleType );
-                        break;
-                    case INT:
-                        d[i * numCharacteristics + j] = DataVectorDescriptive.sum( getSampleDataAsInts( vector, ( IntBuffer ) data, i, cellLevelCharacteristics, j ), scaleType );
-                        break;
-                    case LONG:
-                        d[i * numCharacteristics + j] = DataVectorDescriptive.sum( getSampleDataAsLongs( vector, ( LongBuffer ) data, i, cellLevelCharacteristics, j ), scaleType );
-                        break;
-                    default:
-                        throw unsupportedRepresentation( representation, "sum" );
-                }
+                d[i * numCharacteristics + j] = sum( accessor.select( i, cellLevelCharacteristics, j ), scaleType, vec );
             }
         }
         return d;
     }
 
     public static double[] sumWithUnknown( SingleCellExpressionDataVector vector, CellLevelCharacteristics cellLevelCharacteristics ) {
+        SingleCellExpressionDataVectorAccessor accessor = accessor( vector, "sum" );
         ScaleType scaleType = vector.getQuantitationType().getScale();
-        PrimitiveType representation = vector.getQuantitationType().getRepresentation();
+        DoubleArrayList vec = new DoubleArrayList();
         int numAssays = vector.getSingleCellDimension().getBioAssays().size();
         // reserve one extra for unknown
         int numCharacteristics = cellLevelCharacteristics.getNumberOfCharacteristics();
         int numCharacteristicsWithUnknown = numCharacteristics + 1;
         int unknownIndex = numCharacteristics; // the last index is for unknown characteristics
         double[] d = new double[numAssays * numCharacteristicsWithUnknown];
-        Buffer data = vector.getDataAsBuffer();
         for ( int i = 0; i < numAssays; i++ ) {
             for ( int j = 0; j < numCharacteristicsWithUnknown; j++ ) {
-                int ix = i * numCharacteristicsWithUnknown + j;
-                int characteristicIndex = j == unknownIndex ? -1 : j;
-                switch ( representation ) {
-                    case FLOAT:
-                        d[ix] = DataVectorDescriptive.sum( getSampleDataAsFloats( vector, ( FloatBuffer ) data, i, cellLevelCharacteristics, characteristicIndex ), scaleType );
-                        break;
-                    case DOUBLE:
-                        d[ix] = DataVectorDescriptive.sum( getSampleDataAsDoubles( vector, ( DoubleBuffer ) data, i, cellLevelCharacteristics, characteristicIndex ), scaleType );
-                        break;
-                    case INT:
-                        d[ix] = DataVectorDescriptive.sum( getSampleDataAsInts( vector, ( IntBuffer ) data, i, cellLevelCharacteristics, characteristicIndex ), scaleType );
-                        break;
-                    case LONG:
-                        d[ix] = DataVectorDescriptive.sum( getSampleDataAsLongs( vector, ( LongBuffer ) data, i, cellLevelCharacteristics, characteristicIndex ), scaleType );
-                        break;
-                    default:
-                        throw unsupportedRepresentation( representation, "sum" );
-                }
+                int characteristicIndex = j == unknownIndex ? CellLevelCharacteristics.UNKNOWN_CHARACTERISTIC : j;
+                accessor.select( i, cellLevelCharacteristics, characteristicIndex );
+                d[i * numCharacteristicsWithUnknown + j] = sum( accessor, scaleType, vec );
             }
         }
         return d;
     }
 
     public static double[] sumUnscaled( SingleCellExpressionDataVector vector ) {
-        Buffer buffer = vector.getDataAsBuffer();
+        SingleCellExpressionDataVectorAccessor accessor = accessor( vector, "sumUnscaled" );
         ScaleType scaleType = vector.getQuantitationType().getScale();
-        PrimitiveType representation = vector.getQuantitationType().getRepresentation();
+        DoubleArrayList vec = new DoubleArrayList();
         double[] d = new double[vector.getSingleCellDimension().getBioAssays().size()];
         for ( int i = 0; i < d.length; i++ ) {
-            switch ( representation ) {
-                case FLOAT:
-                    d[i] = DataVectorDescriptive.sumUnscaled( getSampleDataAsFloats( vector, ( FloatBuffer ) buffer, i ), scaleType );
-                    break;
-                case DOUBLE:
-                    d[i] = DataVectorDescriptive.sumUnscaled( getSampleDataAsDoubles( vector, ( DoubleBuffer ) buffer, i ), scaleType );
-                    break;
-                case INT:
-                    d[i] = DataVectorDescriptive.sumUnscaled( getSampleDataAsInts( vector, ( IntBuffer ) buffer, i ), scaleType );
-                    break;
-                case LONG:
-                    d[i] = DataVectorDescriptive.sumUnscaled( getSampleDataAsLongs( vector, ( LongBuffer ) buffer, i ), scaleType );
-                    break;
-                default:
-                    throw unsupportedRepresentation( representation, "sumUnscaled" );
+            accessor.select( i );
+            if ( isInteger( accessor ) ) {
+                d[i] = sumOfIntegers( accessor, scaleType );
+            } else {
+                d[i] = DataVectorDescriptive.sumUnscaled( accessor.copyTo( vec ), scaleType );
             }
         }
         return d;
@@ -636,30 +411,12 @@ public class SingleCellDescriptive {
      * Calculate the mean of each assay for a given vector.
      */
     public static double[] mean( SingleCellExpressionDataVector vector ) {
-        Buffer buffer = vector.getDataAsBuffer();
+        SingleCellExpressionDataVectorAccessor accessor = accessor( vector, "mean" );
         ScaleType scaleType = vector.getQuantitationType().getScale();
+        DoubleArrayList vec = new DoubleArrayList();
         double[] d = new double[vector.getSingleCellDimension().getBioAssays().size()];
         for ( int i = 0; i < d.length; i++ ) {
-            switch ( vector.getQuantitationType().getRepresentation() ) {
-                case FLOAT:
-                    assert buffer instanceof FloatBuffer;
-                    d[i] = DataVectorDescriptive.mean( getSampleDataAsFloats( vector, ( FloatBuffer ) buffer, i ), scaleType );
-                    break;
-                case DOUBLE:
-                    assert buffer instanceof DoubleBuffer;
-                    d[i] = DataVectorDescriptive.mean( getSampleDataAsDoubles( vector, ( DoubleBuffer ) buffer, i ), scaleType );
-                    break;
-                case INT:
-                    assert buffer instanceof IntBuffer;
-                    d[i] = DataVectorDescriptive.mean( getSampleDataAsInts( vector, ( IntBuffer ) buffer, i ), scaleType );
-                    break;
-                case LONG:
-                    assert buffer instanceof LongBuffer;
-                    d[i] = DataVectorDescriptive.mean( getSampleDataAsLongs( vector, ( LongBuffer ) buffer, i ), scaleType );
-                    break;
-                default:
-                    throw unsupportedRepresentation( vector.getQuantitationType().getRepresentation(), "mean" );
-            }
+            d[i] = mean( accessor.select( i ), scaleType, vec );
         }
         return d;
     }
@@ -668,41 +425,15 @@ public class SingleCellDescriptive {
      * Calculate the mean of a given assay.
      */
     public static double mean( SingleCellExpressionDataVector vector, BioAssay sample ) {
-        int sampleIndex = vector.getSingleCellDimension().getBioAssays().indexOf( sample );
-        if ( sampleIndex == -1 ) {
-            throw new IllegalArgumentException( "Sample not found in vector" );
-        }
-        return mean( vector, sampleIndex );
+        return mean( vector, getSampleIndex( vector, sample ) );
     }
 
     public static double mean( SingleCellExpressionDataVector vector, int sampleIndex ) {
-        switch ( vector.getQuantitationType().getRepresentation() ) {
-            case FLOAT:
-                return DataVectorDescriptive.mean( getSampleDataAsFloats( vector, sampleIndex ), vector.getQuantitationType().getScale() );
-            case DOUBLE:
-                return DataVectorDescriptive.mean( getSampleDataAsDoubles( vector, sampleIndex ), vector.getQuantitationType().getScale() );
-            case INT:
-                return DataVectorDescriptive.mean( getSampleDataAsInts( vector, sampleIndex ), vector.getQuantitationType().getScale() );
-            case LONG:
-                return DataVectorDescriptive.mean( getSampleDataAsLongs( vector, sampleIndex ), vector.getQuantitationType().getScale() );
-            default:
-                throw unsupportedRepresentation( vector.getQuantitationType().getRepresentation(), "mean" );
-        }
+        return mean( accessor( vector, "mean" ).select( sampleIndex ), vector.getQuantitationType().getScale(), new DoubleArrayList() );
     }
 
     public static double mean( SingleCellExpressionDataVector vector, int sampleIndex, CellLevelCharacteristics cellLevelCharacteristics, int row ) {
-        switch ( vector.getQuantitationType().getRepresentation() ) {
-            case FLOAT:
-                return DataVectorDescriptive.mean( getSampleDataAsFloats( vector, sampleIndex, cellLevelCharacteristics, row ), vector.getQuantitationType().getScale() );
-            case DOUBLE:
-                return DataVectorDescriptive.mean( getSampleDataAsDoubles( vector, sampleIndex, cellLevelCharacteristics, row ), vector.getQuantitationType().getScale() );
-            case INT:
-                return DataVectorDescriptive.mean( getSampleDataAsInts( vector, sampleIndex, cellLevelCharacteristics, row ), vector.getQuantitationType().getScale() );
-            case LONG:
-                return DataVectorDescriptive.mean( getSampleDataAsLongs( vector, sampleIndex, cellLevelCharacteristics, row ), vector.getQuantitationType().getScale() );
-            default:
-                throw unsupportedRepresentation( vector.getQuantitationType().getRepresentation(), "mean" );
-        }
+        return mean( accessor( vector, "mean" ).select( sampleIndex, cellLevelCharacteristics, row ), vector.getQuantitationType().getScale(), new DoubleArrayList() );
     }
 
     /**
@@ -713,7 +444,7 @@ public class SingleCellDescriptive {
     }
 
     public static double median( SingleCellExpressionDataVector vector, int column ) {
-        return quantile( vector, 0.5 )[column];
+        return quantile( vector, column, 0.5 );
     }
 
     public static double median( SingleCellExpressionDataVector vector, int column, CellLevelCharacteristics cellLevelCharacteristics, int row ) {
@@ -721,160 +452,57 @@ public class SingleCellDescriptive {
     }
 
     public static double[] quantile( SingleCellExpressionDataVector vector, double q ) {
-        Buffer buffer = vector.getDataAsBuffer();
-        PrimitiveType representation = vector.getQuantitationType().getRepresentation();
-        DoubleArrayList vec = null;
+        SingleCellExpressionDataVectorAccessor accessor = accessor( vector, "median" );
+        DoubleArrayList vec = new DoubleArrayList();
         double[] d = new double[vector.getSingleCellDimension().getBioAssays().size()];
         for ( int i = 0; i < d.length; i++ ) {
-            double[] data;
-            switch ( representation ) {
-                case FLOAT:
-                    data = float2double( getSampleDataAsFloats( vector, ( FloatBuffer ) buffer, i ) );
-                    break;
-                case DOUBLE:
-                    data = getSampleDataAsDoubles( vector, ( DoubleBuffer ) buffer, i );
-                    break;
-                case INT:
-                    data = int2double( getSampleDataAsInts( vector, ( IntBuffer ) buffer, i ) );
-                    break;
-                case LONG:
-                    data = long2double( getSampleDataAsLongs( vector, ( LongBuffer ) buffer, i ) );
-                    break;
-                default:
-                    throw unsupportedRepresentation( representation, "median" );
-            }
-            if ( vec == null ) {
-                vec = new DoubleArrayList( data );
-            } else {
-                vec.elements( data );
-            }
-            if ( representation == PrimitiveType.FLOAT || representation == PrimitiveType.DOUBLE ) {
-                // baseCode will sort it for us
-                d[i] = DescriptiveWithMissing.quantile( vec, q );
-            } else {
-                // colt does not sort data... :S
-                vec.sort();
-                d[i] = Descriptive.quantile( vec, q );
-            }
+            d[i] = quantile( accessor.select( i ), q, vec );
         }
         return d;
     }
 
     public static double quantile( SingleCellExpressionDataVector vector, int sampleIndex, double v ) {
-        return quantile( vector, v )[sampleIndex];
+        return quantile( accessor( vector, "median" ).select( sampleIndex ), v, new DoubleArrayList() );
     }
 
     public static double[] quantile( SingleCellExpressionDataVector vector, CellLevelCharacteristics cellLevelCharacteristics, int row, double q ) {
-        PrimitiveType representation = vector.getQuantitationType().getRepresentation();
-        DoubleArrayList vec = null;
+        SingleCellExpressionDataVectorAccessor accessor = accessor( vector, "median" );
+        DoubleArrayList vec = new DoubleArrayList();
         double[] d = new double[vector.getSingleCellDimension().getBioAssays().size()];
         for ( int i = 0; i < d.length; i++ ) {
-            double[] data;
-            switch ( representation ) {
-                case FLOAT:
-                    data = float2double( getSampleDataAsFloats( vector, i, cellLevelCharacteristics, row ) );
-                    break;
-                case DOUBLE:
-                    data = getSampleDataAsDoubles( vector, i, cellLevelCharacteristics, row );
-                    break;
-                case INT:
-                    data = int2double( getSampleDataAsInts( vector, i, cellLevelCharacteristics, row ) );
-                    break;
-                case LONG:
-                    data = long2double( getSampleDataAsLongs( vector, i, cellLevelCharacteristics, row ) );
-                    break;
-                default:
-                    throw unsupportedRepresentation( representation, "median" );
-            }
-            if ( vec == null ) {
-                vec = new DoubleArrayList( data );
-            } else {
-                vec.elements( data );
-            }
-            if ( representation == PrimitiveType.FLOAT || representation == PrimitiveType.DOUBLE ) {
-                // baseCode will sort it for us
-                d[i] = DescriptiveWithMissing.quantile( vec, q );
-            } else {
-                // colt does not sort data... :S
-                vec.sort();
-                d[i] = Descriptive.quantile( vec, q );
-            }
+            d[i] = quantile( accessor.select( i, cellLevelCharacteristics, row ), q, vec );
         }
         return d;
     }
 
     public static double quantile( SingleCellExpressionDataVector vector, int sampleIndex, CellLevelCharacteristics cellLevelCharacteristics, int row, double q ) {
-        return quantile( vector, cellLevelCharacteristics, row, q )[sampleIndex];
+        return quantile( accessor( vector, "median" ).select( sampleIndex, cellLevelCharacteristics, row ), q, new DoubleArrayList() );
     }
 
     public static double[] sampleStandardDeviation( SingleCellExpressionDataVector vector ) {
-        Buffer buffer = vector.getDataAsBuffer();
+        SingleCellExpressionDataVectorAccessor accessor = accessor( vector, "sampleStandardDeviation" );
         ScaleType scaleType = vector.getQuantitationType().getScale();
-        PrimitiveType representation = vector.getQuantitationType().getRepresentation();
+        DoubleArrayList vec = new DoubleArrayList();
         double[] d = new double[vector.getSingleCellDimension().getBioAssays().size()];
         for ( int i = 0; i < d.length; i++ ) {
-            switch ( representation ) {
-                case FLOAT:
-                    d[i] = DataVectorDescriptive.sampleStandardDeviation( getSampleDataAsFloats( vector, ( FloatBuffer ) buffer, i ), scaleType );
-                    break;
-                case DOUBLE:
-                    d[i] = DataVectorDescriptive.sampleStandardDeviation( getSampleDataAsDoubles( vector, ( DoubleBuffer ) buffer, i ), scaleType );
-                    break;
-                case INT:
-                    d[i] = DataVectorDescriptive.sampleStandardDeviation( getSampleDataAsInts( vector, ( IntBuffer ) buffer, i ), scaleType );
-                    break;
-                case LONG:
-                    d[i] = DataVectorDescriptive.sampleStandardDeviation( getSampleDataAsLongs( vector, ( LongBuffer ) buffer, i ), scaleType );
-                    break;
-                default:
-                    throw unsupportedRepresentation( representation, "sampleStandardDeviation" );
-            }
+            d[i] = sampleStandardDeviation( accessor.select( i ), scaleType, vec );
         }
         return d;
     }
 
     public static double sampleStandardDeviation( SingleCellExpressionDataVector vector, BioAssay sample ) {
-        int sampleIndex = vector.getSingleCellDimension().getBioAssays().indexOf( sample );
-        if ( sampleIndex == -1 ) {
-            throw new IllegalArgumentException( "Sample not found in vector" );
-        }
-        PrimitiveType representation = vector.getQuantitationType().getRepresentation();
-        switch ( representation ) {
-            case FLOAT:
-                return DataVectorDescriptive.sampleStandardDeviation( getSampleDataAsFloats( vector, sampleIndex ), vector.getQuantitationType().getScale() );
-            case DOUBLE:
-                return DataVectorDescriptive.sampleStandardDeviation( getSampleDataAsDoubles( vector, sampleIndex ), vector.getQuantitationType().getScale() );
-            case INT:
-                return DataVectorDescriptive.sampleStandardDeviation( getSampleDataAsInts( vector, sampleIndex ), vector.getQuantitationType().getScale() );
-            case LONG:
-                return DataVectorDescriptive.sampleStandardDeviation( getSampleDataAsLongs( vector, sampleIndex ), vector.getQuantitationType().getScale() );
-            default:
-                throw unsupportedRepresentation( representation, "sampleStandardDeviation" );
-        }
+        int sampleIndex = getSampleIndex( vector, sample );
+        return sampleStandardDeviation( accessor( vector, "sampleStandardDeviation" ).select( sampleIndex ),
+                vector.getQuantitationType().getScale(), new DoubleArrayList() );
     }
 
     public static double[] sampleVariance( SingleCellExpressionDataVector vector ) {
-        Buffer buffer = vector.getDataAsBuffer();
+        SingleCellExpressionDataVectorAccessor accessor = accessor( vector, "sampleVariance" );
         ScaleType scaleType = vector.getQuantitationType().getScale();
-        PrimitiveType representation = vector.getQuantitationType().getRepresentation();
+        DoubleArrayList vec = new DoubleArrayList();
         double[] d = new double[vector.getSingleCellDimension().getBioAssays().size()];
         for ( int i = 0; i < d.length; i++ ) {
-            switch ( representation ) {
-                case FLOAT:
-                    d[i] = DataVectorDescriptive.sampleVariance( getSampleDataAsFloats( vector, ( FloatBuffer ) buffer, i ), scaleType );
-                    break;
-                case DOUBLE:
-                    d[i] = DataVectorDescriptive.sampleVariance( getSampleDataAsDoubles( vector, ( DoubleBuffer ) buffer, i ), scaleType );
-                    break;
-                case INT:
-                    d[i] = DataVectorDescriptive.sampleVariance( getSampleDataAsInts( vector, ( IntBuffer ) buffer, i ), scaleType );
-                    break;
-                case LONG:
-                    d[i] = DataVectorDescriptive.sampleVariance( getSampleDataAsLongs( vector, ( LongBuffer ) buffer, i ), scaleType );
-                    break;
-                default:
-                    throw unsupportedRepresentation( representation, "sampleVariance" );
-            }
+            d[i] = sampleVariance( accessor.select( i ), scaleType, vec );
         }
         return d;
     }
@@ -883,47 +511,92 @@ public class SingleCellDescriptive {
      * Calculate the variance of a given assay.
      */
     public static double sampleVariance( SingleCellExpressionDataVector vector, BioAssay sample ) {
-        int sampleIndex = vector.getSingleCellDimension().getBioAssays().indexOf( sample );
-        if ( sampleIndex == -1 ) {
-            throw new IllegalArgumentException( "Sample not found in vector" );
+        int sampleIndex = getSampleIndex( vector, sample );
+        return sampleVariance( accessor( vector, "sampleVariance" ).select( sampleIndex ),
+                vector.getQuantitationType().getScale(), new DoubleArrayList() );
+    }
+
+    /*
+     * Statistics for the current selection of an accessor. The list is used as a scratch space if the values need to
+     * be copied.
+     */
+
+    private static double sum( SingleCellExpressionDataVectorAccessor accessor, ScaleType scaleType, DoubleArrayList vec ) {
+        if ( isInteger( accessor ) ) {
+            return sumOfIntegers( accessor, scaleType );
+        }
+        return DataVectorDescriptive.sum( accessor.copyTo( vec ), scaleType );
+    }
+
+    private static long sumOfIntegers( SingleCellExpressionDataVectorAccessor accessor, ScaleType scaleType ) {
+        Assert.isTrue( scaleType == ScaleType.COUNT );
+        long s = 0;
+        while ( accessor.next() ) {
+            s += accessor.getLong();
+        }
+        return s;
+    }
+
+    private static double mean( SingleCellExpressionDataVectorAccessor accessor, ScaleType scaleType, DoubleArrayList vec ) {
+        if ( isInteger( accessor ) ) {
+            return ( double ) sumOfIntegers( accessor, scaleType ) / ( double ) accessor.size();
+        }
+        return DataVectorDescriptive.mean( accessor.copyTo( vec ), scaleType );
+    }
+
+    private static double quantile( SingleCellExpressionDataVectorAccessor accessor, double q, DoubleArrayList vec ) {
+        accessor.copyTo( vec );
+        if ( isInteger( accessor ) ) {
+            // colt does not sort data... :S
+            vec.sort();
+            return Descriptive.quantile( vec, q );
+        } else {
+            // baseCode will sort it for us
+            return DescriptiveWithMissing.quantile( vec, q );
+        }
+    }
+
+    private static double sampleStandardDeviation( SingleCellExpressionDataVectorAccessor accessor, ScaleType scaleType, DoubleArrayList vec ) {
+        if ( isInteger( accessor ) ) {
+            // FIXME: baseCode does not include the sample size correction
+            return Descriptive.sampleStandardDeviation( accessor.size(), sampleVariance( accessor, scaleType, vec ) );
         }
+        return DataVectorDescriptive.sampleStandardDeviation( accessor.copyTo( vec ), scaleType );
+    }
+
+    private static double sampleVariance( SingleCellExpressionDataVectorAccessor accessor, ScaleType scaleType, DoubleArrayList vec ) {
+        if ( isInteger( accessor ) ) {
+            Assert.isTrue( scaleType == ScaleType.COUNT );
+            accessor.copyTo( vec );
+            // no need to use DescriptiveWithMissing for integer data
+            return Descriptive.sampleVariance( vec, Descriptive.mean( vec ) );
+        }
+        return DataVectorDescriptive.sampleVariance( accessor.copyTo( vec ), scaleType );
+    }
+
+    private static boolean isInteger( SingleCellExpressionDataVectorAccessor accessor ) {
+        return accessor.getRepresentation() == PrimitiveType.INT || accessor.getRepresentation() == PrimitiveType.LONG;
+    }
+
+    private static SingleCellExpressionDataVectorAccessor accessor( SingleCellExpressionDataVector vector, String operation ) {
         PrimitiveType representation = vector.getQuantitationType().getRepresentation();
         switch ( representation ) {
             case FLOAT:
-                return DataVectorDescriptive.sampleVariance( getSampleDataAsFloats( vector, sampleIndex ), vector.getQuantitationType().getScale() );
             case DOUBLE:
-                return DataVectorDescriptive.sampleVariance( getSampleDataAsDoubles( vector, sampleIndex ), vector.getQuantitationType().getScale() );
             case INT:
-                return DataVectorDescriptive.sampleVariance( getSampleDataAsInts( vector, sampleIndex ), vector.getQuantitationType().getScale() );
             case LONG:
-                return DataVectorDescriptive.sampleVariance( getSampleDataAsLongs( vector, sampleIndex ), vector.getQuantitationType().getScale() );
+                return SingleCellExpressionDataVectorAccessor.of( vector );
             default:
-                throw unsupportedRepresentation( representation, "sampleVariance" );
-        }
-    }
-
-    private static double[] float2double( float[] data ) {
-        double[] dataAsDoubles = new double[data.length];
-        for ( int i = 0; i < data.length; i++ ) {
-            dataAsDoubles[i] = data[i];
-        }
-        return dataAsDoubles;
-    }
-
-    private static double[] int2double( int[] data ) {
-        double[] dataAsDoubles = new double[data.length];
-        for ( int i = 0; i < data.length; i++ ) {
-            dataAsDoubles[i] = data[i];
+                throw unsupportedRepresentation( representation, operation );
         }
-        return dataAsDoubles;
     }
 
-    private static double[] long2double( long[] data ) {
-        double[] dataAsDoubles = new double[data.length];
-        for ( int i = 0; i < data.length; i++ ) {
-            dataAsDoubles[i] = data[i];
+    private static int getSampleIndex( SingleCellExpressionDataVector vector, BioAssay sample ) {
+        int sampleIndex = vector.getSingleCellDimension().getBioAssays().indexOf( sample );
+        if ( sampleIndex == -1 ) {
+            throw new IllegalArgumentException( "Sample not found in vector" );
         }
-        return dataAsDoubles;
+        return sampleIndex;
     }
 
     private static UnsupportedOperationException unsupportedRepresentation( PrimitiveType representation, String operation ) {
@@ -2,18 +2,14 @@ package ubic.gemma.core.analysis.singleCell;
 
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
-import ubic.gemma.model.common.quantitationtype.PrimitiveType;
 import ubic.gemma.model.common.quantitationtype.ScaleType;
 import ubic.gemma.model.expression.bioAssayData.CellLevelCharacteristics;
 import ubic.gemma.model.expression.bioAssayData.SingleCellExpressionDataVector;
+import ubic.gemma.model.expression.bioAssayData.SingleCellExpressionDataVectorAccessor;
 
 import javax.annotation.Nullable;
-import java.nio.*;
 import java.util.Collection;
 
-import static ubic.gemma.model.expression.bioAssayData.SingleCellExpressionDataVectorUtils.getSampleEnd;
-import static ubic.gemma.model.expression.bioAssayData.SingleCellExpressionDataVectorUtils.getSampleStart;
-
 /**
  * Compute sparsity metrics for single cell data.
  * @author poirigui
@@ -98,35 +94,16 @@ public class SingleCellSparsityMetrics {
      * Populate a boolean vector that indicates if a cell has at least one expressed gene.
      */
     public void addExpressedCells( SingleCellExpressionDataVector vector, int sampleIndex, @Nullable CellLevelCharacteristics cellLevelCharacteristics, int characteristicIndex, boolean[] isExpressed ) {
-        int start = getSampleStart( vector, sampleIndex, 0 );
-        int end = getSampleEnd( vector, sampleIndex, start );
-        Buffer buf = vector.getDataAsBuffer();
-        for ( int i = start; i < end; i++ ) {
-            int cellIndex = vector.getDataIndices()[i];
-            if ( isExpressed[cellIndex] ) {
-                continue;
-            }
-            if ( isExpressed( getDouble( buf, i, vector.getQuantitationType().getRepresentation() ), vector.getQuantitationType().getScale() ) && ( cellLevelCharacteristics == null || hasCharacteristic( cellIndex, cellLevelCharacteristics, characteristicIndex ) ) ) {
+        SingleCellExpressionDataVectorAccessor accessor = select( vector, sampleIndex, cellLevelCharacteristics, characteristicIndex );
+        ScaleType scaleType = vector.getQuantitationType().getScale();
+        while ( accessor.next() ) {
+            int cellIndex = accessor.getCellIndex();
+            if ( !isExpressed[cellIndex] && isExpressed( accessor.getDouble(), scaleType ) ) {
                 isExpressed[cellIndex] = true;
             }
         }
     }
 
-    private double getDouble( Buffer buffer, int k, PrimitiveType representation ) {
-        switch ( representation ) {
-            case FLOAT:
-                return ( ( FloatBuffer ) buffer ).get( k );
-            case DOUBLE:
-                return ( ( DoubleBuffer ) buffer ).get( k );
-            case INT:
-                return ( ( IntBuffer ) buffer ).get( k );
-            case LONG:
-                return ( ( LongBuffer ) buffer ).get( k );
-            default:
-                throw new UnsupportedOperationException( "Unsupported representation " + representation );
-        }
-    }
-
     /**
      * Calculate the number of genes expressed in at least one cell.
      */
@@ -139,13 +116,10 @@ public class SingleCellSparsityMetrics {
     }
 
     public int getNumberOfDesignElements( SingleCellExpressionDataVector vector, int sampleIndex, @Nullable CellLevelCharacteristics characteristic, int characteristicIndex ) {
-        int start = getSampleStart( vector, sampleIndex, 0 );
-        int end = getSampleEnd( vector, sampleIndex, start );
-        Buffer buf = vector.getDataAsBuffer();
-        PrimitiveType representation = vector.getQuantitationType().getRepresentation();
-        for ( int i = start; i < end; i++ ) {
-            int cellIndex = vector.getDataIndices()[i];
-            if ( isExpressed( getDouble( buf, i, representation ), vector.getQuantitationType().getScale() ) && ( characteristic == null || hasCharacteristic( cellIndex, characteristic, characteristicIndex ) ) ) {
+        SingleCellExpressionDataVectorAccessor accessor = select( vector, sampleIndex, characteristic, characteristicIndex );
+        ScaleType scaleType = vector.getQuantitationType().getScale();
+        while ( accessor.next() ) {
+            if ( isExpressed( accessor.getDouble(), scaleType ) ) {
                 return 1;
             }
         }
@@ -165,13 +139,10 @@ public class SingleCellSparsityMetrics {
 
     public int getNumberOfCellsByDesignElements( SingleCellExpressionDataVector vector, int sampleIndex, @Nullable CellLevelCharacteristics cellLevelCharacteristics, int characteristicIndex ) {
         int count = 0;
-        int start = getSampleStart( vector, sampleIndex, 0 );
-        int end = getSampleEnd( vector, sampleIndex, start );
-        Buffer buf = vector.getDataAsBuffer();
-        PrimitiveType representation = vector.getQuantitationType().getRepresentation();
-        for ( int i = start; i < end; i++ ) {
-            int cellIndex = vector.getDataIndices()[i];
-            if ( isExpressed( getDouble( buf, i, representation ), vector.getQuantitationType().getScale() ) && ( cellLevelCharacteristics == null || hasCharacteristic( cellIndex, cellLevelCharacteristics, characteristicIndex ) ) ) {
+        SingleCellExpressionDataVectorAccessor accessor = select( vector, sampleIndex, cellLevelCharacteristics, characteristicIndex );
+        ScaleType scaleType = vector.getQuantitationType().getScale();
+        while ( accessor.next() ) {
+            if ( isExpressed( accessor.getDouble(), scaleType ) ) {
                 count++;
             }
         }
@@ -179,10 +150,15 @@ public class SingleCellSparsityMetrics {
     }
 
     /**
-     * Check if a given cell has a given characteristic.
+     * Select the cells of a sample, optionally restricted to those having a given characteristic.
      */
-    private boolean hasCharacteristic( int cellIndex, CellLevelCharacteristics cellLevelCharacteristics, int characteristicIndex ) {
-        return cellLevelCharacteristics.getIndices()[cellIndex] == characteristicIndex;
+    private SingleCellExpressionDataVectorAccessor select( SingleCellExpressionDataVector vector, int sampleIndex, @Nullable CellLevelCharacteristics cellLevelCharacteristics, int characteristicIndex ) {
+        SingleCellExpressionDataVectorAccessor accessor = SingleCellExpressionDataVectorAccessor.of( vector );
+        if ( cellLevelCharacteristics != null ) {
+            return accessor.select( sampleIndex, cellLevelCharacteristics, characteristicIndex );
+        } else {
+            return accessor.select( sampleIndex );
+        }
     }
 
     /**
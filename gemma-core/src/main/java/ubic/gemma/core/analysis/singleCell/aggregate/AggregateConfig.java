@@ -35,4 +35,21 @@ class AggregateConfig {
      * The default is to exclude them as if they were simply filtered out.
      */
     boolean includeMaskedCellsInLibrarySize;
+    /**
+     * Number of threads to use for aggregating vectors.
+     */
+    @Builder.Default
+    int numThreads = 1;
+    /**
+     * Number of vectors to fetch at once from the database.
+     * <p>
+     * Vectors are also handed to the aggregation threads in batches of that size.
+     */
+    @Builder.Default
+    int fetchSize = 30;
+    /**
+     * Use cursor fetching to stream vectors if supported by the database.
+     */
+    @Builder.Default
+    boolean useCursorFetchIfSupported = true;
 }
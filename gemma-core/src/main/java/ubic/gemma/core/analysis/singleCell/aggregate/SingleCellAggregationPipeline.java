@@ -0,0 +1,348 @@
+package ubic.gemma.core.analysis.singleCell.aggregate;
+
+import ubic.gemma.core.analysis.singleCell.SingleCellSparsityMetrics;
+import ubic.gemma.core.analysis.singleCell.aggregate.SingleCellExpressionExperimentAggregatorServiceImpl.SingleCellExpressionAggregationMethod;
+import ubic.gemma.core.util.concurrent.Executors;
+import ubic.gemma.core.util.concurrent.SimpleThreadFactory;
+import ubic.gemma.model.expression.bioAssayData.CellLevelCharacteristics;
+import ubic.gemma.model.expression.bioAssayData.SingleCellExpressionDataVector;
+import ubic.gemma.model.expression.bioAssayData.SingleCellExpressionDataVectorAccessor;
+import ubic.gemma.model.expression.designElement.CompositeSequence;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregate single-cell vectors with a pool of workers as they are read.
+ * <p>
+ * Vectors are submitted in batches by the thread that reads them, typically from a database cursor. Each vector is
+ * summed by a worker into one value per aggregated assay. Library sizes are accumulated by one task per source sample
+ * and batch, and the tasks of a given source sample are chained so that values are added in the same order as a single
+ * pass over the vectors would. The results are thus identical regardless of the number of threads.
+ * <p>
+ * The number of batches in flight is bounded, so only a few batches of vectors are held in memory at any time. The
+ * aggregated values are kept as raw sums and are not transformed: that can only happen once all the library sizes are
+ * known.
+ */
+class SingleCellAggregationPipeline implements AutoCloseable {
+
+    private final int numSamples;
+    private final int[] sourceSampleIndices;
+    private final int[] cellTypeIndices;
+    private final CellLevelCharacteristics cellLevelCharacteristics;
+    private final int[] cellLevelCharacteristicsIndices;
+    @Nullable
+    private final boolean[] mask;
+    private final SingleCellExpressionAggregationMethod method;
+
+    /*
+     * library sizes, null if they are not computed
+     */
+    @Nullable
+    private final boolean[] librarySizeMask;
+    @Nullable
+    private final double[] librarySize;
+    @Nullable
+    private final double[] sourceLibrarySize;
+    /**
+     * Aggregated samples grouped by the index of their source sample.
+     */
+    private final int[][] samplesBySourceSample;
+    private final CompletableFuture<?>[] librarySizeTasks;
+
+    /*
+     * sparsity metrics, null if they are not computed
+     */
+    @Nullable
+    private final SingleCellSparsityMetrics metrics;
+    @Nullable
+    private final boolean[][] expressedCells;
+    private final int[] numberOfDesignElements;
+    private final int[] numberOfCellsByDesignElements;
+
+    private final ExecutorService executor;
+    private final int maxBatchesInFlight;
+    private final Deque<CompletableFuture<?>> batchesInFlight = new ArrayDeque<>();
+
+    private final List<CompositeSequence> designElements = new ArrayList<>();
+    private final List<double[]> aggregatedData = new ArrayList<>();
+
+    private final LongAdder aggregationTime = new LongAdder();
+    private final LongAdder librarySizeTime = new LongAdder();
+    private long waitTime = 0;
+
+    /**
+     * @param sourceSampleIndices      index of the source sample of each aggregated sample in the single-cell dimension
+     * @param cellTypeIndices          index of the characteristic of each aggregated sample
+     * @param numSourceSamples         number of samples in the single-cell dimension
+     * @param numCells                 number of cells in the single-cell dimension
+     * @param mask                     mask applied to the cells that are aggregated
+     * @param computeLibrarySizes      compute library sizes
+     * @param librarySizeMask          mask applied to the cells that are included in the library sizes
+     * @param metrics                  sparsity metrics to compute, or null to skip them
+     * @param numThreads               number of worker threads
+     */
+    SingleCellAggregationPipeline( int[] sourceSampleIndices, int[] cellTypeIndices, int numSourceSamples, int numCells,
+            CellLevelCharacteristics cellLevelCharacteristics, @Nullable boolean[] mask,
+            SingleCellExpressionAggregationMethod method,
+            boolean computeLibrarySizes, @Nullable boolean[] librarySizeMask,
+            @Nullable SingleCellSparsityMetrics metrics, int numThreads ) {
+        this.numSamples = sourceSampleIndices.length;
+        this.sourceSampleIndices = sourceSampleIndices;
+        this.cellTypeIndices = cellTypeIndices;
+        this.cellLevelCharacteristics = cellLevelCharacteristics;
+        // this might be lazily loaded, so it must be done before the workers access it
+        this.cellLevelCharacteristicsIndices = cellLevelCharacteristics.getIndices();
+        this.mask = mask;
+        this.method = method;
+        this.librarySizeMask = librarySizeMask;
+        if ( computeLibrarySizes ) {
+            this.librarySize = new double[numSamples];
+            this.sourceLibrarySize = new double[numSourceSamples];
+        } else {
+            this.librarySize = null;
+            this.sourceLibrarySize = null;
+        }
+        int[] numSamplesBySourceSample = new int[numSourceSamples];
+        for ( int sourceSampleIndex : sourceSampleIndices ) {
+            numSamplesBySourceSample[sourceSampleIndex]++;
+        }
+        this.samplesBySourceSample = new int[numSourceSamples][];
+        for ( int s = 0; s < numSourceSamples; s++ ) {
+            samplesBySourceSample[s] = new int[numSamplesBySourceSample[s]];
+            numSamplesBySourceSample[s] = 0;
+        }
+        for ( int i = 0; i < numSamples; i++ ) {
+            int s = sourceSampleIndices[i];
+            samplesBySourceSample[s][numSamplesBySourceSample[s]++] = i;
+        }
+        this.librarySizeTasks = new CompletableFuture[numSourceSamples];
+        Arrays.fill( librarySizeTasks, CompletableFuture.completedFuture( null ) );
+        this.metrics = metrics;
+        this.expressedCells = metrics != null ? new boolean[numSamples][numCells] : null;
+        this.numberOfDesignElements = new int[numSamples];
+        this.numberOfCellsByDesignElements = new int[numSamples];
+        this.executor = Executors.newFixedThreadPool( numThreads, new SimpleThreadFactory( "gemma-single-cell-aggregation-thread-" ) );
+        // one batch for each worker and one being read
+        this.maxBatchesInFlight = numThreads + 1;
+    }
+
+    /**
+     * Submit a batch of vectors for aggregation.
+     * <p>
+     * This blocks if too many batches are already in flight. The batch must not be modified afterward.
+     */
+    public void submit( List<SingleCellExpressionDataVector> batch ) {
+        List<CompletableFuture<?>> tasks = new ArrayList<>( batch.size() + samplesBySourceSample.length );
+        for ( SingleCellExpressionDataVector vector : batch ) {
+            double[] rv = new double[numSamples];
+            designElements.add( vector.getDesignElement() );
+            aggregatedData.add( rv );
+            tasks.add( CompletableFuture.runAsync( () -> aggregate( vector, rv ), executor ) );
+        }
+        if ( librarySize != null ) {
+            for ( int s = 0; s < samplesBySourceSample.length; s++ ) {
+                if ( samplesBySourceSample[s].length == 0 ) {
+                    continue;
+                }
+                int sourceSampleIndex = s;
+                librarySizeTasks[s] = librarySizeTasks[s]
+                        .thenRunAsync( () -> accumulateLibrarySizes( batch, sourceSampleIndex ), executor );
+                tasks.add( librarySizeTasks[s] );
+            }
+        }
+        batchesInFlight.add( CompletableFuture.allOf( tasks.toArray( new CompletableFuture[0] ) ) );
+        while ( batchesInFlight.size() > maxBatchesInFlight ) {
+            await( batchesInFlight.remove() );
+        }
+    }
+
+    /**
+     * Wait for all the submitted batches to be aggregated.
+     */
+    public void finish() {
+        while ( !batchesInFlight.isEmpty() ) {
+            await( batchesInFlight.remove() );
+        }
+    }
+
+    /**
+     * Design elements of the aggregated vectors, in the order they were submitted.
+     */
+    public List<CompositeSequence> getDesignElements() {
+        return designElements;
+    }
+
+    /**
+     * Aggregated data, in the order the vectors were submitted.
+     * <p>
+     * The values are sums in the linear scale, regardless of the aggregation method.
+     */
+    public List<double[]> getAggregatedData() {
+        return aggregatedData;
+    }
+
+    /**
+     * Library size of each aggregated sample.
+     */
+    @Nullable
+    public double[] getLibrarySize() {
+        return librarySize;
+    }
+
+    /**
+     * Library size of each source sample.
+     */
+    @Nullable
+    public double[] getSourceLibrarySize() {
+        return sourceLibrarySize;
+    }
+
+    /**
+     * Number of cells with at least one expressed gene for each aggregated sample.
+     */
+    public int getNumberOfCells( int sampleIndex ) {
+        if ( expressedCells == null ) {
+            throw new IllegalStateException( "Sparsity metrics were not computed." );
+        }
+        int count = 0;
+        for ( boolean b : expressedCells[sampleIndex] ) {
+            if ( b ) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getNumberOfDesignElements( int sampleIndex ) {
+        return numberOfDesignElements[sampleIndex];
+    }
+
+    public int getNumberOfCellsByDesignElements( int sampleIndex ) {
+        return numberOfCellsByDesignElements[sampleIndex];
+    }
+
+    /**
+     * Time spent aggregating vectors, summed over all the workers.
+     */
+    public long getAggregationTime( TimeUnit unit ) {
+        return unit.convert( aggregationTime.sum(), TimeUnit.NANOSECONDS );
+    }
+
+    /**
+     * Time spent computing library sizes, summed over all the workers.
+     */
+    public long getLibrarySizeTime( TimeUnit unit ) {
+        return unit.convert( librarySizeTime.sum(), TimeUnit.NANOSECONDS );
+    }
+
+    /**
+     * Time spent by the submitting thread waiting for the workers.
+     */
+    public long getWaitTime( TimeUnit unit ) {
+        return unit.convert( waitTime, TimeUnit.NANOSECONDS );
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void aggregate( SingleCellExpressionDataVector vector, double[] rv ) {
+        long startTime = System.nanoTime();
+        SingleCellExpressionDataVectorAccessor accessor = SingleCellExpressionDataVectorAccessor.of( vector );
+        int[] vectorNumberOfDesignElements = metrics != null ? new int[numSamples] : null;
+        int[] vectorNumberOfCellsByDesignElements = metrics != null ? new int[numSamples] : null;
+        for ( int i = 0; i < numSamples; i++ ) {
+            int sourceSampleIndex = sourceSampleIndices[i];
+            int cellTypeIndex = cellTypeIndices[i];
+            accessor.select( sourceSampleIndex, cellLevelCharacteristics, cellTypeIndex );
+            while ( accessor.next() ) {
+                if ( mask != null && mask[accessor.getCellIndex()] ) {
+                    continue;
+                }
+                rv[i] += unscale( accessor.getDouble() );
+            }
+            if ( metrics != null ) {
+                // writing true concurrently in the same array is safe
+                metrics.addExpressedCells( vector, sourceSampleIndex, cellLevelCharacteristics, cellTypeIndex, expressedCells[i] );
+                vectorNumberOfDesignElements[i] = metrics.getNumberOfDesignElements( vector, sourceSampleIndex, cellLevelCharacteristics, cellTypeIndex );
+                vectorNumberOfCellsByDesignElements[i] = metrics.getNumberOfCellsByDesignElements( vector, sourceSampleIndex, cellLevelCharacteristics, cellTypeIndex );
+            }
+        }
+        if ( metrics != null ) {
+            synchronized ( this ) {
+                for ( int i = 0; i < numSamples; i++ ) {
+                    numberOfDesignElements[i] += vectorNumberOfDesignElements[i];
+                    numberOfCellsByDesignElements[i] += vectorNumberOfCellsByDesignElements[i];
+                }
+            }
+        }
+        aggregationTime.add( System.nanoTime() - startTime );
+    }
+
+    /**
+     * Accumulate the library sizes of a source sample and its aggregated samples over a batch of vectors.
+     * <p>
+     * Only one task at a time may run for a given source sample.
+     */
+    private void accumulateLibrarySizes( List<SingleCellExpressionDataVector> batch, int sourceSampleIndex ) {
+        assert librarySize != null && sourceLibrarySize != null;
+        long startTime = System.nanoTime();
+        for ( SingleCellExpressionDataVector vector : batch ) {
+            SingleCellExpressionDataVectorAccessor accessor = SingleCellExpressionDataVectorAccessor.of( vector );
+            for ( int i : samplesBySourceSample[sourceSampleIndex] ) {
+                int cellTypeIndex = cellTypeIndices[i];
+                accessor.select( sourceSampleIndex );
+                while ( accessor.next() ) {
+                    int cellIndex = accessor.getCellIndex();
+                    if ( librarySizeMask != null && librarySizeMask[cellIndex] ) {
+                        continue;
+                    }
+                    double unscaledValue = unscale( accessor.getDouble() );
+                    if ( cellTypeIndex == cellLevelCharacteristicsIndices[cellIndex] ) {
+                        librarySize[i] += unscaledValue;
+                    }
+                    sourceLibrarySize[sourceSampleIndex] += unscaledValue;
+                }
+            }
+        }
+        librarySizeTime.add( System.nanoTime() - startTime );
+    }
+
+    private double unscale( double value ) {
+        switch ( method ) {
+            case SUM:
+                return value;
+            case LOG_SUM:
+                return Math.exp( value );
+            case LOG1P_SUM:
+                return Math.expm1( value );
+            default:
+                throw new UnsupportedOperationException( "Unsupported aggregation method: " + method );
+        }
+    }
+
+    private void await( CompletableFuture<?> future ) {
+        long startTime = System.nanoTime();
+        try {
+            future.get();
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Aggregation was interrupted.", e );
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw ( RuntimeException ) e.getCause();
+            } else {
+                throw new RuntimeException( e.getCause() );
+            }
+        } finally {
+            waitTime += System.nanoTime() - startTime;
+        }
+    }
+}
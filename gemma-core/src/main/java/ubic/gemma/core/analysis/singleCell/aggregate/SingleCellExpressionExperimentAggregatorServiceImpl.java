@@ -2,6 +2,7 @@ package ubic.gemma.core.analysis.singleCell.aggregate;
 
 import lombok.extern.apachecommons.CommonsLog;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.StopWatch;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -14,6 +15,7 @@ import ubic.gemma.model.common.description.Characteristic;
 import ubic.gemma.model.common.quantitationtype.*;
 import ubic.gemma.model.expression.bioAssay.BioAssay;
 import ubic.gemma.model.expression.bioAssayData.*;
+import ubic.gemma.model.expression.designElement.CompositeSequence;
 import ubic.gemma.model.expression.experiment.ExperimentalFactor;
 import ubic.gemma.model.expression.experiment.ExpressionExperiment;
 import ubic.gemma.model.expression.experiment.FactorValue;
@@ -25,14 +27,13 @@ import ubic.gemma.persistence.service.expression.experiment.ExpressionExperiment
 import ubic.gemma.persistence.service.expression.experiment.SingleCellExpressionExperimentService;
 
 import javax.annotation.Nullable;
-import java.nio.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static java.util.Objects.requireNonNull;
 import static ubic.gemma.core.analysis.singleCell.aggregate.CellLevelCharacteristicsMappingUtils.createMappingByFactorValueCharacteristics;
-import static ubic.gemma.model.expression.bioAssayData.SingleCellExpressionDataVectorUtils.getSampleEnd;
-import static ubic.gemma.model.expression.bioAssayData.SingleCellExpressionDataVectorUtils.getSampleStart;
 
 /**
  * Aggregates single-cell expression data.
@@ -78,21 +79,21 @@ public class SingleCellExpressionExperimentAggregatorServiceImpl implements Sing
     @Override
     @Transactional
     public QuantitationType aggregateVectors( ExpressionExperiment ee, QuantitationType qt, List<BioAssay> cellBAs, CellLevelCharacteristics cellLevelCharacteristics, ExperimentalFactor factor, Map<Characteristic, FactorValue> cellType2Factor, AggregateConfig config ) throws UnsupportedScaleTypeForAggregationException {
-        // FIXME: this is needed because if EE is not in the session, getSingleCellDataVectors() will retrieve
+        // FIXME: this is needed because if EE is not in the session, streamSingleCellDataVectors() will retrieve
         //        a distinct QT than that of ee.getQuantitationTypes()
         ee = expressionExperimentService.reload( ee );
         qt = quantitationTypeService.reload( qt );
-        SingleCellExpressionExperimentService.SingleCellVectorInitializationConfig vectorInitConfig = SingleCellExpressionExperimentService.SingleCellVectorInitializationConfig.builder()
-                .includeCellIds( false )
-                .includeData( true )
-                .includeDataIndices( true )
-                .build();
-        Collection<SingleCellExpressionDataVector> vectors = singleCellExpressionExperimentService.getSingleCellDataVectors( ee, qt, vectorInitConfig );
-        if ( vectors.isEmpty() ) {
+        Assert.isTrue( config.getNumThreads() > 0, "The number of threads must be strictly positive." );
+        Assert.isTrue( config.getFetchSize() > 0, "The fetch size must be strictly positive." );
+        long numVectors = singleCellExpressionExperimentService.getNumberOfSingleCellDataVectors( ee, qt );
+        if ( numVectors == 0 ) {
             throw new IllegalStateException( ee + " does not have single-cell vectors for " + qt + "." );
         }
 
-        SingleCellDimension scd = vectors.iterator().next().getSingleCellDimension();
+        SingleCellDimension scd = singleCellExpressionExperimentService.getSingleCellDimensionWithoutCellIds( ee, qt );
+        if ( scd == null ) {
+            throw new IllegalStateException( qt + " from " + ee + " does not have an associated single-cell dimension." );
+        }
         // check the QT and determine how to aggregate its data
         // TODO: support other types and representations for aggregation
         Assert.isTrue( qt.getGeneralType().equals( GeneralType.QUANTITATIVE ), "Only quantitative data can be aggregated." );
@@ -164,23 +165,105 @@ public class SingleCellExpressionExperimentAggregatorServiceImpl implements Sing
             mask = null;
         }
 
-        Map<BioAssay, Integer> sourceSampleToIndex = ListUtils.indexOfElements( vectors.iterator().next().getSingleCellDimension().getBioAssays() );
+        Map<BioAssay, Integer> sourceSampleToIndex = ListUtils.indexOfElements( scd.getBioAssays() );
+        List<BioAssay> samples = newBad.getBioAssays();
+        int[] sourceSampleIndices = new int[samples.size()];
+        int[] sampleCellTypeIndices = new int[samples.size()];
+        for ( int i = 0; i < samples.size(); i++ ) {
+            BioAssay sample = samples.get( i );
+            BioAssay sourceSample = sourceBioAssayMap.get( sample );
+            sourceSampleIndices[i] = requireNonNull( sourceSampleToIndex.get( sourceSample ),
+                    () -> "Could not locate the source sample of " + sample + " (" + sourceSample + ") in " + scd + "." );
+            sampleCellTypeIndices[i] = cellTypeIndices.get( sample );
+        }
 
-        double[] normalizationFactor;
-        double[] librarySize;
-        Map<BioAssay, Double> sourceSampleLibrarySizeAdjustments = new HashMap<>();
         if ( canLog2cpm ) {
             log.info( "Original data uses the COUNT type, but a log2cpm transformation will be performed, the resulting type for the aggregate will be AMOUNT." );
             newQt.setType( StandardQuantitationType.AMOUNT );
             newQt.setScale( ScaleType.LOG2 );
+        }
+
+        // aggregate the vectors as they are streamed, library sizes are computed in the same pass
+        SingleCellExpressionExperimentService.SingleCellVectorInitializationConfig vectorInitConfig = SingleCellExpressionExperimentService.SingleCellVectorInitializationConfig.builder()
+                .includeCellIds( false )
+                .includeData( true )
+                .includeDataIndices( true )
+                .build();
+        List<CompositeSequence> designElements;
+        List<double[]> aggregatedData;
+        double[] librarySize;
+        double[] sourceLibrarySize;
+        int[] numberOfCells, numberOfDesignElements, numberOfCellsByDesignElements;
+        StopWatch timer = StopWatch.createStarted();
+        long readTime = 0;
+        try ( SingleCellAggregationPipeline pipeline = new SingleCellAggregationPipeline( sourceSampleIndices,
+                sampleCellTypeIndices, scd.getBioAssays().size(), scd.getNumberOfCells(), cellLevelCharacteristics,
+                mask, method, canLog2cpm,
+                // when including masked cells, do not allow the calculation to consider the mask
+                config.isIncludeMaskedCellsInLibrarySize() ? null : mask,
+                config.isMakePreferred() ? metrics : null, config.getNumThreads() );
+                Stream<SingleCellExpressionDataVector> stream = singleCellExpressionExperimentService.streamSingleCellDataVectors( ee, qt,
+                        config.getFetchSize(), config.isUseCursorFetchIfSupported(), false, vectorInitConfig ) ) {
+            Iterator<SingleCellExpressionDataVector> it = stream.iterator();
+            List<SingleCellExpressionDataVector> batch = new ArrayList<>( config.getFetchSize() );
+            int numRead = 0;
+            while ( true ) {
+                long startTime = System.nanoTime();
+                boolean hasNext = it.hasNext();
+                SingleCellExpressionDataVector v = hasNext ? it.next() : null;
+                readTime += System.nanoTime() - startTime;
+                if ( v != null ) {
+                    batch.add( v );
+                    if ( ++numRead % 1000 == 0 ) {
+                        log.info( String.format( "Aggregated %d/%d single-cell vectors.", numRead, numVectors ) );
+                    }
+                }
+                if ( batch.size() >= config.getFetchSize() || ( !hasNext && !batch.isEmpty() ) ) {
+                    pipeline.submit( batch );
+                    batch = new ArrayList<>( config.getFetchSize() );
+                }
+                if ( !hasNext ) {
+                    break;
+                }
+            }
+            pipeline.finish();
+            if ( pipeline.getDesignElements().isEmpty() ) {
+                throw new IllegalStateException( ee + " does not have single-cell vectors for " + qt + "." );
+            }
+            designElements = pipeline.getDesignElements();
+            aggregatedData = pipeline.getAggregatedData();
+            librarySize = pipeline.getLibrarySize();
+            sourceLibrarySize = pipeline.getSourceLibrarySize();
+            if ( config.isMakePreferred() ) {
+                numberOfCells = new int[samples.size()];
+                numberOfDesignElements = new int[samples.size()];
+                numberOfCellsByDesignElements = new int[samples.size()];
+                for ( int i = 0; i < samples.size(); i++ ) {
+                    numberOfCells[i] = pipeline.getNumberOfCells( i );
+                    numberOfDesignElements[i] = pipeline.getNumberOfDesignElements( i );
+                    numberOfCellsByDesignElements[i] = pipeline.getNumberOfCellsByDesignElements( i );
+                }
+            } else {
+                numberOfCells = null;
+                numberOfDesignElements = null;
+                numberOfCellsByDesignElements = null;
+            }
+            log.info( String.format( "Aggregated %d single-cell vectors with %d threads in %d ms (reading: %d ms, aggregating: %d ms, library sizes: %d ms, waiting for workers: %d ms).",
+                    designElements.size(), config.getNumThreads(), timer.getTime(),
+                    TimeUnit.NANOSECONDS.toMillis( readTime ), pipeline.getAggregationTime( TimeUnit.MILLISECONDS ),
+                    pipeline.getLibrarySizeTime( TimeUnit.MILLISECONDS ), pipeline.getWaitTime( TimeUnit.MILLISECONDS ) ) );
+        }
+
+        double[] normalizationFactor;
+        Map<BioAssay, Double> sourceSampleLibrarySizeAdjustments = new HashMap<>();
+        if ( canLog2cpm ) {
+            assert librarySize != null && sourceLibrarySize != null;
             // TODO: compute normalization factors from data
             normalizationFactor = new double[cellBAs.size()];
             Arrays.fill( normalizationFactor, 1.0 );
-            librarySize = computeLibrarySize( vectors, newBad, cellLevelCharacteristics,
-                    // when including masked cells, do not allow the calculation to consider the mask
-                    config.isIncludeMaskedCellsInLibrarySize() ? null : mask,
-                    sourceBioAssayMap, sourceSampleToIndex, sourceSampleLibrarySizeAdjustments, cellTypeIndices,
-                    method, config.isAdjustLibrarySizes() );
+            if ( config.isAdjustLibrarySizes() ) {
+                adjustLibrarySizes( newBad, librarySize, sourceLibrarySize, sourceBioAssayMap, sourceSampleToIndex, sourceSampleLibrarySizeAdjustments );
+            }
             for ( int i = 0; i < librarySize.length; i++ ) {
                 if ( librarySize[i] == 0 ) {
                     log.warn( "Library size for " + cellBAs.get( i ) + " is zero, this will cause NaN values in the log2cpm transformation." );
@@ -188,7 +271,6 @@ public class SingleCellExpressionExperimentAggregatorServiceImpl implements Sing
             }
         } else {
             normalizationFactor = null;
-            librarySize = null;
         }
 
         // update sequencing metadata
@@ -196,57 +278,32 @@ public class SingleCellExpressionExperimentAggregatorServiceImpl implements Sing
             updateSequenceReadCounts( newBad, librarySize );
         }
 
-        // sparsity metrics, only needed for preferred QTs
-        Map<BioAssay, boolean[]> cellsByBioAssay;
-        Map<BioAssay, Integer> designElementsByBioAssay;
-        Map<BioAssay, Integer> cellByDesignElementByBioAssay;
-        if ( config.isMakePreferred() ) {
-            cellsByBioAssay = new HashMap<>();
-            designElementsByBioAssay = new HashMap<>();
-            cellByDesignElementByBioAssay = new HashMap<>();
-        } else {
-            cellsByBioAssay = null;
-            designElementsByBioAssay = null;
-            cellByDesignElementByBioAssay = null;
-        }
-
-        Collection<RawExpressionDataVector> rawVectors = new ArrayList<>( vectors.size() );
-        for ( SingleCellExpressionDataVector v : vectors ) {
+        Collection<RawExpressionDataVector> rawVectors = new ArrayList<>( designElements.size() );
+        for ( int j = 0; j < designElements.size(); j++ ) {
             RawExpressionDataVector rawVector = new RawExpressionDataVector();
             rawVector.setExpressionExperiment( ee );
             rawVector.setQuantitationType( newQt );
             rawVector.setBioAssayDimension( newBad );
-            rawVector.setDesignElement( v.getDesignElement() );
-            rawVector.setDataAsDoubles( aggregateData( v, newBad, cellLevelCharacteristics, mask, sourceBioAssayMap, sourceSampleToIndex, cellTypeIndices, method, cellsByBioAssay, designElementsByBioAssay, cellByDesignElementByBioAssay, canLog2cpm, normalizationFactor, librarySize ) );
+            rawVector.setDesignElement( designElements.get( j ) );
+            rawVector.setDataAsDoubles( transformData( aggregatedData.get( j ), method, canLog2cpm, normalizationFactor, librarySize ) );
             rawVectors.add( rawVector );
-            if ( rawVectors.size() % 1000 == 0 ) {
-                log.info( String.format( "Aggregated %d/%d single-cell vectors.", rawVectors.size(), vectors.size() ) );
-            }
         }
 
         if ( config.isMakePreferred() ) {
             log.info( "Applying single-cell sparsity metrics to the aggregated assays..." );
-            for ( BioAssay ba : cellBAs ) {
-                assert cellsByBioAssay != null;
-                boolean[] expressedCells = cellsByBioAssay.get( ba );
-                if ( expressedCells != null ) {
-                    int count = 0;
-                    for ( boolean b : expressedCells ) {
-                        if ( b ) {
-                            count++;
-                        }
-                    }
-                    ba.setNumberOfCells( count );
-                } else {
-                    ba.setNumberOfCells( 0 );
-                }
-                ba.setNumberOfDesignElements( designElementsByBioAssay.getOrDefault( ba, 0 ) );
-                ba.setNumberOfCellsByDesignElements( cellByDesignElementByBioAssay.getOrDefault( ba, 0 ) );
+            for ( int i = 0; i < cellBAs.size(); i++ ) {
+                BioAssay ba = cellBAs.get( i );
+                ba.setNumberOfCells( numberOfCells[i] );
+                ba.setNumberOfDesignElements( numberOfDesignElements[i] );
+                ba.setNumberOfCellsByDesignElements( numberOfCellsByDesignElements[i] );
             }
             bioAssayService.update( cellBAs );
         }
 
+        timer.reset();
+        timer.start();
         int newVecs = expressionExperimentService.addRawDataVectors( ee, newQt, rawVectors );
+        log.info( String.format( "Persisted %d aggregated vectors in %d ms.", newVecs, timer.getTime() ) );
         String note = String.format( "Created %d aggregated raw vectors for %s.", newVecs, newQt );
         StringBuilder details = new StringBuilder();
         details.append( "Single-cell quantitation type: " ).append( qt ).append( "\n" );
@@ -328,141 +385,51 @@ public class SingleCellExpressionExperimentAggregatorServiceImpl implements Sing
     }
 
     /**
-     * Compute the library size for each sample.
+     * Adjust the library sizes to reflect the number of reads in the source samples.
      */
-    private double[] computeLibrarySize( Collection<SingleCellExpressionDataVector> vectors,
-            BioAssayDimension bad, CellLevelCharacteristics cta,
-            @Nullable boolean[] mask,
-            Map<BioAssay, BioAssay> sourceBioAssayMap, Map<BioAssay, Integer> sourceSampleToIndex, Map<BioAssay, Double> sourceSampleLibrarySizeAdjustments, Map<BioAssay, Integer> cellTypeIndices, SingleCellExpressionAggregationMethod method, boolean adjustLibrarySizes ) throws IllegalStateException {
-        List<BioAssay> samples = bad.getBioAssays();
-        int numSamples = samples.size();
-        int numSourceSamples = sourceSampleToIndex.size();
-        // library sizes of the sub-assays
-        double[] librarySize = new double[numSamples];
-        // library sizes of the source assays
-        double[] sourceLibrarySize = new double[numSourceSamples];
-        for ( SingleCellExpressionDataVector scv : vectors ) {
-            PrimitiveType representation = scv.getQuantitationType().getRepresentation();
-            Buffer scrv = scv.getDataAsBuffer();
-            for ( int i = 0; i < numSamples; i++ ) {
-                BioAssay sample = samples.get( i );
-                BioAssay sourceSample = sourceBioAssayMap.get( sample );
-                // comparing index is *much* faster than checking for equality
-                int cellTypeIndex = cellTypeIndices.get( sample );
-                int sourceSampleIndex = requireNonNull( sourceSampleToIndex.get( sourceSample ),
-                        () -> "Could not locate the source sample of " + sample + " (" + sourceSample + ") in " + scv.getSingleCellDimension() + "." );
-                // samples are not necessarily ordered, so we cannot use the start=end trick
-                int start = getSampleStart( scv, sourceSampleIndex, 0 );
-                int end = getSampleEnd( scv, sourceSampleIndex, start );
-                for ( int k = start; k < end; k++ ) {
-                    int cellIndex = scv.getDataIndices()[k];
-                    if ( mask != null && mask[cellIndex] ) {
-                        continue;
-                    }
-                    double unscaledValue;
-                    if ( method == SingleCellExpressionAggregationMethod.SUM ) {
-                        unscaledValue = getDouble( scrv, k, representation );
-                    } else if ( method == SingleCellExpressionAggregationMethod.LOG_SUM ) {
-                        unscaledValue = Math.exp( getDouble( scrv, k, representation ) );
-                    } else if ( method == SingleCellExpressionAggregationMethod.LOG1P_SUM ) {
-                        unscaledValue = Math.expm1( getDouble( scrv, k, representation ) );
-                    } else {
-                        throw new UnsupportedOperationException( "Unsupported aggregation method: " + method );
-                    }
-                    if ( cellTypeIndex == cta.getIndices()[cellIndex] ) {
-                        librarySize[i] += unscaledValue;
-                    }
-                    sourceLibrarySize[sourceSampleIndex] += unscaledValue;
-                }
-            }
-        }
-        if ( adjustLibrarySizes ) {
-            log.info( "Adjusting library sizes..." );
-            for ( Map.Entry<BioAssay, Integer> e : sourceSampleToIndex.entrySet() ) {
-                BioAssay sourceSample = e.getKey();
-                int sourceSampleIndex = e.getValue();
-                if ( sourceSample.getSequenceReadCount() == null )
-                    continue;
-                if ( sourceSample.getSequenceReadCount() < sourceLibrarySize[sourceSampleIndex] ) {
-                    throw new IllegalStateException(
-                            String.format( "The library size for %s (%.2f) exceeds the number of reads (%d).",
-                                    sourceSample, sourceLibrarySize[sourceSampleIndex], sourceSample.getSequenceReadCount() ) );
+    private void adjustLibrarySizes( BioAssayDimension bad, double[] librarySize, double[] sourceLibrarySize,
+            Map<BioAssay, BioAssay> sourceBioAssayMap, Map<BioAssay, Integer> sourceSampleToIndex,
+            Map<BioAssay, Double> sourceSampleLibrarySizeAdjustments ) throws IllegalStateException {
+        log.info( "Adjusting library sizes..." );
+        for ( Map.Entry<BioAssay, Integer> e : sourceSampleToIndex.entrySet() ) {
+            BioAssay sourceSample = e.getKey();
+            int sourceSampleIndex = e.getValue();
+            if ( sourceSample.getSequenceReadCount() == null )
+                continue;
+            if ( sourceSample.getSequenceReadCount() < sourceLibrarySize[sourceSampleIndex] ) {
+                throw new IllegalStateException(
+                        String.format( "The library size for %s (%.2f) exceeds the number of reads (%d).",
+                                sourceSample, sourceLibrarySize[sourceSampleIndex], sourceSample.getSequenceReadCount() ) );
 
-                }
-                sourceSampleLibrarySizeAdjustments.put( sourceSample, sourceSample.getSequenceReadCount() / sourceLibrarySize[e.getValue()] );
             }
-            // adjust library sizes
-            for ( int i = 0; i < librarySize.length; i++ ) {
-                BioAssay sample = bad.getBioAssays().get( i );
-                BioAssay sourceSample = sourceBioAssayMap.get( sample );
-                Double adjustment = sourceSampleLibrarySizeAdjustments.get( sourceSample );
-                if ( adjustment == null ) {
-                    continue;
-                }
-                // this will scale the library size to the number of reads in the source sample instead of the number of
-                // reads that we recorded in the vectors
-                librarySize[i] *= adjustment;
+            sourceSampleLibrarySizeAdjustments.put( sourceSample, sourceSample.getSequenceReadCount() / sourceLibrarySize[e.getValue()] );
+        }
+        // adjust library sizes
+        for ( int i = 0; i < librarySize.length; i++ ) {
+            BioAssay sample = bad.getBioAssays().get( i );
+            BioAssay sourceSample = sourceBioAssayMap.get( sample );
+            Double adjustment = sourceSampleLibrarySizeAdjustments.get( sourceSample );
+            if ( adjustment == null ) {
+                continue;
             }
+            // this will scale the library size to the number of reads in the source sample instead of the number of
+            // reads that we recorded in the vectors
+            librarySize[i] *= adjustment;
         }
-        return librarySize;
     }
 
     /**
-     * Aggregate the single-cell data to match the target BAD.
+     * Transform aggregated sums back to the scale of the data, or to log2cpm.
      *
+     * @param rv             aggregated sums in the linear scale, transformed in-place
      * @param performLog2cpm whether to perform log2cpm transformation or not, if provided librarySize must be set
      * @param librarySize    library size for each sample, used for log2cpm transformation
      */
-    private double[] aggregateData(
-            SingleCellExpressionDataVector scv,
-            BioAssayDimension bad,
-            CellLevelCharacteristics cta,
-            @Nullable boolean[] mask,
-            Map<BioAssay, BioAssay> sourceBioAssayMap,
-            Map<BioAssay, Integer> sourceSampleToIndex,
-            Map<BioAssay, Integer> cellTypeIndices,
-            SingleCellExpressionAggregationMethod method,
-            @Nullable Map<BioAssay, boolean[]> cellsByBioAssay,
-            @Nullable Map<BioAssay, Integer> designElementsByBioAssay,
-            @Nullable Map<BioAssay, Integer> cellByDesignElementByBioAssay,
-            boolean performLog2cpm,
-            @Nullable double[] normalizationFactor,
-            @Nullable double[] librarySize ) {
+    private double[] transformData( double[] rv, SingleCellExpressionAggregationMethod method, boolean performLog2cpm,
+            @Nullable double[] normalizationFactor, @Nullable double[] librarySize ) {
         Assert.isTrue( !performLog2cpm || ( normalizationFactor != null && librarySize != null ),
                 "Normalization factors and library size must be provided for log2cpm transformation." );
-        List<BioAssay> samples = bad.getBioAssays();
-        int numSamples = samples.size();
-        double[] rv = new double[numSamples];
-        Buffer scrv = scv.getDataAsBuffer();
-        PrimitiveType representation = scv.getQuantitationType().getRepresentation();
-        for ( int i = 0; i < numSamples; i++ ) {
-            BioAssay sample = samples.get( i );
-            BioAssay sourceSample = sourceBioAssayMap.get( sample );
-            int sourceSampleIndex = requireNonNull( sourceSampleToIndex.get( sourceSample ),
-                    () -> "Could not locate the source sample of " + sample + " (" + sourceSample + ") in " + scv.getSingleCellDimension() + "." );
-            Integer cellTypeIndex = cellTypeIndices.get( sample );
-            // samples are not necessarily ordered, so we cannot use the start=end trick
-            int start = getSampleStart( scv, sourceSampleIndex, 0 );
-            int end = getSampleEnd( scv, sourceSampleIndex, start );
-            rv[i] = 0;
-            for ( int k = start; k < end; k++ ) {
-                int cellIndex = scv.getDataIndices()[k];
-                if ( mask != null && mask[cellIndex] ) {
-                    continue;
-                }
-                if ( cellTypeIndex == cta.getIndices()[cellIndex] ) {
-                    if ( method == SingleCellExpressionAggregationMethod.SUM ) {
-                        rv[i] += getDouble( scrv, k, representation );
-                    } else if ( method == SingleCellExpressionAggregationMethod.LOG_SUM ) {
-                        rv[i] += Math.exp( getDouble( scrv, k, representation ) );
-                    } else if ( method == SingleCellExpressionAggregationMethod.LOG1P_SUM ) {
-                        rv[i] += Math.expm1( getDouble( scrv, k, representation ) );
-                    } else {
-                        throw new UnsupportedOperationException( "Unsupported aggregation method: " + method );
-                    }
-                }
-            }
-
+        for ( int i = 0; i < rv.length; i++ ) {
             if ( performLog2cpm ) {
                 if ( librarySize[i] == 0 ) {
                     // this is technically a 0/0 situation
@@ -477,43 +444,10 @@ public class SingleCellExpressionExperimentAggregatorServiceImpl implements Sing
             } else {
                 throw new UnsupportedOperationException( "Unsupported aggregation method: " + method );
             }
-
-            if ( cellsByBioAssay != null ) {
-                cellsByBioAssay.compute( sample, ( k, v ) -> {
-                    if ( v == null ) {
-                        v = new boolean[scv.getSingleCellDimension().getNumberOfCells()];
-                    }
-                    metrics.addExpressedCells( scv, sourceSampleIndex, cta, cellTypeIndex, v );
-                    return v;
-                } );
-            }
-            if ( designElementsByBioAssay != null ) {
-                designElementsByBioAssay.compute( sample, ( k, v ) -> ( v != null ? v : 0 ) + metrics.getNumberOfDesignElements( Collections.singleton( scv ), sourceSampleIndex, cta, cellTypeIndex ) );
-            }
-            if ( cellByDesignElementByBioAssay != null ) {
-                cellByDesignElementByBioAssay.compute( sample, ( k, v ) -> ( v != null ? v : 0 ) + metrics.getNumberOfCellsByDesignElements( Collections.singleton( scv ), sourceSampleIndex, cta, cellTypeIndex ) );
-            }
-
         }
-
         return rv;
     }
 
-    private double getDouble( Buffer buffer, int k, PrimitiveType representation ) {
-        switch ( representation ) {
-            case FLOAT:
-                return ( ( FloatBuffer ) buffer ).get( k );
-            case DOUBLE:
-                return ( ( DoubleBuffer ) buffer ).get( k );
-            case INT:
-                return ( ( IntBuffer ) buffer ).get( k );
-            case LONG:
-                return ( ( LongBuffer ) buffer ).get( k );
-            default:
-                throw new UnsupportedOperationException( "Unsupported representation " + representation );
-        }
-    }
-
     @Override
     @Transactional
     public int removeAggregatedVectors( ExpressionExperiment ee, QuantitationType qt ) {
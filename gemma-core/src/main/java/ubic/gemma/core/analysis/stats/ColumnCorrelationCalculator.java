@@ -0,0 +1,264 @@
+package ubic.gemma.core.analysis.stats;
+
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Compute the Pearson correlation between all the columns of a matrix.
+ * <p>
+ * This is meant for sample-sample correlation matrices where columns are samples and rows are design elements, thus
+ * a few thousand columns by tens of thousands of rows.
+ * <p>
+ * Each column is centered and scaled once into a contiguous array. The correlation matrix is then computed in square
+ * tiles of columns, each tile iterating over chunks of rows so that the columns it involves remain in cache. If more
+ * than one thread is used, tiles are computed on a dedicated {@link ForkJoinPool}.
+ * <p>
+ * When a pair of columns has no missing values, the correlation is the dot product of the standardized columns.
+ * Otherwise, only the rows where both columns have a value are used (i.e. pairwise complete observations), which is
+ * the behaviour of {@link ubic.basecode.math.DescriptiveWithMissing#correlation}.
+ */
+@CommonsLog
+public class ColumnCorrelationCalculator {
+
+    /**
+     * Number of columns in a tile.
+     */
+    private static final int TILE_SIZE = 32;
+
+    /**
+     * Number of rows processed at once in a tile.
+     */
+    private static final int ROW_CHUNK_SIZE = 1024;
+
+    /**
+     * Compute the correlation between all the columns of a matrix.
+     * <p>
+     * The diagonal is always 1. If a pair of columns has fewer than two complete observations or if one of them has no
+     * variance, the correlation is {@link Double#NaN}.
+     * @param data       a matrix of rows by columns, missing values are represented by {@link Double#NaN}
+     * @param numThreads number of threads to use
+     * @return a symmetric columns by columns correlation matrix
+     */
+    public static double[][] correlate( double[][] data, int numThreads ) {
+        Assert.isTrue( numThreads > 0, "The number of threads must be strictly positive." );
+        int numRows = data.length;
+        int numCols = numRows > 0 ? data[0].length : 0;
+        boolean[] hasMissing = new boolean[numCols];
+        double[][] z = standardize( data, numCols, hasMissing );
+        double[][] result = new double[numCols][numCols];
+        int numTiles = ( numCols + TILE_SIZE - 1 ) / TILE_SIZE;
+        if ( numThreads == 1 || numTiles <= 1 ) {
+            for ( int ti = 0; ti < numTiles; ti++ ) {
+                for ( int tj = ti; tj < numTiles; tj++ ) {
+                    computeTile( z, hasMissing, ti, tj, result );
+                }
+            }
+        } else {
+            log.debug( "Computing correlations between " + numCols + " columns using " + numThreads + " threads" );
+            ForkJoinPool pool = new ForkJoinPool( numThreads );
+            try {
+                List<ForkJoinTask<?>> tasks = new ArrayList<>( numTiles * ( numTiles + 1 ) / 2 );
+                for ( int ti = 0; ti < numTiles; ti++ ) {
+                    for ( int tj = ti; tj < numTiles; tj++ ) {
+                        int i = ti, j = tj;
+                        // tiles write to disjoint regions of the result
+                        tasks.add( pool.submit( () -> computeTile( z, hasMissing, i, j, result ) ) );
+                    }
+                }
+                for ( ForkJoinTask<?> task : tasks ) {
+                    task.join();
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        for ( int i = 0; i < numCols; i++ ) {
+            result[i][i] = 1.0;
+        }
+        return result;
+    }
+
+    /**
+     * Center each column by its mean and scale it to unit norm, transposing the matrix in the process.
+     * <p>
+     * Missing values are kept as-is. Correlation is invariant to shifting and scaling, so the pairwise complete path
+     * can use the same values; this only improves its numerical stability.
+     */
+    private static double[][] standardize( double[][] data, int numCols, boolean[] hasMissing ) {
+        int numRows = data.length;
+        double[][] z = new double[numCols][numRows];
+        double[] sums = new double[numCols];
+        int[] counts = new int[numCols];
+        for ( int r = 0; r < numRows; r++ ) {
+            double[] row = data[r];
+            Assert.isTrue( row.length == numCols, "All the rows must have the same number of columns." );
+            for ( int c = 0; c < numCols; c++ ) {
+                double v = row[c];
+                z[c][r] = v;
+                if ( Double.isNaN( v ) ) {
+                    hasMissing[c] = true;
+                } else {
+                    sums[c] += v;
+                    counts[c]++;
+                }
+            }
+        }
+        for ( int c = 0; c < numCols; c++ ) {
+            double[] col = z[c];
+            double mean = counts[c] > 0 ? sums[c] / counts[c] : 0.0;
+            double ss = 0.0;
+            for ( int r = 0; r < numRows; r++ ) {
+                col[r] -= mean;
+                if ( !Double.isNaN( col[r] ) ) {
+                    ss += col[r] * col[r];
+                }
+            }
+            if ( ss > 0 ) {
+                double norm = Math.sqrt( ss );
+                for ( int r = 0; r < numRows; r++ ) {
+                    col[r] /= norm;
+                }
+            } else if ( !hasMissing[c] ) {
+                // a constant column without missing values has no variance regardless of the other column
+                hasMissing[c] = true;
+            }
+        }
+        return z;
+    }
+
+    private static void computeTile( double[][] z, boolean[] hasMissing, int ti, int tj, double[][] result ) {
+        int iStart = ti * TILE_SIZE, iEnd = Math.min( iStart + TILE_SIZE, z.length );
+        int jStart = tj * TILE_SIZE, jEnd = Math.min( jStart + TILE_SIZE, z.length );
+        boolean complete = true;
+        for ( int i = iStart; i < iEnd && complete; i++ ) {
+            complete = !hasMissing[i];
+        }
+        for ( int j = jStart; j < jEnd && complete; j++ ) {
+            complete = !hasMissing[j];
+        }
+        if ( complete ) {
+            computeCompleteTile( z, iStart, iEnd, jStart, jEnd, result );
+        } else {
+            computePairwiseCompleteTile( z, iStart, iEnd, jStart, jEnd, result );
+        }
+    }
+
+    /**
+     * Fast path for tiles where none of the columns have missing values.
+     */
+    private static void computeCompleteTile( double[][] z, int iStart, int iEnd, int jStart, int jEnd, double[][] result ) {
+        int numRows = z.length > 0 ? z[0].length : 0;
+        int tileWidth = jEnd - jStart;
+        double[] dots = new double[( iEnd - iStart ) * tileWidth];
+        for ( int r0 = 0; r0 < numRows; r0 += ROW_CHUNK_SIZE ) {
+            int r1 = Math.min( r0 + ROW_CHUNK_SIZE, numRows );
+            for ( int i = iStart; i < iEnd; i++ ) {
+                double[] x = z[i];
+                int offset = ( i - iStart ) * tileWidth - jStart;
+                int j = Math.max( jStart, i + 1 );
+                // four columns at a time, to reuse x[r] and have independent accumulators
+                for ( ; j + 3 < jEnd; j += 4 ) {
+                    double[] y0 = z[j], y1 = z[j + 1], y2 = z[j + 2], y3 = z[j + 3];
+                    double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+                    for ( int r = r0; r < r1; r++ ) {
+                        double xv = x[r];
+                        s0 += xv * y0[r];
+                        s1 += xv * y1[r];
+                        s2 += xv * y2[r];
+                        s3 += xv * y3[r];
+                    }
+                    dots[offset + j] += s0;
+                    dots[offset + j + 1] += s1;
+                    dots[offset + j + 2] += s2;
+                    dots[offset + j + 3] += s3;
+                }
+                for ( ; j < jEnd; j++ ) {
+                    double[] y = z[j];
+                    double s = 0.0;
+                    for ( int r = r0; r < r1; r++ ) {
+                        s += x[r] * y[r];
+                    }
+                    dots[offset + j] += s;
+                }
+            }
+        }
+        for ( int i = iStart; i < iEnd; i++ ) {
+            int offset = ( i - iStart ) * tileWidth - jStart;
+            for ( int j = Math.max( jStart, i + 1 ); j < jEnd; j++ ) {
+                // rounding errors may push the correlation slightly beyond [-1, 1]
+                double c = Math.max( -1.0, Math.min( 1.0, dots[offset + j] ) );
+                result[i][j] = c;
+                result[j][i] = c;
+            }
+        }
+    }
+
+    /**
+     * Path for tiles where some of the columns have missing values.
+     */
+    private static void computePairwiseCompleteTile( double[][] z, int iStart, int iEnd, int jStart, int jEnd, double[][] result ) {
+        int numRows = z.length > 0 ? z[0].length : 0;
+        int tileWidth = jEnd - jStart;
+        int tileSize = ( iEnd - iStart ) * tileWidth;
+        int[] ns = new int[tileSize];
+        double[] sxs = new double[tileSize], sys = new double[tileSize];
+        double[] sxxs = new double[tileSize], syys = new double[tileSize], sxys = new double[tileSize];
+        for ( int r0 = 0; r0 < numRows; r0 += ROW_CHUNK_SIZE ) {
+            int r1 = Math.min( r0 + ROW_CHUNK_SIZE, numRows );
+            for ( int i = iStart; i < iEnd; i++ ) {
+                double[] x = z[i];
+                int offset = ( i - iStart ) * tileWidth - jStart;
+                for ( int j = Math.max( jStart, i + 1 ); j < jEnd; j++ ) {
+                    double[] y = z[j];
+                    int n = 0;
+                    double sx = 0.0, sy = 0.0, sxx = 0.0, syy = 0.0, sxy = 0.0;
+                    for ( int r = r0; r < r1; r++ ) {
+                        double xv = x[r], yv = y[r];
+                        if ( Double.isNaN( xv ) || Double.isNaN( yv ) ) {
+                            continue;
+                        }
+                        n++;
+                        sx += xv;
+                        sy += yv;
+                        sxx += xv * xv;
+                        syy += yv * yv;
+                        sxy += xv * yv;
+                    }
+                    int k = offset + j;
+                    ns[k] += n;
+                    sxs[k] += sx;
+                    sys[k] += sy;
+                    sxxs[k] += sxx;
+                    syys[k] += syy;
+                    sxys[k] += sxy;
+                }
+            }
+        }
+        for ( int i = iStart; i < iEnd; i++ ) {
+            int offset = ( i - iStart ) * tileWidth - jStart;
+            for ( int j = Math.max( jStart, i + 1 ); j < jEnd; j++ ) {
+                int k = offset + j;
+                double c = correlation( ns[k], sxs[k], sys[k], sxxs[k], syys[k], sxys[k] );
+                result[i][j] = c;
+                result[j][i] = c;
+            }
+        }
+    }
+
+    private static double correlation( int n, double sx, double sy, double sxx, double syy, double sxy ) {
+        if ( n < 2 ) {
+            return Double.NaN;
+        }
+        double vx = sxx - sx * sx / n;
+        double vy = syy - sy * sy / n;
+        if ( vx <= 0 || vy <= 0 ) {
+            return Double.NaN;
+        }
+        return Math.max( -1.0, Math.min( 1.0, ( sxy - sx * sy / n ) / Math.sqrt( vx * vy ) ) );
+    }
+}
@@ -262,7 +262,15 @@ public class DataVectorDescriptive {
     }
 
     public static double sum( double[] data, ScaleType scaleType ) {
-        DoubleArrayList vec = new DoubleArrayList( data );
+        return sum( new DoubleArrayList( data ), scaleType );
+    }
+
+    /**
+     * Calculate the sum of the data in a list.
+     * <p>
+     * Only the first {@link DoubleArrayList#size()} elements are used, so the list can be reused for many vectors.
+     */
+    public static double sum( DoubleArrayList vec, ScaleType scaleType ) {
         switch ( scaleType ) {
             case LINEAR:
             case COUNT:
@@ -271,23 +279,9 @@ public class DataVectorDescriptive {
             case LN:
             case LOG10:
             case LOGBASEUNKNOWN:
-                double s = 0;
-                for ( double datum : data ) {
-                    if ( Double.isNaN( datum ) ) {
-                        continue;
-                    }
-                    s += Math.exp( datum );
-                }
-                return Math.log( s );
+                return Math.log( sumUnscaled( vec, scaleType ) );
             case LOG1P:
-                double s2 = 0;
-                for ( double datum : data ) {
-                    if ( Double.isNaN( datum ) ) {
-                        continue;
-                    }
-                    s2 += Math.expm1( datum );
-                }
-                return Math.log1p( s2 );
+                return Math.log1p( sumUnscaled( vec, scaleType ) );
             default:
                 throw new IllegalArgumentException( "Don't know how to calculate sum for scale type " + scaleType );
         }
@@ -319,7 +313,16 @@ public class DataVectorDescriptive {
      * Calculate the sum of the data in the vector, but keep the result unscaled.
      */
     public static double sumUnscaled( double[] data, ScaleType scaleType ) {
-        DoubleArrayList vec = new DoubleArrayList( data );
+        return sumUnscaled( new DoubleArrayList( data ), scaleType );
+    }
+
+    /**
+     * Calculate the sum of the data in a list, but keep the result unscaled.
+     * @see #sum(DoubleArrayList, ScaleType)
+     */
+    public static double sumUnscaled( DoubleArrayList vec, ScaleType scaleType ) {
+        double[] data = vec.elements();
+        int size = vec.size();
         switch ( scaleType ) {
             case LINEAR:
             case COUNT:
@@ -329,20 +332,20 @@ public class DataVectorDescriptive {
             case LOG10:
             case LOGBASEUNKNOWN:
                 double s = 0;
-                for ( double datum : data ) {
-                    if ( Double.isNaN( datum ) ) {
+                for ( int i = 0; i < size; i++ ) {
+                    if ( Double.isNaN( data[i] ) ) {
                         continue;
                     }
-                    s += Math.exp( datum );
+                    s += Math.exp( data[i] );
                 }
                 return s;
             case LOG1P:
                 double s2 = 0;
-                for ( double datum : data ) {
-                    if ( Double.isNaN( datum ) ) {
+                for ( int i = 0; i < size; i++ ) {
+                    if ( Double.isNaN( data[i] ) ) {
                         continue;
                     }
-                    s2 += Math.expm1( datum );
+                    s2 += Math.expm1( data[i] );
                 }
                 return s2;
             default:
@@ -372,7 +375,15 @@ public class DataVectorDescriptive {
     }
 
     public static double mean( double[] data, ScaleType scaleType ) {
-        DoubleArrayList vec = new DoubleArrayList( data );
+        return mean( new DoubleArrayList( data ), scaleType );
+    }
+
+    /**
+     * Calculate the mean of the data in a list.
+     * @see #mean(DataVector)
+     * @see #sum(DoubleArrayList, ScaleType)
+     */
+    public static double mean( DoubleArrayList vec, ScaleType scaleType ) {
         switch ( scaleType ) {
             case LINEAR:
             case COUNT:
@@ -420,8 +431,15 @@ public class DataVectorDescriptive {
     }
 
     public static double sampleStandardDeviation( double[] data, ScaleType scaleType ) {
+        return sampleStandardDeviation( new DoubleArrayList( data ), scaleType );
+    }
+
+    /**
+     * @see #sum(DoubleArrayList, ScaleType)
+     */
+    public static double sampleStandardDeviation( DoubleArrayList vec, ScaleType scaleType ) {
         // FIXME: baseCode does not include the sample size correction
-        return Descriptive.sampleStandardDeviation( data.length, sampleVariance( data, scaleType ) );
+        return Descriptive.sampleStandardDeviation( vec.size(), sampleVariance( vec, scaleType ) );
     }
 
     public static double sampleStandardDeviation( int[] data, ScaleType scaleType ) {
@@ -443,7 +461,13 @@ public class DataVectorDescriptive {
     }
 
     public static double sampleVariance( double[] data, ScaleType scaleType ) {
-        DoubleArrayList vec = new DoubleArrayList( data );
+        return sampleVariance( new DoubleArrayList( data ), scaleType );
+    }
+
+    /**
+     * @see #sum(DoubleArrayList, ScaleType)
+     */
+    public static double sampleVariance( DoubleArrayList vec, ScaleType scaleType ) {
         double mean = DescriptiveWithMissing.mean( vec );
         switch ( scaleType ) {
             case LINEAR:
@@ -454,7 +478,8 @@ public class DataVectorDescriptive {
                 double[] arr = vec.elements();
                 int len = vec.size();
                 double var = 0;
-                for ( double v : arr ) {
+                for ( int i = 0; i < vec.size(); i++ ) {
+                    double v = arr[i];
                     if ( Double.isNaN( v ) ) {
                         len--;
                         continue;
@@ -47,6 +47,12 @@ public class SingleCellExpressionDataDoubleMatrix extends AbstractSingleCellExpr
     @Nullable
     private List<ExpressionDataMatrixRowElement> rowElements;
 
+    /**
+     * Cell IDs, only decoded on-demand since they may be stored compressed.
+     */
+    @Nullable
+    private String[] cellIds;
+
     public SingleCellExpressionDataDoubleMatrix( Collection<SingleCellExpressionDataVector> vectors ) {
         Assert.isTrue( !vectors.isEmpty(), "At least one vector must be supplied. Use EmptyExpressionDataMatrix for empty data matrices instead." );
         Assert.isTrue( vectors.stream().map( SingleCellExpressionDataVector::getQuantitationType ).distinct().count() == 1,
@@ -154,7 +160,10 @@ public class SingleCellExpressionDataDoubleMatrix extends AbstractSingleCellExpr
 
     @Override
     public String getCellIdForColumn( int j ) {
-        return singleCellDimension.getCellIds().get( j );
+        if ( cellIds == null ) {
+            cellIds = singleCellDimension.getCellIds().toArray( new String[0] );
+        }
+        return cellIds[j];
     }
 
     @Override
@@ -0,0 +1,236 @@
+package ubic.gemma.core.datastructure.matrix.io;
+
+import lombok.Setter;
+import org.springframework.util.Assert;
+import ubic.gemma.core.analysis.preprocess.convert.ScaleTypeConversionUtils;
+import ubic.gemma.core.analysis.preprocess.convert.UnsupportedQuantitationTypeConversionException;
+import ubic.gemma.core.loader.util.hdf5.H5Dataset;
+import ubic.gemma.core.loader.util.hdf5.H5File;
+import ubic.gemma.core.loader.util.hdf5.H5Group;
+import ubic.gemma.core.loader.util.hdf5.H5Type;
+import ubic.gemma.model.common.quantitationtype.PrimitiveType;
+import ubic.gemma.model.common.quantitationtype.ScaleType;
+import ubic.gemma.model.expression.bioAssay.BioAssay;
+import ubic.gemma.model.expression.bioAssayData.SingleCellDimension;
+import ubic.gemma.model.expression.bioAssayData.SingleCellExpressionDataVector;
+import ubic.gemma.model.expression.designElement.CompositeSequence;
+import ubic.gemma.model.genome.Gene;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static ubic.gemma.core.util.TsvUtils.SUB_DELIMITER;
+import static ubic.gemma.persistence.util.ByteArrayUtils.doubleArrayToBytes;
+
+/**
+ * Writes single-cell vectors to the <a href="https://anndata.readthedocs.io/en/latest/fileformat-prose.html">AnnData on-disk format</a>.
+ * <p>
+ * Vectors are streamed gene by gene directly into the {@code data} and {@code indices} datasets of {@code X}. Since
+ * each vector is a row of a genes-by-cells CSR matrix, {@code X} is stored as a cells-by-genes CSC matrix as is
+ * customary for AnnData. The raw bytes of the vectors are handed to HDF5 which takes care of converting them to the
+ * on-disk representation.
+ * <p>
+ * Cells are described in {@code obs} with their identifiers and a {@code sample} categorical column. Design elements
+ * are described in {@code var} with the gene symbols and Ensembl IDs they map to.
+ */
+@Setter
+public class AnnDataMatrixWriter {
+
+    @Nullable
+    private ScaleType scaleType;
+
+    /**
+     * Number of elements per chunk in the {@code data} and {@code indices} datasets.
+     */
+    private long chunkSize = 65536;
+
+    /**
+     * Compression level for the {@code data} and {@code indices} datasets, or zero to disable compression.
+     */
+    private int compressionLevel = 4;
+
+    /**
+     * Write a stream of vectors to an AnnData file.
+     *
+     * @param vectors a stream of vectors
+     * @param numVecs the total number of vectors to write
+     * @param cs2gene a mapping of design elements to their corresponding gene(s)
+     * @param outputFile the destination file, it must not exist
+     * @return the number of vectors written
+     */
+    public int write( Stream<SingleCellExpressionDataVector> vectors, int numVecs, @Nullable Map<CompositeSequence, Set<Gene>> cs2gene, Path outputFile ) throws IOException {
+        if ( Files.exists( outputFile ) ) {
+            throw new IllegalArgumentException( "Output file " + outputFile + " already exists." );
+        }
+        Iterator<SingleCellExpressionDataVector> vecit = vectors.iterator();
+        if ( !vecit.hasNext() ) {
+            throw new IllegalArgumentException( "At least one vector must be supplied." );
+        }
+        SingleCellExpressionDataVector firstVec = vecit.next();
+        SingleCellDimension dimension = firstVec.getSingleCellDimension();
+        long dataType = getDataType( firstVec.getQuantitationType().getRepresentation() );
+        try ( H5File h5File = H5File.create( outputFile ) ) {
+            h5File.setStringAttribute( "encoding-type", "anndata" );
+            h5File.setStringAttribute( "encoding-version", "0.1.0" );
+
+            writeObs( h5File, dimension );
+
+            List<CompositeSequence> designElements = new ArrayList<>( numVecs );
+            long[] indptr = new long[numVecs + 1];
+            int row = 0;
+            try ( H5Group x = h5File.createGroup( "X" );
+                    H5Dataset data = x.createExtensibleDataset( "data", dataType, chunkSize, compressionLevel );
+                    H5Dataset indices = x.createExtensibleDataset( "indices", H5Type.STD_I32LE, chunkSize, compressionLevel ) ) {
+                x.setStringAttribute( "encoding-type", "csc_matrix" );
+                x.setStringAttribute( "encoding-version", "0.1.0" );
+                x.setLongVectorAttribute( "shape", new long[] { dimension.getNumberOfCells(), numVecs } );
+                SingleCellExpressionDataVector vec = firstVec;
+                while ( true ) {
+                    Assert.isTrue( row < numVecs, "There are more than " + numVecs + " vectors in the stream." );
+                    writeVector( vec, data, indices );
+                    designElements.add( vec.getDesignElement() );
+                    indptr[row + 1] = indptr[row] + vec.getDataIndices().length;
+                    row++;
+                    if ( !vecit.hasNext() ) {
+                        break;
+                    }
+                    vec = vecit.next();
+                }
+                Assert.isTrue( row == numVecs, "Expected " + numVecs + " vectors, but only " + row + " were found in the stream." );
+                try ( H5Dataset indptrDataset = x.createDataset( "indptr", H5Type.STD_I64LE, indptr.length ) ) {
+                    indptrDataset.write( indptr );
+                }
+            }
+
+            writeVar( h5File, designElements, cs2gene );
+
+            return row;
+        } catch ( Exception e ) {
+            Files.deleteIfExists( outputFile );
+            throw e;
+        }
+    }
+
+    private long getDataType( PrimitiveType representation ) {
+        if ( scaleType != null ) {
+            // if data is converted, we always produce doubles
+            return H5Type.IEEE_F64LE;
+        }
+        switch ( representation ) {
+            case FLOAT:
+                return H5Type.IEEE_F32LE;
+            case DOUBLE:
+                return H5Type.IEEE_F64LE;
+            case INT:
+                return H5Type.STD_I32LE;
+            case LONG:
+                return H5Type.STD_I64LE;
+            default:
+                throw new UnsupportedOperationException( "Unsupported vector representation " + representation );
+        }
+    }
+
+    private void writeVector( SingleCellExpressionDataVector vector, H5Dataset data, H5Dataset indices ) {
+        if ( scaleType != null ) {
+            try {
+                data.append( doubleArrayToBytes( ScaleTypeConversionUtils.convertData( vector, scaleType ) ), H5Type.IEEE_F64BE );
+            } catch ( UnsupportedQuantitationTypeConversionException e ) {
+                throw new RuntimeException( e );
+            }
+        } else {
+            // vectors are stored in big-endian, HDF5 will convert them as needed
+            switch ( vector.getQuantitationType().getRepresentation() ) {
+                case FLOAT:
+                    data.append( vector.getData(), H5Type.IEEE_F32BE );
+                    break;
+                case DOUBLE:
+                    data.append( vector.getData(), H5Type.IEEE_F64BE );
+                    break;
+                case INT:
+                    data.append( vector.getData(), H5Type.STD_I32BE );
+                    break;
+                case LONG:
+                    data.append( vector.getData(), H5Type.STD_I64BE );
+                    break;
+                default:
+                    throw new UnsupportedOperationException( "Unsupported vector representation type " + vector.getQuantitationType().getRepresentation() );
+            }
+        }
+        indices.append( vector.getDataIndices() );
+    }
+
+    private void writeObs( H5File h5File, SingleCellDimension dimension ) {
+        int[] codes = new int[dimension.getNumberOfCells()];
+        String[] categories = new String[dimension.getBioAssays().size()];
+        for ( int i = 0; i < categories.length; i++ ) {
+            BioAssay ba = dimension.getBioAssays().get( i );
+            categories[i] = ba.getName();
+            int start = dimension.getBioAssaysOffset()[i];
+            Arrays.fill( codes, start, start + dimension.getNumberOfCellsBySample( i ), i );
+        }
+        try ( H5Group obs = createDataframe( h5File, "obs", dimension.getCellIds().toArray( new String[0] ), "sample" );
+                H5Group sample = obs.createGroup( "sample" ) ) {
+            sample.setStringAttribute( "encoding-type", "categorical" );
+            sample.setStringAttribute( "encoding-version", "0.2.0" );
+            sample.setBooleanAttribute( "ordered", false );
+            writeStringArray( sample, "categories", categories );
+            try ( H5Dataset codesDataset = sample.createDataset( "codes", H5Type.STD_I32LE, codes.length ) ) {
+                codesDataset.setStringAttribute( "encoding-type", "array" );
+                codesDataset.setStringAttribute( "encoding-version", "0.2.0" );
+                codesDataset.write( codes );
+            }
+        }
+    }
+
+    private void writeVar( H5File h5File, List<CompositeSequence> designElements, @Nullable Map<CompositeSequence, Set<Gene>> cs2gene ) {
+        String[] index = new String[designElements.size()];
+        String[] geneSymbols = new String[designElements.size()];
+        String[] ensemblIds = new String[designElements.size()];
+        for ( int i = 0; i < designElements.size(); i++ ) {
+            CompositeSequence de = designElements.get( i );
+            Set<Gene> genes = cs2gene != null ? cs2gene.get( de ) : null;
+            index[i] = de.getName();
+            geneSymbols[i] = formatGenes( genes, Gene::getOfficialSymbol );
+            ensemblIds[i] = formatGenes( genes, Gene::getEnsemblId );
+        }
+        try ( H5Group var = createDataframe( h5File, "var", index, "gene_symbols", "ensembl_ids" ) ) {
+            writeStringArray( var, "gene_symbols", geneSymbols );
+            writeStringArray( var, "ensembl_ids", ensemblIds );
+        }
+    }
+
+    private String formatGenes( @Nullable Collection<Gene> genes, Function<Gene, String> func ) {
+        if ( genes == null || genes.isEmpty() ) {
+            return "";
+        }
+        return genes.stream()
+                .map( func )
+                .filter( Objects::nonNull )
+                .sorted()
+                .collect( Collectors.joining( String.valueOf( SUB_DELIMITER ) ) );
+    }
+
+    private H5Group createDataframe( H5File h5File, String name, String[] index, String... columns ) {
+        H5Group df = h5File.createGroup( name );
+        df.setStringAttribute( "encoding-type", "dataframe" );
+        df.setStringAttribute( "encoding-version", "0.2.0" );
+        df.setStringAttribute( "_index", "_index" );
+        df.setStringVectorAttribute( "column-order", columns );
+        writeStringArray( df, "_index", index );
+        return df;
+    }
+
+    private void writeStringArray( H5Group group, String name, String[] values ) {
+        try ( H5Dataset dataset = group.createDataset( name, H5Type.STRING, values.length ) ) {
+            dataset.setStringAttribute( "encoding-type", "string-array" );
+            dataset.setStringAttribute( "encoding-version", "0.2.0" );
+            dataset.write( values );
+        }
+    }
+}
@@ -25,6 +25,7 @@ import ubic.gemma.core.datastructure.matrix.BulkExpressionDataMatrix;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataMatrixColumnSort;
 import ubic.gemma.core.datastructure.matrix.MultiAssayBulkExpressionDataMatrix;
 import ubic.gemma.core.util.BuildInfo;
+import ubic.gemma.core.util.FormatBuffer;
 import ubic.gemma.model.common.quantitationtype.QuantitationType;
 import ubic.gemma.model.common.quantitationtype.ScaleType;
 import ubic.gemma.model.expression.arrayDesign.ArrayDesign;
@@ -98,6 +99,7 @@ public class MatrixWriter implements BulkExpressionDataMatrixWriter {
         this.writeHeader( bioMaterials, matrix, geneAnnotations, writer );
 
         int rows = matrix.rows();
+        FormatBuffer buf = new FormatBuffer();
         for ( int j = 0; j < rows; j++ ) {
             CompositeSequence probeForRow = matrix.getDesignElementForRow( j );
             writer.append( format( probeForRow.getName() ) );
@@ -108,10 +110,12 @@ public class MatrixWriter implements BulkExpressionDataMatrixWriter {
             // print the data.
             for ( BioMaterial bioMaterial : bioMaterials ) {
                 int i = matrix.getColumnIndex( bioMaterial );
-                writer.append( "\t" );
-                writeValue( matrix.get( j, i ), qt, writer );
+                buf.append( '\t' );
+                writeValue( matrix.get( j, i ), qt, buf );
             }
-            writer.append( "\n" );
+            buf.append( '\n' );
+            buf.writeTo( writer );
+            buf.clear();
             if ( autoFlush ) {
                 writer.flush();
             }
@@ -143,6 +147,7 @@ public class MatrixWriter implements BulkExpressionDataMatrixWriter {
         this.writeHeader( orderedBioMaterials, matrix, geneAnnotations, writer );
 
         int rows = matrix.rows();
+        FormatBuffer buf = new FormatBuffer();
         for ( int j = 0; j < rows; j++ ) {
             CompositeSequence probeForRow = matrix.getDesignElementForRow( j );
             writer.append( format( probeForRow.getName() ) );
@@ -154,11 +159,13 @@ public class MatrixWriter implements BulkExpressionDataMatrixWriter {
             for ( BioMaterial bioMaterial : orderedBioMaterials ) {
                 int i = matrix.getColumnIndex( bioMaterial );
                 Object val = matrix.get( j, i );
-                writer.append( "\t" );
-                writeValue( val, qt, writer );
+                buf.append( '\t' );
+                writeValue( val, qt, buf );
             }
 
-            writer.append( "\n" );
+            buf.append( '\n' );
+            buf.writeTo( writer );
+            buf.clear();
             if ( autoFlush ) {
                 writer.flush();
             }
@@ -355,15 +362,21 @@ public class MatrixWriter implements BulkExpressionDataMatrixWriter {
         }
     }
 
-    private void writeValue( Object val, QuantitationType qt, Writer buf ) throws IOException {
+    private void writeValue( Object val, QuantitationType qt, FormatBuffer buf ) {
         if ( scaleType != null ) {
             try {
-                buf.write( format( convertScalar( ( Number ) val, qt, scaleType ) ) );
+                buf.appendFormatted( convertScalar( ( Number ) val, qt, scaleType ) );
             } catch ( UnsupportedQuantitationScaleConversionException e ) {
                 throw new RuntimeException( e );
             }
+        } else if ( val instanceof Double ) {
+            buf.appendFormatted( ( double ) ( Double ) val );
+        } else if ( val instanceof Integer ) {
+            buf.appendFast( ( int ) ( Integer ) val );
+        } else if ( val instanceof Long ) {
+            buf.appendFast( ( long ) ( Long ) val );
         } else {
-            buf.write( format( val ) );
+            buf.append( format( val ) );
         }
     }
 }
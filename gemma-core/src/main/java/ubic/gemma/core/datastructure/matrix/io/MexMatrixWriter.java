@@ -1,5 +1,6 @@
 package ubic.gemma.core.datastructure.matrix.io;
 
+import lombok.AllArgsConstructor;
 import lombok.Setter;
 import lombok.extern.apachecommons.CommonsLog;
 import no.uib.cipr.matrix.io.MatrixInfo;
@@ -15,6 +16,7 @@ import ubic.gemma.core.analysis.preprocess.convert.UnsupportedQuantitationTypeCo
 import ubic.gemma.core.datastructure.matrix.SingleCellExpressionDataDoubleMatrix;
 import ubic.gemma.core.datastructure.matrix.SingleCellExpressionDataIntMatrix;
 import ubic.gemma.core.datastructure.matrix.SingleCellExpressionDataMatrix;
+import ubic.gemma.core.util.FormatBuffer;
 import ubic.gemma.core.util.TsvUtils;
 import ubic.gemma.model.common.quantitationtype.QuantitationType;
 import ubic.gemma.model.common.quantitationtype.ScaleType;
@@ -26,6 +28,7 @@ import ubic.gemma.model.genome.Gene;
 
 import javax.annotation.Nullable;
 import java.io.*;
+import java.lang.reflect.Array;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -33,6 +36,9 @@ import java.util.*;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -70,6 +76,23 @@ public class MexMatrixWriter implements SingleCellExpressionDataMatrixWriter {
      */
     private Executor executorService;
 
+    /**
+     * Number of non-zeroes per sample to accumulate before formatting and compressing a block when writing a stream
+     * of vectors.
+     */
+    private int blockSize = 1 << 20;
+
+    /**
+     * Maximum number of blocks that can be formatted and compressed concurrently when writing a stream of vectors.
+     */
+    private int maxPendingBlocks = 16;
+
+    /**
+     * Maximum number of non-zeroes to accumulate across all samples when writing a stream of vectors. When exceeded,
+     * the largest blocks are submitted before they reach {@link #blockSize}.
+     */
+    private int maxBufferedNnz = 8 << 20;
+
     @Override
     public int write( SingleCellExpressionDataMatrix<?> matrix, Writer stream ) throws IOException {
         throw new UnsupportedOperationException( "MEX is a binary format as it bundles the files in a TAR archive." );
@@ -177,6 +200,10 @@ public class MexMatrixWriter implements SingleCellExpressionDataMatrixWriter {
 
     /**
      * Writes a stream of vectors to a directory.
+     * <p>
+     * The coordinates of each sample are accumulated in blocks of {@link #blockSize} non-zeroes which are formatted and
+     * compressed as independent gzip members on the {@link #executorService} if set. Blocks are appended to their
+     * sample matrix in the order they were produced. Concatenated gzip members form a valid gzip stream.
      *
      * @param vectors     a stream of vectors
      * @param numVecs     the total number of vectors to write
@@ -189,7 +216,7 @@ public class MexMatrixWriter implements SingleCellExpressionDataMatrixWriter {
         }
         // lookup the first vector to get the layout
         Writer features = null;
-        MatrixVectorWriter[] matrices = null;
+        OrderedBlockWriter matrices = null;
         try {
             Iterator<SingleCellExpressionDataVector> vecit = vectors.iterator();
 
@@ -213,54 +240,63 @@ public class MexMatrixWriter implements SingleCellExpressionDataMatrixWriter {
                 Files.createLink( outputDir.resolve( formatBioAssayFilename( it.next() ) ).resolve( "features.tsv.gz" ), ff );
             }
 
-            matrices = new FastMatrixVectorWriter[dimension.getBioAssays().size()];
+            MatrixInfo.MatrixField field;
+            if ( scaleType != null ) {
+                // if data is converted, we always produce doubles
+                field = MatrixInfo.MatrixField.Real;
+            } else {
+                switch ( firstVec.getQuantitationType().getRepresentation() ) {
+                    case FLOAT:
+                    case DOUBLE:
+                        field = MatrixInfo.MatrixField.Real;
+                        break;
+                    case INT:
+                    case LONG:
+                        field = MatrixInfo.MatrixField.Integer;
+                        break;
+                    default:
+                        throw new UnsupportedOperationException( "Unsupported vector representation " + firstVec.getQuantitationType().getRepresentation() );
+                }
+            }
+
+            matrices = new OrderedBlockWriter( dimension.getBioAssays().size() );
+            MexBlock[] blocks = new MexBlock[dimension.getBioAssays().size()];
             for ( int i = 0; i < dimension.getBioAssays().size(); i++ ) {
                 BioAssay ba = dimension.getBioAssays().get( i );
                 int numberOfCells = dimension.getNumberOfCellsBySample( i );
-                matrices[i] = new FastMatrixVectorWriter( newWriter( Files.newOutputStream( outputDir.resolve( formatBioAssayFilename( ba ) ).resolve( "matrix.mtx.gz" ) ) ), autoFlush );
-                MatrixInfo.MatrixField field;
-                if ( scaleType != null ) {
-                    // if data is converted, we always produce doubles
-                    field = MatrixInfo.MatrixField.Real;
-                } else {
-                    switch ( firstVec.getQuantitationType().getRepresentation() ) {
-                        case FLOAT:
-                        case DOUBLE:
-                            field = MatrixInfo.MatrixField.Real;
-                            break;
-                        case INT:
-                        case LONG:
-                            field = MatrixInfo.MatrixField.Integer;
-                            break;
-                        default:
-                            throw new UnsupportedOperationException( "Unsupported vector representation " + firstVec.getQuantitationType().getRepresentation() );
-                    }
-                }
-                matrices[i].printMatrixInfo( new MatrixInfo( true, field, MatrixInfo.MatrixSymmetry.General ) );
-                matrices[i].printMatrixSize( new MatrixSize( numVecs, numberOfCells, nnzBySample.get( ba ).intValue() ) );
+                matrices.open( i, outputDir.resolve( formatBioAssayFilename( ba ) ).resolve( "matrix.mtx.gz" ) );
+                matrices.write( i, compress( writer -> {
+                    writer.printMatrixInfo( new MatrixInfo( true, field, MatrixInfo.MatrixSymmetry.General ) );
+                    writer.printMatrixSize( new MatrixSize( numVecs, numberOfCells, nnzBySample.get( ba ).intValue() ) );
+                } ) );
+                blocks[i] = new MexBlock();
             }
 
             int row = 0;
             writeFeature( firstVec.getDesignElement(), cs2gene, features, autoFlush );
-            writeVector( firstVec, row++, matrices );
+            writeVector( firstVec, row++, blocks, matrices );
 
             while ( vecit.hasNext() ) {
                 SingleCellExpressionDataVector vec = vecit.next();
                 writeFeature( vec.getDesignElement(), cs2gene, features, autoFlush );
-                writeVector( vec, row++, matrices );
+                writeVector( vec, row++, blocks, matrices );
             }
 
+            // flush incomplete blocks
+            for ( int i = 0; i < blocks.length; i++ ) {
+                if ( blocks[i].nnz > 0 ) {
+                    matrices.submit( i, blocks[i] );
+                }
+            }
+            matrices.finish();
+
             return row;
         } finally {
             if ( features != null ) {
                 features.close();
             }
             if ( matrices != null ) {
-                for ( MatrixVectorWriter s : matrices ) {
-                    if ( s != null ) {
-                        s.close();
-                    }
-                }
+                matrices.close();
             }
         }
     }
@@ -422,147 +458,238 @@ public class MexMatrixWriter implements SingleCellExpressionDataMatrixWriter {
         }
     }
 
-    private void writeVector( SingleCellExpressionDataVector vector, int row, MatrixVectorWriter[] writers ) {
+    private void writeVector( SingleCellExpressionDataVector vector, int row, MexBlock[] blocks, OrderedBlockWriter matrices ) throws IOException {
+        Object data;
         if ( scaleType != null ) {
             try {
-                writeDoubleVector( vector, ScaleTypeConversionUtils.convertData( vector, scaleType ), row, writers );
+                data = ScaleTypeConversionUtils.convertData( vector, scaleType );
             } catch ( UnsupportedQuantitationTypeConversionException e ) {
                 throw new RuntimeException( e );
             }
         } else {
             switch ( vector.getQuantitationType().getRepresentation() ) {
                 case FLOAT:
-                    writeFloatVector( vector, vector.getDataAsFloats(), row, writers );
+                    data = vector.getDataAsFloats();
                     break;
                 case DOUBLE:
-                    writeDoubleVector( vector, vector.getDataAsDoubles(), row, writers );
+                    data = vector.getDataAsDoubles();
                     break;
                 case INT:
-                    writeIntVector( vector, vector.getDataAsInts(), row, writers );
+                    data = vector.getDataAsInts();
                     break;
                 case LONG:
-                    writeLongVector( vector, vector.getDataAsLongs(), row, writers );
+                    data = vector.getDataAsLongs();
                     break;
                 default:
                     throw new UnsupportedOperationException( "Unsupported vector representation type " + vector.getQuantitationType().getRepresentation() );
             }
         }
-    }
-
-    private void writeFloatVector( SingleCellExpressionDataVector vector, float[] data, int row, MatrixVectorWriter[] writers ) {
         int[] colind = vector.getDataIndices();
         // the first sample always start at zero
         int start = 0;
         for ( int sampleIndex = 0; sampleIndex < vector.getSingleCellDimension().getBioAssays().size(); sampleIndex++ ) {
             int end = getSampleEnd( vector, sampleIndex, start );
-            int sampleOffset = vector.getSingleCellDimension().getBioAssaysOffset()[sampleIndex];
-            int sampleNnz = end - start;
-
-            int[] sampleRows = new int[sampleNnz];
-            Arrays.fill( sampleRows, row + 1 );
-            int[] sampleCols = new int[sampleNnz];
-            float[] sampleData = new float[sampleNnz];
-
-            // populate
-            int l = 0;
-            for ( int i = start; i < end; i++ ) {
-                sampleCols[l] = colind[i] - sampleOffset + 1; // adjust the column index to start at zero
-                sampleData[l] = data[i];
-                l++;
+            if ( end > start ) {
+                int sampleOffset = vector.getSingleCellDimension().getBioAssaysOffset()[sampleIndex];
+                blocks[sampleIndex].add( row, colind, data, start, end, sampleOffset );
+                matrices.bufferedNnz += end - start;
+                if ( blocks[sampleIndex].nnz >= blockSize ) {
+                    submitBlock( sampleIndex, blocks, matrices );
+                }
             }
-
-            writers[sampleIndex].printCoordinate( sampleRows, sampleCols, sampleData );
-
             // use the end of the current sample as start for the next one
             start = end;
         }
+        // too many coordinates are buffered across samples, submit the largest blocks early
+        while ( matrices.bufferedNnz > maxBufferedNnz ) {
+            int largest = 0;
+            for ( int i = 1; i < blocks.length; i++ ) {
+                if ( blocks[i].nnz > blocks[largest].nnz ) {
+                    largest = i;
+                }
+            }
+            submitBlock( largest, blocks, matrices );
+        }
     }
 
-    private void writeDoubleVector( SingleCellExpressionDataVector vector, double[] data, int row, MatrixVectorWriter[] writers ) {
-        int[] colind = vector.getDataIndices();
-        // the first sample always start at zero
-        int start = 0;
-        for ( int sampleIndex = 0; sampleIndex < vector.getSingleCellDimension().getBioAssays().size(); sampleIndex++ ) {
-            int end = getSampleEnd( vector, sampleIndex, start );
-            int sampleOffset = vector.getSingleCellDimension().getBioAssaysOffset()[sampleIndex];
-            int sampleNnz = end - start;
-
-            int[] sampleRows = new int[sampleNnz];
-            Arrays.fill( sampleRows, row + 1 );
-            int[] sampleCols = new int[sampleNnz];
-            double[] sampleData = new double[sampleNnz];
+    private void submitBlock( int sampleIndex, MexBlock[] blocks, OrderedBlockWriter matrices ) throws IOException {
+        matrices.bufferedNnz -= blocks[sampleIndex].nnz;
+        matrices.submit( sampleIndex, blocks[sampleIndex] );
+        blocks[sampleIndex] = new MexBlock();
+    }
 
-            // populate
-            int l = 0;
+    /**
+     * A block of coordinates for a given sample.
+     * <p>
+     * Coordinates are copied out of the vectors as they are added, so that a block does not retain the vectors it was
+     * populated from.
+     */
+    private static class MexBlock {
+
+        private static final int INITIAL_CAPACITY = 1024;
+
+        private int[] sampleRows;
+        private int[] sampleCols;
+        /**
+         * Either a float[], double[], int[] or long[], depending on the vectors.
+         */
+        private Object sampleData;
+        private int nnz = 0;
+
+        /**
+         * Copy the {@code [start, end)} slice of a vector that belongs to the sample.
+         */
+        private void add( int row, int[] colind, Object data, int start, int end, int sampleOffset ) {
+            int n = end - start;
+            ensureCapacity( data, nnz + n );
+            // rows/cols are 1-based in MTX
+            Arrays.fill( sampleRows, nnz, nnz + n, row + 1 );
             for ( int i = start; i < end; i++ ) {
-                sampleCols[l] = colind[i] - sampleOffset + 1; // adjust the column index to start at zero
-                sampleData[l] = data[i];
-                l++;
+                sampleCols[nnz + i - start] = colind[i] - sampleOffset + 1; // adjust the column index to start at zero
             }
+            System.arraycopy( data, start, sampleData, nnz, n );
+            nnz += n;
+        }
 
-            writers[sampleIndex].printCoordinate( sampleRows, sampleCols, sampleData );
+        private void ensureCapacity( Object data, int capacity ) {
+            if ( sampleData == null ) {
+                int c = Math.max( capacity, INITIAL_CAPACITY );
+                sampleRows = new int[c];
+                sampleCols = new int[c];
+                sampleData = Array.newInstance( data.getClass().getComponentType(), c );
+            } else if ( capacity > sampleRows.length ) {
+                int c = Math.max( capacity, 2 * sampleRows.length );
+                sampleRows = Arrays.copyOf( sampleRows, c );
+                sampleCols = Arrays.copyOf( sampleCols, c );
+                Object newData = Array.newInstance( sampleData.getClass().getComponentType(), c );
+                System.arraycopy( sampleData, 0, newData, 0, nnz );
+                sampleData = newData;
+            }
+        }
 
-            // use the end of the current sample as start for the next one
-            start = end;
+        /**
+         * Format and compress this block as a standalone gzip member.
+         */
+        private byte[] format() {
+            // the printer expects arrays of exactly nnz elements
+            if ( sampleRows.length > nnz ) {
+                sampleRows = Arrays.copyOf( sampleRows, nnz );
+                sampleCols = Arrays.copyOf( sampleCols, nnz );
+                Object trimmedData = Array.newInstance( sampleData.getClass().getComponentType(), nnz );
+                System.arraycopy( sampleData, 0, trimmedData, 0, nnz );
+                sampleData = trimmedData;
+            }
+            return compress( writer -> {
+                if ( sampleData instanceof float[] ) {
+                    writer.printCoordinate( sampleRows, sampleCols, ( float[] ) sampleData );
+                } else if ( sampleData instanceof double[] ) {
+                    writer.printCoordinate( sampleRows, sampleCols, ( double[] ) sampleData );
+                } else if ( sampleData instanceof int[] ) {
+                    writer.printCoordinate( sampleRows, sampleCols, ( int[] ) sampleData );
+                } else {
+                    writer.printCoordinate( sampleRows, sampleCols, ( long[] ) sampleData );
+                }
+            } );
         }
     }
 
-    private void writeIntVector( SingleCellExpressionDataVector vector, int[] data, int row, MatrixVectorWriter[] writers ) {
-        int[] colind = vector.getDataIndices();
-        // the first sample always start at zero
-        int start = 0;
-        for ( int sampleIndex = 0; sampleIndex < vector.getSingleCellDimension().getBioAssays().size(); sampleIndex++ ) {
-            int end = getSampleEnd( vector, sampleIndex, start );
-            int sampleOffset = vector.getSingleCellDimension().getBioAssaysOffset()[sampleIndex];
-            int sampleNnz = end - start;
+    /**
+     * Appends compressed blocks to sample matrices in the order they were submitted.
+     * <p>
+     * Blocks are formatted and compressed on the {@link #executorService}, or in the current thread if unset. At most
+     * {@link #maxPendingBlocks} blocks can be in-flight at any given time.
+     */
+    private class OrderedBlockWriter implements Closeable {
 
-            int[] sampleRows = new int[sampleNnz];
-            Arrays.fill( sampleRows, row + 1 );
-            int[] sampleCols = new int[sampleNnz];
-            int[] sampleData = new int[sampleNnz];
+        private final OutputStream[] outputs;
+        private final Deque<PendingBlock> pending = new ArrayDeque<>();
+        /**
+         * Number of non-zeroes accumulated in blocks that have not been submitted yet.
+         */
+        private long bufferedNnz = 0;
 
-            // populate
-            int l = 0;
-            for ( int i = start; i < end; i++ ) {
-                sampleCols[l] = colind[i] - sampleOffset + 1; // adjust the column index to start at zero
-                sampleData[l] = data[i];
-                l++;
-            }
+        private OrderedBlockWriter( int numSamples ) {
+            this.outputs = new OutputStream[numSamples];
+        }
 
-            writers[sampleIndex].printCoordinate( sampleRows, sampleCols, sampleData );
+        private void open( int sampleIndex, Path path ) throws IOException {
+            outputs[sampleIndex] = new BufferedOutputStream( Files.newOutputStream( path ) );
+        }
 
-            // use the end of the current sample as start for the next one
-            start = end;
+        private void write( int sampleIndex, byte[] member ) throws IOException {
+            outputs[sampleIndex].write( member );
+            if ( autoFlush ) {
+                outputs[sampleIndex].flush();
+            }
         }
-    }
 
-    private void writeLongVector( SingleCellExpressionDataVector vector, long[] data, int row, MatrixVectorWriter[] writers ) {
-        int[] colind = vector.getDataIndices();
-        // the first sample always start at zero
-        int start = 0;
-        for ( int sampleIndex = 0; sampleIndex < vector.getSingleCellDimension().getBioAssays().size(); sampleIndex++ ) {
-            int end = getSampleEnd( vector, sampleIndex, start );
-            int sampleOffset = vector.getSingleCellDimension().getBioAssaysOffset()[sampleIndex];
-            int sampleNnz = end - start;
+        private void submit( int sampleIndex, MexBlock block ) throws IOException {
+            FutureTask<byte[]> task = new FutureTask<>( block::format );
+            if ( executorService != null ) {
+                executorService.execute( task );
+            } else {
+                task.run();
+            }
+            pending.add( new PendingBlock( sampleIndex, task ) );
+            // write whatever is completed at the head of the queue and wait if too many blocks are in-flight
+            while ( !pending.isEmpty() && ( pending.size() > maxPendingBlocks || pending.peek().future.isDone() ) ) {
+                writeNext();
+            }
+        }
+
+        private void finish() throws IOException {
+            while ( !pending.isEmpty() ) {
+                writeNext();
+            }
+        }
 
-            int[] sampleRows = new int[sampleNnz];
-            Arrays.fill( sampleRows, row + 1 );
-            int[] sampleCols = new int[sampleNnz];
-            long[] sampleData = new long[sampleNnz];
+        private void writeNext() throws IOException {
+            PendingBlock block = pending.remove();
+            try {
+                write( block.sampleIndex, block.future.get() );
+            } catch ( ExecutionException e ) {
+                if ( e.getCause() instanceof IOException ) {
+                    throw ( IOException ) e.getCause();
+                } else {
+                    throw new RuntimeException( e.getCause() );
+                }
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException( e );
+            }
+        }
 
-            // populate
-            int l = 0;
-            for ( int i = start; i < end; i++ ) {
-                sampleCols[l] = colind[i] - sampleOffset + 1; // adjust the column index to start at zero
-                sampleData[l] = data[i];
-                l++;
+        @Override
+        public void close() throws IOException {
+            for ( PendingBlock block : pending ) {
+                block.future.cancel( true );
             }
+            pending.clear();
+            for ( OutputStream s : outputs ) {
+                if ( s != null ) {
+                    s.close();
+                }
+            }
+        }
+    }
 
-            writers[sampleIndex].printCoordinate( sampleRows, sampleCols, sampleData );
+    @AllArgsConstructor
+    private static class PendingBlock {
+        private final int sampleIndex;
+        private final Future<byte[]> future;
+    }
 
-            // use the end of the current sample as start for the next one
-            start = end;
+    /**
+     * Produce a standalone gzip member from the output of a {@link MatrixVectorWriter}.
+     */
+    private static byte[] compress( Consumer<MatrixVectorWriter> consumer ) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try ( MatrixVectorWriter writer = new FastMatrixVectorWriter( new OutputStreamWriter( new GZIPOutputStream( baos ), StandardCharsets.UTF_8 ), false ) ) {
+            consumer.accept( writer );
+        } catch ( IOException e ) {
+            throw new UncheckedIOException( e );
         }
+        return baos.toByteArray();
     }
 
     /**
@@ -570,6 +697,13 @@ public class MexMatrixWriter implements SingleCellExpressionDataMatrixWriter {
      */
     private static class FastMatrixVectorWriter extends MatrixVectorWriter {
 
+        /**
+         * Number of characters to accumulate before writing the buffer to the underlying writer.
+         */
+        private static final int FLUSH_THRESHOLD = 8192;
+
+        private final FormatBuffer buf = new FormatBuffer( FLUSH_THRESHOLD + 64 );
+
         public FastMatrixVectorWriter( Writer out, boolean autoFlush ) {
             super( out, autoFlush );
         }
@@ -581,8 +715,12 @@ public class MexMatrixWriter implements SingleCellExpressionDataMatrixWriter {
                 throw new IllegalArgumentException(
                         "All arrays must be of the same size" );
             for ( int i = 0; i < size; ++i ) {
-                write( row[i] + " " + column[i] + " " + data[i] + "\n" );
+                buf.appendFast( row[i] ).append( ' ' ).appendFast( column[i] ).append( ' ' ).appendFast( data[i] ).append( '\n' );
+                if ( buf.length() >= FLUSH_THRESHOLD ) {
+                    flushBuffer();
+                }
             }
+            flushBuffer();
         }
 
         public void printCoordinate( int[] row, int[] column, double[] data, int offset ) {
@@ -591,8 +729,22 @@ public class MexMatrixWriter implements SingleCellExpressionDataMatrixWriter {
                 throw new IllegalArgumentException(
                         "All arrays must be of the same size" );
             for ( int i = 0; i < size; ++i ) {
-                write( row[i] + " " + column[i] + " " + data[i] + "\n" );
+                buf.appendFast( row[i] ).append( ' ' ).appendFast( column[i] ).append( ' ' ).appendFast( data[i] ).append( '\n' );
+                if ( buf.length() >= FLUSH_THRESHOLD ) {
+                    flushBuffer();
+                }
+            }
+            flushBuffer();
+        }
+
+        private void flushBuffer() {
+            try {
+                buf.writeTo( this );
+            } catch ( IOException e ) {
+                // PrintWriter never raises I/O exceptions
+                throw new UncheckedIOException( e );
             }
+            buf.clear();
         }
     }
 
@@ -2,13 +2,13 @@ package ubic.gemma.core.datastructure.matrix.io;
 
 import lombok.Setter;
 import no.uib.cipr.matrix.sparse.CompRowMatrix;
-import org.apache.commons.lang3.StringUtils;
 import org.springframework.util.Assert;
 import ubic.gemma.core.analysis.preprocess.convert.ScaleTypeConversionUtils;
 import ubic.gemma.core.analysis.preprocess.convert.UnsupportedQuantitationTypeConversionException;
 import ubic.gemma.core.datastructure.matrix.SingleCellExpressionDataDoubleMatrix;
 import ubic.gemma.core.datastructure.matrix.SingleCellExpressionDataMatrix;
 import ubic.gemma.core.util.BuildInfo;
+import ubic.gemma.core.util.FormatBuffer;
 import ubic.gemma.core.util.TsvUtils;
 import ubic.gemma.model.common.quantitationtype.PrimitiveType;
 import ubic.gemma.model.common.quantitationtype.QuantitationType;
@@ -59,6 +59,11 @@ public class TabularMatrixWriter implements SingleCellExpressionDataMatrixWriter
     @Nullable
     private ScaleType scaleType;
 
+    /**
+     * Buffer used to format the values of a vector.
+     */
+    private final FormatBuffer buf = new FormatBuffer();
+
     public TabularMatrixWriter( EntityUrlBuilder entityUrlBuilder, BuildInfo buildInfo ) {
         this.entityUrlBuilder = entityUrlBuilder;
         this.buildInfo = buildInfo;
@@ -79,6 +84,7 @@ public class TabularMatrixWriter implements SingleCellExpressionDataMatrixWriter
         int written = 0;
         try ( PrintWriter pwriter = new PrintWriter( writer ) ) {
             writeHeader( matrix.getExpressionExperiment(), matrix.getQuantitationType(), matrix.getSingleCellDimension(), cs2gene, pwriter );
+            String[] cellIds = matrix.getCellIds().toArray( new String[0] );
             for ( int i = 0; i < rowptr.length - 1; i++ ) {
                 CompositeSequence cs = matrix.getDesignElements().get( i );
                 int len = rowptr[i + 1] - rowptr[i];
@@ -90,7 +96,7 @@ public class TabularMatrixWriter implements SingleCellExpressionDataMatrixWriter
                     indices[w] = colind[k];
                     w++;
                 }
-                writeVector( cs, cs2gene, matrix.getSingleCellDimension(), vals, PrimitiveType.DOUBLE, indices, writer );
+                writeVector( cs, cs2gene, matrix.getSingleCellDimension(), cellIds, vals, PrimitiveType.DOUBLE, indices, writer );
                 written++;
             }
         }
@@ -110,10 +116,18 @@ public class TabularMatrixWriter implements SingleCellExpressionDataMatrixWriter
         try ( PrintWriter pwriter = new PrintWriter( writer ) ) {
             SingleCellExpressionDataVector firstVec = it.next();
             writeHeader( firstVec.getExpressionExperiment(), firstVec.getQuantitationType(), firstVec.getSingleCellDimension(), cs2gene, pwriter );
-            writeVector( firstVec, cs2gene, pwriter );
+            // decode the cell IDs once rather than for every vector
+            SingleCellDimension dimension = firstVec.getSingleCellDimension();
+            String[] cellIds = dimension.getCellIds().toArray( new String[0] );
+            writeVector( firstVec, cs2gene, cellIds, pwriter );
             written++;
             while ( it.hasNext() ) {
-                writeVector( it.next(), cs2gene, pwriter );
+                SingleCellExpressionDataVector vec = it.next();
+                if ( vec.getSingleCellDimension() != dimension ) {
+                    dimension = vec.getSingleCellDimension();
+                    cellIds = dimension.getCellIds().toArray( new String[0] );
+                }
+                writeVector( vec, cs2gene, cellIds, pwriter );
                 written++;
             }
         }
@@ -143,26 +157,26 @@ public class TabularMatrixWriter implements SingleCellExpressionDataMatrixWriter
         }
     }
 
-    private void writeVector( SingleCellExpressionDataVector vector, @Nullable Map<CompositeSequence, Set<Gene>> cs2gene, Writer pwriter ) throws IOException {
+    private void writeVector( SingleCellExpressionDataVector vector, @Nullable Map<CompositeSequence, Set<Gene>> cs2gene, String[] cellIds, Writer pwriter ) throws IOException {
         if ( scaleType != null ) {
             try {
-                writeVector( vector.getDesignElement(), cs2gene, vector.getSingleCellDimension(), ScaleTypeConversionUtils.convertData( vector, scaleType ), PrimitiveType.DOUBLE, vector.getDataIndices(), pwriter );
+                writeVector( vector.getDesignElement(), cs2gene, vector.getSingleCellDimension(), cellIds, ScaleTypeConversionUtils.convertData( vector, scaleType ), PrimitiveType.DOUBLE, vector.getDataIndices(), pwriter );
             } catch ( UnsupportedQuantitationTypeConversionException e ) {
                 throw new RuntimeException( e );
             }
         } else {
             switch ( vector.getQuantitationType().getRepresentation() ) {
                 case FLOAT:
-                    writeVector( vector.getDesignElement(), cs2gene, vector.getSingleCellDimension(), vector.getDataAsFloats(), vector.getQuantitationType().getRepresentation(), vector.getDataIndices(), pwriter );
+                    writeVector( vector.getDesignElement(), cs2gene, vector.getSingleCellDimension(), cellIds, vector.getDataAsFloats(), vector.getQuantitationType().getRepresentation(), vector.getDataIndices(), pwriter );
                     break;
                 case DOUBLE:
-                    writeVector( vector.getDesignElement(), cs2gene, vector.getSingleCellDimension(), vector.getDataAsDoubles(), vector.getQuantitationType().getRepresentation(), vector.getDataIndices(), pwriter );
+                    writeVector( vector.getDesignElement(), cs2gene, vector.getSingleCellDimension(), cellIds, vector.getDataAsDoubles(), vector.getQuantitationType().getRepresentation(), vector.getDataIndices(), pwriter );
                     break;
                 case INT:
-                    writeVector( vector.getDesignElement(), cs2gene, vector.getSingleCellDimension(), vector.getDataAsInts(), vector.getQuantitationType().getRepresentation(), vector.getDataIndices(), pwriter );
+                    writeVector( vector.getDesignElement(), cs2gene, vector.getSingleCellDimension(), cellIds, vector.getDataAsInts(), vector.getQuantitationType().getRepresentation(), vector.getDataIndices(), pwriter );
                     break;
                 case LONG:
-                    writeVector( vector.getDesignElement(), cs2gene, vector.getSingleCellDimension(), vector.getDataAsLongs(), vector.getQuantitationType().getRepresentation(), vector.getDataIndices(), pwriter );
+                    writeVector( vector.getDesignElement(), cs2gene, vector.getSingleCellDimension(), cellIds, vector.getDataAsLongs(), vector.getQuantitationType().getRepresentation(), vector.getDataIndices(), pwriter );
                     break;
                 default:
                     // TODO: implement int, float and long
@@ -171,7 +185,7 @@ public class TabularMatrixWriter implements SingleCellExpressionDataMatrixWriter
         }
     }
 
-    private void writeVector( CompositeSequence cs, @Nullable Map<CompositeSequence, Set<Gene>> cs2gene, SingleCellDimension dimension, Object vec, PrimitiveType representation, int[] indices, Writer pwriter ) throws IOException {
+    private void writeVector( CompositeSequence cs, @Nullable Map<CompositeSequence, Set<Gene>> cs2gene, SingleCellDimension dimension, String[] cellIds, Object vec, PrimitiveType representation, int[] indices, Writer pwriter ) throws IOException {
         pwriter.append( format( cs.getId() ) )
                 .append( '\t' ).append( format( cs.getName() ) );
         if ( cs2gene != null ) {
@@ -187,41 +201,41 @@ public class TabularMatrixWriter implements SingleCellExpressionDataMatrixWriter
             if ( end < 0 ) {
                 end = -end - 1;
             }
-            int nnz = end - start;
-            if ( nnz == 0 ) {
-                // no cells to write for gene & sample
-                pwriter.append( "\t\t" );
-            } else {
-                String[] cellIds = new String[nnz];
-                String[] vals = new String[nnz];
-                int w = 0;
-                for ( int j = start; j < end; j++ ) {
-                    cellIds[w] = format( dimension.getCellIds().get( indices[j] ) );
-                    switch ( representation ) {
-                        case FLOAT:
-                            vals[w] = formatFast( ( ( float[] ) vec )[j] );
-                            break;
-                        case DOUBLE:
-                            vals[w] = formatFast( ( ( double[] ) vec )[j] );
-                            break;
-                        case INT:
-                            vals[w] = formatFast( ( ( int[] ) vec )[j] );
-                            break;
-                        case LONG:
-                            vals[w] = formatFast( ( ( long[] ) vec )[j] );
-                            break;
-                        default:
-                            throw new UnsupportedOperationException( "Unsupported representation " + representation + " for writing tabular data." );
-                    }
-                    w++;
+            // if there are no cells to write for gene & sample, this will produce two empty columns
+            buf.append( '\t' );
+            for ( int j = start; j < end; j++ ) {
+                if ( j > start ) {
+                    buf.append( SUB_DELIMITER );
+                }
+                buf.appendFormatted( cellIds[indices[j]] );
+            }
+            buf.append( '\t' );
+            for ( int j = start; j < end; j++ ) {
+                if ( j > start ) {
+                    buf.append( SUB_DELIMITER );
+                }
+                switch ( representation ) {
+                    case FLOAT:
+                        buf.appendFast( ( ( float[] ) vec )[j] );
+                        break;
+                    case DOUBLE:
+                        buf.appendFast( ( ( double[] ) vec )[j] );
+                        break;
+                    case INT:
+                        buf.appendFast( ( ( int[] ) vec )[j] );
+                        break;
+                    case LONG:
+                        buf.appendFast( ( ( long[] ) vec )[j] );
+                        break;
+                    default:
+                        throw new UnsupportedOperationException( "Unsupported representation " + representation + " for writing tabular data." );
                 }
-                pwriter
-                        .append( '\t' ).append( StringUtils.join( cellIds, SUB_DELIMITER ) )
-                        .append( '\t' ).append( StringUtils.join( vals, SUB_DELIMITER ) );
             }
             start = end;
         }
-        pwriter.append( '\n' );
+        buf.append( '\n' );
+        buf.writeTo( pwriter );
+        buf.clear();
         if (autoFlush) {
             pwriter.flush();
         }
@@ -22,11 +22,14 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.StopWatch;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.util.Assert;
 import ubic.basecode.util.FileTools;
 import ubic.gemma.core.loader.expression.geo.model.*;
 import ubic.gemma.core.loader.util.parser.Parser;
 import ubic.gemma.core.util.concurrent.Executors;
+import ubic.gemma.core.util.concurrent.SimpleThreadFactory;
 
+import javax.annotation.Nullable;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
@@ -46,6 +49,11 @@ public class GeoFamilyParser implements Parser<GeoParseResult> {
 
     private static final int MAX_WARNINGS = 100;
 
+    /**
+     * Number of lines read and tokenized at once.
+     */
+    private static final int LINES_PER_BATCH = 10000;
+
     private static final Log log = LogFactory.getLog( GeoFamilyParser.class.getName() );
     /**
      * For each platform, the map of column names to column numbers in the data.
@@ -89,6 +97,7 @@ public class GeoFamilyParser implements Parser<GeoParseResult> {
     private int sampleDataLines = 0;
     private boolean processPlatformsOnly;
     private int numWarnings = 0;
+    private int numberOfThreads = Math.min( 4, Runtime.getRuntime().availableProcessors() );
 
     @Override
     public Collection<GeoParseResult> getResults() {
@@ -176,6 +185,16 @@ public class GeoFamilyParser implements Parser<GeoParseResult> {
         this.processPlatformsOnly = b;
     }
 
+    /**
+     * Set the number of threads used to tokenize the platform and sample data tables.
+     * <p>
+     * Regardless of this setting, lines are read on a separate thread and applied in order on the parsing thread.
+     */
+    public void setNumberOfThreads( int numberOfThreads ) {
+        Assert.isTrue( numberOfThreads > 0, "The number of threads must be strictly positive." );
+        this.numberOfThreads = numberOfThreads;
+    }
+
     /**
      * Check to make sure data has been added for all the design elements, and all quantitation types. This is necessary
      * where the data for some design elements is omitted. This can happen if there is some variability between the
@@ -351,26 +370,41 @@ public class GeoFamilyParser implements Parser<GeoParseResult> {
         alreadyWarnedAboutClobbering = false;
         alreadyWarnedAboutInconsistentColumnOrder = false;
         alreadyWarnedAboutDuplicateColumnName = false;
-        String line;
         parsedLines = 0;
         processedDesignElements.clear();
 
+        /*
+         * Lines are read in batches by a single thread, so batches are read in the order they are submitted. Table
+         * lines are then tokenized in parallel and batches are applied in order on this thread, which is the only one
+         * touching the parser state.
+         */
+        ExecutorService readExecutor = Executors.newSingleThreadExecutor( new SimpleThreadFactory( "gemma-geo-family-parser-read-thread-" ) );
+        ExecutorService tokenizeExecutor = Executors.newFixedThreadPool( numberOfThreads, new SimpleThreadFactory( "gemma-geo-family-parser-tokenize-thread-" ) );
+        // one batch being read, one being applied and one for each worker
+        int maxBatchesInFlight = numberOfThreads + 2;
+        Deque<CompletableFuture<LineBatch>> batchesInFlight = new ArrayDeque<>( maxBatchesInFlight );
+        LineBatchReader batchReader = new LineBatchReader( dis );
+
         StopWatch timer = new StopWatch();
         timer.start();
         try {
 
-            while ( ( line = dis.readLine() ) != null ) {
-                if ( StringUtils.isBlank( line ) ) {
-                    continue;
+            LineBatch batch;
+            do {
+                while ( batchesInFlight.size() < maxBatchesInFlight ) {
+                    batchesInFlight.add( CompletableFuture
+                            .supplyAsync( batchReader::read, readExecutor )
+                            .thenApplyAsync( LineBatch::tokenize, tokenizeExecutor ) );
                 }
-
-                this.parseLine( line );
-                if ( ++parsedLines % 20000 == 0 && Thread.currentThread().isInterrupted() ) {
-                    dis.close(); // clean up
-                    throw new java.util.concurrent.CancellationException(
-                            "Thread was terminated during parsing. " + this.getClass() );
+                batch = this.awaitBatch( batchesInFlight.remove() );
+                for ( int i = 0; i < batch.lines.size(); i++ ) {
+                    this.parseLine( batch.lines.get( i ), batch.tokens[i] );
+                    if ( ++parsedLines % 20000 == 0 && Thread.currentThread().isInterrupted() ) {
+                        throw new java.util.concurrent.CancellationException(
+                                "Thread was terminated during parsing. " + this.getClass() );
+                    }
                 }
-            }
+            } while ( !batch.last );
 
             this.tidyUp();
 
@@ -380,6 +414,20 @@ public class GeoFamilyParser implements Parser<GeoParseResult> {
              * This happens if there was a cancellation.
              */
             throw new RuntimeException( e );
+        } finally {
+            for ( CompletableFuture<LineBatch> b : batchesInFlight ) {
+                b.cancel( true );
+            }
+            tokenizeExecutor.shutdownNow();
+            readExecutor.shutdownNow();
+            try {
+                // a read in progress must complete before the reader is closed
+                if ( !readExecutor.awaitTermination( 1, TimeUnit.MINUTES ) ) {
+                    GeoFamilyParser.log.warn( "Reading did not complete in time after parsing ended." );
+                }
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
         }
 
         timer.stop();
@@ -395,6 +443,20 @@ public class GeoFamilyParser implements Parser<GeoParseResult> {
         GeoFamilyParser.log.debug( this.sampleDataLines + " sample data lines" );
     }
 
+    private LineBatch awaitBatch( CompletableFuture<LineBatch> future ) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof UncheckedIOException ) {
+                throw ( ( UncheckedIOException ) e.getCause() ).getCause();
+            } else if ( e.getCause() instanceof RuntimeException ) {
+                throw ( RuntimeException ) e.getCause();
+            } else {
+                throw new RuntimeException( e.getCause() );
+            }
+        }
+    }
+
     private int extractChannelNumber( String line ) {
         int chIndex = line.lastIndexOf( "_ch" );
         if ( chIndex < 0 )
@@ -843,7 +905,10 @@ public class GeoFamilyParser implements Parser<GeoParseResult> {
         }
     }
 
-    private void parseLine( String line ) {
+    /**
+     * @param tokens tokens of the line if it was already split by {@link #splitTabs(String)}, or null
+     */
+    private void parseLine( String line, @Nullable String[] tokens ) {
         if ( StringUtils.isBlank( line ) )
             return;
         if ( line.startsWith( "^" ) ) {
@@ -943,7 +1008,7 @@ public class GeoFamilyParser implements Parser<GeoParseResult> {
                 GeoFamilyParser.log.error( "Unknown flag in subset: " + line );
             }
         } else {
-            this.parseRegularLine( line );
+            this.parseRegularLine( line, tokens );
         }
     }
 
@@ -952,7 +1017,7 @@ public class GeoFamilyParser implements Parser<GeoParseResult> {
      *
      * @param line line
      */
-    private void parsePlatformLine( String line ) {
+    private void parsePlatformLine( String line, @Nullable String[] tokens ) {
 
         if ( !haveReadPlatformHeader ) {
             haveReadPlatformHeader = true;
@@ -969,7 +1034,9 @@ public class GeoFamilyParser implements Parser<GeoParseResult> {
         // return;
         // }
 
-        String[] tokens = StringUtils.splitPreserveAllTokens( line, GeoFamilyParser.FIELD_DELIM );
+        if ( tokens == null ) {
+            tokens = GeoFamilyParser.splitTabs( line );
+        }
 
         List<String> columnNames = currentPlatform.getColumnNames();
         int numColumns = columnNames.size();
@@ -1099,7 +1166,7 @@ public class GeoFamilyParser implements Parser<GeoParseResult> {
      * @param line line
      */
     @SuppressWarnings("StatementWithEmptyBody") // Better readability
-    private void parseRegularLine( String line ) {
+    private void parseRegularLine( String line, @Nullable String[] tokens ) {
         if ( line.startsWith( "!" ) ) {
             String value = this.extractValue( line );
             if ( inSample ) {
@@ -1122,9 +1189,9 @@ public class GeoFamilyParser implements Parser<GeoParseResult> {
             this.parseColumnIdentifier( line );
         } else {
             if ( inPlatformTable ) {
-                this.parsePlatformLine( line );
+                this.parsePlatformLine( line, tokens );
             } else if ( inSampleTable ) {
-                this.parseSampleDataLine( line );
+                this.parseSampleDataLine( line, tokens );
             } else if ( inSeriesTable ) {
                 // we ignore this and use the sample data instead.
             } else if ( inDatasetTable ) {
@@ -1148,8 +1215,9 @@ public class GeoFamilyParser implements Parser<GeoParseResult> {
      * that isn't true, this will be BROKEN. However, we do try to sort it out if we can.
      *
      * @param line line
+     * @param tokens tokens of the line if it was already split, or null
      */
-    private void parseSampleDataLine( String line ) {
+    private void parseSampleDataLine( String line, @Nullable String[] tokens ) {
 
         if ( StringUtils.isBlank( line ) )
             return;
@@ -1170,9 +1238,9 @@ public class GeoFamilyParser implements Parser<GeoParseResult> {
             return;
         }
 
-        String[] tokens = StringUtils.splitPreserveAllTokens( line, GeoFamilyParser.FIELD_DELIM );
-
-        assert tokens != null;
+        if ( tokens == null ) {
+            tokens = GeoFamilyParser.splitTabs( line );
+        }
 
         /*
          * This can happen in some files that are mildly corrupted. -- we have to ignore it.
@@ -1867,4 +1935,112 @@ public class GeoFamilyParser implements Parser<GeoParseResult> {
         return clobbers;
     }
 
+    /**
+     * Split a line on {@link #FIELD_DELIM}, preserving empty tokens.
+     * <p>
+     * This is equivalent to {@link StringUtils#splitPreserveAllTokens(String, char)} for non-empty lines.
+     */
+    static String[] splitTabs( String line ) {
+        int numTokens = 1;
+        for ( int i = line.indexOf( FIELD_DELIM ); i >= 0; i = line.indexOf( FIELD_DELIM, i + 1 ) ) {
+            numTokens++;
+        }
+        String[] tokens = new String[numTokens];
+        int start = 0;
+        for ( int j = 0; j < numTokens - 1; j++ ) {
+            int end = line.indexOf( FIELD_DELIM, start );
+            tokens[j] = line.substring( start, end );
+            start = end + 1;
+        }
+        tokens[numTokens - 1] = line.substring( start );
+        return tokens;
+    }
+
+    /**
+     * A batch of non-blank lines, with the tokens of the lines that belong to a platform or sample data table.
+     */
+    private static class LineBatch {
+
+        private final List<String> lines;
+        /**
+         * Indicate which lines are likely to be table lines and should be tokenized.
+         */
+        private final BitSet tableLines;
+        /**
+         * Indicate if this is the last batch of the stream.
+         */
+        private final boolean last;
+        private String[][] tokens;
+
+        private LineBatch( List<String> lines, BitSet tableLines, boolean last ) {
+            this.lines = lines;
+            this.tableLines = tableLines;
+            this.last = last;
+        }
+
+        private LineBatch tokenize() {
+            tokens = new String[lines.size()][];
+            for ( int i = tableLines.nextSetBit( 0 ); i >= 0; i = tableLines.nextSetBit( i + 1 ) ) {
+                tokens[i] = GeoFamilyParser.splitTabs( lines.get( i ) );
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Read a stream in batches of lines.
+     * <p>
+     * Table lines are recognized from the {@code !Platform_table_begin}, {@code !sample_table_begin} and corresponding
+     * end markers alone. This is only a hint: the parser decides from its own state whether a line is part of a table
+     * and splits it itself if it was not tokenized ahead.
+     * <p>
+     * This is not thread-safe, {@link #read()} must be invoked from a single thread.
+     */
+    private static class LineBatchReader {
+
+        private final BufferedReader reader;
+        private boolean inTable = false;
+        private boolean eof = false;
+
+        private LineBatchReader( BufferedReader reader ) {
+            this.reader = reader;
+        }
+
+        private LineBatch read() {
+            List<String> lines = new ArrayList<>( eof ? 0 : LINES_PER_BATCH );
+            BitSet tableLines = new BitSet();
+            try {
+                String line;
+                while ( !eof && lines.size() < LINES_PER_BATCH ) {
+                    if ( ( line = reader.readLine() ) == null ) {
+                        eof = true;
+                        break;
+                    }
+                    if ( StringUtils.isBlank( line ) ) {
+                        continue;
+                    }
+                    char c = line.charAt( 0 );
+                    if ( c == '!' ) {
+                        if ( startsWith( line, "!platform_table_begin" ) || startsWith( line, "!sample_table_begin" ) ) {
+                            inTable = true;
+                        } else if ( startsWith( line, "!platform_table_end" ) || startsWith( line, "!sample_table_end" ) ) {
+                            inTable = false;
+                        }
+                    } else if ( c == '^' ) {
+                        inTable = false;
+                    } else if ( c != '#' && inTable ) {
+                        tableLines.set( lines.size() );
+                    }
+                    lines.add( line );
+                }
+            } catch ( IOException e ) {
+                throw new UncheckedIOException( e );
+            }
+            return new LineBatch( lines, tableLines, eof );
+        }
+
+        private boolean startsWith( String line, String prefix ) {
+            return line.regionMatches( true, 0, prefix, 0, prefix.length() );
+        }
+    }
 }
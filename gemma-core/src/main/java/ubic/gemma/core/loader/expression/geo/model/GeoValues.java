@@ -26,7 +26,6 @@ import ubic.gemma.core.loader.expression.geo.model.GeoDataset.PlatformType;
 import javax.annotation.Nullable;
 import java.io.Serializable;
 import java.util.*;
-import java.util.Map.Entry;
 
 /**
  * Class to store the expression data prior to conversion. The data are read from series files sample by sample, and
@@ -40,6 +39,11 @@ import java.util.Map.Entry;
  * There are two counterexamples we have found (so far) that push or violate these assumptions: GSE360 and GSE4345
  * (which is really broken). Loading GSE4345 results in a cast exception because the quantitation types are 'mixed up'
  * across the samples.
+ * <p>
+ * Values are stored column-wise: each platform has an index of its design elements and each sample has, for each
+ * quantitation type, a column of values indexed by design element. Plain decimal values are packed in primitive
+ * {@code long}s and restored exactly when a slice is requested, so parsing a large series does not need to retain a
+ * {@link String} for each measurement.
  *
  * @author pavlidis
  */
@@ -225,9 +229,14 @@ public class GeoValues implements Serializable {
     }
 
     /*
-     * Map of platform --> quantitationtype -> designElement -> values; values in same order as sampleVector.
+     * Map of platform --> quantitationtype -> values; columns are in the same order as sampleVector.
      */
-    private final Map<GeoPlatform, Map<Integer, Map<String, List<String>>>> data = new HashMap<>();
+    private final Map<GeoPlatform, Map<Integer, QuantitationTypeData>> data = new HashMap<>();
+
+    /*
+     * Map of platform --> design elements; shared by all the quantitation types of a platform.
+     */
+    private final Map<GeoPlatform, DesignElementIndex> designElementIndices = new HashMap<>();
     private final Map<GeoPlatform, Map<Integer, Collection<String>>> quantitationTypeIndexMap = new HashMap<>();
     private final Map<GeoPlatform, Map<String, Integer>> quantitationTypeNameMap = new HashMap<>();
 
@@ -385,21 +394,15 @@ public class GeoValues implements Serializable {
 
         GeoPlatform platform = this.addSample( sample, quantitationTypeIndex );
 
-        if ( !data.containsKey( platform ) ) {
-            data.put( platform, new HashMap<>() );
-        }
+        int designElementIndex = designElementIndices
+                .computeIfAbsent( platform, k -> new DesignElementIndex() )
+                .indexOf( designElement );
 
-        Map<Integer, Map<String, List<String>>> platformMap = data.get( platform );
-        if ( !platformMap.containsKey( quantitationTypeIndex ) ) {
-            platformMap.put( quantitationTypeIndex, new HashMap<>() );
-        }
-
-        Map<String, List<String>> qtMap = platformMap.get( quantitationTypeIndex );
-        if ( !qtMap.containsKey( designElement ) ) {
-            qtMap.put( designElement, new ArrayList<>() );
-        }
+        QuantitationTypeData qtData = data
+                .computeIfAbsent( platform, k -> new HashMap<>() )
+                .computeIfAbsent( quantitationTypeIndex, k -> new QuantitationTypeData() );
 
-        qtMap.get( designElement ).add( value );
+        qtData.add( sample, sampleDimensions.get( platform ).get( quantitationTypeIndex ), designElementIndex, designElement, value );
 
         if ( GeoValues.log.isTraceEnabled() ) {
             GeoValues.log.trace( "Adding value for platform=" + platform + " sample=" + sample + " qt="
@@ -414,6 +417,7 @@ public class GeoValues implements Serializable {
      */
     public void clear( GeoPlatform geoPlatform ) {
         this.data.remove( geoPlatform );
+        this.designElementIndices.remove( geoPlatform );
     }
 
     /**
@@ -495,8 +499,18 @@ public class GeoValues implements Serializable {
     }
 
     @SuppressWarnings({ "unused", "WeakerAccess" }) // Possible external use
+    @Nullable
     public List<String> getValues( GeoPlatform platform, Integer quantitationType, String designElement ) {
-        return data.get( platform ).get( quantitationType ).get( designElement );
+        QuantitationTypeData qtData = data.get( platform ).get( quantitationType );
+        int designElementIndex = designElementIndices.get( platform ).indexOfIfPresent( designElement );
+        if ( designElementIndex == -1 || !qtData.hasDesignElement( designElementIndex ) ) {
+            return null;
+        }
+        List<String> result = new ArrayList<>( qtData.columns.size() );
+        for ( Column column : qtData.columns ) {
+            result.add( column != null ? column.get( designElementIndex ) : null );
+        }
+        return result;
     }
 
     /**
@@ -506,16 +520,17 @@ public class GeoValues implements Serializable {
      * @param platform         platforms
      * @return a 'slice' of the data corresponding to the indices provided.
      */
+    @Nullable
     public String[] getValues( GeoPlatform platform, Integer quantitationType, String designElement,
             Integer[] indices ) {
-        Map<Integer, Map<String, List<String>>> map = data.get( platform );
+        Map<Integer, QuantitationTypeData> map = data.get( platform );
         assert map != null : "No data for platform=" + platform;
-        Map<String, List<String>> map2 = map.get( quantitationType );
-        assert map2 != null : "No data for qt " + quantitationType + " on " + platform;
-        List<String> rawvals = map2.get( designElement );
+        QuantitationTypeData qtData = map.get( quantitationType );
+        assert qtData != null : "No data for qt " + quantitationType + " on " + platform;
+        int designElementIndex = designElementIndices.get( platform ).indexOfIfPresent( designElement );
 
         // this can happen if the data doesn't contain that designElement.
-        if ( rawvals == null )
+        if ( designElementIndex == -1 || !qtData.hasDesignElement( designElementIndex ) )
             return null;
         String[] result = new String[indices.length];
         for ( int j = 0; j < indices.length; j++ ) {
@@ -527,17 +542,12 @@ public class GeoValues implements Serializable {
                  * There can be values missing if some data are missing for some samples. For example, on GSE1004,
                  * sample GSM15832 was run on HG-U95V1 while the rest are on HG-U95V2, so a few probes are missing data.
                  */
-                if ( rawvals.size() < ( i + 1 ) ) {
-                    throw new IllegalStateException(
-                            "Data out of bounds index=" + i + " (" + designElement + " on " + platform
-                                    + " quant.type # " + quantitationType + ") - vector has only " + rawvals.size()
-                                    + " values." );
-                }
-                String value = rawvals.get( i );
+                Column column = i < qtData.columns.size() ? qtData.columns.get( i ) : null;
+                String value = column != null ? column.get( designElementIndex ) : null;
                 if ( value == null ) {
                     if ( GeoValues.log.isDebugEnabled() )
                         GeoValues.log.debug( "No data for index " + i + " (" + designElement + " on " + platform
-                                + " quant.type # " + quantitationType + ") - vector has " + rawvals.size()
+                                + " quant.type # " + quantitationType + ") - vector has " + qtData.columns.size()
                                 + " values." );
                 }
                 result[j] = value;
@@ -593,19 +603,19 @@ public class GeoValues implements Serializable {
                     }
                 }
 
+                // the design element index is never modified once parsing is done, so it can be shared
+                v.designElementIndices.put( p, this.designElementIndices.get( p ) );
                 v.data.put( p, new HashMap<>() );
                 for ( Integer o : this.data.get( p ).keySet() ) {
-                    v.data.get( p ).put( o, new HashMap<>() );
-
-                    for ( String probeId : this.data.get( p ).get( o ).keySet() ) {
-                        v.data.get( p ).get( o ).put( probeId, new ArrayList<>() );
-                    }
+                    QuantitationTypeData qtData = new QuantitationTypeData();
+                    qtData.designElements.or( this.data.get( p ).get( o ).designElements );
+                    v.data.get( p ).put( o, qtData );
                 }
             }
         }
 
         /*
-         * Then, subset the data.
+         * Then, subset the data. Columns are never modified once parsing is done, so they can be shared as well.
          */
         for ( GeoPlatform p : v.sampleDimensions.keySet() ) {
             for ( Integer o : v.sampleDimensions.get( p ).keySet() ) {
@@ -617,9 +627,10 @@ public class GeoValues implements Serializable {
 
                     if ( samples.contains( geoSample ) ) {
 
-                        Map<String, List<String>> newmap = v.data.get( p ).get( o );
-                        for ( String probeId : newmap.keySet() ) {
-                            newmap.get( probeId ).add( this.data.get( p ).get( o ).get( probeId ).get( i ) );
+                        QuantitationTypeData newData = v.data.get( p ).get( o );
+                        if ( newData != null ) {
+                            List<Column> columns = this.data.get( p ).get( o ).columns;
+                            newData.columns.add( i < columns.size() ? columns.get( i ) : null );
                         }
 
                     } else {
@@ -664,14 +675,20 @@ public class GeoValues implements Serializable {
                 }
                 buf.append( "\n" );
 
-                Map<String, List<String>> map = data.get( platform ).get( qType );
-                assert map != null;
-                List<String> els = new ArrayList<>( map.keySet() );
+                QuantitationTypeData qtData = data.get( platform ).get( qType );
+                assert qtData != null;
+                DesignElementIndex index = designElementIndices.get( platform );
+                List<String> els = new ArrayList<>( qtData.designElements.cardinality() );
+                for ( int i = qtData.designElements.nextSetBit( 0 ); i >= 0; i = qtData.designElements.nextSetBit( i + 1 ) ) {
+                    els.add( index.get( i ) );
+                }
                 Collections.sort( els );
                 for ( String dEl : els ) {
                     buf.append( dEl );
 
-                    for ( String val : map.get( dEl ) ) {
+                    int dElIndex = index.indexOfIfPresent( dEl );
+                    for ( Column column : qtData.columns ) {
+                        String val = column != null ? column.get( dElIndex ) : null;
                         if ( val == null || StringUtils.isBlank( val ) ) {
                             val = ".";
                         }
@@ -697,7 +714,7 @@ public class GeoValues implements Serializable {
     public void validate() {
         for ( GeoPlatform platform : sampleDimensions.keySet() ) {
 
-            Map<Integer, Map<String, List<String>>> d = data.get( platform );
+            Map<Integer, QuantitationTypeData> d = data.get( platform );
 
             for ( Integer qType : sampleDimensions.get( platform ).keySet() ) {
 
@@ -719,31 +736,34 @@ public class GeoValues implements Serializable {
                 }
                 Collection<String> qtNames = qtMap.get( qType );
 
-                Map<String, List<String>> q = d.get( qType );
-                boolean warned = false;
-                for ( Entry<String, List<String>> e : q.entrySet() ) {
-                    String designElement = e.getKey();
-                    List<String> vals = e.getValue();
-
-                    if ( vals.size() < numSamples ) {
-                        int paddingAmount = numSamples - vals.size();
-                        if ( !warned )
-                            GeoValues.log.warn( "Padding some vectors with " + paddingAmount
-                                    + " values for quantitation type " + qType + "(" + StringUtils.join( qtNames, "/" )
-                                    + ")" );
-                        warned = true;
-                        for ( int i = 0; i < paddingAmount; i++ ) {
-                            vals.add( null );
-                        }
-                    } else if ( vals.size() > numSamples ) {
-                        GeoValues.log.error( "Samples so far: " + StringUtils
-                                .join( sampleDimensions.get( platform ).get( qType ), ',' ) );
-                        throw new IllegalStateException(
-                                "Validation failed at platform=" + platform + " designelement=" + designElement
-                                        + " qType=" + qType + " expected " + numSamples + " values, got " + vals.size()
-                                        + "; name(s) for qType are " + StringUtils.join( qtNames, "," ) );
+                QuantitationTypeData q = d != null ? d.get( qType ) : null;
+                if ( q == null ) {
+                    continue;
+                }
+
+                if ( q.duplicatedDesignElement != null ) {
+                    GeoValues.log.error( "Samples so far: " + StringUtils
+                            .join( sampleDimensions.get( platform ).get( qType ), ',' ) );
+                    throw new IllegalStateException(
+                            "Validation failed at platform=" + platform + " designelement=" + q.duplicatedDesignElement
+                                    + " qType=" + qType + " expected " + numSamples + " values, got more than "
+                                    + numSamples + "; name(s) for qType are " + StringUtils.join( qtNames, "," ) );
+                }
+
+                // missing values are not stored, so there is nothing to pad, but we still report incomplete samples
+                int numDesignElements = q.designElements.cardinality();
+                int paddingAmount = 0;
+                for ( int i = 0; i < numSamples; i++ ) {
+                    Column column = i < q.columns.size() ? q.columns.get( i ) : null;
+                    if ( column == null || column.size() < numDesignElements ) {
+                        paddingAmount++;
                     }
                 }
+                if ( paddingAmount > 0 ) {
+                    GeoValues.log.warn( "Padding some vectors with " + paddingAmount
+                            + " values for quantitation type " + qType + "(" + StringUtils.join( qtNames, "/" )
+                            + ")" );
+                }
                 if ( GeoValues.log.isDebugEnabled() )
                     GeoValues.log
                             .debug( qType + " ok on " + platform + ", all vectors have " + numSamples + " values" );
@@ -779,4 +799,255 @@ public class GeoValues implements Serializable {
         return platform;
     }
 
+    /**
+     * Interned design element names for a given platform.
+     * <p>
+     * Each design element is assigned a dense index that is shared by all the quantitation types and samples of the
+     * platform.
+     */
+    private static class DesignElementIndex implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Map<String, Integer> indexByName = new HashMap<>();
+        private final List<String> names = new ArrayList<>();
+
+        /*
+         * The parser adds all the quantitation types of a data line with the same design element, so we can skip the
+         * lookup most of the time.
+         */
+        @Nullable
+        private transient String lastName;
+        private transient int lastIndex;
+
+        private int indexOf( String name ) {
+            if ( name == lastName ) {
+                return lastIndex;
+            }
+            Integer index = indexByName.get( name );
+            if ( index == null ) {
+                index = names.size();
+                indexByName.put( name, index );
+                names.add( name );
+            }
+            lastName = name;
+            lastIndex = index;
+            return index;
+        }
+
+        /**
+         * @return the index of the design element or -1 if it is unknown
+         */
+        private int indexOfIfPresent( String name ) {
+            Integer index = indexByName.get( name );
+            return index != null ? index : -1;
+        }
+
+        private String get( int index ) {
+            return names.get( index );
+        }
+    }
+
+    /**
+     * Values for a given platform and quantitation type.
+     */
+    private static class QuantitationTypeData implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Columns in the same order as the sample dimension, a column may be null if the sample has no data.
+         */
+        private final List<Column> columns = new ArrayList<>();
+
+        /**
+         * Design elements that have at least one value.
+         */
+        private final BitSet designElements = new BitSet();
+
+        /**
+         * First design element that received more than one value for a given sample, reported by {@link GeoValues#validate()}.
+         */
+        @Nullable
+        private String duplicatedDesignElement;
+
+        @Nullable
+        private transient GeoSample lastSample;
+        @Nullable
+        private transient Column lastColumn;
+
+        private void add( GeoSample sample, LinkedHashSet<GeoSample> sampleDimension, int designElementIndex, String designElement, String value ) {
+            if ( sample != lastSample || lastColumn == null ) {
+                int sampleIndex = 0;
+                for ( GeoSample s : sampleDimension ) {
+                    if ( s.equals( sample ) ) {
+                        break;
+                    }
+                    sampleIndex++;
+                }
+                while ( columns.size() <= sampleIndex ) {
+                    columns.add( null );
+                }
+                Column column = columns.get( sampleIndex );
+                if ( column == null ) {
+                    column = new Column();
+                    columns.set( sampleIndex, column );
+                }
+                lastSample = sample;
+                lastColumn = column;
+            }
+            if ( !lastColumn.set( designElementIndex, value ) && duplicatedDesignElement == null ) {
+                duplicatedDesignElement = designElement;
+            }
+            designElements.set( designElementIndex );
+        }
+
+        private boolean hasDesignElement( int designElementIndex ) {
+            return designElements.get( designElementIndex );
+        }
+    }
+
+    /**
+     * Values of a sample for a given quantitation type, indexed by design element.
+     * <p>
+     * Plain decimal values (i.e. {@code 12}, {@code -0.250}), which make up the vast majority of GEO data, are packed
+     * in a {@code long} as an unscaled value and a number of decimals. This is lossless: the original text is restored
+     * by {@link #get(int)}. Anything else (scientific notation, {@code null}, flags, blanks, etc.) is kept as-is.
+     */
+    static class Column implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final int SCALE_BITS = 5;
+        private static final long SCALE_MASK = ( 1L << SCALE_BITS ) - 1;
+        /**
+         * Largest unscaled value that can be packed.
+         */
+        private static final long MAX_UNSCALED = ( 1L << ( 63 - SCALE_BITS ) ) - 1;
+        /**
+         * Indicate that a value cannot be packed, it is not a valid packed value since the unscaled value is bounded by
+         * {@link #MAX_UNSCALED}.
+         */
+        static final long NOT_PACKABLE = Long.MIN_VALUE;
+
+        private long[] packed = new long[0];
+        /**
+         * Values that could not be packed, allocated on first use.
+         */
+        @Nullable
+        private String[] strings;
+        private final BitSet present = new BitSet();
+
+        /**
+         * @return false if a value was already set for the given design element, in which case it is overwritten
+         */
+        private boolean set( int designElementIndex, String value ) {
+            boolean wasPresent = present.get( designElementIndex );
+            ensureCapacity( designElementIndex );
+            long p = pack( value );
+            if ( p != NOT_PACKABLE ) {
+                packed[designElementIndex] = p;
+                if ( strings != null ) {
+                    strings[designElementIndex] = null;
+                }
+            } else {
+                if ( strings == null ) {
+                    strings = new String[packed.length];
+                }
+                strings[designElementIndex] = value;
+            }
+            present.set( designElementIndex );
+            return !wasPresent;
+        }
+
+        @Nullable
+        String get( int designElementIndex ) {
+            if ( !present.get( designElementIndex ) ) {
+                return null;
+            }
+            if ( strings != null && strings[designElementIndex] != null ) {
+                return strings[designElementIndex];
+            }
+            return unpack( packed[designElementIndex] );
+        }
+
+        /**
+         * @return the number of design elements with a value
+         */
+        int size() {
+            return present.cardinality();
+        }
+
+        private void ensureCapacity( int designElementIndex ) {
+            if ( designElementIndex >= packed.length ) {
+                int newCapacity = Math.max( designElementIndex + 1, Math.max( 16, packed.length + ( packed.length >> 1 ) ) );
+                packed = Arrays.copyOf( packed, newCapacity );
+                if ( strings != null ) {
+                    strings = Arrays.copyOf( strings, newCapacity );
+                }
+            }
+        }
+
+        /**
+         * Pack a plain decimal number such that {@link #unpack(long)} restores it exactly.
+         * @return the packed value or {@link #NOT_PACKABLE} if the value cannot be restored exactly
+         */
+        static long pack( String value ) {
+            int len = value.length();
+            int i = 0;
+            boolean negative = false;
+            if ( len > 0 && value.charAt( 0 ) == '-' ) {
+                negative = true;
+                i++;
+            }
+            int integerStart = i;
+            long unscaled = 0;
+            int scale = -1;
+            for ( ; i < len; i++ ) {
+                char c = value.charAt( i );
+                if ( c >= '0' && c <= '9' ) {
+                    unscaled = 10 * unscaled + ( c - '0' );
+                    if ( unscaled > MAX_UNSCALED ) {
+                        return NOT_PACKABLE;
+                    }
+                    if ( scale >= 0 ) {
+                        scale++;
+                    }
+                } else if ( c == '.' && scale == -1 ) {
+                    scale = 0;
+                } else {
+                    return NOT_PACKABLE;
+                }
+            }
+            int integerDigits = ( scale == -1 ? len : len - scale - 1 ) - integerStart;
+            // no digits, leading zeroes, dangling decimal point or a negative zero cannot be restored
+            if ( integerDigits == 0
+                    || ( integerDigits > 1 && value.charAt( integerStart ) == '0' )
+                    || scale == 0
+                    || scale > SCALE_MASK
+                    || ( negative && unscaled == 0 ) ) {
+                return NOT_PACKABLE;
+            }
+            return ( ( negative ? -unscaled : unscaled ) << SCALE_BITS ) | Math.max( scale, 0 );
+        }
+
+        static String unpack( long packed ) {
+            long unscaled = packed >> SCALE_BITS;
+            int scale = ( int ) ( packed & SCALE_MASK );
+            String digits = Long.toString( Math.abs( unscaled ) );
+            if ( scale == 0 ) {
+                return unscaled < 0 ? "-" + digits : digits;
+            }
+            StringBuilder buf = new StringBuilder( digits.length() + scale + 2 );
+            if ( unscaled < 0 ) {
+                buf.append( '-' );
+            }
+            for ( int i = digits.length(); i <= scale; i++ ) {
+                buf.append( '0' );
+            }
+            buf.append( digits );
+            buf.insert( buf.length() - scale, '.' );
+            return buf.toString();
+        }
+    }
 }
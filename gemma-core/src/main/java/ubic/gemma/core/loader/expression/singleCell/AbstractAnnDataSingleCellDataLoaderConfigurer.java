@@ -95,7 +95,7 @@ public abstract class AbstractAnnDataSingleCellDataLoaderConfigurer implements S
                 throw new RuntimeException( "Error wile attempting to automatically transform " + annDataFile + ".", e );
             }
         } else {
-            log.warn( "No Python executable or scratch directory is set, will not perform any transformation on " + annDataFile + "." );
+            log.warn( "No Python executable or scratch directory is set, will not perform any transformation on " + annDataFile + "; cell-major matrices will be transposed in a temporary file when vectors are loaded." );
             dataFileToUse = annDataFile;
         }
         AnnDataSingleCellDataLoader loader = new AnnDataSingleCellDataLoader( dataFileToUse ) {
@@ -116,6 +116,9 @@ public abstract class AbstractAnnDataSingleCellDataLoaderConfigurer implements S
                 configureSampleAndCellTypeColumns( ad.getVar(), loader, config );
             }
             configureRawX( loader, ad, config );
+            if ( config instanceof AnnDataSingleCellDataLoaderConfig && ( ( AnnDataSingleCellDataLoaderConfig ) config ).getNumberOfThreads() != null ) {
+                loader.setNumberOfThreads( ( ( AnnDataSingleCellDataLoaderConfig ) config ).getNumberOfThreads() );
+            }
         } catch ( Exception e ) {
             try {
                 loader.close();
@@ -75,6 +75,9 @@ public abstract class AbstractMexSingleCellDataLoaderConfigurer implements Singl
             MexSingleCellDataLoaderConfig mexConfig = ( MexSingleCellDataLoaderConfig ) config;
             loader.setAllowMappingDesignElementsToGeneSymbols( mexConfig.isAllowMappingDesignElementsToGeneSymbols() );
             loader.setUseDoublePrecision( ( mexConfig.isUseDoublePrecision() ) );
+            if ( mexConfig.getNumberOfThreads() != null ) {
+                loader.setNumberOfThreads( mexConfig.getNumberOfThreads() );
+            }
         }
         return loader;
     }
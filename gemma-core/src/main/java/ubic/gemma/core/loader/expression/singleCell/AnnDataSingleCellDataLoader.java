@@ -34,9 +34,11 @@ import javax.annotation.Nullable;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static java.util.Objects.requireNonNull;
 
@@ -111,6 +113,37 @@ public class AnnDataSingleCellDataLoader implements SingleCellDataLoader {
      */
     private int maxCharacteristics = 100;
 
+    /**
+     * Transpose sparse matrices stored cell-major instead of refusing to load them.
+     * <p>
+     * Vectors can only be sliced efficiently from a gene-major sparse matrix. If this is enabled, a cell-major matrix
+     * is transposed out-of-core with {@link TransposedSparseMatrix} when vectors are loaded, which does not require
+     * rewriting the AnnData file beforehand.
+     */
+    private boolean transposeCellMajorMatrices = true;
+
+    /**
+     * Maximum number of entries held in memory when transposing a cell-major matrix.
+     */
+    private int maxEntriesInMemoryForTranspose = 1 << 22;
+
+    /**
+     * Number of threads used to decode vectors while the next rows of the matrix are being read.
+     */
+    private int numberOfThreads = 1;
+
+    /**
+     * Maximum number of non-zero entries read at once from a sparse matrix.
+     * <p>
+     * Consecutive rows are coalesced until this limit is reached.
+     */
+    private int maxEntriesPerRead = 1 << 20;
+
+    /**
+     * Transposed matrices backing streams of vectors that have yet to be closed.
+     */
+    private final Set<TransposedSparseMatrix> transposedMatrices = ConcurrentHashMap.newKeySet();
+
     public AnnDataSingleCellDataLoader( Path file ) {
         this.file = file;
     }
@@ -783,7 +816,15 @@ public class AnnDataSingleCellDataLoader implements SingleCellDataLoader {
 
     @Override
     public void close() throws IOException {
+        for ( TransposedSparseMatrix matrix : new ArrayList<>( transposedMatrices ) ) {
+            closeTransposedMatrix( matrix );
+        }
+    }
 
+    private void closeTransposedMatrix( TransposedSparseMatrix matrix ) throws IOException {
+        if ( transposedMatrices.remove( matrix ) ) {
+            matrix.close();
+        }
     }
 
     @Nullable
@@ -859,6 +900,26 @@ public class AnnDataSingleCellDataLoader implements SingleCellDataLoader {
                                 throw new RuntimeException( e );
                             }
                         } );
+            } else if ( transposeCellMajorMatrices && ( matrixEncodingType.equals( "csr_matrix" ) || matrixEncodingType.equals( "csc_matrix" ) ) ) {
+                log.info( "The matrix at '" + layer.getPath() + "' is stored cell-major, it will be transposed in a temporary file..." );
+                TransposedSparseMatrix transposed;
+                try ( SparseMatrix matrix = layer.getSparseMatrix() ) {
+                    transposed = new TransposedSparseMatrix( matrix, getScalarType( quantitationType.getRepresentation() ), maxEntriesInMemoryForTranspose );
+                }
+                transposedMatrices.add( transposed );
+                try {
+                    return loadVectorsFromTransposedSparseMatrix( transposed, samples, genes, quantitationType, dimension, designElements )
+                            .onClose( () -> {
+                                try {
+                                    closeTransposedMatrix( transposed );
+                                } catch ( IOException e ) {
+                                    throw new RuntimeException( e );
+                                }
+                            } );
+                } catch ( RuntimeException e ) {
+                    closeTransposedMatrix( transposed );
+                    throw e;
+                }
             } else if ( matrixEncodingType.equals( "csr_matrix" ) ) {
                 throw new UnsupportedOperationException( "The matrix at '" + layer.getPath() + "' is stored as CSR and transposition is enabled; it must be converted to CSC for being loaded." );
             } else if ( matrixEncodingType.equals( "csc_matrix" ) ) {
@@ -885,6 +946,73 @@ public class AnnDataSingleCellDataLoader implements SingleCellDataLoader {
 
         SampleMetadata m = createSampleMetadata( scd, samples );
 
+        EntityMapper.StatefulEntityMapper<CompositeSequence> statefulDesignElementMapper = designElementToGeneMapper
+                .forCandidates( designElements );
+
+        // mapping is done upfront since the mapper is not meant to be used by the decoding threads
+        CompositeSequence[] designElementByRow = new CompositeSequence[matrix.getShape()[0]];
+        int[] selectedRows = new int[matrix.getShape()[0]];
+        int numSelectedRows = 0;
+        for ( int i = 0; i < matrix.getShape()[0]; i++ ) {
+            // ignore entries that are missing a gene mapping
+            if ( statefulDesignElementMapper.contains( genes.get( i ) ) ) {
+                designElementByRow[i] = statefulDesignElementMapper.matchOne( genes.get( i ) ).get();
+                selectedRows[numSelectedRows++] = i;
+            }
+        }
+        selectedRows = Arrays.copyOf( selectedRows, numSelectedRows );
+
+        SparseMatrixReadAheadIterator<SingleCellExpressionDataVector> iterator = new SparseMatrixReadAheadIterator<>(
+                matrix, selectedRows, getScalarType( qt.getRepresentation() ), rows -> {
+            List<SingleCellExpressionDataVector> vectors = new ArrayList<>( rows.getEndRow() - rows.getStartRow() );
+            for ( int i = rows.getStartRow(); i < rows.getEndRow(); i++ ) {
+                SingleCellExpressionDataVector vector = new SingleCellExpressionDataVector();
+                vector.setOriginalDesignElement( genes.get( i ) );
+                vector.setDesignElement( designElementByRow[i] );
+                vector.setSingleCellDimension( scd );
+                vector.setQuantitationType( qt );
+                try {
+                    int[] IX = rows.getIndices( i );
+                    if ( !ArrayUtils.isSorted( IX ) ) {
+                        // this is annoying, AnnData does not guarantee that indices are sorted
+                        // https://github.com/scverse/anndata/issues/1388
+                        throw new IllegalStateException( String.format( "Indices for %s are not sorted.", vector.getDesignElement() ) );
+                    }
+                    populateVectorData( vector, IX, rows.getData( i ), scd, m );
+                } catch ( Exception e ) {
+                    throw new RuntimeException( String.format( "Failed to load single-cell vector for %s from row %d.",
+                            vector.getDesignElement(), i ), e );
+                }
+                vectors.add( vector );
+            }
+            return vectors;
+        }, maxEntriesPerRead, numberOfThreads );
+
+        return StreamSupport.stream( Spliterators.spliterator( iterator, selectedRows.length, Spliterator.ORDERED | Spliterator.NONNULL ), false )
+                .onClose( () -> {
+                    try {
+                        iterator.close();
+                    } finally {
+                        matrix.close();
+                    }
+                } );
+    }
+
+    /**
+     * Load vectors from a cell-major matrix that was transposed.
+     */
+    private Stream<SingleCellExpressionDataVector> loadVectorsFromTransposedSparseMatrix( TransposedSparseMatrix
+            matrix, Dataframe.Column<?, String> samples, Dataframe.Column<?, String> genes, QuantitationType
+            qt, SingleCellDimension scd, Collection<CompositeSequence> designElements ) {
+        Assert.isTrue( genes.size() == matrix.getShape()[0],
+                "The number of supplied genes does not match the number of rows in the transposed sparse matrix." );
+        Assert.isTrue( samples.size() == matrix.getShape()[1],
+                "The number of supplied samples does not match the number of columns in the transposed sparse matrix." );
+        Assert.isTrue( scd.getNumberOfCells() <= matrix.getShape()[1],
+                "The number of cells in the dimension cannot exceed the number of columns in the sparse matrix." );
+
+        SampleMetadata m = createSampleMetadata( scd, samples );
+
         EntityMapper.StatefulEntityMapper<CompositeSequence> statefulDesignElementMapper = designElementToGeneMapper
                 .forCandidates( designElements );
 
@@ -898,14 +1026,13 @@ public class AnnDataSingleCellDataLoader implements SingleCellDataLoader {
                     vector.setSingleCellDimension( scd );
                     vector.setQuantitationType( qt );
                     try {
-                        populateVectorData( vector, i, scd, matrix, m );
+                        populateVectorData( vector, matrix.getIndices( i ), matrix.getData( i ), scd, m );
                     } catch ( Exception e ) {
-                        throw new RuntimeException( String.format( "Failed to load single-cell vector for %s from row %d.",
+                        throw new RuntimeException( String.format( "Failed to load single-cell vector for %s from row %d of the transposed matrix.",
                                 vector.getDesignElement(), i ), e );
                     }
                     return vector;
-                } )
-                .onClose( matrix::close );
+                } );
     }
 
     @Value
@@ -977,113 +1104,71 @@ public class AnnDataSingleCellDataLoader implements SingleCellDataLoader {
         return new SampleMetadata( samplesBioAssay.toArray( new BioAssay[0] ), samplesBioAssayIndex, samplesBioAssayOffset, isSimpleCase );
     }
 
-    private void populateVectorData( SingleCellExpressionDataVector vector, int i, SingleCellDimension
-            scd, SparseMatrix matrix, SampleMetadata m ) {
-        int[] IX;
-        try ( H5Dataset indices = matrix.getIndices() ) {
-            IX = indices.slice( matrix.getIndptr()[i], matrix.getIndptr()[i + 1] ).toIntegerVector();
-        }
-        if ( !ArrayUtils.isSorted( IX ) ) {
-            // this is annoying, AnnData does not guarantee that indices are sorted
-            // https://github.com/scverse/anndata/issues/1388
-            throw new IllegalStateException( String.format( "Indices for %s are not sorted.", vector.getDesignElement() ) );
-        }
+    /**
+     * Populate a vector from a row of a sparse matrix that was already read.
+     * @param IX   indices of the cells with non-zero values, in ascending order
+     * @param data data of the row, encoded with the representation of the vector
+     */
+    private void populateVectorData( SingleCellExpressionDataVector vector, int[] IX, byte[] data, SingleCellDimension scd, SampleMetadata m ) {
         // simple case: the number of BAs match the number of samples and the sample order match
         if ( m.isSimpleCase ) {
-            // this is using the same storage strategy from ByteArrayConverter
-            try ( H5Dataset data = matrix.getData() ) {
-                long start = matrix.getIndptr()[i];
-                long end = matrix.getIndptr()[i + 1];
-                if ( end - start > scd.getNumberOfCells() ) {
-                    throw new IllegalStateException( "The number of non-zero entries for " + vector.getDesignElement() + " exceeds the number of cells." );
-                }
-                switch ( vector.getQuantitationType().getRepresentation() ) {
-                    case FLOAT:
-                        vector.setData( data.slice( start, end ).toByteVector( H5Type.IEEE_F32BE ) );
-                        break;
-                    case DOUBLE:
-                        vector.setData( data.slice( start, end ).toByteVector( H5Type.IEEE_F64BE ) );
-                        break;
-                    case INT:
-                        vector.setData( data.slice( start, end ).toByteVector( H5Type.STD_I32BE ) );
-                        break;
-                    case LONG:
-                        vector.setData( data.slice( start, end ).toByteVector( H5Type.STD_I64BE ) );
-                        break;
-                }
+            if ( IX.length > scd.getNumberOfCells() ) {
+                throw new IllegalStateException( "The number of non-zero entries for " + vector.getDesignElement() + " exceeds the number of cells." );
             }
+            // this is using the same storage strategy from ByteArrayConverter
+            vector.setData( data );
             vector.setDataIndices( IX );
-        } else {
-            // for each sample we want, we compute the starting, ending and position in the vector
-            int[] sampleStarts = new int[scd.getBioAssaysOffset().length];
-            int[] sampleEnds = new int[scd.getBioAssaysOffset().length];
-            int[] sampleIndices = new int[scd.getBioAssaysOffset().length];
-            // this will hold the size of the vector necessary to hold all the desired sample
-            int nnz = 0;
-            List<BioAssay> bioAssays = scd.getBioAssays();
-            for ( int k = 0; k < bioAssays.size(); k++ ) {
-                BioAssay ba = bioAssays.get( k );
-                assert m.samplesBioAssayIndex.containsKey( ba );
-                int j = m.samplesBioAssayIndex.get( ba );
-                int start = Arrays.binarySearch( IX, m.samplesBioAssayOffset[j] );
-                if ( start < 0 ) {
-                    start = -start - 1;
-                }
-                int end;
-                if ( j < m.samplesBioAssayOffset.length - 1 ) {
-                    end = Arrays.binarySearch( IX, m.samplesBioAssayOffset[j + 1] );
-                    if ( end < 0 ) {
-                        end = -end - 1;
-                    }
-                } else {
-                    end = IX.length;
-                }
-                nnz += end - start;
-                sampleStarts[k] = start;
-                sampleEnds[k] = end;
-                sampleIndices[k] = j;
-            }
-            if ( nnz > scd.getNumberOfCells() ) {
-                throw new IllegalStateException( "The number of non-zero entries for " + vector.getDesignElement() + " exceeds the number of cells." );
+            return;
+        }
+        int scalarSize = vector.getQuantitationType().getRepresentation().getSizeInBytes();
+        List<BioAssay> bioAssays = scd.getBioAssays();
+        int[] sampleStarts = new int[bioAssays.size()];
+        int[] sampleEnds = new int[bioAssays.size()];
+        int nnz = 0;
+        for ( int k = 0; k < bioAssays.size(); k++ ) {
+            int j = m.samplesBioAssayIndex.get( bioAssays.get( k ) );
+            int start = Arrays.binarySearch( IX, m.samplesBioAssayOffset[j] );
+            sampleStarts[k] = start < 0 ? -start - 1 : start;
+            if ( j < m.samplesBioAssayOffset.length - 1 ) {
+                int end = Arrays.binarySearch( IX, m.samplesBioAssayOffset[j + 1] );
+                sampleEnds[k] = end < 0 ? -end - 1 : end;
+            } else {
+                sampleEnds[k] = IX.length;
             }
-            byte[] vectorData = new byte[vector.getQuantitationType().getRepresentation().getSizeInBytes() * nnz];
-            int[] vectorIndices = new int[nnz];
-            // select indices relevant to BAs
-            int sampleOffsetInVector = 0;
-            for ( int i1 = 0; i1 < bioAssays.size(); i1++ ) {
-                int j = sampleIndices[i1];
-                int start = sampleStarts[i1];
-                int end = sampleEnds[i1];
-                int sampleNnz = end - start;
-                if ( sampleNnz == 0 ) {
-                    continue;
-                }
-                try ( H5Dataset data = matrix.getData() ) {
-                    H5Dataset.H5Dataspace s = data.slice( start, end );
-                    switch ( vector.getQuantitationType().getRepresentation() ) {
-                        case FLOAT:
-                            s.toByteVector( vectorData, sampleOffsetInVector, sampleOffsetInVector + sampleNnz, H5Type.IEEE_F32BE );
-                            break;
-                        case DOUBLE:
-                            s.toByteVector( vectorData, sampleOffsetInVector, sampleOffsetInVector + sampleNnz, H5Type.IEEE_F64BE );
-                            break;
-                        case INT:
-                            s.toByteVector( vectorData, sampleOffsetInVector, sampleOffsetInVector + sampleNnz, H5Type.STD_I32BE );
-                            break;
-                        case LONG:
-                            s.toByteVector( vectorData, sampleOffsetInVector, sampleOffsetInVector + sampleNnz, H5Type.STD_I64BE );
-                            break;
-                    }
-                }
-                System.arraycopy( IX, start, vectorIndices, sampleOffsetInVector, sampleNnz );
-                // adjust indices to be relative to the BA offset
-                for ( int k = sampleOffsetInVector; k < sampleOffsetInVector + sampleNnz; k++ ) {
-                    vectorIndices[k] = vectorIndices[k] - m.samplesBioAssayOffset[j] + scd.getBioAssaysOffset()[i1];
-                }
-                sampleOffsetInVector += sampleNnz;
+            nnz += sampleEnds[k] - sampleStarts[k];
+        }
+        if ( nnz > scd.getNumberOfCells() ) {
+            throw new IllegalStateException( "The number of non-zero entries for " + vector.getDesignElement() + " exceeds the number of cells." );
+        }
+        byte[] vectorData = new byte[scalarSize * nnz];
+        int[] vectorIndices = new int[nnz];
+        int offset = 0;
+        for ( int k = 0; k < bioAssays.size(); k++ ) {
+            int j = m.samplesBioAssayIndex.get( bioAssays.get( k ) );
+            int sampleNnz = sampleEnds[k] - sampleStarts[k];
+            System.arraycopy( data, scalarSize * sampleStarts[k], vectorData, scalarSize * offset, scalarSize * sampleNnz );
+            // adjust indices to be relative to the BA offset
+            for ( int z = 0; z < sampleNnz; z++ ) {
+                vectorIndices[offset + z] = IX[sampleStarts[k] + z] - m.samplesBioAssayOffset[j] + scd.getBioAssaysOffset()[k];
             }
-            vector.setData( vectorData );
-            vector.setDataIndices( vectorIndices );
+            offset += sampleNnz;
+        }
+        vector.setData( vectorData );
+        vector.setDataIndices( vectorIndices );
+    }
+
+    private long getScalarType( PrimitiveType representation ) {
+        switch ( representation ) {
+            case FLOAT:
+                return H5Type.IEEE_F32BE;
+            case DOUBLE:
+                return H5Type.IEEE_F64BE;
+            case INT:
+                return H5Type.STD_I32BE;
+            case LONG:
+                return H5Type.STD_I64BE;
+            default:
+                throw new UnsupportedOperationException( "Unsupported representation " + representation + " for loading AnnData." );
         }
     }
 
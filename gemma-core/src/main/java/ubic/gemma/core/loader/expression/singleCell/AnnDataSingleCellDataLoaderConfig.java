@@ -24,4 +24,9 @@ public class AnnDataSingleCellDataLoaderConfig extends SingleCellDataLoaderConfi
     private Boolean transpose;
     @Nullable
     private Boolean useRawX;
+    /**
+     * Number of threads to use for decoding vectors while the matrix is being read.
+     */
+    @Nullable
+    private Integer numberOfThreads;
 }
@@ -0,0 +1,388 @@
+package ubic.gemma.core.loader.expression.singleCell;
+
+import lombok.extern.apachecommons.CommonsLog;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A sparse matrix in compressed row storage (CSR) whose column indices and values are kept in a temporary file.
+ * <p>
+ * Only the row pointers are held in memory, so a row can be retrieved with two positional reads without loading the
+ * rest of the matrix. The matrix is built from a Matrix Market file in a single pass over its entries: if they do not
+ * fit in the memory budget, they are first spilled to a second temporary file, which is then partitioned into one file
+ * per range of rows that fits in memory, and the CSR file is assembled from each range.
+ * <p>
+ * Like MTJ's {@link no.uib.cipr.matrix.sparse.CompRowMatrix}, explicit zeroes are retained and the entries of a row are
+ * sorted by column. Duplicate entries are rejected.
+ */
+@CommonsLog
+class DiskBackedCompRowMatrix implements Closeable {
+
+    /**
+     * Size of a spilled entry: row (int), column (int) and value (double).
+     */
+    private static final int SPILLED_ENTRY_SIZE = 16;
+
+    private static final int SPILL_BUFFER_SIZE = 8192 * SPILLED_ENTRY_SIZE;
+
+    /**
+     * Maximum number of bucket files that are written simultaneously. If there are more buckets, the spilled entries
+     * are read more than once.
+     */
+    private static final int MAX_OPEN_BUCKETS = 128;
+
+    /**
+     * Read a Matrix Market file.
+     * @param discardEmptyColumns  remove columns that have no entry and renumber the remaining ones
+     * @param maxEntriesInMemory   maximum number of entries held in memory while the matrix is being built
+     */
+    static DiskBackedCompRowMatrix read( Path matrixFile, boolean discardEmptyColumns, int maxEntriesInMemory ) throws IOException {
+        Path spillFile = null;
+        try ( MatrixMarketCoordinateReader reader = new MatrixMarketCoordinateReader( matrixFile ) ) {
+            int numRows = reader.getNumRows();
+            int numColumns = reader.getNumColumns();
+            long numEntries = reader.getNumEntries();
+            long[] rowPointers = new long[numRows + 1];
+            BitSet nonEmptyColumns = new BitSet( numColumns );
+
+            // first pass: count entries by row and either keep them in memory or spill them
+            int[] rows = null, columns = null;
+            double[] data = null;
+            if ( numEntries <= maxEntriesInMemory ) {
+                rows = new int[( int ) numEntries];
+                columns = new int[( int ) numEntries];
+                data = new double[( int ) numEntries];
+                for ( int i = 0; reader.next(); i++ ) {
+                    rows[i] = reader.getRow();
+                    columns[i] = reader.getColumn();
+                    data[i] = reader.getDouble();
+                    rowPointers[rows[i] + 1]++;
+                    nonEmptyColumns.set( columns[i] );
+                }
+            } else {
+                spillFile = Files.createTempFile( "gemma-mex-", ".spill" );
+                log.debug( "Spilling " + numEntries + " entries from " + matrixFile + " to " + spillFile + "..." );
+                try ( FileChannel spill = FileChannel.open( spillFile, StandardOpenOption.WRITE ) ) {
+                    ByteBuffer buf = ByteBuffer.allocateDirect( SPILL_BUFFER_SIZE );
+                    while ( reader.next() ) {
+                        if ( !buf.hasRemaining() ) {
+                            writeFully( spill, buf );
+                        }
+                        buf.putInt( reader.getRow() ).putInt( reader.getColumn() ).putDouble( reader.getDouble() );
+                        rowPointers[reader.getRow() + 1]++;
+                        nonEmptyColumns.set( reader.getColumn() );
+                    }
+                    writeFully( spill, buf );
+                }
+            }
+            for ( int i = 0; i < numRows; i++ ) {
+                rowPointers[i + 1] += rowPointers[i];
+            }
+
+            int[] columnMap = null;
+            int numNonEmptyColumns = nonEmptyColumns.cardinality();
+            if ( discardEmptyColumns && numNonEmptyColumns < numColumns ) {
+                columnMap = new int[numColumns];
+                Arrays.fill( columnMap, -1 );
+                int k = 0;
+                for ( int c = nonEmptyColumns.nextSetBit( 0 ); c >= 0; c = nonEmptyColumns.nextSetBit( c + 1 ) ) {
+                    columnMap[c] = k++;
+                }
+            }
+
+            // second pass: fill the CSR file one range of rows at a time
+            Path file = Files.createTempFile( "gemma-mex-", ".csr" );
+            FileChannel channel = FileChannel.open( file, StandardOpenOption.READ, StandardOpenOption.WRITE );
+            DiskBackedCompRowMatrix matrix = new DiskBackedCompRowMatrix( file, channel, numRows,
+                    columnMap != null ? numNonEmptyColumns : numColumns, columnMap != null ? numColumns - numNonEmptyColumns : 0,
+                    rowPointers );
+            try {
+                if ( rows != null ) {
+                    matrix.fillRows( 0, numRows, rows, columns, data, ( int ) numEntries, columnMap, matrixFile );
+                } else {
+                    // group rows in buckets that fit in memory
+                    int[] bucketStarts = new int[numRows + 1];
+                    int numBuckets = 0;
+                    for ( int row = 0; row < numRows; ) {
+                        int endRow = row + 1;
+                        while ( endRow < numRows && rowPointers[endRow + 1] - rowPointers[row] <= maxEntriesInMemory ) {
+                            endRow++;
+                        }
+                        bucketStarts[numBuckets++] = row;
+                        row = endRow;
+                    }
+                    bucketStarts[numBuckets] = numRows;
+                    log.debug( "Assembling " + numEntries + " spilled entries from " + matrixFile + " in " + numBuckets + " buckets..." );
+                    for ( int firstBucket = 0; firstBucket < numBuckets; firstBucket += MAX_OPEN_BUCKETS ) {
+                        int lastBucket = Math.min( firstBucket + MAX_OPEN_BUCKETS, numBuckets );
+                        Path[] bucketFiles = spillBuckets( spillFile, numEntries, bucketStarts, firstBucket, lastBucket );
+                        try {
+                            for ( int b = firstBucket; b < lastBucket; b++ ) {
+                                matrix.fillRowsFromBucket( bucketFiles[b - firstBucket], bucketStarts[b], bucketStarts[b + 1], columnMap, matrixFile );
+                                Files.delete( bucketFiles[b - firstBucket] );
+                            }
+                        } finally {
+                            for ( Path bucketFile : bucketFiles ) {
+                                Files.deleteIfExists( bucketFile );
+                            }
+                        }
+                    }
+                }
+            } catch ( IOException | RuntimeException e ) {
+                matrix.close();
+                throw e;
+            }
+            return matrix;
+        } finally {
+            if ( spillFile != null ) {
+                Files.deleteIfExists( spillFile );
+            }
+        }
+    }
+
+    private final Path file;
+    private final FileChannel channel;
+    private final int numRows;
+    private final int numColumns;
+    private final int numDiscardedColumns;
+    private final long[] rowPointers;
+
+    private DiskBackedCompRowMatrix( Path file, FileChannel channel, int numRows, int numColumns, int numDiscardedColumns, long[] rowPointers ) {
+        this.file = file;
+        this.channel = channel;
+        this.numRows = numRows;
+        this.numColumns = numColumns;
+        this.numDiscardedColumns = numDiscardedColumns;
+        this.rowPointers = rowPointers;
+    }
+
+    int numRows() {
+        return numRows;
+    }
+
+    /**
+     * Number of columns, excluding those that were discarded.
+     */
+    int numColumns() {
+        return numColumns;
+    }
+
+    int getNumberOfDiscardedColumns() {
+        return numDiscardedColumns;
+    }
+
+    /**
+     * Number of entries in a given row.
+     */
+    int getRowSize( int row ) {
+        return ( int ) ( rowPointers[row + 1] - rowPointers[row] );
+    }
+
+    /**
+     * Read the column indices and values of a row.
+     * @param offset position in the destination arrays where the row is written
+     */
+    void readRow( int row, int[] columns, double[] data, int offset ) throws IOException {
+        int n = getRowSize( row );
+        if ( n == 0 ) {
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.allocate( 8 * n );
+        buf.limit( 4 * n );
+        readFully( buf, 4 * rowPointers[row] );
+        buf.flip();
+        buf.asIntBuffer().get( columns, offset, n );
+        buf.clear();
+        readFully( buf, getValuesOffset() + 8 * rowPointers[row] );
+        buf.flip();
+        buf.asDoubleBuffer().get( data, offset, n );
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            Files.deleteIfExists( file );
+        }
+    }
+
+    /**
+     * Distribute the spilled entries that belong to a range of buckets in temporary files.
+     */
+    private static Path[] spillBuckets( Path spillFile, long numEntries, int[] bucketStarts, int firstBucket, int lastBucket ) throws IOException {
+        int numBuckets = lastBucket - firstBucket;
+        int firstRow = bucketStarts[firstBucket], lastRow = bucketStarts[lastBucket];
+        // bucket of each row, relative to the first bucket
+        int[] bucketOfRow = new int[lastRow - firstRow];
+        for ( int b = firstBucket; b < lastBucket; b++ ) {
+            for ( int row = bucketStarts[b]; row < bucketStarts[b + 1]; row++ ) {
+                bucketOfRow[row - firstRow] = b - firstBucket;
+            }
+        }
+        Path[] bucketFiles = new Path[numBuckets];
+        DataOutputStream[] outputs = new DataOutputStream[numBuckets];
+        try {
+            for ( int b = 0; b < numBuckets; b++ ) {
+                bucketFiles[b] = Files.createTempFile( "gemma-mex-", ".bucket" );
+                outputs[b] = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( bucketFiles[b] ), 1 << 16 ) );
+            }
+            try ( FileChannel spill = FileChannel.open( spillFile, StandardOpenOption.READ ) ) {
+                ByteBuffer buf = ByteBuffer.allocateDirect( SPILL_BUFFER_SIZE );
+                long remaining = numEntries;
+                while ( remaining > 0 ) {
+                    buf.clear();
+                    buf.limit( ( int ) Math.min( buf.capacity(), SPILLED_ENTRY_SIZE * remaining ) );
+                    while ( buf.hasRemaining() ) {
+                        if ( spill.read( buf ) == -1 ) {
+                            throw new EOFException( "Unexpected end of " + spillFile + "." );
+                        }
+                    }
+                    buf.flip();
+                    while ( buf.hasRemaining() ) {
+                        int row = buf.getInt();
+                        int column = buf.getInt();
+                        double value = buf.getDouble();
+                        if ( row < firstRow || row >= lastRow ) {
+                            continue;
+                        }
+                        DataOutputStream out = outputs[bucketOfRow[row - firstRow]];
+                        out.writeInt( row );
+                        out.writeInt( column );
+                        out.writeDouble( value );
+                    }
+                    remaining -= buf.limit() / SPILLED_ENTRY_SIZE;
+                }
+            }
+        } catch ( IOException | RuntimeException e ) {
+            for ( Path bucketFile : bucketFiles ) {
+                if ( bucketFile != null ) {
+                    Files.deleteIfExists( bucketFile );
+                }
+            }
+            throw e;
+        } finally {
+            for ( DataOutputStream out : outputs ) {
+                if ( out != null ) {
+                    out.close();
+                }
+            }
+        }
+        return bucketFiles;
+    }
+
+    /**
+     * Fill a range of rows from the entries spilled in a bucket file.
+     */
+    private void fillRowsFromBucket( Path bucketFile, int startRow, int endRow, @Nullable int[] columnMap, Path matrixFile ) throws IOException {
+        int n = ( int ) ( rowPointers[endRow] - rowPointers[startRow] );
+        int[] rows = new int[n];
+        int[] columns = new int[n];
+        double[] data = new double[n];
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( Files.newInputStream( bucketFile ), 1 << 16 ) ) ) {
+            for ( int k = 0; k < n; k++ ) {
+                rows[k] = in.readInt();
+                columns[k] = in.readInt();
+                data[k] = in.readDouble();
+            }
+        }
+        fillRows( startRow, endRow, rows, columns, data, n, columnMap, matrixFile );
+    }
+
+    /**
+     * Sort the entries of a range of rows by row and column and write them to the CSR file.
+     */
+    private void fillRows( int startRow, int endRow, int[] rows, int[] columns, double[] data, int n, @Nullable int[] columnMap, Path matrixFile ) throws IOException {
+        long start = rowPointers[startRow];
+        int size = ( int ) ( rowPointers[endRow] - start );
+        if ( n != size ) {
+            throw new IllegalStateException( "Expected " + size + " entries for rows " + startRow + " to " + endRow + " of " + matrixFile + ", got " + n + "." );
+        }
+        int[] sortedColumns = new int[size];
+        double[] sortedData = new double[size];
+        int[] fill = new int[endRow - startRow];
+        for ( int i = 0; i < n; i++ ) {
+            int r = rows[i] - startRow;
+            int j = ( int ) ( rowPointers[rows[i]] - start ) + fill[r]++;
+            sortedColumns[j] = columnMap != null ? columnMap[columns[i]] : columns[i];
+            sortedData[j] = data[i];
+        }
+        for ( int row = startRow; row < endRow; row++ ) {
+            sortRow( row, sortedColumns, sortedData, ( int ) ( rowPointers[row] - start ), getRowSize( row ), matrixFile );
+        }
+        ByteBuffer buf = ByteBuffer.allocate( 4 * size );
+        buf.asIntBuffer().put( sortedColumns );
+        writeFully( buf, 4 * start );
+        buf = ByteBuffer.allocate( 8 * size );
+        buf.asDoubleBuffer().put( sortedData );
+        writeFully( buf, getValuesOffset() + 8 * start );
+    }
+
+    /**
+     * Sort the entries of a row by column, which is a no-op for matrices written in column-major order.
+     */
+    private void sortRow( int row, int[] columns, double[] data, int from, int n, Path matrixFile ) {
+        boolean sorted = true;
+        for ( int i = from + 1; i < from + n; i++ ) {
+            if ( columns[i] <= columns[i - 1] ) {
+                sorted = false;
+                break;
+            }
+        }
+        if ( sorted ) {
+            return;
+        }
+        // the position of the entry is kept in the lower bits so that it can be permuted along
+        long[] keys = new long[n];
+        for ( int i = 0; i < n; i++ ) {
+            keys[i] = ( ( long ) columns[from + i] << 32 ) | i;
+        }
+        Arrays.sort( keys );
+        double[] rowData = Arrays.copyOfRange( data, from, from + n );
+        for ( int i = 0; i < n; i++ ) {
+            int column = ( int ) ( keys[i] >>> 32 );
+            if ( i > 0 && column == columns[from + i - 1] ) {
+                throw new IllegalArgumentException( String.format( "Matrix file %s has more than one entry for row %d and column %d.",
+                        matrixFile, row + 1, column + 1 ) );
+            }
+            columns[from + i] = column;
+            data[from + i] = rowData[( int ) keys[i]];
+        }
+    }
+
+    private long getValuesOffset() {
+        return 4 * rowPointers[numRows];
+    }
+
+    private void readFully( ByteBuffer buf, long position ) throws IOException {
+        while ( buf.hasRemaining() ) {
+            int read = channel.read( buf, position );
+            if ( read == -1 ) {
+                throw new EOFException( "Unexpected end of " + file + "." );
+            }
+            position += read;
+        }
+    }
+
+    private void writeFully( ByteBuffer buf, long position ) throws IOException {
+        while ( buf.hasRemaining() ) {
+            position += channel.write( buf, position );
+        }
+    }
+
+    private static void writeFully( FileChannel channel, ByteBuffer buf ) throws IOException {
+        buf.flip();
+        while ( buf.hasRemaining() ) {
+            channel.write( buf );
+        }
+        buf.clear();
+    }
+}
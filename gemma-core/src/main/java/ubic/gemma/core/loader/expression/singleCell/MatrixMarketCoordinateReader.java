@@ -0,0 +1,267 @@
+package ubic.gemma.core.loader.expression.singleCell;
+
+import ubic.gemma.core.util.FileUtils;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Single-pass reader for sparse matrices in the <a href="https://math.nist.gov/MatrixMarket/formats.html">Matrix Market</a>
+ * coordinate format.
+ * <p>
+ * Unlike MTJ's {@link no.uib.cipr.matrix.io.MatrixVectorReader}, entries are tokenized directly from the bytes of the
+ * file and read one at a time, so the whole matrix never has to be held in memory. Integer values are parsed without
+ * going through a {@link String}; real values are parsed with {@link Double#parseDouble(String)} to obtain exactly the
+ * same values as MTJ.
+ * <p>
+ * Only general matrices of integers or reals are supported, which covers what 10x Genomics produces. If the header is
+ * missing, the matrix is assumed to contain reals.
+ * <p>
+ * This class is not thread-safe.
+ */
+class MatrixMarketCoordinateReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Path path;
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0, limit = 0;
+
+    /**
+     * Buffer for tokens that have to be converted to a string.
+     */
+    private final byte[] token = new byte[64];
+
+    private final boolean integer;
+    private final int numRows, numColumns;
+    private final long numEntries;
+
+    private long entriesRead = 0;
+    private int row, column;
+    private long longValue;
+    private double doubleValue;
+
+    /**
+     * Open a matrix, which may be gzipped if its name ends with {@code .gz}, and read its header and size line.
+     */
+    MatrixMarketCoordinateReader( Path path ) throws IOException {
+        this.path = path;
+        this.in = path.toString().endsWith( ".gz" ) ? FileUtils.openCompressedFile( path ) : Files.newInputStream( path );
+        try {
+            boolean integer = false;
+            skipWhitespace();
+            if ( peek() == '%' ) {
+                String header = readLine().trim();
+                if ( header.startsWith( "%%MatrixMarket" ) ) {
+                    String[] pieces = header.toLowerCase().split( "\\s+" );
+                    if ( pieces.length != 5 || !pieces[1].equals( "matrix" ) || !pieces[2].equals( "coordinate" ) ) {
+                        throw new IOException( path + " is not a sparse matrix in coordinate format: " + header );
+                    }
+                    if ( pieces[3].equals( "integer" ) ) {
+                        integer = true;
+                    } else if ( !pieces[3].equals( "real" ) ) {
+                        throw new IOException( "Unsupported field " + pieces[3] + " in " + path + ", only integer and real are supported." );
+                    }
+                    if ( !pieces[4].equals( "general" ) ) {
+                        throw new IOException( "Unsupported symmetry " + pieces[4] + " in " + path + ", only general is supported." );
+                    }
+                }
+                // skip comments
+                skipWhitespace();
+                while ( peek() == '%' ) {
+                    readLine();
+                    skipWhitespace();
+                }
+            }
+            this.integer = integer;
+            this.numRows = ( int ) readUnsignedLong();
+            this.numColumns = ( int ) readUnsignedLong();
+            this.numEntries = readUnsignedLong();
+        } catch ( IOException | RuntimeException e ) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Indicate if the matrix is declared as containing integers.
+     */
+    boolean isInteger() {
+        return integer;
+    }
+
+    int getNumRows() {
+        return numRows;
+    }
+
+    int getNumColumns() {
+        return numColumns;
+    }
+
+    /**
+     * Number of entries declared in the size line.
+     */
+    long getNumEntries() {
+        return numEntries;
+    }
+
+    /**
+     * Move to the next entry.
+     * @return true if an entry was read, false if all the declared entries have been read
+     * @throws IOException if the file ends prematurely or an entry is malformed or out of bounds
+     */
+    boolean next() throws IOException {
+        if ( entriesRead == numEntries ) {
+            return false;
+        }
+        long r = readUnsignedLong();
+        long c = readUnsignedLong();
+        if ( r < 1 || r > numRows || c < 1 || c > numColumns ) {
+            throw new IOException( String.format( "Entry %d of %s is out of bounds: (%d, %d) for a %dx%d matrix.",
+                    entriesRead + 1, path, r, c, numRows, numColumns ) );
+        }
+        row = ( int ) r - 1;
+        column = ( int ) c - 1;
+        readValue();
+        entriesRead++;
+        return true;
+    }
+
+    /**
+     * Row of the current entry, 0-based.
+     */
+    int getRow() {
+        return row;
+    }
+
+    /**
+     * Column of the current entry, 0-based.
+     */
+    int getColumn() {
+        return column;
+    }
+
+    /**
+     * Value of the current entry.
+     */
+    double getDouble() {
+        return doubleValue;
+    }
+
+    /**
+     * Value of the current entry of a matrix of integers.
+     */
+    long getLong() {
+        if ( !integer ) {
+            throw new IllegalStateException( path + " does not contain integers." );
+        }
+        return longValue;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void readValue() throws IOException {
+        skipWhitespace();
+        int len = 0, digits = 0;
+        boolean isInteger = true;
+        boolean negative = false;
+        long v = 0;
+        int b;
+        while ( ( b = peek() ) != -1 && !isWhitespace( b ) ) {
+            position++;
+            if ( len == 0 && ( b == '-' || b == '+' ) ) {
+                negative = b == '-';
+            } else if ( b >= '0' && b <= '9' && v <= ( Long.MAX_VALUE - 9 ) / 10 ) {
+                v = 10 * v + ( b - '0' );
+                digits++;
+            } else {
+                isInteger = false;
+            }
+            if ( len == token.length ) {
+                throw new IOException( "Value of entry " + ( entriesRead + 1 ) + " of " + path + " is too long." );
+            }
+            token[len++] = ( byte ) b;
+        }
+        if ( len == 0 ) {
+            throw new EOFException( "Missing value for entry " + ( entriesRead + 1 ) + " of " + path + "." );
+        }
+        if ( isInteger && digits > 0 ) {
+            longValue = negative ? -v : v;
+            doubleValue = longValue;
+        } else {
+            String s = new String( token, 0, len, StandardCharsets.US_ASCII );
+            try {
+                doubleValue = Double.parseDouble( s );
+            } catch ( NumberFormatException e ) {
+                throw new IOException( "Invalid value for entry " + ( entriesRead + 1 ) + " of " + path + ": " + s + ".", e );
+            }
+            if ( integer ) {
+                throw new IOException( "Non-integer value for entry " + ( entriesRead + 1 ) + " of " + path + ": " + s + "." );
+            }
+        }
+    }
+
+    private long readUnsignedLong() throws IOException {
+        skipWhitespace();
+        long v = 0;
+        int len = 0;
+        int b;
+        while ( ( b = peek() ) >= '0' && b <= '9' ) {
+            position++;
+            v = 10 * v + ( b - '0' );
+            len++;
+        }
+        if ( len == 0 ) {
+            if ( b == -1 ) {
+                throw new EOFException( path + " ended after " + entriesRead + " entries, but " + numEntries + " were declared." );
+            }
+            throw new IOException( "Expected a number in " + path + ", got '" + ( char ) b + "'." );
+        }
+        if ( b != -1 && !isWhitespace( b ) ) {
+            throw new IOException( "Expected a number in " + path + ", got '" + ( char ) b + "'." );
+        }
+        return v;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ( ( b = peek() ) != -1 && b != '\n' ) {
+            position++;
+            sb.append( ( char ) b );
+        }
+        return sb.toString();
+    }
+
+    private void skipWhitespace() throws IOException {
+        int b;
+        while ( ( b = peek() ) != -1 && isWhitespace( b ) ) {
+            position++;
+        }
+    }
+
+    private int peek() throws IOException {
+        if ( position == limit ) {
+            limit = in.read( buffer, 0, buffer.length );
+            position = 0;
+            if ( limit <= 0 ) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position] & 0xFF;
+    }
+
+    private static boolean isWhitespace( int b ) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+}
@@ -3,9 +3,7 @@ package ubic.gemma.core.loader.expression.singleCell;
 import lombok.Setter;
 import lombok.extern.apachecommons.CommonsLog;
 import no.uib.cipr.matrix.io.MatrixInfo;
-import no.uib.cipr.matrix.io.MatrixSize;
 import no.uib.cipr.matrix.io.MatrixVectorReader;
-import no.uib.cipr.matrix.sparse.CompRowMatrix;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.commons.lang3.time.StopWatch;
@@ -16,6 +14,8 @@ import ubic.gemma.core.loader.util.mapper.DesignElementMapper;
 import ubic.gemma.core.loader.util.mapper.EntityMapper;
 import ubic.gemma.core.loader.util.mapper.EntityMapperUtils;
 import ubic.gemma.core.util.FileUtils;
+import ubic.gemma.core.util.concurrent.Executors;
+import ubic.gemma.core.util.concurrent.SimpleThreadFactory;
 import ubic.gemma.model.common.description.Characteristic;
 import ubic.gemma.model.common.quantitationtype.*;
 import ubic.gemma.model.expression.bioAssay.BioAssay;
@@ -32,9 +32,14 @@ import javax.annotation.Nullable;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -80,6 +85,23 @@ public class MexSingleCellDataLoader implements SingleCellDataLoader {
      */
     private boolean useDoublePrecision = false;
 
+    /**
+     * Number of threads to use for reading the matrices of individual samples.
+     */
+    private int numberOfThreads = 1;
+
+    /**
+     * Maximum number of entries of a sample matrix held in memory while it is being read. Larger matrices are spilled
+     * to disk.
+     */
+    private int maxEntriesInMemory = 1 << 22;
+
+    /**
+     * Matrices read by {@link #loadVectors(Collection, SingleCellDimension, QuantitationType)} that have yet to be
+     * closed.
+     */
+    private final Set<DiskBackedCompRowMatrix> openMatrices = ConcurrentHashMap.newKeySet();
+
     public MexSingleCellDataLoader( List<String> sampleNames, List<Path> barcodeFiles, List<Path> genesFiles, List<Path> matrixFiles ) {
         Assert.isTrue( sampleNames.size() == barcodeFiles.size()
                         && barcodeFiles.size() == genesFiles.size()
@@ -230,21 +252,14 @@ public class MexSingleCellDataLoader implements SingleCellDataLoader {
             BioAssay ba = dimension.getBioAssays().get( i );
             log.info( "Reading sequencing metadata for " + ba + " from " + matrixFiles.get( i ) + "..." );
             StopWatch timer = StopWatch.createStarted();
-            try ( MatrixVectorReader reader = readMatrixMarketFromPath( matrixFiles.get( i ) ) ) {
-                MatrixInfo matrixInfo = reader.readMatrixInfo();
-                if ( !matrixInfo.isInteger() ) {
+            try ( MatrixMarketCoordinateReader reader = new MatrixMarketCoordinateReader( matrixFiles.get( i ) ) ) {
+                if ( !reader.isInteger() ) {
                     log.warn( "Matrix " + matrixFiles.get( i ) + " contains non-integer data, not suitable for computing sequencing metadata." );
                     continue;
                 }
-                MatrixSize size = reader.readMatrixSize( matrixInfo );
-                size.numEntries();
-                int[] row = new int[size.numEntries()];
-                int[] column = new int[size.numEntries()];
-                int[] data = new int[size.numEntries()];
-                reader.readCoordinate( row, column, data );
                 long librarySize = 0;
-                for ( int d : data ) {
-                    librarySize += d;
+                while ( reader.next() ) {
+                    librarySize += reader.getLong();
                 }
                 SequencingMetadata sm = SequencingMetadata.builder()
                         .readCount( librarySize )
@@ -264,11 +279,11 @@ public class MexSingleCellDataLoader implements SingleCellDataLoader {
     @Override
     public Stream<SingleCellExpressionDataVector> loadVectors( Collection<CompositeSequence> designElements, SingleCellDimension scd, QuantitationType quantitationType ) throws IOException {
         Assert.notNull( designElementToGeneMapper, "A design element mapper must be set to load vectors." );
+        Assert.isTrue( numberOfThreads > 0, "The number of threads must be strictly positive." );
 
         // location of a given element in individual matrices
         Map<CompositeSequence, int[]> elementsToSampleMatrixRow = new HashMap<>();
         Map<CompositeSequence, String[]> elementsToOriginalGeneIds = new HashMap<>();
-        ArrayList<CompRowMatrix> matrices = new ArrayList<>( scd.getBioAssays().size() );
 
         List<BioAssay> bioAssays = scd.getBioAssays();
         Map<String, Set<BioAssay>> bioAssayBySampleName = sampleNames.stream()
@@ -277,119 +292,118 @@ public class MexSingleCellDataLoader implements SingleCellDataLoader {
         EntityMapper.StatefulEntityMapper<CompositeSequence> statefulGeneMapper = designElementToGeneMapper
                 .forCandidates( designElements );
 
-        for ( int j = 0; j < bioAssays.size(); j++ ) {
-            BioAssay ba = bioAssays.get( j );
-            // match corresponding sample in the SCD
-            Set<String> matchedSampleNames = bioAssayBySampleName.entrySet().stream()
-                    .filter( e -> e.getValue().contains( ba ) )
-                    .map( Map.Entry::getKey )
-                    .collect( Collectors.toSet() );
-            if ( matchedSampleNames.isEmpty() ) {
-                throw new IllegalArgumentException( ba + " does not match any sample." );
-            } else if ( matchedSampleNames.size() > 1 ) {
-                throw new IllegalArgumentException( ba + " match more than one sample: " + String.join( ", ", matchedSampleNames ) );
-            }
-
-            String sampleName = matchedSampleNames.iterator().next();
-            Path genesFile = genesFiles.get( sampleNames.indexOf( sampleName ) );
-            Path matrixFile = matrixFiles.get( sampleNames.indexOf( sampleName ) );
-
-            Set<String> missingElements = new HashSet<>();
-            List<CompositeSequence> elements = new ArrayList<>();
-            int k = 0;
-            for ( String s : readLinesFromPath( genesFile ) ) {
-                String[] pieces = s.split( "\t", 3 );
-                String geneId = pieces[0];
-                CompositeSequence probe = statefulGeneMapper.matchOne( geneId ).orElse( null );
-                if ( probe == null && pieces.length > 1 && allowMappingDesignElementsToGeneSymbols ) {
-                    String geneSymbol = pieces[1];
-                    probe = statefulGeneMapper.matchOne( geneSymbol ).orElse( null );
-                }
-                if ( probe == null ) {
-                    missingElements.add( geneId );
+        // matrices are read in parallel while the genes of the next samples are being mapped
+        ExecutorService executor = Executors.newFixedThreadPool( Math.min( numberOfThreads, Math.max( bioAssays.size(), 1 ) ),
+                new SimpleThreadFactory( "gemma-mex-loader-thread-" ) );
+        List<Future<DiskBackedCompRowMatrix>> matrixTasks = new ArrayList<>( bioAssays.size() );
+        int[] expectedNumberOfRows = new int[bioAssays.size()];
+        Path[] sampleMatrixFiles = new Path[bioAssays.size()];
+
+        List<DiskBackedCompRowMatrix> matrices = new ArrayList<>( bioAssays.size() );
+        try {
+            for ( int j = 0; j < bioAssays.size(); j++ ) {
+                BioAssay ba = bioAssays.get( j );
+                // match corresponding sample in the SCD
+                Set<String> matchedSampleNames = bioAssayBySampleName.entrySet().stream()
+                        .filter( e -> e.getValue().contains( ba ) )
+                        .map( Map.Entry::getKey )
+                        .collect( Collectors.toSet() );
+                if ( matchedSampleNames.isEmpty() ) {
+                    throw new IllegalArgumentException( ba + " does not match any sample." );
+                } else if ( matchedSampleNames.size() > 1 ) {
+                    throw new IllegalArgumentException( ba + " match more than one sample: " + String.join( ", ", matchedSampleNames ) );
                 }
-                elements.add( probe );
-                if ( probe != null ) {
-                    elementsToSampleMatrixRow.computeIfAbsent( probe, ignored -> {
-                        int[] W = new int[scd.getBioAssays().size()];
-                        Arrays.fill( W, -1 );
-                        return W;
-                    } )[j] = k;
-                    elementsToOriginalGeneIds.computeIfAbsent( probe, ignored -> new String[scd.getBioAssays().size()] )[j] = geneId;
-                }
-                k++;
-            }
 
-            if ( elementsToSampleMatrixRow.isEmpty() ) {
-                throw new IllegalArgumentException( "None of the elements matched genes from " + genesFile + "." );
-            } else if ( !missingElements.isEmpty() ) {
-                String message;
-                if ( missingElements.size() > 10 ) {
-                    ArrayList<String> randomizedMissingElements = new ArrayList<>( missingElements );
-                    Collections.shuffle( randomizedMissingElements );
-                    message = String.format( "The supplied mapping does not have elements for %d/%d genes from %s. Here's 10 random genes that were not mapped: %s",
-                            missingElements.size(), elements.size(), genesFile, randomizedMissingElements.stream().limit( 10 ).collect( Collectors.joining( ", " ) ) );
-                } else {
-                    message = String.format( "The supplied mapping does not have elements for the following genes: %s from %s.",
-                            missingElements.stream().sorted().collect( Collectors.joining( ", " ) ), genesFile );
-                }
-                if ( ignoreUnmatchedDesignElements ) {
-                    log.warn( message );
-                } else {
-                    throw new IllegalArgumentException( message );
+                String sampleName = matchedSampleNames.iterator().next();
+                Path genesFile = genesFiles.get( sampleNames.indexOf( sampleName ) );
+                Path matrixFile = matrixFiles.get( sampleNames.indexOf( sampleName ) );
+
+                Set<String> missingElements = new HashSet<>();
+                List<CompositeSequence> elements = new ArrayList<>();
+                int k = 0;
+                for ( String s : readLinesFromPath( genesFile ) ) {
+                    String[] pieces = s.split( "\t", 3 );
+                    String geneId = pieces[0];
+                    CompositeSequence probe = statefulGeneMapper.matchOne( geneId ).orElse( null );
+                    if ( probe == null && pieces.length > 1 && allowMappingDesignElementsToGeneSymbols ) {
+                        String geneSymbol = pieces[1];
+                        probe = statefulGeneMapper.matchOne( geneSymbol ).orElse( null );
+                    }
+                    if ( probe == null ) {
+                        missingElements.add( geneId );
+                    }
+                    elements.add( probe );
+                    if ( probe != null ) {
+                        elementsToSampleMatrixRow.computeIfAbsent( probe, ignored -> {
+                            int[] W = new int[scd.getBioAssays().size()];
+                            Arrays.fill( W, -1 );
+                            return W;
+                        } )[j] = k;
+                        elementsToOriginalGeneIds.computeIfAbsent( probe, ignored -> new String[scd.getBioAssays().size()] )[j] = geneId;
+                    }
+                    k++;
                 }
-            }
 
-            StopWatch timer = StopWatch.createStarted();
-            CompRowMatrix matrix;
-            try ( MatrixVectorReader mvr = readMatrixMarketFromPath( matrixFile ) ) {
-                log.info( "Reading " + matrixFile + "..." );
-                matrix = new CompRowMatrix( mvr );
-            } catch ( IOException e ) {
-                throw new RuntimeException( "Failed to read " + matrixFile + ": " + ExceptionUtils.getRootCauseMessage( e ), e );
-            }
-            log.info( String.format( "Loading %s took %d ms", matrixFile, timer.getTime() ) );
-
-            int[] nonEmptyCellIndices;
-            if ( discardEmptyCells ) {
-                nonEmptyCellIndices = getNonEmptyCellColumns( matrixFile );
-                int numEmptyCells = matrix.numColumns() - nonEmptyCellIndices.length;
-                if ( numEmptyCells > 0 ) {
-                    // rewrite the column indices to account for discarded empty cells
-                    int[][] nz = new int[matrix.numRows()][];
-                    double[][] nzData = new double[matrix.numRows()][];
-                    for ( int i = 0; i < matrix.numRows(); i++ ) {
-                        nz[i] = new int[matrix.getRowPointers()[i + 1] - matrix.getRowPointers()[i]];
-                        nzData[i] = new double[matrix.getRowPointers()[i + 1] - matrix.getRowPointers()[i]];
-                        for ( int w = 0; w < nz[i].length; w++ ) {
-                            int oldColumn = matrix.getColumnIndices()[matrix.getRowPointers()[i] + w];
-                            int newColumn = Arrays.binarySearch( nonEmptyCellIndices, oldColumn );
-                            assert newColumn >= 0;
-                            nz[i][w] = newColumn;
-                            nzData[i][w] = matrix.get( i, oldColumn );
-                        }
+                if ( elementsToSampleMatrixRow.isEmpty() ) {
+                    throw new IllegalArgumentException( "None of the elements matched genes from " + genesFile + "." );
+                } else if ( !missingElements.isEmpty() ) {
+                    String message;
+                    if ( missingElements.size() > 10 ) {
+                        ArrayList<String> randomizedMissingElements = new ArrayList<>( missingElements );
+                        Collections.shuffle( randomizedMissingElements );
+                        message = String.format( "The supplied mapping does not have elements for %d/%d genes from %s. Here's 10 random genes that were not mapped: %s",
+                                missingElements.size(), elements.size(), genesFile, randomizedMissingElements.stream().limit( 10 ).collect( Collectors.joining( ", " ) ) );
+                    } else {
+                        message = String.format( "The supplied mapping does not have elements for the following genes: %s from %s.",
+                                missingElements.stream().sorted().collect( Collectors.joining( ", " ) ), genesFile );
                     }
-                    CompRowMatrix newMatrix = new CompRowMatrix( matrix.numRows(), nonEmptyCellIndices.length, nz );
-                    for ( int i = 0; i < nz.length; i++ ) {
-                        for ( int w = 0; w < nz[i].length; w++ ) {
-                            newMatrix.set( i, nz[i][w], nzData[i][w] );
-                        }
+                    if ( ignoreUnmatchedDesignElements ) {
+                        log.warn( message );
+                    } else {
+                        throw new IllegalArgumentException( message );
                     }
-                    matrix = newMatrix;
-                    log.info( "Removed " + nonEmptyCellIndices.length + " empty cells from " + sampleName + "." );
                 }
-            }
 
-            Assert.isTrue( matrix.numColumns() == scd.getNumberOfCellsBySample( j ),
-                    String.format( "Matrix file %s does not have the expected number of columns: %d, found %d.",
-                            matrixFile, scd.getNumberOfCellsBySample( j ), matrix.numColumns() ) );
-            Assert.isTrue( matrix.numRows() == elements.size(),
-                    String.format( "Matrix file %s does not have the expected number of rows: %d, found %d.",
-                            matrixFile, elements.size(), matrix.numRows() ) );
+                int numElements = elements.size();
+                matrixTasks.add( executor.submit( () -> readMatrix( matrixFile, sampleName, numElements ) ) );
+                expectedNumberOfRows[j] = numElements;
+                sampleMatrixFiles[j] = matrixFile;
+            }
 
-            matrices.add( matrix );
+            // wait for all the matrices to be read, in order
+            for ( Future<DiskBackedCompRowMatrix> task : matrixTasks ) {
+                matrices.add( task.get() );
+            }
+            for ( int j = 0; j < bioAssays.size(); j++ ) {
+                DiskBackedCompRowMatrix matrix = matrices.get( j );
+                Assert.isTrue( matrix.numColumns() == scd.getNumberOfCellsBySample( j ),
+                        String.format( "Matrix file %s does not have the expected number of columns: %d, found %d.",
+                                sampleMatrixFiles[j], scd.getNumberOfCellsBySample( j ), matrix.numColumns() ) );
+                Assert.isTrue( matrix.numRows() == expectedNumberOfRows[j],
+                        String.format( "Matrix file %s does not have the expected number of rows: %d, found %d.",
+                                sampleMatrixFiles[j], expectedNumberOfRows[j], matrix.numRows() ) );
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            cancelMatrixTasks( matrixTasks );
+            throw new RuntimeException( e );
+        } catch ( ExecutionException e ) {
+            cancelMatrixTasks( matrixTasks );
+            if ( e.getCause() instanceof IOException ) {
+                throw ( IOException ) e.getCause();
+            } else if ( e.getCause() instanceof RuntimeException ) {
+                throw ( RuntimeException ) e.getCause();
+            } else {
+                throw new RuntimeException( e.getCause() );
+            }
+        } catch ( IOException | RuntimeException e ) {
+            cancelMatrixTasks( matrixTasks );
+            throw e;
+        } finally {
+            executor.shutdown();
         }
 
+        // vectors are assembled one gene at a time from the rows of each sample
         return elementsToSampleMatrixRow.entrySet().stream().map( e -> {
             CompositeSequence probe = e.getKey();
             int[] I = e.getValue();
@@ -409,15 +423,14 @@ public class MexSingleCellDataLoader implements SingleCellDataLoader {
             for ( int k = 0; k < matrices.size(); k++ ) {
                 int i = I[k];
                 if ( i > -1 ) {
-                    CompRowMatrix matrix = matrices.get( k );
-                    nnz += matrix.getRowPointers()[i + 1] - matrix.getRowPointers()[i];
+                    nnz += matrices.get( k ).getRowSize( i );
                 }
             }
             double[] X = new double[nnz];
             int[] IX = new int[nnz];
             int offset = 0;
             for ( int k = 0; k < scd.getBioAssays().size(); k++ ) {
-                CompRowMatrix matrix = matrices.get( k );
+                DiskBackedCompRowMatrix matrix = matrices.get( k );
                 int i = I[k];
                 if ( i == -1 ) {
                     // ignore genes with no data for a given sample
@@ -426,9 +439,12 @@ public class MexSingleCellDataLoader implements SingleCellDataLoader {
                 // location of the sample in the single-cell vector (indices from the sparse matrix have to be shifted by that offset)
                 int baOffset = scd.getBioAssaysOffset()[k];
                 // number of non-zero for the sample
-                int baNnz = matrix.getRowPointers()[i + 1] - matrix.getRowPointers()[i];
-                System.arraycopy( matrix.getData(), matrix.getRowPointers()[i], X, offset, baNnz );
-                System.arraycopy( matrix.getColumnIndices(), matrix.getRowPointers()[i], IX, offset, baNnz );
+                int baNnz = matrix.getRowSize( i );
+                try {
+                    matrix.readRow( i, IX, X, offset );
+                } catch ( IOException ex ) {
+                    throw new UncheckedIOException( "Failed to read row " + i + " of " + sampleMatrixFiles[k] + ".", ex );
+                }
                 // the index in the matrix has to be adjusted for the sample position in the vector
                 for ( int z = 0; z < baNnz; z++ ) {
                     IX[z + offset] += baOffset;
@@ -453,12 +469,75 @@ public class MexSingleCellDataLoader implements SingleCellDataLoader {
             }
             vector.setDataIndices( IX );
             return vector;
+        } ).onClose( () -> {
+            try {
+                closeMatrices( matrices );
+            } catch ( IOException ex ) {
+                throw new UncheckedIOException( ex );
+            }
         } );
     }
 
     @Override
     public void close() throws IOException {
+        closeMatrices( new ArrayList<>( openMatrices ) );
+    }
+
+    private DiskBackedCompRowMatrix readMatrix( Path matrixFile, String sampleName, int numElements ) throws IOException {
+        StopWatch timer = StopWatch.createStarted();
+        log.info( "Reading " + matrixFile + "..." );
+        DiskBackedCompRowMatrix matrix;
+        try {
+            matrix = DiskBackedCompRowMatrix.read( matrixFile, discardEmptyCells, maxEntriesInMemory );
+        } catch ( IOException e ) {
+            throw new IOException( "Failed to read " + matrixFile + ": " + ExceptionUtils.getRootCauseMessage( e ), e );
+        }
+        openMatrices.add( matrix );
+        log.info( String.format( "Loading %s took %d ms", matrixFile, timer.getTime() ) );
+        if ( matrix.getNumberOfDiscardedColumns() > 0 ) {
+            log.info( "Removed " + matrix.getNumberOfDiscardedColumns() + " empty cells from " + sampleName + "." );
+        }
+        return matrix;
+    }
+
+    /**
+     * Cancel the tasks reading matrices and close those that were already read.
+     */
+    private void cancelMatrixTasks( List<Future<DiskBackedCompRowMatrix>> matrixTasks ) {
+        for ( Future<DiskBackedCompRowMatrix> task : matrixTasks ) {
+            task.cancel( true );
+            if ( task.isDone() && !task.isCancelled() ) {
+                try {
+                    closeMatrix( task.get() );
+                } catch ( Exception e ) {
+                    log.warn( "Failed to close a matrix.", e );
+                }
+            }
+        }
+    }
+
+    private void closeMatrices( Collection<DiskBackedCompRowMatrix> matrices ) throws IOException {
+        IOException ex = null;
+        for ( DiskBackedCompRowMatrix matrix : matrices ) {
+            try {
+                closeMatrix( matrix );
+            } catch ( IOException e ) {
+                if ( ex == null ) {
+                    ex = e;
+                } else {
+                    ex.addSuppressed( e );
+                }
+            }
+        }
+        if ( ex != null ) {
+            throw ex;
+        }
+    }
 
+    private void closeMatrix( DiskBackedCompRowMatrix matrix ) throws IOException {
+        if ( openMatrices.remove( matrix ) ) {
+            matrix.close();
+        }
     }
 
     private MatrixVectorReader readMatrixMarketFromPath( Path path ) throws IOException {
@@ -487,22 +566,15 @@ public class MexSingleCellDataLoader implements SingleCellDataLoader {
     }
 
     /**
-     * Obtain the position of empty cells for a given matrix.
+     * Obtain the position of non-empty cells for a given matrix.
      */
     private int[] getNonEmptyCellColumns( Path path ) throws IOException {
-        try ( MatrixVectorReader reader = readMatrixMarketFromPath( path ) ) {
-            MatrixInfo matrixInfo = reader.readMatrixInfo();
-            MatrixSize size = reader.readMatrixSize( matrixInfo );
-            int[] rows = new int[size.numEntries()];
-            int[] columns = new int[size.numEntries()];
-            double[] data = new double[size.numEntries()];
-            reader.readCoordinate( rows, columns, data );
-            return Arrays.stream( columns )
-                    // mtx is 1-based
-                    .map( c -> c - 1 )
-                    .sorted()
-                    .distinct()
-                    .toArray();
+        try ( MatrixMarketCoordinateReader reader = new MatrixMarketCoordinateReader( path ) ) {
+            BitSet columns = new BitSet( reader.getNumColumns() );
+            while ( reader.next() ) {
+                columns.set( reader.getColumn() );
+            }
+            return columns.stream().toArray();
         }
     }
 
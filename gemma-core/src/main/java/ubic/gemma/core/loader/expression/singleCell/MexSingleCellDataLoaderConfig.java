@@ -15,4 +15,10 @@ public class MexSingleCellDataLoaderConfig extends SingleCellDataLoaderConfig {
     private boolean allowMappingDesignElementsToGeneSymbols;
 
     private boolean useDoublePrecision;
+
+    /**
+     * Number of threads to use for reading the matrices of individual samples.
+     */
+    @Nullable
+    private Integer numberOfThreads;
 }
@@ -0,0 +1,148 @@
+package ubic.gemma.core.loader.expression.singleCell;
+
+import lombok.extern.apachecommons.CommonsLog;
+import ubic.gemma.core.loader.util.anndata.SparseMatrix;
+import ubic.gemma.core.loader.util.anndata.SparseMatrixRows;
+import ubic.gemma.core.util.concurrent.Executors;
+import ubic.gemma.core.util.concurrent.SimpleThreadFactory;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Iterate over rows of a {@link SparseMatrix} that are read ahead of their consumption.
+ * <p>
+ * Consecutive selected rows are coalesced in blocks holding at most a given number of non-zero entries, and each block
+ * is read with a single hyperslab selection of the {@code indices} and {@code data} datasets. Reads are performed in
+ * order by a dedicated thread, since HDF5 serializes them anyway, and blocks are decoded by a pool of workers while the
+ * next ones are being read. The number of blocks in flight is bounded, so memory usage does not depend on the size of
+ * the matrix.
+ * <p>
+ * Elements are produced in the order of the rows regardless of the number of workers.
+ * <p>
+ * Closing this iterator does not close the matrix, but it waits for any pending read to complete so that the matrix
+ * can be safely closed afterward.
+ */
+@CommonsLog
+class SparseMatrixReadAheadIterator<T> implements Iterator<T>, AutoCloseable {
+
+    private final SparseMatrix matrix;
+    private final long scalarType;
+    private final int[][] blocks;
+    private final Function<SparseMatrixRows, List<T>> decoder;
+    private final int maxBlocksInFlight;
+
+    private final ExecutorService readExecutor;
+    private final ExecutorService decodeExecutor;
+    private final Deque<CompletableFuture<List<T>>> blocksInFlight = new ArrayDeque<>();
+
+    private int nextBlock = 0;
+    private Iterator<T> current = Collections.emptyIterator();
+
+    /**
+     * @param selectedRows       rows to read, in ascending order
+     * @param scalarType         type in which data is read, e.g. {@link ubic.gemma.core.loader.util.hdf5.H5Type#IEEE_F32BE}
+     * @param decoder            a function that produces elements for the selected rows of a block, in order
+     * @param maxEntriesPerBlock maximum number of non-zero entries read at once, unless a single row exceeds it
+     * @param numberOfThreads    number of threads used to decode blocks
+     */
+    SparseMatrixReadAheadIterator( SparseMatrix matrix, int[] selectedRows, long scalarType, Function<SparseMatrixRows, List<T>> decoder, int maxEntriesPerBlock, int numberOfThreads ) {
+        this.matrix = matrix;
+        this.scalarType = scalarType;
+        this.blocks = createBlocks( matrix.getIndptr(), selectedRows, maxEntriesPerBlock );
+        this.decoder = decoder;
+        // one block being read, one waiting to be consumed and one for each worker
+        this.maxBlocksInFlight = numberOfThreads + 2;
+        this.readExecutor = Executors.newSingleThreadExecutor( new SimpleThreadFactory( "gemma-sparse-matrix-read-thread-" ) );
+        this.decodeExecutor = Executors.newFixedThreadPool( numberOfThreads, new SimpleThreadFactory( "gemma-sparse-matrix-decode-thread-" ) );
+        log.debug( String.format( "Coalesced %d rows in %d blocks of at most %d entries.", selectedRows.length, blocks.length, maxEntriesPerBlock ) );
+    }
+
+    @Override
+    public boolean hasNext() {
+        while ( !current.hasNext() ) {
+            fill();
+            if ( blocksInFlight.isEmpty() ) {
+                return false;
+            }
+            current = await( blocksInFlight.remove() ).iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if ( !hasNext() ) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    @Override
+    public void close() {
+        for ( CompletableFuture<List<T>> block : blocksInFlight ) {
+            block.cancel( true );
+        }
+        blocksInFlight.clear();
+        decodeExecutor.shutdownNow();
+        readExecutor.shutdownNow();
+        try {
+            // a read in progress must complete before the matrix is closed
+            if ( !readExecutor.awaitTermination( 1, TimeUnit.MINUTES ) ) {
+                log.warn( "Reads from " + matrix + " did not complete in time after the iterator was closed." );
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Interrupted while waiting for reads from " + matrix + " to complete.", e );
+        }
+    }
+
+    private void fill() {
+        while ( blocksInFlight.size() < maxBlocksInFlight && nextBlock < blocks.length ) {
+            int[] block = blocks[nextBlock++];
+            // the read executor has a single thread, so blocks are read in the order they are submitted
+            blocksInFlight.add( CompletableFuture
+                    .supplyAsync( () -> matrix.readRows( block[0], block[1], scalarType ), readExecutor )
+                    .thenApplyAsync( decoder, decodeExecutor ) );
+        }
+    }
+
+    private List<T> await( CompletableFuture<List<T>> future ) {
+        try {
+            return future.get();
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Interrupted while reading " + matrix + ".", e );
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw ( RuntimeException ) e.getCause();
+            } else {
+                throw new RuntimeException( e.getCause() );
+            }
+        }
+    }
+
+    /**
+     * Coalesce runs of consecutive rows in blocks of {@code [startRow, endRow[}.
+     */
+    static int[][] createBlocks( long[] indptr, int[] selectedRows, int maxEntriesPerBlock ) {
+        List<int[]> blocks = new ArrayList<>();
+        int i = 0;
+        while ( i < selectedRows.length ) {
+            int startRow = selectedRows[i];
+            int endRow = startRow + 1;
+            i++;
+            while ( i < selectedRows.length && selectedRows[i] == endRow
+                    && indptr[endRow + 1] - indptr[startRow] <= maxEntriesPerBlock ) {
+                endRow++;
+                i++;
+            }
+            blocks.add( new int[] { startRow, endRow } );
+        }
+        return blocks.toArray( new int[0][] );
+    }
+}
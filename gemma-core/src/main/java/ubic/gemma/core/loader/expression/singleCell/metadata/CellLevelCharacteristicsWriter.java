@@ -28,12 +28,13 @@ public class CellLevelCharacteristicsWriter {
 
     public void write( SingleCellDimension dimension, Writer writer ) throws IOException {
         int i = 1;
+        String[] cellIds = getCellIds( dimension );
         try ( CSVPrinter printer = CLC_WITH_CATEGORY_ID_FORMAT.print( writer ) ) {
             for ( CellTypeAssignment cta : dimension.getCellTypeAssignments() ) {
-                write( cta, dimension, String.valueOf( i++ ), printer );
+                write( cta, dimension, cellIds, String.valueOf( i++ ), printer );
             }
             for ( CellLevelCharacteristics clc : dimension.getCellLevelCharacteristics() ) {
-                write( clc, dimension, String.valueOf( i++ ), printer );
+                write( clc, dimension, cellIds, String.valueOf( i++ ), printer );
             }
         }
     }
@@ -45,7 +46,7 @@ public class CellLevelCharacteristicsWriter {
      */
     public void write( CellTypeAssignment cellLevelCharacteristics, SingleCellDimension dimension, Writer writer ) throws IOException {
         try ( CSVPrinter printer = CTA_FORMAT.print( writer ) ) {
-            write( cellLevelCharacteristics, dimension, printer );
+            write( cellLevelCharacteristics, dimension, getCellIds( dimension ), printer );
         }
     }
 
@@ -56,7 +57,7 @@ public class CellLevelCharacteristicsWriter {
      */
     public void write( CellLevelCharacteristics cellLevelCharacteristics, SingleCellDimension dimension, Writer writer ) throws IOException {
         try ( CSVPrinter printer = CLC_FORMAT.print( writer ) ) {
-            write( cellLevelCharacteristics, dimension, null, printer );
+            write( cellLevelCharacteristics, dimension, getCellIds( dimension ), null, printer );
         }
     }
 
@@ -67,15 +68,16 @@ public class CellLevelCharacteristicsWriter {
      * characteristics that use the same category.
      */
     public void write( Collection<CellLevelCharacteristics> cellLevelCharacteristics, SingleCellDimension dimension, Writer writer ) throws IOException {
+        String[] cellIds = getCellIds( dimension );
         try ( CSVPrinter printer = CLC_WITH_CATEGORY_ID_FORMAT.print( writer ) ) {
             int i = 1;
             for ( CellLevelCharacteristics characteristics : cellLevelCharacteristics ) {
-                write( characteristics, dimension, String.valueOf( i++ ), printer );
+                write( characteristics, dimension, cellIds, String.valueOf( i++ ), printer );
             }
         }
     }
 
-    private void write( CellTypeAssignment cellTypeAssignment, SingleCellDimension dimension, CSVPrinter printer ) throws IOException {
+    private void write( CellTypeAssignment cellTypeAssignment, SingleCellDimension dimension, String[] cellIds, CSVPrinter printer ) throws IOException {
         int[] cellTypeIndices = cellTypeAssignment.getCellTypeIndices();
         for ( int cellIndex = 0; cellIndex < cellTypeIndices.length; cellIndex++ ) {
             Characteristic cellType = cellTypeAssignment.getCellType( cellIndex );
@@ -83,12 +85,12 @@ public class CellLevelCharacteristicsWriter {
                 continue;
             }
             String sampleId = getSampleId( dimension, cellIndex );
-            String cellId = dimension.getCellIds().get( cellIndex );
+            String cellId = cellIds[cellIndex];
             printer.printRecord( sampleId, cellId, cellType.getValue(), cellType.getValueUri() );
         }
     }
 
-    private void write( CellLevelCharacteristics cellLevelCharacteristics, SingleCellDimension dimension, @Nullable String categoryId, CSVPrinter printer ) throws IOException {
+    private void write( CellLevelCharacteristics cellLevelCharacteristics, SingleCellDimension dimension, String[] cellIds, @Nullable String categoryId, CSVPrinter printer ) throws IOException {
         int[] indices = cellLevelCharacteristics.getIndices();
         for ( int cellIndex = 0; cellIndex < indices.length; cellIndex++ ) {
             Characteristic c = cellLevelCharacteristics.getCharacteristic( cellIndex );
@@ -96,7 +98,7 @@ public class CellLevelCharacteristicsWriter {
                 continue;
             }
             String sampleId = getSampleId( dimension, cellIndex );
-            String cellId = dimension.getCellIds().get( cellIndex );
+            String cellId = cellIds[cellIndex];
             if ( categoryId != null ) {
                 printer.printRecord( sampleId, cellId, c.getCategory(), c.getCategoryUri(), categoryId, c.getValue(), c.getValueUri() );
             } else {
@@ -105,6 +107,13 @@ public class CellLevelCharacteristicsWriter {
         }
     }
 
+    /**
+     * Decode the cell IDs once for the whole write, as they may be stored compressed.
+     */
+    private String[] getCellIds( SingleCellDimension dimension ) {
+        return dimension.getCellIds().toArray( new String[0] );
+    }
+
     private String getSampleId( SingleCellDimension dimension, int cellIndex ) {
         BioAssay bioAssay = dimension.getBioAssay( cellIndex );
         if ( useBioAssayIds ) {
@@ -85,6 +85,31 @@ public class SparseMatrix implements Matrix {
         return group.getDataset( "indices" );
     }
 
+    /**
+     * Read a contiguous range of rows with a single read of the {@code indices} and {@code data} datasets.
+     * @param startRow   first row to read, inclusive
+     * @param endRow     last row to read, exclusive
+     * @param scalarType type in which data is read, e.g. {@link H5Type#IEEE_F32BE}
+     */
+    public SparseMatrixRows readRows( int startRow, int endRow, long scalarType ) {
+        Assert.isTrue( startRow >= 0 && startRow <= endRow && endRow < indptr.length, "Invalid range of rows: [" + startRow + ", " + endRow + "[." );
+        long start = indptr[startRow], end = indptr[endRow];
+        int[] indices;
+        byte[] data;
+        if ( start == end ) {
+            indices = new int[0];
+            data = new byte[0];
+        } else {
+            try ( H5Dataset ds = getIndices() ) {
+                indices = ds.slice( start, end ).toIntegerVector();
+            }
+            try ( H5Dataset ds = getData() ) {
+                data = ds.slice( start, end ).toByteVector( scalarType );
+            }
+        }
+        return new SparseMatrixRows( indptr, startRow, endRow, indices, data, ( int ) H5Type.sizeOf( scalarType ) );
+    }
+
     @Override
     public void close() {
         group.close();
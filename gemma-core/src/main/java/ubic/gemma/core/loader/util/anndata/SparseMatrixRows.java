@@ -0,0 +1,68 @@
+package ubic.gemma.core.loader.util.anndata;
+
+import java.util.Arrays;
+
+/**
+ * A contiguous range of rows of a {@link SparseMatrix} that was read in memory.
+ * <p>
+ * Rows are along the major axis of the matrix, so they are columns if the matrix is stored in CSC.
+ * @see SparseMatrix#readRows(int, int, long)
+ */
+public class SparseMatrixRows {
+
+    private final long[] indptr;
+    private final int startRow;
+    private final int endRow;
+    private final int[] indices;
+    private final byte[] data;
+    private final int scalarSize;
+
+    SparseMatrixRows( long[] indptr, int startRow, int endRow, int[] indices, byte[] data, int scalarSize ) {
+        this.indptr = indptr;
+        this.startRow = startRow;
+        this.endRow = endRow;
+        this.indices = indices;
+        this.data = data;
+        this.scalarSize = scalarSize;
+    }
+
+    /**
+     * First row, inclusive.
+     */
+    public int getStartRow() {
+        return startRow;
+    }
+
+    /**
+     * Last row, exclusive.
+     */
+    public int getEndRow() {
+        return endRow;
+    }
+
+    /**
+     * Obtain the indices of a given row.
+     */
+    public int[] getIndices( int row ) {
+        checkRow( row );
+        return Arrays.copyOfRange( indices, getOffset( row ), getOffset( row + 1 ) );
+    }
+
+    /**
+     * Obtain the data of a given row, encoded with the scalar type it was read with.
+     */
+    public byte[] getData( int row ) {
+        checkRow( row );
+        return Arrays.copyOfRange( data, scalarSize * getOffset( row ), scalarSize * getOffset( row + 1 ) );
+    }
+
+    private int getOffset( int row ) {
+        return ( int ) ( indptr[row] - indptr[startRow] );
+    }
+
+    private void checkRow( int row ) {
+        if ( row < startRow || row >= endRow ) {
+            throw new IndexOutOfBoundsException( "Row " + row + " is not within [" + startRow + ", " + endRow + "[." );
+        }
+    }
+}
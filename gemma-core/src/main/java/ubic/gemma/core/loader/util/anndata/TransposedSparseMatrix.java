@@ -0,0 +1,308 @@
+package ubic.gemma.core.loader.util.anndata;
+
+import lombok.extern.apachecommons.CommonsLog;
+import org.apache.commons.lang3.time.StopWatch;
+import org.springframework.util.Assert;
+import ubic.gemma.core.loader.util.hdf5.H5Dataset;
+import ubic.gemma.core.loader.util.hdf5.H5Type;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Out-of-core transpose of a {@link SparseMatrix}.
+ * <p>
+ * The major axis of the transposed matrix is the minor axis of the original matrix, so a cell-major matrix (i.e. CSR
+ * with cells in {@code obs}) becomes gene-major. The indices and data of the transposed matrix are written to a
+ * temporary file and only its {@code indptr} is kept in memory.
+ * <p>
+ * The transposition is a bucket sort. A first pass over the {@code indices} dataset counts the entries of each row of
+ * the transposed matrix. Rows are then grouped in buckets of contiguous rows holding at most
+ * {@code maxEntriesInMemory} entries. If there is more than one bucket, a second pass over the original matrix
+ * distributes the entries in one temporary file per bucket. Each bucket is finally loaded in memory, sorted by row and
+ * written at its position in the transposed matrix. Since the original matrix is scanned along its major axis, the
+ * indices of each row of the transposed matrix end up sorted.
+ * <p>
+ * Data is read with a given scalar type (e.g. {@link H5Type#IEEE_F32BE}) and kept as-is, so rows can be used directly
+ * as vector data.
+ */
+@CommonsLog
+public class TransposedSparseMatrix implements AutoCloseable {
+
+    /**
+     * Maximum number of entries read from the HDF5 file at once.
+     */
+    private static final int MAX_CHUNK_SIZE = 1 << 20;
+
+    /**
+     * Maximum number of bucket files that are written simultaneously. If there are more buckets, the original matrix
+     * is read more than once.
+     */
+    private static final int MAX_OPEN_BUCKETS = 128;
+
+    private final int[] shape;
+    private final long[] indptr;
+    private final int scalarSize;
+    private final Path file;
+    private final FileChannel channel;
+
+    /**
+     * @param matrix             matrix to transpose, which is not closed
+     * @param scalarType         type in which data is read, e.g. {@link H5Type#IEEE_F32BE}
+     * @param maxEntriesInMemory maximum number of entries held in memory while the matrix is being transposed
+     */
+    public TransposedSparseMatrix( SparseMatrix matrix, long scalarType, int maxEntriesInMemory ) throws IOException {
+        Assert.isTrue( maxEntriesInMemory > 0, "The maximum number of entries in memory must be strictly positive." );
+        StopWatch timer = StopWatch.createStarted();
+        long[] originalIndptr = matrix.getIndptr();
+        int numOriginalRows = originalIndptr.length - 1;
+        int numRows = matrix.isCsr() ? matrix.getShape()[1] : matrix.getShape()[0];
+        long nnz = originalIndptr[numOriginalRows];
+        this.shape = new int[] { numRows, numOriginalRows };
+        this.indptr = new long[numRows + 1];
+        this.scalarSize = ( int ) H5Type.sizeOf( scalarType );
+        int chunkSize = Math.min( maxEntriesInMemory, MAX_CHUNK_SIZE );
+
+        // first pass: count entries for each row of the transposed matrix
+        try ( H5Dataset indices = matrix.getIndices() ) {
+            for ( long start = 0; start < nnz; start += chunkSize ) {
+                long end = Math.min( start + chunkSize, nnz );
+                for ( int j : indices.slice( start, end ).toIntegerVector() ) {
+                    if ( j < 0 || j >= numRows ) {
+                        throw new IllegalArgumentException( "Index " + j + " is out of bounds for a matrix with " + numRows + " columns." );
+                    }
+                    indptr[j + 1]++;
+                }
+            }
+        }
+        for ( int i = 0; i < numRows; i++ ) {
+            indptr[i + 1] += indptr[i];
+        }
+
+        // group rows in buckets that fit in memory
+        int[] bucketStarts = new int[numRows + 1];
+        int numBuckets = 0;
+        for ( int row = 0; row < numRows; ) {
+            int endRow = row + 1;
+            while ( endRow < numRows && indptr[endRow + 1] - indptr[row] <= maxEntriesInMemory ) {
+                endRow++;
+            }
+            bucketStarts[numBuckets++] = row;
+            row = endRow;
+        }
+        bucketStarts[numBuckets] = numRows;
+
+        this.file = Files.createTempFile( "gemma-anndata-", ".transposed" );
+        this.channel = FileChannel.open( file, StandardOpenOption.READ, StandardOpenOption.WRITE );
+        try {
+            if ( numBuckets == 1 ) {
+                fillBucketFromMatrix( matrix, scalarType, chunkSize );
+            } else {
+                log.info( String.format( "Transposing %d entries in %d buckets...", nnz, numBuckets ) );
+                for ( int firstBucket = 0; firstBucket < numBuckets; firstBucket += MAX_OPEN_BUCKETS ) {
+                    int lastBucket = Math.min( firstBucket + MAX_OPEN_BUCKETS, numBuckets );
+                    Path[] bucketFiles = spillBuckets( matrix, scalarType, chunkSize, bucketStarts, firstBucket, lastBucket );
+                    try {
+                        for ( int b = firstBucket; b < lastBucket; b++ ) {
+                            fillBucketFromFile( bucketFiles[b - firstBucket], bucketStarts[b], bucketStarts[b + 1] );
+                            Files.delete( bucketFiles[b - firstBucket] );
+                        }
+                    } finally {
+                        for ( Path bucketFile : bucketFiles ) {
+                            Files.deleteIfExists( bucketFile );
+                        }
+                    }
+                }
+            }
+        } catch ( IOException | RuntimeException e ) {
+            close();
+            throw e;
+        }
+        log.info( String.format( "Transposed %d entries in %d ms.", nnz, timer.getTime() ) );
+    }
+
+    /**
+     * Obtain the shape of the transposed matrix.
+     */
+    public int[] getShape() {
+        return shape;
+    }
+
+    public long[] getIndptr() {
+        return indptr;
+    }
+
+    /**
+     * Obtain the indices of a given row of the transposed matrix, in ascending order.
+     */
+    public int[] getIndices( int row ) throws IOException {
+        int n = ( int ) ( indptr[row + 1] - indptr[row] );
+        ByteBuffer buf = ByteBuffer.allocate( 4 * n );
+        readFully( buf, 4 * indptr[row] );
+        buf.flip();
+        int[] indices = new int[n];
+        buf.asIntBuffer().get( indices );
+        return indices;
+    }
+
+    /**
+     * Obtain the data of a given row of the transposed matrix, encoded with the scalar type it was read with.
+     */
+    public byte[] getData( int row ) throws IOException {
+        int n = ( int ) ( indptr[row + 1] - indptr[row] );
+        byte[] data = new byte[n * scalarSize];
+        readFully( ByteBuffer.wrap( data ), getDataOffset() + ( long ) scalarSize * indptr[row] );
+        return data;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            Files.deleteIfExists( file );
+        }
+    }
+
+    /**
+     * Fill the transposed matrix directly from the original matrix when all its entries fit in memory.
+     */
+    private void fillBucketFromMatrix( SparseMatrix matrix, long scalarType, int chunkSize ) throws IOException {
+        long[] originalIndptr = matrix.getIndptr();
+        long nnz = originalIndptr[originalIndptr.length - 1];
+        int[] rowIndices = new int[( int ) nnz];
+        byte[] rowData = new byte[( int ) nnz * scalarSize];
+        int[] fill = new int[shape[0]];
+        try ( H5Dataset indices = matrix.getIndices(); H5Dataset data = matrix.getData() ) {
+            int originalRow = 0;
+            for ( long start = 0; start < nnz; start += chunkSize ) {
+                long end = Math.min( start + chunkSize, nnz );
+                int[] chunkIndices = indices.slice( start, end ).toIntegerVector();
+                byte[] chunkData = data.slice( start, end ).toByteVector( scalarType );
+                for ( int k = 0; k < chunkIndices.length; k++ ) {
+                    while ( originalIndptr[originalRow + 1] <= start + k ) {
+                        originalRow++;
+                    }
+                    int row = chunkIndices[k];
+                    int p = ( int ) indptr[row] + fill[row]++;
+                    rowIndices[p] = originalRow;
+                    System.arraycopy( chunkData, k * scalarSize, rowData, p * scalarSize, scalarSize );
+                }
+            }
+        }
+        writeBucket( 0, rowIndices, rowData );
+    }
+
+    /**
+     * Distribute the entries of the original matrix that belong to a range of buckets in temporary files.
+     * <p>
+     * Each entry is written as its row and column in the transposed matrix, followed by its data.
+     */
+    private Path[] spillBuckets( SparseMatrix matrix, long scalarType, int chunkSize, int[] bucketStarts, int firstBucket, int lastBucket ) throws IOException {
+        long[] originalIndptr = matrix.getIndptr();
+        long nnz = originalIndptr[originalIndptr.length - 1];
+        int numBuckets = lastBucket - firstBucket;
+        int firstRow = bucketStarts[firstBucket], lastRow = bucketStarts[lastBucket];
+        // bucket of each row, relative to the first bucket
+        int[] bucketOfRow = new int[lastRow - firstRow];
+        for ( int b = firstBucket; b < lastBucket; b++ ) {
+            for ( int row = bucketStarts[b]; row < bucketStarts[b + 1]; row++ ) {
+                bucketOfRow[row - firstRow] = b - firstBucket;
+            }
+        }
+        Path[] bucketFiles = new Path[numBuckets];
+        DataOutputStream[] outputs = new DataOutputStream[numBuckets];
+        try {
+            for ( int b = 0; b < numBuckets; b++ ) {
+                bucketFiles[b] = Files.createTempFile( "gemma-anndata-", ".bucket" );
+                outputs[b] = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( bucketFiles[b] ), 1 << 16 ) );
+            }
+            try ( H5Dataset indices = matrix.getIndices(); H5Dataset data = matrix.getData() ) {
+                int originalRow = 0;
+                for ( long start = 0; start < nnz; start += chunkSize ) {
+                    long end = Math.min( start + chunkSize, nnz );
+                    int[] chunkIndices = indices.slice( start, end ).toIntegerVector();
+                    byte[] chunkData = data.slice( start, end ).toByteVector( scalarType );
+                    for ( int k = 0; k < chunkIndices.length; k++ ) {
+                        while ( originalIndptr[originalRow + 1] <= start + k ) {
+                            originalRow++;
+                        }
+                        int row = chunkIndices[k];
+                        if ( row < firstRow || row >= lastRow ) {
+                            continue;
+                        }
+                        DataOutputStream out = outputs[bucketOfRow[row - firstRow]];
+                        out.writeInt( row );
+                        out.writeInt( originalRow );
+                        out.write( chunkData, k * scalarSize, scalarSize );
+                    }
+                }
+            }
+        } catch ( IOException | RuntimeException e ) {
+            for ( Path bucketFile : bucketFiles ) {
+                if ( bucketFile != null ) {
+                    Files.deleteIfExists( bucketFile );
+                }
+            }
+            throw e;
+        } finally {
+            for ( DataOutputStream out : outputs ) {
+                if ( out != null ) {
+                    out.close();
+                }
+            }
+        }
+        return bucketFiles;
+    }
+
+    /**
+     * Fill a bucket of the transposed matrix from the entries spilled in a temporary file.
+     */
+    private void fillBucketFromFile( Path bucketFile, int startRow, int endRow ) throws IOException {
+        long start = indptr[startRow];
+        int n = ( int ) ( indptr[endRow] - start );
+        int[] rowIndices = new int[n];
+        byte[] rowData = new byte[n * scalarSize];
+        int[] fill = new int[endRow - startRow];
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( Files.newInputStream( bucketFile ), 1 << 16 ) ) ) {
+            for ( int k = 0; k < n; k++ ) {
+                int row = in.readInt();
+                int p = ( int ) ( indptr[row] - start ) + fill[row - startRow]++;
+                rowIndices[p] = in.readInt();
+                in.readFully( rowData, p * scalarSize, scalarSize );
+            }
+        }
+        writeBucket( startRow, rowIndices, rowData );
+    }
+
+    private void writeBucket( int startRow, int[] rowIndices, byte[] rowData ) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate( 4 * rowIndices.length );
+        buf.asIntBuffer().put( rowIndices );
+        writeFully( buf, 4 * indptr[startRow] );
+        writeFully( ByteBuffer.wrap( rowData ), getDataOffset() + ( long ) scalarSize * indptr[startRow] );
+    }
+
+    private long getDataOffset() {
+        return 4 * indptr[shape[0]];
+    }
+
+    private void readFully( ByteBuffer buf, long position ) throws IOException {
+        while ( buf.hasRemaining() ) {
+            int read = channel.read( buf, position );
+            if ( read == -1 ) {
+                throw new EOFException( "Unexpected end of " + file + "." );
+            }
+            position += read;
+        }
+    }
+
+    private void writeFully( ByteBuffer buf, long position ) throws IOException {
+        while ( buf.hasRemaining() ) {
+            position += channel.write( buf, position );
+        }
+    }
+}
@@ -24,6 +24,73 @@ public class H5Attribute implements AutoCloseable {
         return new H5Attribute( attrId );
     }
 
+    /**
+     * Write a scalar string attribute.
+     */
+    static void writeString( long locId, String name, String value ) {
+        long spaceId = H5Screate( HDF5Constants.H5S_SCALAR );
+        try {
+            writeStrings( locId, name, spaceId, new String[] { value } );
+        } finally {
+            H5Sclose( spaceId );
+        }
+    }
+
+    /**
+     * Write a 1D string attribute.
+     */
+    static void writeStringVector( long locId, String name, String[] values ) {
+        long spaceId = H5Screate_simple( 1, new long[] { values.length }, null );
+        try {
+            writeStrings( locId, name, spaceId, values );
+        } finally {
+            H5Sclose( spaceId );
+        }
+    }
+
+    private static void writeStrings( long locId, String name, long spaceId, String[] values ) {
+        long attrId = H5Acreate( locId, name, H5Type.STRING, spaceId, HDF5Constants.H5P_DEFAULT, HDF5Constants.H5P_DEFAULT );
+        try {
+            H5AwriteVL( attrId, H5Type.STRING, values );
+        } finally {
+            H5Aclose( attrId );
+        }
+    }
+
+    /**
+     * Write a 1D integer attribute stored as 64-bit integers.
+     */
+    static void writeLongVector( long locId, String name, long[] values ) {
+        long spaceId = H5Screate_simple( 1, new long[] { values.length }, null );
+        try {
+            long attrId = H5Acreate( locId, name, HDF5Constants.H5T_STD_I64LE, spaceId, HDF5Constants.H5P_DEFAULT, HDF5Constants.H5P_DEFAULT );
+            try {
+                H5Awrite( attrId, HDF5Constants.H5T_NATIVE_INT64, values );
+            } finally {
+                H5Aclose( attrId );
+            }
+        } finally {
+            H5Sclose( spaceId );
+        }
+    }
+
+    /**
+     * Write a scalar boolean attribute.
+     */
+    static void writeBoolean( long locId, String name, boolean value ) {
+        long spaceId = H5Screate( HDF5Constants.H5S_SCALAR );
+        try {
+            long attrId = H5Acreate( locId, name, HDF5Constants.H5T_NATIVE_HBOOL, spaceId, HDF5Constants.H5P_DEFAULT, HDF5Constants.H5P_DEFAULT );
+            try {
+                H5Awrite( attrId, HDF5Constants.H5T_NATIVE_HBOOL, new byte[] { ( byte ) ( value ? 1 : 0 ) } );
+            } finally {
+                H5Aclose( attrId );
+            }
+        } finally {
+            H5Sclose( spaceId );
+        }
+    }
+
     private final long attrId;
 
     private H5Attribute( long attrId ) {
@@ -21,6 +21,33 @@ public class H5Dataset implements AutoCloseable {
         return new H5Dataset( H5Dopen( locId, path, H5P_DEFAULT ) );
     }
 
+    static H5Dataset create( long locId, String path, long scalarType, long size ) {
+        long spaceId = H5Screate_simple( 1, new long[] { size }, null );
+        try {
+            return new H5Dataset( H5Dcreate( locId, path, scalarType, spaceId, H5P_DEFAULT, H5P_DEFAULT, H5P_DEFAULT ) );
+        } finally {
+            H5Sclose( spaceId );
+        }
+    }
+
+    static H5Dataset createExtensible( long locId, String path, long scalarType, long chunkSize, int compressionLevel ) {
+        Assert.isTrue( chunkSize > 0, "The chunk size must be strictly positive." );
+        Assert.isTrue( compressionLevel >= 0 && compressionLevel <= 9, "The compression level must be between 0 and 9." );
+        long spaceId = H5Screate_simple( 1, new long[] { 0 }, new long[] { HDF5Constants.H5S_UNLIMITED } );
+        long dcplId = H5Pcreate( HDF5Constants.H5P_DATASET_CREATE );
+        try {
+            H5Pset_chunk( dcplId, 1, new long[] { chunkSize } );
+            if ( compressionLevel > 0 ) {
+                H5Pset_shuffle( dcplId );
+                H5Pset_deflate( dcplId, compressionLevel );
+            }
+            return new H5Dataset( H5Dcreate( locId, path, scalarType, spaceId, H5P_DEFAULT, dcplId, H5P_DEFAULT ) );
+        } finally {
+            H5Pclose( dcplId );
+            H5Sclose( spaceId );
+        }
+    }
+
     private final long datasetId;
 
     private H5Dataset( long datasetId ) {
@@ -51,6 +78,13 @@ public class H5Dataset implements AutoCloseable {
         return H5Aexists( datasetId, name );
     }
 
+    /**
+     * Set a string attribute.
+     */
+    public void setStringAttribute( String name, String value ) {
+        H5Attribute.writeString( datasetId, name, value );
+    }
+
     /**
      * Obtain a single double value.
      */
@@ -173,6 +207,74 @@ public class H5Dataset implements AutoCloseable {
         }
     }
 
+    /**
+     * Write the entire dataset from a vector of strings.
+     */
+    public void write( String[] values ) {
+        Assert.isTrue( values.length == size(), "The number of values must match the size of the dataset." );
+        H5Dwrite_VLStrings( datasetId, H5Type.STRING, HDF5Constants.H5S_ALL, HDF5Constants.H5S_ALL, H5P_DEFAULT, values );
+    }
+
+    /**
+     * Write the entire dataset from a vector of integers.
+     */
+    public void write( int[] values ) {
+        Assert.isTrue( values.length == size(), "The number of values must match the size of the dataset." );
+        H5Dwrite_int( datasetId, HDF5Constants.H5T_NATIVE_INT32, HDF5Constants.H5S_ALL, HDF5Constants.H5S_ALL, H5P_DEFAULT, values );
+    }
+
+    /**
+     * Write the entire dataset from a vector of longs.
+     */
+    public void write( long[] values ) {
+        Assert.isTrue( values.length == size(), "The number of values must match the size of the dataset." );
+        H5Dwrite_long( datasetId, HDF5Constants.H5T_NATIVE_INT64, HDF5Constants.H5S_ALL, HDF5Constants.H5S_ALL, H5P_DEFAULT, values );
+    }
+
+    /**
+     * Append integers at the end of an extensible dataset.
+     * @see H5Location#createExtensibleDataset(String, long, long, int)
+     */
+    public void append( int[] values ) {
+        append( values.length, ( memSpaceId, fileSpaceId ) -> H5Dwrite_int( datasetId, HDF5Constants.H5T_NATIVE_INT32, memSpaceId, fileSpaceId, H5P_DEFAULT, values ) );
+    }
+
+    /**
+     * Append encoded scalars at the end of an extensible dataset.
+     * <p>
+     * The data is converted from the given scalar type to the type of the dataset if necessary.
+     * @param buf        a buffer whose size is a multiple of {@code sizeof(scalarType)}
+     * @param scalarType the type in which the buffer is encoded, e.g. {@link H5Type#IEEE_F32BE}
+     * @see H5Location#createExtensibleDataset(String, long, long, int)
+     */
+    public void append( byte[] buf, long scalarType ) {
+        long scalarSize = H5Tget_size( scalarType );
+        Assert.isTrue( buf.length % scalarSize == 0, "The size of the buffer must be a multiple of " + scalarSize + "." );
+        append( buf.length / scalarSize, ( memSpaceId, fileSpaceId ) -> H5Dwrite( datasetId, scalarType, memSpaceId, fileSpaceId, H5P_DEFAULT, buf ) );
+    }
+
+    private void append( long n, SliceWriter writer ) {
+        if ( n == 0 ) {
+            return;
+        }
+        long start = size();
+        H5Dset_extent( datasetId, new long[] { start + n } );
+        long fileSpaceId = H5Dget_space( datasetId );
+        long memSpaceId = H5Screate_simple( 1, new long[] { n }, null );
+        try {
+            H5Sselect_hyperslab( fileSpaceId, HDF5Constants.H5S_SELECT_SET, new long[] { start }, null, new long[] { n }, null );
+            writer.write( memSpaceId, fileSpaceId );
+        } finally {
+            H5Sclose( memSpaceId );
+            H5Sclose( fileSpaceId );
+        }
+    }
+
+    @FunctionalInterface
+    private interface SliceWriter {
+        void write( long memSpaceId, long fileSpaceId );
+    }
+
     public long size() {
         long space = H5Dget_space( datasetId );
         try {
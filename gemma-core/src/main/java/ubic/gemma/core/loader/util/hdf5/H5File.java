@@ -10,6 +10,7 @@ import java.nio.file.Paths;
 
 import static hdf.hdf5lib.H5.*;
 import static hdf.hdf5lib.HDF5Constants.H5F_ACC_RDONLY;
+import static hdf.hdf5lib.HDF5Constants.H5F_ACC_TRUNC;
 import static hdf.hdf5lib.HDF5Constants.H5P_DEFAULT;
 import static ubic.gemma.core.loader.util.hdf5.H5Utils.convertH5Exception;
 
@@ -29,6 +30,18 @@ public class H5File extends H5Location implements Closeable {
         }
     }
 
+    /**
+     * Create a new HDF5 file, truncating any existing file at the given path.
+     * @throws IOException if the file cannot be created
+     */
+    public static H5File create( Path path ) throws IOException {
+        try {
+            return new H5File( H5Fcreate( path.toString(), H5F_ACC_TRUNC, H5P_DEFAULT, H5P_DEFAULT ) );
+        } catch ( HDF5Exception e ) {
+            throw convertH5Exception( e );
+        }
+    }
+
     private final long fileId;
 
     private H5File( long fileId ) {
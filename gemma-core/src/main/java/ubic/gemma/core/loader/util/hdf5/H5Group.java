@@ -1,6 +1,7 @@
 package ubic.gemma.core.loader.util.hdf5;
 
 import static hdf.hdf5lib.H5.H5Gclose;
+import static hdf.hdf5lib.H5.H5Gcreate;
 import static hdf.hdf5lib.H5.H5Gopen;
 import static hdf.hdf5lib.HDF5Constants.H5P_DEFAULT;
 
@@ -10,6 +11,10 @@ public class H5Group extends H5Location implements AutoCloseable {
         return new H5Group( H5Gopen( locId, path, H5P_DEFAULT ) );
     }
 
+    static H5Group create( long locId, String path ) {
+        return new H5Group( H5Gcreate( locId, path, H5P_DEFAULT, H5P_DEFAULT, H5P_DEFAULT ) );
+    }
+
     private final long groupId;
 
     private H5Group( long groupId ) {
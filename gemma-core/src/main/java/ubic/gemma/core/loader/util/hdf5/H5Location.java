@@ -143,4 +143,57 @@ public abstract class H5Location {
     public H5Dataset getDataset( String path ) {
         return H5Dataset.open( locId, path );
     }
+
+    /**
+     * Create a group at the given path.
+     */
+    public H5Group createGroup( String path ) {
+        return H5Group.create( locId, path );
+    }
+
+    /**
+     * Create a 1D dataset of a fixed size.
+     * @param scalarType the type used for storing the data, e.g. {@link H5Type#IEEE_F32LE} or {@link H5Type#STRING}
+     */
+    public H5Dataset createDataset( String path, long scalarType, long size ) {
+        return H5Dataset.create( locId, path, scalarType, size );
+    }
+
+    /**
+     * Create an empty 1D dataset that can be extended with {@link H5Dataset#append(byte[], long)}.
+     * @param scalarType       the type used for storing the data
+     * @param chunkSize        number of elements per chunk
+     * @param compressionLevel a gzip compression level between 1 and 9, or 0 to disable compression
+     */
+    public H5Dataset createExtensibleDataset( String path, long scalarType, long chunkSize, int compressionLevel ) {
+        return H5Dataset.createExtensible( locId, path, scalarType, chunkSize, compressionLevel );
+    }
+
+    /**
+     * Set a string attribute.
+     */
+    public void setStringAttribute( String name, String value ) {
+        H5Attribute.writeString( locId, name, value );
+    }
+
+    /**
+     * Set a string vector attribute.
+     */
+    public void setStringVectorAttribute( String name, String[] values ) {
+        H5Attribute.writeStringVector( locId, name, values );
+    }
+
+    /**
+     * Set an integer vector attribute.
+     */
+    public void setLongVectorAttribute( String name, long[] values ) {
+        H5Attribute.writeLongVector( locId, name, values );
+    }
+
+    /**
+     * Set a boolean attribute.
+     */
+    public void setBooleanAttribute( String name, boolean value ) {
+        H5Attribute.writeBoolean( locId, name, value );
+    }
 }
@@ -11,7 +11,11 @@ public class H5Type implements AutoCloseable {
             IEEE_F32BE = HDF5Constants.H5T_IEEE_F32BE,
             IEEE_F64BE = HDF5Constants.H5T_IEEE_F64BE,
             STD_I32BE = HDF5Constants.H5T_STD_I32BE,
-            STD_I64BE = HDF5Constants.H5T_STD_I64BE;
+            STD_I64BE = HDF5Constants.H5T_STD_I64BE,
+            IEEE_F32LE = HDF5Constants.H5T_IEEE_F32LE,
+            IEEE_F64LE = HDF5Constants.H5T_IEEE_F64LE,
+            STD_I32LE = HDF5Constants.H5T_STD_I32LE,
+            STD_I64LE = HDF5Constants.H5T_STD_I64LE;
 
     /**
      * Represents a UTF-8 variable-length string.
@@ -26,6 +30,13 @@ public class H5Type implements AutoCloseable {
         STRING = type;
     }
 
+    /**
+     * Obtain the size in bytes of a scalar type such as {@link #IEEE_F32BE}.
+     */
+    public static long sizeOf( long scalarType ) {
+        return H5Tget_size( scalarType );
+    }
+
     private final long typeId;
 
     H5Type( long typeId ) {
@@ -1,5 +1,8 @@
 /**
- * Minimalistic read-only wrapper around HDF5 native library.
+ * Minimalistic wrapper around HDF5 native library.
+ * <p>
+ * Writing is limited to what is needed to produce simple files such as AnnData, i.e. groups, attributes and 1D
+ * datasets.
  * @author poirigui
  */
 @ParametersAreNonnullByDefault
@@ -11,7 +11,11 @@ import ubic.basecode.ontology.search.OntologySearchResult;
 import ubic.gemma.persistence.cache.CacheKeyLock;
 import ubic.gemma.persistence.cache.CacheUtils;
 
+import javax.annotation.Nullable;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
 /**
@@ -19,6 +23,11 @@ import java.util.stream.Collectors;
  * <p>
  * The main approach here for caching is to enumerate cache keys to find subsets of a given query and only retrieve the
  * difference from the {@link OntologyService}.
+ * <p>
+ * If an executor is configured with {@link #setClosureIndexExecutor(Executor)}, a {@link OntologyClosureIndex} is built
+ * in the background for each loaded ontology and used to answer queries once it is ready. Until then, and for terms
+ * that the index does not cover, the caches are used. Indices are only kept in memory and are rebuilt whenever the
+ * ontology is loaded again.
  * @author poirigui
  */
 @CommonsLog
@@ -28,6 +37,11 @@ class OntologyCache {
 
     private int minSubsetSize = 1;
 
+    private final Map<ClosureIndexKey, CompletableFuture<OntologyClosureIndex>> closureIndices = new ConcurrentHashMap<>();
+
+    @Nullable
+    private Executor closureIndexExecutor;
+
     public OntologyCache( Cache searchCache, Cache parentsCache, Cache childrenCache ) {
         this.searchCache = searchCache;
         this.parentsCache = parentsCache;
@@ -42,6 +56,13 @@ class OntologyCache {
         this.minSubsetSize = minSubsetSize;
     }
 
+    /**
+     * Executor used to build closure indices in the background, or null to disable them.
+     */
+    public void setClosureIndexExecutor( @Nullable Executor closureIndexExecutor ) {
+        this.closureIndexExecutor = closureIndexExecutor;
+    }
+
     public Collection<OntologySearchResult<OntologyTerm>> findTerm( OntologyService ontology, String query, int maxResults ) throws OntologySearchException {
         SearchCacheKey key = new SearchCacheKey( ontology, query, maxResults );
 
@@ -103,16 +124,93 @@ class OntologyCache {
 
     /**
      * Clear the cache for all entries related to a given ontology service.
+     * <p>
+     * This also discards its closure indices.
      */
     public void clearParentsAndChildrenCachesByOntology( OntologyService serv ) {
         CacheUtils.evictIf( parentsCache, key -> ( ( ParentsOrChildrenCacheKey ) key ).ontologyService.equals( serv ) );
         CacheUtils.evictIf( childrenCache, key -> ( ( ParentsOrChildrenCacheKey ) key ).ontologyService.equals( serv ) );
+        closureIndices.entrySet().removeIf( e -> {
+            if ( e.getKey().ontologyService.equals( serv ) ) {
+                e.getValue().cancel( false );
+                return true;
+            }
+            return false;
+        } );
     }
 
     private Set<OntologyTerm> getParentsOrChildren( OntologyService os, Collection<OntologyTerm> terms, boolean direct, boolean includeAdditionalProperties, Cache cache, boolean ancestors ) {
         if ( terms.isEmpty() ) {
             return Collections.emptySet();
         }
+        OntologyClosureIndex index = getClosureIndex( os, includeAdditionalProperties );
+        if ( index != null ) {
+            Set<OntologyTerm> indexedTerms = new HashSet<>();
+            Set<OntologyTerm> remainingTerms = new HashSet<>();
+            for ( OntologyTerm term : terms ) {
+                ( index.contains( term ) ? indexedTerms : remainingTerms ).add( term );
+            }
+            if ( !indexedTerms.isEmpty() ) {
+                Set<OntologyTerm> results = ancestors ? index.getParents( indexedTerms, direct ) : index.getChildren( indexedTerms, direct );
+                if ( !remainingTerms.isEmpty() ) {
+                    results.addAll( getParentsOrChildrenFromCache( os, remainingTerms, direct, includeAdditionalProperties, cache, ancestors ) );
+                }
+                return results;
+            }
+        }
+        return getParentsOrChildrenFromCache( os, terms, direct, includeAdditionalProperties, cache, ancestors );
+    }
+
+    /**
+     * Obtain the closure index for a given ontology if it is ready, otherwise schedule its creation.
+     */
+    @Nullable
+    private OntologyClosureIndex getClosureIndex( OntologyService os, boolean includeAdditionalProperties ) {
+        if ( closureIndexExecutor == null || !os.isOntologyLoaded() ) {
+            return null;
+        }
+        ClosureIndexKey key = new ClosureIndexKey( os, includeAdditionalProperties );
+        CompletableFuture<OntologyClosureIndex> future = closureIndices.get( key );
+        if ( future == null ) {
+            CompletableFuture<OntologyClosureIndex> f = new CompletableFuture<>();
+            future = closureIndices.putIfAbsent( key, f );
+            if ( future == null ) {
+                future = f;
+                // forget a failed build so that it is attempted again on the next query
+                f.whenComplete( ( index, e ) -> {
+                    if ( e != null ) {
+                        closureIndices.remove( key, f );
+                    }
+                } );
+                try {
+                    closureIndexExecutor.execute( () -> {
+                        try {
+                            f.complete( buildClosureIndex( os, includeAdditionalProperties ) );
+                        } catch ( RuntimeException e ) {
+                            f.completeExceptionally( e );
+                        }
+                    } );
+                } catch ( RuntimeException e ) {
+                    f.completeExceptionally( e );
+                }
+            }
+        }
+        if ( future.isDone() && !future.isCompletedExceptionally() ) {
+            return future.join();
+        }
+        return null;
+    }
+
+    private OntologyClosureIndex buildClosureIndex( OntologyService os, boolean includeAdditionalProperties ) {
+        try {
+            return OntologyClosureIndex.build( os, includeAdditionalProperties );
+        } catch ( RuntimeException e ) {
+            log.error( "Failed to build closure index for " + os + ", the caches will be used instead.", e );
+            throw e;
+        }
+    }
+
+    private Set<OntologyTerm> getParentsOrChildrenFromCache( OntologyService os, Collection<OntologyTerm> terms, boolean direct, boolean includeAdditionalProperties, Cache cache, boolean ancestors ) {
         StopWatch timer = StopWatch.createStarted();
 
         ParentsOrChildrenCacheKey key = new ParentsOrChildrenCacheKey( os, terms, direct, includeAdditionalProperties );
@@ -247,6 +345,34 @@ class OntologyCache {
         }
     }
 
+    private static class ClosureIndexKey {
+        private final OntologyService ontologyService;
+        private final boolean includeAdditionalProperties;
+
+        private ClosureIndexKey( OntologyService ontologyService, boolean includeAdditionalProperties ) {
+            this.ontologyService = ontologyService;
+            this.includeAdditionalProperties = includeAdditionalProperties;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash( ontologyService, includeAdditionalProperties );
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            if ( this == obj ) {
+                return true;
+            }
+            if ( !( obj instanceof ClosureIndexKey ) ) {
+                return false;
+            }
+            ClosureIndexKey other = ( ClosureIndexKey ) obj;
+            return includeAdditionalProperties == other.includeAdditionalProperties
+                    && Objects.equals( ontologyService, other.ontologyService );
+        }
+    }
+
     private static class SearchCacheKey {
         private final OntologyService ontologyService;
         private final String query;
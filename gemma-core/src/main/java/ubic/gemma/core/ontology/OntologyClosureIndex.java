@@ -0,0 +1,312 @@
+package ubic.gemma.core.ontology;
+
+import com.googlecode.javaewah.EWAHCompressedBitmap;
+import lombok.extern.apachecommons.CommonsLog;
+import org.apache.commons.lang3.time.StopWatch;
+import ubic.basecode.ontology.model.OntologyTerm;
+import ubic.basecode.ontology.providers.OntologyService;
+
+import java.util.*;
+
+/**
+ * Precomputed transitive closure of the parent/child relations of an ontology.
+ * <p>
+ * Each term is assigned a dense integer ID and its ancestors and descendants are stored as compressed bitmaps, so that
+ * the parents or children of any set of terms can be obtained with a bitmap union instead of a traversal of the
+ * underlying model. IDs are assigned in depth-first order from the roots of the ontology, which keeps the descendants
+ * of a term in mostly contiguous ranges that compress well.
+ * <p>
+ * The closure is derived from the direct parents reported by the {@link OntologyService}, thus it reflects the
+ * inference mode the ontology was loaded with. Terms referred to by the ontology, but not defined in it (i.e. a parent
+ * from another ontology), are included in the results, but cannot be queried.
+ * <p>
+ * The index is not persisted: the ontology services do not expose a version of their source that would tell if a
+ * stored index is still valid, and checking its edges costs as much as building it.
+ */
+@CommonsLog
+class OntologyClosureIndex {
+
+    /**
+     * Build a closure index by querying the direct parents of every term of the given ontology.
+     */
+    static OntologyClosureIndex build( OntologyService os, boolean includeAdditionalProperties ) {
+        StopWatch timer = StopWatch.createStarted();
+        Map<String, OntologyTerm> termsByUri = new HashMap<>();
+        Map<String, Set<String>> parentUris = getParentUris( os, includeAdditionalProperties, termsByUri );
+        Graph graph = Graph.create( termsByUri.keySet(), parentUris );
+        OntologyTerm[] terms = new OntologyTerm[graph.uris.length];
+        for ( int i = 0; i < terms.length; i++ ) {
+            terms[i] = termsByUri.get( graph.uris[i] );
+        }
+        OntologyClosureIndex index = new OntologyClosureIndex( graph, terms );
+        log.info( String.format( "Built a closure index for %s with %d terms in %d ms.", os, terms.length, timer.getTime() ) );
+        return index;
+    }
+
+    private final Graph graph;
+    private final Map<String, Integer> idsByUri;
+    private final int[] childOffsets;
+    private final int[] childIds;
+    /**
+     * Terms, indexed by ID.
+     */
+    private final OntologyTerm[] terms;
+    private final EWAHCompressedBitmap[] ancestors;
+    private final EWAHCompressedBitmap[] descendants;
+
+    private OntologyClosureIndex( Graph graph, OntologyTerm[] terms ) {
+        this.graph = graph;
+        this.terms = terms;
+        this.idsByUri = new HashMap<>( 2 * graph.uris.length );
+        for ( int i = 0; i < graph.uris.length; i++ ) {
+            idsByUri.put( graph.uris[i], i );
+        }
+        int[][] children = transpose( graph.parentOffsets, graph.parentIds );
+        this.childOffsets = children[0];
+        this.childIds = children[1];
+        this.ancestors = closure( graph.parentOffsets, graph.parentIds );
+        this.descendants = closure( childOffsets, childIds );
+    }
+
+    /**
+     * Indicate if the parents and children of the given term can be retrieved from this index.
+     */
+    boolean contains( OntologyTerm term ) {
+        Integer id = term.getUri() != null ? idsByUri.get( term.getUri() ) : null;
+        return id != null && graph.queryable.get( id );
+    }
+
+    /**
+     * Obtain the parents of the given terms.
+     * <p>
+     * Terms that are not {@link #contains(OntologyTerm) contained} in this index are ignored.
+     */
+    Set<OntologyTerm> getParents( Collection<OntologyTerm> terms, boolean direct ) {
+        return direct ? getDirect( terms, graph.parentOffsets, graph.parentIds ) : getClosure( terms, ancestors );
+    }
+
+    /**
+     * Obtain the children of the given terms.
+     * <p>
+     * Terms that are not {@link #contains(OntologyTerm) contained} in this index are ignored.
+     */
+    Set<OntologyTerm> getChildren( Collection<OntologyTerm> terms, boolean direct ) {
+        return direct ? getDirect( terms, childOffsets, childIds ) : getClosure( terms, descendants );
+    }
+
+    /**
+     * Number of terms in this index, including those that cannot be queried.
+     */
+    int size() {
+        return graph.uris.length;
+    }
+
+    private Set<OntologyTerm> getDirect( Collection<OntologyTerm> terms, int[] offsets, int[] ids ) {
+        Set<OntologyTerm> results = new HashSet<>();
+        for ( int id : toIds( terms ) ) {
+            for ( int j = offsets[id]; j < offsets[id + 1]; j++ ) {
+                results.add( this.terms[ids[j]] );
+            }
+        }
+        return results;
+    }
+
+    private Set<OntologyTerm> getClosure( Collection<OntologyTerm> terms, EWAHCompressedBitmap[] closures ) {
+        Set<Integer> ids = toIds( terms );
+        if ( ids.isEmpty() ) {
+            return Collections.emptySet();
+        }
+        EWAHCompressedBitmap[] bitmaps = new EWAHCompressedBitmap[ids.size()];
+        int k = 0;
+        for ( int id : ids ) {
+            bitmaps[k++] = closures[id];
+        }
+        EWAHCompressedBitmap union = bitmaps.length == 1 ? bitmaps[0] : EWAHCompressedBitmap.or( bitmaps );
+        int[] resultIds = union.toArray();
+        Set<OntologyTerm> results = new HashSet<>( 2 * resultIds.length );
+        for ( int id : resultIds ) {
+            results.add( this.terms[id] );
+        }
+        return results;
+    }
+
+    private Set<Integer> toIds( Collection<OntologyTerm> terms ) {
+        Set<Integer> ids = new HashSet<>();
+        for ( OntologyTerm term : terms ) {
+            Integer id = term.getUri() != null ? idsByUri.get( term.getUri() ) : null;
+            if ( id != null && graph.queryable.get( id ) ) {
+                ids.add( id );
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Compute the transitive closure of each node of a graph in CSR form.
+     * <p>
+     * Each node is visited with a breadth-first search, which tolerates cycles. A node belongs to its own closure only
+     * if it is part of a cycle.
+     */
+    private static EWAHCompressedBitmap[] closure( int[] offsets, int[] ids ) {
+        int n = offsets.length - 1;
+        EWAHCompressedBitmap[] closures = new EWAHCompressedBitmap[n];
+        int[] visitedBy = new int[n];
+        Arrays.fill( visitedBy, -1 );
+        int[] queue = new int[n];
+        for ( int i = 0; i < n; i++ ) {
+            int head = 0, tail = 0;
+            for ( int j = offsets[i]; j < offsets[i + 1]; j++ ) {
+                if ( visitedBy[ids[j]] != i ) {
+                    visitedBy[ids[j]] = i;
+                    queue[tail++] = ids[j];
+                }
+            }
+            while ( head < tail ) {
+                int u = queue[head++];
+                for ( int j = offsets[u]; j < offsets[u + 1]; j++ ) {
+                    if ( visitedBy[ids[j]] != i ) {
+                        visitedBy[ids[j]] = i;
+                        queue[tail++] = ids[j];
+                    }
+                }
+            }
+            Arrays.sort( queue, 0, tail );
+            EWAHCompressedBitmap bitmap = new EWAHCompressedBitmap();
+            for ( int j = 0; j < tail; j++ ) {
+                bitmap.set( queue[j] );
+            }
+            closures[i] = bitmap;
+        }
+        return closures;
+    }
+
+    /**
+     * Transpose a graph in CSR form.
+     * @return the offsets and IDs of the transposed graph
+     */
+    private static int[][] transpose( int[] offsets, int[] ids ) {
+        int n = offsets.length - 1;
+        int[] tOffsets = new int[n + 1];
+        for ( int id : ids ) {
+            tOffsets[id + 1]++;
+        }
+        for ( int i = 0; i < n; i++ ) {
+            tOffsets[i + 1] += tOffsets[i];
+        }
+        int[] tIds = new int[ids.length];
+        int[] pos = Arrays.copyOf( tOffsets, n );
+        for ( int i = 0; i < n; i++ ) {
+            for ( int j = offsets[i]; j < offsets[i + 1]; j++ ) {
+                tIds[pos[ids[j]]++] = i;
+            }
+        }
+        return new int[][] { tOffsets, tIds };
+    }
+
+    /**
+     * Obtain the URIs of the direct parents of every term of an ontology.
+     * @param termsByUri populated with the terms and their parents, which may come from other ontologies
+     * @return the URIs of the direct parents of each term
+     */
+    private static Map<String, Set<String>> getParentUris( OntologyService os, boolean includeAdditionalProperties, Map<String, OntologyTerm> termsByUri ) {
+        Map<String, Set<String>> parentUris = new HashMap<>();
+        for ( String uri : os.getAllURIs() ) {
+            OntologyTerm term = os.getTerm( uri );
+            if ( term == null ) {
+                continue;
+            }
+            termsByUri.put( uri, term );
+            Set<String> p = new HashSet<>();
+            for ( OntologyTerm parent : os.getParents( Collections.singleton( term ), true, includeAdditionalProperties ) ) {
+                if ( parent.getUri() != null ) {
+                    termsByUri.putIfAbsent( parent.getUri(), parent );
+                    p.add( parent.getUri() );
+                }
+            }
+            parentUris.put( uri, p );
+        }
+        return parentUris;
+    }
+
+    /**
+     * Terms and their direct parents, in CSR form.
+     */
+    private static class Graph {
+
+        /**
+         * Create a graph, assigning IDs in depth-first order from the roots.
+         */
+        private static Graph create( Set<String> allUris, Map<String, Set<String>> parentUris ) {
+            List<String> sortedUris = new ArrayList<>( allUris );
+            Collections.sort( sortedUris );
+            Map<String, List<String>> childUris = new HashMap<>();
+            for ( Map.Entry<String, Set<String>> e : parentUris.entrySet() ) {
+                for ( String parent : e.getValue() ) {
+                    childUris.computeIfAbsent( parent, k -> new ArrayList<>() ).add( e.getKey() );
+                }
+            }
+            childUris.values().forEach( Collections::sort );
+            Map<String, Integer> ids = new HashMap<>( 2 * sortedUris.size() );
+            List<String> roots = new ArrayList<>();
+            for ( String uri : sortedUris ) {
+                if ( parentUris.getOrDefault( uri, Collections.emptySet() ).isEmpty() ) {
+                    roots.add( uri );
+                }
+            }
+            // roots first, then anything left unvisited because it is only reachable from a cycle
+            roots.addAll( sortedUris );
+            Deque<String> stack = new ArrayDeque<>();
+            for ( String root : roots ) {
+                if ( ids.containsKey( root ) ) {
+                    continue;
+                }
+                stack.push( root );
+                while ( !stack.isEmpty() ) {
+                    String uri = stack.pop();
+                    if ( ids.containsKey( uri ) ) {
+                        continue;
+                    }
+                    ids.put( uri, ids.size() );
+                    List<String> children = childUris.getOrDefault( uri, Collections.emptyList() );
+                    for ( int i = children.size() - 1; i >= 0; i-- ) {
+                        if ( !ids.containsKey( children.get( i ) ) ) {
+                            stack.push( children.get( i ) );
+                        }
+                    }
+                }
+            }
+            String[] uris = new String[ids.size()];
+            ids.forEach( ( uri, id ) -> uris[id] = uri );
+            int[] parentOffsets = new int[uris.length + 1];
+            List<Integer> parentIds = new ArrayList<>();
+            BitSet queryable = new BitSet( uris.length );
+            for ( int i = 0; i < uris.length; i++ ) {
+                Set<String> p = parentUris.get( uris[i] );
+                if ( p != null ) {
+                    queryable.set( i );
+                    int[] pIds = p.stream().mapToInt( ids::get ).sorted().toArray();
+                    for ( int pId : pIds ) {
+                        parentIds.add( pId );
+                    }
+                }
+                parentOffsets[i + 1] = parentIds.size();
+            }
+            return new Graph( uris, queryable, parentOffsets, parentIds.stream().mapToInt( Integer::intValue ).toArray() );
+        }
+
+        private final String[] uris;
+        /**
+         * Terms defined in the ontology, as opposed to terms that are merely referred to.
+         */
+        private final BitSet queryable;
+        private final int[] parentOffsets;
+        private final int[] parentIds;
+
+        private Graph( String[] uris, BitSet queryable, int[] parentOffsets, int[] parentIds ) {
+            this.uris = uris;
+            this.queryable = queryable;
+            this.parentOffsets = parentOffsets;
+            this.parentIds = parentIds;
+        }
+    }
+}
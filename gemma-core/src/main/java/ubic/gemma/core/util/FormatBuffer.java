@@ -0,0 +1,278 @@
+package ubic.gemma.core.util;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * A reusable and growable character buffer for formatting numbers and strings without creating intermediate
+ * {@link String}s.
+ * <p>
+ * This is intended for writers that produce a large number of values (i.e. expression data matrices): a line is
+ * accumulated in the buffer, written with {@link #writeTo(Writer)} and the buffer is then {@link #clear() cleared} and
+ * reused for the next line.
+ * <p>
+ * The output of {@link #appendFast(double)} and {@link #appendFast(float)} is identical to that of
+ * {@link TsvUtils#formatFast(double)} and {@link TsvUtils#formatFast(float)} and the output of
+ * {@link #appendFormatted(double)} is identical to that of {@link TsvUtils#format(double)}. Integers and integral
+ * floating-point values are written directly in the buffer, other values fall back to the corresponding
+ * {@link TsvUtils} method whenever producing an identical output cannot be guaranteed.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class FormatBuffer implements CharSequence {
+
+    /**
+     * Largest magnitude for which {@link Double#toString(double)} and {@link Float#toString(float)} use a plain
+     * decimal notation.
+     */
+    private static final double MAX_PLAIN_NOTATION = 1e7;
+
+    /**
+     * Largest magnitude for which {@link #appendFormatted(double)} formats large numbers by itself. Past that point,
+     * scaled values lose too much precision to decide how they should be rounded.
+     */
+    private static final double MAX_LARGE_NUMBER = 1e7;
+
+    /**
+     * Tolerance around a rounding tie under which we defer to {@link java.text.DecimalFormat}.
+     */
+    private static final double TIE_TOLERANCE = 1e-6;
+
+    private char[] buf;
+    private int len = 0;
+
+    public FormatBuffer() {
+        this( 1024 );
+    }
+
+    public FormatBuffer( int initialCapacity ) {
+        this.buf = new char[initialCapacity];
+    }
+
+    public FormatBuffer append( char c ) {
+        ensureCapacity( 1 );
+        buf[len++] = c;
+        return this;
+    }
+
+    public FormatBuffer append( String s ) {
+        int l = s.length();
+        ensureCapacity( l );
+        s.getChars( 0, l, buf, len );
+        len += l;
+        return this;
+    }
+
+    /**
+     * Append a string formatted as per {@link TsvUtils#format(String)}.
+     */
+    public FormatBuffer appendFormatted( @Nullable String s ) {
+        if ( s == null ) {
+            return this;
+        }
+        int l = s.length();
+        // worst case: every character is escaped
+        ensureCapacity( 2 * l );
+        for ( int i = 0; i < l; i++ ) {
+            char c = s.charAt( i );
+            switch ( c ) {
+                case '\\':
+                    buf[len++] = '\\';
+                    buf[len++] = '\\';
+                    break;
+                case '\n':
+                    buf[len++] = '\\';
+                    buf[len++] = 'n';
+                    break;
+                case '\t':
+                    buf[len++] = '\\';
+                    buf[len++] = 't';
+                    break;
+                case '\r':
+                    buf[len++] = '\\';
+                    buf[len++] = 'r';
+                    break;
+                default:
+                    buf[len++] = c;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Append an integer as per {@link TsvUtils#formatFast(int)}.
+     */
+    public FormatBuffer appendFast( int i ) {
+        if ( i == Integer.MIN_VALUE ) {
+            return append( String.valueOf( i ) );
+        }
+        return appendLong( i );
+    }
+
+    /**
+     * Append a long as per {@link TsvUtils#formatFast(long)}.
+     */
+    public FormatBuffer appendFast( long l ) {
+        if ( l == Long.MIN_VALUE ) {
+            return append( String.valueOf( l ) );
+        }
+        return appendLong( l );
+    }
+
+    /**
+     * Append a double as per {@link TsvUtils#formatFast(double)}.
+     */
+    public FormatBuffer appendFast( double d ) {
+        if ( Math.abs( d ) < MAX_PLAIN_NOTATION && d == Math.rint( d ) ) {
+            return appendIntegral( d, Double.doubleToRawLongBits( d ) < 0 );
+        }
+        return append( Double.toString( d ) );
+    }
+
+    /**
+     * Append a float as per {@link TsvUtils#formatFast(float)}.
+     */
+    public FormatBuffer appendFast( float f ) {
+        if ( Math.abs( f ) < MAX_PLAIN_NOTATION && f == Math.rint( f ) ) {
+            return appendIntegral( f, Float.floatToRawIntBits( f ) < 0 );
+        }
+        return append( Float.toString( f ) );
+    }
+
+    /**
+     * Append a double as per {@link TsvUtils#format(double)}.
+     */
+    public FormatBuffer appendFormatted( double d ) {
+        if ( d == 0.0 ) {
+            return append( "0.0" );
+        } else if ( Double.isNaN( d ) ) {
+            return this;
+        } else if ( Double.isInfinite( d ) ) {
+            return append( d > 0 ? "inf" : "-inf" );
+        }
+        double a = Math.abs( d );
+        if ( a >= 1e-4 && a < 1e3 ) {
+            if ( appendRounded( d < 0, a, 10000, 4 ) ) {
+                return this;
+            }
+        } else if ( a >= 1e3 && a < MAX_LARGE_NUMBER ) {
+            if ( appendRounded( d < 0, a, 10, 1 ) ) {
+                return this;
+            }
+        }
+        return append( TsvUtils.format( d ) );
+    }
+
+    /**
+     * Write the content of this buffer to the given writer.
+     * <p>
+     * The buffer is left untouched, use {@link #clear()} to reuse it.
+     */
+    public void writeTo( Writer writer ) throws IOException {
+        writer.write( buf, 0, len );
+    }
+
+    /**
+     * Clear the buffer, retaining its capacity.
+     */
+    public void clear() {
+        len = 0;
+    }
+
+    @Override
+    public int length() {
+        return len;
+    }
+
+    @Override
+    public char charAt( int index ) {
+        if ( index < 0 || index >= len ) {
+            throw new IndexOutOfBoundsException( "Index " + index + " is out of bounds for length " + len + "." );
+        }
+        return buf[index];
+    }
+
+    @Override
+    public CharSequence subSequence( int start, int end ) {
+        return toString().substring( start, end );
+    }
+
+    @Override
+    public String toString() {
+        return new String( buf, 0, len );
+    }
+
+    /**
+     * Append an integral value that is known to be smaller than {@link #MAX_PLAIN_NOTATION} with a trailing
+     * {@code .0}.
+     */
+    private FormatBuffer appendIntegral( double d, boolean negative ) {
+        if ( negative ) {
+            // this takes care of -0.0
+            append( '-' );
+        }
+        return appendLong( ( long ) Math.abs( d ) ).append( '.' ).append( '0' );
+    }
+
+    /**
+     * Round a positive value to the given number of decimals using {@link java.math.RoundingMode#HALF_UP} and strip
+     * trailing zeroes, keeping at least one decimal.
+     * @return true if the value was appended, false if it lies too close to a tie to be rounded reliably
+     */
+    private boolean appendRounded( boolean negative, double a, long scale, int decimals ) {
+        double x = a * scale;
+        double floor = Math.floor( x );
+        double frac = x - floor;
+        if ( Math.abs( frac - 0.5 ) < TIE_TOLERANCE ) {
+            return false;
+        }
+        long n = ( long ) floor + ( frac > 0.5 ? 1 : 0 );
+        if ( negative ) {
+            append( '-' );
+        }
+        appendLong( n / scale );
+        append( '.' );
+        long f = n % scale;
+        ensureCapacity( decimals );
+        int start = len;
+        for ( int i = decimals - 1; i >= 0; i-- ) {
+            buf[start + i] = ( char ) ( '0' + f % 10 );
+            f /= 10;
+        }
+        len = start + decimals;
+        while ( len > start + 1 && buf[len - 1] == '0' ) {
+            len--;
+        }
+        return true;
+    }
+
+    /**
+     * Append a long, excluding {@link Long#MIN_VALUE} which cannot be negated.
+     */
+    private FormatBuffer appendLong( long l ) {
+        if ( l < 0 ) {
+            append( '-' );
+            l = -l;
+        }
+        int digits = 1;
+        for ( long p = 10; digits < 19 && p <= l; p *= 10 ) {
+            digits++;
+        }
+        ensureCapacity( digits );
+        int end = len + digits;
+        for ( int i = end - 1; i >= len; i-- ) {
+            buf[i] = ( char ) ( '0' + l % 10 );
+            l /= 10;
+        }
+        len = end;
+        return this;
+    }
+
+    private void ensureCapacity( int extra ) {
+        if ( len + extra > buf.length ) {
+            buf = Arrays.copyOf( buf, Math.max( 2 * buf.length, len + extra ) );
+        }
+    }
+}
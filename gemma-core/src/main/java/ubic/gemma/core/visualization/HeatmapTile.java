@@ -0,0 +1,31 @@
+package ubic.gemma.core.visualization;
+
+import lombok.Value;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * A rendered heatmap, encoded as PNG.
+ * @see HeatmapTileCache
+ */
+@Value
+public class HeatmapTile implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * PNG-encoded image, must not be modified.
+     */
+    byte[] data;
+
+    /**
+     * Entity tag derived from the content of the image, suitable for HTTP caching.
+     */
+    String entityTag;
+
+    /**
+     * Last modification of the data the heatmap was rendered from.
+     */
+    Date lastModified;
+}
@@ -0,0 +1,31 @@
+package ubic.gemma.core.visualization;
+
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+
+import java.util.function.Supplier;
+
+/**
+ * Cache for rendered heatmaps.
+ * <p>
+ * Tiles are keyed by the experiment they were rendered from and its last update, so a tile is never served once the
+ * experiment has been modified. Tiles of an experiment should nonetheless be {@link #evict(ExpressionExperiment) evicted}
+ * when its data changes to reclaim space.
+ */
+public interface HeatmapTileCache {
+
+    /**
+     * Obtain a rendered heatmap, rendering it if it is not cached.
+     * <p>
+     * Concurrent requests for the same tile wait for the first one to render it.
+     * @param ee      experiment the heatmap is rendered from; the curation details must be initialized
+     * @param tile    identifies the tile within the experiment, it must capture every parameter the rendering depends
+     *                on (i.e. the dimension, the slice of vectors, the cell size, etc.)
+     * @param heatmap supplies the heatmap to render, only invoked if the tile is not cached
+     */
+    HeatmapTile getOrRender( ExpressionExperiment ee, String tile, Supplier<? extends Heatmap> heatmap );
+
+    /**
+     * Evict all the tiles rendered from the given experiment.
+     */
+    void evict( ExpressionExperiment ee );
+}
@@ -0,0 +1,134 @@
+package ubic.gemma.core.visualization;
+
+import lombok.extern.apachecommons.CommonsLog;
+import org.jfree.chart.ChartUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+import org.springframework.util.DigestUtils;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+import ubic.gemma.persistence.cache.CacheKeyLock;
+import ubic.gemma.persistence.cache.CacheUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.Date;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+@Component
+@CommonsLog
+class HeatmapTileCacheImpl implements HeatmapTileCache {
+
+    private static final String HEATMAP_TILE_CACHE_NAME = "HeatmapTileCache";
+
+    private final Cache cache;
+
+    @Value("${gemma.cache." + HEATMAP_TILE_CACHE_NAME + ".enabled}")
+    private boolean enabled;
+
+    @Autowired
+    public HeatmapTileCacheImpl( CacheManager cacheManager ) {
+        this.cache = CacheUtils.getCache( cacheManager, HEATMAP_TILE_CACHE_NAME );
+    }
+
+    @Override
+    public HeatmapTile getOrRender( ExpressionExperiment ee, String tile, Supplier<? extends Heatmap> heatmap ) {
+        Assert.notNull( ee.getId() );
+        Date lastModified = ee.getCurationDetails() != null && ee.getCurationDetails().getLastUpdated() != null ?
+                ee.getCurationDetails().getLastUpdated() : new Date( 0 );
+        if ( !enabled ) {
+            return render( heatmap.get(), lastModified );
+        }
+        TileKey key = new TileKey( ee.getId(), lastModified.getTime(), tile );
+        try ( CacheKeyLock.LockAcquisition ignored = CacheUtils.acquireReadLock( cache, key ) ) {
+            Cache.ValueWrapper value = cache.get( key );
+            if ( value != null ) {
+                return ( HeatmapTile ) value.get();
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            log.warn( "Current thread was interrupted while waiting for " + key + ", will render it without caching.", e );
+            return render( heatmap.get(), lastModified );
+        }
+        try ( CacheKeyLock.LockAcquisition ignored = CacheUtils.acquireWriteLock( cache, key ) ) {
+            // another thread might have rendered it while we were waiting for the lock
+            Cache.ValueWrapper value = cache.get( key );
+            if ( value != null ) {
+                return ( HeatmapTile ) value.get();
+            }
+            HeatmapTile result = render( heatmap.get(), lastModified );
+            cache.put( key, result );
+            return result;
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            log.warn( "Current thread was interrupted while waiting for " + key + ", will render it without caching.", e );
+            return render( heatmap.get(), lastModified );
+        }
+    }
+
+    @Override
+    public void evict( ExpressionExperiment ee ) {
+        Assert.notNull( ee.getId() );
+        if ( !enabled ) {
+            return;
+        }
+        CacheUtils.evictIf( cache, key -> ( ( TileKey ) key ).experimentId.equals( ee.getId() ) );
+    }
+
+    private HeatmapTile render( Heatmap heatmap, Date lastModified ) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            ChartUtils.writeBufferedImageAsPNG( baos, heatmap.createImage() );
+        } catch ( IOException e ) {
+            // this never happens with in-memory streams
+            throw new UncheckedIOException( e );
+        }
+        byte[] data = baos.toByteArray();
+        return new HeatmapTile( data, DigestUtils.md5DigestAsHex( data ), lastModified );
+    }
+
+    private static class TileKey implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Long experimentId;
+        private final long lastModified;
+        private final String tile;
+
+        private TileKey( Long experimentId, long lastModified, String tile ) {
+            this.experimentId = experimentId;
+            this.lastModified = lastModified;
+            this.tile = tile;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash( experimentId, lastModified, tile );
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            if ( this == obj ) {
+                return true;
+            }
+            if ( !( obj instanceof TileKey ) ) {
+                return false;
+            }
+            TileKey other = ( TileKey ) obj;
+            return experimentId.equals( other.experimentId )
+                    && lastModified == other.lastModified
+                    && tile.equals( other.tile );
+        }
+
+        @Override
+        public String toString() {
+            return String.format( "ExpressionExperiment Id=%d [%s] %s", experimentId, new Date( lastModified ), tile );
+        }
+    }
+}
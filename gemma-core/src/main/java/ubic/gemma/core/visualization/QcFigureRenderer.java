@@ -0,0 +1,61 @@
+package ubic.gemma.core.visualization;
+
+import ubic.basecode.dataStructure.matrix.DoubleMatrix;
+import ubic.basecode.math.distribution.Histogram;
+import ubic.gemma.core.analysis.preprocess.svd.SVDResult;
+import ubic.gemma.model.expression.bioAssay.BioAssay;
+import ubic.gemma.model.expression.bioAssayData.MeanVarianceRelation;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Render QC figures as PNG.
+ * <p>
+ * Renderers do not load anything, so they can be used right after an analysis is computed to pre-render figures with
+ * {@link QcFigureService#saveFigureAsync(ExpressionExperiment, QcFigureType, String, QcFigureWriter)}. Sizes and
+ * variants are described in {@link QcFigureUtils}.
+ */
+public interface QcFigureRenderer {
+
+    /**
+     * Render a sample correlation matrix as a heatmap.
+     * <p>
+     * The diagonal is blanked out so that it does not affect the colour scale, the matrix itself is left untouched.
+     */
+    void renderSampleCorrelationMatrix( DoubleMatrix<BioAssay, BioAssay> matrix, int cellSize, boolean showLabels, boolean showScalebar, OutputStream os ) throws IOException;
+
+    /**
+     * @param sizeFactor a size factor as produced by {@link QcFigureUtils#getEffectiveSizeFactor(double)}
+     */
+    void renderMeanVariance( @Nullable MeanVarianceRelation mvr, int sizeFactor, OutputStream os ) throws IOException;
+
+    /**
+     * Render a scree plot of the first components of a PCA.
+     */
+    void renderPcaScree( SVDResult svdo, OutputStream os ) throws IOException;
+
+    /**
+     * Render the correlation of principal components with factors or the date samples were run.
+     * @param ee an experiment with its experimental design initialized
+     */
+    void renderPcaFactors( ExpressionExperiment ee, SVDResult svdo, OutputStream os ) throws IOException;
+
+    /**
+     * @param pvalueDistribution a p-value distribution or null to render a placeholder
+     */
+    void renderPValueDistribution( @Nullable Histogram pvalueDistribution, OutputStream os ) throws IOException;
+
+    /**
+     * @param pvalueDistribution a p-value distribution or null to render a placeholder
+     * @param size               a thumbnail size as produced by {@link QcFigureUtils#getEffectiveThumbnailSize(int)}
+     */
+    void renderPValueDistributionThumbnail( @Nullable Histogram pvalueDistribution, int size, OutputStream os ) throws IOException;
+
+    /**
+     * Render a blank image so user doesn't see the broken icon.
+     */
+    void renderPlaceholder( OutputStream os ) throws IOException;
+}
@@ -0,0 +1,430 @@
+package ubic.gemma.core.visualization;
+
+import lombok.extern.apachecommons.CommonsLog;
+import org.apache.commons.lang3.StringUtils;
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.ChartUtils;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.StandardChartTheme;
+import org.jfree.chart.axis.CategoryAxis;
+import org.jfree.chart.axis.CategoryLabelPositions;
+import org.jfree.chart.axis.NumberAxis;
+import org.jfree.chart.axis.ValueAxis;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.chart.plot.XYPlot;
+import org.jfree.chart.renderer.category.BarRenderer;
+import org.jfree.chart.renderer.xy.XYItemRenderer;
+import org.jfree.chart.renderer.xy.XYLineAndShapeRenderer;
+import org.jfree.data.category.CategoryDataset;
+import org.jfree.data.category.DefaultCategoryDataset;
+import org.jfree.data.xy.XYSeries;
+import org.jfree.data.xy.XYSeriesCollection;
+import org.springframework.stereotype.Component;
+import ubic.basecode.dataStructure.matrix.DenseDoubleMatrix;
+import ubic.basecode.dataStructure.matrix.DoubleMatrix;
+import ubic.basecode.graphics.ColorMatrix;
+import ubic.basecode.graphics.MatrixDisplay;
+import ubic.basecode.math.distribution.Histogram;
+import ubic.gemma.core.analysis.preprocess.svd.SVDResult;
+import ubic.gemma.model.expression.bioAssay.BioAssay;
+import ubic.gemma.model.expression.bioAssayData.MeanVarianceRelation;
+import ubic.gemma.model.expression.experiment.ExperimentalFactor;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+
+import javax.annotation.Nullable;
+import java.awt.*;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static ubic.gemma.core.visualization.QcFigureUtils.*;
+
+@Component
+@CommonsLog
+class QcFigureRendererImpl implements QcFigureRenderer {
+
+    private static final int MAX_COMPONENTS_FOR_SCREE = 10;
+
+    @Override
+    public void renderSampleCorrelationMatrix( DoubleMatrix<BioAssay, BioAssay> omatrix, int cellSize, boolean showLabels, boolean showScalebar, OutputStream os ) throws IOException {
+        List<String> stringNames = new ArrayList<>( omatrix.rows() );
+        for ( BioAssay ba : omatrix.getRowNames() ) {
+            stringNames.add( ba.getName() + " ID=" + ba.getId() );
+        }
+        // copy the raw matrix since the diagonal is modified
+        double[][] rawMatrix = omatrix.getRawMatrix();
+        double[][] values = new double[rawMatrix.length][];
+        for ( int i = 0; i < rawMatrix.length; i++ ) {
+            values[i] = rawMatrix[i].clone();
+        }
+        DoubleMatrix<String, String> matrix = new DenseDoubleMatrix<>( values );
+        matrix.setRowNames( stringNames );
+        matrix.setColumnNames( stringNames );
+
+        /*
+         * Blank out the diagonal so it doesn't affect the colour scale.
+         */
+        for ( int i = 0; i < matrix.rows(); i++ ) {
+            matrix.set( i, i, Double.NaN );
+        }
+
+        ColorMatrix<String, String> cm = new ColorMatrix<>( matrix );
+        MatrixDisplay<String, String> writer = new MatrixDisplay<>( cm );
+        writer.setCellSize( new Dimension( cellSize, cellSize ) );
+        writer.writeToPng( cm, os, showLabels, showScalebar );
+    }
+
+    @Override
+    public void renderMeanVariance( @Nullable MeanVarianceRelation mvr, int sizeFactor, OutputStream os ) throws IOException {
+        // if number of datapoints > THRESHOLD then alpha = TRANSLUCENT, else alpha = OPAQUE
+        final int THRESHOLD = 1000;
+        final int TRANSLUCENT = 50;
+        final int OPAQUE = 255;
+
+        // Set maximum plot range to Y_MAX + YRANGE * OFFSET to leave some extra white space
+        final double OFFSET_FACTOR = 0.05f;
+
+        if ( mvr == null ) {
+            renderPlaceholder( os );
+            return;
+        }
+
+        // get data points
+        XYSeriesCollection collection = this.getMeanVariance( mvr );
+
+        if ( collection.getSeries().isEmpty() ) {
+            renderPlaceholder( os );
+            return;
+        }
+
+        ChartFactory.setChartTheme( StandardChartTheme.createLegacyTheme() );
+        JFreeChart chart = ChartFactory
+                .createScatterPlot( "", "mean (log2)", "variance (log2)", collection, PlotOrientation.VERTICAL, false,
+                        false, false );
+
+        // adjust colors and shapes
+        XYRegressionRenderer renderer = new XYRegressionRenderer();
+        renderer.setDefaultPaint( Color.white );
+        XYSeries series = collection.getSeries( 0 );
+        int alpha = series.getItemCount() > THRESHOLD ? TRANSLUCENT : OPAQUE;
+        renderer.setSeriesPaint( 0, new Color( 0, 0, 0, alpha ) );
+        renderer.setSeriesPaint( 1, Color.red );
+        renderer.setSeriesStroke( 1, new BasicStroke( 1 ) );
+        renderer.setSeriesShape( 0, new Ellipse2D.Double( 4, 4, 4, 4 ) );
+        renderer.setSeriesShapesFilled( 0, false );
+        renderer.setSeriesLinesVisible( 0, false );
+        renderer.setSeriesLinesVisible( 1, true );
+        renderer.setSeriesShapesVisible( 1, false );
+
+        XYPlot plot = chart.getXYPlot();
+        plot.setRenderer( renderer );
+        plot.setRangeGridlinesVisible( false );
+        plot.setDomainGridlinesVisible( false );
+
+        // adjust the chart domain and ranges
+        double yRange = series.getMaxY() - series.getMinY();
+        double xRange = series.getMaxX() - series.getMinX();
+        if ( xRange < 0 ) {
+            log.warn( "Min X was greater than Max X: Max=" + series.getMaxY() + " Min= " + series.getMinY() );
+            renderPlaceholder( os );
+            return;
+        }
+        double ybuffer = ( yRange ) * OFFSET_FACTOR;
+        double xbuffer = ( xRange ) * OFFSET_FACTOR;
+        double newYMin = series.getMinY() - ybuffer;
+        double newYMax = series.getMaxY() + ybuffer;
+        double newXMin = series.getMinX() - xbuffer;
+        double newXMax = series.getMaxX() + xbuffer;
+
+        ValueAxis yAxis = new NumberAxis( "Variance" );
+        yAxis.setRange( newYMin, newYMax );
+        ValueAxis xAxis = new NumberAxis( "Mean" );
+        xAxis.setRange( newXMin, newXMax );
+        chart.getXYPlot().setRangeAxis( yAxis );
+        chart.getXYPlot().setDomainAxis( xAxis );
+
+        int finalSize = sizeFactor * DEFAULT_QC_IMAGE_SIZE_PX;
+
+        ChartUtils.writeChartAsPNG( os, chart, finalSize, finalSize );
+    }
+
+    @Override
+    public void renderPcaScree( SVDResult svdo, OutputStream os ) throws IOException {
+        /*
+         * Make a scree plot.
+         */
+        CategoryDataset series = this.getPCAScree( svdo );
+
+        if ( series.getColumnCount() == 0 ) {
+            return;
+        }
+        ChartFactory.setChartTheme( StandardChartTheme.createLegacyTheme() );
+        JFreeChart chart = ChartFactory
+                .createBarChart( "", "Component (up to " + MAX_COMPONENTS_FOR_SCREE + ")", "Fraction of var.", series,
+                        PlotOrientation.VERTICAL, false, false, false );
+
+        BarRenderer renderer = ( BarRenderer ) chart.getCategoryPlot().getRenderer();
+        renderer.setDefaultPaint( Color.white );
+        renderer.setShadowVisible( false );
+        chart.getCategoryPlot().setRangeGridlinesVisible( false );
+        chart.getCategoryPlot().setDomainGridlinesVisible( false );
+        ChartUtils.writeChartAsPNG( os, chart, DEFAULT_QC_IMAGE_SIZE_PX, DEFAULT_QC_IMAGE_SIZE_PX );
+    }
+
+    @Override
+    public void renderPcaFactors( ExpressionExperiment ee, SVDResult svdo, OutputStream os ) throws IOException {
+        Map<Integer, Map<ExperimentalFactor, Double>> factorCorrelations = svdo.getFactorCorrelations();
+        // Map<Integer, Map<Long, Double>> factorPvalues = svdo.getFactorPvalues();
+        Map<Integer, Double> dateCorrelations = svdo.getDateCorrelations();
+
+        assert ee.equals( svdo.getExperimentAnalyzed() );
+
+        if ( factorCorrelations.isEmpty() && dateCorrelations.isEmpty() ) {
+            this.renderPlaceholder( os );
+            return;
+        }
+        int maxWidth = 10;
+
+        Map<ExperimentalFactor, String> efs = this.getFactorNames( ee, maxWidth );
+
+        DefaultCategoryDataset series = new DefaultCategoryDataset();
+
+        /*
+         * With two groups, or a continuous factor, we get rank correlations
+         */
+        int MAX_COMP = 3;
+        double STUB = 0.05; // always plot a little thing so we know its there.
+        for ( Integer component : factorCorrelations.keySet() ) {
+            if ( component >= MAX_COMP )
+                break;
+            for ( ExperimentalFactor efId : factorCorrelations.get( component ).keySet() ) {
+                Double a = factorCorrelations.get( component ).get( efId );
+                String facname = efs.get( efId ) == null ? "?" : efs.get( efId );
+                if ( a != null && !Double.isNaN( a ) ) {
+                    Double corr = Math.max( STUB, Math.abs( a ) );
+                    series.addValue( corr, "PC" + ( component + 1 ), facname );
+                }
+            }
+        }
+
+        for ( Integer component : dateCorrelations.keySet() ) {
+            if ( component >= MAX_COMP )
+                break;
+            Double a = dateCorrelations.get( component );
+            if ( a != null && !Double.isNaN( a ) ) {
+                Double corr = Math.max( STUB, Math.abs( a ) );
+                series.addValue( corr, "PC" + ( component + 1 ), "Date run" );
+            }
+        }
+        ChartFactory.setChartTheme( StandardChartTheme.createLegacyTheme() );
+        JFreeChart chart = ChartFactory
+                .createBarChart( "", "Factors", "Component assoc.", series, PlotOrientation.VERTICAL, true, false,
+                        false );
+
+        chart.getCategoryPlot().getRangeAxis().setRange( 0, 1 );
+        BarRenderer renderer = ( BarRenderer ) chart.getCategoryPlot().getRenderer();
+        renderer.setDefaultPaint( Color.white );
+        renderer.setShadowVisible( false );
+        chart.getCategoryPlot().setRangeGridlinesVisible( false );
+        chart.getCategoryPlot().setDomainGridlinesVisible( false );
+        ChartUtils.applyCurrentTheme( chart );
+
+        CategoryAxis domainAxis = chart.getCategoryPlot().getDomainAxis();
+        domainAxis.setCategoryLabelPositions( CategoryLabelPositions.UP_45 );
+        for ( int i = 0; i < MAX_COMP; i++ ) {
+            /*
+             * Hue is straightforward; brightness is set medium to make it muted; saturation we vary from high to low.
+             */
+            float saturationDrop = ( float ) Math.min( 1.0, i * 1.3f / MAX_COMP );
+            renderer.setSeriesPaint( i, Color.getHSBColor( 0.0f, 1.0f - saturationDrop, 0.7f ) );
+
+        }
+
+        /*
+         * Give figure more room .. up to a limit
+         */
+        int width = DEFAULT_QC_IMAGE_SIZE_PX;
+        if ( chart.getCategoryPlot().getCategories().size() > 3 ) {
+            width = width + 40 * ( chart.getCategoryPlot().getCategories().size() - 2 );
+        }
+        width = Math.min( width, MAX_QC_IMAGE_SIZE_PX );
+        ChartUtils.writeChartAsPNG( os, chart, width, DEFAULT_QC_IMAGE_SIZE_PX );
+    }
+
+    @Override
+    public void renderPValueDistribution( @Nullable Histogram pvalueDistribution, OutputStream os ) throws IOException {
+        if ( pvalueDistribution == null ) {
+            renderPlaceholder( os );
+            return;
+        }
+
+        XYSeriesCollection xySeriesCollection = new XYSeriesCollection( this.getPValueDistribution( pvalueDistribution ) );
+
+        ChartFactory.setChartTheme( StandardChartTheme.createLegacyTheme() );
+        JFreeChart chart = ChartFactory
+                .createXYLineChart( "", "P-value", "Frequency", xySeriesCollection, PlotOrientation.VERTICAL, false,
+                        false, false );
+        chart.getXYPlot().setRangeGridlinesVisible( false );
+        chart.getXYPlot().setDomainGridlinesVisible( false );
+        XYItemRenderer renderer = chart.getXYPlot().getRenderer();
+        renderer.setDefaultPaint( Color.white );
+
+        ChartUtils.writeChartAsPNG( os, chart, ( int ) ( 1.4 * DEFAULT_QC_IMAGE_SIZE_PX ), DEFAULT_QC_IMAGE_SIZE_PX );
+    }
+
+    @Override
+    public void renderPValueDistributionThumbnail( @Nullable Histogram pvalueDistribution, int size, OutputStream os ) throws IOException {
+        if ( pvalueDistribution == null ) {
+            renderPlaceholderThumbnail( size, os );
+            return;
+        }
+
+        XYSeries series = this.getPValueDistribution( pvalueDistribution );
+        series.add( -0.01, 0.0 );
+
+        XYSeriesCollection xySeriesCollection = new XYSeriesCollection( series );
+
+        ChartFactory.setChartTheme( StandardChartTheme.createLegacyTheme() );
+        JFreeChart chart = ChartFactory
+                .createXYLineChart( "", "", "", xySeriesCollection, PlotOrientation.VERTICAL, false, false, false );
+
+        chart.getXYPlot().setBackgroundPaint( new Color( 230, 230, 230 ) );
+        chart.getXYPlot().setRangeGridlinesVisible( false );
+        chart.getXYPlot().setDomainGridlinesVisible( false );
+        chart.getXYPlot().setOutlineVisible( false ); // around the plot
+        chart.getXYPlot().getRangeAxis().setTickMarksVisible( false );
+        chart.getXYPlot().getRangeAxis().setTickLabelsVisible( false );
+        chart.getXYPlot().getRangeAxis().setAxisLineVisible( false );
+        chart.getXYPlot().getDomainAxis().setTickMarksVisible( false );
+        chart.getXYPlot().getDomainAxis().setTickLabelsVisible( false );
+        chart.getXYPlot().getDomainAxis().setAxisLineVisible( false );
+        chart.getXYPlot().getRenderer().setSeriesPaint( 0, Color.RED );
+        // chart.getXYPlot().getRenderer().setSeriesStroke( 0, new BasicStroke( 1 ) );
+
+        // Make the chart a bit bigger to account for the empty space around the generated image.
+        // If we can find a way to remove this empty space, we don't need to make the chart bigger.
+        int finalSize = getEffectiveThumbnailSize( size );
+        ChartUtils.writeChartAsPNG( os, chart, finalSize + 16, finalSize + 9 );
+    }
+
+    @Override
+    public void renderPlaceholder( OutputStream os ) throws IOException {
+        int size = DEFAULT_QC_IMAGE_SIZE_PX;
+        BufferedImage buffer = new BufferedImage( size, size, BufferedImage.TYPE_INT_RGB );
+        Graphics g = buffer.createGraphics();
+        g.setColor( Color.lightGray );
+        g.fillRect( 0, 0, size, size );
+        g.setColor( Color.black );
+        g.drawString( "Not available", size / 4, size / 4 );
+        ChartUtils.writeBufferedImageAsPNG( os, buffer );
+    }
+
+    /**
+     * Write a blank thumbnail image so user doesn't see the broken icon.
+     */
+    private void renderPlaceholderThumbnail( int size, OutputStream os ) throws IOException {
+        size = getEffectiveThumbnailSize( size );
+        // Make the image a bit bigger to account for the empty space around the generated image.
+        // If we can find a way to remove this empty space, we don't need to make the chart bigger.
+        BufferedImage buffer = new BufferedImage( size + 16, size + 9,
+                BufferedImage.TYPE_INT_RGB );
+        Graphics g = buffer.createGraphics();
+        g.setColor( Color.white );
+        g.fillRect( 0, 0, size + 16, size + 9 );
+        g.setColor( Color.gray );
+        g.drawLine( 8, size + 5, size + 8, size + 5 ); // x-axis
+        g.drawLine( 8, 5, 8, size + 5 ); // y-axis
+        g.setColor( Color.black );
+        Font font = g.getFont();
+        g.setFont( new Font( font.getName(), font.getStyle(), 8 ) );
+        g.drawString( "N/A", 9, size );
+        ChartUtils.writeBufferedImageAsPNG( os, buffer );
+    }
+
+    /**
+     * @param mvr MeanVarianceRelation object that contains the datapoints to plot
+     * @return XYSeriesCollection which contains the Mean-variance and Loess series
+     */
+    private XYSeriesCollection getMeanVariance( MeanVarianceRelation mvr ) {
+
+        XYSeriesCollection dataset = new XYSeriesCollection();
+
+        double[] means = mvr.getMeans();
+        double[] variances = mvr.getVariances();
+
+        if ( means == null || variances == null ) {
+            return dataset;
+        }
+
+        XYSeries series = new XYSeries( "Mean-variance" );
+        for ( int i = 0; i < means.length; i++ ) {
+            series.add( means[i], variances[i] );
+        }
+
+        dataset.addSeries( series );
+
+        return dataset;
+    }
+
+    private CategoryDataset getPCAScree( SVDResult svdo ) {
+        DefaultCategoryDataset series = new DefaultCategoryDataset();
+
+        double[] variances = svdo.getVariances();
+        if ( variances == null || variances.length == 0 ) {
+            return series;
+        }
+        for ( int i = 0; i < Math.min( MAX_COMPONENTS_FOR_SCREE, variances.length ); i++ ) {
+            series.addValue( variances[i], Integer.valueOf( 1 ), Integer.valueOf( i + 1 ) );
+        }
+        return series;
+    }
+
+    private Map<ExperimentalFactor, String> getFactorNames( ExpressionExperiment ee, int maxWidth ) {
+        if ( ee.getExperimentalDesign() == null ) {
+            throw new IllegalArgumentException( "ExpressionExperiment does not have an experimental design." );
+        }
+        Collection<ExperimentalFactor> factors = ee.getExperimentalDesign().getExperimentalFactors();
+        Map<ExperimentalFactor, String> efs = new HashMap<>();
+        for ( ExperimentalFactor ef : factors ) {
+            efs.put( ef, StringUtils.abbreviate( StringUtils.capitalize( ef.getName() ), maxWidth ) );
+        }
+        return efs;
+    }
+
+    /**
+     * @return JFreeChart XYSeries representing the histogram
+     */
+    private XYSeries getPValueDistribution( Histogram hist ) {
+        XYSeries xySeries = new XYSeries( hist.getName(), true, true );
+        Double[] binEdges = hist.getBinEdges();
+        double[] counts = hist.getArray();
+        assert binEdges.length == counts.length;
+        for ( int i = 0; i < binEdges.length; i++ ) {
+            xySeries.add( binEdges[i].doubleValue(), counts[i] );
+        }
+        return xySeries;
+    }
+
+    /**
+     * Overrides XYLineAndShapeRenderer such that lines are drawn on top of points.
+     */
+    private static class XYRegressionRenderer extends XYLineAndShapeRenderer {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean isLinePass( int pass ) {
+            return pass == 1;
+        }
+
+        @Override
+        protected boolean isItemPass( int pass ) {
+            return pass == 0;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package ubic.gemma.core.visualization;
+
+import ubic.gemma.core.analysis.service.ExpressionDataFileService;
+import ubic.gemma.core.util.locking.LockedPath;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Store rendered QC figures (i.e. sample correlation matrix, mean-variance, PCA, etc.) in the metadata directory of
+ * an experiment.
+ * <p>
+ * Figures are stamped with the last update of the experiment at the time they were rendered and are considered stale
+ * once the experiment is updated. Since all the analyses a figure might be derived from (i.e. sample correlation, PCA,
+ * diff. ex.) add an audit event to the experiment when they are recomputed, this is sufficient to never serve outdated
+ * figures.
+ * <p>
+ * Files are managed via {@link ExpressionDataFileService} and are thus protected by the same locks.
+ */
+public interface QcFigureService {
+
+    /**
+     * Locate a stored figure.
+     * <p>
+     * The returned path holds a shared lock on the figure and must be closed once it is consumed.
+     * @param variant a string identifying the parameters the figure was rendered with, it may only contain letters,
+     *                digits, dots, underscores and dashes
+     * @return the figure or empty if none is stored or if the stored figure is stale
+     */
+    Optional<LockedPath> getFigure( ExpressionExperiment ee, QcFigureType type, String variant ) throws IOException;
+
+    /**
+     * Store a rendered figure, replacing any previous version.
+     * @return the path to the stored figure
+     */
+    Path saveFigure( ExpressionExperiment ee, QcFigureType type, String variant, byte[] data ) throws IOException;
+
+    /**
+     * Store a rendered figure in the background.
+     * @see #saveFigure(ExpressionExperiment, QcFigureType, String, byte[])
+     */
+    Future<Path> saveFigureAsync( ExpressionExperiment ee, QcFigureType type, String variant, byte[] data ) throws RejectedExecutionException;
+
+    /**
+     * Render a figure and store it in the background.
+     * <p>
+     * This is meant for pre-rendering figures once the analysis they are derived from is computed. The figure is
+     * rendered in the calling thread, so it may use data bound to the current session. Failures are logged and
+     * otherwise ignored since the figure can always be rendered on-demand.
+     * @return the stored figure, or null if it could not be rendered or scheduled for storage
+     * @see #saveFigure(ExpressionExperiment, QcFigureType, String, byte[])
+     */
+    @Nullable
+    Future<Path> saveFigureAsync( ExpressionExperiment ee, QcFigureType type, String variant, QcFigureWriter writer );
+
+    /**
+     * Delete all the stored figures of a given type.
+     * <p>
+     * This is used when the analysis the figures are derived from is recomputed to avoid accumulating stale figures.
+     * Failures are logged and otherwise ignored.
+     * @return the number of deleted figures
+     */
+    int deleteFigures( ExpressionExperiment ee, QcFigureType type );
+}
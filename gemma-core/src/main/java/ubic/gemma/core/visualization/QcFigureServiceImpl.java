@@ -0,0 +1,153 @@
+package ubic.gemma.core.visualization;
+
+import lombok.extern.apachecommons.CommonsLog;
+import org.apache.commons.io.file.PathUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+import ubic.gemma.core.analysis.service.ExpressionDataFileService;
+import ubic.gemma.core.util.locking.LockedPath;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Figures are stored under {@code qc/{type}/{variant}.{lastUpdated}.png} in the metadata directory of the experiment,
+ * where {@code lastUpdated} is the last update of the experiment in milliseconds at the time the figure was rendered.
+ */
+@Component
+@CommonsLog
+class QcFigureServiceImpl implements QcFigureService {
+
+    private static final String QC_FIGURES_DIR = "qc";
+    private static final Pattern VARIANT_PATTERN = Pattern.compile( "[A-Za-z0-9._-]+" );
+
+    private final ExpressionDataFileService expressionDataFileService;
+    private final AsyncTaskExecutor taskExecutor;
+
+    @Autowired
+    public QcFigureServiceImpl( ExpressionDataFileService expressionDataFileService, @Qualifier("expressionDataFileTaskExecutor") AsyncTaskExecutor taskExecutor ) {
+        this.expressionDataFileService = expressionDataFileService;
+        this.taskExecutor = taskExecutor;
+    }
+
+    @Override
+    public Optional<LockedPath> getFigure( ExpressionExperiment ee, QcFigureType type, String variant ) throws IOException {
+        try ( LockedPath figure = expressionDataFileService.getMetadataFile( ee, getFigureFilename( ee, type, variant ), false ) ) {
+            if ( Files.exists( figure.getPath() ) ) {
+                // lock will be managed by the caller
+                return Optional.of( figure.steal() );
+            }
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public Path saveFigure( ExpressionExperiment ee, QcFigureType type, String variant, byte[] data ) throws IOException {
+        Path destinationFile;
+        try ( LockedPath figure = expressionDataFileService.getMetadataFile( ee, getFigureFilename( ee, type, variant ), true ) ) {
+            destinationFile = figure.getPath();
+            try {
+                PathUtils.createParentDirectories( destinationFile );
+                Files.write( destinationFile, data );
+            } catch ( Exception e ) {
+                Files.deleteIfExists( destinationFile );
+                throw e;
+            }
+        }
+        // remove figures rendered for previous versions of the experiment
+        Pattern previousVersions = Pattern.compile( Pattern.quote( variant ) + "\\.\\d+\\.png" );
+        String filename = destinationFile.getFileName().toString();
+        deleteFiguresMatching( ee, type, f -> !f.equals( filename ) && previousVersions.matcher( f ).matches() );
+        log.debug( "Saved " + type + " QC figure for " + ee + " to " + destinationFile + "." );
+        return destinationFile;
+    }
+
+    @Override
+    public Future<Path> saveFigureAsync( ExpressionExperiment ee, QcFigureType type, String variant, byte[] data ) {
+        return taskExecutor.submit( () -> saveFigure( ee, type, variant, data ) );
+    }
+
+    @Nullable
+    @Override
+    public Future<Path> saveFigureAsync( ExpressionExperiment ee, QcFigureType type, String variant, QcFigureWriter writer ) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try {
+            writer.write( buffer );
+        } catch ( Exception e ) {
+            log.warn( "Failed to render " + type + " QC figure for " + ee + ", it will be rendered on-demand.", e );
+            return null;
+        }
+        if ( buffer.size() == 0 ) {
+            return null;
+        }
+        try {
+            return saveFigureAsync( ee, type, variant, buffer.toByteArray() );
+        } catch ( RejectedExecutionException e ) {
+            log.warn( "Could not store " + type + " QC figure for " + ee + ", it will be rendered on-demand.", e );
+            return null;
+        }
+    }
+
+    @Override
+    public int deleteFigures( ExpressionExperiment ee, QcFigureType type ) {
+        // lock files are stored alongside figures and must be left alone
+        int deleted = deleteFiguresMatching( ee, type, f -> f.endsWith( ".png" ) );
+        if ( deleted > 0 ) {
+            log.info( "Deleted " + deleted + " " + type + " QC figures for " + ee + "." );
+        }
+        return deleted;
+    }
+
+    private int deleteFiguresMatching( ExpressionExperiment ee, QcFigureType type, Predicate<String> filenamePredicate ) {
+        String figuresDir = QC_FIGURES_DIR + "/" + type.getDirectoryName();
+        List<String> filenames;
+        try ( LockedPath dir = expressionDataFileService.getMetadataFile( ee, figuresDir, false ) ) {
+            if ( !Files.isDirectory( dir.getPath() ) ) {
+                return 0;
+            }
+            try ( Stream<Path> files = Files.list( dir.getPath() ) ) {
+                filenames = files
+                        .filter( Files::isRegularFile )
+                        .map( f -> f.getFileName().toString() )
+                        .filter( filenamePredicate )
+                        .collect( Collectors.toList() );
+            }
+        } catch ( IOException e ) {
+            log.warn( "Failed to list " + type + " QC figures for " + ee + ".", e );
+            return 0;
+        }
+        int deleted = 0;
+        for ( String filename : filenames ) {
+            try ( LockedPath figure = expressionDataFileService.getMetadataFile( ee, figuresDir + "/" + filename, true ) ) {
+                if ( Files.deleteIfExists( figure.getPath() ) ) {
+                    deleted++;
+                }
+            } catch ( IOException e ) {
+                log.warn( "Failed to delete QC figure " + filename + " for " + ee + ".", e );
+            }
+        }
+        return deleted;
+    }
+
+    private String getFigureFilename( ExpressionExperiment ee, QcFigureType type, String variant ) {
+        Assert.isTrue( VARIANT_PATTERN.matcher( variant ).matches(), "Invalid QC figure variant: " + variant + "." );
+        long lastUpdated = ee.getCurationDetails() != null && ee.getCurationDetails().getLastUpdated() != null ?
+                ee.getCurationDetails().getLastUpdated().getTime() : 0L;
+        return QC_FIGURES_DIR + "/" + type.getDirectoryName() + "/" + variant + "." + lastUpdated + ".png";
+    }
+}
@@ -0,0 +1,28 @@
+package ubic.gemma.core.visualization;
+
+/**
+ * Types of QC figures that can be stored by {@link QcFigureService}.
+ */
+public enum QcFigureType {
+
+    SAMPLE_CORRELATION_MATRIX( "sampleCorrelationMatrix" ),
+    MEAN_VARIANCE( "meanVariance" ),
+    PCA_SCREE( "pcaScree" ),
+    PCA_FACTORS( "pcaFactors" ),
+    PROBE_CORRELATION_DISTRIBUTION( "probeCorrelationDistribution" ),
+    PVALUE_DISTRIBUTION( "pvalueDistribution" );
+
+    private final String directoryName;
+
+    QcFigureType( String directoryName ) {
+        this.directoryName = directoryName;
+    }
+
+    /**
+     * Name of the directory, relative to the QC figures directory of an experiment, where figures of this type are
+     * stored.
+     */
+    public String getDirectoryName() {
+        return directoryName;
+    }
+}
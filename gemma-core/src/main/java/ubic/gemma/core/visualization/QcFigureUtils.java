@@ -0,0 +1,97 @@
+package ubic.gemma.core.visualization;
+
+import ubic.gemma.model.analysis.expression.diff.ExpressionAnalysisResultSet;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+
+/**
+ * Sizes and variants of the QC figures.
+ * <p>
+ * Variants only encode the effective rendering parameters, so that the figures rendered after an analysis and those
+ * requested from the web interface share the same key in {@link QcFigureService}.
+ */
+public class QcFigureUtils {
+
+    /**
+     * Default size for an image, in pixel.
+     */
+    public static final int DEFAULT_QC_IMAGE_SIZE_PX = 400;
+
+    /**
+     * Maximum size for an image, in pixels.
+     */
+    public static final int MAX_QC_IMAGE_SIZE_PX = 800;
+
+    /**
+     * Maximum size of a thumbnail, in pixels.
+     */
+    public static final int MAX_QC_IMAGE_THUMBNAIL_SIZE_PX = 128;
+
+    /**
+     * Maximum factor size when up-scaling an image.
+     */
+    public static final int MAX_IMAGE_SIZE_FACTOR = 5;
+
+    /**
+     * Size of the p-value distribution thumbnails displayed alongside the diff. ex. result sets.
+     */
+    public static final int DEFAULT_PVALUE_DISTRIBUTION_THUMBNAIL_SIZE_PX = 16;
+
+    /**
+     * Maximum size of a cell in the sample correlation matrix, in pixels.
+     */
+    private static final int MAX_SAMPLE_CORRELATION_MATRIX_CELL_SIZE_PX = 12;
+
+    /**
+     * Minimum size of a cell in the sample correlation matrix for labels to be legible, in pixels.
+     */
+    public static final int MIN_SAMPLE_CORRELATION_MATRIX_CELL_SIZE_FOR_LABELS_PX = 9;
+
+    /**
+     * Truncate a size factor to a whole factor between 1 and {@link #MAX_IMAGE_SIZE_FACTOR}.
+     */
+    public static int getEffectiveSizeFactor( double sizeFactor ) {
+        return Math.max( 1, ( int ) Math.min( sizeFactor, MAX_IMAGE_SIZE_FACTOR ) );
+    }
+
+    /**
+     * Clamp a thumbnail size between 1 and {@link #MAX_QC_IMAGE_THUMBNAIL_SIZE_PX}.
+     */
+    public static int getEffectiveThumbnailSize( int size ) {
+        return Math.max( 1, Math.min( size, MAX_QC_IMAGE_THUMBNAIL_SIZE_PX ) );
+    }
+
+    /**
+     * Obtain the cell size of a sample correlation matrix such that it fits in a square of
+     * {@link #DEFAULT_QC_IMAGE_SIZE_PX} scaled by the given size factor.
+     * <p>
+     * The number of samples of the experiment is used rather than the dimension of the matrix so that the matrix does
+     * not have to be loaded to identify the variant.
+     */
+    public static int getSampleCorrelationMatrixCellSize( ExpressionExperiment ee, double sizeFactor ) {
+        int numberOfSamples = ee.getNumberOfSamples() != null ? Math.max( ee.getNumberOfSamples(), 1 ) : 1;
+        return ( int ) Math.min( MAX_SAMPLE_CORRELATION_MATRIX_CELL_SIZE_PX, Math.max( 1, sizeFactor * DEFAULT_QC_IMAGE_SIZE_PX / numberOfSamples ) );
+    }
+
+    public static String getSampleCorrelationMatrixVariant( boolean regressed, int cellSize, boolean showLabels, boolean showScalebar ) {
+        return String.format( "%s-cellSize%d-showLabels%s-showScalebar%s", regressed ? "regressed" : "full",
+                cellSize, showLabels, showScalebar );
+    }
+
+    /**
+     * @param sizeFactor a size factor as produced by {@link #getEffectiveSizeFactor(double)}
+     */
+    public static String getMeanVarianceVariant( int sizeFactor ) {
+        return "size" + sizeFactor;
+    }
+
+    public static String getPValueDistributionVariant( ExpressionAnalysisResultSet rs ) {
+        return "resultSet" + rs.getId();
+    }
+
+    /**
+     * @param size a thumbnail size as produced by {@link #getEffectiveThumbnailSize(int)}
+     */
+    public static String getPValueDistributionThumbnailVariant( ExpressionAnalysisResultSet rs, int size ) {
+        return "resultSet" + rs.getId() + "-thumbnail" + size;
+    }
+}
@@ -0,0 +1,14 @@
+package ubic.gemma.core.visualization;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Write a rendered QC figure.
+ * @see QcFigureRenderer
+ */
+@FunctionalInterface
+public interface QcFigureWriter {
+
+    void write( OutputStream os ) throws IOException;
+}
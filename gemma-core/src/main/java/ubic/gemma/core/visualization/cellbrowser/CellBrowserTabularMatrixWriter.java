@@ -5,6 +5,7 @@ import ubic.gemma.core.analysis.preprocess.convert.UnsupportedQuantitationScaleC
 import ubic.gemma.core.analysis.preprocess.convert.UnsupportedQuantitationTypeConversionException;
 import ubic.gemma.core.datastructure.matrix.SingleCellExpressionDataMatrix;
 import ubic.gemma.core.datastructure.matrix.io.SingleCellExpressionDataMatrixWriter;
+import ubic.gemma.core.util.FormatBuffer;
 import ubic.gemma.model.common.quantitationtype.PrimitiveType;
 import ubic.gemma.model.common.quantitationtype.ScaleType;
 import ubic.gemma.model.expression.bioAssay.BioAssay;
@@ -36,6 +37,11 @@ public class CellBrowserTabularMatrixWriter implements SingleCellExpressionDataM
     private boolean autoFlush = false;
     private ScaleType scaleType = null;
 
+    /**
+     * Buffer used to format the values of a vector.
+     */
+    private final FormatBuffer buf = new FormatBuffer();
+
     public void setUseBioAssayIds( boolean useBioAssayIds ) {
         this.useBioAssayIds = useBioAssayIds;
     }
@@ -135,28 +141,30 @@ public class CellBrowserTabularMatrixWriter implements SingleCellExpressionDataM
         int numCells = vector.getSingleCellDimension().getNumberOfCells();
         int k = 0;
         for ( int i = 0; i < numCells; i++ ) {
-            writer.write( "\t" );
+            buf.append( '\t' );
             if ( k < vector.getDataIndices().length && i == vector.getDataIndices()[k] ) {
                 switch ( representation ) {
                     case DOUBLE:
-                        writer.write( formatFast( ( ( double[] ) data )[k] ) );
+                        buf.appendFast( ( ( double[] ) data )[k] );
                         break;
                     case FLOAT:
-                        writer.write( formatFast( ( ( float[] ) data )[k] ) );
+                        buf.appendFast( ( ( float[] ) data )[k] );
                         break;
                     case LONG:
-                        writer.write( formatFast( ( ( long[] ) data )[k] ) );
+                        buf.appendFast( ( ( long[] ) data )[k] );
                         break;
                     case INT:
-                        writer.write( formatFast( ( ( int[] ) data )[k] ) );
+                        buf.appendFast( ( ( int[] ) data )[k] );
                         break;
                 }
                 k++;
             } else {
-                writer.write( valueIfMissing );
+                buf.append( valueIfMissing );
             }
         }
-        writer.write( "\n" );
+        buf.append( '\n' );
+        buf.writeTo( writer );
+        buf.clear();
     }
 
     private void writeDesignElement( CompositeSequence designElement, @Nullable Map<CompositeSequence, Set<Gene>> cs2gene, Writer writer ) throws IOException {
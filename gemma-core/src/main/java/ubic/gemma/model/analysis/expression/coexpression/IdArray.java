@@ -154,6 +154,13 @@ public abstract class IdArray {
 
     }
 
+    /**
+     * @return datasets IDs in ascending order, without boxing
+     */
+    public int[] getIdsArray() {
+        return data.toArray();
+    }
+
     /**
      * @return how many datasets there are
      */
@@ -31,7 +31,7 @@ public class SingleCellDimension extends AbstractIdentifiable implements Identif
      * <p>
      * Those are user-supplied cell identifiers. Each cell from a given {@link BioAssay} must be assigned a unique id.
      * <p>
-     * This is stored as a compressed, gzipped blob in the database. See {@link CompressedStringListType} for more details.
+     * This is stored as a block-compressed blob in the database. See {@link CompressedStringListType} for more details.
      */
     @MayBeUninitialized(hasSize = true)
     private List<String> cellIds = new ArrayList<>();
@@ -0,0 +1,228 @@
+package ubic.gemma.model.expression.bioAssayData;
+
+import cern.colt.list.DoubleArrayList;
+import org.springframework.util.Assert;
+import ubic.gemma.model.common.quantitationtype.PrimitiveType;
+
+import javax.annotation.Nullable;
+import java.nio.*;
+
+import static ubic.gemma.model.expression.bioAssayData.SingleCellExpressionDataVectorUtils.getSampleEnd;
+import static ubic.gemma.model.expression.bioAssayData.SingleCellExpressionDataVectorUtils.getSampleStart;
+
+/**
+ * Iterate over the non-zeroes of a {@link SingleCellExpressionDataVector}, one sample or group of cells at a time.
+ * <p>
+ * Values are read directly from the buffer backing the vector data, so unlike
+ * {@link SingleCellExpressionDataVectorUtils#getSampleDataAsDoubles(SingleCellExpressionDataVector, int)} and
+ * friends, no array is allocated to iterate over a sample. A single accessor can be reused for all the samples of a
+ * vector.
+ * <pre>{@code
+ * SingleCellExpressionDataVectorAccessor accessor = SingleCellExpressionDataVectorAccessor.of( vector );
+ * for ( int i = 0; i < numSamples; i++ ) {
+ *     accessor.select( i );
+ *     while ( accessor.next() ) {
+ *         double value = accessor.getDouble();
+ *     }
+ * }
+ * }</pre>
+ * This class is not thread-safe.
+ */
+public class SingleCellExpressionDataVectorAccessor {
+
+    /**
+     * Create an accessor for a vector with a numerical representation.
+     * @throws UnsupportedOperationException if the vector is not represented as floats, doubles, ints or longs
+     */
+    public static SingleCellExpressionDataVectorAccessor of( SingleCellExpressionDataVector vector ) {
+        return new SingleCellExpressionDataVectorAccessor( vector );
+    }
+
+    private final SingleCellExpressionDataVector vector;
+    private final PrimitiveType representation;
+    private final int[] dataIndices;
+    @Nullable
+    private final FloatBuffer floatBuffer;
+    @Nullable
+    private final DoubleBuffer doubleBuffer;
+    @Nullable
+    private final IntBuffer intBuffer;
+    @Nullable
+    private final LongBuffer longBuffer;
+
+    private int sampleIndex = -1;
+    private int start, end, position;
+    /**
+     * Characteristic index of each cell if only a group of cells is iterated, null otherwise.
+     */
+    @Nullable
+    private int[] characteristicIndices;
+    private int characteristicIndex;
+
+    private SingleCellExpressionDataVectorAccessor( SingleCellExpressionDataVector vector ) {
+        this.vector = vector;
+        this.representation = vector.getQuantitationType().getRepresentation();
+        this.dataIndices = vector.getDataIndices();
+        Buffer buffer;
+        switch ( representation ) {
+            case FLOAT:
+            case DOUBLE:
+            case INT:
+            case LONG:
+                buffer = vector.getDataAsBuffer();
+                break;
+            default:
+                throw new UnsupportedOperationException( "Unsupported representation " + representation + " for accessing single-cell data." );
+        }
+        this.floatBuffer = buffer instanceof FloatBuffer ? ( FloatBuffer ) buffer : null;
+        this.doubleBuffer = buffer instanceof DoubleBuffer ? ( DoubleBuffer ) buffer : null;
+        this.intBuffer = buffer instanceof IntBuffer ? ( IntBuffer ) buffer : null;
+        this.longBuffer = buffer instanceof LongBuffer ? ( LongBuffer ) buffer : null;
+    }
+
+    public PrimitiveType getRepresentation() {
+        return representation;
+    }
+
+    /**
+     * Select all the cells of a sample.
+     * <p>
+     * Selecting samples in increasing order is faster as the search for the next sample can start where the previous
+     * one ended.
+     * @param sampleIndex index of the sample in the single-cell dimension
+     */
+    public SingleCellExpressionDataVectorAccessor select( int sampleIndex ) {
+        int after = this.sampleIndex != -1 && sampleIndex > this.sampleIndex ? end : 0;
+        this.sampleIndex = sampleIndex;
+        this.start = getSampleStart( vector, sampleIndex, after );
+        this.end = getSampleEnd( vector, sampleIndex, start );
+        this.position = start - 1;
+        this.characteristicIndices = null;
+        return this;
+    }
+
+    /**
+     * Select the cells of a sample that have a given characteristic.
+     * @param characteristicIndex index of the characteristic, or {@link CellLevelCharacteristics#UNKNOWN_CHARACTERISTIC}
+     *                            to select cells with an unknown characteristic
+     */
+    public SingleCellExpressionDataVectorAccessor select( int sampleIndex, CellLevelCharacteristics cellLevelCharacteristics, int characteristicIndex ) {
+        Assert.isTrue( characteristicIndex >= -1 && characteristicIndex < cellLevelCharacteristics.getNumberOfCharacteristics() );
+        select( sampleIndex );
+        this.characteristicIndices = cellLevelCharacteristics.getIndices();
+        this.characteristicIndex = characteristicIndex;
+        return this;
+    }
+
+    /**
+     * Move to the next non-zero of the selection.
+     * @return true if there was a next non-zero, false if the end of the selection was reached
+     */
+    public boolean next() {
+        if ( characteristicIndices == null ) {
+            return ++position < end;
+        }
+        while ( ++position < end ) {
+            if ( characteristicIndices[dataIndices[position]] == characteristicIndex ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rewind to the start of the selection.
+     */
+    public void reset() {
+        position = start - 1;
+    }
+
+    /**
+     * Count the non-zeroes in the selection.
+     * <p>
+     * This is fast if all the cells of a sample are selected, otherwise the selection has to be traversed. The position
+     * is left unchanged.
+     */
+    public int size() {
+        if ( characteristicIndices == null ) {
+            return end - start;
+        }
+        int count = 0;
+        for ( int i = start; i < end; i++ ) {
+            if ( characteristicIndices[dataIndices[i]] == characteristicIndex ) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Obtain the index of the current cell in the single-cell dimension.
+     */
+    public int getCellIndex() {
+        return dataIndices[position];
+    }
+
+    /**
+     * Obtain the current value, converted to a double if necessary.
+     */
+    public double getDouble() {
+        switch ( representation ) {
+            case FLOAT:
+                return floatBuffer.get( position );
+            case DOUBLE:
+                return doubleBuffer.get( position );
+            case INT:
+                return intBuffer.get( position );
+            case LONG:
+                return longBuffer.get( position );
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Obtain the current value of a vector of floats.
+     */
+    public float getFloat() {
+        Assert.state( floatBuffer != null, "The vector is not represented as floats." );
+        return floatBuffer.get( position );
+    }
+
+    /**
+     * Obtain the current value of a vector of ints.
+     */
+    public int getInt() {
+        Assert.state( intBuffer != null, "The vector is not represented as ints." );
+        return intBuffer.get( position );
+    }
+
+    /**
+     * Obtain the current value of a vector of ints or longs.
+     */
+    public long getLong() {
+        if ( intBuffer != null ) {
+            return intBuffer.get( position );
+        }
+        Assert.state( longBuffer != null, "The vector is not represented as ints or longs." );
+        return longBuffer.get( position );
+    }
+
+    /**
+     * Copy the values of the selection in a list, replacing its content.
+     * <p>
+     * Reusing the same list for all the selections avoids allocating an array for each of them once the list has grown
+     * to the size of the largest selection. The position is left unchanged.
+     * @return the given list, for convenience
+     */
+    public DoubleArrayList copyTo( DoubleArrayList dst ) {
+        int p = position;
+        dst.clear();
+        reset();
+        while ( next() ) {
+            dst.add( getDouble() );
+        }
+        position = p;
+        return dst;
+    }
+}
@@ -0,0 +1,301 @@
+package ubic.gemma.persistence.hibernate;
+
+import org.springframework.util.Assert;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * An immutable list of strings encoded in independently compressed blocks.
+ * <p>
+ * The encoding is as follows, with all integers in big-endian:
+ * <pre>
+ * magic       4 bytes, see {@link #MAGIC}
+ * size        int, number of strings
+ * blockSize   int, number of strings per block, the last block may be smaller
+ * offsets     int[numberOfBlocks + 1], offsets of the blocks relative to the end of the header
+ * blocks      raw deflate-compressed blocks
+ * </pre>
+ * Within a block, strings are front-coded: each string is written as the number of leading characters it shares with
+ * the previous string of the block and the remaining characters encoded with the charset, both lengths being written as
+ * variable-length integers. Cell identifiers typically share long prefixes (i.e. a sample name, a barcode prefix), so
+ * this compresses well even before deflating.
+ * <p>
+ * Since each block can be decoded independently, elements are decoded on demand and the {@link #MAX_CACHED_BLOCKS}
+ * most recently used blocks are retained. This makes looking up a few elements or iterating over a range of elements
+ * cheap. Callers that repeatedly access all the elements should copy them once with {@link #toArray()}.
+ */
+class BlockCompressedStringList extends AbstractList<String> implements RandomAccess, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Magic bytes identifying this encoding, which cannot be mistaken for the gzip magic bytes ({@code 0x1f 0x8b}).
+     */
+    static final byte[] MAGIC = { 'G', 'S', 'L', 1 };
+
+    /**
+     * Maximum number of decoded blocks to retain.
+     */
+    static final int MAX_CACHED_BLOCKS = 16;
+
+    /**
+     * Encode a list of strings.
+     */
+    static byte[] encode( List<String> strings, int blockSize, Charset charset ) {
+        Assert.isTrue( blockSize > 0, "The block size must be strictly positive." );
+        int numberOfBlocks = ( strings.size() + blockSize - 1 ) / blockSize;
+        int[] offsets = new int[numberOfBlocks + 1];
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater( Deflater.DEFAULT_COMPRESSION, true );
+        try {
+            for ( int b = 0; b < numberOfBlocks; b++ ) {
+                deflater.reset();
+                try ( DataOutputStream out = new DataOutputStream( new DeflaterOutputStream( new NonClosingOutputStream( blocks ), deflater ) ) ) {
+                    String previous = "";
+                    for ( String s : strings.subList( b * blockSize, Math.min( ( b + 1 ) * blockSize, strings.size() ) ) ) {
+                        int shared = sharedPrefixLength( previous, s );
+                        byte[] suffix = s.substring( shared ).getBytes( charset );
+                        writeVarInt( out, shared );
+                        writeVarInt( out, suffix.length );
+                        out.write( suffix );
+                        previous = s;
+                    }
+                }
+                offsets[b + 1] = blocks.size();
+            }
+        } catch ( IOException e ) {
+            // this never happens with in-memory streams
+            throw new UncheckedIOException( e );
+        } finally {
+            deflater.end();
+        }
+        ByteBuffer buf = ByteBuffer.allocate( MAGIC.length + 4 * ( 2 + offsets.length ) + blocks.size() );
+        buf.put( MAGIC );
+        buf.putInt( strings.size() );
+        buf.putInt( blockSize );
+        for ( int offset : offsets ) {
+            buf.putInt( offset );
+        }
+        buf.put( blocks.toByteArray() );
+        return buf.array();
+    }
+
+    /**
+     * Check if the given data starts with {@link #MAGIC}.
+     */
+    static boolean isEncoded( byte[] header ) {
+        return header.length >= MAGIC.length && Arrays.equals( Arrays.copyOf( header, MAGIC.length ), MAGIC );
+    }
+
+    private final byte[] data;
+    private final int size;
+    private final int blockSize;
+    private final int[] offsets;
+    private final int dataOffset;
+    private final String charsetName;
+
+    @Nullable
+    private transient Charset charset;
+    @Nullable
+    private transient volatile Map<Integer, String[]> decodedBlocks;
+
+    /**
+     * @param data    encoded data as produced by {@link #encode(List, int, Charset)}
+     * @param charset charset that was used for encoding the strings
+     */
+    BlockCompressedStringList( byte[] data, Charset charset ) {
+        Assert.isTrue( isEncoded( data ), "The data is not a block-compressed list of strings." );
+        ByteBuffer buf = ByteBuffer.wrap( data );
+        buf.position( MAGIC.length );
+        this.data = data;
+        this.size = buf.getInt();
+        this.blockSize = buf.getInt();
+        Assert.isTrue( size >= 0 && blockSize > 0, "Invalid header for a block-compressed list of strings." );
+        this.offsets = new int[( size + blockSize - 1 ) / blockSize + 1];
+        for ( int i = 0; i < offsets.length; i++ ) {
+            offsets[i] = buf.getInt();
+        }
+        this.dataOffset = buf.position();
+        this.charsetName = charset.name();
+        this.charset = charset;
+    }
+
+    @Override
+    public String get( int index ) {
+        if ( index < 0 || index >= size ) {
+            throw new IndexOutOfBoundsException( "Index " + index + " is out of bounds for size " + size + "." );
+        }
+        return getBlock( index / blockSize )[index % blockSize];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Stream the strings, decoding blocks as they are consumed.
+     * <p>
+     * Unlike {@link #get(int)}, decoded blocks are not retained.
+     */
+    @Override
+    public Stream<String> stream() {
+        return IntStream.range( 0, offsets.length - 1 )
+                .mapToObj( this::decodeBlock )
+                .flatMap( Arrays::stream );
+    }
+
+    /**
+     * Decode all the strings at once, without retaining the decoded blocks.
+     */
+    @Override
+    public Object[] toArray() {
+        return stream().toArray( String[]::new );
+    }
+
+    /**
+     * Obtain the encoded data, as produced by {@link #encode(List, int, Charset)}.
+     * <p>
+     * The returned array must not be modified.
+     */
+    byte[] getEncoded() {
+        return data;
+    }
+
+    /**
+     * Obtain the charset used for encoding the strings.
+     */
+    Charset getCharset() {
+        if ( charset == null ) {
+            charset = Charset.forName( charsetName );
+        }
+        return charset;
+    }
+
+    private String[] getBlock( int blockIndex ) {
+        Map<Integer, String[]> cache = getDecodedBlocks();
+        String[] block;
+        synchronized ( cache ) {
+            block = cache.get( blockIndex );
+        }
+        if ( block == null ) {
+            // decode outside the lock, at worst a block is decoded twice by concurrent readers
+            block = decodeBlock( blockIndex );
+            synchronized ( cache ) {
+                cache.put( blockIndex, block );
+            }
+        }
+        return block;
+    }
+
+    private Map<Integer, String[]> getDecodedBlocks() {
+        Map<Integer, String[]> cache = decodedBlocks;
+        if ( cache == null ) {
+            synchronized ( this ) {
+                cache = decodedBlocks;
+                if ( cache == null ) {
+                    cache = new LinkedHashMap<Integer, String[]>( 16, 0.75f, true ) {
+                        @Override
+                        protected boolean removeEldestEntry( Map.Entry<Integer, String[]> eldest ) {
+                            return size() > MAX_CACHED_BLOCKS;
+                        }
+                    };
+                    decodedBlocks = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    private String[] decodeBlock( int blockIndex ) {
+        Charset charset = getCharset();
+        String[] strings = new String[Math.min( blockSize, size - blockIndex * blockSize )];
+        Inflater inflater = new Inflater( true );
+        try ( DataInputStream in = new DataInputStream( new InflaterInputStream(
+                new ByteArrayInputStream( data, dataOffset + offsets[blockIndex], offsets[blockIndex + 1] - offsets[blockIndex] ),
+                inflater ) ) ) {
+            String previous = "";
+            byte[] buf = new byte[64];
+            for ( int i = 0; i < strings.length; i++ ) {
+                int shared = readVarInt( in );
+                int suffixLength = readVarInt( in );
+                if ( suffixLength > buf.length ) {
+                    buf = new byte[Math.max( suffixLength, 2 * buf.length )];
+                }
+                in.readFully( buf, 0, suffixLength );
+                previous = previous.substring( 0, shared ) + new String( buf, 0, suffixLength, charset );
+                strings[i] = previous;
+            }
+        } catch ( IOException e ) {
+            throw new UncheckedIOException( "Failed to decode block " + blockIndex + ".", e );
+        } finally {
+            inflater.end();
+        }
+        return strings;
+    }
+
+    /**
+     * Number of leading characters shared by two strings, never splitting a surrogate pair so that the remaining
+     * characters can be encoded on their own.
+     */
+    private static int sharedPrefixLength( String a, String b ) {
+        int n = Math.min( a.length(), b.length() );
+        int i = 0;
+        while ( i < n && a.charAt( i ) == b.charAt( i ) ) {
+            i++;
+        }
+        if ( i > 0 && Character.isHighSurrogate( a.charAt( i - 1 ) ) ) {
+            i--;
+        }
+        return i;
+    }
+
+    private static void writeVarInt( DataOutput out, int value ) throws IOException {
+        while ( ( value & ~0x7F ) != 0 ) {
+            out.writeByte( ( value & 0x7F ) | 0x80 );
+            value >>>= 7;
+        }
+        out.writeByte( value );
+    }
+
+    private static int readVarInt( DataInput in ) throws IOException {
+        int value = 0;
+        for ( int shift = 0; shift < 32; shift += 7 ) {
+            byte b = in.readByte();
+            value |= ( b & 0x7F ) << shift;
+            if ( ( b & 0x80 ) == 0 ) {
+                return value;
+            }
+        }
+        throw new IOException( "Malformed variable-length integer." );
+    }
+
+    /**
+     * Allow each block to be finished without closing the underlying stream.
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+
+        private NonClosingOutputStream( OutputStream out ) {
+            super( out );
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len ) throws IOException {
+            out.write( b, off, len );
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -8,7 +8,6 @@ import org.hibernate.engine.spi.SessionImplementor;
 import org.hibernate.usertype.ParameterizedType;
 import org.hibernate.usertype.UserType;
 import org.springframework.util.Assert;
-import ubic.gemma.core.util.concurrent.ThreadUtils;
 
 import javax.annotation.Nullable;
 import java.io.*;
@@ -22,12 +21,15 @@ import java.util.*;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import static java.util.Objects.requireNonNull;
 
 /**
- * Type that transparently stores a {@link List} of {@link String} as gzip-compressed blob.
+ * Type that transparently stores a {@link List} of {@link String} as a compressed blob.
+ * <p>
+ * Lists are written in blocks of strings that are compressed independently (see {@link BlockCompressedStringList}), so
+ * that retrieving a few strings or a range of strings does not require decompressing the whole blob. Lists stored as a
+ * single gzip-compressed, delimiter-joined blob by earlier versions are still readable.
  * @author poirigui
  */
 public class CompressedStringListType implements UserType, ParameterizedType {
@@ -46,6 +48,15 @@ public class CompressedStringListType implements UserType, ParameterizedType {
      */
     private Charset charset;
 
+    /**
+     * Number of strings per compressed block.
+     * <p>
+     * Defaults to {@link #DEFAULT_BLOCK_SIZE}.
+     */
+    private int blockSize;
+
+    private static final int DEFAULT_BLOCK_SIZE = 1024;
+
     @Override
     public int[] sqlTypes() {
         return new int[] { Types.BLOB };
@@ -69,9 +80,9 @@ public class CompressedStringListType implements UserType, ParameterizedType {
     @Override
     public List<String> nullSafeGet( ResultSet rs, String[] names, SessionImplementor session, Object owner ) throws HibernateException, SQLException {
         Assert.notNull( delimiter, "The 'delimiter' parameter must be set." );
-        InputStream gzippedStream = rs.getBinaryStream( names[0] );
-        if ( gzippedStream != null ) {
-            return decompress( gzippedStream );
+        InputStream compressedStream = rs.getBinaryStream( names[0] );
+        if ( compressedStream != null ) {
+            return decompress( compressedStream );
         } else {
             return null;
         }
@@ -90,6 +101,10 @@ public class CompressedStringListType implements UserType, ParameterizedType {
 
     @Override
     public Object deepCopy( @Nullable Object value ) throws HibernateException {
+        if ( value instanceof BlockCompressedStringList ) {
+            // immutable, and copying would decompress it entirely
+            return value;
+        }
         //noinspection unchecked
         return value != null ? new ArrayList<>( ( List<String> ) value ) : null;
     }
@@ -123,61 +138,72 @@ public class CompressedStringListType implements UserType, ParameterizedType {
         } else {
             this.charset = StandardCharsets.UTF_8;
         }
+        if ( parameters.containsKey( "blockSize" ) ) {
+            this.blockSize = Integer.parseInt( parameters.getProperty( "blockSize" ) );
+            Assert.isTrue( blockSize > 0, "The 'blockSize' parameter must be strictly positive." );
+        } else {
+            this.blockSize = DEFAULT_BLOCK_SIZE;
+        }
     }
 
     /**
-     * Compress the given list of strings into a gzip-compressed input stream.
-     * <p>
-     * Because Java lacks a gzip-compressing input stream implementation, we create a pipe and write the compressed
-     * output on one end and retrieve the it as an input stream on the other end.
+     * Compress the given list of strings into an input stream.
      * <p>
-     * I'm (poirigui) not too concerned by the thread creation since those are limited by the number of database
-     * connection.
-     * FIXME: replace this by a compressing input stream
+     * Although the delimiter is not used by the block-compressed format, it is still not allowed in any of the strings.
      */
     public InputStream compress( List<String> s ) {
+        if ( s instanceof BlockCompressedStringList && ( ( BlockCompressedStringList ) s ).getCharset().equals( charset ) ) {
+            // already compressed and it was checked when it was first written
+            return new ByteArrayInputStream( ( ( BlockCompressedStringList ) s ).getEncoded() );
+        }
         Assert.isTrue( s.stream().noneMatch( k -> k.contains( delimiter ) ),
                 String.format( "The list of strings may not contain the delimiter %s.", delimiter ) );
-        PipedInputStream is;
-        PipedOutputStream out;
-        try {
-            out = new PipedOutputStream();
-            is = new PipedInputStream( out );
-        } catch ( IOException e ) {
-            throw new HibernateException( e );
-        }
-        ThreadUtils.newThread( () -> {
-            try ( Writer w = new OutputStreamWriter( new GZIPOutputStream( out ), charset ) ) {
-                boolean first = true;
-                for ( String s1 : s ) {
-                    if ( !first ) {
-                        w.write( delimiter );
-                    }
-                    w.write( s1 );
-                    first = false;
-                }
-            } catch ( IOException e ) {
-                throw new RuntimeException( e );
-            }
-        } ).start();
-        return is;
+        return new ByteArrayInputStream( BlockCompressedStringList.encode( s, blockSize, charset ) );
     }
 
-    public List<String> decompress( InputStream gzippedStream ) {
-        try ( InputStream in = new GZIPInputStream( gzippedStream ) ) {
-            return Arrays.asList( StringUtils.splitByWholeSeparatorPreserveAllTokens( IOUtils.toString( in, charset ), delimiter ) );
+    /**
+     * Decompress a list of strings.
+     * <p>
+     * Block-compressed lists are decoded lazily, gzip-compressed lists are decompressed entirely.
+     */
+    public List<String> decompress( InputStream compressedStream ) {
+        try {
+            BufferedInputStream in = new BufferedInputStream( compressedStream );
+            if ( isBlockCompressed( in ) ) {
+                return new BlockCompressedStringList( IOUtils.toByteArray( in ), charset );
+            }
+            try ( InputStream gzipIn = new GZIPInputStream( in ) ) {
+                return Arrays.asList( StringUtils.splitByWholeSeparatorPreserveAllTokens( IOUtils.toString( gzipIn, charset ), delimiter ) );
+            }
         } catch ( IOException e ) {
             throw new HibernateException( e );
         }
     }
 
-    public Stream<String> decompressToStream( InputStream gzippedStream ) {
+    /**
+     * Decompress a list of strings as a stream.
+     * <p>
+     * Block-compressed lists are decoded one block at a time.
+     */
+    public Stream<String> decompressToStream( InputStream compressedStream ) {
         try {
-            Scanner scanner = new Scanner( new InputStreamReader( new GZIPInputStream( gzippedStream ), charset ) );
+            BufferedInputStream in = new BufferedInputStream( compressedStream );
+            if ( isBlockCompressed( in ) ) {
+                return new BlockCompressedStringList( IOUtils.toByteArray( in ), charset ).stream();
+            }
+            Scanner scanner = new Scanner( new InputStreamReader( new GZIPInputStream( in ), charset ) );
             scanner.useDelimiter( Pattern.quote( delimiter ) );
             return Streams.of( scanner ).onClose( scanner::close );
         } catch ( IOException e ) {
             throw new HibernateException( e );
         }
     }
+
+    private boolean isBlockCompressed( BufferedInputStream in ) throws IOException {
+        byte[] header = new byte[BlockCompressedStringList.MAGIC.length];
+        in.mark( header.length );
+        int n = IOUtils.read( in, header );
+        in.reset();
+        return n == header.length && BlockCompressedStringList.isEncoded( header );
+    }
 }
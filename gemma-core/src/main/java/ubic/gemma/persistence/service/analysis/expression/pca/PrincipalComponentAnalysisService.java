@@ -32,10 +32,15 @@ import java.util.List;
  */
 public interface PrincipalComponentAnalysisService extends BaseImmutableService<PrincipalComponentAnalysis> {
 
+    /**
+     * @param eigenvalues   eigenvalues of the computed components
+     * @param totalVariance sum of all the eigenvalues, used to compute variance fractions; this exceeds the sum of the
+     *                      given eigenvalues if only the leading components were computed
+     */
     @Secured({ "GROUP_USER", "ACL_SECURABLE_EDIT" })
     PrincipalComponentAnalysis create( ExpressionExperiment ee, DoubleMatrix<CompositeSequence, Integer> u,
-            double[] eigenvalues, DoubleMatrix<Integer, BioMaterial> v, BioAssayDimension bad, int numComponentsToStore,
-            int numLoadingsToStore );
+            double[] eigenvalues, double totalVariance, DoubleMatrix<BioMaterial, Integer> v, BioAssayDimension bad,
+            int numComponentsToStore, int numLoadingsToStore );
 
     @Secured({ "IS_AUTHENTICATED_ANONYMOUSLY", "ACL_SECURABLE_READ" })
     List<ProbeLoading> getTopLoadedProbes( ExpressionExperiment ee, int component, int count );
@@ -17,7 +17,9 @@ package ubic.gemma.persistence.service.analysis.expression.sampleCoexpression;
 import cern.colt.list.DoubleArrayList;
 import cern.colt.matrix.DoubleMatrix2D;
 import lombok.extern.apachecommons.CommonsLog;
+import org.apache.commons.lang3.time.StopWatch;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Transactional;
@@ -25,7 +27,6 @@ import ubic.basecode.dataStructure.matrix.DenseDoubleMatrix;
 import ubic.basecode.dataStructure.matrix.DoubleMatrix;
 import ubic.basecode.dataStructure.matrix.ObjectMatrix;
 import ubic.basecode.math.MatrixRowStats;
-import ubic.basecode.math.MatrixStats;
 import ubic.basecode.math.linearmodels.DesignMatrix;
 import ubic.basecode.math.linearmodels.LeastSquaresFit;
 import ubic.gemma.core.analysis.expression.diff.DiffExAnalyzerUtils;
@@ -34,8 +35,13 @@ import ubic.gemma.core.analysis.preprocess.filter.FilterConfig;
 import ubic.gemma.core.analysis.preprocess.filter.FilteringException;
 import ubic.gemma.core.analysis.preprocess.svd.SVDService;
 import ubic.gemma.core.analysis.service.ExpressionDataMatrixService;
+import ubic.gemma.core.analysis.stats.ColumnCorrelationCalculator;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrix;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataMatrixColumnSort;
+import ubic.gemma.core.visualization.QcFigureRenderer;
+import ubic.gemma.core.visualization.QcFigureService;
+import ubic.gemma.core.visualization.QcFigureType;
+import ubic.gemma.core.visualization.QcFigureUtils;
 import ubic.gemma.model.analysis.expression.coexpression.SampleCoexpressionAnalysis;
 import ubic.gemma.model.analysis.expression.coexpression.SampleCoexpressionMatrix;
 import ubic.gemma.model.common.auditAndSecurity.eventType.SampleCorrelationAnalysisEvent;
@@ -99,6 +105,13 @@ public class SampleCoexpressionAnalysisServiceImpl implements SampleCoexpression
     private ExpressionExperimentService expressionExperimentService;
     @Autowired
     private AuditTrailService auditTrailService;
+    @Autowired
+    private QcFigureService qcFigureService;
+    @Autowired
+    private QcFigureRenderer qcFigureRenderer;
+
+    @Value("${gemma.sampleCoexpression.numberOfThreads}")
+    private int numberOfThreads;
 
     @Override
     @Transactional(readOnly = true)
@@ -188,6 +201,9 @@ public class SampleCoexpressionAnalysisServiceImpl implements SampleCoexpression
 
         auditTrailService.addUpdateEvent( ee, SampleCorrelationAnalysisEvent.class, "Sample correlation has been computed." );
 
+        qcFigureService.deleteFigures( ee, QcFigureType.SAMPLE_CORRELATION_MATRIX );
+        this.saveDefaultFigure( ee, analysis );
+
         return toDoubleMatrix( analysis.getBestCoexpressionMatrix() );
     }
 
@@ -203,6 +219,20 @@ public class SampleCoexpressionAnalysisServiceImpl implements SampleCoexpression
         this.sampleCoexpressionAnalysisDao.remove( this.sampleCoexpressionAnalysisDao.findByExperiment( ee, true ) );
     }
 
+    /**
+     * Pre-render the full matrix as displayed on the experiment page.
+     */
+    private void saveDefaultFigure( ExpressionExperiment ee, SampleCoexpressionAnalysis analysis ) {
+        DoubleMatrix<BioAssay, BioAssay> fullMatrix = toDoubleMatrix( analysis.getFullCoexpressionMatrix() );
+        if ( fullMatrix == null ) {
+            return;
+        }
+        int cellSize = QcFigureUtils.getSampleCorrelationMatrixCellSize( ee, 1.0 );
+        qcFigureService.saveFigureAsync( ee, QcFigureType.SAMPLE_CORRELATION_MATRIX,
+                QcFigureUtils.getSampleCorrelationMatrixVariant( false, cellSize, false, false ),
+                os -> qcFigureRenderer.renderSampleCorrelationMatrix( fullMatrix, cellSize, false, false, os ) );
+    }
+
     /**
      * Checks whether the regressed matrix should be computed for the given ee.
      *
@@ -275,17 +305,18 @@ public class SampleCoexpressionAnalysisServiceImpl implements SampleCoexpression
     }
 
     private DoubleMatrix<BioAssay, BioAssay> dataToDoubleMat( ExpressionDataDoubleMatrix matrix ) {
-
-        DoubleMatrix<BioMaterial, CompositeSequence> transposeR = matrix.getMatrix().transpose();
-
-        DoubleMatrix<BioAssay, CompositeSequence> transpose = new DenseDoubleMatrix<>( transposeR.getRawMatrix() );
-        transpose.setColumnNames( transposeR.getColNames() );
-        for ( int i = 0; i < transpose.rows(); i++ ) {
-            BioAssay s = transposeR.getRowName( i ).getBioAssaysUsedIn().iterator().next();
-            transpose.setRowName( s, i );
+        List<BioAssay> bioAssays = new ArrayList<>( matrix.columns() );
+        for ( int i = 0; i < matrix.columns(); i++ ) {
+            bioAssays.add( matrix.getMatrix().getColName( i ).getBioAssaysUsedIn().iterator().next() );
         }
-
-        return MatrixStats.correlationMatrix( transpose );
+        StopWatch timer = StopWatch.createStarted();
+        double[][] cormat = ColumnCorrelationCalculator.correlate( matrix.getRawMatrixAsDoubles(), numberOfThreads );
+        SampleCoexpressionAnalysisServiceImpl.log.info( String.format( "Computed %dx%d sample correlation matrix in %d ms.", cormat.length, cormat.length,
+                timer.getTime() ) );
+        DoubleMatrix<BioAssay, BioAssay> result = new DenseDoubleMatrix<>( cormat );
+        result.setRowNames( bioAssays );
+        result.setColumnNames( bioAssays );
+        return result;
     }
 
     private ExpressionDataDoubleMatrix loadDataMatrix( ExpressionExperiment ee, boolean useRegression,
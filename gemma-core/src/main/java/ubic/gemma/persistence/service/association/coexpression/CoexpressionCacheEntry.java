@@ -0,0 +1,169 @@
+package ubic.gemma.persistence.service.association.coexpression;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The coexpression links of one query gene, packed in a byte array for caching.
+ * <p>
+ * Each link is stored as the partner gene ID, support, sign and support details ID, followed by the supporting and
+ * tested-in dataset IDs delta-encoded as variable-length integers. Links are only decoded in {@link #decode(Long)},
+ * so a cached gene costs a single array on the heap and is cheap to serialize when the cache overflows to disk.
+ */
+class CoexpressionCacheEntry implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int POSITIVE_CORRELATION = 1;
+    private static final int HAS_SUPPORT_DETAILS_ID = 1 << 1;
+    private static final int HAS_SUPPORTING_DATASETS = 1 << 2;
+    private static final int HAS_TESTED_IN_DATASETS = 1 << 3;
+    private static final int HAS_COEX_GENE_SYMBOL = 1 << 4;
+
+    private final int numLinks;
+    private final byte[] data;
+
+    private CoexpressionCacheEntry( int numLinks, byte[] data ) {
+        this.numLinks = numLinks;
+        this.data = data;
+    }
+
+    /**
+     * Pack the given links, keeping their order.
+     *
+     * @param queryGene the query gene all the links are for
+     * @param links     links to pack
+     * @throws IllegalArgumentException if a link is for another query gene or had constraints
+     */
+    static CoexpressionCacheEntry encode( Long queryGene, Collection<CoexpressionValueObject> links ) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream( 32 + 16 * links.size() );
+        try ( DataOutputStream out = new DataOutputStream( bos ) ) {
+            String queryGeneSymbol = links.isEmpty() ? null : links.iterator().next().getQueryGeneSymbol();
+            out.writeBoolean( queryGeneSymbol != null );
+            if ( queryGeneSymbol != null ) {
+                out.writeUTF( queryGeneSymbol );
+            }
+            for ( CoexpressionValueObject vo : links ) {
+                if ( vo.isEeConstraint() || vo.getMaxResults() > 0
+                        || vo.getQueryStringency() > CoexpressionCache.CACHE_QUERY_STRINGENCY ) {
+                    throw new IllegalArgumentException( "Cannot cache a result that had constraints" );
+                }
+                if ( !queryGene.equals( vo.getQueryGeneId() ) ) {
+                    throw new IllegalArgumentException( vo + " is not a link for gene " + queryGene );
+                }
+                int flags = 0;
+                if ( vo.isPositiveCorrelation() )
+                    flags |= POSITIVE_CORRELATION;
+                if ( vo.getSupportDetailsId() != null )
+                    flags |= HAS_SUPPORT_DETAILS_ID;
+                if ( vo.getSupportingDatasets() != null )
+                    flags |= HAS_SUPPORTING_DATASETS;
+                if ( vo.getTestedInDatasets() != null )
+                    flags |= HAS_TESTED_IN_DATASETS;
+                if ( vo.getCoexGeneSymbol() != null )
+                    flags |= HAS_COEX_GENE_SYMBOL;
+                out.writeByte( flags );
+                writeVarLong( out, vo.getCoexGeneId() );
+                writeVarLong( out, vo.getNumDatasetsSupporting() );
+                if ( vo.getSupportDetailsId() != null )
+                    writeVarLong( out, vo.getSupportDetailsId() );
+                if ( vo.getSupportingDatasets() != null )
+                    writeIds( out, CompressedLongSet.copyOf( vo.getSupportingDatasets() ) );
+                if ( vo.getTestedInDatasets() != null )
+                    writeIds( out, CompressedLongSet.copyOf( vo.getTestedInDatasets() ) );
+                if ( vo.getCoexGeneSymbol() != null )
+                    out.writeUTF( vo.getCoexGeneSymbol() );
+            }
+        } catch ( IOException e ) {
+            throw new RuntimeException( e );
+        }
+        return new CoexpressionCacheEntry( links.size(), bos.toByteArray() );
+    }
+
+    /**
+     * Unpack the links, in the order they were packed.
+     *
+     * @param queryGene the query gene this entry was packed for
+     */
+    List<CoexpressionValueObject> decode( Long queryGene ) {
+        List<CoexpressionValueObject> result = new ArrayList<>( numLinks );
+        try ( DataInputStream in = new DataInputStream( new ByteArrayInputStream( data ) ) ) {
+            String queryGeneSymbol = in.readBoolean() ? in.readUTF() : null;
+            for ( int i = 0; i < numLinks; i++ ) {
+                int flags = in.readUnsignedByte();
+                long coexGene = readVarLong( in );
+                int support = ( int ) readVarLong( in );
+                Long supportDetailsId = ( flags & HAS_SUPPORT_DETAILS_ID ) != 0 ? readVarLong( in ) : null;
+                CompressedLongSet supportingDatasets = ( flags & HAS_SUPPORTING_DATASETS ) != 0 ? readIds( in ) : null;
+                CompressedLongSet testedInDatasets = ( flags & HAS_TESTED_IN_DATASETS ) != 0 ? readIds( in ) : null;
+                String coexGeneSymbol = ( flags & HAS_COEX_GENE_SYMBOL ) != 0 ? in.readUTF() : null;
+                result.add( new CoexpressionValueObject( coexGene, coexGeneSymbol,
+                        ( flags & POSITIVE_CORRELATION ) != 0, queryGene, queryGeneSymbol, support, supportDetailsId,
+                        supportingDatasets, testedInDatasets ) );
+            }
+        } catch ( IOException e ) {
+            throw new RuntimeException( e );
+        }
+        return result;
+    }
+
+    int getNumLinks() {
+        return numLinks;
+    }
+
+    /**
+     * @return the size of the packed links
+     */
+    int getSizeInBytes() {
+        return data.length;
+    }
+
+    private static void writeIds( DataOutput out, CompressedLongSet ids ) throws IOException {
+        writeVarLong( out, ids.size() );
+        long[] previous = { 0L };
+        try {
+            ids.forEachLong( id -> {
+                try {
+                    writeVarLong( out, id - previous[0] );
+                } catch ( IOException e ) {
+                    throw new UncheckedIOException( e );
+                }
+                previous[0] = id;
+            } );
+        } catch ( UncheckedIOException e ) {
+            throw e.getCause();
+        }
+    }
+
+    private static CompressedLongSet readIds( DataInput in ) throws IOException {
+        long[] ids = new long[( int ) readVarLong( in )];
+        long previous = 0L;
+        for ( int k = 0; k < ids.length; k++ ) {
+            previous += readVarLong( in );
+            ids[k] = previous;
+        }
+        return CompressedLongSet.ofSorted( ids );
+    }
+
+    private static void writeVarLong( DataOutput out, long value ) throws IOException {
+        while ( ( value & ~0x7FL ) != 0 ) {
+            out.writeByte( ( int ) ( ( value & 0x7F ) | 0x80 ) );
+            value >>>= 7;
+        }
+        out.writeByte( ( int ) value );
+    }
+
+    private static long readVarLong( DataInput in ) throws IOException {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            value |= ( long ) ( b & 0x7F ) << shift;
+            shift += 7;
+        } while ( ( b & 0x80 ) != 0 );
+        return value;
+    }
+}
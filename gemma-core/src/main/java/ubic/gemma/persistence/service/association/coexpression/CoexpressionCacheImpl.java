@@ -64,17 +64,18 @@ public class CoexpressionCacheImpl implements InitializingBean, CoexpressionCach
 
         assert r != null; // but can be empty, if there is no coexpression.
         assert geneId != null;
-        List<CoexpressionCacheValueObject> forCache = new ArrayList<>();
+        List<CoexpressionValueObject> forCache = new ArrayList<>();
         for ( CoexpressionValueObject g2g : r ) {
             if ( g2g.isFromCache() )
                 continue;
             assert g2g.getNumDatasetsSupporting() > 0;
             if ( g2g.getNumDatasetsSupporting() < CoexpressionCache.CACHE_QUERY_STRINGENCY )
                 continue;
-            forCache.add( new CoexpressionCacheValueObject( g2g ) );
+            forCache.add( g2g );
         }
+        CoexpressionCacheEntry entry = CoexpressionCacheEntry.encode( geneId, forCache );
         synchronized ( cache ) {
-            this.cache.put( geneId, forCache );
+            this.cache.put( geneId, entry );
         }
     }
 
@@ -106,26 +107,26 @@ public class CoexpressionCacheImpl implements InitializingBean, CoexpressionCach
         }
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public List<CoexpressionValueObject> get( Long geneId ) {
         if ( !this.enabled.get() )
             return null;
 
+        CoexpressionCacheEntry entry;
         synchronized ( cache ) {
             Cache.ValueWrapper element = this.cache.get( geneId );
             if ( element == null )
                 return null;
-            List<CoexpressionValueObject> result = new ArrayList<>();
+            entry = ( CoexpressionCacheEntry ) element.get();
+        }
 
-            for ( CoexpressionCacheValueObject co : ( List<CoexpressionCacheValueObject> ) element.get() ) {
-                CoexpressionValueObject vo = co.toModifiable();
-                vo.setFromCache( true );
-                assert vo.getNumDatasetsSupporting() > 0;
-                result.add( vo );
-            }
-            return result;
+        // entries are immutable, so they can be decoded outside the lock
+        List<CoexpressionValueObject> result = entry.decode( geneId );
+        for ( CoexpressionValueObject vo : result ) {
+            vo.setFromCache( true );
+            assert vo.getNumDatasetsSupporting() > 0;
         }
+        return result;
     }
 
     @Override
@@ -126,6 +126,16 @@ public interface CoexpressionDao {
      */
     int queryAndCache( Gene gene );
 
+    /**
+     * Fetch and cache the coexpression of several genes with a single query. Genes that are already in the cache are
+     * skipped.
+     *
+     * @param taxon   taxon of all the genes
+     * @param geneIds IDs of the genes
+     * @return number of links that were cached, or -1 if all the genes were already in the cache
+     */
+    int queryAndCache( Taxon taxon, Collection<Long> geneIds );
+
     Map<SupportDetails, Gene2GeneCoexpression> initializeFromOldData( Gene gene, Map<Long, Gene> geneIdMap,
             Map<NonPersistentNonOrderedCoexpLink, SupportDetails> linksSoFar, Set<Long> skipGenes );
 
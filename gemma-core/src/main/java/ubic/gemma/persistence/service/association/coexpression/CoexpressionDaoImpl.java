@@ -90,6 +90,11 @@ public class CoexpressionDaoImpl implements CoexpressionDao {
      */
     private static final int MIN_GENES_FOR_DATASET_FIRST_QUERY = 10;
     private static final int BATCH_SIZE = 2048;
+    /**
+     * Experiments with at least this many links have their experiment-level links and the support of the flipped
+     * gene-level links written with JDBC batches instead of through the session.
+     */
+    private static final int MIN_LINKS_FOR_BULK_WRITE = 10000;
     private static final int BATCH_SIZE_SMALL = 8;
     private static final Log log = LogFactory.getLog( CoexpressionDaoImpl.class );
     /**
@@ -183,6 +188,10 @@ public class CoexpressionDaoImpl implements CoexpressionDao {
         int progress = 0;
         int BATCH_SIZE = 1024; // make a multiple of jdbc batch size...
 
+        // for large experiments, bypass the session for the bulk of the writes
+        CoexpressionLinkBulkWriter bulkWriter = links.size() >= CoexpressionDaoImpl.MIN_LINKS_FOR_BULK_WRITE ?
+                new CoexpressionLinkBulkWriter( sess, gene.getTaxon(), BATCH_SIZE ) : null;
+
         Map<SupportDetails, Gene2GeneCoexpression> batchToCreate = new LinkedHashMap<>();
         List<Gene2GeneCoexpression> newFlippedLinks = new ArrayList<>();
         Set<Long> genesWithUpdatedData = new HashSet<>();
@@ -281,13 +290,19 @@ public class CoexpressionDaoImpl implements CoexpressionDao {
                  * just have to update the support value.
                  */
 
-                int numFlippedUpdated = updateFlippedLinkQuery
-                        .setParameter( "s", existingLink.getNumDatasetsSupporting() )
-                        .setParameter( "g2", proposedG2G.getSecondGene() )
-                        .setParameter( "g1", proposedG2G.getFirstGene() )
-                        .setParameter( "po", proposedG2G.isPositiveCorrelation() ? 1 : 0 ).executeUpdate();
-                assert numFlippedUpdated == 1 :
-                        "Flipped link missing for " + proposedG2G + " [" + numFlippedUpdated + "]";
+                if ( bulkWriter != null ) {
+                    bulkWriter.updateFlippedLinkSupport( existingLink.getNumDatasetsSupporting(),
+                            proposedG2G.getSecondGene(), proposedG2G.getFirstGene(),
+                            proposedG2G.isPositiveCorrelation() );
+                } else {
+                    int numFlippedUpdated = updateFlippedLinkQuery
+                            .setParameter( "s", existingLink.getNumDatasetsSupporting() )
+                            .setParameter( "g2", proposedG2G.getSecondGene() )
+                            .setParameter( "g1", proposedG2G.getFirstGene() )
+                            .setParameter( "po", proposedG2G.isPositiveCorrelation() ? 1 : 0 ).executeUpdate();
+                    assert numFlippedUpdated == 1 :
+                            "Flipped link missing for " + proposedG2G + " [" + numFlippedUpdated + "]";
+                }
 
                 numUpdated++;
                 if ( CoexpressionDaoImpl.log.isDebugEnabled() )
@@ -321,6 +336,9 @@ public class CoexpressionDaoImpl implements CoexpressionDao {
 
         // flush the updated ones one last time...
         if ( numUpdated > 0 ) {
+            if ( bulkWriter != null ) {
+                bulkWriter.flush();
+            }
             sess.flush();
             sess.clear();
         }
@@ -359,7 +377,11 @@ public class CoexpressionDaoImpl implements CoexpressionDao {
          */
         CoexpressionDaoImpl.log
                 .info( "Saving " + linkIds.size() + " experiment-level links (plus flipped versions) ..." );
-        this.saveExperimentLevelLinks( sess, c, linkIds, bioAssaySet );
+        if ( bulkWriter != null ) {
+            bulkWriter.insertExperimentLevelLinks( c, linkIds, bioAssaySet );
+        } else {
+            this.saveExperimentLevelLinks( sess, c, linkIds, bioAssaySet );
+        }
 
         if ( genesTested != null )
             this.updatedTestedIn( bioAssaySet, genesTested );
@@ -712,6 +734,37 @@ public class CoexpressionDaoImpl implements CoexpressionDao {
         return results.size();
     }
 
+    @Override
+    public int queryAndCache( Taxon taxon, Collection<Long> geneIds ) {
+        Collection<Long> toQuery = new HashSet<>();
+        for ( Long geneId : geneIds ) {
+            if ( gene2GeneCoexpressionCache.get( geneId ) == null ) {
+                toQuery.add( geneId );
+            }
+        }
+
+        if ( toQuery.isEmpty() ) {
+            // already in the cache.
+            return -1;
+        }
+
+        CoexpressionDaoImpl.log.debug( "Fetching data for " + toQuery.size() + " genes for cache" );
+        Map<Long, List<CoexpressionValueObject>> rr = this
+                .getCoexpressionFromDbViaGenes2( toQuery, taxon, CoexpressionCache.CACHE_QUERY_STRINGENCY, true );
+
+        int numCached = 0;
+        for ( Long geneId : toQuery ) {
+            List<CoexpressionValueObject> results = rr.get( geneId );
+            if ( results == null ) {
+                // it is necessary to avoid searching again when there are no results.
+                results = new ArrayList<>();
+            }
+            gene2GeneCoexpressionCache.cacheCoexpression( geneId, results );
+            numCached += results.size();
+        }
+        return numCached;
+    }
+
     /*
      * This assumes that we're going to do this for all genes, so we get links in both directions eventually. We don't
      * have to explicitly make the flipped linSks here.
@@ -1033,92 +1086,32 @@ public class CoexpressionDaoImpl implements CoexpressionDao {
         return genesNeeded;
     }
 
-    private Map<Long, List<CoexpressionValueObject>> convertToValueObjects( List<Object[]> rawResults,
-            List<Object[]> supportDetails, Collection<Long> geneIds ) {
-
-        int removed = 0;
-        Set<NonPersistentNonOrderedCoexpLink> allSeen = new HashSet<>( rawResults.size() );
+    /**
+     * Remove duplicates and store the raw results in a columnar table, from which value objects can be created for the
+     * links that are retained.
+     */
+    private CoexpressionLinkTable convertToLinkTable( List<Object[]> rawResults, List<Object[]> supportDetails,
+            Collection<Long> geneIds ) {
 
         // unwrap the supportDetails into a map.
-        Map<Long, Set<Long>> supportDetailsLists = null;
+        Map<Long, CompressedLongSet> supportDetailsLists = null;
         if ( supportDetails != null ) {
             supportDetailsLists = new HashMap<>();
             for ( Object[] oa : supportDetails ) {
                 Long id = ( ( BigInteger ) oa[0] ).longValue();
                 byte[] data = ( byte[] ) oa[1];
                 IdArrayValueObject vo = new IdArrayValueObject( data );
-                supportDetailsLists.put( id, vo.getIdsSet() );
+                supportDetailsLists.put( id, CompressedLongSet.ofSorted( vo.getIdsArray() ) );
             }
         }
 
-        StopWatch timer = new StopWatch();
-        timer.start();
-
-        Map<Long, List<CoexpressionValueObject>> results = new HashMap<>();
-        int numUnsupported = 0;
-        int n = 0;
-        for ( Object[] oa : rawResults ) {
-            Long id = ( ( BigInteger ) oa[0] ).longValue();
-            Boolean pos = ( byte ) oa[1] > 0;
-            Integer support = ( Integer ) oa[2];
-            Long queryGeneId = ( ( BigInteger ) oa[3] ).longValue();
-            Long secondGene = ( ( BigInteger ) oa[4] ).longValue();
-            Long supportDetailsId = ( ( BigInteger ) oa[5] ).longValue();
-
-            if ( support == 0 ) {
-                throw new IllegalArgumentException( "Links should not be unsupported: " + id );
-            }
+        CoexpressionLinkTable table = CoexpressionLinkTable.fromRawResults( rawResults, supportDetailsLists, geneIds );
 
-            NonPersistentNonOrderedCoexpLink seen = new NonPersistentNonOrderedCoexpLink( queryGeneId, secondGene,
-                    pos );
-
-            /*
-             * remove duplicates, since each link can be here twice (x->y and y->x). (can happen.)
-             */
-            if ( allSeen.contains( seen ) ) {
-                ++removed;
-                continue;
-            }
-
-            allSeen.add( seen );
-
-            if ( !results.containsKey( queryGeneId ) ) {
-                results.put( queryGeneId, new ArrayList<CoexpressionValueObject>() );
-            }
-
-            CoexpressionValueObject g2gvo = new CoexpressionValueObject( queryGeneId, secondGene, pos, support,
-                    supportDetailsId,
-                    supportDetailsLists == null ? null : supportDetailsLists.get( supportDetailsId ) );
-
-            assert g2gvo.getNumDatasetsSupporting() > 0;
-
-            results.get( queryGeneId ).add( g2gvo );
-
-            if ( geneIds != null && geneIds.contains( g2gvo.getCoexGeneId() ) ) {
-                g2gvo.setInterQueryLink( true );
-            }
-
-            if ( ++n % 1000 == 0 && timer.getTime() > 1000 ) {
-                CoexpressionDaoImpl.log.debug( "Process " + n + " coexpressions: " + timer.getTime() + "ms" );
-                n = 0;
-                timer.reset();
-                timer.start();
-            }
-
-        }
-
-        if ( removed > 0 )
-            CoexpressionDaoImpl.log
-                    .debug( "Removed " + removed + " duplicate links while converting to value objects" );
-        //noinspection ConstantConditions // Can change
-        if ( numUnsupported > 0 )
-            CoexpressionDaoImpl.log.info( "Removed " + numUnsupported + " links that had support of zero." );
-
-        if ( results.isEmpty() )
-            throw new IllegalStateException( "Removed everything! (of " + rawResults.size() + " results)" );
-
-        return results;
+        if ( table.getNumDuplicates() > 0 )
+            CoexpressionDaoImpl.log.debug( "Removed " + table.getNumDuplicates()
+                    + " duplicate links while converting to value objects" );
 
+        return table;
     }
 
     /**
@@ -1362,7 +1355,7 @@ public class CoexpressionDaoImpl implements CoexpressionDao {
                 CoexpressionDaoImpl.log.info( "Query in gene-first mode for " + genes.size() + " genes, " + bas.size()
                         + " datasets specified, stringency=" + stringency );
             }
-            results = this.getCoexpressionFromCacheOrDbViaGenes( t, genes, stringency, quick );
+            results = this.getCoexpressionFromCacheOrDbViaGenes( t, genes, stringency, quick, bas, maxResults );
 
         } else {
             throw new IllegalArgumentException(
@@ -1459,7 +1452,7 @@ public class CoexpressionDaoImpl implements CoexpressionDao {
      * @return map of gene ids to ranked list of coexpression value objects, which will still need to be trimmed.
      */
     private Map<Long, List<CoexpressionValueObject>> getCoexpressionFromCacheOrDbViaGenes( Taxon t,
-            Collection<Long> genes, int stringency, boolean quick ) {
+            Collection<Long> genes, int stringency, boolean quick, Collection<Long> bas, int maxResults ) {
 
         Map<Long, List<CoexpressionValueObject>> finalResult = new HashMap<>();
 
@@ -1485,16 +1478,20 @@ public class CoexpressionDaoImpl implements CoexpressionDao {
         BatchIterator<Long> geneIdsIt = new BatchIterator<>( genesNeeded, CHUNK_SIZE );
         int total = 0;
 
+        // we should not cache unless everything is populated; if we don't cache, only the links that will survive
+        // trimming need to be converted to value objects.
+        boolean cacheResults = stringency <= CoexpressionCache.CACHE_QUERY_STRINGENCY && !quick;
+        CompressedLongSet basSet = cacheResults ? null : CompressedLongSet.copyOf( bas );
+
         for ( ; geneIdsIt.hasNext(); ) {
             StopWatch innertimer = new StopWatch();
             innertimer.start();
             Collection<Long> batch = geneIdsIt.next();
 
             Map<Long, List<CoexpressionValueObject>> rr = this
-                    .getCoexpressionFromDbViaGenes2( batch, t, stringency, !quick );
+                    .getCoexpressionFromDbViaGenes2( batch, t, stringency, !quick, basSet, maxResults );
 
-            // we should not cache unless everything is populated
-            if ( !rr.isEmpty() && stringency <= CoexpressionCache.CACHE_QUERY_STRINGENCY && !quick ) {
+            if ( !rr.isEmpty() && cacheResults ) {
                 gene2GeneCoexpressionCache.cacheCoexpression( rr );
             }
 
@@ -1605,6 +1602,16 @@ public class CoexpressionDaoImpl implements CoexpressionDao {
      */
     private Map<Long, List<CoexpressionValueObject>> getCoexpressionFromDbViaGenes2( Collection<Long> geneIds, Taxon t,
             int stringency, boolean populateTestedInDetails ) {
+        return this.getCoexpressionFromDbViaGenes2( geneIds, t, stringency, populateTestedInDetails, null, 0 );
+    }
+
+    /**
+     * @param bas        if non-null, only the links that would be retained by {@link #trimAndFinishResults} with these
+     *                   datasets are returned; they are not trimmed yet.
+     * @param maxResults maximum number of results per gene, only used if bas is non-null
+     */
+    private Map<Long, List<CoexpressionValueObject>> getCoexpressionFromDbViaGenes2( Collection<Long> geneIds, Taxon t,
+            int stringency, boolean populateTestedInDetails, @Nullable CompressedLongSet bas, int maxResults ) {
 
         StopWatch timer = new StopWatch();
         timer.start();
@@ -1668,20 +1675,21 @@ public class CoexpressionDaoImpl implements CoexpressionDao {
         timer.reset();
         timer.start();
         // it might be better to do this in the loop above, incrementally per batch.
-        Map<Long, List<CoexpressionValueObject>> results = this
-                .convertToValueObjects( q1results, supportDetails, geneIds );
+        CoexpressionLinkTable table = this.convertToLinkTable( q1results, supportDetails, geneIds );
+        int[] rows = bas != null ? table.select( stringency, bas, maxResults ) : table.all();
+        // already sorted by decreasing support
+        Map<Long, List<CoexpressionValueObject>> results = table.toValueObjects( rows );
         if ( timer.getTime() > 100 ) {
             CoexpressionDaoImpl.log
-                    .info( "Convert to value objects " + q1results.size() + " results: " + timer.getTime() + "ms" );
+                    .info( "Convert to value objects " + rows.length + "/" + q1results.size() + " results: "
+                            + timer.getTime() + "ms" );
         }
 
         timer.reset();
         timer.start();
 
-        for ( Long g : results.keySet() ) {
-            List<CoexpressionValueObject> gc = results.get( g );
-            Collections.sort( gc );
-            if ( populateTestedInDetails ) {
+        if ( populateTestedInDetails ) {
+            for ( List<CoexpressionValueObject> gc : results.values() ) {
                 this.populateTestedInDetails( gc );
             }
         }
@@ -1984,7 +1992,8 @@ public class CoexpressionDaoImpl implements CoexpressionDao {
         timer.reset();
         timer.start();
 
-        // copy it into the g2g value objects.
+        // copy it into the g2g value objects; each gene's bitmap is converted once and reused for all its links.
+        Map<Long, CompressedLongSet> testedInSets = new HashMap<>();
         for ( CoexpressionValueObject g2g : g2gLinks ) {
             assert g2g.getNumDatasetsSupporting() > 0 : g2g + " has support less than 1";
 
@@ -2004,7 +2013,10 @@ public class CoexpressionDaoImpl implements CoexpressionDao {
                         .join( geneCoexpressionTestedIn2.getIds(), "," ) );
             }
 
-            Set<Long> testedIn = geneCoexpressionTestedIn1.andSet( geneCoexpressionTestedIn2 );
+            CompressedLongSet testedIn = testedInSets
+                    .computeIfAbsent( id1, k -> CompressedLongSet.ofSorted( geneCoexpressionTestedIn1.getIdsArray() ) )
+                    .and( testedInSets.computeIfAbsent( id2,
+                            k -> CompressedLongSet.ofSorted( geneCoexpressionTestedIn2.getIdsArray() ) ) );
 
             if ( testedIn.isEmpty() ) {
                 throw new IllegalStateException( g2g + ": had no data sets tested in: " + StringUtils
@@ -2276,6 +2288,7 @@ public class CoexpressionDaoImpl implements CoexpressionDao {
         assert stringency > 0;
         assert !bas.isEmpty();
 
+        CompressedLongSet basSet = CompressedLongSet.copyOf( bas );
         Set<Long> toRemove = new HashSet<>();
         for ( Long g : results.keySet() ) {
             /*
@@ -2287,7 +2300,7 @@ public class CoexpressionDaoImpl implements CoexpressionDao {
             for ( Iterator<CoexpressionValueObject> it = results.get( g ).iterator(); it.hasNext(); ) {
                 CoexpressionValueObject g2g = it.next();
 
-                if ( g2g.getNumDatasetsSupporting() < stringency || !g2g.trimDatasets( bas, stringency ) ) {
+                if ( g2g.getNumDatasetsSupporting() < stringency || !g2g.trimDatasets( basSet, stringency ) ) {
                     it.remove();
                 } else if ( maxResults > 0 && kept >= maxResults && !g2g.isInterQueryLink() ) {
                     // only keep up to maxResults, but always keep inter-query links.
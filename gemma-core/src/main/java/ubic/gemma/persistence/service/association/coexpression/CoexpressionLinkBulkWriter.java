@@ -0,0 +1,243 @@
+package ubic.gemma.persistence.service.association.coexpression;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.persister.entity.EntityPersister;
+import ubic.gemma.model.association.coexpression.ExperimentCoexpressionLink;
+import ubic.gemma.model.expression.experiment.BioAssaySet;
+import ubic.gemma.model.genome.Taxon;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.stream.IntStream;
+
+/**
+ * Writes coexpression links for a large experiment directly with JDBC, bypassing the session.
+ * <p>
+ * Experiment-level links are staged in primitive arrays and inserted with multi-row statements, and updates to the
+ * support of flipped gene-level links are queued and sent as JDBC batches. The statements are plain SQL that work with
+ * both MySQL and H2. Identifiers are still drawn from the Hibernate generator of the entity, so the rows are
+ * indistinguishable from those saved through the session.
+ */
+class CoexpressionLinkBulkWriter {
+
+    private static final Log log = LogFactory.getLog( CoexpressionLinkBulkWriter.class );
+
+    /**
+     * Number of rows in a single multi-row insert statement.
+     */
+    private static final int ROWS_PER_INSERT = 256;
+
+    /**
+     * Number of statements sent in one JDBC batch.
+     */
+    private static final int STATEMENTS_PER_BATCH = 16;
+
+    private final Session session;
+    private final Taxon taxon;
+
+    /*
+     * Queued updates of the support of flipped gene-level links
+     */
+    private final int[] pendingSupport;
+    private final long[] pendingFirstGenes;
+    private final long[] pendingSecondGenes;
+    private final boolean[] pendingPositive;
+    private int numPending = 0;
+
+    /**
+     * @param session   session whose connection and transaction are used
+     * @param taxon     taxon, which determines the tables that are written to
+     * @param batchSize number of flipped link updates queued before they are sent to the database
+     */
+    CoexpressionLinkBulkWriter( Session session, Taxon taxon, int batchSize ) {
+        this.session = session;
+        this.taxon = taxon;
+        this.pendingSupport = new int[batchSize];
+        this.pendingFirstGenes = new long[batchSize];
+        this.pendingSecondGenes = new long[batchSize];
+        this.pendingPositive = new boolean[batchSize];
+    }
+
+    /**
+     * Queue an update of the support of the flipped version of an existing gene-level link. Queued updates are sent
+     * when the queue is full or {@link #flush()} is called.
+     *
+     * @param support    new support
+     * @param firstGene  first gene of the flipped link
+     * @param secondGene second gene of the flipped link
+     * @param positive   sign of the correlation
+     */
+    void updateFlippedLinkSupport( int support, long firstGene, long secondGene, boolean positive ) {
+        pendingSupport[numPending] = support;
+        pendingFirstGenes[numPending] = firstGene;
+        pendingSecondGenes[numPending] = secondGene;
+        pendingPositive[numPending] = positive;
+        if ( ++numPending == pendingSupport.length ) {
+            this.flush();
+        }
+    }
+
+    /**
+     * Send the queued updates of flipped gene-level links.
+     */
+    void flush() {
+        if ( numPending == 0 ) {
+            return;
+        }
+        String sql = "UPDATE " + CoexpressionQueryUtils.getGeneLinkTableName( taxon )
+                + " SET SUPPORT=? WHERE FIRST_GENE_FK=? AND SECOND_GENE_FK=? AND POSITIVE=?";
+        session.doWork( con -> {
+            try ( PreparedStatement stmt = con.prepareStatement( sql ) ) {
+                for ( int i = 0; i < numPending; i++ ) {
+                    stmt.setInt( 1, pendingSupport[i] );
+                    stmt.setLong( 2, pendingFirstGenes[i] );
+                    stmt.setLong( 3, pendingSecondGenes[i] );
+                    stmt.setInt( 4, pendingPositive[i] ? 1 : 0 );
+                    stmt.addBatch();
+                }
+                int[] counts = stmt.executeBatch();
+                for ( int i = 0; i < counts.length; i++ ) {
+                    if ( counts[i] != 1 && counts[i] != Statement.SUCCESS_NO_INFO ) {
+                        throw new IllegalStateException( "Flipped link missing for " + pendingSecondGenes[i] + " -> "
+                                + pendingFirstGenes[i] + " [" + counts[i] + "]" );
+                    }
+                }
+            }
+        } );
+        numPending = 0;
+    }
+
+    /**
+     * Save the experiment-level links, and their flipped versions, which share the same link ID. The links are
+     * inserted in order of link ID, followed by the flipped versions ordered by their first gene.
+     *
+     * @param c           to obtain the entity for the taxon
+     * @param links       gene-level link IDs and the corresponding links
+     * @param bioAssaySet experiment the links are for
+     * @return the number of rows inserted
+     */
+    int insertExperimentLevelLinks( LinkCreator c, SortedMap<Long, NonPersistentNonOrderedCoexpLink> links,
+            BioAssaySet bioAssaySet ) {
+        int n = links.size();
+        if ( n == 0 ) {
+            return 0;
+        }
+
+        long[] linkIds = new long[n];
+        long[] firstGenes = new long[n];
+        long[] secondGenes = new long[n];
+        int i = 0;
+        for ( Map.Entry<Long, NonPersistentNonOrderedCoexpLink> e : links.entrySet() ) {
+            linkIds[i] = e.getKey();
+            firstGenes[i] = e.getValue().getFirstGene();
+            secondGenes[i] = e.getValue().getSecondGene();
+            i++;
+        }
+        int[] forward = IntStream.range( 0, n ).toArray();
+        // the sort is stable, so links keep the order of their ID within a gene
+        int[] flipped = IntStream.range( 0, n ).boxed()
+                .sorted( Comparator.comparingLong( k -> secondGenes[k] ) )
+                .mapToInt( Integer::intValue )
+                .toArray();
+
+        SessionImplementor si = ( SessionImplementor ) session;
+        ExperimentCoexpressionLink prototype = c
+                .createEELink( bioAssaySet, linkIds[0], firstGenes[0], secondGenes[0] );
+        EntityPersister persister = si.getEntityPersister( null, prototype );
+        IdentifierGenerator idGenerator = persister.getIdentifierGenerator();
+        String table = CoexpressionQueryUtils.getExperimentLinkTableName( taxon );
+
+        // anything pending in the session must reach the database first
+        session.flush();
+
+        int[] inserted = new int[1];
+        session.doWork( con -> {
+            inserted[0] += this.insertRows( con, si, idGenerator, prototype, table, bioAssaySet.getId(), linkIds,
+                    firstGenes, secondGenes, forward );
+            CoexpressionLinkBulkWriter.log.info( "Inserted " + n + " experiment-level links..." );
+            inserted[0] += this.insertRows( con, si, idGenerator, prototype, table, bioAssaySet.getId(), linkIds,
+                    secondGenes, firstGenes, flipped );
+            CoexpressionLinkBulkWriter.log.info( "Inserted " + n + " flipped experiment-level links..." );
+        } );
+
+        if ( inserted[0] != 2 * n ) {
+            throw new IllegalStateException(
+                    "Expected to insert " + 2 * n + " experiment-level links, but " + inserted[0] + " were inserted" );
+        }
+        return inserted[0];
+    }
+
+    private int insertRows( Connection con, SessionImplementor si, IdentifierGenerator idGenerator,
+            ExperimentCoexpressionLink prototype, String table, long experimentId, long[] linkIds, long[] gene1,
+            long[] gene2, int[] order ) throws SQLException {
+        int numFull = order.length / ROWS_PER_INSERT;
+        int remainder = order.length % ROWS_PER_INSERT;
+        int inserted = 0;
+        int k = 0;
+        if ( numFull > 0 ) {
+            try ( PreparedStatement stmt = con.prepareStatement( this.insertSql( table, ROWS_PER_INSERT ) ) ) {
+                for ( int s = 0; s < numFull; s++ ) {
+                    k = this.bindRows( stmt, si, idGenerator, prototype, experimentId, linkIds, gene1, gene2, order,
+                            k, ROWS_PER_INSERT );
+                    stmt.addBatch();
+                    if ( ( s + 1 ) % STATEMENTS_PER_BATCH == 0 ) {
+                        inserted += this.countInserted( stmt.executeBatch(), ROWS_PER_INSERT );
+                    }
+                }
+                if ( numFull % STATEMENTS_PER_BATCH != 0 ) {
+                    inserted += this.countInserted( stmt.executeBatch(), ROWS_PER_INSERT );
+                }
+            }
+        }
+        if ( remainder > 0 ) {
+            try ( PreparedStatement stmt = con.prepareStatement( this.insertSql( table, remainder ) ) ) {
+                this.bindRows( stmt, si, idGenerator, prototype, experimentId, linkIds, gene1, gene2, order, k,
+                        remainder );
+                inserted += stmt.executeUpdate();
+            }
+        }
+        return inserted;
+    }
+
+    private int bindRows( PreparedStatement stmt, SessionImplementor si, IdentifierGenerator idGenerator,
+            ExperimentCoexpressionLink prototype, long experimentId, long[] linkIds, long[] gene1, long[] gene2,
+            int[] order, int start, int numRows ) throws SQLException {
+        int p = 1;
+        for ( int k = start; k < start + numRows; k++ ) {
+            int i = order[k];
+            stmt.setLong( p++, ( Long ) idGenerator.generate( si, prototype ) );
+            stmt.setLong( p++, experimentId );
+            stmt.setLong( p++, linkIds[i] );
+            stmt.setLong( p++, gene1[i] );
+            stmt.setLong( p++, gene2[i] );
+        }
+        return start + numRows;
+    }
+
+    private int countInserted( int[] counts, int rowsPerStatement ) {
+        int inserted = 0;
+        for ( int count : counts ) {
+            // some drivers do not report counts for batched statements
+            inserted += count == Statement.SUCCESS_NO_INFO ? rowsPerStatement : count;
+        }
+        return inserted;
+    }
+
+    private String insertSql( String table, int numRows ) {
+        StringBuilder sql = new StringBuilder( "INSERT INTO " ).append( table )
+                .append( " (ID, EXPERIMENT_FK, LINK_FK, GENE1_FK, GENE2_FK) VALUES " );
+        for ( int i = 0; i < numRows; i++ ) {
+            sql.append( i == 0 ? "(?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?)" );
+        }
+        return sql.toString();
+    }
+}
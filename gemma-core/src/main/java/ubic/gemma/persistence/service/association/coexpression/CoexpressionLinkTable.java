@@ -0,0 +1,244 @@
+package ubic.gemma.persistence.service.association.coexpression;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * Raw gene-to-gene coexpression links held in parallel primitive arrays.
+ * <p>
+ * This is used to select the links that satisfy a query (stringency, dataset constraint and maximum number of results
+ * per gene) before creating any {@link CoexpressionValueObject}, so that value objects are only created for the links
+ * that are actually returned.
+ * <p>
+ * Rows are ordered by query gene, in order of first appearance, and then by decreasing support, which is the order
+ * in which results are trimmed and returned.
+ */
+class CoexpressionLinkTable {
+
+    private final int size;
+    private final long[] queryGenes;
+    private final long[] coexGenes;
+    private final int[] support;
+    private final long[] supportDetailsIds;
+    private final BitSet positive;
+    private final BitSet interQuery;
+    /**
+     * Supporting datasets for each row, shared among rows with the same support details; null if not fetched.
+     */
+    @Nullable
+    private final CompressedLongSet[] supportingDatasets;
+    private final int numDuplicates;
+
+    /**
+     * Rows, sorted by query gene and decreasing support.
+     */
+    private final int[] order;
+    /**
+     * Start of each query gene in {@link #order}, with an extra element marking the end.
+     */
+    private final int[] geneOffsets;
+
+    private CoexpressionLinkTable( int size, long[] queryGenes, long[] coexGenes, int[] support,
+            long[] supportDetailsIds, BitSet positive, BitSet interQuery,
+            @Nullable CompressedLongSet[] supportingDatasets, int numDuplicates ) {
+        this.size = size;
+        this.queryGenes = queryGenes;
+        this.coexGenes = coexGenes;
+        this.support = support;
+        this.supportDetailsIds = supportDetailsIds;
+        this.positive = positive;
+        this.interQuery = interQuery;
+        this.supportingDatasets = supportingDatasets;
+        this.numDuplicates = numDuplicates;
+
+        // group rows by query gene, in order of first appearance
+        Map<Long, Integer> geneIndex = new LinkedHashMap<>();
+        int[] rowGene = new int[size];
+        for ( int i = 0; i < size; i++ ) {
+            Integer g = geneIndex.get( queryGenes[i] );
+            if ( g == null ) {
+                g = geneIndex.size();
+                geneIndex.put( queryGenes[i], g );
+            }
+            rowGene[i] = g;
+        }
+        this.geneOffsets = new int[geneIndex.size() + 1];
+        for ( int i = 0; i < size; i++ ) {
+            geneOffsets[rowGene[i] + 1]++;
+        }
+        for ( int g = 0; g < geneIndex.size(); g++ ) {
+            geneOffsets[g + 1] += geneOffsets[g];
+        }
+        long[] keys = new long[size];
+        int[] fill = Arrays.copyOf( geneOffsets, geneIndex.size() );
+        for ( int i = 0; i < size; i++ ) {
+            // the row index breaks ties, which keeps the sort stable
+            keys[fill[rowGene[i]]++] = ( ( long ) ( Integer.MAX_VALUE - support[i] ) << 32 ) | i;
+        }
+        this.order = new int[size];
+        for ( int g = 0; g < geneIndex.size(); g++ ) {
+            Arrays.sort( keys, geneOffsets[g], geneOffsets[g + 1] );
+        }
+        for ( int k = 0; k < size; k++ ) {
+            order[k] = ( int ) ( keys[k] & 0xFFFFFFFFL );
+        }
+    }
+
+    /**
+     * Remove duplicates and store the raw results. Links are marked as "interQuery" if the geneIds is non-null and the
+     * link is between two of them.
+     *
+     * @param rawResults     rows of (ID, positive, support, query gene, coexpressed gene, support details ID)
+     * @param supportDetails supporting datasets by support details ID, or null if they were not fetched
+     * @param geneIds        gene IDs used in the query, can be null
+     */
+    static CoexpressionLinkTable fromRawResults( List<Object[]> rawResults,
+            @Nullable Map<Long, CompressedLongSet> supportDetails, @Nullable Collection<Long> geneIds ) {
+        int n = rawResults.size();
+        long[] queryGenes = new long[n];
+        long[] coexGenes = new long[n];
+        int[] support = new int[n];
+        long[] supportDetailsIds = new long[n];
+        BitSet positive = new BitSet( n );
+        BitSet interQuery = new BitSet( n );
+        CompressedLongSet[] supportingDatasets = supportDetails != null ? new CompressedLongSet[n] : null;
+
+        // open-addressing hash of the rows kept so far, to remove duplicates (x->y and y->x)
+        int[] table = new int[Integer.highestOneBit( Math.max( 2 * n, 2 ) - 1 ) << 1];
+        int mask = table.length - 1;
+        int size = 0;
+        int numDuplicates = 0;
+        for ( Object[] oa : rawResults ) {
+            Integer s = ( Integer ) oa[2];
+            if ( s == 0 ) {
+                throw new IllegalArgumentException( "Links should not be unsupported: " + oa[0] );
+            }
+            queryGenes[size] = ( ( BigInteger ) oa[3] ).longValue();
+            coexGenes[size] = ( ( BigInteger ) oa[4] ).longValue();
+            positive.set( size, ( byte ) oa[1] > 0 );
+
+            int slot = hash( queryGenes[size], coexGenes[size], positive.get( size ) ) & mask;
+            boolean duplicate = false;
+            while ( table[slot] != 0 ) {
+                if ( sameLink( table[slot] - 1, size, queryGenes, coexGenes, positive ) ) {
+                    duplicate = true;
+                    break;
+                }
+                slot = ( slot + 1 ) & mask;
+            }
+            if ( duplicate ) {
+                numDuplicates++;
+                continue;
+            }
+            table[slot] = size + 1;
+
+            support[size] = s;
+            supportDetailsIds[size] = ( ( BigInteger ) oa[5] ).longValue();
+            if ( supportingDatasets != null ) {
+                supportingDatasets[size] = supportDetails.get( supportDetailsIds[size] );
+            }
+            if ( geneIds != null && geneIds.contains( coexGenes[size] ) ) {
+                interQuery.set( size );
+            }
+            size++;
+        }
+
+        if ( size == 0 && n > 0 ) {
+            throw new IllegalStateException( "Removed everything! (of " + n + " results)" );
+        }
+
+        return new CoexpressionLinkTable( size, queryGenes, coexGenes, support, supportDetailsIds, positive, interQuery,
+                supportingDatasets, numDuplicates );
+    }
+
+    /**
+     * @return the number of links, after removing duplicates
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of duplicate links that were removed
+     */
+    int getNumDuplicates() {
+        return numDuplicates;
+    }
+
+    /**
+     * @return all the rows, by query gene and decreasing support
+     */
+    int[] all() {
+        return order.clone();
+    }
+
+    /**
+     * Select the links that would be kept by trimming to the given datasets, stringency and maximum number of results
+     * per gene. Inter-query links are always kept if they meet the stringency. Only the number of supporting datasets
+     * in common with the constraint is computed; no set is created.
+     *
+     * @param stringency minimum support, within the given datasets if any
+     * @param bas        datasets to restrict support to, or null
+     * @param maxResults maximum number of results per query gene, or 0 for no limit
+     * @return the selected rows, by query gene and decreasing support
+     */
+    int[] select( int stringency, @Nullable CompressedLongSet bas, int maxResults ) {
+        int[] selected = new int[size];
+        int n = 0;
+        for ( int g = 0; g < geneOffsets.length - 1; g++ ) {
+            int kept = 0;
+            for ( int k = geneOffsets[g]; k < geneOffsets[g + 1]; k++ ) {
+                int i = order[k];
+                if ( support[i] < stringency ) {
+                    continue;
+                }
+                if ( bas != null && supportingDatasets != null && supportingDatasets[i] != null
+                        && supportingDatasets[i].andCardinality( bas ) < stringency ) {
+                    continue;
+                }
+                if ( maxResults > 0 && kept >= maxResults && !interQuery.get( i ) ) {
+                    continue;
+                }
+                selected[n++] = i;
+                kept++;
+            }
+        }
+        return Arrays.copyOf( selected, n );
+    }
+
+    /**
+     * Create value objects for the given rows.
+     *
+     * @param rows rows, as returned by {@link #all()} or {@link #select(int, CompressedLongSet, int)}
+     * @return value objects, organized by query gene, in the order of the rows
+     */
+    Map<Long, List<CoexpressionValueObject>> toValueObjects( int[] rows ) {
+        Map<Long, List<CoexpressionValueObject>> results = new HashMap<>();
+        for ( int i : rows ) {
+            CoexpressionValueObject g2gvo = new CoexpressionValueObject( queryGenes[i], coexGenes[i],
+                    positive.get( i ), support[i], supportDetailsIds[i],
+                    supportingDatasets != null ? supportingDatasets[i] : null );
+            assert g2gvo.getNumDatasetsSupporting() > 0;
+            g2gvo.setInterQueryLink( interQuery.get( i ) );
+            results.computeIfAbsent( queryGenes[i], k -> new ArrayList<>() ).add( g2gvo );
+        }
+        return results;
+    }
+
+    private static int hash( long queryGene, long coexGene, boolean positive ) {
+        long a = Math.min( queryGene, coexGene );
+        long b = Math.max( queryGene, coexGene );
+        long h = a * 0x9E3779B97F4A7C15L + b;
+        h = ( h ^ ( h >>> 29 ) ) * 0xBF58476D1CE4E5B9L;
+        return ( int ) ( h ^ ( h >>> 32 ) ) ^ ( positive ? 1 : 0 );
+    }
+
+    private static boolean sameLink( int i, int j, long[] queryGenes, long[] coexGenes, BitSet positive ) {
+        if ( positive.get( i ) != positive.get( j ) ) {
+            return false;
+        }
+        return ( queryGenes[i] == queryGenes[j] && coexGenes[i] == coexGenes[j] )
+                || ( queryGenes[i] == coexGenes[j] && coexGenes[i] == queryGenes[j] );
+    }
+}
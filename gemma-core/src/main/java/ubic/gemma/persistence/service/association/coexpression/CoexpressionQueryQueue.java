@@ -19,6 +19,7 @@
 
 package ubic.gemma.persistence.service.association.coexpression;
 
+import io.micrometer.core.instrument.binder.MeterBinder;
 import ubic.gemma.model.genome.Gene;
 
 import java.util.Collection;
@@ -26,15 +27,26 @@ import java.util.Collection;
 /**
  * For internal use. A queue of genes lined up for querying so the cache is warmed up. Genes are added to the queue if
  * they were not queried originally in a suitable "unrestricted" way usable across any query for that gene.
+ * <p>
+ * Progress, throughput and queue depth are exposed as metrics.
  *
  * @author Paul
  */
-interface CoexpressionQueryQueue {
+interface CoexpressionQueryQueue extends MeterBinder {
 
+    /**
+     * Queue genes for querying without waiting. Genes that are requested often are queried first, and the least
+     * requested genes are dropped if the queue is full.
+     */
     void addToFullQueryQueue( Collection<Gene> genes );
 
     void addToFullQueryQueue( Gene gene );
 
+    /**
+     * Queue genes by ID, as for {@link #addToFullQueryQueue(Collection)}.
+     */
+    void addToFullQueryQueueByIds( Collection<Long> geneIds );
+
     /**
      * Remove genes from the queue; for example if we know their data is about to become stale.
      *
@@ -19,46 +19,110 @@
 
 package ubic.gemma.persistence.service.association.coexpression;
 
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.apachecommons.CommonsLog;
+import org.apache.commons.lang3.time.StopWatch;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import ubic.gemma.core.util.concurrent.Executors;
+import ubic.gemma.core.util.concurrent.SimpleThreadFactory;
 import ubic.gemma.model.genome.Gene;
+import ubic.gemma.model.genome.Taxon;
 import ubic.gemma.persistence.service.genome.GeneDao;
 
-import java.util.Collection;
-import java.util.Objects;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
 
 /**
+ * Genes are taken from the queue in batches by a pool of workers, and each batch is fetched with one query per taxon.
+ * <p>
+ * Genes that are requested more often are queried first. Callers never wait: when the queue is full, the least
+ * requested gene is dropped, which is either a pending gene or the one being queued.
+ * <p>
+ * Each batch is queried in its own read-only transaction since the workers do not run within a request.
+ *
  * @author Paul
  */
+@Component
 @CommonsLog
 class CoexpressionQueryQueueImpl implements CoexpressionQueryQueue, InitializingBean, DisposableBean {
 
     private static final int QUEUE_SIZE = 1000;
-    private final BlockingQueue<Long> geneQueue = new ArrayBlockingQueue<>(
-            CoexpressionQueryQueueImpl.QUEUE_SIZE );
+    private static final int BATCH_SIZE = 64;
+    /**
+     * Number of genes for which request counts are remembered, to prioritize genes that are queried often.
+     */
+    private static final int MAX_TRACKED_GENES = 10 * QUEUE_SIZE;
+    private static final int MAX_WARNINGS = 5;
 
     private final CoexpressionDao coexpressionDao;
     private final GeneDao geneDao;
+    private final TransactionTemplate transactionTemplate;
+    private final int numWorkers;
+
+    /**
+     * Guards {@link #pending}, {@link #queue} and {@link #requestCounts}.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Map<Long, PendingGene> pending = new HashMap<>();
+    private final TreeSet<PendingGene> queue = new TreeSet<>( Comparator
+            .comparingInt( ( PendingGene p ) -> -p.numRequests )
+            .thenComparingLong( p -> p.sequence ) );
+    private final Map<Long, Integer> requestCounts = new LinkedHashMap<Long, Integer>( 16, 0.75f, true ) {
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<Long, Integer> eldest ) {
+            return size() > MAX_TRACKED_GENES;
+        }
+    };
+    private long sequence = 0;
 
-    private final ExecutorService queryCacheExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService queryCacheExecutor;
 
-    public CoexpressionQueryQueueImpl( CoexpressionDao coexpressionDao, GeneDao geneDao ) {
+    // metrics
+    private final AtomicLong numGenesQueued = new AtomicLong();
+    private final AtomicLong numGenesDropped = new AtomicLong();
+    private final AtomicLong numGenesProcessed = new AtomicLong();
+    private final AtomicLong numLinksCached = new AtomicLong();
+    private final AtomicLong numBatches = new AtomicLong();
+    private final AtomicLong batchTimeMs = new AtomicLong();
+    private final AtomicInteger numActiveWorkers = new AtomicInteger();
+    private final AtomicInteger numWarnings = new AtomicInteger();
+
+    @Autowired
+    public CoexpressionQueryQueueImpl( CoexpressionDao coexpressionDao, GeneDao geneDao,
+            PlatformTransactionManager transactionManager,
+            @Value("${gemma.coexpressionCacheWarmer.numberOfThreads}") int numWorkers ) {
+        if ( numWorkers < 1 ) {
+            throw new IllegalArgumentException( "The number of workers must be at least 1." );
+        }
         this.coexpressionDao = coexpressionDao;
         this.geneDao = geneDao;
+        this.transactionTemplate = new TransactionTemplate( transactionManager );
+        this.transactionTemplate.setReadOnly( true );
+        this.numWorkers = numWorkers;
+        this.queryCacheExecutor = Executors.newFixedThreadPool( numWorkers,
+                new SimpleThreadFactory( "gemma-coexpression-cache-warmer-thread-" ) );
     }
 
     @Override
     public void addToFullQueryQueue( Collection<Gene> genes ) {
         for ( Gene gene : genes ) {
-            if ( !this.addToFullQueryQueue( gene.getId() ) ) {
-                break;
-            }
+            this.addToFullQueryQueue( gene.getId() );
         }
     }
 
@@ -67,12 +131,27 @@ class CoexpressionQueryQueueImpl implements CoexpressionQueryQueue, Initializing
         this.addToFullQueryQueue( gene.getId() );
     }
 
+    @Override
+    public void addToFullQueryQueueByIds( Collection<Long> geneIds ) {
+        for ( Long geneId : geneIds ) {
+            this.addToFullQueryQueue( geneId );
+        }
+    }
+
     @Override
     public void removeFromQueue( Collection<Gene> genes ) {
         int count = 0;
-        for ( Gene gene : genes ) {
-            if ( geneQueue.remove( gene.getId() ) )
-                count++;
+        lock.lock();
+        try {
+            for ( Gene gene : genes ) {
+                PendingGene p = pending.remove( gene.getId() );
+                if ( p != null ) {
+                    queue.remove( p );
+                    count++;
+                }
+            }
+        } finally {
+            lock.unlock();
         }
 
         if ( count > 0 ) {
@@ -82,37 +161,9 @@ class CoexpressionQueryQueueImpl implements CoexpressionQueryQueue, Initializing
 
     @Override
     public void afterPropertiesSet() throws Exception {
-        queryCacheExecutor.submit( new Runnable() {
-
-            private static final int MAX_WARNINGS = 5;
-
-            @Override
-            public void run() {
-                int numWarnings = 0;
-                while ( true ) {
-                    Long gene;
-                    try {
-                        gene = geneQueue.poll( 1000, TimeUnit.MILLISECONDS );
-                        if ( gene != null ) {
-                            CoexpressionQueryQueueImpl.this.queryForCache( gene );
-                        }
-                    } catch ( InterruptedException e ) {
-                        Thread.currentThread().interrupt();
-                        log.warn( "Coexpression query cache was interrupted." );
-                        break;
-                    } catch ( Exception e ) {
-                        // can happen during tests
-                        if ( numWarnings < MAX_WARNINGS ) {
-                            CoexpressionQueryQueueImpl.log
-                                    .error( "Error while caching coexpression: " + e.getMessage() );
-                        } else if ( numWarnings == MAX_WARNINGS ) {
-                            CoexpressionQueryQueueImpl.log.error( "Further warnings suppressed" );
-                        }
-                        numWarnings++;
-                    }
-                }
-            }
-        } );
+        for ( int i = 0; i < numWorkers; i++ ) {
+            queryCacheExecutor.submit( this::warmCache );
+        }
     }
 
     @Override
@@ -121,29 +172,168 @@ class CoexpressionQueryQueueImpl implements CoexpressionQueryQueue, Initializing
         queryCacheExecutor.shutdownNow();
     }
 
-    private void queryForCache( Long geneId ) {
-        Gene g = Objects.requireNonNull( geneDao.load( geneId ),
-                String.format( "No Gene with ID %d.", geneId ) );
-        int numCached = coexpressionDao.queryAndCache( g );
-        //noinspection StatementWithEmptyBody // Better readability
-        if ( numCached < 0 ) {
-            // it was already in the cache
-        } else if ( numCached > 0 ) {
-            CoexpressionQueryQueueImpl.log.debug( "Cached " + numCached + " coexpression links at stringency="
-                    + CoexpressionCache.CACHE_QUERY_STRINGENCY + " for " + geneId );
-        } else {
-            CoexpressionQueryQueueImpl.log
-                    .debug( "No coexpression links to cache at stringency=" + CoexpressionCache.CACHE_QUERY_STRINGENCY
-                            + " for " + geneId );
+    @Override
+    public void bindTo( MeterRegistry registry ) {
+        Gauge.builder( "coexpressionCacheWarmer.queueSize", this, CoexpressionQueryQueueImpl::getQueueSize )
+                .description( "Number of genes waiting to be queried" )
+                .register( registry );
+        Gauge.builder( "coexpressionCacheWarmer.activeWorkers", numActiveWorkers, AtomicInteger::get )
+                .description( "Number of workers currently querying a batch of genes" )
+                .register( registry );
+        FunctionCounter.builder( "coexpressionCacheWarmer.genesQueued", numGenesQueued, AtomicLong::get )
+                .description( "Number of genes added to the queue" )
+                .register( registry );
+        FunctionCounter.builder( "coexpressionCacheWarmer.genesDropped", numGenesDropped, AtomicLong::get )
+                .description( "Number of genes dropped because the queue was full" )
+                .register( registry );
+        FunctionCounter.builder( "coexpressionCacheWarmer.genesProcessed", numGenesProcessed, AtomicLong::get )
+                .description( "Number of genes taken from the queue and queried" )
+                .register( registry );
+        FunctionCounter.builder( "coexpressionCacheWarmer.linksCached", numLinksCached, AtomicLong::get )
+                .description( "Number of coexpression links added to the cache" )
+                .register( registry );
+        FunctionTimer.builder( "coexpressionCacheWarmer.batches", this, q -> q.numBatches.get(),
+                        q -> q.batchTimeMs.get(), TimeUnit.MILLISECONDS )
+                .description( "Time spent querying batches of genes" )
+                .register( registry );
+    }
+
+    private int getQueueSize() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
         }
     }
 
-    private boolean addToFullQueryQueue( Long geneId ) {
-        if ( this.geneQueue.offer( geneId ) ) {
+    private void warmCache() {
+        while ( true ) {
+            List<Long> batch;
+            try {
+                batch = this.takeBatch();
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                log.warn( "Coexpression query cache was interrupted." );
+                break;
+            }
+            numActiveWorkers.incrementAndGet();
+            StopWatch timer = StopWatch.createStarted();
+            try {
+                transactionTemplate.execute( status -> {
+                    this.queryForCache( batch );
+                    return null;
+                } );
+            } catch ( Exception e ) {
+                // can happen during tests
+                int n = numWarnings.getAndIncrement();
+                if ( n < MAX_WARNINGS ) {
+                    CoexpressionQueryQueueImpl.log.error( "Error while caching coexpression: " + e.getMessage() );
+                } else if ( n == MAX_WARNINGS ) {
+                    CoexpressionQueryQueueImpl.log.error( "Further warnings suppressed" );
+                }
+            } finally {
+                numActiveWorkers.decrementAndGet();
+                numGenesProcessed.addAndGet( batch.size() );
+                numBatches.incrementAndGet();
+                batchTimeMs.addAndGet( timer.getTime() );
+            }
+        }
+    }
+
+    /**
+     * Wait for genes to be queued and take up to {@link #BATCH_SIZE} of them, most requested first.
+     */
+    private List<Long> takeBatch() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while ( queue.isEmpty() ) {
+                notEmpty.await();
+            }
+            List<Long> batch = new ArrayList<>( Math.min( queue.size(), BATCH_SIZE ) );
+            while ( batch.size() < BATCH_SIZE && !queue.isEmpty() ) {
+                PendingGene p = queue.pollFirst();
+                pending.remove( p.geneId );
+                batch.add( p.geneId );
+            }
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void queryForCache( List<Long> geneIds ) {
+        Collection<Gene> genes = geneDao.load( geneIds );
+        if ( genes.size() < geneIds.size() ) {
+            CoexpressionQueryQueueImpl.log.warn( ( geneIds.size() - genes.size() ) + " queued genes no longer exist." );
+        }
+        Map<Taxon, List<Long>> genesByTaxon = genes.stream()
+                .collect( Collectors.groupingBy( Gene::getTaxon, Collectors.mapping( Gene::getId, Collectors.toList() ) ) );
+        for ( Map.Entry<Taxon, List<Long>> e : genesByTaxon.entrySet() ) {
+            int numCached = coexpressionDao.queryAndCache( e.getKey(), e.getValue() );
+            //noinspection StatementWithEmptyBody // Better readability
+            if ( numCached < 0 ) {
+                // they were already in the cache
+            } else if ( numCached > 0 ) {
+                numLinksCached.addAndGet( numCached );
+                CoexpressionQueryQueueImpl.log.debug( "Cached " + numCached + " coexpression links at stringency="
+                        + CoexpressionCache.CACHE_QUERY_STRINGENCY + " for " + e.getValue().size() + " genes" );
+            } else {
+                CoexpressionQueryQueueImpl.log.debug(
+                        "No coexpression links to cache at stringency=" + CoexpressionCache.CACHE_QUERY_STRINGENCY
+                                + " for " + e.getValue().size() + " genes" );
+            }
+        }
+    }
+
+    /**
+     * Queue a gene without waiting, dropping the least requested gene if the queue is full.
+     */
+    private void addToFullQueryQueue( Long geneId ) {
+        lock.lock();
+        try {
+            int numRequests = requestCounts.merge( geneId, 1, Integer::sum );
+            PendingGene p = pending.get( geneId );
+            if ( p != null ) {
+                // already queued, move it forward
+                queue.remove( p );
+                p.numRequests = numRequests;
+                queue.add( p );
+                return;
+            }
+            if ( queue.size() >= QUEUE_SIZE ) {
+                PendingGene last = queue.last();
+                if ( last.numRequests >= numRequests ) {
+                    numGenesDropped.incrementAndGet();
+                    CoexpressionQueryQueueImpl.log.debug( "Queue is full, not queuing gene=" + geneId + " for cache warm" );
+                    return;
+                }
+                queue.pollLast();
+                pending.remove( last.geneId );
+                numGenesDropped.incrementAndGet();
+                CoexpressionQueryQueueImpl.log.debug( "Queue is full, dropped gene=" + last.geneId + " in favour of gene=" + geneId );
+            }
+            p = new PendingGene( geneId, numRequests, sequence++ );
+            pending.put( geneId, p );
+            queue.add( p );
+            numGenesQueued.incrementAndGet();
+            notEmpty.signal();
             CoexpressionQueryQueueImpl.log.debug( "Queuing gene=" + geneId + " for cache warm" );
-        } else {
-            CoexpressionQueryQueueImpl.log.debug( "Queue is full, cannot add genes for cache warm." );
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class PendingGene {
+
+        private final long geneId;
+        private int numRequests;
+        private final long sequence;
+
+        private PendingGene( long geneId, int numRequests, long sequence ) {
+            this.geneId = geneId;
+            this.numRequests = numRequests;
+            this.sequence = sequence;
         }
-        return false;
     }
-}
\ No newline at end of file
+}
@@ -48,11 +48,11 @@ public class CoexpressionServiceImpl implements CoexpressionService {
     @Autowired
     private CoexpressionDao coexpressionDao;
 
-    // @Autowired
-    // private CoexpressionQueryQueue coexpressionQueryQueue;
+    @Autowired
+    private CoexpressionQueryQueue coexpressionQueryQueue;
 
-    // @Autowired
-    // private CoexpressionCache coexpressionCache;
+    @Autowired
+    private CoexpressionCache coexpressionCache;
 
     @Autowired
     private ExpressionExperimentDao experimentDao;
@@ -110,9 +110,9 @@ public class CoexpressionServiceImpl implements CoexpressionService {
         List<CoexpressionValueObject> results = this.coexpressionDao
                 .findCoexpressionRelationships( gene, bas, maxResults, quick );
 
-        // if ( quick || maxResults > 0 ) {
-        //     this.coexpressionQueryQueue.addToFullQueryQueue( gene );
-        // }
+        if ( quick || maxResults > 0 ) {
+            this.coexpressionQueryQueue.addToFullQueryQueue( gene );
+        }
 
         return results;
     }
@@ -142,7 +142,7 @@ public class CoexpressionServiceImpl implements CoexpressionService {
 
         // since we require these links occur in all the given data sets, we assume we should cache (if not there
         // already) - don't bother checking 'quick' and 'maxResults'.
-        // this.possiblyAddToCacheQueue( results );
+        this.possiblyAddToCacheQueue( results );
 
         return results;
     }
@@ -151,21 +151,23 @@ public class CoexpressionServiceImpl implements CoexpressionService {
     @Transactional(readOnly = true)
     public Map<Long, List<CoexpressionValueObject>> findCoexpressionRelationships( Taxon t, Collection<Long> genes,
             Collection<Long> bas, int stringency, int maxResults, boolean quick ) {
-        // if ( stringency > CoexpressionCache.CACHE_QUERY_STRINGENCY || quick || maxResults > 0 ) {
-        //     this.possiblyAddToCacheQueue( results );
-        // }
-        return this.coexpressionDao
+        Map<Long, List<CoexpressionValueObject>> results = this.coexpressionDao
                 .findCoexpressionRelationships( t, genes, bas, stringency, maxResults, quick );
+        if ( stringency > CoexpressionCache.CACHE_QUERY_STRINGENCY || quick || maxResults > 0 ) {
+            this.possiblyAddToCacheQueue( results );
+        }
+        return results;
     }
 
     @Override
     @Transactional(readOnly = true)
     public Map<Long, List<CoexpressionValueObject>> findInterCoexpressionRelationships( Taxon t, Collection<Long> genes,
             Collection<Long> bas, int stringency, boolean quick ) {
-        // these are always candidates for queuing since the constraint on genes is done at the query level.
-        // this.possiblyAddToCacheQueue( results );
-        return this.coexpressionDao
+        Map<Long, List<CoexpressionValueObject>> results = this.coexpressionDao
                 .findInterCoexpressionRelationships( t, genes, bas, stringency, quick );
+        // these are always candidates for queuing since the constraint on genes is done at the query level.
+        this.possiblyAddToCacheQueue( results );
+        return results;
     }
 
     @Override
@@ -277,26 +279,27 @@ public class CoexpressionServiceImpl implements CoexpressionService {
     /**
      * Check for results which were not in the cache, and which were not cached; make sure we fully query them.
      */
-    // private void possiblyAddToCacheQueue( Map<Long, List<CoexpressionValueObject>> links ) {
-
-    //     if ( !coexpressionCache.isEnabled() )
-    //         return;
-
-    //     Set<Long> toQueue = new HashSet<>();
-    //     for ( Long id : links.keySet() ) {
-    //         for ( CoexpressionValueObject link : links.get( id ) ) {
-    //             if ( link.isFromCache() ) {
-    //                 continue;
-    //             }
-    //             toQueue.add( link.getQueryGeneId() );
-    //         }
-    //     }
-    //     if ( !toQueue.isEmpty() ) {
-    //         CoexpressionServiceImpl.log.info( "Queuing " + toQueue.size() + " genes for coexpression cache warm" );
-    //         coexpressionQueryQueue.addToFullQueryQueue( toQueue );
-    //     }
-
-    // }
+    private void possiblyAddToCacheQueue( Map<Long, List<CoexpressionValueObject>> links ) {
+
+        if ( !coexpressionCache.isEnabled() )
+            return;
+
+        Set<Long> toQueue = new HashSet<>();
+        for ( Long id : links.keySet() ) {
+            for ( CoexpressionValueObject link : links.get( id ) ) {
+                if ( link.isFromCache() ) {
+                    continue;
+                }
+                toQueue.add( link.getQueryGeneId() );
+            }
+        }
+        if ( !toQueue.isEmpty() ) {
+            CoexpressionServiceImpl.log.info( "Queuing " + toQueue.size() + " genes for coexpression cache warm" );
+            coexpressionQueryQueue.addToFullQueryQueueByIds( toQueue );
+        }
+
+    }
+
     private GeneCoexpressionNodeDegreeValueObject updateNodeDegree( Gene gene ) {
         GeneCoexpressionNodeDegree nd = this.geneCoexpressionNodeDegreeDao.findOrCreate( gene );
         return this.coexpressionDao.updateNodeDegree( gene, nd );
@@ -96,7 +96,7 @@ public class CoexpressionValueObject implements Comparable<CoexpressionValueObje
         positiveCorrelation = g2g.isPositiveCorrelation();
 
         if ( g2g.getSupportDetails() != null ) {
-            this.supportingDatasets = g2g.getSupportDetails().getIdsSet();
+            this.supportingDatasets = CompressedLongSet.ofSorted( g2g.getSupportDetails().getIdsArray() );
             support = this.supportingDatasets.size();
             supportDetailsId = g2g.getSupportDetails().getId();
         } else if ( g2g.getNumDatasetsSupporting() != null ) {
@@ -320,19 +320,25 @@ public class CoexpressionValueObject implements Comparable<CoexpressionValueObje
      * eeConstraint will only be changed from its current value if the constraint had any effect (so running this twice
      * is okay).
      *
+     * The sets are replaced rather than modified, so sets shared with cached results are left untouched.
+     *
      * @param bas        bas
      * @param stringency stringency
      * @return true if this still meets the stringency. If it returns false, we assume that means it will be rejected so
      * we don't bother actually trimming.
      */
-    boolean trimDatasets( Collection<Long> bas, int stringency ) {
+    boolean trimDatasets( CompressedLongSet bas, int stringency ) {
 
-        boolean changed = this.supportingDatasets.retainAll( bas );
+        CompressedLongSet supporting = CompressedLongSet.copyOf( this.supportingDatasets );
+        this.supportingDatasets = supporting.and( bas );
+        boolean changed = this.supportingDatasets.size() != supporting.size();
 
         this.support = this.supportingDatasets.size();
 
         if ( this.testedInDatasets != null ) {
-            changed = this.testedInDatasets.retainAll( bas ) || changed;
+            CompressedLongSet testedIn = CompressedLongSet.copyOf( this.testedInDatasets );
+            this.testedInDatasets = testedIn.and( bas );
+            changed = this.testedInDatasets.size() != testedIn.size() || changed;
             assert this.testedInDatasets.size() >= this.supportingDatasets.size();
         }
 
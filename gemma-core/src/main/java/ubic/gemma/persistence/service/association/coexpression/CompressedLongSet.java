@@ -19,64 +19,463 @@
 
 package ubic.gemma.persistence.service.association.coexpression;
 
-import com.googlecode.javaewah.EWAHCompressedBitmap;
-
+import java.io.Serializable;
 import java.util.*;
+import java.util.function.LongConsumer;
 
 /**
- * Encapsulates an array of Longs (which are actually stored as Integers...thanks to limitation of compressedbitmap I am
- * using).
+ * An immutable set of non-negative longs (typically dataset IDs) stored as a compressed bitmap.
+ * <p>
+ * Values are partitioned by their upper 48 bits into containers of up to 65536 values. Sparse containers are stored as
+ * sorted arrays of the lower 16 bits and dense ones as 65536-bit bitmaps, following the layout of Roaring bitmaps. This
+ * makes intersections and intersection counts cheap and avoids boxing, while still exposing a {@link Set} view for
+ * callers that need one.
  *
  * @author paul
  */
-class CompressedLongSet {
+class CompressedLongSet extends AbstractSet<Long> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Containers with at most this many values are stored as sorted arrays, otherwise as bitmaps.
+     */
+    private static final int MAX_ARRAY_CONTAINER_SIZE = 4096;
+
+    private static final int BITMAP_CONTAINER_WORDS = 1024;
+
+    private static final CompressedLongSet EMPTY = new CompressedLongSet( new long[0], new Object[0], new int[0], 0 );
 
-    private final EWAHCompressedBitmap data;
+    /**
+     * Upper 48 bits of the values of each container, in ascending order.
+     */
+    private final long[] keys;
+    /**
+     * Either a sorted {@code char[]} or a {@code long[1024]} bitmap of the lower 16 bits.
+     */
+    private final Object[] containers;
+    private final int[] cardinalities;
+    private final int size;
+
+    private CompressedLongSet( long[] keys, Object[] containers, int[] cardinalities, int size ) {
+        this.keys = keys;
+        this.containers = containers;
+        this.cardinalities = cardinalities;
+        this.size = size;
+    }
 
     /**
-     * @param longs set
+     * @param longs values to store; if this is already a {@link CompressedLongSet}, it is returned as-is
+     * @throws IllegalArgumentException if any of the values is negative
      */
-    CompressedLongSet( Set<Long> longs ) {
-        List<Long> v = new ArrayList<>( longs );
-        Collections.sort( v );
-        data = new EWAHCompressedBitmap( longs.size() );
+    static CompressedLongSet copyOf( Collection<Long> longs ) {
+        if ( longs instanceof CompressedLongSet ) {
+            return ( CompressedLongSet ) longs;
+        }
+        long[] values = new long[longs.size()];
+        int n = 0;
+        for ( Long l : longs ) {
+            values[n++] = l;
+        }
+        Arrays.sort( values );
+        return CompressedLongSet.fromSorted( values, n );
+    }
+
+    /**
+     * @param values values in ascending order, e.g. as produced by an {@link com.googlecode.javaewah.EWAHCompressedBitmap}
+     * @throws IllegalArgumentException if any of the values is negative
+     */
+    static CompressedLongSet ofSorted( int[] values ) {
+        long[] v = new long[values.length];
+        for ( int k = 0; k < values.length; k++ ) {
+            v[k] = values[k];
+        }
+        return CompressedLongSet.fromSorted( v, v.length );
+    }
+
+    /**
+     * @param values values in ascending order
+     * @throws IllegalArgumentException if any of the values is negative
+     */
+    static CompressedLongSet ofSorted( long[] values ) {
+        return CompressedLongSet.fromSorted( values, values.length );
+    }
 
-        for ( Long l : v ) {
-            if ( l > Integer.MAX_VALUE ) {
-                throw new IllegalArgumentException( "Cannot store values larger than Integer.MAX_VALUE" );
+    /**
+     * @param values values in ascending order; duplicates are ignored
+     * @param n      number of values to use
+     */
+    private static CompressedLongSet fromSorted( long[] values, int n ) {
+        if ( n > 0 && values[0] < 0 ) {
+            throw new IllegalArgumentException( "Cannot store negative values." );
+        }
+        long[] keys = new long[n];
+        Object[] containers = new Object[n];
+        int[] cardinalities = new int[n];
+        int numContainers = 0;
+        int size = 0;
+        int start = 0;
+        while ( start < n ) {
+            long key = values[start] >>> 16;
+            int end = start;
+            while ( end < n && values[end] >>> 16 == key ) {
+                end++;
             }
+            char[] low = new char[end - start];
+            int card = 0;
+            for ( int k = start; k < end; k++ ) {
+                char c = ( char ) values[k];
+                if ( card == 0 || low[card - 1] != c ) {
+                    low[card++] = c;
+                }
+            }
+            keys[numContainers] = key;
+            containers[numContainers] = CompressedLongSet.toContainer( low, card );
+            cardinalities[numContainers] = card;
+            numContainers++;
+            size += card;
+            start = end;
+        }
+        if ( numContainers == 0 ) {
+            return EMPTY;
+        }
+        return new CompressedLongSet( Arrays.copyOf( keys, numContainers ), Arrays.copyOf( containers, numContainers ),
+                Arrays.copyOf( cardinalities, numContainers ), size );
+    }
 
-            data.set( l.intValue() );
+    private static Object toContainer( char[] low, int card ) {
+        if ( card <= MAX_ARRAY_CONTAINER_SIZE ) {
+            return low.length == card ? low : Arrays.copyOf( low, card );
+        }
+        long[] bitmap = new long[BITMAP_CONTAINER_WORDS];
+        for ( int k = 0; k < card; k++ ) {
+            bitmap[low[k] >>> 6] |= 1L << low[k];
         }
+        return bitmap;
     }
 
     /**
-     * Will be in order.
-     *
-     * @return positions
+     * @return true if the given value is in this set
      */
-    @SuppressWarnings("unused") // Possible external use
-    public Long[] getValues() {
-        List<Integer> positions = data.getPositions();
-        Long[] result = new Long[positions.size()];
-        int k = 0;
-        for ( Integer i : positions ) {
-            result[k] = i.longValue();
-            k++;
+    boolean contains( long value ) {
+        if ( value < 0 ) {
+            return false;
         }
-        return result;
+        int k = Arrays.binarySearch( keys, value >>> 16 );
+        if ( k < 0 ) {
+            return false;
+        }
+        char low = ( char ) value;
+        Object container = containers[k];
+        if ( container instanceof char[] ) {
+            return Arrays.binarySearch( ( char[] ) container, low ) >= 0;
+        } else {
+            return ( ( ( long[] ) container )[low >>> 6] & ( 1L << low ) ) != 0;
+        }
+    }
+
+    @Override
+    public boolean contains( Object o ) {
+        return o instanceof Long && this.contains( ( long ) ( Long ) o );
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the values this set has in common with the other set
+     */
+    CompressedLongSet and( CompressedLongSet other ) {
+        int maxContainers = Math.min( keys.length, other.keys.length );
+        long[] rKeys = new long[maxContainers];
+        Object[] rContainers = new Object[maxContainers];
+        int[] rCardinalities = new int[maxContainers];
+        int numContainers = 0;
+        int rSize = 0;
+        int a = 0, b = 0;
+        while ( a < keys.length && b < other.keys.length ) {
+            if ( keys[a] < other.keys[b] ) {
+                a++;
+            } else if ( keys[a] > other.keys[b] ) {
+                b++;
+            } else {
+                Object container = CompressedLongSet.and( containers[a], cardinalities[a], other.containers[b],
+                        other.cardinalities[b] );
+                int card = CompressedLongSet.cardinality( container );
+                if ( card > 0 ) {
+                    rKeys[numContainers] = keys[a];
+                    rContainers[numContainers] = container;
+                    rCardinalities[numContainers] = card;
+                    numContainers++;
+                    rSize += card;
+                }
+                a++;
+                b++;
+            }
+        }
+        if ( numContainers == 0 ) {
+            return EMPTY;
+        }
+        return new CompressedLongSet( Arrays.copyOf( rKeys, numContainers ), Arrays.copyOf( rContainers, numContainers ),
+                Arrays.copyOf( rCardinalities, numContainers ), rSize );
     }
 
     /**
-     * @return set representation
+     * Count the values this set has in common with the other set without materializing the intersection.
      */
-    public Collection<Long> toSet() {
-        List<Integer> positions = data.getPositions();
-        Set<Long> result = new HashSet<>();
-        for ( Integer i : positions ) {
-            result.add( i.longValue() );
+    int andCardinality( CompressedLongSet other ) {
+        int count = 0;
+        int a = 0, b = 0;
+        while ( a < keys.length && b < other.keys.length ) {
+            if ( keys[a] < other.keys[b] ) {
+                a++;
+            } else if ( keys[a] > other.keys[b] ) {
+                b++;
+            } else {
+                count += CompressedLongSet.andCardinality( containers[a], cardinalities[a], other.containers[b],
+                        other.cardinalities[b] );
+                a++;
+                b++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Visit all the values in ascending order without boxing them.
+     */
+    void forEachLong( LongConsumer consumer ) {
+        for ( int k = 0; k < keys.length; k++ ) {
+            long high = keys[k] << 16;
+            Object container = containers[k];
+            if ( container instanceof char[] ) {
+                for ( char c : ( char[] ) container ) {
+                    consumer.accept( high | c );
+                }
+            } else {
+                long[] bitmap = ( long[] ) container;
+                for ( int w = 0; w < bitmap.length; w++ ) {
+                    long word = bitmap[w];
+                    while ( word != 0 ) {
+                        consumer.accept( high | ( ( long ) w << 6 ) | Long.numberOfTrailingZeros( word ) );
+                        word &= word - 1;
+                    }
+                }
+            }
         }
+    }
+
+    /**
+     * @return the values in ascending order
+     */
+    long[] toLongArray() {
+        long[] result = new long[size];
+        int[] n = { 0 };
+        this.forEachLong( v -> result[n[0]++] = v );
         return result;
     }
 
+    /**
+     * Iterates over the values in ascending order, decoding them one container at a time.
+     */
+    @Override
+    public PrimitiveIterator.OfLong iterator() {
+        return new PrimitiveIterator.OfLong() {
+            /**
+             * Index of the current container.
+             */
+            private int k = 0;
+            /**
+             * Position in an array container, or index of the word in a bitmap container.
+             */
+            private int i = 0;
+            /**
+             * Bits of the current word that remain to be visited, for a bitmap container.
+             */
+            private long word = CompressedLongSet.this.firstWord( 0 );
+
+            @Override
+            public boolean hasNext() {
+                while ( k < keys.length ) {
+                    Object container = containers[k];
+                    if ( container instanceof char[] ) {
+                        if ( i < ( ( char[] ) container ).length ) {
+                            return true;
+                        }
+                    } else {
+                        long[] bitmap = ( long[] ) container;
+                        while ( word == 0 && i < bitmap.length - 1 ) {
+                            word = bitmap[++i];
+                        }
+                        if ( word != 0 ) {
+                            return true;
+                        }
+                    }
+                    k++;
+                    i = 0;
+                    word = CompressedLongSet.this.firstWord( k );
+                }
+                return false;
+            }
+
+            @Override
+            public long nextLong() {
+                if ( !this.hasNext() ) {
+                    throw new NoSuchElementException();
+                }
+                long high = keys[k] << 16;
+                Object container = containers[k];
+                if ( container instanceof char[] ) {
+                    return high | ( ( char[] ) container )[i++];
+                } else {
+                    long value = high | ( ( long ) i << 6 ) | Long.numberOfTrailingZeros( word );
+                    word &= word - 1;
+                    return value;
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the first word of the given container if it is a bitmap, zero otherwise
+     */
+    private long firstWord( int k ) {
+        return k < containers.length && containers[k] instanceof long[] ? ( ( long[] ) containers[k] )[0] : 0L;
+    }
+
+    @Override
+    public boolean equals( Object o ) {
+        if ( this == o ) {
+            return true;
+        }
+        if ( !( o instanceof CompressedLongSet ) ) {
+            return super.equals( o );
+        }
+        // containers are stored canonically, so comparing them directly is sufficient
+        CompressedLongSet other = ( CompressedLongSet ) o;
+        if ( size != other.size || !Arrays.equals( keys, other.keys ) ) {
+            return false;
+        }
+        for ( int k = 0; k < containers.length; k++ ) {
+            if ( !Objects.deepEquals( containers[k], other.containers[k] ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        // same as AbstractSet.hashCode(), without boxing
+        int[] h = { 0 };
+        this.forEachLong( v -> h[0] += Long.hashCode( v ) );
+        return h[0];
+    }
+
+    private static Object and( Object a, int cardA, Object b, int cardB ) {
+        if ( a instanceof char[] && b instanceof char[] ) {
+            char[] x = ( char[] ) a, y = ( char[] ) b;
+            char[] result = new char[Math.min( cardA, cardB )];
+            int n = 0, i = 0, j = 0;
+            while ( i < x.length && j < y.length ) {
+                if ( x[i] < y[j] ) {
+                    i++;
+                } else if ( x[i] > y[j] ) {
+                    j++;
+                } else {
+                    result[n++] = x[i];
+                    i++;
+                    j++;
+                }
+            }
+            return n == result.length ? result : Arrays.copyOf( result, n );
+        } else if ( a instanceof char[] || b instanceof char[] ) {
+            char[] array = ( char[] ) ( a instanceof char[] ? a : b );
+            long[] bitmap = ( long[] ) ( a instanceof char[] ? b : a );
+            char[] result = new char[array.length];
+            int n = 0;
+            for ( char c : array ) {
+                if ( ( bitmap[c >>> 6] & ( 1L << c ) ) != 0 ) {
+                    result[n++] = c;
+                }
+            }
+            return n == result.length ? result : Arrays.copyOf( result, n );
+        } else {
+            long[] x = ( long[] ) a, y = ( long[] ) b;
+            long[] result = new long[BITMAP_CONTAINER_WORDS];
+            int card = 0;
+            for ( int w = 0; w < BITMAP_CONTAINER_WORDS; w++ ) {
+                result[w] = x[w] & y[w];
+                card += Long.bitCount( result[w] );
+            }
+            if ( card > MAX_ARRAY_CONTAINER_SIZE ) {
+                return result;
+            }
+            // too sparse for a bitmap
+            char[] array = new char[card];
+            int n = 0;
+            for ( int w = 0; w < BITMAP_CONTAINER_WORDS; w++ ) {
+                long word = result[w];
+                while ( word != 0 ) {
+                    array[n++] = ( char ) ( ( w << 6 ) | Long.numberOfTrailingZeros( word ) );
+                    word &= word - 1;
+                }
+            }
+            return array;
+        }
+    }
+
+    private static int andCardinality( Object a, int cardA, Object b, int cardB ) {
+        if ( a instanceof char[] && b instanceof char[] ) {
+            char[] x = ( char[] ) a, y = ( char[] ) b;
+            int n = 0, i = 0, j = 0;
+            while ( i < cardA && j < cardB ) {
+                if ( x[i] < y[j] ) {
+                    i++;
+                } else if ( x[i] > y[j] ) {
+                    j++;
+                } else {
+                    n++;
+                    i++;
+                    j++;
+                }
+            }
+            return n;
+        } else if ( a instanceof char[] || b instanceof char[] ) {
+            char[] array = ( char[] ) ( a instanceof char[] ? a : b );
+            long[] bitmap = ( long[] ) ( a instanceof char[] ? b : a );
+            int n = 0;
+            for ( char c : array ) {
+                if ( ( bitmap[c >>> 6] & ( 1L << c ) ) != 0 ) {
+                    n++;
+                }
+            }
+            return n;
+        } else {
+            long[] x = ( long[] ) a, y = ( long[] ) b;
+            int n = 0;
+            for ( int w = 0; w < BITMAP_CONTAINER_WORDS; w++ ) {
+                n += Long.bitCount( x[w] & y[w] );
+            }
+            return n;
+        }
+    }
+
+    private static int cardinality( Object container ) {
+        if ( container instanceof char[] ) {
+            return ( ( char[] ) container ).length;
+        }
+        int n = 0;
+        for ( long word : ( long[] ) container ) {
+            n += Long.bitCount( word );
+        }
+        return n;
+    }
 }
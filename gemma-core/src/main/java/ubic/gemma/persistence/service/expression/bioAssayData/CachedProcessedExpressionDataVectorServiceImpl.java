@@ -7,6 +7,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.Assert;
+import ubic.gemma.core.visualization.HeatmapTileCache;
 import ubic.gemma.model.common.quantitationtype.QuantitationType;
 import ubic.gemma.model.common.quantitationtype.QuantitationTypeValueObject;
 import ubic.gemma.model.expression.arrayDesign.ArrayDesign;
@@ -44,6 +45,9 @@ class CachedProcessedExpressionDataVectorServiceImpl implements CachedProcessedE
     @Autowired
     private ProcessedDataVectorCache processedDataVectorCache;
 
+    @Autowired
+    private HeatmapTileCache heatmapTileCache;
+
     @Autowired
     public CachedProcessedExpressionDataVectorServiceImpl( ProcessedExpressionDataVectorDao processedExpressionDataVectorDao, SessionFactory sessionFactory ) {
         this.processedExpressionDataVectorDao = processedExpressionDataVectorDao;
@@ -408,6 +412,8 @@ class CachedProcessedExpressionDataVectorServiceImpl implements CachedProcessedE
         ExpressionExperiment ee = getExperiment( bas );
         processedDataVectorCache.evict( ee );
         processedDataVectorByGeneCache.evict( ee );
+        // heatmaps are rendered from the vectors
+        heatmapTileCache.evict( ee );
     }
 
     /**
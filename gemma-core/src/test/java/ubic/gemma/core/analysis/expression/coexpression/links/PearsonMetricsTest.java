@@ -0,0 +1,250 @@
+package ubic.gemma.core.analysis.expression.coexpression.links;
+
+import cern.colt.list.ObjectArrayList;
+import org.junit.Before;
+import org.junit.Test;
+import ubic.basecode.dataStructure.Link;
+import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrix;
+import ubic.gemma.model.expression.arrayDesign.ArrayDesign;
+import ubic.gemma.model.expression.bioAssay.BioAssay;
+import ubic.gemma.model.expression.biomaterial.BioMaterial;
+import ubic.gemma.model.expression.designElement.CompositeSequence;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+import ubic.gemma.model.genome.Gene;
+import ubic.gemma.persistence.service.expression.bioAssayData.RandomExpressionDataMatrixUtils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PearsonMetricsTest {
+
+    private ExpressionDataDoubleMatrix matrix;
+    private Map<CompositeSequence, Set<Gene>> probeToGeneMap;
+
+    @Before
+    public void setUp() {
+        RandomExpressionDataMatrixUtils.setSeed( 123L );
+        ArrayDesign ad = new ArrayDesign();
+        probeToGeneMap = new HashMap<>();
+        for ( int i = 0; i < 300; i++ ) {
+            CompositeSequence cs = CompositeSequence.Factory.newInstance( String.format( "cs%03d", i ), ad );
+            ad.getCompositeSequences().add( cs );
+            // leave a few probes without genes
+            if ( i % 17 != 0 ) {
+                Gene gene = new Gene();
+                gene.setId( ( long ) i );
+                probeToGeneMap.put( cs, Collections.singleton( gene ) );
+            }
+        }
+        ExpressionExperiment ee = new ExpressionExperiment();
+        for ( int i = 0; i < 12; i++ ) {
+            BioMaterial bm = BioMaterial.Factory.newInstance( "bm" + i );
+            BioAssay ba = BioAssay.Factory.newInstance( "ba" + i, ad, bm );
+            bm.getBioAssaysUsedIn().add( ba );
+            ee.getBioAssays().add( ba );
+        }
+        matrix = RandomExpressionDataMatrixUtils.randomLog2Matrix( ee );
+    }
+
+    @Test
+    public void testCalculateMetricsWithMultipleThreads() {
+        assertSameResults( new PearsonMetrics( matrix, 0.2 ), new PearsonMetrics( matrix, 0.2 ) );
+    }
+
+    @Test
+    public void testCalculateMetricsWithMissingValuesWithMultipleThreads() {
+        for ( int i = 0; i < matrix.rows(); i += 7 ) {
+            matrix.set( i, i % matrix.columns(), Double.NaN );
+        }
+        assertSameResults( new PearsonMetrics( matrix, 0.2 ), new PearsonMetrics( matrix, 0.2 ) );
+    }
+
+    @Test
+    public void testSpearmanCalculateMetricsWithMultipleThreads() {
+        assertSameResults( new SpearmanMetrics( matrix, 0.2 ), new SpearmanMetrics( matrix, 0.2 ) );
+    }
+
+    @Test
+    public void testCalculateMetricsWithoutCache() {
+        PearsonMetrics cached = new PearsonMetrics( matrix, 0.2 );
+        PearsonMetrics sequential = new PearsonMetrics( matrix, 0.2 );
+        sequential.nullMatrix();
+        PearsonMetrics parallel = new PearsonMetrics( matrix, 0.2 );
+        parallel.nullMatrix();
+        assertSameResults( sequential, parallel );
+        assertEquals( 0, parallel.numCached() );
+        // not caching correlations does not change the outcome
+        calculateMetrics( cached );
+        assertTrue( cached.numCached() > 0 );
+        assertEquals( cached.getHistogramArrayList(), sequential.getHistogramArrayList() );
+        assertSameLinks( cached.getKeepers(), sequential.getKeepers() );
+    }
+
+    @Test
+    public void testCalculateMetricsWithMaxLinksPerRow() {
+        PearsonMetrics metrics = new PearsonMetrics( matrix, 0.2 );
+        metrics.setMaxLinksPerRow( 2 );
+        metrics.setDuplicateMap( probeToGeneMap );
+        metrics.setUsePvalueThreshold( false );
+        metrics.calculateMetrics();
+        metrics.setUpperTailThreshold( 0.5 );
+        metrics.setLowerTailThreshold( -0.5 );
+        metrics.calculateMetrics();
+        ObjectArrayList keepers = metrics.getKeepers();
+        assertTrue( keepers.size() > 0 );
+        assertTrue( keepers.size() <= 2 * matrix.rows() );
+
+        // blocks retain their best links, which must select the same links as retaining all of them first
+        PearsonMetrics unlimited = new PearsonMetrics( matrix, 0.2 );
+        calculateMetrics( unlimited );
+        TopLinksPerRowSelector selector = new TopLinksPerRowSelector( matrix.rows(), 2 );
+        ObjectArrayList all = unlimited.getKeepers();
+        for ( int k = 0; k < all.size(); k++ ) {
+            Link link = ( Link ) all.get( k );
+            selector.offer( link.getx(), link.gety(), link.getWeight() );
+        }
+        assertSameLinks( selector.getLinks(), keepers );
+
+        PearsonMetrics parallel = new PearsonMetrics( matrix, 0.2 );
+        parallel.setMaxLinksPerRow( 2 );
+        parallel.setNumThreads( 4 );
+        calculateMetrics( parallel );
+        assertSameLinks( keepers, parallel.getKeepers() );
+    }
+
+    @Test
+    public void testCalculateMetricsWithStandardizedRows() {
+        PearsonMetrics regular = new PearsonMetrics( matrix, 0.2 );
+        regular.setUseStandardizedRows( false );
+        PearsonMetrics standardized = new PearsonMetrics( matrix, 0.2 );
+        for ( PearsonMetrics analysis : new PearsonMetrics[] { regular, standardized } ) {
+            analysis.setDuplicateMap( probeToGeneMap );
+            analysis.setUsePvalueThreshold( false );
+            analysis.setUpperTailThreshold( 0.5 );
+            analysis.setLowerTailThreshold( -0.5 );
+            analysis.calculateMetrics();
+        }
+        ObjectArrayList expected = regular.getKeepers();
+        ObjectArrayList actual = standardized.getKeepers();
+        assertTrue( expected.size() > 0 );
+        assertEquals( expected.size(), actual.size() );
+        for ( int k = 0; k < expected.size(); k++ ) {
+            Link e = ( Link ) expected.get( k );
+            Link a = ( Link ) actual.get( k );
+            assertEquals( e.getx(), a.getx() );
+            assertEquals( e.gety(), a.gety() );
+            assertEquals( e.getWeight(), a.getWeight(), 1e-12 );
+        }
+    }
+
+    /**
+     * Compare the links and histogram with correlations computed pair by pair, independently of the analysis.
+     */
+    @Test
+    public void testCalculateMetricsAgainstPairwiseCorrelations() {
+        PearsonMetrics metrics = new PearsonMetrics( matrix, 0.2 );
+        metrics.setNumThreads( 4 );
+        metrics.setDuplicateMap( probeToGeneMap );
+        metrics.setUsePvalueThreshold( false );
+        metrics.calculateMetrics();
+        metrics.setUpperTailThreshold( 0.5 );
+        metrics.setLowerTailThreshold( -0.5 );
+        metrics.calculateMetrics();
+
+        double[][] data = matrix.getRawMatrixAsDoubles();
+        Map<String, Double> kept = new HashMap<>();
+        ObjectArrayList keepers = metrics.getKeepers();
+        for ( int k = 0; k < keepers.size(); k++ ) {
+            Link link = ( Link ) keepers.get( k );
+            assertTrue( link.getx() < link.gety() );
+            assertEquals( pearson( data[link.getx()], data[link.gety()] ), link.getWeight(), 1e-10 );
+            kept.put( link.getx() + ":" + link.gety(), link.getWeight() );
+        }
+        assertEquals( "links are not duplicated", keepers.size(), kept.size() );
+
+        int numPairs = 0;
+        int numExpected = 0;
+        for ( int i = 0; i < data.length; i++ ) {
+            if ( !probeToGeneMap.containsKey( matrix.getDesignElementForRow( i ) ) ) {
+                continue;
+            }
+            for ( int j = i + 1; j < data.length; j++ ) {
+                if ( !probeToGeneMap.containsKey( matrix.getDesignElementForRow( j ) ) ) {
+                    continue;
+                }
+                numPairs++;
+                double r = pearson( data[i], data[j] );
+                // stay clear of the threshold, where rounding errors could go either way
+                if ( Math.abs( r ) > 0.5 + 1e-10 ) {
+                    numExpected++;
+                    assertTrue( "missing link " + i + ":" + j, kept.containsKey( i + ":" + j ) );
+                } else if ( Math.abs( r ) < 0.5 - 1e-10 ) {
+                    assertTrue( "unexpected link " + i + ":" + j, !kept.containsKey( i + ":" + j ) );
+                }
+            }
+        }
+        assertTrue( numExpected > 0 );
+        assertEquals( numExpected, kept.size() );
+
+        // every pair of rows with genes is counted once in the histogram
+        double total = 0;
+        for ( double count : metrics.getHistogramArrayList().elements() ) {
+            total += count;
+        }
+        assertEquals( numPairs, total, 0.0 );
+    }
+
+    private static double pearson( double[] x, double[] y ) {
+        double mx = 0, my = 0;
+        for ( int k = 0; k < x.length; k++ ) {
+            mx += x[k];
+            my += y[k];
+        }
+        mx /= x.length;
+        my /= y.length;
+        double sxy = 0, sxx = 0, syy = 0;
+        for ( int k = 0; k < x.length; k++ ) {
+            sxy += ( x[k] - mx ) * ( y[k] - my );
+            sxx += ( x[k] - mx ) * ( x[k] - mx );
+            syy += ( y[k] - my ) * ( y[k] - my );
+        }
+        return sxy / Math.sqrt( sxx * syy );
+    }
+
+    private void assertSameResults( AbstractMatrixRowPairAnalysis sequential, AbstractMatrixRowPairAnalysis parallel ) {
+        parallel.setNumThreads( 4 );
+        calculateMetrics( sequential );
+        calculateMetrics( parallel );
+        assertEquals( sequential.getHistogramArrayList(), parallel.getHistogramArrayList() );
+        assertEquals( sequential.numCached(), parallel.numCached() );
+        assertEquals( sequential.getCrossHybridizationRejections(), parallel.getCrossHybridizationRejections() );
+        assertSameLinks( sequential.getKeepers(), parallel.getKeepers() );
+    }
+
+    private void calculateMetrics( AbstractMatrixRowPairAnalysis analysis ) {
+        analysis.setDuplicateMap( probeToGeneMap );
+        analysis.setUsePvalueThreshold( false );
+        // first pass fills the histogram, second pass selects the links
+        analysis.calculateMetrics();
+        analysis.setUpperTailThreshold( 0.5 );
+        analysis.setLowerTailThreshold( -0.5 );
+        analysis.calculateMetrics();
+    }
+
+    private void assertSameLinks( ObjectArrayList expected, ObjectArrayList actual ) {
+        assertTrue( expected.size() > 0 );
+        assertEquals( expected.size(), actual.size() );
+        for ( int k = 0; k < expected.size(); k++ ) {
+            Link e = ( Link ) expected.get( k );
+            Link a = ( Link ) actual.get( k );
+            assertEquals( e.getx(), a.getx() );
+            assertEquals( e.gety(), a.gety() );
+            assertEquals( e.getWeight(), a.getWeight(), 0.0 );
+        }
+    }
+}
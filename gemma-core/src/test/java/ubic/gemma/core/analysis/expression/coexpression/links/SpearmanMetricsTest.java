@@ -22,6 +22,8 @@ import cern.colt.list.DoubleArrayList;
 import org.junit.Test;
 import ubic.basecode.math.Rank;
 
+import java.util.Arrays;
+
 import static org.junit.Assert.assertEquals;
 
 /**
@@ -63,6 +65,30 @@ public class SpearmanMetricsTest {
 
     }
 
+    /**
+     * Pairs computed one at a time share a block, which must not carry over anything from the previous pair.
+     */
+    @Test
+    public void testCorrelRepeatedly() {
+        double[] a = new double[] { 49.0, 43.0, 310.0, 20.0, 20.0, 688.0, 498.0, 533.0, 723.0, 1409.0, 279.0 };
+        double[] b = new double[] { 1545.0, 1287.0, 2072.0, 1113.0, 676.0, 2648.0, 2478.0, 2574.0, 3554.0, 5155.0,
+                1624.0 };
+        boolean[] used = new boolean[a.length];
+        Arrays.fill( used, true );
+        double[] ranksA = Rank.rankTransform( new DoubleArrayList( a ) ).elements();
+        double[] ranksB = Rank.rankTransform( new DoubleArrayList( b ) ).elements();
+
+        SpearmanMetrics test = new SpearmanMetrics( 10 );
+        for ( int k = 0; k < 5; k++ ) {
+            assertEquals( 0.9977247, test.spearman( ranksA, ranksB, used, used, k, k + 1 ), 0.0001 );
+        }
+        double total = 0;
+        for ( double count : test.getHistogramArrayList().elements() ) {
+            total += count;
+        }
+        assertEquals( 5, total, 0.0 );
+    }
+
     /**
      * This tests the same values as testCorrelWithMissing, different method than testCorrelC
      */
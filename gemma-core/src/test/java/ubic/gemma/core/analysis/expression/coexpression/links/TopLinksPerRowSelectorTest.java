@@ -0,0 +1,51 @@
+package ubic.gemma.core.analysis.expression.coexpression.links;
+
+import cern.colt.list.ObjectArrayList;
+import org.junit.Test;
+import ubic.basecode.dataStructure.Link;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TopLinksPerRowSelectorTest {
+
+    @Test
+    public void test() {
+        TopLinksPerRowSelector selector = new TopLinksPerRowSelector( 5, 2 );
+        selector.offer( 0, 1, 0.9 );
+        selector.offer( 0, 2, -0.8 );
+        selector.offer( 0, 3, 0.7 );
+        selector.offer( 0, 4, 0.95 );
+        selector.offer( 3, 4, 0.6 );
+        ObjectArrayList links = selector.getLinks();
+        // row 0 keeps 1 and 4, row 2 keeps 0, row 3 keeps 0 and 4, row 4 keeps 0 and 3
+        assertEquals( 5, links.size() );
+        assertLink( links.get( 0 ), 0, 1, 0.9 );
+        assertLink( links.get( 1 ), 0, 2, -0.8 );
+        assertLink( links.get( 2 ), 0, 3, 0.7 );
+        assertLink( links.get( 3 ), 0, 4, 0.95 );
+        assertLink( links.get( 4 ), 3, 4, 0.6 );
+    }
+
+    @Test
+    public void testCapacityIsEnforced() {
+        TopLinksPerRowSelector selector = new TopLinksPerRowSelector( 100, 3 );
+        for ( int i = 0; i < 100; i++ ) {
+            for ( int j = i + 1; j < 100; j++ ) {
+                selector.offer( i, j, ( i + j ) / 200.0 );
+            }
+        }
+        ObjectArrayList links = selector.getLinks();
+        // each row contributes at most 3 links
+        assertTrue( links.size() <= 300 );
+        // the strongest link is always retained
+        assertLink( links.get( links.size() - 1 ), 98, 99, 197 / 200.0 );
+    }
+
+    private void assertLink( Object o, int x, int y, double w ) {
+        Link link = ( Link ) o;
+        assertEquals( x, link.getx() );
+        assertEquals( y, link.gety() );
+        assertEquals( w, link.getWeight(), 0.0 );
+    }
+}
@@ -30,6 +30,7 @@ import ubic.basecode.dataStructure.matrix.DoubleMatrix;
 import ubic.basecode.io.reader.DoubleMatrixReader;
 import ubic.basecode.util.RegressionTesting;
 import ubic.gemma.core.analysis.preprocess.svd.ExpressionDataSVD;
+import ubic.gemma.core.analysis.preprocess.svd.SVDConfig;
 import ubic.gemma.core.analysis.preprocess.svd.SVDException;
 import ubic.gemma.core.context.TestComponent;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrix;
@@ -56,6 +57,7 @@ import ubic.gemma.persistence.service.expression.arrayDesign.ArrayDesignService;
 import ubic.gemma.persistence.service.genome.taxon.TaxonService;
 
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
@@ -248,6 +250,44 @@ public class ExpressionDataSVDTest extends BaseTest {
         assertTrue( RegressionTesting.closeEnough( actualVarFractions, actualVarFractions, 0.01 ) );
     }
 
+    @Test
+    public void testTruncatedSvd() throws SVDException {
+        ExpressionDataSVD fullSvd = new ExpressionDataSVD( testData, true );
+        svd = new ExpressionDataSVD( testData, true, SVDConfig.builder()
+                .mode( SVDConfig.Mode.TRUNCATED )
+                .numComponents( 5 )
+                .checkAccuracy( true )
+                .build() );
+        assertTrue( svd.isTruncated() );
+        assertEquals( 5, svd.getSingularValues().length );
+        assertEquals( 5, svd.getU().columns() );
+        assertEquals( fullSvd.getU().rows(), svd.getU().rows() );
+        assertEquals( 5, svd.getV().columns() );
+        assertEquals( fullSvd.getV().rows(), svd.getV().rows() );
+        // both are named by sample and by component
+        assertEquals( testData.getMatrix().getColNames(), fullSvd.getV().getRowNames() );
+        assertEquals( fullSvd.getV().getRowNames(), svd.getV().getRowNames() );
+        assertEquals( Arrays.asList( 0, 1, 2, 3, 4 ), svd.getV().getColNames() );
+        assertEquals( fullSvd.getV().getColNames().subList( 0, 5 ), svd.getV().getColNames() );
+        assertTrue( RegressionTesting.closeEnough( Arrays.copyOf( fullSvd.getSingularValues(), 5 ), svd.getSingularValues(), 0.001 ) );
+        // variance fractions are relative to all the components, not only the computed ones
+        assertEquals( fullSvd.getTotalVariance(), svd.getTotalVariance(), 1e-6 );
+        assertEquals( fullSvd.getVarianceFractions()[0], svd.getVarianceFractions()[0], 1e-6 );
+        try {
+            svd.removeHighestComponents( 1 );
+            fail( "Should have gotten an exception" );
+        } catch ( IllegalStateException e ) {
+            //
+        }
+    }
+
+    @Test
+    public void testAutoSvdOnSmallMatrix() throws SVDException {
+        svd = new ExpressionDataSVD( testData, true, SVDConfig.DEFAULT );
+        assertFalse( svd.isTruncated() );
+        assertEquals( 59, svd.getSingularValues().length );
+    }
+
     /*
      * Test on full-sized data set.
      */
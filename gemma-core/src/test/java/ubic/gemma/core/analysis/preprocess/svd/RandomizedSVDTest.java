@@ -0,0 +1,101 @@
+package ubic.gemma.core.analysis.preprocess.svd;
+
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+import cern.colt.matrix.linalg.QRDecomposition;
+import cern.colt.matrix.linalg.SingularValueDecomposition;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class RandomizedSVDTest {
+
+    @Test
+    public void test() {
+        DoubleMatrix2D a = randomMatrix( 1000, 100, 30 );
+        double[] expected = new SingularValueDecomposition( a ).getSingularValues();
+        RandomizedSVD svd = new RandomizedSVD( a, 10, 7, 123L );
+        assertThat( svd.getU().rows() ).isEqualTo( 1000 );
+        assertThat( svd.getU().columns() ).isEqualTo( 10 );
+        assertThat( svd.getV().rows() ).isEqualTo( 100 );
+        assertThat( svd.getV().columns() ).isEqualTo( 10 );
+        assertThat( svd.getSingularValues() ).hasSize( 10 );
+        for ( int i = 0; i < 10; i++ ) {
+            assertThat( svd.getSingularValues()[i] ).isCloseTo( expected[i], within( 1e-3 * expected[0] ) );
+        }
+        assertThatIsOrthonormal( svd.getU() );
+        assertThatIsOrthonormal( svd.getV() );
+        for ( double r : svd.getRelativeResiduals( a ) ) {
+            assertThat( r ).isLessThan( 0.01 );
+        }
+    }
+
+    @Test
+    public void testWithoutPowerIterationsIsLessAccurate() {
+        DoubleMatrix2D a = randomMatrix( 1000, 100, 30 );
+        double[] residuals = new RandomizedSVD( a, 10, 0, 123L ).getRelativeResiduals( a );
+        assertThat( Arrays.stream( residuals ).max().orElse( 0 ) ).isGreaterThan( 0.01 );
+    }
+
+    @Test
+    public void testLowRankMatrix() {
+        // A = U S V' with orthonormal U and V and singular values 3, 2 and 1
+        DoubleMatrix2D u = new QRDecomposition( randomMatrix( 300, 3, 0 ) ).getQ();
+        DoubleMatrix2D v = new QRDecomposition( randomMatrix( 40, 3, 0 ) ).getQ();
+        DoubleMatrix2D s = new DenseDoubleMatrix2D( new double[][] { { 3, 0, 0 }, { 0, 2, 0 }, { 0, 0, 1 } } );
+        DoubleMatrix2D a = u.zMult( s, null ).zMult( v, null, 1.0, 0.0, false, true );
+        RandomizedSVD svd = new RandomizedSVD( a, 5, 0, 123L );
+        assertThat( svd.getSingularValues()[0] ).isCloseTo( 3, within( 1e-10 ) );
+        assertThat( svd.getSingularValues()[1] ).isCloseTo( 2, within( 1e-10 ) );
+        assertThat( svd.getSingularValues()[2] ).isCloseTo( 1, within( 1e-10 ) );
+        assertThat( svd.getSingularValues()[3] ).isCloseTo( 0, within( 1e-10 ) );
+        double[] residuals = svd.getRelativeResiduals( a );
+        assertThat( residuals[0] ).isLessThan( 1e-10 );
+        assertThat( residuals[2] ).isLessThan( 1e-10 );
+        // components with a zero singular value are not checked
+        assertThat( residuals[3] ).isNaN();
+        assertThat( residuals[4] ).isNaN();
+    }
+
+    /**
+     * Generate a matrix with a decaying spectrum of the given rank plus some Gaussian noise.
+     */
+    private DoubleMatrix2D randomMatrix( int rows, int columns, int rank ) {
+        Random random = new Random( 5L );
+        DoubleMatrix2D a = new DenseDoubleMatrix2D( rows, columns );
+        for ( int c = 0; c < rank; c++ ) {
+            double weight = 50.0 / ( c + 1 ) / Math.sqrt( rows * columns ) * 10;
+            double[] u = new double[rows], v = new double[columns];
+            for ( int i = 0; i < rows; i++ ) {
+                u[i] = random.nextGaussian();
+            }
+            for ( int j = 0; j < columns; j++ ) {
+                v[j] = random.nextGaussian();
+            }
+            for ( int i = 0; i < rows; i++ ) {
+                for ( int j = 0; j < columns; j++ ) {
+                    a.setQuick( i, j, a.getQuick( i, j ) + weight * u[i] * v[j] );
+                }
+            }
+        }
+        for ( int i = 0; i < rows; i++ ) {
+            for ( int j = 0; j < columns; j++ ) {
+                a.setQuick( i, j, a.getQuick( i, j ) + random.nextGaussian() );
+            }
+        }
+        return a;
+    }
+
+    private void assertThatIsOrthonormal( DoubleMatrix2D m ) {
+        DoubleMatrix2D mtm = m.zMult( m, null, 1.0, 0.0, true, false );
+        for ( int i = 0; i < mtm.rows(); i++ ) {
+            for ( int j = 0; j < mtm.columns(); j++ ) {
+                assertThat( mtm.getQuick( i, j ) ).isCloseTo( i == j ? 1.0 : 0.0, within( 1e-10 ) );
+            }
+        }
+    }
+}
@@ -1,17 +1,30 @@
 package ubic.gemma.core.analysis.singleCell;
 
+import org.apache.commons.lang3.time.StopWatch;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import ubic.gemma.core.analysis.stats.DataVectorDescriptive;
+import ubic.gemma.core.util.test.category.SlowTest;
 import ubic.gemma.model.common.quantitationtype.*;
+import ubic.gemma.model.expression.arrayDesign.ArrayDesign;
 import ubic.gemma.model.expression.bioAssay.BioAssay;
 import ubic.gemma.model.expression.bioAssayData.SingleCellExpressionDataVector;
 import ubic.gemma.model.expression.designElement.CompositeSequence;
 import ubic.gemma.model.expression.experiment.ExpressionExperiment;
 import ubic.gemma.persistence.service.expression.bioAssayData.RandomSingleCellDataUtils;
 
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
 import static org.assertj.core.api.Assertions.assertThat;
+import static ubic.gemma.model.expression.bioAssayData.SingleCellExpressionDataVectorUtils.getSampleDataAsDoubles;
 
 public class SingleCellDescriptiveTest {
 
+    private static final Log log = LogFactory.getLog( SingleCellDescriptiveTest.class );
+
     @Test
     public void testCountDataAsInts() {
         RandomSingleCellDataUtils.setSeed( 123 );
@@ -287,4 +300,93 @@ public class SingleCellDescriptiveTest {
                         0.8944178556282364,
                         1.0037397276273488 );
     }
-}
\ No newline at end of file
+
+    /**
+     * Compare per-assay statistics computed directly from the vector buffer with the previous approach of copying each
+     * assay in a new array, on 1M cells.
+     */
+    @Test
+    @Category(SlowTest.class)
+    public void testPerformance() {
+        RandomSingleCellDataUtils.setSeed( 123 );
+        int numSamples = 8;
+        ArrayDesign ad = new ArrayDesign();
+        for ( int i = 0; i < 20; i++ ) {
+            ad.getCompositeSequences().add( CompositeSequence.Factory.newInstance( "cs" + i, ad ) );
+        }
+        ExpressionExperiment ee = new ExpressionExperiment();
+        for ( int i = 0; i < numSamples; i++ ) {
+            ee.getBioAssays().add( BioAssay.Factory.newInstance( "ba" + i ) );
+        }
+        QuantitationType qt = new QuantitationType();
+        qt.setGeneralType( GeneralType.QUANTITATIVE );
+        qt.setType( StandardQuantitationType.COUNT );
+        qt.setScale( ScaleType.COUNT );
+        qt.setRepresentation( PrimitiveType.DOUBLE );
+        List<SingleCellExpressionDataVector> vectors = RandomSingleCellDataUtils
+                .randomSingleCellVectors( ee, ad, qt, 125000, 0.9 );
+
+        // warm-up
+        for ( int k = 0; k < 3; k++ ) {
+            for ( SingleCellExpressionDataVector vector : vectors ) {
+                copyingMeanAndVariance( vector, numSamples );
+                SingleCellDescriptive.mean( vector );
+                SingleCellDescriptive.sampleVariance( vector );
+            }
+        }
+
+        long allocated = getAllocatedBytes();
+        StopWatch timer = StopWatch.createStarted();
+        double[][] expected = new double[vectors.size()][];
+        for ( int i = 0; i < vectors.size(); i++ ) {
+            expected[i] = copyingMeanAndVariance( vectors.get( i ), numSamples );
+        }
+        long copyingTime = timer.getTime();
+        long copyingAllocated = getAllocatedBytes() - allocated;
+
+        allocated = getAllocatedBytes();
+        timer = StopWatch.createStarted();
+        double[][] actual = new double[vectors.size()][];
+        for ( int i = 0; i < vectors.size(); i++ ) {
+            double[] mean = SingleCellDescriptive.mean( vectors.get( i ) );
+            double[] variance = SingleCellDescriptive.sampleVariance( vectors.get( i ) );
+            actual[i] = new double[2 * numSamples];
+            System.arraycopy( mean, 0, actual[i], 0, numSamples );
+            System.arraycopy( variance, 0, actual[i], numSamples, numSamples );
+        }
+        long accessorTime = timer.getTime();
+        long accessorAllocated = getAllocatedBytes() - allocated;
+
+        for ( int i = 0; i < vectors.size(); i++ ) {
+            assertThat( actual[i] ).containsExactly( expected[i] );
+        }
+        log.info( String.format( "Computed mean and variance of %d vectors: %d ms and %d bytes allocated by copying, %d ms and %d bytes allocated with an accessor.",
+                vectors.size(), copyingTime, copyingAllocated, accessorTime, accessorAllocated ) );
+        if ( copyingAllocated > 0 ) {
+            assertThat( accessorAllocated ).isLessThan( copyingAllocated );
+        }
+    }
+
+    private static double[] copyingMeanAndVariance( SingleCellExpressionDataVector vector, int numSamples ) {
+        ScaleType scaleType = vector.getQuantitationType().getScale();
+        double[] result = new double[2 * numSamples];
+        for ( int i = 0; i < numSamples; i++ ) {
+            result[i] = DataVectorDescriptive.mean( getSampleDataAsDoubles( vector, i ), scaleType );
+        }
+        for ( int i = 0; i < numSamples; i++ ) {
+            result[numSamples + i] = DataVectorDescriptive.sampleVariance( getSampleDataAsDoubles( vector, i ), scaleType );
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of bytes allocated by the current thread, or zero if this is not supported by the JVM
+     */
+    private static long getAllocatedBytes() {
+        if ( ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean ) {
+            return ( ( com.sun.management.ThreadMXBean ) ManagementFactory.getThreadMXBean() )
+                    .getThreadAllocatedBytes( Thread.currentThread().getId() );
+        }
+        return 0;
+    }
+}
@@ -223,8 +223,7 @@ public class SingleCellExpressionExperimentAggregatorServiceTest extends BaseTes
                 .thenReturn( Optional.of( cta ) );
         when( singleCellExpressionExperimentService.getPreferredSingleCellQuantitationType( ee ) )
                 .thenReturn( Optional.of( qt ) );
-        when( singleCellExpressionExperimentService.getSingleCellDataVectors( eq( ee ), eq( qt ), any() ) )
-                .thenReturn( vectors );
+        mockSingleCellVectors( qt, vectors );
 
         AggregateConfig config = AggregateConfig.builder().makePreferred( true ).build();
         QuantitationType newQt = singleCellExpressionExperimentAggregatorService.aggregateVectorsByCellType( ee, cellBAs, config );
@@ -328,8 +327,7 @@ public class SingleCellExpressionExperimentAggregatorServiceTest extends BaseTes
                 .thenReturn( Optional.of( cta ) );
         when( singleCellExpressionExperimentService.getPreferredSingleCellQuantitationType( ee ) )
                 .thenReturn( Optional.of( qt ) );
-        when( singleCellExpressionExperimentService.getSingleCellDataVectors( eq( ee ), eq( qt ), any() ) )
-                .thenReturn( vectors );
+        mockSingleCellVectors( qt, vectors );
 
         AggregateConfig config = AggregateConfig.builder()
                 .makePreferred( true )
@@ -428,8 +426,7 @@ public class SingleCellExpressionExperimentAggregatorServiceTest extends BaseTes
                 .thenReturn( Optional.of( cta ) );
         when( singleCellExpressionExperimentService.getPreferredSingleCellQuantitationType( ee ) )
                 .thenReturn( Optional.of( qt ) );
-        when( singleCellExpressionExperimentService.getSingleCellDataVectors( eq( ee ), eq( qt ), any() ) )
-                .thenReturn( vectors );
+        mockSingleCellVectors( qt, vectors );
 
         AggregateConfig config = AggregateConfig.builder().makePreferred( true ).build();
         QuantitationType newQt = singleCellExpressionExperimentAggregatorService.aggregateVectorsByCellType( ee, cellBAs, config );
@@ -473,8 +470,7 @@ public class SingleCellExpressionExperimentAggregatorServiceTest extends BaseTes
                 .thenReturn( Optional.of( cta ) );
         when( singleCellExpressionExperimentService.getPreferredSingleCellQuantitationType( ee ) )
                 .thenReturn( Optional.of( qt ) );
-        when( singleCellExpressionExperimentService.getSingleCellDataVectors( eq( ee ), eq( qt ), any() ) )
-                .thenReturn( vectors );
+        mockSingleCellVectors( qt, vectors );
 
         AggregateConfig config = AggregateConfig.builder().makePreferred( true ).build();
         QuantitationType newQt = singleCellExpressionExperimentAggregatorService.aggregateVectorsByCellType( ee, cellBAs, config );
@@ -515,8 +511,7 @@ public class SingleCellExpressionExperimentAggregatorServiceTest extends BaseTes
                 .thenReturn( Optional.of( cta ) );
         when( singleCellExpressionExperimentService.getPreferredSingleCellQuantitationType( ee ) )
                 .thenReturn( Optional.of( qt ) );
-        when( singleCellExpressionExperimentService.getSingleCellDataVectors( eq( ee ), eq( qt ), any() ) )
-                .thenReturn( vectors );
+        mockSingleCellVectors( qt, vectors );
 
         AggregateConfig config = AggregateConfig.builder().makePreferred( false ).build();
         QuantitationType newQt = singleCellExpressionExperimentAggregatorService.aggregateVectorsByCellType( ee, cellBAs, config );
@@ -560,8 +555,7 @@ public class SingleCellExpressionExperimentAggregatorServiceTest extends BaseTes
                 .thenReturn( Optional.of( cta ) );
         when( singleCellExpressionExperimentService.getPreferredSingleCellQuantitationType( ee ) )
                 .thenReturn( Optional.of( qt ) );
-        when( singleCellExpressionExperimentService.getSingleCellDataVectors( eq( ee ), eq( qt ), any() ) )
-                .thenReturn( vectors );
+        mockSingleCellVectors( qt, vectors );
 
         AggregateConfig config = AggregateConfig.builder().makePreferred( true ).build();
         assertThatThrownBy( () -> singleCellExpressionExperimentAggregatorService.aggregateVectorsByCellType( ee, cellBAs, config ) )
@@ -601,8 +595,7 @@ public class SingleCellExpressionExperimentAggregatorServiceTest extends BaseTes
                 .thenReturn( Optional.of( cta ) );
         when( singleCellExpressionExperimentService.getPreferredSingleCellQuantitationType( ee ) )
                 .thenReturn( Optional.of( qt ) );
-        when( singleCellExpressionExperimentService.getSingleCellDataVectors( eq( ee ), eq( qt ), any() ) )
-                .thenReturn( vectors );
+        mockSingleCellVectors( qt, vectors );
 
         AggregateConfig config = AggregateConfig.builder().makePreferred( true ).build();
         QuantitationType newQt = singleCellExpressionExperimentAggregatorService.aggregateVectorsByCellType( ee, cellBAs, config );
@@ -676,8 +669,7 @@ public class SingleCellExpressionExperimentAggregatorServiceTest extends BaseTes
                 .thenReturn( Optional.of( cta ) );
         when( singleCellExpressionExperimentService.getPreferredSingleCellQuantitationType( ee ) )
                 .thenReturn( Optional.of( qt ) );
-        when( singleCellExpressionExperimentService.getSingleCellDataVectors( eq( ee ), eq( qt ), any() ) )
-                .thenReturn( vectors );
+        mockSingleCellVectors( qt, vectors );
 
         // randomly mask 10% of the cells
         CellLevelCharacteristics mask = createMask( dimension, 0.1 );
@@ -712,6 +704,65 @@ public class SingleCellExpressionExperimentAggregatorServiceTest extends BaseTes
                 } );
     }
 
+    @Test
+    public void testAggregationWithMultipleThreads() {
+        QuantitationType qt = new QuantitationType();
+        qt.setName( "Counts" );
+        qt.setGeneralType( GeneralType.QUANTITATIVE );
+        qt.setType( StandardQuantitationType.COUNT );
+        qt.setScale( ScaleType.LOG1P );
+        qt.setRepresentation( PrimitiveType.DOUBLE );
+        for ( int i = 0; i < 99; i++ ) {
+            ad.getCompositeSequences().add( CompositeSequence.Factory.newInstance( "cs" + ( i + 2 ) ) );
+        }
+        List<SingleCellExpressionDataVector> vectors = randomSingleCellVectors( ee, ad, qt );
+        // log1p-transform the counts so that the order of the additions matters
+        for ( SingleCellExpressionDataVector vector : vectors ) {
+            double[] data = vector.getDataAsDoubles();
+            for ( int i = 0; i < data.length; i++ ) {
+                data[i] = Math.log1p( data[i] );
+            }
+            vector.setDataAsDoubles( data );
+        }
+        SingleCellDimension dimension = vectors.iterator().next().getSingleCellDimension();
+        CellTypeAssignment cta = createCellTypeAssignment( dimension );
+        dimension.getCellTypeAssignments().add( cta );
+        when( singleCellExpressionExperimentService.getPreferredCellTypeAssignment( ee, qt ) )
+                .thenReturn( Optional.of( cta ) );
+        when( singleCellExpressionExperimentService.getPreferredSingleCellQuantitationType( ee ) )
+                .thenReturn( Optional.of( qt ) );
+        mockSingleCellVectors( qt, vectors );
+
+        ArgumentCaptor<Collection<RawExpressionDataVector>> capt = ArgumentCaptor.captor();
+        singleCellExpressionExperimentAggregatorService.aggregateVectorsByCellType( ee, cellBAs, AggregateConfig.builder()
+                .makePreferred( true ).build() );
+        verify( expressionExperimentService ).addRawDataVectors( eq( ee ), any(), capt.capture() );
+        List<double[]> expected = capt.getValue().stream().map( RawExpressionDataVector::getDataAsDoubles ).collect( Collectors.toList() );
+        List<Long> expectedLibrarySizes = cellBAs.stream().map( BioAssay::getSequenceReadCount ).collect( Collectors.toList() );
+        List<Integer> expectedNumberOfCells = cellBAs.stream().map( BioAssay::getNumberOfCells ).collect( Collectors.toList() );
+        assertThat( expected ).hasSize( 100 );
+
+        // small batches, so that many of them are in flight at once
+        reset( expressionExperimentService );
+        when( expressionExperimentService.reload( any() ) ).thenAnswer( a -> a.getArgument( 0 ) );
+        singleCellExpressionExperimentAggregatorService.aggregateVectorsByCellType( ee, cellBAs, AggregateConfig.builder()
+                .makePreferred( true ).numThreads( 4 ).fetchSize( 3 ).build() );
+        verify( expressionExperimentService ).addRawDataVectors( eq( ee ), any(), capt.capture() );
+        assertThat( capt.getValue().stream().map( RawExpressionDataVector::getDataAsDoubles ) )
+                .containsExactlyElementsOf( expected );
+        assertThat( cellBAs ).extracting( BioAssay::getSequenceReadCount ).containsExactlyElementsOf( expectedLibrarySizes );
+        assertThat( cellBAs ).extracting( BioAssay::getNumberOfCells ).containsExactlyElementsOf( expectedNumberOfCells );
+    }
+
+    private void mockSingleCellVectors( QuantitationType qt, List<SingleCellExpressionDataVector> vectors ) {
+        when( singleCellExpressionExperimentService.getNumberOfSingleCellDataVectors( ee, qt ) )
+                .thenReturn( ( long ) vectors.size() );
+        when( singleCellExpressionExperimentService.getSingleCellDimensionWithoutCellIds( ee, qt ) )
+                .thenReturn( vectors.iterator().next().getSingleCellDimension() );
+        when( singleCellExpressionExperimentService.streamSingleCellDataVectors( eq( ee ), eq( qt ), anyInt(), anyBoolean(), eq( false ), any( SingleCellExpressionExperimentService.SingleCellVectorInitializationConfig.class ) ) )
+                .thenAnswer( a -> vectors.stream() );
+    }
+
     private CellTypeAssignment createCellTypeAssignment( SingleCellDimension dimension ) {
         CellTypeAssignment cta = new CellTypeAssignment();
         int[] indices = new int[dimension.getNumberOfCells()];
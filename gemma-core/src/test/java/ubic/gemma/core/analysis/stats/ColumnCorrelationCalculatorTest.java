@@ -0,0 +1,104 @@
+package ubic.gemma.core.analysis.stats;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class ColumnCorrelationCalculatorTest {
+
+    @Test
+    public void testCorrelate() {
+        double[][] data = randomMatrix( 500, 70, 0.0 );
+        assertThatCorrelationIsCorrect( data, ColumnCorrelationCalculator.correlate( data, 1 ) );
+        assertThatCorrelationIsCorrect( data, ColumnCorrelationCalculator.correlate( data, 4 ) );
+    }
+
+    @Test
+    public void testCorrelateWithMissingValues() {
+        double[][] data = randomMatrix( 2500, 70, 0.1 );
+        // a column without missing values next to ones with missing values
+        for ( double[] row : data ) {
+            if ( Double.isNaN( row[3] ) ) {
+                row[3] = 10.0;
+            }
+        }
+        assertThatCorrelationIsCorrect( data, ColumnCorrelationCalculator.correlate( data, 1 ) );
+        assertThatCorrelationIsCorrect( data, ColumnCorrelationCalculator.correlate( data, 4 ) );
+    }
+
+    @Test
+    public void testCorrelateWithConstantOrMissingColumns() {
+        double[][] data = randomMatrix( 100, 5, 0.0 );
+        for ( double[] row : data ) {
+            row[1] = 2.0;
+            row[3] = Double.NaN;
+        }
+        data[0][4] = Double.NaN;
+        double[][] cormat = ColumnCorrelationCalculator.correlate( data, 1 );
+        assertThat( cormat[0][1] ).isNaN();
+        assertThat( cormat[1][4] ).isNaN();
+        assertThat( cormat[3][0] ).isNaN();
+        assertThat( cormat[1][1] ).isEqualTo( 1.0 );
+        assertThat( cormat[3][3] ).isEqualTo( 1.0 );
+        assertThat( cormat[0][4] ).isCloseTo( naiveCorrelation( data, 0, 4 ), within( 1e-10 ) );
+    }
+
+    @Test
+    public void testCorrelateEmptyMatrix() {
+        assertThat( ColumnCorrelationCalculator.correlate( new double[0][0], 2 ) ).isEmpty();
+    }
+
+    private void assertThatCorrelationIsCorrect( double[][] data, double[][] cormat ) {
+        int numCols = data[0].length;
+        assertThat( cormat ).hasDimensions( numCols, numCols );
+        for ( int i = 0; i < numCols; i++ ) {
+            assertThat( cormat[i][i] ).isEqualTo( 1.0 );
+            for ( int j = i + 1; j < numCols; j++ ) {
+                assertThat( cormat[i][j] )
+                        .isCloseTo( naiveCorrelation( data, i, j ), within( 1e-10 ) )
+                        .isEqualTo( cormat[j][i] );
+            }
+        }
+    }
+
+    private double[][] randomMatrix( int numRows, int numCols, double missingFraction ) {
+        Random random = new Random( 123L );
+        double[][] data = new double[numRows][numCols];
+        for ( int r = 0; r < numRows; r++ ) {
+            for ( int c = 0; c < numCols; c++ ) {
+                // shared signal to produce non-trivial correlations
+                data[r][c] = random.nextDouble() < missingFraction ? Double.NaN : 10.0 + r % 7 + random.nextGaussian();
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Pearson correlation over pairwise complete observations.
+     */
+    private double naiveCorrelation( double[][] data, int i, int j ) {
+        double mx = 0, my = 0;
+        int n = 0;
+        for ( double[] row : data ) {
+            if ( !Double.isNaN( row[i] ) && !Double.isNaN( row[j] ) ) {
+                mx += row[i];
+                my += row[j];
+                n++;
+            }
+        }
+        mx /= n;
+        my /= n;
+        double sxy = 0, sxx = 0, syy = 0;
+        for ( double[] row : data ) {
+            if ( !Double.isNaN( row[i] ) && !Double.isNaN( row[j] ) ) {
+                sxy += ( row[i] - mx ) * ( row[j] - my );
+                sxx += ( row[i] - mx ) * ( row[i] - mx );
+                syy += ( row[j] - my ) * ( row[j] - my );
+            }
+        }
+        return sxy / Math.sqrt( sxx * syy );
+    }
+}
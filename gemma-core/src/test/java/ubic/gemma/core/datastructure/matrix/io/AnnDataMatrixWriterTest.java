@@ -0,0 +1,81 @@
+package ubic.gemma.core.datastructure.matrix.io;
+
+import org.apache.commons.io.file.PathUtils;
+import org.junit.Test;
+import ubic.gemma.core.analysis.preprocess.convert.ScaleTypeConversionUtils;
+import ubic.gemma.core.analysis.preprocess.convert.UnsupportedQuantitationTypeConversionException;
+import ubic.gemma.core.loader.util.anndata.AnnData;
+import ubic.gemma.core.loader.util.anndata.Dataframe;
+import ubic.gemma.core.loader.util.anndata.Layer;
+import ubic.gemma.core.loader.util.anndata.SparseMatrix;
+import ubic.gemma.model.common.quantitationtype.ScaleType;
+import ubic.gemma.model.expression.bioAssayData.SingleCellExpressionDataVector;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static ubic.gemma.persistence.service.expression.bioAssayData.RandomSingleCellDataUtils.randomSingleCellVectors;
+
+public class AnnDataMatrixWriterTest {
+
+    @Test
+    public void testWriteDoubleVectorsToDisk() throws IOException {
+        Collection<SingleCellExpressionDataVector> vectors = randomSingleCellVectors( 100, 4, 1000, 0.9, ScaleType.LINEAR );
+        SingleCellExpressionDataVector firstVec = vectors.iterator().next();
+        long nnz = vectors.stream().mapToLong( v -> v.getDataIndices().length ).sum();
+        Path outDir = Files.createTempDirectory( null );
+        try {
+            Path outFile = outDir.resolve( "test.h5ad" );
+            AnnDataMatrixWriter writer = new AnnDataMatrixWriter();
+            assertThat( writer.write( vectors.stream(), vectors.size(), null, outFile ) )
+                    .isEqualTo( 100 );
+            try ( AnnData ad = AnnData.open( outFile ) ) {
+                try ( Dataframe<?> obs = ad.getObs() ) {
+                    assertThat( obs.getColumns() ).containsExactlyInAnyOrder( "_index", "sample" );
+                    assertThat( obs.getColumn( "_index" ).size() ).isEqualTo( 4000 );
+                    assertThat( obs.getColumn( "sample" ).uniqueValues() ).hasSize( 4 );
+                }
+                try ( Dataframe<?> var = ad.getVar() ) {
+                    assertThat( var.getColumns() ).containsExactlyInAnyOrder( "_index", "gene_symbols", "ensembl_ids" );
+                    assertThat( var.getColumn( "_index" ).size() ).isEqualTo( 100 );
+                }
+                Layer x = ad.getX();
+                assertThat( x ).isNotNull();
+                try ( SparseMatrix matrix = x.getSparseMatrix() ) {
+                    assertThat( matrix.isCsc() ).isTrue();
+                    assertThat( matrix.getShape() ).containsExactly( 4000, 100 );
+                    assertThat( matrix.getIndptr() ).hasSize( 101 ).endsWith( nnz );
+                    assertThat( matrix.getData().toDoubleVector() )
+                            .startsWith( firstVec.getDataAsDoubles() );
+                    assertThat( matrix.getIndices().toIntegerVector() )
+                            .startsWith( firstVec.getDataIndices() );
+                }
+            }
+        } finally {
+            PathUtils.deleteDirectory( outDir );
+        }
+    }
+
+    @Test
+    public void testWriteVectorsWithScaleConversion() throws IOException, UnsupportedQuantitationTypeConversionException {
+        Collection<SingleCellExpressionDataVector> vectors = randomSingleCellVectors( 100, 4, 1000, 0.9, ScaleType.LINEAR );
+        SingleCellExpressionDataVector firstVec = vectors.iterator().next();
+        Path outDir = Files.createTempDirectory( null );
+        try {
+            Path outFile = outDir.resolve( "test.h5ad" );
+            AnnDataMatrixWriter writer = new AnnDataMatrixWriter();
+            writer.setScaleType( ScaleType.LOG2 );
+            writer.setCompressionLevel( 0 );
+            writer.write( vectors.stream(), vectors.size(), null, outFile );
+            try ( AnnData ad = AnnData.open( outFile ); SparseMatrix matrix = ad.getX().getSparseMatrix() ) {
+                assertThat( matrix.getData().toDoubleVector() )
+                        .startsWith( ScaleTypeConversionUtils.convertData( firstVec, ScaleType.LOG2 ) );
+            }
+        } finally {
+            PathUtils.deleteDirectory( outDir );
+        }
+    }
+}
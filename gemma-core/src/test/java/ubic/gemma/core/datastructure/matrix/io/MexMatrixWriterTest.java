@@ -24,6 +24,7 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 import java.util.stream.Collectors;
 import java.util.zip.GZIPInputStream;
 
@@ -388,80 +389,127 @@ public class MexMatrixWriterTest {
     }
 
     @Test
-    public void testWriteMatrixToDisk() throws IOException {
-        writer.setExecutorService( Executors.newFixedThreadPool( 4 ) );
-        Collection<SingleCellExpressionDataVector> vectors = randomSingleCellVectors( numDesignElements, 8, numCellsPerBioAssay, 0.9, ScaleType.COUNT );
+    public void testWriteVectorsToDiskInParallelBlocks() throws IOException {
+        Collection<SingleCellExpressionDataVector> vectors = randomSingleCellVectors( numDesignElements, 8, numCellsPerBioAssay, 0.9, ScaleType.LINEAR );
         ExpressionExperiment ee = vectors.iterator().next().getExpressionExperiment();
         Path outDir = Files.createTempDirectory( null );
         try {
-            writer.write( new SingleCellExpressionDataDoubleMatrix( vectors ), null, outDir.resolve( "test" ) );
+            Map<BioAssay, Long> nnzBySample = ee.getBioAssays().stream().collect( Collectors.toMap( ba -> ba, ba -> ( long ) nnz ) );
+            writer.write( vectors.stream(), vectors.size(), nnzBySample, null, outDir.resolve( "sequential" ) );
+            ExecutorService executor = Executors.newFixedThreadPool( 4 );
+            try {
+                MexMatrixWriter parallelWriter = new MexMatrixWriter();
+                parallelWriter.setExecutorService( executor );
+                parallelWriter.setBlockSize( 100 );
+                parallelWriter.setMaxPendingBlocks( 4 );
+                parallelWriter.write( vectors.stream(), vectors.size(), nnzBySample, null, outDir.resolve( "parallel" ) );
+                // blocks are submitted early when too many non-zeroes are buffered across samples
+                MexMatrixWriter boundedWriter = new MexMatrixWriter();
+                boundedWriter.setExecutorService( executor );
+                boundedWriter.setBlockSize( 1000 );
+                boundedWriter.setMaxBufferedNnz( 250 );
+                boundedWriter.write( vectors.stream(), vectors.size(), nnzBySample, null, outDir.resolve( "bounded" ) );
+            } finally {
+                executor.shutdown();
+            }
             for ( BioAssay ba : ee.getBioAssays() ) {
                 String dirName = formatBioAssayFilename( ba );
-                assertThat( outDir )
-                        .isDirectoryRecursivelyContaining( "glob:**/" + dirName + "/features.tsv.gz" )
-                        .isDirectoryRecursivelyContaining( "glob:**/" + dirName + "/barcodes.tsv.gz" )
-                        .isDirectoryRecursivelyContaining( "glob:**/" + dirName + "/matrix.mtx.gz" );
-                assertThat( new GZIPInputStream( Files.newInputStream( outDir.resolve( "test" ).resolve( dirName ).resolve( "features.tsv.gz" ) ) ) )
-                        .asString( StandardCharsets.UTF_8 ).hasLineCount( numDesignElements );
-                assertThat( new GZIPInputStream( Files.newInputStream( outDir.resolve( "test" ).resolve( dirName ).resolve( "barcodes.tsv.gz" ) ) ) )
-                        .asString( StandardCharsets.UTF_8 ).hasLineCount( numCellsPerBioAssay );
-                try ( MatrixVectorReader mvr = new MatrixVectorReader( new InputStreamReader( new GZIPInputStream( Files.newInputStream( outDir.resolve( "test" ).resolve( dirName ).resolve( "matrix.mtx.gz" ) ) ) ) ) ) {
-                    MatrixInfo mi = mvr.readMatrixInfo();
-                    assertThat( mi.isReal() ).isTrue();
-                    MatrixSize size = mvr.readMatrixSize( mi );
-                    assertThat( size.numRows() ).isEqualTo( numDesignElements );
-                    assertThat( size.numColumns() ).isEqualTo( numCellsPerBioAssay );
-                    assertThat( size.numEntries() ).isEqualTo( nnz );
-                    int[] rows = new int[size.numEntries()], cols = new int[size.numEntries()];
-                    double[] data = new double[size.numEntries()];
-                    mvr.readCoordinate( rows, cols, data );
-                    assertThat( data ).hasSize( nnz );
-                }
+                // the parallel output is made of many gzip members, but must decompress to the same content
+                assertThat( new GZIPInputStream( Files.newInputStream( outDir.resolve( "parallel" ).resolve( dirName ).resolve( "matrix.mtx.gz" ) ) ) )
+                        .hasSameContentAs( new GZIPInputStream( Files.newInputStream( outDir.resolve( "sequential" ).resolve( dirName ).resolve( "matrix.mtx.gz" ) ) ) );
+                assertThat( new GZIPInputStream( Files.newInputStream( outDir.resolve( "bounded" ).resolve( dirName ).resolve( "matrix.mtx.gz" ) ) ) )
+                        .hasSameContentAs( new GZIPInputStream( Files.newInputStream( outDir.resolve( "sequential" ).resolve( dirName ).resolve( "matrix.mtx.gz" ) ) ) );
             }
         } finally {
             PathUtils.deleteDirectory( outDir );
         }
     }
 
+    @Test
+    public void testWriteMatrixToDisk() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool( 4 );
+        try {
+            writer.setExecutorService( executor );
+            Collection<SingleCellExpressionDataVector> vectors = randomSingleCellVectors( numDesignElements, 8, numCellsPerBioAssay, 0.9, ScaleType.COUNT );
+            ExpressionExperiment ee = vectors.iterator().next().getExpressionExperiment();
+            Path outDir = Files.createTempDirectory( null );
+            try {
+                writer.write( new SingleCellExpressionDataDoubleMatrix( vectors ), null, outDir.resolve( "test" ) );
+                for ( BioAssay ba : ee.getBioAssays() ) {
+                    String dirName = formatBioAssayFilename( ba );
+                    assertThat( outDir )
+                            .isDirectoryRecursivelyContaining( "glob:**/" + dirName + "/features.tsv.gz" )
+                            .isDirectoryRecursivelyContaining( "glob:**/" + dirName + "/barcodes.tsv.gz" )
+                            .isDirectoryRecursivelyContaining( "glob:**/" + dirName + "/matrix.mtx.gz" );
+                    assertThat( new GZIPInputStream( Files.newInputStream( outDir.resolve( "test" ).resolve( dirName ).resolve( "features.tsv.gz" ) ) ) )
+                            .asString( StandardCharsets.UTF_8 ).hasLineCount( numDesignElements );
+                    assertThat( new GZIPInputStream( Files.newInputStream( outDir.resolve( "test" ).resolve( dirName ).resolve( "barcodes.tsv.gz" ) ) ) )
+                            .asString( StandardCharsets.UTF_8 ).hasLineCount( numCellsPerBioAssay );
+                    try ( MatrixVectorReader mvr = new MatrixVectorReader( new InputStreamReader( new GZIPInputStream( Files.newInputStream( outDir.resolve( "test" ).resolve( dirName ).resolve( "matrix.mtx.gz" ) ) ) ) ) ) {
+                        MatrixInfo mi = mvr.readMatrixInfo();
+                        assertThat( mi.isReal() ).isTrue();
+                        MatrixSize size = mvr.readMatrixSize( mi );
+                        assertThat( size.numRows() ).isEqualTo( numDesignElements );
+                        assertThat( size.numColumns() ).isEqualTo( numCellsPerBioAssay );
+                        assertThat( size.numEntries() ).isEqualTo( nnz );
+                        int[] rows = new int[size.numEntries()], cols = new int[size.numEntries()];
+                        double[] data = new double[size.numEntries()];
+                        mvr.readCoordinate( rows, cols, data );
+                        assertThat( data ).hasSize( nnz );
+                    }
+                }
+            } finally {
+                PathUtils.deleteDirectory( outDir );
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     @Test
     public void testWriteToDiskAndConvert() throws IOException {
-        writer.setScaleType( ScaleType.LOG1P );
-        writer.setExecutorService( Executors.newFixedThreadPool( 4 ) );
-        QuantitationType qt = new QuantitationType();
-        qt.setGeneralType( GeneralType.QUANTITATIVE );
-        qt.setType( StandardQuantitationType.COUNT );
-        qt.setScale( ScaleType.COUNT );
-        qt.setRepresentation( PrimitiveType.INT );
-        Collection<SingleCellExpressionDataVector> vectors = randomSingleCellVectors( numDesignElements, 8, numCellsPerBioAssay, 0.9, qt );
-        ExpressionExperiment ee = vectors.iterator().next().getExpressionExperiment();
-        Path outDir = Files.createTempDirectory( null );
+        ExecutorService executor = Executors.newFixedThreadPool( 4 );
         try {
-            writer.write( new SingleCellExpressionDataIntMatrix( vectors ), null, outDir.resolve( "test" ) );
-            for ( BioAssay ba : ee.getBioAssays() ) {
-                String dirName = formatBioAssayFilename( ba );
-                assertThat( outDir )
-                        .isDirectoryRecursivelyContaining( "glob:**/" + dirName + "/features.tsv.gz" )
-                        .isDirectoryRecursivelyContaining( "glob:**/" + dirName + "/barcodes.tsv.gz" )
-                        .isDirectoryRecursivelyContaining( "glob:**/" + dirName + "/matrix.mtx.gz" );
-                assertThat( new GZIPInputStream( Files.newInputStream( outDir.resolve( "test" ).resolve( dirName ).resolve( "features.tsv.gz" ) ) ) )
-                        .asString( StandardCharsets.UTF_8 ).hasLineCount( numDesignElements );
-                assertThat( new GZIPInputStream( Files.newInputStream( outDir.resolve( "test" ).resolve( dirName ).resolve( "barcodes.tsv.gz" ) ) ) )
-                        .asString( StandardCharsets.UTF_8 ).hasLineCount( numCellsPerBioAssay );
-                try ( MatrixVectorReader mvr = new MatrixVectorReader( new InputStreamReader( new GZIPInputStream( Files.newInputStream( outDir.resolve( "test" ).resolve( dirName ).resolve( "matrix.mtx.gz" ) ) ) ) ) ) {
-                    MatrixInfo mi = mvr.readMatrixInfo();
-                    assertThat( mi.isReal() ).isTrue();
-                    MatrixSize size = mvr.readMatrixSize( mi );
-                    assertThat( size.numRows() ).isEqualTo( numDesignElements );
-                    assertThat( size.numColumns() ).isEqualTo( numCellsPerBioAssay );
-                    assertThat( size.numEntries() ).isEqualTo( nnz );
-                    int[] rows = new int[size.numEntries()], cols = new int[size.numEntries()];
-                    double[] data = new double[size.numEntries()];
-                    mvr.readCoordinate( rows, cols, data );
-                    assertThat( data ).hasSize( nnz );
+            writer.setExecutorService( executor );
+            writer.setScaleType( ScaleType.LOG1P );
+            QuantitationType qt = new QuantitationType();
+            qt.setGeneralType( GeneralType.QUANTITATIVE );
+            qt.setType( StandardQuantitationType.COUNT );
+            qt.setScale( ScaleType.COUNT );
+            qt.setRepresentation( PrimitiveType.INT );
+            Collection<SingleCellExpressionDataVector> vectors = randomSingleCellVectors( numDesignElements, 8, numCellsPerBioAssay, 0.9, qt );
+            ExpressionExperiment ee = vectors.iterator().next().getExpressionExperiment();
+            Path outDir = Files.createTempDirectory( null );
+            try {
+                writer.write( new SingleCellExpressionDataIntMatrix( vectors ), null, outDir.resolve( "test" ) );
+                for ( BioAssay ba : ee.getBioAssays() ) {
+                    String dirName = formatBioAssayFilename( ba );
+                    assertThat( outDir )
+                            .isDirectoryRecursivelyContaining( "glob:**/" + dirName + "/features.tsv.gz" )
+                            .isDirectoryRecursivelyContaining( "glob:**/" + dirName + "/barcodes.tsv.gz" )
+                            .isDirectoryRecursivelyContaining( "glob:**/" + dirName + "/matrix.mtx.gz" );
+                    assertThat( new GZIPInputStream( Files.newInputStream( outDir.resolve( "test" ).resolve( dirName ).resolve( "features.tsv.gz" ) ) ) )
+                            .asString( StandardCharsets.UTF_8 ).hasLineCount( numDesignElements );
+                    assertThat( new GZIPInputStream( Files.newInputStream( outDir.resolve( "test" ).resolve( dirName ).resolve( "barcodes.tsv.gz" ) ) ) )
+                            .asString( StandardCharsets.UTF_8 ).hasLineCount( numCellsPerBioAssay );
+                    try ( MatrixVectorReader mvr = new MatrixVectorReader( new InputStreamReader( new GZIPInputStream( Files.newInputStream( outDir.resolve( "test" ).resolve( dirName ).resolve( "matrix.mtx.gz" ) ) ) ) ) ) {
+                        MatrixInfo mi = mvr.readMatrixInfo();
+                        assertThat( mi.isReal() ).isTrue();
+                        MatrixSize size = mvr.readMatrixSize( mi );
+                        assertThat( size.numRows() ).isEqualTo( numDesignElements );
+                        assertThat( size.numColumns() ).isEqualTo( numCellsPerBioAssay );
+                        assertThat( size.numEntries() ).isEqualTo( nnz );
+                        int[] rows = new int[size.numEntries()], cols = new int[size.numEntries()];
+                        double[] data = new double[size.numEntries()];
+                        mvr.readCoordinate( rows, cols, data );
+                        assertThat( data ).hasSize( nnz );
+                    }
                 }
+            } finally {
+                PathUtils.deleteDirectory( outDir );
             }
         } finally {
-            PathUtils.deleteDirectory( outDir );
+            executor.shutdown();
         }
     }
 }
\ No newline at end of file
@@ -18,6 +18,7 @@
  */
 package ubic.gemma.core.loader.expression.geo;
 
+import org.apache.commons.lang3.StringUtils;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -117,6 +118,33 @@ public class GeoFamilyParserTest {
         Assert.assertEquals( 4, sample.getColumnNames().size() ); // includes ones we aren't using.
     }
 
+    @Test
+    public void testParseWithDifferentNumberOfThreads() throws Exception {
+        String expected = null;
+        for ( int numberOfThreads : new int[] { 1, 4 } ) {
+            parser = new GeoFamilyParser();
+            parser.setNumberOfThreads( numberOfThreads );
+            try ( InputStream is = new GZIPInputStream(
+                    new ClassPathResource( "/data/loader/expression/geo/fullSizeTests/GSE1623_family.soft.txt.gz" ).getInputStream() ) ) {
+                parser.parse( is );
+            }
+            GeoSeries series = parser.getResults().iterator().next().getSeries().values().iterator().next();
+            String values = series.getValues().toString();
+            if ( expected == null ) {
+                expected = values;
+            } else {
+                Assert.assertEquals( expected, values );
+            }
+        }
+    }
+
+    @Test
+    public void testSplitTabs() {
+        for ( String line : new String[] { "a", "a\tb", "\t", "a\t\tb\t", "\t\ta" } ) {
+            Assert.assertArrayEquals( StringUtils.splitPreserveAllTokens( line, '\t' ), GeoFamilyParser.splitTabs( line ) );
+        }
+    }
+
     @Before
     public void setUp() {
         parser = new GeoFamilyParser();
@@ -0,0 +1,137 @@
+package ubic.gemma.core.loader.expression.geo.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class GeoValuesTest {
+
+    private static final String[] VALUES = {
+            "12", "-0.250", "0.05", "1E-5", "null", "-0", "007", "5.", ".5", "", " ", "3.14159", "123456789012345678",
+            "-12.5", "NaN", "P"
+    };
+
+    private GeoPlatform platform;
+    private GeoSample sample1, sample2, sample3;
+
+    @Before
+    public void setUp() {
+        platform = new GeoPlatform();
+        platform.setGeoAccession( "GPL1" );
+        platform.setTechnology( GeoDataset.PlatformType.singleChannel );
+        sample1 = createSample( "GSM1" );
+        sample2 = createSample( "GSM2" );
+        sample3 = createSample( "GSM3" );
+    }
+
+    @Test
+    public void testAddAndGetValues() {
+        GeoValues values = new GeoValues();
+        values.addQuantitationType( platform, "VALUE", 0 );
+        for ( int i = 0; i < VALUES.length; i++ ) {
+            values.addValue( sample1, 0, "probe" + i, VALUES[i] );
+        }
+        values.validate();
+        for ( int i = 0; i < VALUES.length; i++ ) {
+            values.addValue( sample2, 0, "probe" + i, String.valueOf( i ) );
+        }
+        values.validate();
+
+        Integer[] indices = values.getIndices( platform, Arrays.asList( sample2, sample1 ), 0 );
+        assertThat( indices ).containsExactly( 1, 0 );
+        for ( int i = 0; i < VALUES.length; i++ ) {
+            assertThat( values.getValues( platform, 0, "probe" + i, indices ) )
+                    .containsExactly( String.valueOf( i ), VALUES[i] );
+        }
+        assertThat( values.getValues( platform, 0, "probe0" ) )
+                .containsExactly( "12", "0" );
+        assertThat( values.getValues( platform, 0, "unknownProbe", indices ) ).isNull();
+        assertThat( values.getQuantitationTypes( platform ) ).containsExactly( 0 );
+    }
+
+    @Test
+    public void testMissingValuesArePadded() {
+        GeoValues values = new GeoValues();
+        values.addQuantitationType( platform, "VALUE", 0 );
+        values.addValue( sample1, 0, "probe1", "1.0" );
+        values.addValue( sample1, 0, "probe2", "2.0" );
+        values.validate();
+        // probe1 is missing for the second sample
+        values.addValue( sample2, 0, "probe2", "4.0" );
+        values.validate();
+        values.addValue( sample3, 0, "probe1", "5.0" );
+        values.addValue( sample3, 0, "probe2", "6.0" );
+        values.validate();
+
+        Integer[] indices = values.getIndices( platform, Arrays.asList( sample1, sample2, sample3 ), 0 );
+        assertThat( values.getValues( platform, 0, "probe1", indices ) )
+                .containsExactly( "1.0", null, "5.0" );
+        assertThat( values.getValues( platform, 0, "probe2", indices ) )
+                .containsExactly( "2.0", "4.0", "6.0" );
+    }
+
+    @Test
+    public void testDuplicatedDesignElement() {
+        GeoValues values = new GeoValues();
+        values.addQuantitationType( platform, "VALUE", 0 );
+        values.addValue( sample1, 0, "probe1", "1.0" );
+        values.addValue( sample1, 0, "probe1", "2.0" );
+        assertThatThrownBy( values::validate )
+                .isInstanceOf( IllegalStateException.class )
+                .hasMessageContaining( "designelement=probe1" );
+    }
+
+    @Test
+    public void testSubset() {
+        GeoValues values = new GeoValues();
+        values.addQuantitationType( platform, "VALUE", 0 );
+        values.addValue( sample1, 0, "probe1", "1.0" );
+        values.addValue( sample2, 0, "probe1", "2.0" );
+        values.addValue( sample3, 0, "probe1", "3.0" );
+        values.validate();
+
+        GeoValues subset = values.subset( Arrays.asList( sample1, sample3 ) );
+        Integer[] indices = subset.getIndices( platform, Arrays.asList( sample3, sample1 ), 0 );
+        assertThat( subset.getValues( platform, 0, "probe1", indices ) )
+                .containsExactly( "3.0", "1.0" );
+    }
+
+    @Test
+    public void testPackRestoresPlainDecimals() {
+        Random random = new Random( 123L );
+        for ( int i = 0; i < 100000; i++ ) {
+            String s;
+            if ( random.nextBoolean() ) {
+                s = Long.toString( random.nextLong() >> random.nextInt( 64 ) );
+            } else {
+                s = new BigDecimal( random.nextGaussian() * Math.pow( 10, random.nextInt( 12 ) - 4 ) )
+                        .setScale( random.nextInt( 8 ), RoundingMode.HALF_UP )
+                        .toPlainString();
+            }
+            long packed = GeoValues.Column.pack( s );
+            if ( packed != GeoValues.Column.NOT_PACKABLE ) {
+                assertThat( GeoValues.Column.unpack( packed ) ).isEqualTo( s );
+            }
+        }
+        assertThat( GeoValues.Column.unpack( GeoValues.Column.pack( "-0.05" ) ) ).isEqualTo( "-0.05" );
+        for ( String s : new String[] { "-0", "-0.0", "007", "5.", ".5", "", "-", "1E-5", "1.2.3", "NaN", "99999999999999999999" } ) {
+            assertThat( GeoValues.Column.pack( s ) )
+                    .describedAs( s )
+                    .isEqualTo( GeoValues.Column.NOT_PACKABLE );
+        }
+    }
+
+    private GeoSample createSample( String accession ) {
+        GeoSample sample = new GeoSample();
+        sample.setGeoAccession( accession );
+        sample.addPlatform( platform );
+        return sample;
+    }
+}
@@ -331,7 +331,7 @@ public class AnnDataSingleCellDataLoaderTest {
                             assertThat( vector.getDataAsDoubles() )
                                     .hasSize( 60 )
                                     .usingComparatorWithPrecision( 0.00000001 )
-                                    .containsExactly( 1.3746704255794753, 0.3528762689055167, 1.2686111607353916, 0.8369941121819804, 0.8096822440089331, 1.189743096791675, 0.3554619839116539, 0.7549583134112616, 1.0395058886552426, 0.6767597674068522, 0.9992692732369385, 0.39051215823682767, 0.5028740781699685, 0.5704111114098488, 0.7122815983068315, 1.0005248669579279, 0.9017513483943169, 1.4048782927520853, 0.7246730672907271, 1.1954195609383826, 0.9042812403576517, 0.7186910883498587, 0.8754570708525086, 0.7727145540332053, 0.23376983378330393, 1.3960480771579002, 0.6050393661256476, 0.8148388704750358, 0.5459014185781306, 0.6340705809018696, 1.208930533226765, 0.7653234520936772, 0.8287030575836597, 0.8682524973241574, 0.8420750270558868, 0.7013980942153507, 1.507802159022156, 0.9080604772845193, 0.6027463528053245, 0.748796847566076, 0.7101189007663451, 1.021765039066014, 0.8028628966055134, 0.8064426530224313, 0.39845672834965723, 0.7365002604921542, 0.6033648257916698, 0.5554795302904862, 1.1330746770067306, 0.0, 0.7088592671395884, 0.6152600808118198, 1.5843188523387683, 0.7178833324887561, 1.1720673685656684, 0.5266727695315606, 0.0, 0.5817358478762545, 0.6674277001523695, 0.4217527063654217 );
+                                    .containsExactly( 0.32058679343687807, 2.489041734935803, 1.0352715246016675, 2.100010684718088, 2.446798480282353, 2.972731254345479, 3.0836587599890892, 2.3763581876539868, 1.1083054178737692, 1.9492174280771368, 2.5060311893290903, 0.5352290162772927, 0.3279202269027818, 3.057954473115221, 0.7420905921004042, 2.744449036302547, 2.6645745908692153, 1.244037334787663, 1.5826264447810388, 2.848261861768566, 0.8183093921425209, 0.9549351156322151, 0.30258347859403356, 3.1336043780201055, 2.444953247551195, 1.4333802215107896, 1.497885426528353, 2.4036292334626896, 2.4600472475862274, 0.0, 2.20393709026688, 0.2827519601785218, 2.7866778182210394, 0.5208909971004136, 2.2043674648485996, 2.2353799155010177, 3.135800353999809, 3.2822055921734217, 0.40255312722848324, 2.3157401931160932, 2.772120096709859, 2.959147935854633, 2.721262731093644, 0.3149509706753488, 0.9396515279365568, 1.8335796513328328, 3.0100527336155403, 3.1892936180974534, 2.4867649386327493, 1.1030317414217965, 0.7231815080025367, 1.4673635521518809, 2.643517485539627, 0.8131763399870034, 1.796916922011614, 2.372271206532833, 3.550793348702048, 2.780722676927545, 2.132907559546073, 3.0912238350096723 );
                             assertThat( vector.getDataIndices() )
                                     .hasSize( 60 )
                                     .containsExactly( 0, 1, 2, 4, 6, 7, 9, 10, 11, 12, 13, 14, 15, 19, 20, 22,
@@ -384,7 +384,7 @@ public class AnnDataSingleCellDataLoaderTest {
                         assertThat( v.getDesignElement().getName() ).isEqualTo( "SLCO3A1" );
                         assertThat( v.getDataAsDoubles() )
                                 .usingComparatorWithPrecision( 0.00000001 )
-                                .containsExactly( 0.6739648514595455, 0.7677706254995275, 0.6383317723172576, 0.5878103695891294, 0.8011261489030318, 0.0, 1.3309770937292646, 0.5760162923898698, 0.5934602352497815, 0.9103620079492927, 1.0648371080601746, 0.9262942145070746, 0.7022630667714341, 1.0986789597795417, 0.8775858333963932, 0.8038433069152187, 1.2648576336817823, 0.7208544003194703, 0.9766299840448736, 0.0, 0.7585615525610088, 1.1335982621532354, 0.6050393661256476 );
+                                .containsExactly( 0.0, 0.716112915252836, 2.214778478482705, 0.5758798972565586, 1.9506393066224583, 2.548130973103208, 2.651496115198279, 2.459775324928163, 1.6131459781510926, 0.8223473134665759, 0.0, 2.7186720282817123, 0.7766673371829081, 1.900744185763727, 1.2565256720442, 3.138752172049673, 2.201323948120984, 2.7090047956795558, 3.074207781957206, 2.3211079335334817, 2.734023472933365, 2.1883847407670785, 2.486512338858759 );
                         assertThat( v.getDataIndices() )
                                 .containsExactly( 0, 1, 5, 6, 7, 8, 10, 12, 13, 15, 16, 17, 18, 19, 25, 26, 27, 28, 29, 30, 31, 32, 33 );
                     } );
@@ -434,7 +434,7 @@ public class AnnDataSingleCellDataLoaderTest {
                             assertThat( vector.getDataAsDoubles() )
                                     .hasSize( 779 )
                                     .usingComparatorWithPrecision( 0.00000001 )
-                                    .containsExactly( 0.7977567735549889, 0.7774502838894912, 1.2316817727254563, 0.7256343394218843, 0.47168976718586614, 1.0033539299428842, 0.0, 0.7379785938566755, 0.7394059290476955, 0.9079427849759827, 1.0322366290897975, 0.663522462775021, 0.4275831912506782, 0.5244118960779243, 0.34817194302493165, 0.8746412363014412, 0.1788203003178712, 0.6613380041051704, 0.9089442092350636, 0.9681946514857853, 0.6889240964050705, 0.7993029735361683, 0.8535172872879357, 1.0674768450836833, 0.684802895346009, 1.1478667878225994, 1.0568277510819086, 1.167091205285706, 0.5444087455876303, 1.7542917723050881, 1.4845477697547902, 1.5607154660620601, 0.8932273829432321, 0.8775858333963932, 0.8038433069152187, 1.2648576336817823, 0.7208544003194703, 0.9766299840448736, 0.0, 0.7585615525610088, 1.1335982621532354, 0.6050393661256476, 0.6980327325979178, 0.26480535802192146, 0.23899989381239284, 0.763177721047326, 0.8789836794613445, 0.24147024426751576, 0.44134718405063234, 0.6947007930206875, 1.1564563384622404, 0.9846998341413731, 0.7953492319272086, 0.8652146006131592, 1.0223344097455243, 1.1868877924410026, 0.8232782298741427, 0.9877566690895443, 0.5289250402013361, 0.8359190585549544, 0.5704111114098488, 0.10208879725270598, 0.4978890343741721, 0.7246730672907271, 0.0, 0.979321341391189, 0.8706668909026043, 0.8148388704750358, 0.6435686106573407, 0.08816434316472856, 1.3759959152357917, 0.9761657904950641, 1.0145373963931055, 0.34651458564765447, 0.5554795302904862, 0.8468409785974171, 0.6780946042950293, 0.7034026392812326, 1.218996450005765, 0.5604312911245974, 0.839227674229143, 0.9565958433543011, 0.5747571646117852, 0.7123345185081125, 0.9575839590617364, 0.0, 0.9085021137682419, 0.7483859108676736, 0.0, 0.967688459450668, 0.36213676295875263, 0.9388923036192749, 0.8416240863012958, 1.3174088805702235, 0.3554555995642188, 0.7219411581187611, 0.7616527597075402, 1.232771421347873, 0.12728482961278506, 0.6484506519365258, 0.418902002780407, 0.5466968603838761, 0.1926055102165597, 0.5459014185781306, 0.49164358110887835, 0.48860475229223405, 0.7256343394218843, 0.4517774286387227, 0.3099223769234711, 0.49063454938285966, 0.5060189379849324, 0.418563965735516, 0.9124083916237119, 0.9319313244152274, 0.5647857703563695, 0.69384791636118, 1.0876666433213498, 0.9546261736708536, 0.418902002780407, 0.981976532520958, 1.4751163030370638, 0.0, 1.0271444699370522, 0.0, 0.48977651720718196, 1.4468998655844605, 0.9970514987671377, 0.6461081158113543, 1.3734579763699275, 0.8896627996823039, 0.43985763806792005, 0.7049527318779053, 0.8739897313953633, 0.5822235640981832, 1.1790359025567543, 0.3279202269027818, 0.845245993038644, 1.023018564599321, 0.8681722624322963, 0.9820809742916952, 1.1633708560162728, 0.46560592797623324, 0.8390037506345203, 0.6964635998601058, 1.3830034082618987, 0.8294202892797977, 0.7178833324887561, 0.6050393661256476, 0.2456944484936158, 0.24147024426751576, 0.16960729445900247, 0.26480535802192146, 0.8104444120968717, 0.43175436632806186, 0.6678439882919354, 0.2817854800730078, 0.6050393661256476, 0.8725276100499626, 0.12183310451514716, 0.34715856888407215, 0.17472752362878496, 0.21614602878428402, 0.4697038241168223, 0.14292669721382034, 0.393448258666501, 0.23647301873989046, 0.1788203003178712, 0.6613380041051704, 0.21014137688853995, 0.7163805749657525, 1.0243898615374172, 0.7656310181332674, 0.7250023468011634, 0.9696150283481986, 0.21392724959077553, 1.091135247283271, 0.6317927312120414, 0.6227276828015903, 0.8120429347021177, 0.5776925369494512, 0.9485267353072241, 1.4147817952167954, 0.2584119821042715, 0.2052584282452627, 0.3149509706753488, 0.9296973921542704, 0.5028740781699685, 0.7180985488953054, 0.6340705809018696, 0.08816434316472856, 0.7101189007663451, 0.22024680799921428, 0.12129600692583506, 0.5188593733176227, 0.6446851653504534, 0.24018230652631697, 0.1358181665739182, 0.29271072425539657, 0.7428551970196062, 0.6214089718770475, 0.3102519285706663, 0.19071534093933318, 0.3485765130742611, 0.3279202269027818, 0.8486334198511679, 0.37618379775275235, 0.9093867644441443, 0.2827519601785218, 0.808783445587906, 1.144426617165647, 0.12166539904414046, 0.5822933064860112, 0.507303933953493, 0.3111423292943684, 0.24025188524785696, 1.7000594688291029, 0.2460803113509777, 1.0733964998404733, 0.30053558553256066, 0.38085979219095667, 0.9855936848747291, 0.7079698388613953, 0.5060189379849324, 0.8773806664407151, 0.1650286513902909, 0.22646239104231322, 0.2822859347565325, 0.7987644497541281, 0.18728337746961438, 2.2199436072345713, 0.3498948579834142, 0.23834169638641559, 0.7053672918947206, 0.8294931252184805, 0.22962209425696442, 0.2679205380972798, 0.5827470510606237, 0.4522346143676621, 0.5732671648991057, 1.948313996366708, 0.0818445778712558, 0.2861651686334927, 0.3691112431171144, 0.9502261239247911, 0.9388923036192749, 1.2920562137441334, 0.9396515279365568, 0.9058591531643394, 0.3554555995642188, 0.9960812009286217, 0.3055179890612196, 0.23640000667022715, 1.1356740524666784, 0.7616527597075402, 0.7233044216253766, 0.4358256235177118, 0.6788598252849458, 0.3809405583621015, 0.23899989381239284, 0.24836549905138872, 0.15078545718437286, 0.6030835397009857, 0.16914144288881702, 0.48871030177426367, 0.0, 0.32836568137200306, 0.7776409810422437, 0.7256343394218843, 0.34715856888407215, 0.721451694455864, 0.7865205561376537, 0.6290815264942431, 0.25183402449212106, 0.970428689693086, 0.18218832116655084, 0.5874313304398211, 0.1077758041801382, 0.14292669721382034, 0.27868300040167765, 0.5758798972565586, 0.3691525869000966, 0.6059275439948288, 0.1788203003178712, 0.9860676096733152, 1.1339555586720977, 0.19295220394143436, 0.7743872154247868, 1.3821090037396973, 0.5248061146314854, 0.7993029735361683, 0.7865856787871349, 1.0479685558493548, 0.7920967575234693, 0.0, 0.8602274898475109, 0.21879532407166336, 0.18855485606720482, 1.1734537376943868, 0.8404240725821372, 0.8766838611188735, 0.9151821673515372, 1.7434408919572473, 0.19655901353820643, 0.26117433234617005, 1.2790879750717803, 1.8333588808717303, 0.5880356622444696, 0.170844677100676, 0.6979312763017662, 0.3553598621543675, 0.9489630971923699, 0.5464824693809106, 0.18024879181147566, 1.528887744557818, 0.1691816003809188, 1.1211778381551314, 0.5911485535856058, 0.11617476986648025, 0.8497434099438383, 0.1570272908079368, 0.4473991625010104, 0.55111461345011, 0.28131867015810885, 0.13037404123310456, 0.6281423502509494, 0.6861709258608849, 0.1685328238279738, 1.2493804369193349, 0.3273678238767094, 0.555036689696349, 0.4960068320292003, 0.2688008117222814, 0.9591695184863753, 1.0161089522440132, 0.48823974745639365, 0.9185164975236834, 0.9636593438402915, 0.9172518083537057, 0.3392669026482406, 0.2951384123639238, 1.0406493233222025, 0.3102519285706663, 1.0271444699370522, 0.13347427424666902, 0.8585002952603487, 0.3540376545629321, 0.18542359594649419, 1.0711209308034144, 0.6846079248406023, 1.352897163214561, 0.9279369796965173, 0.44910178505742093, 0.4383587462322929, 0.6369943288196231, 1.0763196173518712, 0.20567785011193024, 0.30258347859403356, 0.7836663348974252, 0.2827519601785218, 0.221397380539542, 0.8349207684873312, 1.3859194782663904, 0.635236745627966, 0.7283123998236541, 0.4255878850852866, 0.782762732122225, 1.131530837342478, 0.13195036462720386, 1.189743096791675, 0.25986384604763957, 0.10208879725270598, 0.6739648514595455, 0.7677706254995275, 0.6383317723172576, 0.5878103695891294, 0.8011261489030318, 0.0, 1.3309770937292646, 0.5760162923898698, 0.5934602352497815, 0.9103620079492927, 1.0648371080601746, 0.9262942145070746, 0.7022630667714341, 1.0986789597795417, 1.0375016401106372, 1.6299081260285349, 0.7677912595189804, 1.0595708564980364, 0.7865856787871349, 0.7935093552943617, 1.040392798193749, 1.2765668849219054, 1.4341709181910012, 1.4718312107642537, 0.0, 0.7622010095366862, 0.7453479461532957, 0.8288235440038778, 0.624494977095304, 0.681407477491389, 0.8800558206380173, 0.8681900910472211, 1.444914878624758, 0.9532525835638711, 1.0222584538560957, 0.0, 0.5393538861051339, 1.4147817952167954, 0.9643116161714117, 0.5847451601967367, 0.6525265003351229, 0.7790903041773067, 1.2006155223516737, 0.6617381974132832, 0.6924479147605113, 0.6149009102007272, 0.8912715881989353, 0.2861651686334927, 0.4642414613091288, 0.8498711921681003, 0.376822091614816, 0.6159562279387256, 0.967688459450668, 0.0, 0.36213676295875263, 1.2565256720442, 0.695455144054953, 0.5763575708435532, 0.49484614182498915, 0.9960812009286217, 1.243905514661307, 1.1736851539410897, 0.675667367486575, 0.5917968389181568, 0.6096030945202237, 1.1183274071712828, 0.6289588607917386, 1.2248211390182802, 1.4060396185814157, 0.8773806664407151, 2.354934100783185, 0.5674848805597531, 0.6632029648258991, 0.8373654988245186, 0.8541368074152396, 0.540990635502385, 1.003541521341774, 1.625632598354081, 0.49948852032060564, 1.5455856293004595, 0.5667141488006193, 0.4917915995069276, 0.5021777711298612, 1.0848485928243305, 1.2222810107491848, 1.264492779064545, 1.0467675564736343, 0.7079593888331221, 1.5013997073016203, 1.034452529467075, 0.0, 0.9956506126177807, 0.8447914506444336, 1.1546675140207199, 0.7250023468011634, 0.9696150283481986, 0.9815068410328767, 0.9151821673515372, 1.695685015835958, 0.8343180875982097, 0.639409862352554, 0.9558561940720176, 0.8883830239038812, 0.44500050899035914, 0.6583136623676002, 0.914554256481976, 0.0, 0.9752388291098582, 0.6226315818007484, 0.8782430538951654, 0.3553598621543675, 0.7985627002055745, 0.4469721699901201, 1.2040078054634766, 0.9531546325059792, 1.0705186929354689, 0.5667251441213518, 0.7721364107146215, 0.40876997037957663, 0.6875446472510506, 1.4837563944377932, 0.7771961737067624, 0.6317927312120414, 0.6342785000125705, 0.548102315260738, 0.24025188524785696, 0.8350685041850392, 0.44340588431043154, 1.0733964998404733, 0.5492727528961355, 0.8810479619275524, 0.38352117241105377, 0.0, 0.8891560455511937, 1.3498561744418351, 0.38085979219095667, 0.9511026447932145, 1.091266613390511, 0.6227276828015903, 0.5047926216431747, 1.3798788225168617, 0.7727772988706403, 0.7058602417362126, 0.4994579559297951, 0.8563126570623747, 0.5927720151003226, 0.6043608719301281, 0.47168976718586614, 1.2212682644625987, 1.7066734937877484, 0.8386308254460758, 1.0033539299428842, 1.452893278653912, 0.63679654839362, 0.7394059290476955, 0.8069181267560969, 0.9079427849759827, 0.47098822528392387, 0.6755606987660788, 0.5874313304398211, 0.8452291488995305, 0.1077758041801382, 0.714937684918821, 1.097741253105532, 0.6079215115459419, 0.27868300040167765, 0.5244118960779243, 0.716112915252836, 0.5187630333750476, 0.5758798972565586, 1.3904335956280698, 0.5781904926276439, 1.4669784233562013, 0.4621084925075116, 0.7260471283404601, 0.6613380041051704, 0.8757838578901117, 0.9860676096733152, 0.681407477491389, 0.19295220394143436, 1.013324924085914, 0.8812135502352436, 0.963458835671719, 0.9242752339445246, 1.154221266132434, 0.9089442092350636, 1.3067005469314699, 0.9681946514857853, 0.0, 0.18334056951252548, 1.1479157493332999, 1.1835758468135555, 1.380769897648095, 0.7993029735361683, 0.9383237482190459, 1.3066023214725306, 1.1240910836240543, 1.547475918747013, 0.7920967575234693, 0.0, 0.4954216181568629, 0.2582140446126171, 0.579862498685217, 0.21879532407166336, 1.0246187992699753, 0.7656310181332674, 0.6654461713098303, 0.6752409022051319, 0.3471342237387782, 0.572895904086047, 1.711489875563755, 0.9923271486909491, 0.9257234764784316, 0.5006246523631008, 0.49315268347271535, 0.6950023291277974, 0.4969797274007035, 0.913301193025789, 1.3310693041702646, 1.0538971591618969, 0.750232954701149, 1.0892997585184276, 0.6488552413357285, 0.7426049563300692, 1.0443745324292255, 0.7359899703964766, 0.7123345185081125, 0.6734464123850017, 0.17702072790067763, 0.8372381269953062, 1.3782671261365715, 1.0664347018374793, 1.1443828476239895, 0.6550212851327208, 2.1597201818777654, 0.5170989329107145, 1.39020708243973, 0.763177721047326, 0.7213701844711812, 0.5984840847366603, 0.31457635751767554, 1.0286267847800221, 0.6055177667131247, 0.8229199218723373, 0.6468581304775671, 0.3809405583621015, 0.7323263577118915, 0.8794781683923961, 0.9444266895916118, 0.587147380878429, 0.8337684832066853, 0.8755387433044344, 0.5589362783332745, 1.2648576336817823, 0.6030835397009857, 1.3045434623969163, 0.4380953125959903, 1.3408959827898994, 1.1849139121962866, 1.1103940599911128, 0.0, 0.9620078322661108, 0.9563984832405599, 1.2753703160253935, 1.711118194946114, 1.061476943125704, 1.3746704255794753, 0.3528762689055167, 1.2686111607353916, 0.8369941121819804, 0.8096822440089331, 1.189743096791675, 0.3554619839116539, 0.7549583134112616, 1.0395058886552426, 0.6767597674068522, 0.9992692732369385, 0.39051215823682767, 0.5028740781699685, 0.5704111114098488, 0.7122815983068315, 1.0005248669579279, 0.9017513483943169, 1.4048782927520853, 0.7246730672907271, 1.1954195609383826, 0.9042812403576517, 0.7186910883498587, 0.8754570708525086, 0.7727145540332053, 0.23376983378330393, 1.3960480771579002, 0.6050393661256476, 0.8148388704750358, 0.5459014185781306, 0.6340705809018696, 1.208930533226765, 0.7653234520936772, 0.8287030575836597, 0.8682524973241574, 0.8420750270558868, 0.7013980942153507, 1.507802159022156, 0.9080604772845193, 0.6027463528053245, 0.748796847566076, 0.7101189007663451, 1.021765039066014, 0.8028628966055134, 0.8064426530224313, 0.39845672834965723, 0.7365002604921542, 0.6033648257916698, 0.5554795302904862, 1.1330746770067306, 0.0, 0.7088592671395884, 0.6152600808118198, 1.5843188523387683, 0.7178833324887561, 1.1720673685656684, 0.5266727695315606, 0.0, 0.5817358478762545, 0.6674277001523695, 0.4217527063654217, 0.6846079248406023, 0.9777149558823675, 0.6651798284611002, 0.0, 1.5196397688235346, 0.5822235640981832, 1.728234043852964, 1.263144882023977, 0.30300383760200855, 0.3279202269027818, 0.5342626698400788, 1.0641083510019487, 1.2966707851337258, 0.9747417993340799, 1.061084143773904, 0.26903362232634026, 0.6678285606108672, 1.2561662209875073, 0.6330662396531979, 0.9074555493714543, 0.2827519601785218, 0.8616461433822976, 1.6866597437659954, 1.0927798225054168, 2.3566623728050287, 0.635236745627966, 0.9085683988095604, 1.7364702148108102, 1.3232427472144426, 0.6964635998601058, 1.3072902529463095, 0.2352657427340162, 1.216399722490458, 0.6633550669265769, 1.232685317705865, 0.6629749471680995, 0.6214089718770475, 0.979165635925326, 0.8005174515571168, 0.500279425988066, 0.653631220873666, 0.22646239104231322, 0.6953544654934454, 0.7031793233006957, 0.0, 1.5614093509795126, 1.2239448696999637, 1.0022611579964085, 0.5139112178427778, 0.801532488920766, 1.7163399139696798, 0.69384791636118, 0.6849491989463129, 1.2151476854507086, 0.9636593438402915, 0.9546261736708536, 0.0, 0.5561768888258394, 1.2010756174555461, 1.221015371852409, 0.4736700291346131, 0.4764525169601458, 1.0495343533768444, 0.7941511851031798, 1.7720349638802764, 0.9818721147185049, 0.5466968603838761, 1.9016482659116143, 1.310247898921823, 0.9045438182837546, 1.260676109564062, 0.8416616451736589, 0.0, 0.9678908678522468, 0.3485765130742611, 0.7379785938566755, 0.3745443617513051, 0.5960374809914485, 0.5536967766186225, 0.6321367725708132, 1.0807371319163748, 0.49752658891986723 );
+                                    .containsExactly( 3.202132663572723, 0.0, 0.7261352534140458, 2.7178110852060247, 2.5911926629667694, 2.6719402449722955, 0.7677706254995275, 2.6070409237081225, 0.1643815520672562, 2.2478543719500057, 1.053184644522727, 1.1356740524666784, 2.755988165345069, 2.7320068418085324, 2.252487154322343, 1.7169017181653992, 2.374588373418914, 2.4785687869093325, 2.25845689120891, 0.0, 0.7127316813378028, 0.24018230652631697, 2.134821028336439, 0.2662236094229887, 0.9555920117697525, 2.674451288206178, 3.0446176808076566, 1.8968713230159533, 2.9955802863206262, 2.478190789581168, 2.9575892784136357, 2.3130284136238304, 2.4936600824313224, 1.2565256720442, 3.138752172049673, 2.201323948120984, 2.7090047956795558, 3.074207781957206, 2.3211079335334817, 2.734023472933365, 2.1883847407670785, 2.486512338858759, 2.2029337810685963, 1.6146421582421602, 1.1028972443406109, 2.4539771224039897, 2.300932148613766, 2.7837294997757893, 1.4285366663181915, 0.6159562279387256, 2.923094295307028, 1.623123839565849, 3.2153497686690478, 2.42416289156739, 1.5170879355496458, 2.695877534733328, 2.7307416123042807, 2.3986748580984947, 1.8233626546540749, 2.970485622221099, 3.2611062314990433, 2.007128261434359, 3.300728739817365, 3.2296909167649295, 0.9914022925053365, 1.3247273372597, 3.0347055204232904, 1.6190264475135263, 3.185688189801157, 2.2424765137017624, 2.636739004903263, 2.5877732833977265, 0.35517874198903987, 2.157011186796337, 2.637165111260112, 3.2292248060790696, 2.264817659575755, 2.4671482036064636, 2.504378753200821, 2.989106598581854, 1.765579963646284, 1.8224053812740835, 2.3553658302081404, 2.8619062867308434, 2.6396653350384813, 2.5660577660851307, 0.40344205791979787, 1.6161919784726637, 2.1660203896656767, 2.8637410875272225, 2.1461335251887537, 2.430630945977382, 1.0456892186052384, 2.6329766763786564, 1.256046455520485, 1.3766597659937323, 2.626550444609348, 2.3321596963581475, 0.5667141488006193, 1.1615582341649777, 1.400101635721744, 1.4181322922705024, 2.101138565739708, 2.3790792530445284, 1.9440952043752022, 2.751972300953702, 1.8054309409751057, 0.18728337746961438, 2.62388644266194, 1.5356438627441087, 1.7954355753630038, 0.0, 2.806175806074932, 0.23834169638641559, 2.5939570782602432, 2.8068568444067545, 2.3600429270159795, 2.7953802886825585, 1.8981832492072113, 2.3070845816622314, 1.7568655121284757, 3.102895103190435, 1.629743178594846, 1.613771961515355, 1.717745276288825, 3.041142486049906, 0.22962209425696442, 1.326283482855723, 2.88901121881853, 2.2513116818916123, 1.2436126936065524, 2.6998058441407657, 2.3764467775139644, 2.886609771468185, 0.5699101329483778, 2.8453427451081854, 2.131989993331049, 2.427609794227574, 2.424788546880615, 2.618575791486908, 1.1039742318094952, 2.6498648785539842, 2.2721739937741425, 1.8751521217284337, 2.4795415569321837, 2.4865845025306164, 0.390481271183256, 2.0596297902544403, 2.4401875609276056, 2.9163743988427218, 2.0697892328759537, 0.8386681021815, 2.5802625564869954, 2.5382680226145204, 2.937631898083392, 1.5813216448736396, 2.6540510737942893, 2.326302521955607, 2.4761369968796534, 3.123048681928341, 2.325980447985016, 2.329109690537468, 2.296219927391324, 2.6158097896784445, 2.1476019941849733, 2.752266721258299, 1.9182783177064922, 1.8939346385429847, 2.827043958724192, 1.923173370098628, 0.7892655029908147, 2.681484743727545, 3.537504682628887, 2.285044688700701, 1.9703774953395468, 1.5610870984286365, 3.1473640603617654, 1.9933135060822584, 2.207842826380368, 0.7307133828262438, 0.9942539760497219, 0.5541951838430362, 2.2152025896316276, 1.4506389542449734, 1.0707426948961987, 1.6368726833682943, 2.317594287006402, 2.216294190508874, 0.30053558553256066, 3.18346834097285, 2.4888728732212413, 2.644516945997001, 2.3570950058362645, 2.4759706917212125, 2.934639905781898, 2.4156145971446286, 2.451388978784985, 3.0349031951727015, 0.43381852339898685, 3.1770241984102303, 2.588083575093025, 1.971896961936368, 2.018212168004837, 1.8951746310139148, 1.7878120683447833, 2.5580671805450805, 2.414537456502271, 2.1141159279558246, 0.669945179376773, 3.312336859826125, 1.8774934218237038, 0.24705185255227502, 1.9884463101614451, 2.5156553289672283, 0.7503961559462295, 2.137511478667376, 0.4358931735230209, 3.3113264792214756, 2.389753378716794, 2.041242082413626, 1.7159656298585213, 1.9540974972892735, 0.6226315818007484, 2.614472472005237, 1.4949269304267587, 2.825218048646412, 1.4773739470555358, 2.2382827016268343, 1.498874666200336, 0.0, 2.351201862664172, 2.5236361258616973, 0.0, 3.6214268477749285, 2.8755815183484987, 1.2934942559540161, 1.815481354198642, 0.3548565038634516, 1.7705504919904982, 2.62721867856421, 2.998834585645016, 0.5745082789747228, 2.9541543693742125, 0.5147901498564037, 1.318310286770752, 2.953513391493227, 2.187242713415051, 3.2076438869332295, 0.9950054843245519, 2.4491308658161386, 2.806350607401434, 2.6998135489732857, 2.946700928324952, 0.3111423292943684, 2.342341056751413, 2.597250535967544, 2.6954481069701335, 2.904181621277058, 3.15494421426946, 2.490240084933025, 1.3330296661056356, 2.683551442169752, 2.8372381270259983, 2.6527215571908163, 1.9936786642521411, 0.5518944759340033, 1.4398818274458882, 2.109031389843867, 1.3621873632359884, 2.00854223045285, 0.7287006289436064, 0.0, 1.3626557271235669, 2.5960601581456326, 2.8375743493848447, 2.5046601911592585, 1.9098023652003318, 2.3469447816491904, 0.0, 2.6743614833104865, 0.0, 3.164885229014613, 2.052843256869688, 2.645090776372847, 1.218660690329983, 2.751800601251834, 1.8594265601182582, 2.819927560384034, 1.9593584188455715, 2.730933196545607, 1.862636672335038, 1.5721085393400616, 1.020514843418065, 2.7344273556148795, 2.984232962079557, 2.829081785795304, 2.1550818427673204, 2.3487706381406874, 2.785676324888643, 2.1670810078014644, 2.120932620987527, 1.8443012740779947, 2.8811637627418274, 2.6458508419199402, 2.466333632703386, 2.7948994212345966, 1.695685015835958, 2.610662937698599, 0.5017575031860543, 0.4680692698750418, 2.833740559195736, 2.3890784683850677, 2.3787978602270243, 2.660994603199013, 1.8803128665695001, 3.2602844354505023, 1.6181343196042928, 1.9774537570724748, 1.5426400283393202, 1.9056978576898294, 3.265740174325536, 2.660110738813091, 3.140020151853777, 2.708133167998466, 2.842675271537342, 0.7123168775306731, 1.547475918747013, 1.4566687663287665, 2.6490504083387063, 2.5158047067359055, 3.0697427363806096, 3.158138093595249, 2.675394799044201, 1.8114728645880658, 2.5680935779276832, 0.7769528150345838, 2.0016645270578626, 1.5580459413016183, 2.2269234554063027, 2.217533133801343, 2.9228588360613186, 2.241067215200396, 2.607816780641886, 2.7571882797952303, 1.3686327159953833, 0.0, 1.5348817442618203, 2.865735460745241, 1.0709948196950227, 0.4605308040568298, 1.6566042238083991, 3.0179313660223532, 2.006199445413618, 0.531543983154921, 2.5153295048788005, 1.3821090037396973, 2.3883142312868757, 2.0168555105865567, 1.9353985193703176, 1.4507639798347487, 1.567724100993645, 2.626682658284609, 2.8232924652786155, 2.3902036232589605, 1.8368993052205314, 1.3831153028090137, 2.491941755564631, 2.2791765735537077, 2.73073203418995, 2.3089774890881167, 2.2959520649996326, 0.0, 0.716112915252836, 2.214778478482705, 0.5758798972565586, 1.9506393066224583, 2.548130973103208, 2.651496115198279, 2.459775324928163, 1.6131459781510926, 0.8223473134665759, 0.0, 2.7186720282817123, 0.7766673371829081, 1.900744185763727, 2.146934170199084, 3.001737152675889, 2.0509221719408375, 2.4595966806680156, 2.460501714228602, 2.162393080202013, 0.41756643520965575, 0.6434186106288808, 0.7776409810422437, 1.5393721215879403, 2.9252431885523107, 2.61316976459608, 2.2924293369490476, 1.7341619774447186, 2.955328249229618, 2.4561995626262516, 0.34715856888407215, 3.009950862904502, 2.8858439992874256, 2.194320764043508, 2.464847502686816, 3.091549696502761, 1.4939884793257436, 2.5494353376487795, 2.021671199064718, 0.63679654839362, 2.855063806872689, 2.5849341473424876, 0.17472752362878496, 1.7094745698491265, 1.859731678240622, 3.242050541481056, 2.74666512934206, 0.7913704516130495, 2.883152358881595, 1.2232110178918791, 2.733619775951714, 0.6342854330762224, 1.4042684132874501, 2.3414724547376378, 2.655915822735588, 1.1477304194293425, 0.9832837802332944, 0.27868300040167765, 2.082492516324721, 0.0, 2.6939039127602977, 2.241517923292962, 2.4711620308088063, 1.769389995041414, 2.3354552064692404, 3.1731792687244615, 0.0, 0.0, 2.7662831875261173, 1.3473925037326286, 1.8519152467896478, 1.7434408919572473, 2.7627479923070957, 2.8557367856941576, 2.508775129708356, 2.4737966202012833, 1.3232427472144426, 1.8985209782887382, 2.631301920612244, 3.35598718917487, 3.0857268230618904, 2.841880042042348, 2.5329401831775877, 0.3954711187710545, 3.061828897936965, 2.5027589497823124, 1.8127946291744954, 0.9777954275947129, 2.532703107350323, 3.0936832000371237, 1.733394253266877, 2.5198069177508, 1.7587058748873345, 0.0, 2.673463943274982, 1.633879047593246, 0.1715468475087888, 1.5496931067752393, 1.7606440968187762, 2.939888560614585, 0.826060311977525, 1.8989071433548304, 0.4804420813470435, 1.480819424628762, 1.6941121413098565, 2.174194773544395, 2.084004897391137, 1.7627742993055429, 2.6381292553027045, 1.734546155580242, 1.887979786600682, 2.2460892599303666, 2.4882540015684578, 1.0161089522440132, 2.8892450370945637, 0.0, 1.287668758289838, 3.304465022494857, 0.5535160035574707, 1.5847811727701926, 0.44134718405063234, 1.3886238756056177, 2.0196845988766237, 0.0, 2.281879683642564, 1.98532411759619, 2.5573218708531087, 0.6468581304775671, 2.976502794622365, 2.139294481964001, 0.3809405583621015, 0.43175436632806186, 2.762027212565231, 2.9885095205445276, 1.4339883594758462, 2.5286592788878606, 0.714404817267933, 3.2098576319549, 3.156207877597242, 2.413083218916602, 2.5186478799507728, 3.0911570059985616, 2.833329188708667, 2.3417673935805383, 1.722544847307987, 2.8448938709586913, 0.3790102353102964, 1.6386529834700605, 2.1890883396603202, 1.6226068935205562, 2.949450270974322, 1.8366036084855373, 3.2056747062345186, 3.275282218059328, 2.4640819950232826, 1.8828596437279081, 2.9763555561658483, 1.4666790426699559, 2.985147665626684, 2.9944981157099626, 2.0521038124125344, 2.9445337209950284, 0.0, 0.8028628966055134, 1.9740293611205488, 1.3342646896740282, 2.712354099961389, 2.019117944113433, 1.7238681819962651, 2.636081730098681, 3.2229552247739095, 1.8451533181400726, 2.275325159714901, 0.7034026392812326, 1.7522526603261124, 2.2502813768706806, 2.4606457865086, 2.3766308020561273, 2.906490599586047, 1.51302604615889, 0.984497848194177, 0.6152600808118198, 2.0095484866331534, 2.6770221336698095, 2.8184781872440383, 2.8094402865210615, 3.1131578163410154, 2.925549268213857, 2.348485081741244, 2.2314373653383703, 2.5907535208151087, 1.422575343662911, 1.1860522292949456, 2.893873043142497, 1.5981213272659271, 2.4377941819762903, 0.34908048562636024, 2.5965388479937044, 2.4549960746550106, 1.6941121413098565, 3.4895062201207123, 1.962750566850561, 0.5778739556136362, 3.077681637518892, 2.540848735218829, 2.362449500216042, 0.5782248669204686, 2.4743331474575365, 0.43870723264541706, 2.768146798833945, 2.2721651261469464, 2.0117893698689855, 3.2640731401832044, 2.7237535090044007, 1.7144705054787241, 1.6920607045236293, 0.4473788107184952, 1.6888150445979775, 2.726325502249837, 3.123476184193362, 1.8306049143058227, 1.251158146553607, 2.3169757900758143, 2.5576696013048053, 2.5491660200690567, 2.185226197843027, 2.5864742294636573, 2.3163989465857107, 2.0505848922521035, 2.553407552557338, 2.4008442063814313, 1.9650079517119021, 2.974443637910087, 2.3976155994550106, 0.9097765939311447, 0.6766804848024961, 2.651496115198279, 2.963201495103486, 1.4048782927520853, 2.3586350920551338, 2.2197607423586327, 2.3243247078652045, 2.6829446221708033, 2.1773263348649694, 2.1223548497898053, 2.2526014098839484, 1.9893083043620605, 2.5364447270894717, 0.0, 2.626262048527518, 0.997612216566284, 2.52844697628231, 2.2021383974077358, 2.9615778837692033, 2.6511194038258648, 2.2314373653383703, 1.880077499348477, 1.3404793155529677, 2.7877176038360814, 2.309726151105882, 1.3250652748836866, 1.5636944618324091, 2.4693451962313926, 1.6130744745464751, 2.0439870839084655, 3.121406690780592, 0.32058679343687807, 2.489041734935803, 1.0352715246016675, 2.100010684718088, 2.446798480282353, 2.972731254345479, 3.0836587599890892, 2.3763581876539868, 1.1083054178737692, 1.9492174280771368, 2.5060311893290903, 0.5352290162772927, 0.3279202269027818, 3.057954473115221, 0.7420905921004042, 2.744449036302547, 2.6645745908692153, 1.244037334787663, 1.5826264447810388, 2.848261861768566, 0.8183093921425209, 0.9549351156322151, 0.30258347859403356, 3.1336043780201055, 2.444953247551195, 1.4333802215107896, 1.497885426528353, 2.4036292334626896, 2.4600472475862274, 0.0, 2.20393709026688, 0.2827519601785218, 2.7866778182210394, 0.5208909971004136, 2.2043674648485996, 2.2353799155010177, 3.135800353999809, 3.2822055921734217, 0.40255312722848324, 2.3157401931160932, 2.772120096709859, 2.959147935854633, 2.721262731093644, 0.3149509706753488, 0.9396515279365568, 1.8335796513328328, 3.0100527336155403, 3.1892936180974534, 2.4867649386327493, 1.1030317414217965, 0.7231815080025367, 1.4673635521518809, 2.643517485539627, 0.8131763399870034, 1.796916922011614, 2.372271206532833, 3.550793348702048, 2.780722676927545, 2.132907559546073, 3.0912238350096723, 2.3994118032679723, 3.1335927113525384, 1.4525309214023268, 3.663035637935169, 0.3565378543504719, 2.210609898186964, 1.736855661787214, 2.9560716985410216, 1.141734407727598, 0.6100153944740425, 2.0148813541825374, 1.204906947317733, 2.186277657160262, 1.7744708192997822, 1.4825711915553106, 0.9698521943805753, 0.20470606706834607, 0.5960374809914485, 0.5536967766186225, 0.894080584548499, 2.672567327298024, 2.526679841814809, 0.25764208004750744, 0.7454061252662285, 0.28101627638418814, 2.6909518178200322, 3.334372967410722, 1.3338527243412635, 2.192497832937557, 1.813331172342193, 1.147426342277216, 1.9076495518450602, 2.216294190508874, 2.517898754721667, 2.6921628231988963, 1.7876049140209078, 2.5132986361945284, 2.3482947656622044, 0.5841477599760967, 2.1433376365419634, 2.856093274440672, 1.7260160626826555, 1.7145949763965787, 1.7952052640731642, 2.2825979243853367, 2.2643574794569674, 2.7159359872065507, 2.694321862520038, 2.4448250341226387, 2.901149931981485, 2.316210677327706, 2.055065846190645, 2.3894962054621924, 2.808561070977852, 2.767602838552302, 2.6754234062413333, 2.68732884976317, 1.2816517084774195, 2.486190957230877, 1.5962886873712652, 2.7134052168947687, 1.4451626539750544, 1.3874955624655247, 0.3162667095039708, 2.0758187446750185, 1.7890562590813976, 0.5921305550299704, 2.668707495644434, 0.5227292261539658, 1.3991508147334148, 2.45488485627211, 2.3473845741935317, 2.416785206288608, 2.4776352180808248, 1.4677489182937875, 1.6611384602017791, 1.24725468327683, 2.021500717011184, 2.114991493038964, 2.1196419155094275, 0.0, 2.1286471215541787 );
                             assertThat( vector.getDataIndices() )
                                     .hasSize( 779 )
                                     .containsExactly( 2, 3, 4, 5, 7, 8, 9, 10, 11, 13, 14, 16, 17, 18, 19, 20, 21, 22, 24, 25, 27, 29, 30, 32, 33, 34, 35, 36, 37, 38, 39, 40, 41, 63, 64, 65, 66, 67, 68, 69, 70, 71, 110, 112, 114, 191, 192, 193, 194, 196, 197, 251, 252, 253, 255, 256, 257, 259, 260, 262, 264, 265, 267, 268, 269, 270, 273, 275, 276, 277, 278, 279, 281, 283, 284, 285, 286, 287, 288, 289, 290, 291, 292, 293, 294, 295, 297, 298, 341, 342, 343, 344, 345, 346, 347, 348, 349, 350, 351, 352, 353, 354, 357, 358, 359, 360, 361, 364, 365, 366, 368, 370, 371, 372, 373, 374, 375, 376, 377, 378, 379, 381, 382, 383, 384, 385, 386, 387, 388, 389, 390, 391, 392, 393, 394, 396, 397, 399, 400, 401, 402, 403, 404, 405, 406, 409, 410, 411, 412, 414, 415, 417, 419, 420, 421, 422, 423, 424, 425, 426, 428, 429, 431, 432, 433, 434, 436, 437, 438, 439, 440, 443, 447, 448, 450, 451, 452, 453, 454, 456, 457, 458, 459, 439, 440, 441, 442, 443, 444, 445, 446, 447, 448, 449, 499, 500, 501, 502, 503, 504, 506, 508, 509, 513, 515, 516, 518, 520, 523, 524, 526, 527, 528, 529, 530, 531, 532, 533, 535, 536, 537, 538, 539, 540, 541, 545, 548, 550, 551, 552, 553, 554, 555, 556, 558, 559, 560, 561, 562, 563, 564, 565, 566, 567, 568, 569, 571, 572, 573, 574, 575, 577, 579, 580, 564, 566, 567, 568, 569, 570, 571, 572, 574, 575, 576, 578, 579, 580, 581, 582, 584, 586, 587, 588, 589, 590, 592, 593, 594, 595, 596, 598, 599, 600, 601, 602, 603, 605, 607, 609, 610, 611, 612, 613, 615, 616, 617, 618, 619, 622, 623, 625, 626, 628, 632, 636, 637, 638, 639, 640, 643, 597, 598, 599, 601, 602, 603, 604, 605, 606, 607, 608, 609, 610, 612, 614, 616, 619, 620, 621, 622, 623, 628, 629, 677, 678, 679, 680, 681, 682, 683, 685, 686, 687, 688, 689, 690, 691, 692, 693, 695, 696, 697, 698, 699, 700, 701, 702, 703, 705, 706, 707, 708, 710, 711, 712, 713, 714, 715, 716, 717, 735, 736, 740, 741, 742, 743, 745, 747, 748, 750, 751, 752, 753, 754, 757, 759, 761, 763, 764, 765, 766, 767, 768, 769, 770, 771, 772, 773, 774, 775, 776, 777, 778, 779, 780, 783, 784, 786, 787, 788, 789, 791, 792, 794, 795, 798, 799, 800, 801, 802, 803, 804, 805, 806, 807, 808, 809, 810, 811, 813, 814, 768, 769, 770, 771, 772, 773, 774, 775, 776, 777, 778, 779, 780, 781, 783, 784, 785, 786, 787, 788, 789, 790, 791, 792, 794, 795, 796, 797, 819, 820, 821, 822, 823, 824, 825, 826, 827, 828, 829, 831, 832, 833, 834, 836, 837, 840, 841, 842, 843, 845, 846, 847, 849, 850, 851, 852, 853, 854, 855, 857, 858, 859, 860, 863, 864, 865, 866, 867, 868, 870, 871, 872, 875, 876, 877, 879, 880, 881, 882, 883, 886, 886, 888, 889, 890, 891, 894, 895, 896, 897, 898, 899, 900, 901, 903, 904, 905, 906, 907, 909, 910, 911, 913, 914, 916, 917, 918, 919, 920, 923, 924, 926, 927, 928, 929, 930, 931, 932, 933, 934, 935, 937, 940, 941, 942, 943, 944, 945, 946, 947, 948, 950, 952, 954, 955, 956, 957, 958, 959, 960, 961, 962, 963, 964, 966, 967, 968, 969, 971, 972, 973, 974, 933, 934, 935, 936, 937, 938, 939, 940, 941, 942, 944, 945, 946, 947, 948, 950, 952, 953, 954, 956, 957, 958, 959, 960, 961, 962, 963, 964, 965, 967, 968, 969, 970, 971, 972, 973, 974, 975, 976, 977, 978, 979, 980, 981, 983, 984, 985, 987, 988, 989, 991, 992, 993, 941, 942, 943, 945, 947, 948, 950, 951, 952, 953, 954, 955, 956, 960, 961, 963, 964, 966, 967, 969, 970, 971, 975, 977, 978, 979, 980, 981, 982, 983, 984, 985, 986, 988, 989, 990, 991, 992, 994, 995, 996, 997, 999, 1000, 1001, 1002, 1003, 1004, 1005, 1006, 1008, 1009, 1011, 1012, 1014, 1015, 1016, 1018, 1020, 1021, 947, 948, 949, 950, 952, 953, 954, 957, 958, 959, 961, 963, 964, 965, 967, 968, 969, 971, 972, 973, 974, 975, 976, 977, 978, 980, 981, 982, 983, 984, 988, 989, 990, 991, 992, 993, 959, 960, 961, 963, 964, 965, 966, 967, 969, 970, 971, 972, 973, 974, 975, 977, 979, 980, 982, 983, 984, 985, 986, 987, 989, 990, 994, 995, 996, 999, 1000, 1001, 1002, 1003, 1004, 1005, 1006, 1007, 1008, 1009, 1010, 1011, 1013, 1014, 1015, 1019 );
@@ -443,6 +443,45 @@ public class AnnDataSingleCellDataLoaderTest {
         }
     }
 
+    /**
+     * Vectors must be the same and in the same order regardless of how rows are coalesced and decoded.
+     */
+    @Test
+    public void testLoadVectorsWithSmallReadsAndMultipleThreads() throws IOException {
+        List<SingleCellExpressionDataVector> expected, actual;
+        try ( AnnDataSingleCellDataLoader loader = createLoader() ) {
+            expected = loadAllVectors( loader );
+        }
+        try ( AnnDataSingleCellDataLoader loader = createLoader() ) {
+            loader.setMaxEntriesPerRead( 1000 );
+            loader.setNumberOfThreads( 4 );
+            actual = loadAllVectors( loader );
+        }
+        assertThat( actual ).hasSameSizeAs( expected );
+        for ( int i = 0; i < expected.size(); i++ ) {
+            assertThat( actual.get( i ).getDesignElement() ).isEqualTo( expected.get( i ).getDesignElement() );
+            assertThat( actual.get( i ).getDataIndices() ).isEqualTo( expected.get( i ).getDataIndices() );
+            assertThat( actual.get( i ).getData() ).isEqualTo( expected.get( i ).getData() );
+        }
+    }
+
+    private List<SingleCellExpressionDataVector> loadAllVectors( AnnDataSingleCellDataLoader loader ) throws IOException {
+        Collection<BioAssay> bas = new HashSet<>();
+        for ( String sampleName : loader.getSampleNames() ) {
+            bas.add( BioAssay.Factory.newInstance( sampleName, null, BioMaterial.Factory.newInstance( sampleName ) ) );
+        }
+        SingleCellDimension dimension = loader.getSingleCellDimension( bas );
+        QuantitationType qt = loader.getQuantitationTypes().iterator().next();
+        Map<String, CompositeSequence> elementsMapping = new HashMap<>();
+        for ( String gene : loader.getGenes() ) {
+            elementsMapping.put( gene, CompositeSequence.Factory.newInstance( gene ) );
+        }
+        loader.setDesignElementToGeneMapper( new MapBasedDesignElementMapper( "test", elementsMapping ) );
+        try ( Stream<SingleCellExpressionDataVector> vectors = loader.loadVectors( elementsMapping.values(), dimension, qt ) ) {
+            return vectors.collect( Collectors.toList() );
+        }
+    }
+
     /**
      * AnnData on-disk format was formalized in the 0.8.x series. This file was generated with 0.7.x.
      */
@@ -507,12 +546,56 @@ public class AnnDataSingleCellDataLoaderTest {
 
             loader.getSequencingMetadata( dim );
 
-            // we could load data in principle, but in transpose mode the matrix would have to be encoded in CSC
+            // raw/X is cell-major, so it is transposed in a temporary file
+            assertThat( loader.loadVectors( designElements, dim, qt2 ) ).singleElement().satisfies( vec -> {
+                assertThat( vec.getDesignElement() ).isEqualTo( designElements.iterator().next() );
+                assertThat( vec.getDataIndices() ).isSorted();
+                assertThat( Arrays.stream( vec.getDataIndices() ) ).allMatch( i -> i >= 0 && i < dim.getNumberOfCells() );
+                assertThat( vec.getDataAsFloats() ).hasSameSizeAs( vec.getDataIndices() );
+            } );
+
+            loader.setTransposeCellMajorMatrices( false );
             assertThatThrownBy( () -> loader.loadVectors( designElements, dim, qt2 ) )
                     .isInstanceOf( UnsupportedOperationException.class );
         }
     }
 
+    /**
+     * Same as {@link #testUnrawAndTranspose()}, but the cell-major matrix is transposed in Java.
+     */
+    @Test
+    public void testTransposeCellMajorMatrix() throws IOException {
+        Path dataPath = new ClassPathResource( "/data/loader/expression/singleCell/GSE216457.h5ad" ).getFile().toPath();
+        Collection<BioAssay> bioAssays = Arrays.asList(
+                BioAssay.Factory.newInstance( "0", null, BioMaterial.Factory.newInstance( "0" ) ),
+                BioAssay.Factory.newInstance( "1", null, BioMaterial.Factory.newInstance( "1" ) ),
+                BioAssay.Factory.newInstance( "2", null, BioMaterial.Factory.newInstance( "2" ) ),
+                BioAssay.Factory.newInstance( "3", null, BioMaterial.Factory.newInstance( "3" ) )
+        );
+        Collection<CompositeSequence> designElements = Arrays.asList( CompositeSequence.Factory.newInstance( "CRHBP" ) );
+        // the second budget forces the entries to be spilled in many buckets
+        for ( int maxEntriesInMemory : new int[] { 1 << 22, 10 } ) {
+            try ( AnnDataSingleCellDataLoader loader = new AnnDataSingleCellDataLoader( dataPath ) ) {
+                loader.setTranspose( true );
+                loader.setUseRawX( true );
+                loader.setSampleFactorName( "batch" );
+                loader.setMaxEntriesInMemoryForTranspose( maxEntriesInMemory );
+                loader.setBioAssayToSampleNameMapper( new SimpleBioAssayMapper() );
+                loader.setDesignElementToGeneMapper( new SimpleDesignElementMapper( designElements ) );
+                SingleCellDimension dim = loader.getSingleCellDimension( bioAssays );
+                assertThat( dim.getNumberOfCells() ).isEqualTo( 100 );
+                QuantitationType qt = loader.getQuantitationTypes().iterator().next();
+                try ( Stream<SingleCellExpressionDataVector> vectors = loader.loadVectors( designElements, dim, qt ) ) {
+                    assertThat( vectors ).singleElement().satisfies( vec -> {
+                        assertThat( vec.getDesignElement() ).isEqualTo( designElements.iterator().next() );
+                        assertThat( vec.getDataIndices() ).containsExactly( 19, 80 );
+                        assertThat( vec.getDataAsFloats() ).containsExactly( 1.1773239374160767f, 0.6338212490081787f );
+                    } );
+                }
+            }
+        }
+    }
+
     @Test
     public void testLayeredAnnDataFile() throws IOException {
         Path dataPath = new ClassPathResource( "/data/loader/expression/singleCell/GSE221593.h5ad" ).getFile().toPath();
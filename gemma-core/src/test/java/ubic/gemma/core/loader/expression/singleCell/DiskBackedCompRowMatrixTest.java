@@ -0,0 +1,126 @@
+package ubic.gemma.core.loader.expression.singleCell;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class DiskBackedCompRowMatrixTest {
+
+    private Path matrixFile;
+
+    @Before
+    public void setUp() throws IOException {
+        matrixFile = Files.createTempFile( "test", ".mtx" );
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists( matrixFile );
+    }
+
+    @Test
+    public void test() throws IOException {
+        writeMatrix( "%%MatrixMarket matrix coordinate real general",
+                "% a comment",
+                "4 6 7",
+                "3 5 1.5",
+                "1 2 -2e-3",
+                "3 1 0",
+                "1 1 7",
+                "4 6 3.25",
+                "3 2 1e10",
+                "1 5 -0.1" );
+        // the last budget forces every row to be assembled from the spilled entries
+        for ( int maxEntriesInMemory : new int[] { 100, 1 } ) {
+            try ( DiskBackedCompRowMatrix matrix = DiskBackedCompRowMatrix.read( matrixFile, false, maxEntriesInMemory ) ) {
+                assertThat( matrix.numRows() ).isEqualTo( 4 );
+                assertThat( matrix.numColumns() ).isEqualTo( 6 );
+                assertThat( matrix.getNumberOfDiscardedColumns() ).isZero();
+                assertRow( matrix, 0, new int[] { 0, 1, 4 }, new double[] { 7, -2e-3, -0.1 } );
+                assertRow( matrix, 1, new int[0], new double[0] );
+                // explicit zeroes are retained
+                assertRow( matrix, 2, new int[] { 0, 1, 4 }, new double[] { 0, 1e10, 1.5 } );
+                assertRow( matrix, 3, new int[] { 5 }, new double[] { 3.25 } );
+            }
+        }
+    }
+
+    @Test
+    public void testManyBuckets() throws IOException {
+        // 300 rows that each fit in their own bucket, which is more than can be written at once
+        int numRows = 300, numColumns = 3;
+        List<String> lines = new ArrayList<>();
+        lines.add( "%%MatrixMarket matrix coordinate integer general" );
+        lines.add( numRows + " " + numColumns + " " + numRows * numColumns );
+        for ( int j = numColumns; j >= 1; j-- ) {
+            for ( int i = 1; i <= numRows; i++ ) {
+                lines.add( i + " " + j + " " + ( 10 * i + j ) );
+            }
+        }
+        writeMatrix( lines.toArray( new String[0] ) );
+        try ( DiskBackedCompRowMatrix matrix = DiskBackedCompRowMatrix.read( matrixFile, false, 3 ) ) {
+            for ( int i = 0; i < numRows; i++ ) {
+                int v = 10 * ( i + 1 );
+                assertRow( matrix, i, new int[] { 0, 1, 2 }, new double[] { v + 1, v + 2, v + 3 } );
+            }
+        }
+    }
+
+    @Test
+    public void testDiscardEmptyColumns() throws IOException {
+        writeMatrix( "%%MatrixMarket matrix coordinate integer general",
+                "2 5 3",
+                "2 5 3",
+                "1 2 1",
+                "2 2 4" );
+        try ( DiskBackedCompRowMatrix matrix = DiskBackedCompRowMatrix.read( matrixFile, true, 1 ) ) {
+            assertThat( matrix.numColumns() ).isEqualTo( 2 );
+            assertThat( matrix.getNumberOfDiscardedColumns() ).isEqualTo( 3 );
+            assertRow( matrix, 0, new int[] { 0 }, new double[] { 1 } );
+            assertRow( matrix, 1, new int[] { 0, 1 }, new double[] { 4, 3 } );
+        }
+    }
+
+    @Test
+    public void testDuplicateEntries() throws IOException {
+        writeMatrix( "%%MatrixMarket matrix coordinate integer general",
+                "3 3 2",
+                "1 1 1",
+                "1 1 2" );
+        assertThatThrownBy( () -> DiskBackedCompRowMatrix.read( matrixFile, false, 100 ) )
+                .isInstanceOf( IllegalArgumentException.class )
+                .hasMessageContaining( "more than one entry for row 1 and column 1" );
+    }
+
+    @Test
+    public void testMissingEntries() throws IOException {
+        writeMatrix( "%%MatrixMarket matrix coordinate integer general",
+                "3 3 2",
+                "1 1 1" );
+        assertThatThrownBy( () -> DiskBackedCompRowMatrix.read( matrixFile, false, 100 ) )
+                .isInstanceOf( IOException.class )
+                .hasMessageContaining( "ended after 1 entries, but 2 were declared" );
+    }
+
+    private void writeMatrix( String... lines ) throws IOException {
+        Files.write( matrixFile, String.join( "\n", lines ).getBytes( StandardCharsets.US_ASCII ) );
+    }
+
+    private void assertRow( DiskBackedCompRowMatrix matrix, int row, int[] expectedColumns, double[] expectedData ) throws IOException {
+        int[] columns = new int[matrix.getRowSize( row )];
+        double[] data = new double[matrix.getRowSize( row )];
+        matrix.readRow( row, columns, data, 0 );
+        assertThat( columns ).containsExactly( expectedColumns );
+        assertThat( data ).containsExactly( expectedData );
+    }
+}
@@ -0,0 +1,140 @@
+package ubic.gemma.core.ontology;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cache.concurrent.ConcurrentMapCache;
+import ubic.basecode.ontology.model.OntologyTerm;
+import ubic.basecode.ontology.providers.OntologyService;
+import ubic.basecode.ontology.simple.OntologyTermSimple;
+
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class OntologyClosureIndexTest {
+
+    private OntologyService os;
+    private final Map<String, OntologyTerm> terms = new HashMap<>();
+    private final Map<String, List<String>> parents = new HashMap<>();
+
+    /**
+     * <pre>
+     * root -> a -> c -> d
+     *      -> b -> c
+     * e -> f -> e (cycle)
+     * d -> x (external)
+     * </pre>
+     */
+    @Before
+    public void setUp() {
+        addTerm( "root" );
+        addTerm( "a", "root" );
+        addTerm( "b", "root" );
+        addTerm( "c", "a", "b" );
+        addTerm( "d", "c", "x" );
+        addTerm( "e", "f" );
+        addTerm( "f", "e" );
+        terms.put( "x", new OntologyTermSimple( "http://example.com/x", "x" ) );
+        os = mock();
+        when( os.isOntologyLoaded() ).thenReturn( true );
+        when( os.getAllURIs() ).thenAnswer( a -> allUris() );
+        when( os.getTerm( any() ) ).thenAnswer( a -> {
+            String uri = a.getArgument( 0 );
+            return uri.equals( uri( "x" ) ) ? null : terms.get( uri.substring( uri.lastIndexOf( '/' ) + 1 ) );
+        } );
+        when( os.getParents( anyCollection(), eq( true ), anyBoolean() ) ).thenAnswer( a -> {
+            Collection<OntologyTerm> c = a.getArgument( 0 );
+            Set<OntologyTerm> results = new HashSet<>();
+            for ( OntologyTerm t : c ) {
+                parents.getOrDefault( t.getLabel(), Collections.emptyList() ).forEach( p -> results.add( terms.get( p ) ) );
+            }
+            return results;
+        } );
+    }
+
+    @Test
+    public void testGetParentsAndChildren() {
+        OntologyClosureIndex index = OntologyClosureIndex.build( os, false );
+        assertThat( index.size() ).isEqualTo( 8 );
+        assertThat( index.contains( term( "d" ) ) ).isTrue();
+        assertThat( index.contains( term( "x" ) ) ).isFalse();
+        assertThat( index.contains( new OntologyTermSimple( "http://example.com/unknown", "unknown" ) ) ).isFalse();
+        assertThatClosureIsCorrect( index );
+        // external terms are returned as reported by the ontology
+        assertThat( index.getParents( Collections.singleton( term( "d" ) ), true ) )
+                .containsExactlyInAnyOrder( term( "c" ), term( "x" ) );
+    }
+
+    @Test
+    public void testOntologyCacheUsesClosureIndex() {
+        OntologyCache cache = new OntologyCache( new ConcurrentMapCache( "search" ), new ConcurrentMapCache( "parents" ), new ConcurrentMapCache( "children" ) );
+        cache.setClosureIndexExecutor( Runnable::run );
+        // the first query schedules the index, which is built synchronously here
+        cache.getParents( os, Collections.singleton( term( "d" ) ), false, false );
+        verify( os ).getAllURIs();
+        clearInvocations( os );
+        assertThat( cache.getParents( os, Arrays.asList( term( "d" ), term( "e" ) ), false, false ) )
+                .extracting( OntologyTerm::getLabel )
+                .containsExactlyInAnyOrder( "root", "a", "b", "c", "x", "e", "f" );
+        verify( os, never() ).getParents( anyCollection(), anyBoolean(), anyBoolean() );
+        // the index is discarded and rebuilt on the next query
+        cache.clearParentsAndChildrenCachesByOntology( os );
+        cache.getParents( os, Collections.singleton( term( "d" ) ), false, false );
+        verify( os ).getAllURIs();
+    }
+
+    @Test
+    public void testOntologyCacheRetriesFailedClosureIndex() {
+        when( os.getAllURIs() ).thenThrow( new RuntimeException( "not ready" ) ).thenAnswer( a -> allUris() );
+        OntologyCache cache = new OntologyCache( new ConcurrentMapCache( "search" ), new ConcurrentMapCache( "parents" ), new ConcurrentMapCache( "children" ) );
+        cache.setClosureIndexExecutor( Runnable::run );
+        // the build fails and the ontology is traversed instead
+        cache.getParents( os, Collections.singleton( term( "d" ) ), false, false );
+        verify( os ).getParents( anyCollection(), eq( false ), eq( false ) );
+        // the next query attempts to build the index again, and it is used instead of the ontology
+        assertThat( cache.getParents( os, Collections.singleton( term( "b" ) ), false, false ) )
+                .extracting( OntologyTerm::getLabel )
+                .containsExactly( "root" );
+        verify( os, times( 2 ) ).getAllURIs();
+        verify( os ).getParents( anyCollection(), eq( false ), eq( false ) );
+    }
+
+    private void assertThatClosureIsCorrect( OntologyClosureIndex index ) {
+        assertThat( index.getParents( Collections.singleton( term( "d" ) ), false ) )
+                .extracting( OntologyTerm::getLabel )
+                .containsExactlyInAnyOrder( "root", "a", "b", "c", "x" );
+        assertThat( index.getParents( Arrays.asList( term( "a" ), term( "b" ) ), false ) )
+                .extracting( OntologyTerm::getLabel )
+                .containsExactly( "root" );
+        assertThat( index.getChildren( Collections.singleton( term( "root" ) ), false ) )
+                .extracting( OntologyTerm::getLabel )
+                .containsExactlyInAnyOrder( "a", "b", "c", "d" );
+        assertThat( index.getChildren( Collections.singleton( term( "root" ) ), true ) )
+                .extracting( OntologyTerm::getLabel )
+                .containsExactlyInAnyOrder( "a", "b" );
+        assertThat( index.getChildren( Collections.singleton( term( "d" ) ), false ) ).isEmpty();
+        // terms in a cycle are their own ancestors
+        assertThat( index.getParents( Collections.singleton( term( "e" ) ), false ) )
+                .extracting( OntologyTerm::getLabel )
+                .containsExactlyInAnyOrder( "e", "f" );
+    }
+
+    private void addTerm( String name, String... parentNames ) {
+        terms.put( name, new OntologyTermSimple( uri( name ), name ) );
+        parents.put( name, Arrays.asList( parentNames ) );
+    }
+
+    private static Set<String> allUris() {
+        return new HashSet<>( Arrays.asList( uri( "root" ), uri( "a" ), uri( "b" ), uri( "c" ), uri( "d" ), uri( "e" ), uri( "f" ) ) );
+    }
+
+    private OntologyTerm term( String name ) {
+        return terms.get( name );
+    }
+
+    private static String uri( String name ) {
+        return "http://example.com/" + name;
+    }
+}
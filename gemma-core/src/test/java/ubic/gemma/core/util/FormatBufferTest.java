@@ -0,0 +1,130 @@
+package ubic.gemma.core.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FormatBufferTest {
+
+    private static final double[] SPECIAL_VALUES = {
+            0.0, -0.0, 1.0, -1.0, 0.5, 2.5, 1e-5, 5e-5, 1e-4, 1.5e-4, 0.12345, 1.00005, 999.99995, 999.99996, 1e3,
+            1234.45, 1234.55, 9999999.0, -9999999.0, 9999999.95, 1e7, 1e15, 1e20, Double.MIN_VALUE, Double.MAX_VALUE,
+            Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY
+    };
+
+    @Test
+    public void testAppendFormattedDouble() {
+        FormatBuffer buf = new FormatBuffer( 4 );
+        for ( double d : SPECIAL_VALUES ) {
+            assertThat( buf.appendFormatted( d ).toString() )
+                    .describedAs( "%s", d )
+                    .isEqualTo( TsvUtils.format( d ) );
+            buf.clear();
+        }
+        Random random = new Random( 123L );
+        for ( int i = 0; i < 100000; i++ ) {
+            double d = randomDouble( random );
+            assertThat( buf.appendFormatted( d ).toString() )
+                    .describedAs( "%s", d )
+                    .isEqualTo( TsvUtils.format( d ) );
+            buf.clear();
+        }
+    }
+
+    @Test
+    public void testAppendFastDouble() {
+        FormatBuffer buf = new FormatBuffer( 4 );
+        for ( double d : SPECIAL_VALUES ) {
+            assertThat( buf.appendFast( d ).toString() )
+                    .isEqualTo( TsvUtils.formatFast( d ) );
+            buf.clear();
+        }
+        Random random = new Random( 123L );
+        for ( int i = 0; i < 100000; i++ ) {
+            double d = randomDouble( random );
+            assertThat( buf.appendFast( d ).toString() )
+                    .isEqualTo( TsvUtils.formatFast( d ) );
+            buf.clear();
+        }
+    }
+
+    @Test
+    public void testAppendFastFloat() {
+        FormatBuffer buf = new FormatBuffer( 4 );
+        for ( double d : SPECIAL_VALUES ) {
+            assertThat( buf.appendFast( ( float ) d ).toString() )
+                    .isEqualTo( TsvUtils.formatFast( ( float ) d ) );
+            buf.clear();
+        }
+        Random random = new Random( 123L );
+        for ( int i = 0; i < 100000; i++ ) {
+            float f = ( float ) randomDouble( random );
+            assertThat( buf.appendFast( f ).toString() )
+                    .isEqualTo( TsvUtils.formatFast( f ) );
+            buf.clear();
+        }
+    }
+
+    @Test
+    public void testAppendFastIntegers() {
+        FormatBuffer buf = new FormatBuffer( 4 );
+        for ( long l : new long[] { 0L, 1L, -1L, 9L, 10L, 999999999999999999L, 1000000000000000000L, Long.MAX_VALUE, Long.MIN_VALUE } ) {
+            assertThat( buf.appendFast( l ).toString() ).isEqualTo( TsvUtils.formatFast( l ) );
+            buf.clear();
+        }
+        for ( int i : new int[] { 0, 1, -1, 10, Integer.MAX_VALUE, Integer.MIN_VALUE } ) {
+            assertThat( buf.appendFast( i ).toString() ).isEqualTo( TsvUtils.formatFast( i ) );
+            buf.clear();
+        }
+        Random random = new Random( 123L );
+        for ( int i = 0; i < 100000; i++ ) {
+            long l = random.nextLong() >> random.nextInt( 64 );
+            assertThat( buf.appendFast( l ).toString() ).isEqualTo( TsvUtils.formatFast( l ) );
+            buf.clear();
+        }
+    }
+
+    @Test
+    public void testAppendFormattedString() {
+        FormatBuffer buf = new FormatBuffer( 4 );
+        assertThat( buf.appendFormatted( "\t\n\r\\abc" ).toString() )
+                .isEqualTo( TsvUtils.format( "\t\n\r\\abc" ) );
+        buf.clear();
+        assertThat( buf.appendFormatted( ( String ) null ).toString() )
+                .isEqualTo( TsvUtils.format( ( String ) null ) );
+    }
+
+    @Test
+    public void testWriteTo() throws IOException {
+        FormatBuffer buf = new FormatBuffer( 1 );
+        buf.append( "a" ).append( '\t' ).appendFast( 12 ).append( '\t' ).appendFast( 1.5 ).append( '\t' ).appendFormatted( 1e-5 );
+        StringWriter writer = new StringWriter();
+        buf.writeTo( writer );
+        assertThat( writer ).hasToString( "a\t12\t1.5\t1E-5" );
+        assertThat( buf ).hasSize( 13 );
+        buf.clear();
+        assertThat( buf ).isEmpty();
+    }
+
+    /**
+     * Generate doubles covering integral counts, values with few decimals, rounding ties and arbitrary bit patterns.
+     */
+    private static double randomDouble( Random random ) {
+        switch ( random.nextInt( 5 ) ) {
+            case 0:
+                return random.nextInt( 20000000 ) - 10000000;
+            case 1:
+                return ( random.nextInt( 2000000 ) - 1000000 ) / 10000.0 + ( random.nextBoolean() ? 0.00005 : 0 );
+            case 2:
+                return random.nextGaussian() * Math.pow( 10, random.nextInt( 30 ) - 15 );
+            case 3:
+                return Double.longBitsToDouble( random.nextLong() );
+            default:
+                return ( random.nextInt( 200000 ) - 100000 ) / 10.0 + 0.05;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package ubic.gemma.core.visualization;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.concurrent.ConcurrentMapCacheManager;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.test.context.ContextConfiguration;
+import ubic.gemma.core.context.TestComponent;
+import ubic.gemma.core.util.test.BaseTest;
+import ubic.gemma.core.util.test.TestPropertyPlaceholderConfigurer;
+import ubic.gemma.model.common.auditAndSecurity.curation.CurationDetails;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+
+import java.awt.image.BufferedImage;
+import java.util.Date;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+@ContextConfiguration
+public class HeatmapTileCacheTest extends BaseTest {
+
+    @Configuration
+    @TestComponent
+    static class HeatmapTileCacheTestContextConfiguration {
+
+        @Bean
+        public static TestPropertyPlaceholderConfigurer testPropertyPlaceholderConfigurer() {
+            return new TestPropertyPlaceholderConfigurer( "gemma.cache.HeatmapTileCache.enabled=true" );
+        }
+
+        @Bean
+        public CacheManager cacheManager() {
+            return new ConcurrentMapCacheManager();
+        }
+
+        @Bean
+        public HeatmapTileCache heatmapTileCache( CacheManager cacheManager ) {
+            return new HeatmapTileCacheImpl( cacheManager );
+        }
+    }
+
+    @Autowired
+    private HeatmapTileCache heatmapTileCache;
+
+    @Autowired
+    private CacheManager cacheManager;
+
+    @After
+    public void clearCache() {
+        cacheManager.getCache( "HeatmapTileCache" ).clear();
+    }
+
+    @Test
+    public void testGetOrRender() {
+        ExpressionExperiment ee = createExperiment( new Date( 1000L ) );
+        Heatmap heatmap = createHeatmap();
+        HeatmapTile tile = heatmapTileCache.getOrRender( ee, "heatmap", () -> heatmap );
+        assertThat( tile.getData() ).startsWith( 0x89, 'P', 'N', 'G' );
+        assertThat( tile.getEntityTag() ).hasSize( 32 );
+        assertThat( tile.getLastModified() ).isEqualTo( new Date( 1000L ) );
+        verify( heatmap ).createImage();
+
+        // cached
+        assertThat( heatmapTileCache.getOrRender( ee, "heatmap", () -> heatmap ) ).isSameAs( tile );
+        verifyNoMoreInteractions( heatmap );
+
+        // a different tile of the same experiment
+        assertThat( heatmapTileCache.getOrRender( ee, "heatmap:transpose=true", this::createHeatmap ) ).isNotSameAs( tile );
+
+        // the experiment was updated since the tile was rendered
+        ee.getCurationDetails().setLastUpdated( new Date( 2000L ) );
+        assertThat( heatmapTileCache.getOrRender( ee, "heatmap", this::createHeatmap ) )
+                .isNotSameAs( tile )
+                .satisfies( t -> assertThat( t.getLastModified() ).isEqualTo( new Date( 2000L ) ) );
+    }
+
+    @Test
+    public void testEvict() {
+        ExpressionExperiment ee = createExperiment( new Date( 1000L ) );
+        HeatmapTile tile = heatmapTileCache.getOrRender( ee, "heatmap", this::createHeatmap );
+        heatmapTileCache.evict( ee );
+        Heatmap heatmap = createHeatmap();
+        assertThat( heatmapTileCache.getOrRender( ee, "heatmap", () -> heatmap ) )
+                .isNotSameAs( tile )
+                .satisfies( t -> assertThat( t.getEntityTag() ).isEqualTo( tile.getEntityTag() ) );
+        verify( heatmap ).createImage();
+    }
+
+    private ExpressionExperiment createExperiment( Date lastUpdated ) {
+        ExpressionExperiment ee = new ExpressionExperiment();
+        ee.setId( 1L );
+        CurationDetails curationDetails = new CurationDetails();
+        curationDetails.setLastUpdated( lastUpdated );
+        ee.setCurationDetails( curationDetails );
+        return ee;
+    }
+
+    private Heatmap createHeatmap() {
+        Heatmap heatmap = mock();
+        when( heatmap.createImage() ).thenReturn( new BufferedImage( 10, 10, BufferedImage.TYPE_INT_RGB ) );
+        return heatmap;
+    }
+}
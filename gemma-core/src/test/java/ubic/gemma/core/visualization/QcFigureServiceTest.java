@@ -0,0 +1,130 @@
+package ubic.gemma.core.visualization;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.scheduling.concurrent.ConcurrentTaskExecutor;
+import ubic.gemma.core.analysis.service.ExpressionDataFileService;
+import ubic.gemma.core.util.locking.FileLockManager;
+import ubic.gemma.core.util.locking.FileLockManagerImpl;
+import ubic.gemma.core.util.locking.LockedPath;
+import ubic.gemma.model.common.auditAndSecurity.curation.CurationDetails;
+import ubic.gemma.model.expression.bioAssayData.MeanVarianceRelation;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+
+import javax.imageio.ImageIO;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class QcFigureServiceTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final FileLockManager fileLockManager = new FileLockManagerImpl();
+    private final QcFigureRenderer qcFigureRenderer = new QcFigureRendererImpl();
+    private QcFigureService qcFigureService;
+    private Path metadataDir;
+
+    @Before
+    public void setUp() throws IOException {
+        metadataDir = temporaryFolder.newFolder( "metadata" ).toPath();
+        ExpressionDataFileService expressionDataFileService = mock();
+        when( expressionDataFileService.getMetadataFile( any(), anyString(), anyBoolean() ) ).thenAnswer( a -> {
+            ExpressionExperiment ee = a.getArgument( 0 );
+            return fileLockManager.acquirePathLock( metadataDir.resolve( ee.getShortName() ).resolve( ( String ) a.getArgument( 1 ) ), a.getArgument( 2 ) );
+        } );
+        qcFigureService = new QcFigureServiceImpl( expressionDataFileService, new ConcurrentTaskExecutor( Runnable::run ) );
+    }
+
+    @Test
+    public void testSaveAndGetFigure() throws IOException, ExecutionException, InterruptedException {
+        ExpressionExperiment ee = createExperiment( new Date( 1000L ) );
+        byte[] png = { ( byte ) 0x89, 'P', 'N', 'G' };
+        assertThat( qcFigureService.getFigure( ee, QcFigureType.PCA_SCREE, "default" ) ).isEmpty();
+        Path figurePath = qcFigureService.saveFigureAsync( ee, QcFigureType.PCA_SCREE, "default", png ).get();
+        assertThat( figurePath ).isEqualTo( metadataDir.resolve( "GSE0001/qc/pcaScree/default.1000.png" ) );
+        Optional<LockedPath> figure = qcFigureService.getFigure( ee, QcFigureType.PCA_SCREE, "default" );
+        assertThat( figure ).hasValueSatisfying( f -> {
+            assertThat( f.isShared() ).isTrue();
+            assertThat( f.getPath() ).hasBinaryContent( png );
+        } );
+        figure.get().close();
+
+        // a different variant is stored independently
+        assertThat( qcFigureService.getFigure( ee, QcFigureType.PCA_SCREE, "size2" ) ).isEmpty();
+
+        // the experiment was updated since the figure was rendered
+        ee.getCurationDetails().setLastUpdated( new Date( 2000L ) );
+        assertThat( qcFigureService.getFigure( ee, QcFigureType.PCA_SCREE, "default" ) ).isEmpty();
+
+        // saving the newer figure removes the outdated one
+        qcFigureService.saveFigure( ee, QcFigureType.PCA_SCREE, "default", png );
+        assertThat( figurePath ).doesNotExist();
+        assertThat( metadataDir.resolve( "GSE0001/qc/pcaScree/default.2000.png" ) ).exists();
+    }
+
+    @Test
+    public void testDeleteFigures() throws IOException {
+        ExpressionExperiment ee = createExperiment( new Date( 1000L ) );
+        byte[] png = { ( byte ) 0x89, 'P', 'N', 'G' };
+        qcFigureService.saveFigure( ee, QcFigureType.PVALUE_DISTRIBUTION, "resultSet1", png );
+        qcFigureService.saveFigure( ee, QcFigureType.PVALUE_DISTRIBUTION, "resultSet1-thumbnail10", png );
+        qcFigureService.saveFigure( ee, QcFigureType.MEAN_VARIANCE, "size1", png );
+        assertThat( qcFigureService.deleteFigures( ee, QcFigureType.PVALUE_DISTRIBUTION ) ).isEqualTo( 2 );
+        assertThat( qcFigureService.getFigure( ee, QcFigureType.PVALUE_DISTRIBUTION, "resultSet1" ) ).isEmpty();
+        assertThat( qcFigureService.getFigure( ee, QcFigureType.MEAN_VARIANCE, "size1" ) ).hasValueSatisfying( LockedPath::close );
+        assertThat( qcFigureService.deleteFigures( ee, QcFigureType.PCA_FACTORS ) ).isZero();
+    }
+
+    @Test
+    public void testRenderAndSaveFigure() throws IOException, ExecutionException, InterruptedException {
+        ExpressionExperiment ee = createExperiment( new Date( 1000L ) );
+        MeanVarianceRelation mvr = MeanVarianceRelation.Factory.newInstance( new double[] { 1, 2, 3 }, new double[] { 0.5, 0.25, 0.125 } );
+        Future<Path> figure = qcFigureService.saveFigureAsync( ee, QcFigureType.MEAN_VARIANCE, QcFigureUtils.getMeanVarianceVariant( 1 ),
+                os -> qcFigureRenderer.renderMeanVariance( mvr, 1, os ) );
+        assertThat( figure ).isNotNull();
+        assertThat( figure.get() ).isEqualTo( metadataDir.resolve( "GSE0001/qc/meanVariance/size1.1000.png" ) );
+        assertThat( ImageIO.read( figure.get().toFile() ) ).satisfies( image -> {
+            assertThat( image.getWidth() ).isEqualTo( QcFigureUtils.DEFAULT_QC_IMAGE_SIZE_PX );
+            assertThat( image.getHeight() ).isEqualTo( QcFigureUtils.DEFAULT_QC_IMAGE_SIZE_PX );
+        } );
+    }
+
+    @Test
+    public void testRenderAndSaveFigureWhenRenderingFails() {
+        ExpressionExperiment ee = createExperiment( new Date( 1000L ) );
+        assertThat( qcFigureService.saveFigureAsync( ee, QcFigureType.PCA_SCREE, "default", os -> {
+            throw new IOException( "rendering failed" );
+        } ) ).isNull();
+        assertThat( metadataDir.resolve( "GSE0001/qc/pcaScree/default.1000.png" ) ).doesNotExist();
+    }
+
+    @Test
+    public void testInvalidVariant() {
+        ExpressionExperiment ee = createExperiment( new Date( 1000L ) );
+        assertThatThrownBy( () -> qcFigureService.getFigure( ee, QcFigureType.PCA_SCREE, "../../design" ) )
+                .isInstanceOf( IllegalArgumentException.class );
+    }
+
+    private ExpressionExperiment createExperiment( Date lastUpdated ) {
+        ExpressionExperiment ee = new ExpressionExperiment();
+        ee.setId( 1L );
+        ee.setShortName( "GSE0001" );
+        CurationDetails curationDetails = new CurationDetails();
+        curationDetails.setLastUpdated( lastUpdated );
+        ee.setCurationDetails( curationDetails );
+        return ee;
+    }
+}
@@ -0,0 +1,88 @@
+package ubic.gemma.model.expression.bioAssayData;
+
+import cern.colt.list.DoubleArrayList;
+import org.junit.Test;
+import ubic.gemma.model.common.quantitationtype.*;
+import ubic.gemma.model.expression.bioAssay.BioAssay;
+import ubic.gemma.model.expression.designElement.CompositeSequence;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+import ubic.gemma.persistence.service.expression.bioAssayData.RandomSingleCellDataUtils;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.*;
+import static ubic.gemma.model.expression.bioAssayData.SingleCellExpressionDataVectorUtils.*;
+
+public class SingleCellExpressionDataVectorAccessorTest {
+
+    @Test
+    public void testSelectSample() {
+        SingleCellExpressionDataVector vector = createVector( PrimitiveType.DOUBLE );
+        SingleCellExpressionDataVectorAccessor accessor = SingleCellExpressionDataVectorAccessor.of( vector );
+        DoubleArrayList vec = new DoubleArrayList();
+        for ( int i = 0; i < 8; i++ ) {
+            double[] expected = getSampleDataAsDoubles( vector, i );
+            accessor.select( i );
+            assertEquals( expected.length, accessor.size() );
+            int k = 0;
+            while ( accessor.next() ) {
+                assertEquals( expected[k++], accessor.getDouble(), 0.0 );
+                assertSame( vector.getSingleCellDimension().getBioAssays().get( i ),
+                        vector.getSingleCellDimension().getBioAssay( accessor.getCellIndex() ) );
+            }
+            assertEquals( expected.length, k );
+            accessor.copyTo( vec );
+            assertArrayEquals( expected, Arrays.copyOf( vec.elements(), vec.size() ), 0.0 );
+        }
+        // samples can also be selected out of order
+        accessor.select( 3 );
+        assertEquals( getSampleDataAsDoubles( vector, 3 ).length, accessor.size() );
+    }
+
+    @Test
+    public void testSelectCellGroup() {
+        SingleCellExpressionDataVector vector = createVector( PrimitiveType.INT );
+        CellTypeAssignment cta = RandomSingleCellDataUtils.randomCellTypeAssignment( vector.getSingleCellDimension() );
+        SingleCellExpressionDataVectorAccessor accessor = SingleCellExpressionDataVectorAccessor.of( vector );
+        for ( int i = 0; i < 8; i++ ) {
+            for ( int row = -1; row < cta.getNumberOfCharacteristics(); row++ ) {
+                int[] expected = getSampleDataAsInts( vector, i, cta, row );
+                accessor.select( i, cta, row );
+                assertEquals( expected.length, accessor.size() );
+                int k = 0;
+                while ( accessor.next() ) {
+                    assertEquals( row, cta.getIndices()[accessor.getCellIndex()] );
+                    assertEquals( expected[k++], accessor.getInt() );
+                }
+                assertEquals( expected.length, k );
+            }
+        }
+    }
+
+    @Test
+    public void testFloatsAreWidened() {
+        SingleCellExpressionDataVector vector = createVector( PrimitiveType.FLOAT );
+        SingleCellExpressionDataVectorAccessor accessor = SingleCellExpressionDataVectorAccessor.of( vector ).select( 0 );
+        float[] expected = getSampleDataAsFloats( vector, 0 );
+        assertThat( expected ).isNotEmpty();
+        assertTrue( accessor.next() );
+        assertEquals( expected[0], accessor.getFloat(), 0.0f );
+        assertEquals( expected[0], accessor.getDouble(), 0.0 );
+        assertThrows( IllegalStateException.class, accessor::getInt );
+    }
+
+    private SingleCellExpressionDataVector createVector( PrimitiveType representation ) {
+        RandomSingleCellDataUtils.setSeed( 123 );
+        ExpressionExperiment ee = new ExpressionExperiment();
+        for ( int i = 0; i < 8; i++ ) {
+            ee.getBioAssays().add( BioAssay.Factory.newInstance( "ba" + i ) );
+        }
+        QuantitationType qt = new QuantitationType();
+        qt.setGeneralType( GeneralType.QUANTITATIVE );
+        qt.setType( StandardQuantitationType.COUNT );
+        qt.setScale( ScaleType.COUNT );
+        qt.setRepresentation( representation );
+        return RandomSingleCellDataUtils.randomSingleCellVector( ee, new CompositeSequence(), qt, 1000, 0.9 );
+    }
+}
@@ -0,0 +1,105 @@
+package ubic.gemma.persistence.hibernate;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class CompressedStringListTypeTest {
+
+    private CompressedStringListType type;
+
+    @Before
+    public void setUp() {
+        type = new CompressedStringListType();
+        Properties props = new Properties();
+        props.setProperty( "delimiter", "\\n" );
+        props.setProperty( "blockSize", "100" );
+        type.setParameterValues( props );
+    }
+
+    @Test
+    public void testCompressAndDecompress() throws IOException {
+        List<String> cellIds = randomCellIds( 1050 );
+        byte[] compressed = IOUtils.toByteArray( type.compress( cellIds ) );
+        List<String> decompressed = type.decompress( new ByteArrayInputStream( compressed ) );
+        assertThat( decompressed )
+                .isInstanceOf( BlockCompressedStringList.class )
+                .hasSize( 1050 )
+                .isEqualTo( cellIds );
+        // random access, including the last and partial block
+        assertThat( decompressed.get( 1049 ) ).isEqualTo( cellIds.get( 1049 ) );
+        assertThat( decompressed.get( 0 ) ).isEqualTo( cellIds.get( 0 ) );
+        assertThat( decompressed.subList( 95, 205 ) ).isEqualTo( cellIds.subList( 95, 205 ) );
+        // alternating between blocks, as when looking up cell IDs gene by gene
+        for ( int i = 0; i < 100; i++ ) {
+            assertThat( decompressed.get( i ) ).isEqualTo( cellIds.get( i ) );
+            assertThat( decompressed.get( 1000 + i % 50 ) ).isEqualTo( cellIds.get( 1000 + i % 50 ) );
+        }
+        assertThat( decompressed.toArray() ).isEqualTo( cellIds.toArray() );
+        assertThat( decompressed.toArray( new String[0] ) ).isEqualTo( cellIds.toArray( new String[0] ) );
+        assertThatThrownBy( () -> decompressed.get( 1050 ) )
+                .isInstanceOf( IndexOutOfBoundsException.class );
+        assertThat( type.decompressToStream( new ByteArrayInputStream( compressed ) ).collect( Collectors.toList() ) )
+                .isEqualTo( cellIds );
+        // an already compressed list is written as-is and is not copied
+        assertThat( IOUtils.toByteArray( type.compress( decompressed ) ) ).isEqualTo( compressed );
+        assertThat( type.deepCopy( decompressed ) ).isSameAs( decompressed );
+    }
+
+    @Test
+    public void testCompressAndDecompressEdgeCases() throws IOException {
+        for ( List<String> strings : Arrays.asList(
+                Collections.<String>emptyList(),
+                Collections.singletonList( "" ),
+                Arrays.asList( "", "", "a" ),
+                Arrays.asList( "abc\uD83D\uDE00", "abc\uD83D\uDE01", "\u00e9t\u00e9" ) ) ) {
+            byte[] compressed = IOUtils.toByteArray( type.compress( strings ) );
+            assertThat( type.decompress( new ByteArrayInputStream( compressed ) ) )
+                    .isEqualTo( strings );
+        }
+    }
+
+    @Test
+    public void testDecompressGzipCompressedList() throws IOException {
+        List<String> cellIds = randomCellIds( 1050 );
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try ( OutputStream out = new GZIPOutputStream( baos ) ) {
+            out.write( String.join( "\\n", cellIds ).getBytes( StandardCharsets.UTF_8 ) );
+        }
+        assertThat( type.decompress( new ByteArrayInputStream( baos.toByteArray() ) ) )
+                .isEqualTo( cellIds );
+        assertThat( type.decompressToStream( new ByteArrayInputStream( baos.toByteArray() ) ).collect( Collectors.toList() ) )
+                .isEqualTo( cellIds );
+    }
+
+    @Test
+    public void testCompressListContainingDelimiter() {
+        assertThatThrownBy( () -> type.compress( Arrays.asList( "a", "b\\nc" ) ) )
+                .isInstanceOf( IllegalArgumentException.class );
+    }
+
+    private List<String> randomCellIds( int n ) {
+        Random random = new Random( 123L );
+        List<String> cellIds = new ArrayList<>( n );
+        for ( int i = 0; i < n; i++ ) {
+            StringBuilder barcode = new StringBuilder( "sample" + ( i / 300 ) + "_" );
+            for ( int j = 0; j < 16; j++ ) {
+                barcode.append( "ACGT".charAt( random.nextInt( 4 ) ) );
+            }
+            cellIds.add( barcode.append( "-1" ).toString() );
+        }
+        return cellIds;
+    }
+}
@@ -0,0 +1,53 @@
+package ubic.gemma.persistence.service.association.coexpression;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CoexpressionCacheEntryTest {
+
+    @Test
+    public void testEncodeAndDecode() {
+        List<CoexpressionValueObject> links = new ArrayList<>();
+        links.add( new CoexpressionValueObject( 12L, "BRCA1", true, 1L, "TP53", 3, 100L,
+                new HashSet<>( Arrays.asList( 4L, 8L, 15L ) ), new HashSet<>( Arrays.asList( 4L, 8L, 15L, 16L, 23000L ) ) ) );
+        links.add( new CoexpressionValueObject( 5L, null, false, 1L, "TP53", 2, null,
+                new HashSet<>( Arrays.asList( 42L, 1L << 40 ) ), null ) );
+        links.add( new CoexpressionValueObject( 7L, "MYC", true, 1L, "TP53", 1, 101L, null, null ) );
+
+        CoexpressionCacheEntry entry = CoexpressionCacheEntry.encode( 1L, links );
+        assertEquals( 3, entry.getNumLinks() );
+        assertTrue( entry.getSizeInBytes() < 64 );
+
+        List<CoexpressionValueObject> decoded = entry.decode( 1L );
+        assertEquals( links.size(), decoded.size() );
+        for ( int i = 0; i < links.size(); i++ ) {
+            CoexpressionValueObject expected = links.get( i );
+            CoexpressionValueObject actual = decoded.get( i );
+            assertEquals( expected.getQueryGeneId(), actual.getQueryGeneId() );
+            assertEquals( expected.getQueryGeneSymbol(), actual.getQueryGeneSymbol() );
+            assertEquals( expected.getCoexGeneId(), actual.getCoexGeneId() );
+            assertEquals( expected.getCoexGeneSymbol(), actual.getCoexGeneSymbol() );
+            assertEquals( expected.isPositiveCorrelation(), actual.isPositiveCorrelation() );
+            assertEquals( expected.getNumDatasetsSupporting(), actual.getNumDatasetsSupporting() );
+            assertEquals( expected.getSupportDetailsId(), actual.getSupportDetailsId() );
+            assertEquals( expected.getSupportingDatasets(), actual.getSupportingDatasets() );
+            assertEquals( expected.getTestedInDatasets(), actual.getTestedInDatasets() );
+        }
+    }
+
+    @Test
+    public void testEncodeEmpty() {
+        CoexpressionCacheEntry entry = CoexpressionCacheEntry.encode( 1L, Collections.emptyList() );
+        assertEquals( 0, entry.getNumLinks() );
+        assertTrue( entry.decode( 1L ).isEmpty() );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEncodeLinkForAnotherGene() {
+        CoexpressionCacheEntry.encode( 2L, Collections.singletonList(
+                new CoexpressionValueObject( 12L, "BRCA1", true, 1L, "TP53", 3, 100L, null, null ) ) );
+    }
+}
@@ -8,9 +8,13 @@ import org.springframework.test.context.ContextConfiguration;
 import ubic.gemma.core.context.TestComponent;
 import ubic.gemma.core.util.test.BaseDatabaseTest;
 import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+import ubic.gemma.model.genome.Gene;
 import ubic.gemma.model.genome.Taxon;
 
-import static org.junit.Assert.assertFalse;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
 import static org.mockito.Mockito.mock;
 
 @ContextConfiguration
@@ -48,4 +52,26 @@ public class CoexpressionDaoTest extends BaseDatabaseTest {
         sessionFactory.getCurrentSession().persist( ee );
         assertFalse( coexpressionDao.hasLinks( taxon, ee ) );
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testBulkInsertExperimentLevelLinks() {
+        Taxon taxon = new Taxon();
+        ExpressionExperiment ee = new ExpressionExperiment();
+        ee.setTaxon( taxon );
+        sessionFactory.getCurrentSession().persist( taxon );
+        sessionFactory.getCurrentSession().persist( ee );
+        SortedMap<Long, NonPersistentNonOrderedCoexpLink> links = new TreeMap<>();
+        // enough links to use both full and partial multi-row statements
+        for ( long i = 0; i < 1000; i++ ) {
+            links.put( i + 1, new NonPersistentNonOrderedCoexpLink( 1L + i % 7, 100L + i, true ) );
+        }
+        CoexpressionLinkBulkWriter writer = new CoexpressionLinkBulkWriter( sessionFactory.getCurrentSession(), taxon,
+                1024 );
+        assertEquals( 2000, writer.insertExperimentLevelLinks( new LinkCreator( taxon ), links, ee ) );
+        assertTrue( coexpressionDao.hasLinks( taxon, ee ) );
+        Gene gene = new Gene();
+        gene.setId( 1L );
+        gene.setTaxon( taxon );
+        assertEquals( Integer.valueOf( 143 ), coexpressionDao.countLinks( gene, ee ) );
+    }
+}
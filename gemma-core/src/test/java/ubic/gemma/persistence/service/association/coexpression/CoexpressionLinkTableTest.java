@@ -0,0 +1,93 @@
+package ubic.gemma.persistence.service.association.coexpression;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CoexpressionLinkTableTest {
+
+    @Test
+    public void testDuplicatesAreRemoved() {
+        List<Object[]> raw = Arrays.asList(
+                row( 1, true, 3, 10, 20, 100 ),
+                row( 2, true, 3, 20, 10, 100 ), // flipped version
+                row( 3, false, 3, 10, 20, 101 ), // other sign
+                row( 4, true, 4, 10, 30, 102 ) );
+        CoexpressionLinkTable table = CoexpressionLinkTable.fromRawResults( raw, null, null );
+        assertEquals( 3, table.size() );
+        assertEquals( 1, table.getNumDuplicates() );
+    }
+
+    @Test
+    public void testAllIsSortedBySupport() {
+        List<Object[]> raw = Arrays.asList(
+                row( 1, true, 3, 10, 20, 100 ),
+                row( 2, true, 5, 11, 21, 101 ),
+                row( 3, true, 6, 10, 22, 102 ),
+                row( 4, false, 3, 10, 23, 103 ) );
+        CoexpressionLinkTable table = CoexpressionLinkTable.fromRawResults( raw, null, Arrays.asList( 10L, 11L ) );
+        Map<Long, List<CoexpressionValueObject>> results = table.toValueObjects( table.all() );
+        assertEquals( 2, results.size() );
+        List<CoexpressionValueObject> g10 = results.get( 10L );
+        assertEquals( 3, g10.size() );
+        assertEquals( Long.valueOf( 22L ), g10.get( 0 ).getCoexGeneId() );
+        // ties keep the original order
+        assertEquals( Long.valueOf( 20L ), g10.get( 1 ).getCoexGeneId() );
+        assertEquals( Long.valueOf( 23L ), g10.get( 2 ).getCoexGeneId() );
+        assertFalse( g10.get( 2 ).isPositiveCorrelation() );
+        assertFalse( g10.get( 0 ).isInterQueryLink() );
+    }
+
+    @Test
+    public void testSelect() {
+        List<Object[]> raw = new ArrayList<>();
+        Map<Long, CompressedLongSet> supportDetails = new HashMap<>();
+        // gene 10 is supported by datasets 1 to 5 with 20, 1 to 4 with 21, etc.
+        for ( int k = 0; k < 5; k++ ) {
+            raw.add( row( k, true, 5 - k, 10, 20 + k, 100 + k ) );
+            long[] ds = new long[5 - k];
+            for ( int d = 0; d < ds.length; d++ ) {
+                ds[d] = d + 1;
+            }
+            supportDetails.put( 100L + k, CompressedLongSet.ofSorted( ds ) );
+        }
+        // inter-query link with low support
+        raw.add( row( 5, true, 2, 10, 11, 105 ) );
+        supportDetails.put( 105L, CompressedLongSet.ofSorted( new long[] { 2, 3 } ) );
+
+        CoexpressionLinkTable table = CoexpressionLinkTable
+                .fromRawResults( raw, supportDetails, Arrays.asList( 10L, 11L ) );
+
+        // stringency only
+        assertEquals( 5, table.select( 2, null, 0 ).length );
+
+        // restricted to datasets 2 to 5: supports become 4, 3, 2, 1, 0 and 2 for the inter-query link
+        CompressedLongSet bas = CompressedLongSet.ofSorted( new long[] { 2, 3, 4, 5 } );
+        Map<Long, List<CoexpressionValueObject>> results = table.toValueObjects( table.select( 2, bas, 0 ) );
+        assertEquals( Arrays.asList( 20L, 21L, 22L, 11L ), coexGenes( results.get( 10L ) ) );
+
+        // max results does not apply to inter-query links
+        results = table.toValueObjects( table.select( 2, bas, 1 ) );
+        assertEquals( Arrays.asList( 20L, 11L ), coexGenes( results.get( 10L ) ) );
+        assertTrue( results.get( 10L ).get( 1 ).isInterQueryLink() );
+
+        assertTrue( table.toValueObjects( table.select( 5, bas, 0 ) ).isEmpty() );
+    }
+
+    private static List<Long> coexGenes( List<CoexpressionValueObject> vos ) {
+        List<Long> result = new ArrayList<>();
+        for ( CoexpressionValueObject vo : vos ) {
+            result.add( vo.getCoexGeneId() );
+        }
+        return result;
+    }
+
+    private static Object[] row( long id, boolean positive, int support, long queryGene, long coexGene,
+            long supportDetailsId ) {
+        return new Object[] { BigInteger.valueOf( id ), ( byte ) ( positive ? 1 : 0 ), support,
+                BigInteger.valueOf( queryGene ), BigInteger.valueOf( coexGene ), BigInteger.valueOf( supportDetailsId ) };
+    }
+}
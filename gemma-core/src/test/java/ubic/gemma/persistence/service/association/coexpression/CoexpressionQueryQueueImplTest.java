@@ -0,0 +1,180 @@
+package ubic.gemma.persistence.service.association.coexpression;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import ubic.gemma.model.genome.Gene;
+import ubic.gemma.model.genome.Taxon;
+import ubic.gemma.persistence.service.genome.GeneDao;
+
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.*;
+
+public class CoexpressionQueryQueueImplTest {
+
+    private CoexpressionDao coexpressionDao;
+    private Taxon taxon;
+    private Map<Long, Gene> genes;
+    private List<Boolean> inReadOnlyTransaction;
+    private CoexpressionQueryQueueImpl queue;
+
+    @Before
+    public void setUp() {
+        coexpressionDao = mock( CoexpressionDao.class );
+        GeneDao geneDao = mock( GeneDao.class );
+        taxon = new Taxon();
+        taxon.setId( 1L );
+        genes = new HashMap<>();
+        for ( long i = 1; i <= 200; i++ ) {
+            genes.put( i, createGene( i ) );
+        }
+        inReadOnlyTransaction = Collections.synchronizedList( new ArrayList<>() );
+        when( geneDao.load( anyCollection() ) ).thenAnswer( a -> {
+            inReadOnlyTransaction.add( isInReadOnlyTransaction() );
+            return a.<Collection<Long>>getArgument( 0 ).stream()
+                    .map( id -> genes.computeIfAbsent( id, this::createGene ) )
+                    .collect( Collectors.toList() );
+        } );
+        when( coexpressionDao.queryAndCache( any(), anyCollection() ) ).thenAnswer( a -> {
+            inReadOnlyTransaction.add( isInReadOnlyTransaction() );
+            return 1;
+        } );
+        queue = new CoexpressionQueryQueueImpl( coexpressionDao, geneDao, new NoopTransactionManager(), 1 );
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        queue.destroy();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testQueriesAreBatched() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        queue.bindTo( registry );
+        queue.addToFullQueryQueue( genes.values() );
+        assertEquals( 200.0, registry.get( "coexpressionCacheWarmer.genesQueued" ).functionCounter().count(), 0.0 );
+        assertEquals( 200.0, registry.get( "coexpressionCacheWarmer.queueSize" ).gauge().value(), 0.0 );
+
+        queue.afterPropertiesSet();
+
+        ArgumentCaptor<Collection<Long>> captor = ArgumentCaptor.forClass( Collection.class );
+        verify( coexpressionDao, timeout( 5000 ).times( 4 ) ).queryAndCache( eq( taxon ), captor.capture() );
+        Set<Long> queried = new HashSet<>();
+        for ( Collection<Long> batch : captor.getAllValues() ) {
+            queried.addAll( batch );
+        }
+        assertEquals( genes.keySet(), queried );
+        verify( coexpressionDao, never() ).queryAndCache( any( Gene.class ) );
+    }
+
+    @Test
+    public void testBatchesAreQueriedInReadOnlyTransaction() throws Exception {
+        queue.addToFullQueryQueue( genes.get( 1L ) );
+
+        queue.afterPropertiesSet();
+
+        verify( coexpressionDao, timeout( 5000 ) ).queryAndCache( eq( taxon ), anyCollection() );
+        assertEquals( Arrays.asList( true, true ), inReadOnlyTransaction );
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFrequentlyRequestedGenesAreQueriedFirst() throws Exception {
+        queue.addToFullQueryQueue( genes.get( 1L ) );
+        queue.addToFullQueryQueue( genes.get( 2L ) );
+        queue.addToFullQueryQueue( genes.get( 3L ) );
+        queue.addToFullQueryQueue( genes.get( 3L ) );
+        queue.addToFullQueryQueue( genes.get( 3L ) );
+        queue.addToFullQueryQueue( genes.get( 2L ) );
+        queue.removeFromQueue( Collections.singleton( genes.get( 1L ) ) );
+
+        queue.afterPropertiesSet();
+
+        ArgumentCaptor<Collection<Long>> captor = ArgumentCaptor.forClass( Collection.class );
+        verify( coexpressionDao, timeout( 5000 ) ).queryAndCache( eq( taxon ), captor.capture() );
+        assertEquals( Arrays.asList( 3L, 2L ), new ArrayList<>( captor.getValue() ) );
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testLeastRequestedGenesAreDroppedWhenQueueIsFull() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        queue.bindTo( registry );
+        queue.addToFullQueryQueueByIds( LongStream.rangeClosed( 1, 1000 ).boxed().collect( Collectors.toList() ) );
+        // the queue is full and none of the pending genes is requested less often, so this is dropped
+        queue.addToFullQueryQueueByIds( Collections.singleton( 1001L ) );
+        assertEquals( 1.0, registry.get( "coexpressionCacheWarmer.genesDropped" ).functionCounter().count(), 0.0 );
+        // already queued, only moved forward
+        queue.addToFullQueryQueueByIds( Collections.singleton( 5L ) );
+        assertEquals( 1.0, registry.get( "coexpressionCacheWarmer.genesDropped" ).functionCounter().count(), 0.0 );
+        // requested more often than the last pending gene, which gets dropped
+        queue.addToFullQueryQueueByIds( Collections.singleton( 1001L ) );
+        queue.addToFullQueryQueueByIds( Collections.singleton( 1001L ) );
+        assertEquals( 2.0, registry.get( "coexpressionCacheWarmer.genesDropped" ).functionCounter().count(), 0.0 );
+        assertEquals( 1000.0, registry.get( "coexpressionCacheWarmer.queueSize" ).gauge().value(), 0.0 );
+
+        queue.afterPropertiesSet();
+
+        ArgumentCaptor<Collection<Long>> captor = ArgumentCaptor.forClass( Collection.class );
+        verify( coexpressionDao, timeout( 5000 ).times( 16 ) ).queryAndCache( eq( taxon ), captor.capture() );
+        List<Long> firstBatch = new ArrayList<>( captor.getAllValues().get( 0 ) );
+        assertEquals( Arrays.asList( 1001L, 5L, 1L ), firstBatch.subList( 0, 3 ) );
+        Set<Long> queried = new HashSet<>();
+        for ( Collection<Long> batch : captor.getAllValues() ) {
+            queried.addAll( batch );
+        }
+        assertEquals( 1000, queried.size() );
+        assertTrue( queried.contains( 1001L ) );
+        assertFalse( queried.contains( 1000L ) );
+    }
+
+    private Gene createGene( long id ) {
+        Gene gene = new Gene();
+        gene.setId( id );
+        gene.setTaxon( taxon );
+        return gene;
+    }
+
+    private static boolean isInReadOnlyTransaction() {
+        return TransactionSynchronizationManager.isActualTransactionActive()
+                && TransactionSynchronizationManager.isCurrentTransactionReadOnly();
+    }
+
+    /**
+     * Transaction manager that only maintains the transaction synchronization state.
+     */
+    static class NoopTransactionManager extends AbstractPlatformTransactionManager {
+
+        @Override
+        protected Object doGetTransaction() {
+            return new Object();
+        }
+
+        @Override
+        protected void doBegin( Object transaction, TransactionDefinition definition ) {
+        }
+
+        @Override
+        protected void doCommit( DefaultTransactionStatus status ) {
+        }
+
+        @Override
+        protected void doRollback( DefaultTransactionStatus status ) {
+        }
+    }
+}
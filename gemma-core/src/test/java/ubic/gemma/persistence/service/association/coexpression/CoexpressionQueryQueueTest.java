@@ -0,0 +1,141 @@
+package ubic.gemma.persistence.service.association.coexpression;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.FilterType;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import ubic.gemma.core.context.TestComponent;
+import ubic.gemma.core.metrics.GenericMeterRegistryConfigurer;
+import ubic.gemma.core.util.test.BaseTest;
+import ubic.gemma.core.util.test.TestPropertyPlaceholderConfigurer;
+import ubic.gemma.model.genome.Gene;
+import ubic.gemma.model.genome.Taxon;
+import ubic.gemma.persistence.service.expression.experiment.ExpressionExperimentDao;
+import ubic.gemma.persistence.service.genome.GeneDao;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Check that the {@link CoexpressionQueryQueue} is picked up by component scanning and warms the cache for genes
+ * queried through {@link CoexpressionService}.
+ */
+@ContextConfiguration
+public class CoexpressionQueryQueueTest extends BaseTest {
+
+    @Configuration
+    @TestComponent
+    @ComponentScan(basePackageClasses = CoexpressionQueryQueue.class, useDefaultFilters = false,
+            includeFilters = @ComponentScan.Filter(type = FilterType.ASSIGNABLE_TYPE, value = { CoexpressionService.class, CoexpressionQueryQueue.class }))
+    static class CoexpressionQueryQueueTestContextConfiguration {
+
+        @Bean
+        public static TestPropertyPlaceholderConfigurer propertyPlaceholderConfigurer() {
+            return new TestPropertyPlaceholderConfigurer( "gemma.coexpressionCacheWarmer.numberOfThreads=2" );
+        }
+
+        @Bean
+        public PlatformTransactionManager transactionManager() {
+            return new CoexpressionQueryQueueImplTest.NoopTransactionManager();
+        }
+
+        @Bean
+        public CoexpressionDao coexpressionDao() {
+            return mock( CoexpressionDao.class );
+        }
+
+        @Bean
+        public GeneDao geneDao() {
+            return mock( GeneDao.class );
+        }
+
+        @Bean
+        public CoexpressionCache coexpressionCache() {
+            CoexpressionCache cache = mock( CoexpressionCache.class );
+            when( cache.isEnabled() ).thenReturn( true );
+            return cache;
+        }
+
+        @Bean
+        public ExpressionExperimentDao expressionExperimentDao() {
+            return mock( ExpressionExperimentDao.class );
+        }
+
+        @Bean
+        public CoexpressionNodeDegreeDao coexpressionNodeDegreeDao() {
+            return mock( CoexpressionNodeDegreeDao.class );
+        }
+
+        @Bean
+        public MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+
+        @Bean
+        public GenericMeterRegistryConfigurer meterRegistryConfigurer( MeterRegistry meterRegistry, CoexpressionQueryQueue coexpressionQueryQueue ) {
+            return new GenericMeterRegistryConfigurer( meterRegistry, Collections.<MeterBinder>singletonList( coexpressionQueryQueue ) );
+        }
+    }
+
+    @Autowired
+    private CoexpressionService coexpressionService;
+
+    @Autowired
+    private CoexpressionDao coexpressionDao;
+
+    @Autowired
+    private GeneDao geneDao;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @After
+    public void resetMocks() {
+        reset( coexpressionDao, geneDao );
+    }
+
+    @Test
+    public void testQueriedGenesAreWarmed() {
+        Taxon taxon = new Taxon();
+        taxon.setId( 1L );
+        Gene gene = new Gene();
+        gene.setId( 12L );
+        gene.setTaxon( taxon );
+        when( geneDao.load( anyCollection() ) ).thenAnswer( a -> a.<Collection<Long>>getArgument( 0 ).stream()
+                .filter( id -> id.equals( gene.getId() ) )
+                .map( id -> gene )
+                .collect( Collectors.toList() ) );
+        AtomicBoolean inReadOnlyTransaction = new AtomicBoolean();
+        when( coexpressionDao.queryAndCache( any( Taxon.class ), anyCollection() ) ).thenAnswer( a -> {
+            inReadOnlyTransaction.set( TransactionSynchronizationManager.isActualTransactionActive()
+                    && TransactionSynchronizationManager.isCurrentTransactionReadOnly() );
+            return 3;
+        } );
+
+        coexpressionService.findCoexpressionRelationships( gene, Collections.singleton( 1L ), 10, true );
+
+        verify( coexpressionDao, timeout( 5000 ) ).queryAndCache( taxon, Collections.singletonList( 12L ) );
+        assertThat( inReadOnlyTransaction ).isTrue();
+        assertThat( meterRegistry.get( "coexpressionCacheWarmer.genesQueued" ).functionCounter().count() )
+                .isEqualTo( 1.0 );
+        assertThat( meterRegistry.get( "coexpressionCacheWarmer.queueSize" ).gauge().value() )
+                .isEqualTo( 0.0 );
+        assertThat( meterRegistry.find( "coexpressionCacheWarmer.activeWorkers" ).gauge() ).isNotNull();
+        assertThat( meterRegistry.find( "coexpressionCacheWarmer.batches" ).functionTimer() ).isNotNull();
+    }
+}
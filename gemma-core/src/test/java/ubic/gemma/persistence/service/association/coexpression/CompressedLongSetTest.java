@@ -0,0 +1,177 @@
+package ubic.gemma.persistence.service.association.coexpression;
+
+import com.googlecode.javaewah.EWAHCompressedBitmap;
+import org.apache.commons.lang3.time.StopWatch;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import ubic.gemma.core.util.test.category.SlowTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.*;
+
+public class CompressedLongSetTest {
+
+    private static final Log log = LogFactory.getLog( CompressedLongSetTest.class );
+
+    @Test
+    public void testEmpty() {
+        CompressedLongSet s = CompressedLongSet.copyOf( Collections.emptySet() );
+        assertTrue( s.isEmpty() );
+        assertEquals( 0, s.toLongArray().length );
+        assertFalse( s.contains( 0L ) );
+        assertEquals( Collections.emptySet(), s );
+    }
+
+    @Test
+    public void testCopyOf() {
+        CompressedLongSet s = CompressedLongSet.copyOf( Arrays.asList( 5L, 1L, 70000L, 5L, 3000000000L ) );
+        assertEquals( 4, s.size() );
+        assertArrayEquals( new long[] { 1L, 5L, 70000L, 3000000000L }, s.toLongArray() );
+        assertTrue( s.contains( 3000000000L ) );
+        assertTrue( s.contains( ( Object ) 70000L ) );
+        assertFalse( s.contains( 6L ) );
+        assertFalse( s.contains( -1L ) );
+        assertFalse( s.contains( "5" ) );
+        assertThat( s ).containsExactly( 1L, 5L, 70000L, 3000000000L );
+        assertEquals( new HashSet<>( Arrays.asList( 1L, 5L, 70000L, 3000000000L ) ), s );
+        assertEquals( new HashSet<>( Arrays.asList( 1L, 5L, 70000L, 3000000000L ) ).hashCode(), s.hashCode() );
+        assertSame( s, CompressedLongSet.copyOf( s ) );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeValue() {
+        CompressedLongSet.copyOf( Arrays.asList( -1L, 2L ) );
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testImmutable() {
+        CompressedLongSet.copyOf( Collections.singleton( 1L ) ).add( 2L );
+    }
+
+    @Test
+    public void testAnd() {
+        Random random = new Random( 123L );
+        // mix sparse and dense containers
+        Set<Long> a = randomSet( random, 20000, 200000L );
+        Set<Long> b = randomSet( random, 1000, 200000L );
+        for ( long i = 65536; i < 65536 + 10000; i++ ) {
+            a.add( i );
+            if ( i % 3 == 0 ) {
+                b.add( i );
+            }
+        }
+        Set<Long> expected = new HashSet<>( a );
+        expected.retainAll( b );
+
+        CompressedLongSet sa = CompressedLongSet.copyOf( a );
+        CompressedLongSet sb = CompressedLongSet.copyOf( b );
+        assertEquals( a, sa );
+        assertEquals( b, sb );
+        assertEquals( expected, sa.and( sb ) );
+        assertEquals( expected, sb.and( sa ) );
+        assertEquals( CompressedLongSet.copyOf( expected ), sa.and( sb ) );
+        assertEquals( expected.size(), sa.andCardinality( sb ) );
+        assertEquals( expected.size(), sb.andCardinality( sa ) );
+        assertEquals( sa, sa.and( sa ) );
+    }
+
+    @Test
+    public void testOfSorted() {
+        EWAHCompressedBitmap bitmap = EWAHCompressedBitmap.bitmapOf( 2, 4, 100000, 1 << 30 );
+        CompressedLongSet s = CompressedLongSet.ofSorted( bitmap.toArray() );
+        assertArrayEquals( new long[] { 2L, 4L, 100000L, 1L << 30 }, s.toLongArray() );
+    }
+
+    @Test
+    public void testIterator() {
+        Random random = new Random( 123L );
+        // a sparse container, a dense one and a value in the last word of a bitmap
+        Set<Long> a = randomSet( random, 1000, 65536L );
+        for ( long i = 65536; i < 65536 + 10000; i++ ) {
+            a.add( i );
+        }
+        a.add( 2 * 65536L - 1 );
+        a.add( 10 * 65536L );
+        CompressedLongSet s = CompressedLongSet.copyOf( a );
+        PrimitiveIterator.OfLong it = s.iterator();
+        for ( long v : s.toLongArray() ) {
+            assertTrue( it.hasNext() );
+            assertEquals( v, it.nextLong() );
+        }
+        assertFalse( it.hasNext() );
+        assertFalse( CompressedLongSet.copyOf( Collections.emptySet() ).iterator().hasNext() );
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        CompressedLongSet s = CompressedLongSet.copyOf( randomSet( new Random( 1L ), 5000, 10000L ) );
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try ( ObjectOutputStream oos = new ObjectOutputStream( bos ) ) {
+            oos.writeObject( s );
+        }
+        try ( ObjectInputStream ois = new ObjectInputStream(
+                new ByteArrayInputStream( bos.toByteArray() ) ) ) {
+            assertEquals( s, ois.readObject() );
+        }
+    }
+
+    /**
+     * Compare the cost of intersecting tested-in details with the EWAH bitmaps and boxed sets against this
+     * implementation.
+     */
+    @Test
+    @Category(SlowTest.class)
+    public void testAndPerformance() {
+        Random random = new Random( 123L );
+        int numGenes = 500;
+        EWAHCompressedBitmap[] ewah = new EWAHCompressedBitmap[numGenes];
+        CompressedLongSet[] sets = new CompressedLongSet[numGenes];
+        for ( int i = 0; i < numGenes; i++ ) {
+            Set<Long> ids = randomSet( random, 2000, 10000L );
+            ewah[i] = EWAHCompressedBitmap.bitmapOf( ids.stream().mapToInt( Long::intValue ).sorted().toArray() );
+            sets[i] = CompressedLongSet.copyOf( ids );
+        }
+
+        long expected = 0;
+        StopWatch timer = StopWatch.createStarted();
+        for ( int i = 0; i < numGenes; i++ ) {
+            for ( int j = i + 1; j < numGenes; j++ ) {
+                Set<Long> result = new HashSet<>();
+                for ( int k : ewah[i].and( ewah[j] ).toArray() ) {
+                    result.add( ( long ) k );
+                }
+                expected += result.size();
+            }
+        }
+        long ewahTime = timer.getTime();
+
+        long actual = 0;
+        timer = StopWatch.createStarted();
+        for ( int i = 0; i < numGenes; i++ ) {
+            for ( int j = i + 1; j < numGenes; j++ ) {
+                actual += sets[i].and( sets[j] ).size();
+            }
+        }
+        long setTime = timer.getTime();
+
+        assertEquals( expected, actual );
+        log.info( String.format( "Intersected %d pairs: %d ms with EWAH and boxed sets, %d ms with compressed sets.",
+                numGenes * ( numGenes - 1 ) / 2, ewahTime, setTime ) );
+    }
+
+    private static Set<Long> randomSet( Random random, int n, long bound ) {
+        Set<Long> result = new HashSet<>();
+        for ( int i = 0; i < n; i++ ) {
+            result.add( ( long ) random.nextInt( ( int ) bound ) );
+        }
+        return result;
+    }
+}
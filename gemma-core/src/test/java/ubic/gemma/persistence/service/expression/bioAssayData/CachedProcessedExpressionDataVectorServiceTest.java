@@ -13,6 +13,7 @@ import org.springframework.test.context.TestExecutionListeners;
 import ubic.gemma.core.context.TestComponent;
 import ubic.gemma.core.util.test.BaseDatabaseTest;
 import ubic.gemma.core.util.test.TestPropertyPlaceholderConfigurer;
+import ubic.gemma.core.visualization.HeatmapTileCache;
 import ubic.gemma.model.common.quantitationtype.*;
 import ubic.gemma.model.expression.arrayDesign.ArrayDesign;
 import ubic.gemma.model.expression.bioAssay.BioAssay;
@@ -75,6 +76,11 @@ public class CachedProcessedExpressionDataVectorServiceTest extends BaseDatabase
             return new ProcessedDataVectorByGeneCacheImpl( new ConcurrentMapCacheManager() );
         }
 
+        @Bean
+        public HeatmapTileCache heatmapTileCache() {
+            return mock();
+        }
+
         @Bean
         public CachedProcessedExpressionDataVectorService cachedProcessedExpressionDataVectorService( ProcessedExpressionDataVectorDao dao, SessionFactory sessionFactory ) {
             return new CachedProcessedExpressionDataVectorServiceImpl( dao, sessionFactory );
@@ -106,6 +106,8 @@ import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -139,6 +141,12 @@ public class DatasetsWebService {
     public static final String APPLICATION_10X_MEX = "application/vnd.10xgenomics.mex";
     public static final MediaType APPLICATION_10X_MEX_TYPE = new MediaType( "application", "vnd.10xgenomics.mex" );
 
+    /**
+     * <a href="https://anndata.readthedocs.io/en/latest/fileformat-prose.html">AnnData on-disk format</a>
+     */
+    public static final String APPLICATION_ANNDATA = "application/x-anndata";
+    public static final MediaType APPLICATION_ANNDATA_TYPE = new MediaType( "application", "x-anndata" );
+
     private static final String SEARCH_TIMEOUT_DESCRIPTION = "The search has timed out. This can only occur if the `search` parameter is provided. It can generally be resolved by reattempting the search 30 seconds later. Lookup the `Retry-After` header for the recommended delay.";
 
     private static final int MAX_DATASETS_CATEGORIES = 200;
@@ -1377,16 +1385,18 @@ public class DatasetsWebService {
             @PathParam("dataset") DatasetArg<?> datasetArg, // Required
             @QueryParam("filter") @DefaultValue("false") Boolean filterData, // Optional, default false
             @Parameter(hidden = true) @QueryParam("download") @DefaultValue("false") Boolean download,
-            @Parameter(hidden = true) @QueryParam("force") @DefaultValue("false") Boolean force
+            @Parameter(hidden = true) @QueryParam("force") @DefaultValue("false") Boolean force,
+            @Context Request request,
+            @Context HttpHeaders headers
     ) {
-        return getDatasetProcessedExpression( datasetArg, filterData, download, force );
+        return getDatasetProcessedExpression( datasetArg, filterData, download, force, request, headers );
     }
 
     /**
      * Retrieve processed expression data.
      * <p>
-     * The payload is transparently compressed via a <code>Content-Encoding</code> header and streamed to avoid dumping
-     * the whole payload in memory.
+     * The payload is served from a pre-compressed file with a <code>Content-Encoding</code> header. The file is
+     * generated in the background if necessary and supports conditional and range requests.
      */
     @GZIP(mediaTypes = TEXT_TAB_SEPARATED_VALUES_UTF8, alreadyCompressed = true)
     @GET
@@ -1405,7 +1415,9 @@ public class DatasetsWebService {
             @PathParam("dataset") DatasetArg<?> datasetArg,
             @QueryParam("filter") @DefaultValue("false") Boolean filtered,
             @Parameter(hidden = true) @QueryParam("download") @DefaultValue("false") Boolean download,
-            @Parameter(hidden = true) @QueryParam("force") @DefaultValue("false") Boolean force
+            @Parameter(hidden = true) @QueryParam("force") @DefaultValue("false") Boolean force,
+            @Context Request request,
+            @Context HttpHeaders headers
     ) {
         if ( force ) {
             checkIsAdmin();
@@ -1414,44 +1426,38 @@ public class DatasetsWebService {
         if ( !expressionExperimentService.hasProcessedExpressionData( ee ) ) {
             throw new NotFoundException( ee.getShortName() + " does not have any processed vectors." );
         }
-        try ( LockedPath p = expressionDataFileService.writeOrLocateProcessedDataFile( ee, filtered, force, 5, TimeUnit.SECONDS )
-                .orElseThrow( () -> new NotFoundException( ee.getShortName() + " does not have any processed vectors." ) ) ) {
-            String filename = download ? p.getPath().getFileName().toString() : FilenameUtils.removeExtension( p.getPath().getFileName().toString() );
-            return sendfile( p.getPath() )
+        java.nio.file.Path p;
+        try {
+            p = awaitDataFile( expressionDataFileService.writeOrLocateProcessedDataFileAsync( ee, filtered, force ), force,
+                    "Processed data for " + ee.getShortName() )
+                    .orElseThrow( () -> new NotFoundException( ee.getShortName() + " does not have any processed vectors." ) );
+        } catch ( RejectedExecutionException e ) {
+            throw new ServiceUnavailableException( "Too many file generation tasks are being processed at this time.", 30L, e );
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof NoRowsLeftAfterFilteringException ) {
+                return Response.noContent().build();
+            } else if ( e.getCause() instanceof FilteringException ) {
+                throw new InternalServerErrorException( String.format( "Filtering of dataset %s failed.", ee.getShortName() ), e.getCause() );
+            } else {
+                throw new InternalServerErrorException( e.getCause() );
+            }
+        }
+        try {
+            String filename = download ? p.getFileName().toString() : FilenameUtils.removeExtension( p.getFileName().toString() );
+            return sendfile( p, request, headers )
                     .type( download ? MediaType.APPLICATION_OCTET_STREAM_TYPE : TEXT_TAB_SEPARATED_VALUES_UTF8_TYPE )
                     .header( "Content-Disposition", "attachment; filename=\"" + filename + "\"" )
                     .build();
-        } catch ( TimeoutException e ) {
-            throw new ServiceUnavailableException( "Processed data for " + ee.getShortName() + " is still being generated.", 30L, e );
         } catch ( IOException e ) {
-            log.error( "Failed to create processed expression data for " + ee + ", will have to stream it as a fallback.", e );
-            String filename = download ? getDataOutputFilename( ee, filtered, TABULAR_BULK_DATA_FILE_SUFFIX ) : FilenameUtils.removeExtension( getDataOutputFilename( ee, filtered, TABULAR_BULK_DATA_FILE_SUFFIX ) );
-            return Response.ok( ( StreamingOutput ) output -> {
-                        try {
-                            expressionDataFileService.writeProcessedExpressionData( ee, filtered, null, new OutputStreamWriter( new GZIPOutputStream( output ), StandardCharsets.UTF_8 ), true );
-                        } catch ( FilteringException ex ) {
-                            // this is a bit unfortunate, because it's too late for producing a 204 error
-                            throw new RuntimeException( ex );
-                        }
-                    } )
-                    .type( download ? MediaType.APPLICATION_OCTET_STREAM_TYPE : TEXT_TAB_SEPARATED_VALUES_UTF8_TYPE )
-                    .header( "Content-Disposition", "attachment; filename=\"" + filename + "\"" )
-                    .build();
-        } catch ( InterruptedException e ) {
-            Thread.currentThread().interrupt();
             throw new InternalServerErrorException( e );
-        } catch ( NoRowsLeftAfterFilteringException e ) {
-            return Response.noContent().build();
-        } catch ( FilteringException e ) {
-            throw new InternalServerErrorException( String.format( "Filtering of dataset %s failed.", ee.getShortName() ), e );
         }
     }
 
     /**
      * Retrieve raw expression data.
      * <p>
-     * The payload is transparently compressed via a <code>Content-Encoding</code> header and streamed to avoid dumping
-     * the whole payload in memory.
+     * The payload is served from a pre-compressed file with a <code>Content-Encoding</code> header. The file is
+     * generated in the background if necessary and supports conditional and range requests.
      */
     @GZIP(mediaTypes = TEXT_TAB_SEPARATED_VALUES_UTF8, alreadyCompressed = true)
     @GET
@@ -1469,7 +1475,9 @@ public class DatasetsWebService {
             @PathParam("dataset") DatasetArg<?> datasetArg,
             @QueryParam("quantitationType") QuantitationTypeArg<?> quantitationTypeArg,
             @Parameter(hidden = true) @QueryParam("download") @DefaultValue("false") Boolean download,
-            @Parameter(hidden = true) @QueryParam("force") @DefaultValue("false") Boolean force
+            @Parameter(hidden = true) @QueryParam("force") @DefaultValue("false") Boolean force,
+            @Context Request request,
+            @Context HttpHeaders headers
     ) {
         if ( force ) {
             checkIsAdmin();
@@ -1482,24 +1490,22 @@ public class DatasetsWebService {
             qt = expressionExperimentService.getPreferredQuantitationType( ee )
                     .orElseThrow( () -> new NotFoundException( String.format( "No preferred quantitation type could be found for raw expression data data of %s.", ee ) ) );
         }
-        try ( LockedPath p = expressionDataFileService.writeOrLocateRawExpressionDataFile( ee, qt, force, 5, TimeUnit.SECONDS ) ) {
-            String filename = download ? p.getPath().getFileName().toString() : FilenameUtils.removeExtension( p.getPath().getFileName().toString() );
-            return sendfile( p.getPath() )
+        java.nio.file.Path p;
+        try {
+            p = awaitDataFile( expressionDataFileService.writeOrLocateRawExpressionDataFileAsync( ee, qt, force ), force,
+                    "Raw data for " + qt );
+        } catch ( RejectedExecutionException e ) {
+            throw new ServiceUnavailableException( "Too many file generation tasks are being processed at this time.", 30L, e );
+        } catch ( ExecutionException e ) {
+            throw new InternalServerErrorException( e.getCause() );
+        }
+        try {
+            String filename = download ? p.getFileName().toString() : FilenameUtils.removeExtension( p.getFileName().toString() );
+            return sendfile( p, request, headers )
                     .type( download ? MediaType.APPLICATION_OCTET_STREAM_TYPE : TEXT_TAB_SEPARATED_VALUES_UTF8_TYPE )
                     .header( "Content-Disposition", "attachment; filename=\"" + filename + "\"" )
                     .build();
-        } catch ( TimeoutException e ) {
-            // file is being written, recommend to the user to wait a lils.copy( is, entityStittle bit
-            throw new ServiceUnavailableException( "Raw data for " + qt + " is still being generated.", 30L, e );
         } catch ( IOException e ) {
-            log.error( "Failed to write raw expression data for " + qt + " to disk, will resort to stream it.", e );
-            String filename = getDataOutputFilename( ee, qt, TABULAR_BULK_DATA_FILE_SUFFIX );
-            return Response.ok( ( StreamingOutput ) output -> expressionDataFileService.writeRawExpressionData( ee, qt, null, new OutputStreamWriter( new GZIPOutputStream( output ), StandardCharsets.UTF_8 ), true ) )
-                    .type( download ? MediaType.APPLICATION_OCTET_STREAM_TYPE : TEXT_TAB_SEPARATED_VALUES_UTF8_TYPE )
-                    .header( "Content-Disposition", "attachment; filename=\"" + ( download ? filename : FilenameUtils.removeExtension( filename ) ) + "\"" )
-                    .build();
-        } catch ( InterruptedException e ) {
-            Thread.currentThread().interrupt();
             throw new InternalServerErrorException( e );
         }
     }
@@ -1507,13 +1513,14 @@ public class DatasetsWebService {
     @GZIP(mediaTypes = TEXT_TAB_SEPARATED_VALUES_UTF8, alreadyCompressed = true)
     @GET
     @Path("/{dataset}/data/singleCell")
-    @Produces({ APPLICATION_10X_MEX, TEXT_TAB_SEPARATED_VALUES_UTF8 + ";q=0.9" })
+    @Produces({ APPLICATION_10X_MEX, APPLICATION_ANNDATA, TEXT_TAB_SEPARATED_VALUES_UTF8 + ";q=0.9" })
     @Operation(summary = "Retrieve single-cell expression data of a dataset",
             responses = {
                     @ApiResponse(responseCode = "200",
                             content = {
                                     @Content(mediaType = APPLICATION_10X_MEX, schema = @Schema(description = "Sample files are bundled in a TAR archive according to the 10x MEX format.", type = "string", format = "binary", externalDocs = @ExternalDocumentation(url = "https://www.10xgenomics.com/support/software/cell-ranger/latest/analysis/outputs/cr-outputs-mex-matrices")),
                                             examples = { @ExampleObject("classpath:/restapidocs/examples/dataset-single-cell-data.mex") }),
+                                    @Content(mediaType = APPLICATION_ANNDATA, schema = @Schema(description = "Cells are stored in `obs` and genes in `var`. The expression data is stored as a CSC matrix in `X`.", type = "string", format = "binary", externalDocs = @ExternalDocumentation(url = "https://anndata.readthedocs.io/en/latest/fileformat-prose.html"))),
                                     @Content(mediaType = TEXT_TAB_SEPARATED_VALUES_UTF8 + "; q=0.9", schema = @Schema(type = "string", format = "binary"),
                                             examples = { @ExampleObject("classpath:/restapidocs/examples/dataset-single-cell-data.tsv") })
                             }),
@@ -1524,12 +1531,13 @@ public class DatasetsWebService {
             @QueryParam("quantitationType") QuantitationTypeArg<?> quantitationTypeArg,
             @Parameter(hidden = true) @QueryParam("download") @DefaultValue("false") Boolean download,
             @Parameter(hidden = true) @QueryParam("force") @DefaultValue("false") Boolean force,
+            @Context Request request,
             @Context HttpHeaders headers
     ) {
         if ( force ) {
             checkIsAdmin();
         }
-        MediaType mediaType = negotiate( headers, APPLICATION_10X_MEX_TYPE, withQuality( TEXT_TAB_SEPARATED_VALUES_UTF8_TYPE, 0.9 ) );
+        MediaType mediaType = negotiate( headers, APPLICATION_10X_MEX_TYPE, APPLICATION_ANNDATA_TYPE, withQuality( TEXT_TAB_SEPARATED_VALUES_UTF8_TYPE, 0.9 ) );
         ExpressionExperiment ee = datasetArgService.getEntity( datasetArg );
         QuantitationType qt;
         if ( quantitationTypeArg != null ) {
@@ -1560,28 +1568,45 @@ public class DatasetsWebService {
             } catch ( IOException e ) {
                 throw new InternalServerErrorException( e );
             }
+        } else if ( mediaType.equals( APPLICATION_ANNDATA_TYPE ) ) {
+            try ( LockedPath p = expressionDataFileService.getDataFile( ee, qt, ExpressionExperimentDataFileType.ANNDATA, false, 5, TimeUnit.SECONDS ) ) {
+                if ( !force && Files.exists( p.getPath() ) ) {
+                    return sendfile( p.getPath(), request, headers )
+                            .type( APPLICATION_ANNDATA_TYPE )
+                            .header( "Content-Disposition", "attachment; filename=\"" + p.getPath().getFileName() + "\"" )
+                            .build();
+                } else {
+                    // no cursor fetching because this requires a lot of memory on the database server
+                    expressionDataFileService.writeOrLocateAnnDataSingleCellExpressionDataAsync( ee, qt, 30, false, force );
+                    throw new ServiceUnavailableException( "AnnData single-cell data for " + qt + " is still being generated.", 30L );
+                }
+            } catch ( TimeoutException e ) {
+                throw new ServiceUnavailableException( "AnnData single-cell data for " + qt + " is still being generated.", 30L, e );
+            } catch ( RejectedExecutionException e ) {
+                throw new ServiceUnavailableException( "Too many file generation tasks are being processed at this time.", 30L, e );
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InternalServerErrorException( e );
+            } catch ( IOException e ) {
+                throw new InternalServerErrorException( e );
+            }
         } else {
             try ( LockedPath p = expressionDataFileService.getDataFile( ee, qt, ExpressionExperimentDataFileType.TABULAR, false, 5, TimeUnit.SECONDS ) ) {
                 if ( !force && Files.exists( p.getPath() ) ) {
-                    return Response.ok( p.getPath() )
+                    String filename = download ? p.getPath().getFileName().toString() : FilenameUtils.removeExtension( p.getPath().getFileName().toString() );
+                    return sendfile( p.getPath(), request, headers )
                             .type( download ? MediaType.APPLICATION_OCTET_STREAM_TYPE : TEXT_TAB_SEPARATED_VALUES_UTF8_TYPE )
-                            .header( "Content-Disposition", "attachment; filename=\"" + ( download ? p.getPath().getFileName().toString() : FilenameUtils.removeExtension( p.getPath().getFileName().toString() ) ) + "\"" )
+                            .header( "Content-Disposition", "attachment; filename=\"" + filename + "\"" )
                             .build();
                 } else {
-                    // generate the file in the background and stream it
-                    // TODO: limit the number of threads writing SC data to disk to not overwhelm the short-lived task pool
-                    log.info( "Single-cell data for " + qt + " is not available, will generate it in the background and stream it in the meantime." );
                     // we do not want to use cursor fetch because it requires a lot of memory on the database server
                     expressionDataFileService.writeOrLocateTabularSingleCellExpressionDataAsync( ee, qt, 30, false, force );
-                    return streamTabularDatasetSingleCellExpression( ee, qt, download );
+                    throw new ServiceUnavailableException( "Single-cell data for " + qt + " is still being generated.", 30L );
                 }
             } catch ( TimeoutException e ) {
-                // file is being written, recommend to the user to wait a little bit, stacktrace is superfluous
-                log.warn( "Single-cell data for " + qt + " is still being generated, it will be streamed in the meantime." );
-                return streamTabularDatasetSingleCellExpression( ee, qt, download );
+                throw new ServiceUnavailableException( "Single-cell data for " + qt + " is still being generated.", 30L, e );
             } catch ( RejectedExecutionException e ) {
-                log.warn( "Too many file generation tasks are being executed, will stream the single-cell data instead.", e );
-                return streamTabularDatasetSingleCellExpression( ee, qt, download );
+                throw new ServiceUnavailableException( "Too many file generation tasks are being processed at this time.", 30L, e );
             } catch ( InterruptedException e ) {
                 Thread.currentThread().interrupt();
                 throw new InternalServerErrorException( e );
@@ -1591,14 +1616,6 @@ public class DatasetsWebService {
         }
     }
 
-    private Response streamTabularDatasetSingleCellExpression( ExpressionExperiment ee, QuantitationType qt, Boolean download ) {
-        String filename = getDataOutputFilename( ee, qt, TABULAR_SC_DATA_SUFFIX );
-        return Response.ok( ( StreamingOutput ) stream -> expressionDataFileService.writeTabularSingleCellExpressionData( ee, qt, null, 30, false, new OutputStreamWriter( new GZIPOutputStream( stream ), StandardCharsets.UTF_8 ), true ) )
-                .type( download ? MediaType.APPLICATION_OCTET_STREAM_TYPE : TEXT_TAB_SEPARATED_VALUES_UTF8_TYPE )
-                .header( "Content-Disposition", "attachment; filename=\"" + ( download ? filename : FilenameUtils.removeExtension( filename ) ) + "\"" )
-                .build();
-    }
-
     /**
      * Retrieves the design for the given dataset.
      *
@@ -1617,28 +1634,49 @@ public class DatasetsWebService {
     public Response getDatasetDesign( // Params:
             @PathParam("dataset") DatasetArg<?> datasetArg, // Required
             @Parameter(hidden = true) @QueryParam("download") @DefaultValue("false") Boolean download,
-            @Parameter(hidden = true) @QueryParam("force") @DefaultValue("false") Boolean force
+            @Parameter(hidden = true) @QueryParam("force") @DefaultValue("false") Boolean force,
+            @Context Request request,
+            @Context HttpHeaders headers
     ) {
         if ( force ) {
             checkIsAdmin();
         }
         ExpressionExperiment ee = datasetArgService.getEntity( datasetArg );
-        try ( LockedPath file = expressionDataFileService.writeOrLocateDesignFile( ee, force, 5, TimeUnit.SECONDS )
-                .orElseThrow( () -> new NotFoundException( ee.getShortName() + " does not have an experimental design." ) ) ) {
-            String filename = file.getPath().getFileName().toString();
-            return sendfile( file.getPath() )
+        java.nio.file.Path file;
+        try {
+            file = awaitDataFile( expressionDataFileService.writeOrLocateDesignFileAsync( ee, force ), force,
+                    "Experimental design for " + ee.getShortName() )
+                    .orElseThrow( () -> new NotFoundException( ee.getShortName() + " does not have an experimental design." ) );
+        } catch ( RejectedExecutionException e ) {
+            throw new ServiceUnavailableException( "Too many file generation tasks are being processed at this time.", 30L, e );
+        } catch ( ExecutionException e ) {
+            throw new InternalServerErrorException( e.getCause() );
+        }
+        try {
+            String filename = file.getFileName().toString();
+            return sendfile( file, request, headers )
                     .type( download ? MediaType.APPLICATION_OCTET_STREAM_TYPE : TEXT_TAB_SEPARATED_VALUES_UTF8_TYPE )
                     .header( "Content-Disposition", "attachment; filename=\"" + ( download ? filename : FilenameUtils.removeExtension( filename ) ) + "\"" )
                     .build();
-        } catch ( TimeoutException e ) {
-            throw new ServiceUnavailableException( "Experimental design for " + ee.getShortName() + " is still being generated.", 30L, e );
         } catch ( IOException e ) {
-            log.error( "Failed to write design for " + ee + " to disk, will resort to stream it.", e );
-            String filename = getDesignFileName( ee );
-            return Response.ok( ( StreamingOutput ) stream -> expressionDataFileService.writeDesignMatrix( ee, new OutputStreamWriter( new GZIPOutputStream( stream ), StandardCharsets.UTF_8 ), false ) )
-                    .type( download ? MediaType.APPLICATION_OCTET_STREAM_TYPE : TEXT_TAB_SEPARATED_VALUES_UTF8_TYPE )
-                    .header( "Content-Disposition", "attachment; filename=\"" + ( download ? filename : FilenameUtils.removeExtension( filename ) ) + "\"" )
-                    .build();
+            throw new InternalServerErrorException( e );
+        }
+    }
+
+    /**
+     * Wait for a data file that is being generated in the background.
+     * <p>
+     * If the file is still being generated after a few seconds, a {@link ServiceUnavailableException} is raised with a
+     * {@code Retry-After} header so that the client can come back later. Forced writes are always waited upon to avoid
+     * re-generating the file each time the client retries.
+     * @throws ServiceUnavailableException if the file is still being generated
+     * @throws ExecutionException          if the file generation failed
+     */
+    private <T> T awaitDataFile( Future<T> future, boolean force, String what ) throws ExecutionException {
+        try {
+            return force ? future.get() : future.get( 5, TimeUnit.SECONDS );
+        } catch ( TimeoutException e ) {
+            throw new ServiceUnavailableException( what + " is still being generated.", 30L, e );
         } catch ( InterruptedException e ) {
             Thread.currentThread().interrupt();
             throw new InternalServerErrorException( e );
@@ -1,6 +1,7 @@
 package ubic.gemma.rest.providers;
 
 import lombok.extern.apachecommons.CommonsLog;
+import org.apache.commons.io.IOUtils;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import ubic.gemma.rest.util.Sendfile;
@@ -15,9 +16,11 @@ import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.ext.MessageBodyWriter;
 import javax.ws.rs.ext.Provider;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
+import java.nio.file.Files;
 
 /**
  * @author poirigui
@@ -45,6 +48,9 @@ public class SendfileProvider implements MessageBodyWriter<Sendfile> {
 
     @Override
     public long getSize( Sendfile sendfile, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType ) {
+        if ( sendfile.getLength() >= 0 ) {
+            return sendfile.getLength();
+        }
         return pathProvider.getSize( sendfile.getPath(), type, genericType, annotations, mediaType );
     }
 
@@ -54,14 +60,20 @@ public class SendfileProvider implements MessageBodyWriter<Sendfile> {
             if ( Boolean.TRUE.equals( request.getAttribute( "org.apache.tomcat.sendfile.support" ) ) ) {
                 long size = getSize( sendfile, type, genericType, annotations, mediaType );
                 request.setAttribute( "org.apache.tomcat.sendfile.filename", sendfile.getPath().toString() );
-                request.setAttribute( "org.apache.tomcat.sendfile.start", 0L );
-                request.setAttribute( "org.apache.tomcat.sendfile.end", size );
+                request.setAttribute( "org.apache.tomcat.sendfile.start", sendfile.getOffset() );
+                request.setAttribute( "org.apache.tomcat.sendfile.end", sendfile.getOffset() + size );
                 httpHeaders.putSingle( "Content-Length", size );
                 return;
             } else {
                 log.warn( "Tomcat sendfile is not supported for this request. Falling back to stream download." );
             }
         }
-        pathProvider.writeTo( sendfile.getPath(), type, genericType, annotations, mediaType, httpHeaders, entityStream );
+        if ( sendfile.getLength() >= 0 ) {
+            try ( InputStream is = Files.newInputStream( sendfile.getPath() ) ) {
+                IOUtils.copyLarge( is, entityStream, sendfile.getOffset(), sendfile.getLength() );
+            }
+        } else {
+            pathProvider.writeTo( sendfile.getPath(), type, genericType, annotations, mediaType, httpHeaders, entityStream );
+        }
     }
 }
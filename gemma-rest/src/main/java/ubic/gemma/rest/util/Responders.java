@@ -20,8 +20,17 @@ import ubic.gemma.persistence.util.Sort;
 
 import javax.annotation.Nullable;
 import javax.ws.rs.NotFoundException;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
 import java.util.List;
 
 /**
@@ -37,6 +46,112 @@ public class Responders {
         return Response.ok( Sendfile.of( file ) );
     }
 
+    /**
+     * Send a file honoring conditional and range requests.
+     * <p>
+     * The file is tagged with a strong {@code ETag} derived from its size and last modification date. If the request
+     * preconditions (i.e. {@code If-None-Match}, {@code If-Modified-Since}) are met, a {@code 304 Not Modified} is
+     * produced instead.
+     * <p>
+     * A single byte range may be requested with the {@code Range} header, optionally guarded with {@code If-Range}.
+     * Requests for multiple ranges are served in full.
+     */
+    public static Response.ResponseBuilder sendfile( Path file, Request request, HttpHeaders headers ) throws IOException {
+        long size = Files.size( file );
+        Date lastModified = new Date( Files.getLastModifiedTime( file ).toMillis() );
+        EntityTag etag = new EntityTag( Long.toHexString( size ) + "-" + Long.toHexString( lastModified.getTime() ) );
+        Response.ResponseBuilder builder = request.evaluatePreconditions( lastModified, etag );
+        if ( builder != null ) {
+            return builder.tag( etag ).lastModified( lastModified );
+        }
+        String range = headers.getHeaderString( "Range" );
+        if ( range != null && isIfRangeSatisfied( headers.getHeaderString( "If-Range" ), etag, lastModified ) ) {
+            long[] byteRange = parseByteRange( range, size );
+            if ( byteRange != null ) {
+                if ( byteRange.length == 0 ) {
+                    return Response.status( Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE )
+                            .header( "Content-Range", "bytes */" + size )
+                            .tag( etag )
+                            .lastModified( lastModified );
+                }
+                return Response.status( Response.Status.PARTIAL_CONTENT )
+                        .entity( Sendfile.of( file, byteRange[0], byteRange[1] - byteRange[0] + 1 ) )
+                        .header( "Accept-Ranges", "bytes" )
+                        .header( "Content-Range", "bytes " + byteRange[0] + "-" + byteRange[1] + "/" + size )
+                        .tag( etag )
+                        .lastModified( lastModified );
+            }
+        }
+        return Response.ok( Sendfile.of( file ) )
+                .header( "Accept-Ranges", "bytes" )
+                .tag( etag )
+                .lastModified( lastModified );
+    }
+
+    /**
+     * Check if the {@code If-Range} header, if present, matches the current representation.
+     */
+    private static boolean isIfRangeSatisfied( @Nullable String ifRange, EntityTag etag, Date lastModified ) {
+        if ( ifRange == null ) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if ( ifRange.startsWith( "W/" ) ) {
+            // weak validators cannot be used for range requests
+            return false;
+        } else if ( ifRange.startsWith( "\"" ) ) {
+            return ifRange.equals( etag.toString() );
+        } else {
+            try {
+                return ZonedDateTime.parse( ifRange, DateTimeFormatter.RFC_1123_DATE_TIME ).toEpochSecond() == lastModified.getTime() / 1000;
+            } catch ( DateTimeParseException e ) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Parse a single byte range.
+     * @return the first and last byte positions (inclusive), an empty array if the range cannot be satisfied or null
+     * if the range is malformed or refers to more than one range, in which case the whole file should be sent
+     */
+    @Nullable
+    private static long[] parseByteRange( String range, long size ) {
+        range = range.trim();
+        if ( !range.startsWith( "bytes=" ) || range.indexOf( ',' ) != -1 ) {
+            return null;
+        }
+        String spec = range.substring( "bytes=".length() ).trim();
+        int dash = spec.indexOf( '-' );
+        if ( dash == -1 ) {
+            return null;
+        }
+        long first, last;
+        try {
+            if ( dash == 0 ) {
+                // suffix range, i.e. the last N bytes
+                long suffixLength = Long.parseLong( spec.substring( 1 ) );
+                if ( suffixLength == 0 ) {
+                    return new long[0];
+                }
+                first = Math.max( size - suffixLength, 0 );
+                last = size - 1;
+            } else {
+                first = Long.parseLong( spec.substring( 0, dash ) );
+                last = dash == spec.length() - 1 ? size - 1 : Math.min( Long.parseLong( spec.substring( dash + 1 ) ), size - 1 );
+                if ( last < first && first < size ) {
+                    return null;
+                }
+            }
+        } catch ( NumberFormatException e ) {
+            return null;
+        }
+        if ( first < 0 || first >= size ) {
+            return new long[0];
+        }
+        return new long[] { first, last };
+    }
+
     /**
      * Produce a {@link ResponseDataObject} that wraps the given argument.
      *
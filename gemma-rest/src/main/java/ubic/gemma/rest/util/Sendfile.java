@@ -1,6 +1,9 @@
 package ubic.gemma.rest.util;
 
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
 import lombok.Value;
+import org.springframework.util.Assert;
 
 import java.nio.file.Path;
 
@@ -10,10 +13,38 @@ import java.nio.file.Path;
  * Note that if sendfile is not supported by the server, this will fall back to a regular file download.
  * @author poirigui
  */
-@Value(staticConstructor = "of")
+@Value
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
 public class Sendfile {
+
+    /**
+     * Send a whole file.
+     */
+    public static Sendfile of( Path path ) {
+        return new Sendfile( path, 0, -1 );
+    }
+
+    /**
+     * Send a range of bytes from a file.
+     * @param offset position of the first byte to send
+     * @param length number of bytes to send
+     */
+    public static Sendfile of( Path path, long offset, long length ) {
+        Assert.isTrue( offset >= 0, "The offset must be zero or greater." );
+        Assert.isTrue( length >= 0, "The length must be zero or greater." );
+        return new Sendfile( path, offset, length );
+    }
+
     /**
      * File path to send.
      */
     Path path;
+    /**
+     * Position of the first byte to send.
+     */
+    long offset;
+    /**
+     * Number of bytes to send, or -1 to send the whole file.
+     */
+    long length;
 }
@@ -20,7 +20,6 @@ import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.TestExecutionListeners;
 import ubic.gemma.core.analysis.preprocess.OutlierDetectionService;
 import ubic.gemma.core.analysis.preprocess.batcheffects.ExpressionExperimentBatchInformationService;
-import ubic.gemma.core.analysis.preprocess.filter.FilteringException;
 import ubic.gemma.core.analysis.preprocess.svd.SVDService;
 import ubic.gemma.core.analysis.report.ExpressionExperimentReportService;
 import ubic.gemma.core.analysis.service.DifferentialExpressionAnalysisResultListFileService;
@@ -69,6 +68,7 @@ import java.net.URISyntaxException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
@@ -542,17 +542,66 @@ public class DatasetsWebServiceTest extends BaseJerseyTest {
     }
 
     @Test
-    public void testGetDatasetProcessedExpression() throws IOException, URISyntaxException, InterruptedException, TimeoutException, FilteringException {
+    public void testGetDatasetProcessedExpression() throws URISyntaxException {
         when( expressionExperimentService.hasProcessedExpressionData( eq( ee ) ) ).thenReturn( true );
-        when( expressionDataFileService.writeOrLocateProcessedDataFile( ee, false, false, 5, TimeUnit.SECONDS ) )
-                .thenReturn( Optional.of( new DummyLockedPath( Paths.get( requireNonNull( getClass().getResource( "/data.txt.gz" ) ).toURI() ), true ) ) );
+        when( expressionDataFileService.writeOrLocateProcessedDataFileAsync( ee, false, false ) )
+                .thenReturn( CompletableFuture.completedFuture( Optional.of( Paths.get( requireNonNull( getClass().getResource( "/data.txt.gz" ) ).toURI() ) ) ) );
         assertThat( target( "/datasets/1/data/processed" ).request().get() )
                 .hasStatus( Response.Status.OK )
                 .hasMediaTypeCompatibleWith( TEXT_TAB_SEPARATED_VALUES_UTF8_TYPE )
                 .hasHeaderWithValue( "Content-Disposition", "attachment; filename=\"data.txt\"" )
+                .hasHeaderWithValue( "Accept-Ranges", "bytes" )
+                .hasHeader( "ETag" )
+                .hasHeader( "Last-Modified" )
                 .hasEncoding( "gzip" );
         verify( expressionExperimentService ).hasProcessedExpressionData( ee );
-        verify( expressionDataFileService ).writeOrLocateProcessedDataFile( ee, false, false, 5, TimeUnit.SECONDS );
+        verify( expressionDataFileService ).writeOrLocateProcessedDataFileAsync( ee, false, false );
+    }
+
+    @Test
+    public void testGetDatasetProcessedExpressionWithMatchingETag() throws URISyntaxException {
+        when( expressionExperimentService.hasProcessedExpressionData( eq( ee ) ) ).thenReturn( true );
+        when( expressionDataFileService.writeOrLocateProcessedDataFileAsync( ee, false, false ) )
+                .thenReturn( CompletableFuture.completedFuture( Optional.of( Paths.get( requireNonNull( getClass().getResource( "/data.txt.gz" ) ).toURI() ) ) ) );
+        String etag = target( "/datasets/1/data/processed" ).request().get().getHeaderString( "ETag" );
+        assertThat( etag ).isNotNull();
+        assertThat( target( "/datasets/1/data/processed" ).request().header( "If-None-Match", etag ).get() )
+                .hasStatus( Response.Status.NOT_MODIFIED )
+                .hasHeaderWithValue( "ETag", etag );
+        assertThat( target( "/datasets/1/data/processed" ).request().header( "If-None-Match", "\"foo\"" ).get() )
+                .hasStatus( Response.Status.OK );
+    }
+
+    @Test
+    public void testGetDatasetProcessedExpressionWithRange() throws URISyntaxException {
+        when( expressionExperimentService.hasProcessedExpressionData( eq( ee ) ) ).thenReturn( true );
+        when( expressionDataFileService.writeOrLocateProcessedDataFileAsync( ee, false, false ) )
+                .thenReturn( CompletableFuture.completedFuture( Optional.of( Paths.get( requireNonNull( getClass().getResource( "/data.txt.gz" ) ).toURI() ) ) ) );
+        assertThat( target( "/datasets/1/data/processed" ).queryParam( "download", "true" ).request().header( "Range", "bytes=10-19" ).get() )
+                .hasStatus( Response.Status.PARTIAL_CONTENT )
+                .hasHeaderWithValue( "Content-Range", "bytes 10-19/29" )
+                .hasLength( 10 );
+        assertThat( target( "/datasets/1/data/processed" ).queryParam( "download", "true" ).request().header( "Range", "bytes=-5" ).get() )
+                .hasStatus( Response.Status.PARTIAL_CONTENT )
+                .hasHeaderWithValue( "Content-Range", "bytes 24-28/29" )
+                .hasLength( 5 );
+        assertThat( target( "/datasets/1/data/processed" ).queryParam( "download", "true" ).request().header( "Range", "bytes=100-" ).get() )
+                .hasStatus( Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE )
+                .hasHeaderWithValue( "Content-Range", "bytes */29" );
+        // a stale If-Range produces the whole file
+        assertThat( target( "/datasets/1/data/processed" ).queryParam( "download", "true" ).request().header( "Range", "bytes=10-19" ).header( "If-Range", "\"foo\"" ).get() )
+                .hasStatus( Response.Status.OK )
+                .hasLength( 29 );
+    }
+
+    @Test
+    public void testGetDatasetProcessedExpressionWhenFileIsBeingGenerated() {
+        when( expressionExperimentService.hasProcessedExpressionData( eq( ee ) ) ).thenReturn( true );
+        when( expressionDataFileService.writeOrLocateProcessedDataFileAsync( ee, false, false ) )
+                .thenReturn( new CompletableFuture<>() );
+        assertThat( target( "/datasets/1/data/processed" ).request().get() )
+                .hasStatus( Response.Status.SERVICE_UNAVAILABLE )
+                .hasHeaderSatisfying( "Retry-After", values -> assertThat( values ).isNotEmpty() );
     }
 
     @Test
@@ -568,12 +617,12 @@ public class DatasetsWebServiceTest extends BaseJerseyTest {
     }
 
     @Test
-    public void testGetDatasetRawExpression() throws IOException, URISyntaxException, InterruptedException, TimeoutException {
+    public void testGetDatasetRawExpression() throws URISyntaxException {
         QuantitationType qt = QuantitationType.Factory.newInstance();
         when( expressionExperimentService.getPreferredQuantitationType( ee ) )
                 .thenReturn( Optional.of( qt ) );
-        when( expressionDataFileService.writeOrLocateRawExpressionDataFile( ee, qt, false, 5, TimeUnit.SECONDS ) )
-                .thenReturn( new DummyLockedPath( Paths.get( requireNonNull( getClass().getResource( "/data.txt.gz" ) ).toURI() ), true ) );
+        when( expressionDataFileService.writeOrLocateRawExpressionDataFileAsync( ee, qt, false ) )
+                .thenReturn( CompletableFuture.completedFuture( Paths.get( requireNonNull( getClass().getResource( "/data.txt.gz" ) ).toURI() ) ) );
         assertThat( target( "/datasets/1/data/raw" ).request().get() )
                 .hasStatus( Response.Status.OK )
                 .hasMediaTypeCompatibleWith( TEXT_TAB_SEPARATED_VALUES_UTF8_TYPE )
@@ -581,7 +630,7 @@ public class DatasetsWebServiceTest extends BaseJerseyTest {
                 .hasEncoding( "gzip" );
         verify( expressionExperimentService ).getPreferredQuantitationType( ee );
         verifyNoInteractions( quantitationTypeService );
-        verify( expressionDataFileService ).writeOrLocateRawExpressionDataFile( ee, qt, false, 5, TimeUnit.SECONDS );
+        verify( expressionDataFileService ).writeOrLocateRawExpressionDataFileAsync( ee, qt, false );
     }
 
     @Test
@@ -600,18 +649,18 @@ public class DatasetsWebServiceTest extends BaseJerseyTest {
     }
 
     @Test
-    public void testGetDatasetRawExpressionByQuantitationType() throws IOException, URISyntaxException, InterruptedException, TimeoutException {
+    public void testGetDatasetRawExpressionByQuantitationType() throws URISyntaxException {
         QuantitationType qt = QuantitationType.Factory.newInstance();
         qt.setId( 12L );
         when( quantitationTypeService.load( 12L ) ).thenReturn( qt );
         when( quantitationTypeService.loadByIdAndVectorType( 12L, ee, RawExpressionDataVector.class ) ).thenReturn( qt );
 
-        when( expressionDataFileService.writeOrLocateRawExpressionDataFile( ee, qt, false, 5, TimeUnit.SECONDS ) )
-                .thenReturn( new DummyLockedPath( Paths.get( requireNonNull( getClass().getResource( "/data.txt.gz" ) ).toURI() ), true ) );
+        when( expressionDataFileService.writeOrLocateRawExpressionDataFileAsync( ee, qt, false ) )
+                .thenReturn( CompletableFuture.completedFuture( Paths.get( requireNonNull( getClass().getResource( "/data.txt.gz" ) ).toURI() ) ) );
         Response res = target( "/datasets/1/data/raw" )
                 .queryParam( "quantitationType", "12" ).request().get();
         verify( quantitationTypeService ).loadByIdAndVectorType( 12L, ee, RawExpressionDataVector.class );
-        verify( expressionDataFileService ).writeOrLocateRawExpressionDataFile( ee, qt, false, 5, TimeUnit.SECONDS );
+        verify( expressionDataFileService ).writeOrLocateRawExpressionDataFileAsync( ee, qt, false );
         assertThat( res ).hasStatus( Response.Status.OK )
                 .hasMediaTypeCompatibleWith( TEXT_TAB_SEPARATED_VALUES_UTF8_TYPE )
                 .hasHeaderWithValue( "Content-Disposition", "attachment; filename=\"data.txt\"" )
@@ -781,6 +830,35 @@ public class DatasetsWebServiceTest extends BaseJerseyTest {
                 } );
     }
 
+    @Test
+    public void testGetDatasetSingleCellDataAsAnnData() throws InterruptedException, TimeoutException, URISyntaxException, IOException {
+        QuantitationType qt = new QuantitationType();
+        when( singleCellExpressionExperimentService.getPreferredSingleCellQuantitationType( ee ) )
+                .thenReturn( Optional.of( qt ) );
+        when( expressionDataFileService.getDataFile( eq( ee ), eq( qt ), eq( ExpressionExperimentDataFileType.ANNDATA ), anyBoolean(), anyLong(), any() ) )
+                .thenReturn( new DummyLockedPath( Paths.get( requireNonNull( getClass().getResource( "/data.txt.gz" ) ).toURI() ), true ) );
+        assertThat( target( "/datasets/1/data/singleCell" ).request()
+                .accept( DatasetsWebService.APPLICATION_ANNDATA_TYPE ).get() )
+                .hasStatus( Response.Status.OK )
+                .hasMediaType( DatasetsWebService.APPLICATION_ANNDATA_TYPE )
+                .doesNotHaveEncoding( "gzip" )
+                .hasHeaderWithValue( "Content-Disposition", "attachment; filename=\"data.txt.gz\"" );
+    }
+
+    @Test
+    public void testGetDatasetSingleCellDataAsAnnDataWhenFileIsMissing() throws InterruptedException, TimeoutException, IOException {
+        QuantitationType qt = new QuantitationType();
+        when( singleCellExpressionExperimentService.getPreferredSingleCellQuantitationType( ee ) )
+                .thenReturn( Optional.of( qt ) );
+        when( expressionDataFileService.getDataFile( eq( ee ), eq( qt ), eq( ExpressionExperimentDataFileType.ANNDATA ), anyBoolean(), anyLong(), any() ) )
+                .thenReturn( new DummyLockedPath( Paths.get( "/this/file/does/not/exist.h5ad" ), true ) );
+        assertThat( target( "/datasets/1/data/singleCell" ).request()
+                .accept( DatasetsWebService.APPLICATION_ANNDATA_TYPE ).get() )
+                .hasStatus( Response.Status.SERVICE_UNAVAILABLE )
+                .hasHeaderSatisfying( "Retry-After", values -> assertThat( values ).isNotEmpty() );
+        verify( expressionDataFileService ).writeOrLocateAnnDataSingleCellExpressionDataAsync( ee, qt, 30, false, false );
+    }
+
     @Test
     public void testGetDatasetSubSetGroups() {
         BioAssayDimension bad = new BioAssayDimension();
@@ -39,13 +39,9 @@ import org.jfree.chart.axis.ValueAxis;
 import org.jfree.chart.plot.CategoryPlot;
 import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.chart.plot.XYPlot;
-import org.jfree.chart.renderer.category.BarRenderer;
 import org.jfree.chart.renderer.category.ScatterRenderer;
 import org.jfree.chart.renderer.xy.XYDotRenderer;
 import org.jfree.chart.renderer.xy.XYItemRenderer;
-import org.jfree.chart.renderer.xy.XYLineAndShapeRenderer;
-import org.jfree.data.category.CategoryDataset;
-import org.jfree.data.category.DefaultCategoryDataset;
 import org.jfree.data.statistics.DefaultMultiValueCategoryDataset;
 import org.jfree.data.time.Hour;
 import org.jfree.data.time.Minute;
@@ -66,11 +62,8 @@ import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.servlet.ModelAndView;
 import ubic.basecode.dataStructure.matrix.DenseDoubleMatrix;
 import ubic.basecode.dataStructure.matrix.DoubleMatrix;
-import ubic.basecode.graphics.ColorMatrix;
-import ubic.basecode.graphics.MatrixDisplay;
 import ubic.basecode.io.writer.MatrixWriter;
 import ubic.basecode.math.DescriptiveWithMissing;
-import ubic.basecode.math.distribution.Histogram;
 import ubic.gemma.core.analysis.preprocess.OutlierDetails;
 import ubic.gemma.core.analysis.preprocess.OutlierDetectionService;
 import ubic.gemma.core.analysis.preprocess.batcheffects.BatchInfoPopulationHelperServiceImpl;
@@ -80,7 +73,15 @@ import ubic.gemma.core.analysis.preprocess.svd.SVDResult;
 import ubic.gemma.core.analysis.preprocess.svd.SVDService;
 import ubic.gemma.core.datastructure.matrix.io.ExperimentalDesignWriter;
 import ubic.gemma.core.util.BuildInfo;
+import ubic.gemma.core.util.locking.LockedPath;
 import ubic.gemma.core.visualization.ExpressionDataHeatmap;
+import ubic.gemma.core.visualization.HeatmapTile;
+import ubic.gemma.core.visualization.HeatmapTileCache;
+import ubic.gemma.core.visualization.QcFigureRenderer;
+import ubic.gemma.core.visualization.QcFigureService;
+import ubic.gemma.core.visualization.QcFigureType;
+import ubic.gemma.core.visualization.QcFigureUtils;
+import ubic.gemma.core.visualization.QcFigureWriter;
 import ubic.gemma.core.visualization.SingleCellDataBoxplot;
 import ubic.gemma.core.visualization.SingleCellSparsityHeatmap;
 import ubic.gemma.model.analysis.expression.coexpression.CoexpCorrelationDistribution;
@@ -112,20 +113,24 @@ import ubic.gemma.web.controller.util.view.TextView;
 import ubic.gemma.web.util.WebEntityUrlBuilder;
 
 import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.awt.*;
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.DecimalFormat;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 
 import static java.util.Objects.requireNonNull;
@@ -141,22 +146,8 @@ public class ExpressionExperimentQCController {
     /**
      * Default size for an image, in pixel.
      */
-    public static final int DEFAULT_QC_IMAGE_SIZE_PX = 400;
+    public static final int DEFAULT_QC_IMAGE_SIZE_PX = QcFigureUtils.DEFAULT_QC_IMAGE_SIZE_PX;
 
-    /**
-     * Maximum size for an image, in pixels.
-     */
-    private static final int MAX_QC_IMAGE_SIZE_PX = 800;
-
-    /**
-     * Maximum size of a thumbnail, in pixels.
-     */
-    private static final int MAX_QC_IMAGE_THUMBNAIL_SIZE_PX = 128;
-
-    /**
-     * Maximum factor size when up-scaling an image.
-     */
-    private static final int MAX_IMAGE_SIZE_FACTOR = 5;
     protected final Log log = LogFactory.getLog( getClass().getName() );
     @Autowired
     protected MessageSource messageSource;
@@ -191,6 +182,12 @@ public class ExpressionExperimentQCController {
     private CompositeSequenceService compositeSequenceService;
     @Autowired
     private QuantitationTypeService quantitationTypeService;
+    @Autowired
+    private HeatmapTileCache heatmapTileCache;
+    @Autowired
+    private QcFigureService qcFigureService;
+    @Autowired
+    private QcFigureRenderer qcFigureRenderer;
 
     @Value("${gemma.analysis.dir}")
     private Path analysisStoragePath;
@@ -269,31 +266,34 @@ public class ExpressionExperimentQCController {
     @RequestMapping(value = "/expressionExperiment/pcaFactors.html", method = { RequestMethod.GET, RequestMethod.HEAD })
     public void pcaFactors( @RequestParam("id") Long id, HttpServletResponse response ) throws Exception {
         ExpressionExperiment ee = expressionExperimentService.loadOrFail( id, EntityNotFoundException::new );
-
-        SVDResult svdo = null;
-        try {
-            svdo = svdService.getSvdFactorAnalysis( ee );
-        } catch ( Exception e ) {
-            // if there is no pca
-            log.error( e, e );
-        }
-
-        if ( svdo != null ) {
-            this.writePCAFactors( ee, svdo, response );
-        } else {
-            this.writePlaceholderImage( response, DEFAULT_QC_IMAGE_SIZE_PX );
-        }
+        writeQcFigure( ee, QcFigureType.PCA_FACTORS, "default", response, os -> {
+            SVDResult svdo = null;
+            try {
+                svdo = svdService.getSvdFactorAnalysis( ee );
+            } catch ( Exception e ) {
+                // if there is no pca
+                log.error( e, e );
+            }
+            if ( svdo != null ) {
+                // need the experimental design
+                qcFigureRenderer.renderPcaFactors( expressionExperimentService.thawLite( ee ), svdo, os );
+            } else {
+                qcFigureRenderer.renderPlaceholder( os );
+            }
+        } );
     }
 
     @RequestMapping(value = "/expressionExperiment/pcaScree.html", method = { RequestMethod.GET, RequestMethod.HEAD })
     public void pcaScree( @RequestParam("id") Long id, HttpServletResponse response ) throws Exception {
         ExpressionExperiment ee = expressionExperimentService.loadOrFail( id, EntityNotFoundException::new );
-        SVDResult svdo = svdService.getSvd( ee );
-        if ( svdo != null ) {
-            this.writePCAScree( svdo, response );
-        } else {
-            this.writePlaceholderImage( response, DEFAULT_QC_IMAGE_SIZE_PX );
-        }
+        writeQcFigure( ee, QcFigureType.PCA_SCREE, "default", response, os -> {
+            SVDResult svdo = svdService.getSvd( ee );
+            if ( svdo != null ) {
+                qcFigureRenderer.renderPcaScree( svdo, os );
+            } else {
+                qcFigureRenderer.renderPlaceholder( os );
+            }
+        } );
     }
 
     /**
@@ -313,27 +313,13 @@ public class ExpressionExperimentQCController {
             @RequestParam(value = "forceShowLabels", required = false) Boolean forceShowLabels,
             @RequestParam(value = "reg", required = false) Boolean reg,
             HttpServletResponse response ) throws Exception {
+        Assert.isTrue( sizeFactor == null || sizeFactor > 0, "The size factor must be strictly positive." );
         ExpressionExperiment ee = expressionExperimentService.loadOrFail( id, EntityNotFoundException::new );
-        ee = expressionExperimentService.thawLiter( ee );
-        DoubleMatrix<BioAssay, BioAssay> omatrix = ( reg != null && reg ) ? sampleCoexpressionAnalysisService.loadBestMatrix( ee )
-                : sampleCoexpressionAnalysisService.loadFullMatrix( ee );
-        if ( omatrix == null ) {
-            throw new EntityNotFoundException( "No correlation matrix for ee " + id );
-        }
-
-        if ( sizeFactor == null ) {
-            sizeFactor = 1.0;
-        }
-
-        List<String> stringNames = new ArrayList<>();
-        for ( BioAssay ba : omatrix.getRowNames() ) {
-            stringNames.add( ba.getName() + " ID=" + ba.getId() );
-        }
-        DoubleMatrix<String, String> matrix = new DenseDoubleMatrix<>( omatrix.getRawMatrix() );
-        matrix.setRowNames( stringNames );
-        matrix.setColumnNames( stringNames );
+        double size = sizeFactor != null ? sizeFactor : 1.0;
+        boolean regressed = reg != null && reg;
 
         if ( text != null && text ) {
+            DoubleMatrix<String, String> matrix = getSampleCorrelationMatrix( ee, regressed );
             StringWriter s = new StringWriter();
             MatrixWriter<String, String> mw = new MatrixWriter<>( s, new DecimalFormat( "#.##" ) );
             mw.writeMatrix( matrix, true );
@@ -343,33 +329,39 @@ public class ExpressionExperimentQCController {
             return;
         }
 
-        /*
-         * Blank out the diagonal so it doesn't affect the colour scale.
-         */
-        for ( int i = 0; i < matrix.rows(); i++ ) {
-            matrix.set( i, i, Double.NaN );
-        }
-
-        ColorMatrix<String, String> cm = new ColorMatrix<>( matrix );
+        // the cell size is derived from the number of samples, so a stored figure can be used without loading the matrix
+        int minimumCellSizeForText = QcFigureUtils.MIN_SAMPLE_CORRELATION_MATRIX_CELL_SIZE_FOR_LABELS_PX;
+        boolean force = forceShowLabels != null && forceShowLabels;
+        int cellsize = force ? minimumCellSizeForText : QcFigureUtils.getSampleCorrelationMatrixCellSize( ee, size );
+        boolean reallyShowLabels = force || ( showLabels != null && showLabels && cellsize >= minimumCellSizeForText );
+        boolean showScalebar = size > 2;
 
-        int row = matrix.rows();
-        int cellsize = ( int ) Math.min( 12, Math.max( 1, sizeFactor * ExpressionExperimentQCController.DEFAULT_QC_IMAGE_SIZE_PX / row ) );
-
-        MatrixDisplay<String, String> writer = new MatrixDisplay<>( cm );
+        // only the effective rendering parameters are used, so there is a bounded number of variants
+        String variant = QcFigureUtils.getSampleCorrelationMatrixVariant( regressed, cellsize, reallyShowLabels, showScalebar );
+        writeQcFigure( ee, QcFigureType.SAMPLE_CORRELATION_MATRIX, variant, response, os -> qcFigureRenderer
+                .renderSampleCorrelationMatrix( loadSampleCorrelationMatrix( ee, regressed ), cellsize, reallyShowLabels, showScalebar, os ) );
+    }
 
-        boolean reallyShowLabels;
-        int minimumCellSizeForText = 9;
-        if ( forceShowLabels != null && forceShowLabels ) {
-            cellsize = minimumCellSizeForText;
-            reallyShowLabels = true;
-        } else {
-            reallyShowLabels = showLabels != null && ( showLabels && cellsize >= minimumCellSizeForText );
+    private DoubleMatrix<BioAssay, BioAssay> loadSampleCorrelationMatrix( ExpressionExperiment ee, boolean regressed ) {
+        ee = expressionExperimentService.thawLiter( ee );
+        DoubleMatrix<BioAssay, BioAssay> omatrix = regressed ? sampleCoexpressionAnalysisService.loadBestMatrix( ee )
+                : sampleCoexpressionAnalysisService.loadFullMatrix( ee );
+        if ( omatrix == null ) {
+            throw new EntityNotFoundException( "No correlation matrix for ee " + ee.getId() );
         }
+        return omatrix;
+    }
 
-        writer.setCellSize( new Dimension( cellsize, cellsize ) );
-        boolean showScalebar = sizeFactor > 2;
-        response.setContentType( MediaType.IMAGE_PNG_VALUE );
-        writer.writeToPng( cm, response.getOutputStream(), reallyShowLabels, showScalebar );
+    private DoubleMatrix<String, String> getSampleCorrelationMatrix( ExpressionExperiment ee, boolean regressed ) {
+        DoubleMatrix<BioAssay, BioAssay> omatrix = loadSampleCorrelationMatrix( ee, regressed );
+        List<String> stringNames = new ArrayList<>();
+        for ( BioAssay ba : omatrix.getRowNames() ) {
+            stringNames.add( ba.getName() + " ID=" + ba.getId() );
+        }
+        DoubleMatrix<String, String> matrix = new DenseDoubleMatrix<>( omatrix.getRawMatrix() );
+        matrix.setRowNames( stringNames );
+        matrix.setColumnNames( stringNames );
+        return matrix;
     }
 
     /**
@@ -412,9 +404,11 @@ public class ExpressionExperimentQCController {
                     .addObject( TextView.TEXT_PARAM, matrixString );
         }
 
-        // FIXME might be something better to do
-        response.setContentType( MediaType.IMAGE_PNG_VALUE );
-        writeMeanVariance( mvr, sizeFactor != null ? sizeFactor : 1.0, response );
+        Assert.isTrue( sizeFactor == null || sizeFactor > 0, "The size factor must be strictly positive." );
+        // only the truncated size factor affects the rendered figure
+        int size = QcFigureUtils.getEffectiveSizeFactor( sizeFactor != null ? sizeFactor : 1.0 );
+        writeQcFigure( ee, QcFigureType.MEAN_VARIANCE, QcFigureUtils.getMeanVarianceVariant( size ), response,
+                os -> qcFigureRenderer.renderMeanVariance( mvr, size, os ) );
         return null;
     }
 
@@ -425,7 +419,7 @@ public class ExpressionExperimentQCController {
             log.warn( "Could not load experiment with id " + id );
             return;
         }
-        writeProbeCorrHistImage( ee, response );
+        writeQcFigure( ee, QcFigureType.PROBE_CORRELATION_DISTRIBUTION, "default", response, os -> writeProbeCorrHistImage( ee, os ) );
     }
 
     /**
@@ -459,9 +453,14 @@ public class ExpressionExperimentQCController {
             throw new IllegalArgumentException( "Result set with ID " + id + " does not belong to analysis with ID " + analysisId );
         }
         if ( size == null ) {
-            writePValueHistImage( rs, response );
+            writeQcFigure( ee, QcFigureType.PVALUE_DISTRIBUTION, QcFigureUtils.getPValueDistributionVariant( rs ), response,
+                    os -> qcFigureRenderer.renderPValueDistribution( expressionAnalysisResultSetService.loadPvalueDistribution( rs ), os ) );
         } else {
-            writePValueHistThumbnailImage( rs, size, response );
+            Assert.isTrue( size > 0, "The size must be strictly positive." );
+            // thumbnails are capped, so there is a bounded number of variants
+            int thumbnailSize = QcFigureUtils.getEffectiveThumbnailSize( size );
+            writeQcFigure( ee, QcFigureType.PVALUE_DISTRIBUTION, QcFigureUtils.getPValueDistributionThumbnailVariant( rs, thumbnailSize ), response,
+                    os -> qcFigureRenderer.renderPValueDistributionThumbnail( expressionAnalysisResultSetService.loadPvalueDistribution( rs ), thumbnailSize, os ) );
         }
     }
 
@@ -475,6 +474,38 @@ public class ExpressionExperimentQCController {
         }
     }
 
+    /**
+     * Write a QC figure, reusing a previously rendered figure if possible.
+     * <p>
+     * The figure is rendered in memory so that it can be stored in the background by {@link QcFigureService} while it
+     * is being sent. Data needed for rendering should be loaded by the renderer, so that nothing is loaded if a stored
+     * figure can be used.
+     */
+    private void writeQcFigure( ExpressionExperiment ee, QcFigureType type, String variant, HttpServletResponse response, QcFigureWriter writer ) throws IOException {
+        Optional<LockedPath> storedFigure = qcFigureService.getFigure( ee, type, variant );
+        if ( storedFigure.isPresent() ) {
+            try ( LockedPath figure = storedFigure.get() ) {
+                response.setContentType( MediaType.IMAGE_PNG_VALUE );
+                response.setContentLength( ( int ) Files.size( figure.getPath() ) );
+                Files.copy( figure.getPath(), response.getOutputStream() );
+            }
+            return;
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        writer.write( buffer );
+        byte[] data = buffer.toByteArray();
+        if ( data.length > 0 ) {
+            try {
+                qcFigureService.saveFigureAsync( ee, type, variant, data );
+            } catch ( RejectedExecutionException e ) {
+                log.warn( "Could not store " + type + " QC figure for " + ee + ", it will be rendered again next time.", e );
+            }
+        }
+        response.setContentType( MediaType.IMAGE_PNG_VALUE );
+        response.setContentLength( data.length );
+        response.getOutputStream().write( data );
+    }
+
     @RequestMapping(value = "/expressionExperiment/eigenGenes.html", method = { RequestMethod.GET, RequestMethod.HEAD })
     public ModelAndView writeEigenGenes( @RequestParam("eeid") Long eeid ) throws IOException {
         ExpressionExperiment ee = expressionExperimentService.loadOrFail( eeid,
@@ -507,29 +538,32 @@ public class ExpressionExperimentQCController {
     public void visualizeSingleCellSparsityHeatmap( @RequestParam("id") Long id, @RequestParam("type") String type,
             @RequestParam(value = "cellSize", required = false) Integer cellSize,
             @RequestParam(value = "transpose", required = false) Boolean transpose,
-            HttpServletResponse response ) throws IOException {
+            HttpServletRequest request, HttpServletResponse response ) throws IOException {
         Assert.isTrue( cellSize == null || cellSize > 0 );
+        SingleCellSparsityHeatmap.SingleCellHeatmapType heatmapType = SingleCellSparsityHeatmap.SingleCellHeatmapType.valueOf( type.toUpperCase() );
         ExpressionExperiment ee = expressionExperimentService.loadAndThawLiteOrFail( id, EntityNotFoundException::new, "No dataset with ID " + id + "." );
-        SingleCellDimension singleCellDimension = singleCellExpressionExperimentService.getPreferredSingleCellDimensionWithoutCellIds( ee )
-                .orElseThrow( () -> new EntityNotFoundException( ee.getShortName() + " does not have a preferred single-cell dimension." ) );
-        QuantitationType qt = expressionExperimentService.getProcessedQuantitationType( ee )
-                .orElseThrow( () -> new EntityNotFoundException( "No processed quantitation type found for " + ee.getShortName() + "." ) );
-        BioAssayDimension dimension = expressionExperimentService.getBioAssayDimension( ee, qt, ProcessedExpressionDataVector.class );
-        if ( dimension == null ) {
-            throw new EntityNotFoundException( "No dimension found for " + qt + "." );
-        }
-        Collection<ExpressionExperimentSubSet> subSets = expressionExperimentService.getSubSetsWithBioAssays( ee, dimension );
-        Map<BioAssay, Long> designElementsPerSample = expressionExperimentService.getNumberOfDesignElementsPerSample( ee );
-        SingleCellSparsityHeatmap heatmap = new SingleCellSparsityHeatmap( ee, singleCellDimension, dimension, subSets, designElementsPerSample, SingleCellSparsityHeatmap.SingleCellHeatmapType.valueOf( type.toUpperCase() ) );
-        if ( cellSize != null ) {
-            heatmap.setCellSize( cellSize );
-        }
-        if ( transpose != null ) {
-            heatmap.setTranspose( transpose );
-        }
-        BufferedImage image = heatmap.createImage();
-        response.setContentType( MediaType.IMAGE_PNG_VALUE );
-        ChartUtils.writeBufferedImageAsPNG( response.getOutputStream(), image );
+        String tile = String.format( "singleCellSparsityHeatmap:type=%s:cellSize=%s:transpose=%s", heatmapType, cellSize, transpose );
+        HeatmapTile heatmapTile = heatmapTileCache.getOrRender( ee, tile, () -> {
+            SingleCellDimension singleCellDimension = singleCellExpressionExperimentService.getPreferredSingleCellDimensionWithoutCellIds( ee )
+                    .orElseThrow( () -> new EntityNotFoundException( ee.getShortName() + " does not have a preferred single-cell dimension." ) );
+            QuantitationType qt = expressionExperimentService.getProcessedQuantitationType( ee )
+                    .orElseThrow( () -> new EntityNotFoundException( "No processed quantitation type found for " + ee.getShortName() + "." ) );
+            BioAssayDimension dimension = expressionExperimentService.getBioAssayDimension( ee, qt, ProcessedExpressionDataVector.class );
+            if ( dimension == null ) {
+                throw new EntityNotFoundException( "No dimension found for " + qt + "." );
+            }
+            Collection<ExpressionExperimentSubSet> subSets = expressionExperimentService.getSubSetsWithBioAssays( ee, dimension );
+            Map<BioAssay, Long> designElementsPerSample = expressionExperimentService.getNumberOfDesignElementsPerSample( ee );
+            SingleCellSparsityHeatmap heatmap = new SingleCellSparsityHeatmap( ee, singleCellDimension, dimension, subSets, designElementsPerSample, heatmapType );
+            if ( cellSize != null ) {
+                heatmap.setCellSize( cellSize );
+            }
+            if ( transpose != null ) {
+                heatmap.setTranspose( transpose );
+            }
+            return heatmap;
+        } );
+        writeHeatmapTile( heatmapTile, request, response );
     }
 
     @RequestMapping(value = "/expressionExperiment/visualizeHeatmap.html", method = { RequestMethod.GET, RequestMethod.HEAD })
@@ -537,15 +571,11 @@ public class ExpressionExperimentQCController {
             @RequestParam(value = "offset", required = false) Integer offset, @RequestParam(value = "limit", required = false) Integer limit,
             @RequestParam(value = "cellSize", required = false) Integer cellSize,
             @RequestParam(value = "transpose", required = false) Boolean transpose,
-            HttpServletResponse response ) throws IOException {
+            HttpServletRequest request, HttpServletResponse response ) throws IOException {
         Assert.isTrue( cellSize == null || cellSize > 0 );
         Assert.isTrue( limit == null || ( limit > 0 && limit <= 100 ) );
-        if ( offset == null ) {
-            offset = 0;
-        }
-        if ( limit == null ) {
-            limit = 10;
-        }
+        int o = offset != null ? offset : 0;
+        int l = limit != null ? limit : 10;
         ExpressionExperiment ee = expressionExperimentService.loadAndThawLiteOrFail( id, EntityNotFoundException::new, "" );
         BioAssayDimension dimension;
         if ( dimensionId != null ) {
@@ -561,17 +591,19 @@ public class ExpressionExperimentQCController {
                 throw new EntityNotFoundException( preferredQt + " does not have any associated dimension." );
             }
         }
-        Slice<ProcessedExpressionDataVector> vectors = processedExpressionDataVectorService.getProcessedDataVectors( ee, dimension, offset, limit );
-        ExpressionDataHeatmap heatmap = ExpressionDataHeatmap.fromVectors( ee, dimension, vectors, null );
-        if ( cellSize != null ) {
-            heatmap.setCellSize( cellSize );
-        }
-        if ( transpose != null ) {
-            heatmap.setTranspose( transpose );
-        }
-        BufferedImage image = heatmap.createImage();
-        response.setContentType( MediaType.IMAGE_PNG_VALUE );
-        ChartUtils.writeBufferedImageAsPNG( response.getOutputStream(), image );
+        String tile = String.format( "heatmap:dimension=%d:offset=%d:limit=%d:cellSize=%s:transpose=%s", dimension.getId(), o, l, cellSize, transpose );
+        HeatmapTile heatmapTile = heatmapTileCache.getOrRender( ee, tile, () -> {
+            Slice<ProcessedExpressionDataVector> vectors = processedExpressionDataVectorService.getProcessedDataVectors( ee, dimension, o, l );
+            ExpressionDataHeatmap heatmap = ExpressionDataHeatmap.fromVectors( ee, dimension, vectors, null );
+            if ( cellSize != null ) {
+                heatmap.setCellSize( cellSize );
+            }
+            if ( transpose != null ) {
+                heatmap.setTranspose( transpose );
+            }
+            return heatmap;
+        } );
+        writeHeatmapTile( heatmapTile, request, response );
     }
 
     @RequestMapping(value = "/expressionExperiment/visualizeSubSetHeatmap.html", method = { RequestMethod.GET, RequestMethod.HEAD })
@@ -579,37 +611,58 @@ public class ExpressionExperimentQCController {
             @RequestParam(value = "offset", required = false) Integer offset, @RequestParam(value = "limit", required = false) Integer limit,
             @RequestParam(value = "cellSize", required = false) Integer cellSize,
             @RequestParam(value = "transpose", required = false) Boolean transpose,
-            HttpServletResponse response ) throws IOException {
+            HttpServletRequest request, HttpServletResponse response ) throws IOException {
         Assert.isTrue( cellSize == null || cellSize > 0 );
         Assert.isTrue( limit == null || ( limit > 0 && limit <= 100 ) );
-        if ( offset == null ) {
-            offset = 0;
-        }
-        if ( limit == null ) {
-            limit = 10;
-        }
+        int o = offset != null ? offset : 0;
+        int l = limit != null ? limit : 10;
         ExpressionExperimentSubSet subSet = expressionExperimentSubSetService.loadWithBioAssays( id );
         if ( subSet == null ) {
             throw new EntityNotFoundException( "No subset with ID " + id );
         }
-        ExpressionExperiment ee = subSet.getSourceExperiment();
+        // the source experiment is reloaded to have its curation details, which determine if a cached heatmap is stale
+        ExpressionExperiment ee = expressionExperimentService.loadOrFail( subSet.getSourceExperiment().getId(), EntityNotFoundException::new );
         QuantitationType preferredQt = expressionExperimentService.getProcessedQuantitationType( ee )
                 .orElseThrow( () -> new EntityNotFoundException( ee.getShortName() + " does not have a set of processed vectors." ) );
         BioAssayDimension dimension = expressionExperimentService.getBioAssayDimension( ee, preferredQt, ProcessedExpressionDataVector.class );
         if ( dimension == null ) {
             throw new EntityNotFoundException( preferredQt + " does not have any associated dimension." );
         }
-        Slice<ProcessedExpressionDataVector> vectors = processedExpressionDataVectorService.getProcessedDataVectors( ee, dimension, offset, limit );
-        ExpressionDataHeatmap heatmap = ExpressionDataHeatmap.fromVectors( subSet, dimension, vectors, null );
-        if ( cellSize != null ) {
-            heatmap.setCellSize( cellSize );
-        }
-        if ( transpose != null ) {
-            heatmap.setTranspose( transpose );
+        String tile = String.format( "subSetHeatmap:subSet=%d:dimension=%d:offset=%d:limit=%d:cellSize=%s:transpose=%s", subSet.getId(), dimension.getId(), o, l, cellSize, transpose );
+        HeatmapTile heatmapTile = heatmapTileCache.getOrRender( ee, tile, () -> {
+            Slice<ProcessedExpressionDataVector> vectors = processedExpressionDataVectorService.getProcessedDataVectors( ee, dimension, o, l );
+            ExpressionDataHeatmap heatmap = ExpressionDataHeatmap.fromVectors( subSet, dimension, vectors, null );
+            if ( cellSize != null ) {
+                heatmap.setCellSize( cellSize );
+            }
+            if ( transpose != null ) {
+                heatmap.setTranspose( transpose );
+            }
+            return heatmap;
+        } );
+        writeHeatmapTile( heatmapTile, request, response );
+    }
+
+    /**
+     * Write a rendered heatmap, or only its headers if the client already has it.
+     */
+    private void writeHeatmapTile( HeatmapTile heatmapTile, HttpServletRequest request, HttpServletResponse response ) throws IOException {
+        String etag = "\"" + heatmapTile.getEntityTag() + "\"";
+        response.setHeader( "ETag", etag );
+        response.setDateHeader( "Last-Modified", heatmapTile.getLastModified().getTime() );
+        String ifNoneMatch = request.getHeader( "If-None-Match" );
+        if ( ifNoneMatch != null ) {
+            for ( String candidate : ifNoneMatch.split( "," ) ) {
+                candidate = StringUtils.removeStart( candidate.trim(), "W/" );
+                if ( candidate.equals( "*" ) || candidate.equals( etag ) ) {
+                    response.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+                    return;
+                }
+            }
         }
-        BufferedImage image = heatmap.createImage();
         response.setContentType( MediaType.IMAGE_PNG_VALUE );
-        ChartUtils.writeBufferedImageAsPNG( response.getOutputStream(), image );
+        response.setContentLength( heatmapTile.getData().length );
+        response.getOutputStream().write( heatmapTile.getData() );
     }
 
     @RequestMapping(value = "/expressionExperiment/visualizeSingleCellDataBoxplot.html", method = { RequestMethod.GET, RequestMethod.HEAD })
@@ -691,7 +744,7 @@ public class ExpressionExperimentQCController {
         }
         response.setContentType( MediaType.IMAGE_PNG_VALUE );
         ChartUtils.writeChartAsPNG( response.getOutputStream(), chart,
-                Math.min( Math.max( 50 * dataset.getNumberOfBoxplots(), DEFAULT_QC_IMAGE_SIZE_PX ), MAX_QC_IMAGE_SIZE_PX ),
+                Math.min( Math.max( 50 * dataset.getNumberOfBoxplots(), DEFAULT_QC_IMAGE_SIZE_PX ), QcFigureUtils.MAX_QC_IMAGE_SIZE_PX ),
                 DEFAULT_QC_IMAGE_SIZE_PX );
     }
 
@@ -808,25 +861,6 @@ public class ExpressionExperimentQCController {
         }
     }
 
-    /**
-     * @return JFreeChart XYSeries representing the histogram for the requested result set
-     */
-    private XYSeries getDiffExPvalueHistXYSeries( ExpressionAnalysisResultSet rs ) {
-        Histogram hist = expressionAnalysisResultSetService.loadPvalueDistribution( rs );
-        if ( hist != null ) {
-            XYSeries xySeries;
-            xySeries = new XYSeries( rs.getId(), true, true );
-            Double[] binEdges = hist.getBinEdges();
-            double[] counts = hist.getArray();
-            assert binEdges.length == counts.length;
-            for ( int i = 0; i < binEdges.length; i++ ) {
-                xySeries.add( binEdges[i].doubleValue(), counts[i] );
-            }
-            return xySeries;
-        }
-        return null;
-    }
-
     /**
      * Get the eigengene for the given component.
      * The values are rescaled so that jfreechart can cope. Small numbers give it fits.
@@ -850,49 +884,6 @@ public class ExpressionExperimentQCController {
         return efs;
     }
 
-    /**
-     * @param mvr MeanVarianceRelation object that contains the datapoints to plot
-     * @return XYSeriesCollection which contains the Mean-variance and Loess series
-     */
-    private XYSeriesCollection getMeanVariance( MeanVarianceRelation mvr ) {
-
-        XYSeriesCollection dataset = new XYSeriesCollection();
-
-        if ( mvr == null ) {
-            return dataset;
-        }
-
-        double[] means = mvr.getMeans();
-        double[] variances = mvr.getVariances();
-
-        if ( means == null || variances == null ) {
-            return dataset;
-        }
-
-        XYSeries series = new XYSeries( "Mean-variance" );
-        for ( int i = 0; i < means.length; i++ ) {
-            series.add( means[i], variances[i] );
-        }
-
-        dataset.addSeries( series );
-
-        return dataset;
-    }
-
-    private CategoryDataset getPCAScree( SVDResult svdo ) {
-        DefaultCategoryDataset series = new DefaultCategoryDataset();
-
-        double[] variances = svdo.getVariances();
-        if ( variances == null || variances.length == 0 ) {
-            return series;
-        }
-        int MAX_COMPONENTS_FOR_SCREE = 10; // make constant
-        for ( int i = 0; i < Math.min( MAX_COMPONENTS_FOR_SCREE, variances.length ); i++ ) {
-            series.addValue( variances[i], Integer.valueOf( 1 ), Integer.valueOf( i + 1 ) );
-        }
-        return series;
-    }
-
     /**
      * For backwards compatibility only; remove when no longer needed.
      */
@@ -928,12 +919,14 @@ public class ExpressionExperimentQCController {
     private void writeDetailedFactorAnalysis( ExpressionExperiment ee, HttpServletResponse os ) throws Exception {
         SVDResult svdo = svdService.getSvdFactorAnalysis( ee );
         if ( svdo == null ) {
-            writePlaceholderImage( os, DEFAULT_QC_IMAGE_SIZE_PX );
+            os.setContentType( MediaType.IMAGE_PNG_VALUE );
+            qcFigureRenderer.renderPlaceholder( os.getOutputStream() );
             return;
         }
 
         if ( svdo.getFactors().isEmpty() && svdo.getDates().isEmpty() ) {
-            writePlaceholderImage( os, DEFAULT_QC_IMAGE_SIZE_PX );
+            os.setContentType( MediaType.IMAGE_PNG_VALUE );
+            qcFigureRenderer.renderPlaceholder( os.getOutputStream() );
             return;
         }
         Map<Integer, Map<ExperimentalFactor, Double>> factorCorrelations = svdo.getFactorCorrelations();
@@ -1207,80 +1200,6 @@ public class ExpressionExperimentQCController {
         ChartUtils.writeBufferedImageAsPNG( os.getOutputStream(), image );
     }
 
-    private void writeMeanVariance( MeanVarianceRelation mvr, double sizeFactor, HttpServletResponse response ) throws Exception {
-        // if number of datapoints > THRESHOLD then alpha = TRANSLUCENT, else alpha = OPAQUE
-        final int THRESHOLD = 1000;
-        final int TRANSLUCENT = 50;
-        final int OPAQUE = 255;
-
-        // Set maximum plot range to Y_MAX + YRANGE * OFFSET to leave some extra white space
-        final double OFFSET_FACTOR = 0.05f;
-
-        if ( mvr == null ) {
-            writePlaceholderImage( response, DEFAULT_QC_IMAGE_SIZE_PX );
-            return;
-        }
-
-        // get data points
-        XYSeriesCollection collection = this.getMeanVariance( mvr );
-
-        if ( collection.getSeries().isEmpty() ) {
-            writePlaceholderImage( response, DEFAULT_QC_IMAGE_SIZE_PX );
-            return;
-        }
-
-        ChartFactory.setChartTheme( StandardChartTheme.createLegacyTheme() );
-        JFreeChart chart = ChartFactory
-                .createScatterPlot( "", "mean (log2)", "variance (log2)", collection, PlotOrientation.VERTICAL, false,
-                        false, false );
-
-        // adjust colors and shapes
-        XYRegressionRenderer renderer = new XYRegressionRenderer();
-        renderer.setDefaultPaint( Color.white );
-        XYSeries series = collection.getSeries( 0 );
-        int alpha = series.getItemCount() > THRESHOLD ? TRANSLUCENT : OPAQUE;
-        renderer.setSeriesPaint( 0, new Color( 0, 0, 0, alpha ) );
-        renderer.setSeriesPaint( 1, Color.red );
-        renderer.setSeriesStroke( 1, new BasicStroke( 1 ) );
-        renderer.setSeriesShape( 0, new Ellipse2D.Double( 4, 4, 4, 4 ) );
-        renderer.setSeriesShapesFilled( 0, false );
-        renderer.setSeriesLinesVisible( 0, false );
-        renderer.setSeriesLinesVisible( 1, true );
-        renderer.setSeriesShapesVisible( 1, false );
-
-        XYPlot plot = chart.getXYPlot();
-        plot.setRenderer( renderer );
-        plot.setRangeGridlinesVisible( false );
-        plot.setDomainGridlinesVisible( false );
-
-        // adjust the chart domain and ranges
-        double yRange = series.getMaxY() - series.getMinY();
-        double xRange = series.getMaxX() - series.getMinX();
-        if ( xRange < 0 ) {
-            log.warn( "Min X was greater than Max X: Max=" + series.getMaxY() + " Min= " + series.getMinY() );
-            writePlaceholderImage( response, DEFAULT_QC_IMAGE_SIZE_PX );
-            return;
-        }
-        double ybuffer = ( yRange ) * OFFSET_FACTOR;
-        double xbuffer = ( xRange ) * OFFSET_FACTOR;
-        double newYMin = series.getMinY() - ybuffer;
-        double newYMax = series.getMaxY() + ybuffer;
-        double newXMin = series.getMinX() - xbuffer;
-        double newXMax = series.getMaxX() + xbuffer;
-
-        ValueAxis yAxis = new NumberAxis( "Variance" );
-        yAxis.setRange( newYMin, newYMax );
-        ValueAxis xAxis = new NumberAxis( "Mean" );
-        xAxis.setRange( newXMin, newXMax );
-        chart.getXYPlot().setRangeAxis( yAxis );
-        chart.getXYPlot().setDomainAxis( xAxis );
-
-        int finalSize = ( int ) Math.min( sizeFactor, MAX_IMAGE_SIZE_FACTOR ) * DEFAULT_QC_IMAGE_SIZE_PX;
-
-        response.setContentType( MediaType.IMAGE_PNG_VALUE );
-        ChartUtils.writeChartAsPNG( response.getOutputStream(), chart, finalSize, finalSize );
-    }
-
     /**
      * Remove outliers from the MeanVarianceRelation by removing those points which have: (zscore(mean) > zscoreMax ||
      * zscore(variance) > zscoreMax)
@@ -1337,159 +1256,11 @@ public class ExpressionExperimentQCController {
         return z;
     }
 
-    /**
-     * Visualization of the correlation of principal components with factors or the date samples were run.
-     *
-     * @param svdo SVD value object
-     */
-    private void writePCAFactors( ExpressionExperiment ee, SVDResult svdo, HttpServletResponse response ) throws Exception {
-        Map<Integer, Map<ExperimentalFactor, Double>> factorCorrelations = svdo.getFactorCorrelations();
-        // Map<Integer, Map<Long, Double>> factorPvalues = svdo.getFactorPvalues();
-        Map<Integer, Double> dateCorrelations = svdo.getDateCorrelations();
-
-        assert ee.equals( svdo.getExperimentAnalyzed() );
-
-        if ( factorCorrelations.isEmpty() && dateCorrelations.isEmpty() ) {
-            this.writePlaceholderImage( response, DEFAULT_QC_IMAGE_SIZE_PX );
-            return;
-        }
-        ee = expressionExperimentService.thawLite( ee ); // need the experimental design
-        int maxWidth = 10;
-
-        Map<ExperimentalFactor, String> efs = this.getFactorNames( ee, maxWidth );
-
-        DefaultCategoryDataset series = new DefaultCategoryDataset();
-
-        /*
-         * With two groups, or a continuous factor, we get rank correlations
-         */
-        int MAX_COMP = 3;
-        double STUB = 0.05; // always plot a little thing so we know its there.
-        for ( Integer component : factorCorrelations.keySet() ) {
-            if ( component >= MAX_COMP )
-                break;
-            for ( ExperimentalFactor efId : factorCorrelations.get( component ).keySet() ) {
-                Double a = factorCorrelations.get( component ).get( efId );
-                String facname = efs.get( efId ) == null ? "?" : efs.get( efId );
-                if ( a != null && !Double.isNaN( a ) ) {
-                    Double corr = Math.max( STUB, Math.abs( a ) );
-                    series.addValue( corr, "PC" + ( component + 1 ), facname );
-                }
-            }
-        }
-
-        for ( Integer component : dateCorrelations.keySet() ) {
-            if ( component >= MAX_COMP )
-                break;
-            Double a = dateCorrelations.get( component );
-            if ( a != null && !Double.isNaN( a ) ) {
-                Double corr = Math.max( STUB, Math.abs( a ) );
-                series.addValue( corr, "PC" + ( component + 1 ), "Date run" );
-            }
-        }
-        ChartFactory.setChartTheme( StandardChartTheme.createLegacyTheme() );
-        JFreeChart chart = ChartFactory
-                .createBarChart( "", "Factors", "Component assoc.", series, PlotOrientation.VERTICAL, true, false,
-                        false );
-
-        chart.getCategoryPlot().getRangeAxis().setRange( 0, 1 );
-        BarRenderer renderer = ( BarRenderer ) chart.getCategoryPlot().getRenderer();
-        renderer.setDefaultPaint( Color.white );
-        renderer.setShadowVisible( false );
-        chart.getCategoryPlot().setRangeGridlinesVisible( false );
-        chart.getCategoryPlot().setDomainGridlinesVisible( false );
-        ChartUtils.applyCurrentTheme( chart );
-
-        CategoryAxis domainAxis = chart.getCategoryPlot().getDomainAxis();
-        domainAxis.setCategoryLabelPositions( CategoryLabelPositions.UP_45 );
-        for ( int i = 0; i < MAX_COMP; i++ ) {
-            /*
-             * Hue is straightforward; brightness is set medium to make it muted; saturation we vary from high to low.
-             */
-            float saturationDrop = ( float ) Math.min( 1.0, i * 1.3f / MAX_COMP );
-            renderer.setSeriesPaint( i, Color.getHSBColor( 0.0f, 1.0f - saturationDrop, 0.7f ) );
-
-        }
-
-        /*
-         * Give figure more room .. up to a limit
-         */
-        int width = ExpressionExperimentQCController.DEFAULT_QC_IMAGE_SIZE_PX;
-        if ( chart.getCategoryPlot().getCategories().size() > 3 ) {
-            width = width + 40 * ( chart.getCategoryPlot().getCategories().size() - 2 );
-        }
-        width = Math.min( width, MAX_QC_IMAGE_SIZE_PX );
-        response.setContentType( MediaType.IMAGE_PNG_VALUE );
-        ChartUtils.writeChartAsPNG( response.getOutputStream(), chart, width, ExpressionExperimentQCController.DEFAULT_QC_IMAGE_SIZE_PX );
-    }
-
-    private void writePCAScree( SVDResult svdo, HttpServletResponse response ) throws Exception {
-        /*
-         * Make a scree plot.
-         */
-        CategoryDataset series = this.getPCAScree( svdo );
-
-        if ( series.getColumnCount() == 0 ) {
-            return;
-        }
-        int MAX_COMPONENTS_FOR_SCREE = 10;
-        ChartFactory.setChartTheme( StandardChartTheme.createLegacyTheme() );
-        JFreeChart chart = ChartFactory
-                .createBarChart( "", "Component (up to " + MAX_COMPONENTS_FOR_SCREE + ")", "Fraction of var.", series,
-                        PlotOrientation.VERTICAL, false, false, false );
-
-        BarRenderer renderer = ( BarRenderer ) chart.getCategoryPlot().getRenderer();
-        renderer.setDefaultPaint( Color.white );
-        renderer.setShadowVisible( false );
-        chart.getCategoryPlot().setRangeGridlinesVisible( false );
-        chart.getCategoryPlot().setDomainGridlinesVisible( false );
-        response.setContentType( MediaType.IMAGE_PNG_VALUE );
-        ChartUtils.writeChartAsPNG( response.getOutputStream(), chart, ExpressionExperimentQCController.DEFAULT_QC_IMAGE_SIZE_PX,
-                ExpressionExperimentQCController.DEFAULT_QC_IMAGE_SIZE_PX );
-    }
-
-    /**
-     * Write a blank image so user doesn't see the broken icon.
-     */
-    private void writePlaceholderImage( HttpServletResponse response, @SuppressWarnings("SameParameterValue") int size ) throws IOException {
-        BufferedImage buffer = new BufferedImage( size, size, BufferedImage.TYPE_INT_RGB );
-        Graphics g = buffer.createGraphics();
-        g.setColor( Color.lightGray );
-        g.fillRect( 0, 0, size, size );
-        g.setColor( Color.black );
-        g.drawString( "Not available", size / 4, size / 4 );
-        response.setContentType( MediaType.IMAGE_PNG_VALUE );
-        ChartUtils.writeBufferedImageAsPNG( response.getOutputStream(), buffer );
-    }
-
-    /**
-     * Write a blank thumbnail image so user doesn't see the broken icon.
-     */
-    private void writePlaceholderThumbnailImage( HttpServletResponse response, int size ) throws IOException {
-        size = Math.min( size, MAX_QC_IMAGE_THUMBNAIL_SIZE_PX );
-        // Make the image a bit bigger to account for the empty space around the generated image.
-        // If we can find a way to remove this empty space, we don't need to make the chart bigger.
-        BufferedImage buffer = new BufferedImage( size + 16, size + 9,
-                BufferedImage.TYPE_INT_RGB );
-        Graphics g = buffer.createGraphics();
-        g.setColor( Color.white );
-        g.fillRect( 0, 0, size + 16, size + 9 );
-        g.setColor( Color.gray );
-        g.drawLine( 8, size + 5, size + 8, size + 5 ); // x-axis
-        g.drawLine( 8, 5, 8, size + 5 ); // y-axis
-        g.setColor( Color.black );
-        Font font = g.getFont();
-        g.setFont( new Font( font.getName(), font.getStyle(), 8 ) );
-        g.drawString( "N/A", 9, size );
-        response.setContentType( MediaType.IMAGE_PNG_VALUE );
-        ChartUtils.writeBufferedImageAsPNG( response.getOutputStream(), buffer );
-    }
-
-    private void writeProbeCorrHistImage( ExpressionExperiment ee, HttpServletResponse response ) throws IOException {
+    private void writeProbeCorrHistImage( ExpressionExperiment ee, OutputStream os ) throws IOException {
         XYSeries series = this.getCorrelHist( ee );
 
         if ( series == null || series.getItemCount() == 0 ) {
-            writePlaceholderImage( response, DEFAULT_QC_IMAGE_SIZE_PX );
+            qcFigureRenderer.renderPlaceholder( os );
             return;
         }
 
@@ -1504,89 +1275,6 @@ public class ExpressionExperimentQCController {
         XYItemRenderer renderer = chart.getXYPlot().getRenderer();
         renderer.setDefaultPaint( Color.white );
 
-        response.setContentType( MediaType.IMAGE_PNG_VALUE );
-        ChartUtils.writeChartAsPNG( response.getOutputStream(), chart, DEFAULT_QC_IMAGE_SIZE_PX, DEFAULT_QC_IMAGE_SIZE_PX );
-    }
-
-    /**
-     * Has to handle the situation where there might be more than one ResultSet.
-     */
-    private void writePValueHistImage( ExpressionAnalysisResultSet rs, HttpServletResponse response ) throws IOException {
-        XYSeries series = this.getDiffExPvalueHistXYSeries( rs );
-
-        if ( series == null ) {
-            writePlaceholderImage( response, DEFAULT_QC_IMAGE_SIZE_PX );
-            return;
-        }
-
-        XYSeriesCollection xySeriesCollection = new XYSeriesCollection( series );
-
-        ChartFactory.setChartTheme( StandardChartTheme.createLegacyTheme() );
-        JFreeChart chart = ChartFactory
-                .createXYLineChart( "", "P-value", "Frequency", xySeriesCollection, PlotOrientation.VERTICAL, false,
-                        false, false );
-        chart.getXYPlot().setRangeGridlinesVisible( false );
-        chart.getXYPlot().setDomainGridlinesVisible( false );
-        XYItemRenderer renderer = chart.getXYPlot().getRenderer();
-        renderer.setDefaultPaint( Color.white );
-
-        response.setContentType( MediaType.IMAGE_PNG_VALUE );
-        ChartUtils.writeChartAsPNG( response.getOutputStream(), chart, ( int ) ( 1.4 * DEFAULT_QC_IMAGE_SIZE_PX ), DEFAULT_QC_IMAGE_SIZE_PX );
-    }
-
-    /**
-     * Write p-value histogram thumbnail image.
-     */
-    private void writePValueHistThumbnailImage( ExpressionAnalysisResultSet rs, int size, HttpServletResponse response ) throws IOException {
-        XYSeries series = this.getDiffExPvalueHistXYSeries( rs );
-
-        if ( series == null ) {
-            writePlaceholderThumbnailImage( response, size );
-            return;
-        }
-
-        series.add( -0.01, 0.0 );
-
-        XYSeriesCollection xySeriesCollection = new XYSeriesCollection( series );
-
-        ChartFactory.setChartTheme( StandardChartTheme.createLegacyTheme() );
-        JFreeChart chart = ChartFactory
-                .createXYLineChart( "", "", "", xySeriesCollection, PlotOrientation.VERTICAL, false, false, false );
-
-        chart.getXYPlot().setBackgroundPaint( new Color( 230, 230, 230 ) );
-        chart.getXYPlot().setRangeGridlinesVisible( false );
-        chart.getXYPlot().setDomainGridlinesVisible( false );
-        chart.getXYPlot().setOutlineVisible( false ); // around the plot
-        chart.getXYPlot().getRangeAxis().setTickMarksVisible( false );
-        chart.getXYPlot().getRangeAxis().setTickLabelsVisible( false );
-        chart.getXYPlot().getRangeAxis().setAxisLineVisible( false );
-        chart.getXYPlot().getDomainAxis().setTickMarksVisible( false );
-        chart.getXYPlot().getDomainAxis().setTickLabelsVisible( false );
-        chart.getXYPlot().getDomainAxis().setAxisLineVisible( false );
-        chart.getXYPlot().getRenderer().setSeriesPaint( 0, Color.RED );
-        // chart.getXYPlot().getRenderer().setSeriesStroke( 0, new BasicStroke( 1 ) );
-
-        // Make the chart a bit bigger to account for the empty space around the generated image.
-        // If we can find a way to remove this empty space, we don't need to make the chart bigger.
-        response.setContentType( MediaType.IMAGE_PNG_VALUE );
-        int finalSize = Math.min( size, MAX_QC_IMAGE_THUMBNAIL_SIZE_PX );
-        ChartUtils.writeChartAsPNG( response.getOutputStream(), chart, finalSize + 16, finalSize + 9 );
-    }
-
-    /**
-     * Overrides XYLineAndShapeRenderer such that lines are drawn on top of points.
-     */
-    private static class XYRegressionRenderer extends XYLineAndShapeRenderer {
-        private static final long serialVersionUID = 1L;
-
-        @Override
-        protected boolean isLinePass( int pass ) {
-            return pass == 1;
-        }
-
-        @Override
-        protected boolean isItemPass( int pass ) {
-            return pass == 0;
-        }
+        ChartUtils.writeChartAsPNG( os, chart, DEFAULT_QC_IMAGE_SIZE_PX, DEFAULT_QC_IMAGE_SIZE_PX );
     }
 }
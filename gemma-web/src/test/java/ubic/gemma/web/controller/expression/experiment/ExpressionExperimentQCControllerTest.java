@@ -1,7 +1,9 @@
 package ubic.gemma.web.controller.expression.experiment;
 
 import org.junit.After;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -14,9 +16,18 @@ import ubic.gemma.core.analysis.preprocess.OutlierDetectionService;
 import ubic.gemma.core.analysis.preprocess.svd.SVDService;
 import ubic.gemma.core.context.TestComponent;
 import ubic.gemma.core.util.BuildInfo;
+import ubic.gemma.core.util.locking.LockedPath;
+import ubic.gemma.core.visualization.HeatmapTile;
+import ubic.gemma.core.visualization.HeatmapTileCache;
+import ubic.gemma.core.visualization.QcFigureRenderer;
+import ubic.gemma.core.visualization.QcFigureService;
+import ubic.gemma.core.visualization.QcFigureType;
 import ubic.gemma.model.analysis.expression.diff.DifferentialExpressionAnalysis;
 import ubic.gemma.model.analysis.expression.diff.ExpressionAnalysisResultSet;
+import ubic.gemma.model.common.quantitationtype.QuantitationType;
 import ubic.gemma.model.expression.bioAssay.BioAssay;
+import ubic.gemma.model.expression.bioAssayData.BioAssayDimension;
+import ubic.gemma.model.expression.bioAssayData.ProcessedExpressionDataVector;
 import ubic.gemma.model.expression.experiment.ExpressionExperiment;
 import ubic.gemma.persistence.service.analysis.expression.coexpression.CoexpressionAnalysisService;
 import ubic.gemma.persistence.service.analysis.expression.diff.DifferentialExpressionAnalysisService;
@@ -30,16 +41,20 @@ import ubic.gemma.persistence.service.expression.experiment.ExpressionExperiment
 import ubic.gemma.persistence.service.expression.experiment.SingleCellExpressionExperimentService;
 import ubic.gemma.web.util.BaseWebTest;
 
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.Optional;
 import java.util.function.Function;
 
-import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @SuppressWarnings("unchecked")
@@ -126,6 +141,21 @@ public class ExpressionExperimentQCControllerTest extends BaseWebTest {
         public BuildInfo buildInfo() {
             return mock();
         }
+
+        @Bean
+        public HeatmapTileCache heatmapTileCache() {
+            return mock();
+        }
+
+        @Bean
+        public QcFigureService qcFigureService() {
+            return mock();
+        }
+
+        @Bean
+        public QcFigureRenderer qcFigureRenderer() {
+            return mock();
+        }
     }
 
     @Autowired
@@ -140,15 +170,28 @@ public class ExpressionExperimentQCControllerTest extends BaseWebTest {
     @Autowired
     private SampleCoexpressionAnalysisService sampleCoexpressionAnalysisService;
 
+    @Autowired
+    private HeatmapTileCache heatmapTileCache;
+
+    @Autowired
+    private QcFigureService qcFigureService;
+
+    @Autowired
+    private QcFigureRenderer qcFigureRenderer;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @After
     public void resetMocks() {
-        reset( expressionExperimentService, differentialExpressionAnalysisService, expressionAnalysisResultSetService, sampleCoexpressionAnalysisService );
+        reset( expressionExperimentService, differentialExpressionAnalysisService, expressionAnalysisResultSetService, sampleCoexpressionAnalysisService, heatmapTileCache, qcFigureService, qcFigureRenderer );
     }
 
     @Test
     public void testVisualizeCorrelationMatrix() throws Exception {
         ExpressionExperiment ee = new ExpressionExperiment();
         ee.setId( 1L );
+        ee.setNumberOfSamples( 2 );
         when( expressionExperimentService.loadOrFail( eq( 1L ), any( Function.class ) ) )
                 .thenReturn( ee );
         when( expressionExperimentService.thawLiter( ee ) ).thenReturn( ee );
@@ -158,10 +201,18 @@ public class ExpressionExperimentQCControllerTest extends BaseWebTest {
         when( mat.getRawMatrix() ).thenReturn( rawMat );
         when( mat.rows() ).thenReturn( 2 );
         when( sampleCoexpressionAnalysisService.loadFullMatrix( ee ) ).thenReturn( mat );
+        byte[] png = { ( byte ) 0x89, 'P', 'N', 'G' };
+        doAnswer( a -> {
+            ( ( OutputStream ) a.getArgument( 4 ) ).write( png );
+            return null;
+        } ).when( qcFigureRenderer ).renderSampleCorrelationMatrix( any(), anyInt(), anyBoolean(), anyBoolean(), any() );
         perform( get( "/expressionExperiment/visualizeCorrMat.html" ).param( "id", "1" )
                 .param( "size", "10" ) )
                 .andExpect( status().isOk() )
-                .andExpect( content().contentType( MediaType.IMAGE_PNG ) );
+                .andExpect( content().contentType( MediaType.IMAGE_PNG ) )
+                .andExpect( content().bytes( png ) );
+        verify( qcFigureRenderer ).renderSampleCorrelationMatrix( same( mat ), eq( 12 ), eq( false ), eq( true ), any() );
+        verify( qcFigureService ).saveFigureAsync( eq( ee ), eq( QcFigureType.SAMPLE_CORRELATION_MATRIX ), eq( "full-cellSize12-showLabelsfalse-showScalebartrue" ), eq( png ) );
 
         perform( get( "/expressionExperiment/visualizeCorrMat.html" ).param( "id", "1" )
                 .param( "size", "10" )
@@ -170,6 +221,38 @@ public class ExpressionExperimentQCControllerTest extends BaseWebTest {
                 .andExpect( content().contentType( "text/tab-separated-values" ) );
     }
 
+    @Test
+    public void testVisualizeCorrelationMatrixFromStoredFigure() throws Exception {
+        ExpressionExperiment ee = new ExpressionExperiment();
+        ee.setId( 1L );
+        ee.setNumberOfSamples( 2 );
+        when( expressionExperimentService.loadOrFail( eq( 1L ), any( Function.class ) ) )
+                .thenReturn( ee );
+        byte[] png = { ( byte ) 0x89, 'P', 'N', 'G' };
+        Path figurePath = temporaryFolder.newFile( "figure.png" ).toPath();
+        Files.write( figurePath, png );
+        LockedPath figure = mock();
+        when( figure.getPath() ).thenReturn( figurePath );
+        // the variant only depends on the effective cell size, labels and scale bar, which are derived from the number
+        // of samples
+        when( qcFigureService.getFigure( ee, QcFigureType.SAMPLE_CORRELATION_MATRIX, "regressed-cellSize12-showLabelsfalse-showScalebarfalse" ) )
+                .thenReturn( Optional.of( figure ) );
+        perform( get( "/expressionExperiment/visualizeCorrMat.html" ).param( "id", "1" )
+                .param( "reg", "true" ) )
+                .andExpect( status().isOk() )
+                .andExpect( content().contentType( MediaType.IMAGE_PNG ) )
+                .andExpect( content().bytes( png ) );
+        perform( get( "/expressionExperiment/visualizeCorrMat.html" ).param( "id", "1" )
+                .param( "reg", "true" )
+                .param( "size", "1.5" ) )
+                .andExpect( status().isOk() )
+                .andExpect( content().bytes( png ) );
+        verify( figure, times( 2 ) ).close();
+        // the matrix is not needed to serve a stored figure
+        verifyNoInteractions( sampleCoexpressionAnalysisService, qcFigureRenderer );
+        verify( qcFigureService, never() ).saveFigureAsync( any(), any(), any(), any( byte[].class ) );
+    }
+
 
     @Test
     public void testVisualizePvalueDist() throws Exception {
@@ -194,4 +277,29 @@ public class ExpressionExperimentQCControllerTest extends BaseWebTest {
                 .andExpect( status().isOk() )
                 .andExpect( content().contentType( MediaType.IMAGE_PNG ) );
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testVisualizeHeatmap() throws Exception {
+        ExpressionExperiment ee = new ExpressionExperiment();
+        ee.setId( 1L );
+        QuantitationType qt = new QuantitationType();
+        BioAssayDimension dimension = new BioAssayDimension();
+        dimension.setId( 3L );
+        when( expressionExperimentService.loadAndThawLiteOrFail( eq( 1L ), any(), any() ) ).thenReturn( ee );
+        when( expressionExperimentService.getProcessedQuantitationType( ee ) ).thenReturn( Optional.of( qt ) );
+        when( expressionExperimentService.getBioAssayDimension( ee, qt, ProcessedExpressionDataVector.class ) ).thenReturn( dimension );
+        byte[] png = { ( byte ) 0x89, 'P', 'N', 'G' };
+        when( heatmapTileCache.getOrRender( eq( ee ), any(), any() ) )
+                .thenReturn( new HeatmapTile( png, "abcdef", new Date( 1000L ) ) );
+        perform( get( "/expressionExperiment/visualizeHeatmap.html" ).param( "id", "1" ).param( "offset", "20" ) )
+                .andExpect( status().isOk() )
+                .andExpect( content().contentType( MediaType.IMAGE_PNG ) )
+                .andExpect( header().string( "ETag", "\"abcdef\"" ) )
+                .andExpect( content().bytes( png ) );
+        verify( heatmapTileCache ).getOrRender( eq( ee ), eq( "heatmap:dimension=3:offset=20:limit=10:cellSize=null:transpose=null" ), any() );
+        perform( get( "/expressionExperiment/visualizeHeatmap.html" ).param( "id", "1" ).param( "offset", "20" )
+                .header( "If-None-Match", "\"abcdef\"" ) )
+                .andExpect( status().isNotModified() )
+                .andExpect( content().bytes( new byte[0] ) );
+    }
+}